@@ -26,6 +26,7 @@ import org.shaman.exceptions.DataModelException;
 import org.shaman.exceptions.LearnerException;
 import org.shaman.learning.CachingPresenter;
 import org.shaman.learning.Classifier;
+import org.shaman.learning.InstanceSetColumnar;
 import org.shaman.learning.ClassifierTransformation;
 import org.shaman.learning.Presenter;
 
@@ -47,6 +48,9 @@ import cern.colt.matrix.ObjectMatrix1D;
 // *********************************************************/
 public class NaiveBayes extends ClassifierTransformation implements Classifier, Persister
 {
+    // Number of instances classified together by the batch classification
+    private static final int CLASSIFY_BLOCK = 64;
+    
     // The Naive Bayes Classifier Model
     private double [][][]paijvk;            // p(aij|vk) indexed with [k][i][j]
     private double []pvk;                   // p(vk)
@@ -54,94 +58,147 @@ public class NaiveBayes extends ClassifierTransformation implements Classifier,
     private double []cvk;
     private int    ctot;
     
+    // The compiled log-probability model used for classification
+    private int    numgoal;                 // Number of goal classes
+    private int    []offset;                // [j] = Position of the first category of attribute j in logp
+    private double []logp;                  // [(offset[j]+c)*numgoal + k] = log p(category c of attribute j | vk)
+    private double []logpvk;                // [k] = log p(vk)
+    
+    // The active attributes
+    private AttributeDouble []attdo;        // [j] = Active attribute j. If primitive.
+    private AttributeObject []attob;        // [j] = Active attribute j. If Object based.
+    
+    // Work buffers of the classification. Every classifying thread has its own.
+    private ThreadLocal<WorkBuffers> workBuffers = new ThreadLocal<WorkBuffers>();
+    
+    private static final class WorkBuffers
+    {
+        int    []cat;                       // Categories of the instances of a block
+        double []score;                     // Class scores of the instances of a block
+    }
+    
     // *********************************************************\
     // *             Naive Bayes Classification                *
     // *********************************************************/
-    private int classifyObject(Object instance, double []confidence) throws LearnerException
+    private int categories(Object instance, int []cat, int pos) throws LearnerException
     {
         DoubleMatrix1D  dins;
         ObjectMatrix1D  oins;
-        AttributeDouble attdonow;
-        AttributeObject attobnow;
-        int             i,j,cl;
-        int             numclass;
-        double          val, max;
+        int             j, numval;
+        double          val;
         Object          oval;
-        int             clnow;
-        int             numval;
-        double        []pcl;
-        
-        // Make the correct instance
-        dins = null;
-        oins = null;
-        if (this.primitive) dins = (DoubleMatrix1D)instance;
-        else                oins = (ObjectMatrix1D)instance;
         
-        numclass = 0; pcl = null;
+        // Find the category of all attribute values once. For all classes.
+        numval = 0;
         try
         {
-            // Clear class probability tables
-            numclass = this.attgoal.getNumberOfGoalClasses();
-            pcl      = new double[numclass];
-            for (i=0; i<pcl.length; i++) pcl[i] = 1;
-            
-            // Calculate the probability per class according to the Naive Bayesian Method.
-            for (i=0; i<numclass; i++)
+            if (this.primitive) // Primitive Data.
             {
-                numval = 0;
-                for (j=0; j<this.actind.length; j++)
+                dins = (DoubleMatrix1D)instance;
+                for (j=0; j<this.attdo.length; j++)
                 {
-                    // Multiply by the probability that the current value occurs.
-                    if (this.primitive) // Primitive Data.
+                    val = dins.getQuick(j);
+                    if ((this.attdo[j].isMissingAsDouble(val)) &&
+                            (this.attdo[j].getMissingIs() == Attribute.MISSING_IS_UNKNOWN)) cat[pos+j] = -1; // Skip unknown values
+                    else
                     {
-                        attdonow = this.dmdo.getAttributeDouble(actind[j]);
-                        val      = dins.getQuick(j);
-                        if ((attdonow.isMissingAsDouble(val)) &&
-                                (attdonow.getMissingIs() == Attribute.MISSING_IS_UNKNOWN)) ; // Skip unknown values
-                        else
-                        {
-                            // Treat missing values as a special category.
-                            clnow   = attdonow.getCategory(val);
-                            pcl[i] *= this.paijvk[i][j][clnow];
-                            numval++;
-                        }
+                        // Treat missing values as a special category.
+                        cat[pos+j] = this.attdo[j].getCategory(val);
+                        numval++;
                     }
-                    else             // Object Based Data.
+                }
+            }
+            else             // Object Based Data.
+            {
+                oins = (ObjectMatrix1D)instance;
+                for (j=0; j<this.attob.length; j++)
+                {
+                    oval = oins.getQuick(j);
+                    if ( this.attob[j].isMissingAsObject(oval) &&
+                            (this.attob[j].getMissingIs() == Attribute.MISSING_IS_UNKNOWN)) cat[pos+j] = -1; // Skip unknown values.
+                    else
                     {
-                        attobnow = this.dmob.getAttributeObject(actind[j]);
-                        oval     = oins.getQuick(j);
-                        if ( attobnow.isMissingAsObject(oval) &&
-                                (attobnow.getMissingIs() == Attribute.MISSING_IS_UNKNOWN)); // Skip unknown values.
-                        else
-                        {
-                            // Treat missing values as a special category.
-                            clnow   = attobnow.getCategory(oval);
-                            pcl[i] *= this.paijvk[i][j][clnow];
-                            numval++;
-                        }
+                        // Treat missing values as a special category.
+                        cat[pos+j] = this.attob[j].getCategory(oval);
+                        numval++;
                     }
                 }
-                
-                if (numval > 0) pcl[i] *= this.pvk[i];
-                else            pcl[i] = -1;
             }
         }
         catch(DataModelException ex) { throw new LearnerException(ex); }
         
-        // Find the most probable class
-        max = -1; cl = -1;
-        for (i=0; i<numclass; i++)
+        return(numval);
+    }
+    
+    private int pickClass(double []score, int pos, int numval, double []confidence)
+    {
+        int    i, cl;
+        double max;
+        
+        // Find the most probable class. The first one if all are impossible.
+        cl = -1;
+        if (numval > 0)
         {
-            if (pcl[i] > max) { cl = i; max = pcl[i]; }
+            max = Double.NEGATIVE_INFINITY; cl = 0;
+            for (i=0; i<this.numgoal; i++)
+            {
+                if (score[pos+i] > max) { cl = i; max = score[pos+i]; }
+            }
         }
         if (confidence != null)
         {
-            for (i=0; i<pcl.length; i++) confidence[i] = pcl[i];
+            // The probability of the classes. -1 if there was nothing to classify with.
+            for (i=0; i<this.numgoal; i++)
+            {
+                if (numval > 0) confidence[i] = Math.exp(score[pos+i]);
+                else            confidence[i] = -1;
+            }
         }
         
-        // Return classification result.
-        if (max > -1) return(cl);
-        else          return(-1);
+        return(cl);
+    }
+    
+    private WorkBuffers getWorkBuffers()
+    {
+        WorkBuffers buf;
+        
+        // Big enough for a block of instances. Made again when the model has grown.
+        buf = this.workBuffers.get();
+        if (buf == null)
+        {
+            buf = new WorkBuffers();
+            this.workBuffers.set(buf);
+        }
+        if ((buf.cat == null) || (buf.cat.length < CLASSIFY_BLOCK*this.offset.length)) buf.cat   = new int[CLASSIFY_BLOCK*this.offset.length];
+        if ((buf.score == null) || (buf.score.length < CLASSIFY_BLOCK*this.numgoal))   buf.score = new double[CLASSIFY_BLOCK*this.numgoal];
+        
+        return(buf);
+    }
+    
+    private int classifyObject(Object instance, double []confidence) throws LearnerException
+    {
+        int         j, k, c, numval;
+        int       []cat;
+        double    []score;
+        WorkBuffers buf;
+        
+        // Add the log-probabilities of the categories of the instance to the class priors.
+        buf    = getWorkBuffers();
+        cat    = buf.cat;
+        score  = buf.score;
+        System.arraycopy(this.logpvk, 0, score, 0, this.numgoal);
+        numval = categories(instance, cat, 0);
+        for (j=0; j<this.offset.length; j++)
+        {
+            c = cat[j];
+            if (c != -1)
+            {
+                c = (this.offset[j]+c)*this.numgoal;
+                for (k=0; k<this.numgoal; k++) score[k] += this.logp[c+k];
+            }
+        }
+        
+        return(pickClass(score, 0, numval, confidence));
     }
     
     public int classify(ObjectMatrix1D instance, double []confidence) throws LearnerException
@@ -154,131 +211,251 @@ public class NaiveBayes extends ClassifierTransformation implements Classifier,
         return(classifyObject(instance, confidence));
     }
     
+    /**
+     * Classify a range of instances. The instances are scored in blocks, one attribute
+     * at a time for all instances of the block. Gives the same classes and confidences
+     * as classifying the instances one by one. Every thread has its own work buffers,
+     * so several threads can classify with the same model.
+     * @param instances The instances. The values of the active attributes.
+     * @param begin Index of the first instance to classify
+     * @param end Index after the last instance to classify
+     * @param classes Buffer for the class of each instance. -1 if it could not be classified.
+     * @param confidence Buffer for the class confidence of each instance. Can be null.
+     * @throws LearnerException If the category of a value cannot be found.
+     */
+    public void classify(DoubleMatrix1D []instances, int begin, int end, int []classes, double [][]confidence) throws LearnerException
+    {
+        int         ib, b, nb, j, k, c, pos, numatt;
+        int       []cat;
+        double    []score;
+        WorkBuffers buf;
+        
+        // Categories and class scores of a block of instances.
+        numatt = this.offset.length;
+        buf    = getWorkBuffers();
+        cat    = buf.cat;
+        score  = buf.score;
+        for (ib=begin; ib<end; ib+=CLASSIFY_BLOCK)
+        {
+            nb = Math.min(CLASSIFY_BLOCK, end-ib);
+            
+            // The categories of the instances of the block. Their class priors.
+            for (b=0; b<nb; b++)
+            {
+                classes[ib+b] = categories(instances[ib+b], cat, b*numatt);
+                System.arraycopy(this.logpvk, 0, score, b*this.numgoal, this.numgoal);
+            }
+            
+            // Add the log-probabilities. Attribute after attribute.
+            for (j=0; j<numatt; j++)
+            {
+                for (b=0; b<nb; b++)
+                {
+                    c = cat[b*numatt+j];
+                    if (c != -1)
+                    {
+                        c   = (this.offset[j]+c)*this.numgoal;
+                        pos = b*this.numgoal;
+                        for (k=0; k<this.numgoal; k++) score[pos+k] += this.logp[c+k];
+                    }
+                }
+            }
+            
+            // classes[] holds the number of known values until the class is picked.
+            for (b=0; b<nb; b++)
+                classes[ib+b] = pickClass(score, b*this.numgoal, classes[ib+b], (confidence != null) ? confidence[ib+b] : null);
+        }
+    }
+    
     // **********************************************************\
     // *                 Naive Bayes Learning                   *
     // **********************************************************/
     public void train() throws LearnerException
     {
         Attribute       attnow;
-        AttributeDouble attdonow;
-        AttributeObject attobnow;
-        int             i, j, k, numins, numgoal, numclass;
-        int             gc, cn;
-        double          val, iweight;
-        Object          oval;
+        int             i, j, numgoal;
         
-        // Naive Bayes model. Counters and probabilities
-        double [][][]paijvk;
-        double []pvk;
+        // Naive Bayes model counters
         double [][][]caijvk;
         double []cvk;
-        int    ctot;
         
         try
         {
-            // Number of instances in the training set
-            numins = this.trainData.getNumberOfInstances();
-            
-            // Make the probability and counter buffers.
+            // Make the counter buffers.
+            // Arrays of [number of goal classes][number of attributes][number of classes in attribute]
             numgoal = this.attgoal.getNumberOfGoalClasses();
-            paijvk  = new double[numgoal][][];
-            pvk     = new double[numgoal];
             caijvk  = new double[numgoal][][];
             cvk     = new double[numgoal];
-            
-            // Arrays of [number of goal classes][number of attributes][number of classes in attribute]
             for (i=0; i<numgoal; i++)
             {
-                paijvk[i] = new double[actind.length][];
                 caijvk[i] = new double[actind.length][];
                 for (j=0; j<actind.length; j++)
                 {
                     attnow       = this.dataModel.getAttribute(actind[j]);
-                    numclass     = attnow.getNumberOfCategories();
-                    paijvk[i][j] = new double[numclass];
-                    caijvk[i][j] = new double[numclass];
-                    for (k=0; k<paijvk[i][j].length; k++) { paijvk[i][j][k] = 0; caijvk[i][j][k] = 0; }
+                    caijvk[i][j] = new double[attnow.getNumberOfCategories()];
                 }
-                pvk[i] = 0; cvk[i] = 0;
             }
             
-            // Determine the probability of the goal classes. Take into account instance weights.
-            ctot = 0;
-            for (i=0; i<numins; i++)
+            // Count the training set. Commit the trained model.
+            this.ctot   = count(this.trainData, caijvk, cvk);
+            this.caijvk = caijvk;
+            this.cvk    = cvk;
+            makeProbabilities();
+        }
+        catch(DataModelException ex) { throw new LearnerException(ex); }
+    }
+    
+    /**
+     * Add a set of instances to the trained model.
+     * Adds their counts to the counts of the instances trained before and
+     * updates the probabilities. Gives the same model as training on all instances at once.
+     * @param instances The new instances
+     * @throws LearnerException If the instances cannot be counted.
+     */
+    public void trainIncremental(Presenter instances) throws LearnerException
+    {
+        if (this.caijvk == null)
+        {
+            // Nothing trained yet.
+            setTrainSet(instances);
+            train();
+        }
+        else
+        {
+            try
+            {
+                this.ctot += count(instances, this.caijvk, this.cvk);
+                makeProbabilities();
+            }
+            catch(DataModelException ex) { throw new LearnerException(ex); }
+        }
+    }
+    
+    private int count(Presenter instances, double [][][]caijvk, double []cvk) throws LearnerException, DataModelException
+    {
+        int             j, k, numins;
+        int             gc, ctot;
+        double          iweight;
+        int           []cat;
+        
+        // Determine the occurence of the goal classes. Take into account instance weights.
+        // Instances without a known goal class are not counted.
+        numins = instances.getNumberOfInstances();
+        ctot   = 0;
+        for (k=0; k<numins; k++)
+        {
+            gc = instances.getGoalClass(k);
+            if (gc >= 0)
             {
-                iweight  = trainData.getWeight(i);
-                gc       = trainData.getGoalClass(i);
+                iweight  = instances.getWeight(k);
                 cvk[gc] += iweight;
                 ctot    += iweight;
             }
-            
-            // And the probability of a specific attribute category occuring together with a goal class.
-            for (i=0; i<cvk.length; i++) pvk[i] = ((double)cvk[i]) / ((double)ctot);
-            
-            // For all the goal classes
-            for (i=0; (i<numgoal); i++)
+        }
+        
+        // And the occurence of a specific attribute category together with a goal class.
+        // Count straight from the columns when the set stores them.
+        if (instances instanceof InstanceSetColumnar) countColumns((InstanceSetColumnar)instances, caijvk);
+        else
+        {
+            // Find the categories of every instance once.
+            cat = new int[this.actind.length];
+            for (k=0; k<numins; k++)
             {
-                // And all the active attributes
-                for (j=0; (j<this.actind.length); j++)
+                gc      = instances.getGoalClass(k);
+                if (gc < 0) continue;
+                iweight = instances.getWeight(k);
+                if (this.primitive) categories(instances.getInstance(k), cat, 0);
+                else                categories(instances.getObjectInstance(k), cat, 0);
+                for (j=0; j<cat.length; j++)
                 {
-                    // Loop over all the instance in the training set
-                    attnow = this.dataModel.getAttribute(this.actind[j]);
-                    for (k=0; (k<numins); k++)
+                    // Missing values only when they're a category of their own.
+                    if (cat[j] != -1)
                     {
-                        // Class i occuring in instance k...
-                        if (this.trainData.getGoalClass(k) == i)
-                        {
-                            // Lookup the weight of the current instance
-                            iweight = this.trainData.getWeight(k);
-                            
-                            // Attribute cn occuring...
-                            if (this.primitive)
-                            {
-                                attdonow = (AttributeDouble)attnow;
-                                val      = this.trainData.getInstance(k).getQuick(j);
-                                if ((!attdonow.isMissingAsDouble(val)) || (attdonow.getMissingIs() == Attribute.MISSING_IS_VALUE))
-                                {
-                                    // Adjust the counter of the occuring category. Take into account instance weight.
-                                    cn = attdonow.getCategory(val);
-                                    caijvk[i][j][cn] += iweight;
-                                }
-                            }
-                            else
-                            {
-                                attobnow = (AttributeObject)attnow;
-                                oval     = this.trainData.getObjectInstance(k).getQuick(j);
-                                if ((!attobnow.isMissingAsObject(oval)) || (attobnow.getMissingIs() == Attribute.MISSING_IS_VALUE))
-                                {
-                                    // Adjust the counter of the occuring category. Take into account instance weight.
-                                    cn = attobnow.getCategory(oval);
-                                    caijvk[i][j][cn] += iweight;
-                                }
-                            }
-                        }
+                        // Adjust the counter of the occuring category. Take into account instance weight.
+                        caijvk[gc][j][cat[j]] += iweight;
                     }
                 }
             }
-            
-            // Convert the counters to probabilities
-            for (i=0; i<numgoal; i++)
+        }
+        
+        return(ctot);
+    }
+    
+    private void makeProbabilities()
+    {
+        int    i, j, k;
+        double tot;
+        
+        // Convert the counters to probabilities
+        this.paijvk = new double[this.cvk.length][][];
+        this.pvk    = new double[this.cvk.length];
+        tot         = 0;
+        for (i=0; i<this.cvk.length; i++) tot += this.cvk[i];
+        for (i=0; i<this.cvk.length; i++)
+        {
+            this.pvk[i]    = this.cvk[i] / tot;
+            this.paijvk[i] = new double[this.caijvk[i].length][];
+            for (j=0; j<this.caijvk[i].length; j++)
+            {
+                this.paijvk[i][j] = new double[this.caijvk[i][j].length];
+                for (k=0; k<this.caijvk[i][j].length; k++)
+                    if (this.caijvk[i][j][k] != 0) this.paijvk[i][j][k] = this.caijvk[i][j][k] / this.cvk[i];
+                    else                           this.paijvk[i][j][k] = 0;
+            }
+        }
+        
+        compile();
+    }
+    
+    private void compile()
+    {
+        int i, j, k, numatt, numcat;
+        
+        // Flatten the probability tables. Log-probabilities of the classes next to each other.
+        this.numgoal = this.pvk.length;
+        numatt       = (this.numgoal > 0) ? this.paijvk[0].length : 0;
+        this.offset  = new int[numatt];
+        numcat       = 0;
+        for (j=0; j<numatt; j++) { this.offset[j] = numcat; numcat += this.paijvk[0][j].length; }
+        this.logp   = new double[numcat*this.numgoal];
+        this.logpvk = new double[this.numgoal];
+        for (i=0; i<this.numgoal; i++)
+        {
+            this.logpvk[i] = Math.log(this.pvk[i]);
+            for (j=0; j<numatt; j++)
+                for (k=0; k<this.paijvk[i][j].length; k++) this.logp[(this.offset[j]+k)*this.numgoal+i] = Math.log(this.paijvk[i][j][k]);
+        }
+    }
+    
+    private void countColumns(InstanceSetColumnar cols, double [][][]caijvk) throws LearnerException, DataModelException
+    {
+        AttributeDouble attdonow;
+        int           []gc;
+        double        []weight, col;
+        double          val;
+        int             j, k, cn, numins;
+
+        // One pass over every attribute's column. Same summation order as the instance per instance loop.
+        numins = cols.getNumberOfInstances();
+        gc     = cols.getGoalClasses();
+        weight = cols.getWeights();
+        col    = new double[numins];
+        for (j=0; j<this.actind.length; j++)
+        {
+            attdonow = this.attdo[j];
+            col      = cols.getColumn(j, col);
+            for (k=0; k<numins; k++)
             {
-                for (j=0; j<this.actind.length; j++)
+                if (gc[k] < 0) continue;
+                val = col[k];
+                if ((!attdonow.isMissingAsDouble(val)) || (attdonow.getMissingIs() == Attribute.MISSING_IS_VALUE))
                 {
-                    for (k=0; k<caijvk[i][j].length; k++)
-                        if (caijvk[i][j][k] != 0) paijvk[i][j][k] = ((double)caijvk[i][j][k]) / ((double)cvk[i]);
-                        else                      paijvk[i][j][k] = 0;
+                    cn = attdonow.getCategory(val);
+                    caijvk[gc[k]][j][cn] += weight[k];
                 }
             }
-            
-            // Trained if not canceled
-            // Commit trained model
-            this.paijvk = paijvk;
-            this.pvk    = pvk;
-            this.caijvk = caijvk;
-            this.cvk    = cvk;
-            this.ctot   = ctot;
         }
-        catch(DataModelException ex) { throw new LearnerException(ex); }
     }
 
     // **********************************************************\
@@ -307,9 +484,23 @@ public class NaiveBayes extends ClassifierTransformation implements Classifier,
     // **********************************************************/
     public void initializeTraining() throws LearnerException
     {
+        int j;
+        
         // Find the active attribute and the index of the goal attribute
         this.actind  = this.dataModel.getActiveIndices();
         this.attgoal = this.dataModel.getAttribute(this.dataModel.getLearningProperty().getGoalIndex());
+        
+        // The active attributes. To find the categories of the values.
+        if (this.primitive)
+        {
+            this.attdo = new AttributeDouble[this.actind.length];
+            for (j=0; j<this.actind.length; j++) this.attdo[j] = (AttributeDouble)this.dataModel.getAttribute(this.actind[j]);
+        }
+        else
+        {
+            this.attob = new AttributeObject[this.actind.length];
+            for (j=0; j<this.actind.length; j++) this.attob[j] = (AttributeObject)this.dataModel.getAttribute(this.actind[j]);
+        }
     }
     
     public Presenter getTrainSet()
@@ -353,6 +544,7 @@ public class NaiveBayes extends ClassifierTransformation implements Classifier,
             this.caijvk = (double [][][])oin.readObject();
             this.cvk    = (double [])oin.readObject();
             this.ctot  = oin.readInt();
+            compile();
         }
         catch(IOException ex)            { throw new ConfigException(ex); }
         catch(ClassNotFoundException ex) { throw new ConfigException(ex); }
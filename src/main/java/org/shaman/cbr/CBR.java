@@ -11,6 +11,13 @@
 \*********************************************************/
 package org.shaman.cbr;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
 import org.shaman.datamodel.DataModel;
 import org.shaman.exceptions.ConfigException;
 import org.shaman.exceptions.DataFlowException;
@@ -40,11 +47,26 @@ import cern.colt.matrix.doublealgo.Statistic;
 // *********************************************************/
 public class CBR extends ClassifierTransformation implements Classifier
 {
+    /** Use the KD-Tree for the Euclidean distance on primitive data. A Vantage-Point tree otherwise. */
+    public static final int INDEX_AUTO   = 0;
+    /** Compare with all training instances */
+    public static final int INDEX_LINEAR = 1;
+    /** KD-Tree. Needs primitive data and the plain Euclidean distance. */
+    public static final int INDEX_KDTREE = 2;
+    /** Vantage-Point tree. For any metric distance. */
+    public static final int INDEX_VPTREE = 3;
+    
+    // Instances per task when classifying a set of instances.
+    private static final int CLASSIFY_BLOCK = 256;
+    
     private int    kNearest;                // How many instances to consider
+    private int    indexType;               // Kind of nearest neighbor index
+    private int    numberOfThreads;         // Number of threads classifying sets of instances. 0 = number of processors.
     
     // The CBR Model
     private int          []view;            // The indices in the instances to use.
     private DistanceMatrix dm;              // Distance Calculation between instances
+    private NeighborIndex  index;           // Finds the nearest training instances
     private int            numClass;        // Number of goal classes
     
     private OpenIntIntHashMap indExclude;   // Exclude the instances in the keyset of this Map.
@@ -52,97 +74,38 @@ public class CBR extends ClassifierTransformation implements Classifier
     // *********************************************************\
     // *           Case Base Reasoning Classification          *
     // *********************************************************/
-    private void maintainKNearest(int c, double d, double w, int []kcl, double []kdist, double []kwei)
+    private int classifyObject(Object instance, double []confidence) throws LearnerException
     {
-        // Check if the new distance is smaller than the k-nearest onces up until now.
-        int i, pos;
+        NeighborHeap heap;
         
-        if (!this.indExclude.containsKey(c)) // Stop if the current instance should be excluded.
-        {
-            // Check if the given distance is smaller than the current k-nearest distances.
-            pos = -1;
-            for (i=0; (i<kdist.length) && (pos == -1); i++)
-            {
-                if (d < kdist[i]) pos = i;
-            }
-            // If smaller, merge in the nearest neighbor list at the right spot.
-            if (pos != -1)
-            {
-                for (i=pos+1; i<kdist.length; i++)
-                { 
-                    kcl[i]   = kcl[i-1];
-                    kdist[i] = kdist[i-1];
-                    kwei[i]  = kwei[i-1];
-                }
-                kdist[pos] = d;
-                kcl[pos]   = c;
-                kwei[pos]  = w;
-            }
-        }
+        // Find the K-Nearest Instances in the neighbor index.
+        if (this.index == null) throw new LearnerException("The Case Base is not trained.");
+        heap = new NeighborHeap(this.kNearest, this.indExclude);
+        if (this.primitive) this.index.search((DoubleMatrix1D)instance, heap);
+        else                this.index.search((ObjectMatrix1D)instance, heap);
+        
+        return(vote(heap, confidence));
     }
     
-    private int classifyObject(Object instance, double []confidence) throws LearnerException
+    private int vote(NeighborHeap heap, double []confidence) throws LearnerException
     {
-        DoubleMatrix1D  dins;
-        ObjectMatrix1D  oins;
-        int             i,cl;
-        double          max, wei, sumwei;
-        int             cnow;
-        double          dnow;
-        double        []kdist;
-        double        []kwei;
-        int           []kcl;
-        double        []pcl;
-        
-        // Make the correct instance the one to use
-        dins = null; oins = null;
-        if (this.primitive) dins = (DoubleMatrix1D)instance;
-        else                oins = (ObjectMatrix1D)instance;
+        int      i, cl, num, ind;
+        double   max, sumwei, wei;
+        double []pcl;
         
         // Clear class probability tables
-        pcl      = new double[this.numClass];
+        pcl = new double[this.numClass];
         for (i=0; i<pcl.length; i++) pcl[i] = 0;
         
-        // Make k-Nearest distance and class buffers
-        kcl   = new int[this.kNearest];
-        kdist = new double[this.kNearest];
-        kwei  = new double[this.kNearest];
-        for (i=0; i<kdist.length; i++) kdist[i] = Double.POSITIVE_INFINITY;
-        
-        // Find K-Nearest Instances with the correct distance handling. Use DistanceMatrix for this.
-        if (this.primitive)
-        {
-            DoubleMatrix1D dinv = dins.viewSelection(this.view);
-            DoubleMatrix1D dtr;
-            for (i=0; i<this.trainData.getNumberOfInstances(); i++)
-            {
-                dtr  = this.trainData.getInstance(i).viewSelection(this.view);
-                cnow = this.trainData.getGoalClass(i);
-                wei  = this.trainData.getWeight(i);
-                dnow = this.dm.distance(dtr, dinv);
-                maintainKNearest(cnow, dnow, wei, kcl, kdist, kwei);
-            }
-        }
-        else
-        {
-            ObjectMatrix1D oinv = oins.viewSelection(this.view);
-            ObjectMatrix1D otr;
-            for (i=0; i<this.trainData.getNumberOfInstances(); i++)
-            {
-                otr  = this.trainData.getObjectInstance(i).viewSelection(this.view);
-                cnow = this.trainData.getGoalClass(i);
-                wei  = this.trainData.getWeight(i);
-                dnow = this.dm.distance(otr, oinv);
-                maintainKNearest(cnow, dnow, wei, kcl, kdist, kwei);
-            }
-        }
-        
-        // For all class, calculate the contributions of the k-nearest points.
+        // For all class, calculate the contributions of the k-nearest points. From nearest to farthest.
+        num    = heap.sort();
         sumwei = 0;
-        for (i=0; i<kcl.length; i++)
+        for (i=0; i<num; i++)
         {
-            pcl[kcl[i]] += kwei[i];      // Take into account instance weighting.
-            sumwei      += kwei[i];
+            ind = heap.getIndex(i);
+            wei = this.trainData.getWeight(ind);
+            pcl[this.trainData.getGoalClass(ind)] += wei;      // Take into account instance weighting.
+            sumwei                                += wei;
         }
         if (sumwei > 0)
              for (i=0; i<pcl.length; i++) pcl[i] /= sumwei;
@@ -159,6 +122,90 @@ public class CBR extends ClassifierTransformation implements Classifier
         else          return(-1);
     }
     
+    /**
+     * Find the k nearest instances of the training set.
+     * @param instance The query instance. A DoubleMatrix1D or ObjectMatrix1D depending on the data.
+     * @param k The number of neighbors
+     * @return The nearest neighbors. Sorted from nearest to farthest.
+     * @throws LearnerException If the Case Base is not trained or the distances cannot be calculated.
+     */
+    public NeighborHeap nearest(Object instance, int k) throws LearnerException
+    {
+        NeighborHeap heap;
+        
+        if (this.index == null) throw new LearnerException("The Case Base is not trained.");
+        heap = new NeighborHeap(k, this.indExclude);
+        if (this.primitive) this.index.search((DoubleMatrix1D)instance, heap);
+        else                this.index.search((ObjectMatrix1D)instance, heap);
+        heap.sort();
+        
+        return(heap);
+    }
+    
+    /**
+     * Classify a set of instances. The instances are spread over the threads in blocks.
+     * Gives the same classes and confidences as classifying the instances one by one.
+     * @param instances The instances to classify
+     * @param confidence Buffer for the class-confidence of each instance. Can be null.
+     * @return The class of each instance. -1 if no neighbor was found.
+     * @throws LearnerException If the distances cannot be calculated or the classification is interrupted.
+     */
+    public int []classify(final Presenter instances, final double [][]confidence) throws LearnerException
+    {
+        final int []classes;
+        int         threads, numBlocks, i;
+        
+        classes   = new int[instances.getNumberOfInstances()];
+        numBlocks = (classes.length + CLASSIFY_BLOCK - 1) / CLASSIFY_BLOCK;
+        threads   = getThreads();
+        if (threads <= 1 || numBlocks <= 1)
+        {
+            classifyBlock(instances, 0, classes.length, classes, confidence);
+        }
+        else
+        {
+            ForkJoinPool pool;
+            List<Callable<Object>> tasks;
+            
+            // A task per block of instances. The blocks write in disjoint parts of the output.
+            tasks = new ArrayList<Callable<Object>>(numBlocks);
+            for (i=0; i<numBlocks; i++)
+            {
+                final int begin = i*CLASSIFY_BLOCK;
+                final int end   = Math.min(classes.length, begin+CLASSIFY_BLOCK);
+                tasks.add(new Callable<Object>()
+                {
+                    public Object call() throws LearnerException { classifyBlock(instances, begin, end, classes, confidence); return null; }
+                });
+            }
+            
+            pool = new ForkJoinPool(threads);
+            try
+            {
+                for(Future<Object> done: pool.invokeAll(tasks)) done.get();
+            }
+            catch(InterruptedException ex) { throw new LearnerException(ex); }
+            catch(ExecutionException ex)   { throw new LearnerException("Case Based classification failed.", ex.getCause()); }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+        
+        return(classes);
+    }
+    
+    private void classifyBlock(Presenter instances, int begin, int end, int []classes, double [][]confidence) throws LearnerException
+    {
+        int i;
+        
+        for (i=begin; i<end; i++)
+        {
+            if (this.primitive) classes[i] = classifyObject(instances.getInstance(i),       confidence != null ? confidence[i] : null);
+            else                classes[i] = classifyObject(instances.getObjectInstance(i), confidence != null ? confidence[i] : null);
+        }
+    }
+    
     public int classify(ObjectMatrix1D instance, double []confidence) throws LearnerException
     {
         return(classifyObject(instance, confidence));
@@ -182,10 +229,28 @@ public class CBR extends ClassifierTransformation implements Classifier
         this.view = new int[actind.length];
         for (i=0; i<this.view.length; i++) this.view[i] = i;
         
+        // Build the nearest neighbor index over the training instances.
+        this.index = makeIndex();
+        this.index.build(this.trainData, this.dm);
+        
         // Experimental algorithm that tries to find irrelevant attributes.
         if(false) sensitivityPolling();
     }
     
+    private NeighborIndex makeIndex()
+    {
+        NeighborIndex index;
+        
+        // The KD-Tree when the distance is Euclidean on the raw values. Otherwise a Vantage-Point tree.
+        if      (this.indexType == INDEX_LINEAR) index = new NeighborIndexLinear();
+        else if (this.indexType == INDEX_KDTREE) index = new KDTree();
+        else if (this.indexType == INDEX_VPTREE) index = new VPTree();
+        else if (this.dm.isEuclidean())          index = new KDTree();
+        else                                     index = new VPTree();
+        
+        return(index);
+    }
+    
     private void sensitivityPolling() throws LearnerException
     {
         int               i, j, k;
@@ -299,6 +364,51 @@ public class CBR extends ClassifierTransformation implements Classifier
         this.kNearest = _kNearest;
     }
     
+    public int getKNearest()
+    {
+        return(this.kNearest);
+    }
+    
+    /**
+     * Set the kind of index used to find the nearest neighbors.
+     * @param indexType INDEX_AUTO, INDEX_LINEAR, INDEX_KDTREE or INDEX_VPTREE
+     * @throws ConfigException If the type is unknown
+     */
+    public void setIndexType(int indexType) throws ConfigException
+    {
+        if ((indexType < INDEX_AUTO) || (indexType > INDEX_VPTREE)) throw new ConfigException("Unknown nearest neighbor index type "+indexType);
+        this.indexType = indexType;
+    }
+    
+    public int getIndexType()
+    {
+        return(this.indexType);
+    }
+    
+    /**
+     * Give the nearest neighbor index built by the last training.
+     * @return The index or null when not trained.
+     */
+    public NeighborIndex getNeighborIndex()
+    {
+        return(this.index);
+    }
+    
+    /**
+     * Set the number of threads classifying a set of instances.
+     * @param numberOfThreads The number of threads. 0 = number of processors.
+     */
+    public void setNumberOfThreads(int numberOfThreads)
+    {
+        this.numberOfThreads = numberOfThreads;
+    }
+    
+    private int getThreads()
+    {
+        if (this.numberOfThreads <= 0) return Runtime.getRuntime().availableProcessors();
+        else                           return this.numberOfThreads;
+    }
+    
     // **********************************************************\
     // *            Transformation/Flow Interface               *
     // **********************************************************/
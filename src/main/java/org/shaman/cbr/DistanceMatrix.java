@@ -13,6 +13,23 @@ package org.shaman.cbr;
 
 import hep.aida.ref.Histogram1D;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
 import org.shaman.datamodel.AttributeDouble;
 import org.shaman.datamodel.AttributeObject;
 import org.shaman.datamodel.DataModel;
@@ -31,11 +48,17 @@ import cern.colt.matrix.doublealgo.Statistic;
 
 /**
  * Memory-Cache for the distances between all pairs of instances from a given set.
- * Can store the raw distances (as doubles) or store them as histogram bin indices (bytes).
+ * Can store the raw distances (as doubles or floats), quantized to 16 bits or as histogram bin indices (bytes).
  * Alternatively, it defers all calculations until they are specifically requested.
  * Lets you define the type of distance function to use, wheter it should use the distance
  * functions of the attributes, if it should ignore missing values and how to weight to
  * different attributes.
+ * <p>
+ * Since the matrix is symmetric, only the lower triangle (including the diagonal) is stored.
+ * It is packed row after row in buffers of at most 1GB. The buffers are on the heap or
+ * memory-mapped from a file. A mapped matrix can be bigger than the heap and can be loaded
+ * again in a later run without calculating the distances.
+ * The distances are calculated in blocks of rows by several threads.
  */
 
 // **********************************************************\
@@ -50,6 +73,20 @@ public class DistanceMatrix
     public static final int TYPE_RAW       = 1;   // Raw distance matrix.
     /** Cache the distances as bin indices (as bytes) in the distance histogram */
     public static final int TYPE_HISTOGRAM = 2;   // Use histogram bin indices (0-255) as distance cache.
+    /** Cache the distances as floats */
+    public static final int TYPE_FLOAT     = 3;   // Single precision distance matrix.
+    /** Cache the distances quantized to 16 bits between the minimum and maximum distance */
+    public static final int TYPE_SHORT     = 4;   // 65535 levels between minimum and maximum distance.
+    
+    // Distance Matrix File
+    static final int MAGIC       = 0x5348444D;
+    static final int VERSION     = 1;
+    static final int DATA_OFFSET = 4096;          // The packed matrix starts here. The header comes before it.
+    
+    private static final int HISTOGRAM_BINS = 126;
+    private static final int CHUNK_SHIFT    = 30;  // Buffers of 1GB
+    private static final int SHORT_NAN      = 0xFFFF;  // Quantized code of an unknown distance
+    private static final int BLOCKS_PER_THREAD = 4;
     
     // Type of Distance Cache to use
     private int      type;
@@ -59,11 +96,20 @@ public class DistanceMatrix
     private boolean  ignoreMissingValues;
     // Type of distance used.
     private Statistic.VectorVectorFunction distance;
+    // Number of threads calculating the distances. 0 = number of processors.
+    private int      numberOfThreads;
     
     // The distance matrix
     // -------------------
-    private double [][]dmd;           // Raw double distance values (type == TYPE_RAW)
-    private byte   [][]dmb;           // Indices of the Histogram's bins (type == TYPE_HISTOGRAM)
+    private int           numin;        // Number of instances
+    private ByteBuffer  []chunk;        // The packed lower triangle. Row after row.
+    private int           elementShift; // log2 of the size of a distance in bytes
+    private int           chunkElementShift; // log2 of the number of distances in a buffer
+    private long          chunkElementMask;
+    private File          file;         // The file the matrix is mapped from. Or null.
+    
+    private double        qmin;         // Distance of quantized code 0 (type == TYPE_SHORT)
+    private double        qstep;        // Distance between 2 quantized codes
     
     private Histogram1D   histdist;   // The histogram of the distances.
     private double      []binmid;     // Midpoints of the bins of the distance histrogram
@@ -126,19 +172,11 @@ public class DistanceMatrix
         DoubleMatrix1D v1, v2;
         ObjectMatrix1D ov1, ov2;
         double         d;
+        long           k;
+        int            code;
         
         d = 0;
-        if      (this.type == TYPE_RAW)
-        {
-            d = this.dmd[i][j];
-        }
-        else if (this.type == TYPE_HISTOGRAM)
-        {
-            int bi = this.dmb[i][j];
-            if ((bi >= this.binmid.length) || (bi < 0)) d = 0;
-            else                                        d = this.binmid[bi];
-        }
-        else if (this.type == TYPE_NONE)
+        if (this.type == TYPE_NONE)
         {
             if (this.primitive)
             {
@@ -153,19 +191,61 @@ public class DistanceMatrix
                 d   = calculateDistance(ov1, ov2, this.actind);
             }
         }
+        else
+        {
+            k = position(i, j);
+            if      (this.type == TYPE_RAW)   d = chunk(k).getDouble(offset(k));
+            else if (this.type == TYPE_FLOAT) d = chunk(k).getFloat(offset(k));
+            else if (this.type == TYPE_SHORT)
+            {
+                code = chunk(k).getShort(offset(k)) & 0xFFFF;
+                if (code == SHORT_NAN) d = Double.NaN;
+                else                   d = this.qmin + code*this.qstep;
+            }
+            else if (this.type == TYPE_HISTOGRAM)
+            {
+                int bi = chunk(k).get(offset(k));
+                if ((bi >= this.binmid.length) || (bi < 0)) d = 0;
+                else                                        d = this.binmid[bi];
+            }
+        }
         
         return(d);
     }
     
     /**
      * Gives an array of bin indices of the distances between instance i and all the other instances.
-     * Make sure type is TYPE_HISTORGRAM.
+     * Make sure type is TYPE_HISTORGRAM. The row is assembled from the packed matrix in a new array.
      * @param i The index of the instance
      * @return Array of bin indices
      */
     public byte []distanceTo(int i)
     {
-        return(this.dmb[i]);
+        byte []row;
+        int    j;
+        
+        row = new byte[this.numin];
+        for (j=0; j<this.numin; j++) row[j] = distanceAsBin(i, j);
+        
+        return(row);
+    }
+    
+    /**
+     * Gives the bin indices of the distances between instance i and some other instances.
+     * Make sure type is TYPE_HISTOGRAM.
+     * @param i The index of the instance
+     * @param ind The indices of the other instances
+     * @return [j] = bin index of the distance between instance i and ind[j]
+     */
+    public byte []distancesAsBin(int i, int []ind)
+    {
+        byte []bins;
+        int    j;
+        
+        bins = new byte[ind.length];
+        for (j=0; j<ind.length; j++) bins[j] = distanceAsBin(i, ind[j]);
+        
+        return(bins);
     }
     
     /**
@@ -175,7 +255,12 @@ public class DistanceMatrix
      * @param j Index of the second instance.
      * @return Distance between the instances as an index in the histogram bins.
      */
-    public byte distanceAsBin(int i, int j) { return(this.dmb[i][j]); }
+    public byte distanceAsBin(int i, int j)
+    {
+        long k = position(i, j);
+        
+        return(chunk(k).get(offset(k)));
+    }
     
     /**
      * Give the distance corresponding to the histogram bin with the given index.
@@ -188,6 +273,47 @@ public class DistanceMatrix
         else                                  return(this.binmid[i]);
     }
     
+    // **********************************************************\
+    // *                 Packed Lower Triangle                  *
+    // **********************************************************/
+    private static long position(int i, int j)
+    {
+        // Row i holds the distances to instance 0..i
+        if (i >= j) return(((long)i)*(i+1)/2 + j);
+        else        return(((long)j)*(j+1)/2 + i);
+    }
+    
+    private ByteBuffer chunk(long k)
+    {
+        return(this.chunk[(int)(k >>> this.chunkElementShift)]);
+    }
+    
+    private int offset(long k)
+    {
+        return((int)(k & this.chunkElementMask) << this.elementShift);
+    }
+    
+    private static int elementShift(int type)
+    {
+        if      (type == TYPE_RAW)   return(3);
+        else if (type == TYPE_FLOAT) return(2);
+        else if (type == TYPE_SHORT) return(1);
+        else                         return(0);
+    }
+    
+    /**
+     * Give the number of bytes used by the cached distances.
+     * @return The size of the packed matrix in bytes
+     */
+    public long getNumberOfBytes()
+    {
+        if (this.type == TYPE_NONE) return(0);
+        else                        return(position(this.numin-1, this.numin-1)+1 << elementShift(this.type));
+    }
+    
+    public int  getType()                   { return(this.type); }
+    public File getFile()                   { return(this.file); }
+    
     // **********************************************************\
     // *               Make the distance matrix                 *
     // **********************************************************/
@@ -342,141 +468,302 @@ public class DistanceMatrix
      */
     private void make() throws LearnerException
     {
-        if      (this.type == TYPE_NONE)      { }
-        else if (this.type == TYPE_RAW)       { makeRaw(); }
-        else if (this.type == TYPE_HISTOGRAM) { makeHistogram(126); }
+        double []range;
+        
+        if (this.type == TYPE_NONE) return;
+        
+        // Quantized matrices need the range of the distances first.
+        if ((this.type == TYPE_SHORT) || (this.type == TYPE_HISTOGRAM))
+        {
+            range = new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            runBlocks(true, range);
+            if (this.type == TYPE_SHORT)
+            {
+                this.qmin  = range[0];
+                this.qstep = (range[1] > range[0]) ? (range[1]-range[0])/(SHORT_NAN-1) : 0;
+            }
+            else makeHistogram(HISTOGRAM_BINS, range[0], range[1]);
+        }
+        
+        // Calculate and store all distances.
+        runBlocks(false, null);
     }
     
-    private void makeRaw() throws LearnerException
+    private void makeHistogram(int bins, double dmin, double dmax)
     {
-        int             i,j;
-        int             numin;
-        ObjectMatrix1D ov1, ov2;
-        DoubleMatrix1D  v1, v2;
-        double          d;
+        int i;
+        
+        // Make the histogram of the distances. Its axis gives the bin index of a distance.
+        this.histdist = new Histogram1D("Distance Histogram", bins, dmin, dmax);
         
-        numin  = this.instance.getNumberOfInstances();
-        dmd    = new double[numin][numin];
+        // Make the bin middle value vector
+        this.binmid = new double[bins];
+        for (i=0; i<bins; i++) this.binmid[i] = this.histdist.xAxis().binCentre(i);
+    }
+    
+    private void runBlocks(final boolean range, double []rangeAll) throws LearnerException
+    {
+        final DoubleMatrix1D []v;
+        final ObjectMatrix1D []ov;
+        final double       [][]rangeBlock;
+        int                  []begin;
+        int                    threads, numBlocks, i, b;
+        long                   total;
+        
+        // Get the instances once.
         if (this.primitive)
         {
-            // Primitive Data.
-            for (i=0; i<numin; i++)
+            v  = new DoubleMatrix1D[this.numin];
+            ov = null;
+            for (i=0; i<this.numin; i++) v[i] = this.instance.getInstance(i);
+        }
+        else
+        {
+            v  = null;
+            ov = new ObjectMatrix1D[this.numin];
+            for (i=0; i<this.numin; i++) ov[i] = this.instance.getObjectInstance(i);
+        }
+        
+        // Blocks of rows with about the same number of distances.
+        threads   = getThreads();
+        numBlocks = (threads <= 1) ? 1 : Math.max(1, Math.min(this.numin, threads*BLOCKS_PER_THREAD));
+        total     = position(this.numin-1, this.numin-1)+1;
+        begin     = new int[numBlocks+1];
+        b         = 1;
+        for (i=0; (i<this.numin) && (b<numBlocks); i++)
+        {
+            if (position(i, i)+1 >= (total*b)/numBlocks) begin[b++] = i+1;
+        }
+        for (; b<=numBlocks; b++) begin[b] = this.numin;
+        
+        rangeBlock = new double[numBlocks][];
+        if (numBlocks == 1)
+        {
+            rangeBlock[0] = calculateRows(v, ov, 0, this.numin, range);
+        }
+        else
+        {
+            ForkJoinPool pool;
+            List<Callable<Object>> tasks;
+            
+            // A task per block of rows. The blocks write in disjoint parts of the matrix.
+            tasks = new ArrayList<Callable<Object>>(numBlocks);
+            for (b=0; b<numBlocks; b++)
             {
-                v1 = this.instance.getInstance(i);
-                for (j=0; (j<numin) && (j<=i); j++)
+                final int rowBegin = begin[b];
+                final int rowEnd   = begin[b+1];
+                final int block    = b;
+                tasks.add(new Callable<Object>()
                 {
-                    v2 = this.instance.getInstance(j);
-                    d  = calculateDistance(v1, v2, this.actind);
-                    this.dmd[i][j] = d;
-                    this.dmd[j][i] = d;
-                }
+                    public Object call() throws LearnerException { rangeBlock[block] = calculateRows(v, ov, rowBegin, rowEnd, range); return null; }
+                });
+            }
+            
+            pool = new ForkJoinPool(threads);
+            try
+            {
+                for(Future<Object> done: pool.invokeAll(tasks)) done.get();
+            }
+            catch(InterruptedException ex) { throw new LearnerException(ex); }
+            catch(ExecutionException ex)   { throw new LearnerException("Calculation of the distance matrix failed.", ex.getCause()); }
+            finally
+            {
+                pool.shutdown();
             }
         }
-        else
+        
+        // Combine the ranges of the blocks.
+        if (range)
         {
-            // Object Based Data.
-            for (i=0; i<numin; i++)
+            for (b=0; b<numBlocks; b++)
             {
-                ov1 = this.instance.getObjectInstance(i);
-                for (j=0; (j<numin) && (j<=i); j++)
-                {
-                    ov2 = this.instance.getObjectInstance(j);
-                    d  = calculateDistance(ov1, ov2, this.actind);
-                    this.dmd[i][j] = d;
-                    this.dmd[j][i] = d;
-                }
+                if (rangeBlock[b][0] < rangeAll[0]) rangeAll[0] = rangeBlock[b][0];
+                if (rangeBlock[b][1] > rangeAll[1]) rangeAll[1] = rangeBlock[b][1];
             }
         }
     }
     
-    private void makeHistogram(int bins) throws LearnerException
+    private double []calculateRows(DoubleMatrix1D []v, ObjectMatrix1D []ov, int rowBegin, int rowEnd, boolean range) throws LearnerException
     {
-        int            i,j;
-        int            numin;
-        ObjectMatrix1D ov1, ov2;
-        DoubleMatrix1D v1, v2;
-        double         d, dmin, dmax;
-        
-        numin  = this.instance.getNumberOfInstances();
+        int      i, j;
+        double   d;
+        double []minmax;
         
-        // Find the minimum and maximam distance between 2 points
-        dmin = Double.POSITIVE_INFINITY; dmax = Double.NEGATIVE_INFINITY;
-        if (this.primitive)
+        // Calculate the distances of rows [rowBegin, rowEnd). Either find their range or store them.
+        minmax = new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (i=rowBegin; i<rowEnd; i++)
         {
-            // For primitive Data.
-            for (i=0; i<numin; i++)
+            for (j=0; j<=i; j++)
             {
-                v1 = this.instance.getInstance(i);
-                for (j=0; (j<numin) && (j<=i); j++)
+                if (this.primitive) d = calculateDistance(v[i],  v[j],  this.actind);
+                else                d = calculateDistance(ov[i], ov[j], this.actind);
+                if (range)
                 {
-                    v2 = this.instance.getInstance(j);
-                    d  = calculateDistance(v1, v2, this.actind);
-                    if      (d < dmin) dmin = d;
-                    else if (d > dmax) dmax = d;
+                    if (d < minmax[0]) minmax[0] = d;
+                    if (d > minmax[1]) minmax[1] = d;
                 }
-                if (i%100 == 0) System.out.println("Making primitive data histogram distances "+i+" min/max "+dmin+" "+dmax);
+                else put(position(i, j), d);
             }
-            System.out.println("number of instances : "+numin+" min/max "+dmin+" "+dmax);
         }
-        else
+        
+        return(minmax);
+    }
+    
+    private void put(long k, double d)
+    {
+        ByteBuffer buf;
+        int        off;
+        
+        // Absolute puts. The threads never write the same position.
+        buf = chunk(k);
+        off = offset(k);
+        if      (this.type == TYPE_RAW)   buf.putDouble(off, d);
+        else if (this.type == TYPE_FLOAT) buf.putFloat(off, (float)d);
+        else if (this.type == TYPE_SHORT)
+        {
+            if (Double.isNaN(d))       buf.putShort(off, (short)SHORT_NAN);
+            else if (this.qstep == 0)  buf.putShort(off, (short)0);
+            else                       buf.putShort(off, (short)Math.min(SHORT_NAN-1, Math.round((d-this.qmin)/this.qstep)));
+        }
+        else if (this.type == TYPE_HISTOGRAM) buf.put(off, (byte)this.histdist.xAxis().coordToIndex(d));
+    }
+    
+    // **********************************************************\
+    // *                   Matrix Buffers                       *
+    // **********************************************************/
+    private void allocate(FileChannel channel, boolean readOnly) throws IOException
+    {
+        long total, bytes, chunkBytes;
+        int  i, numchunk;
+        
+        // Buffers holding a power of 2 number of distances. On the heap or mapped from the file.
+        this.elementShift      = elementShift(this.type);
+        this.chunkElementShift = CHUNK_SHIFT - this.elementShift;
+        this.chunkElementMask  = (1L << this.chunkElementShift) - 1;
+        total      = position(this.numin-1, this.numin-1)+1;
+        bytes      = total << this.elementShift;
+        chunkBytes = 1L << CHUNK_SHIFT;
+        numchunk   = (int)((bytes + chunkBytes - 1) / chunkBytes);
+        this.chunk = new ByteBuffer[numchunk];
+        for (i=0; i<numchunk; i++)
+        {
+            long len = Math.min(chunkBytes, bytes - i*chunkBytes);
+            
+            if (channel == null) this.chunk[i] = ByteBuffer.allocate((int)len);
+            else                 this.chunk[i] = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, DATA_OFFSET + i*chunkBytes, len);
+            this.chunk[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+    
+    private void writeFile(File _file) throws LearnerException
+    {
+        RandomAccessFile raf;
+        int              i;
+        
+        // Make the file and map it. Calculate the distances in the mapped buffers.
+        raf = null;
+        try
+        {
+            raf = new RandomAccessFile(_file, "rw");
+            raf.setLength(0);
+            raf.setLength(DATA_OFFSET + getNumberOfBytes());
+            allocate(raf.getChannel(), false);
+        }
+        catch(IOException ex) { throw new LearnerException(ex); }
+        finally
+        {
+            // The mapping stays valid after the file is closed.
+            try { if (raf != null) raf.close(); } catch(IOException ex) { throw new LearnerException(ex); }
+        }
+        make();
+        for (i=0; i<this.chunk.length; i++) ((MappedByteBuffer)this.chunk[i]).force();
+        
+        // Write the header last. A file without a valid header is never loaded.
+        raf = null;
+        try
         {
-            // For Object Based Data.
-            for (i=0; i<numin; i++)
+            raf = new RandomAccessFile(_file, "rw");
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(this.type);
+            raf.writeInt(this.numin);
+            raf.writeDouble(this.qmin);
+            raf.writeDouble(this.qstep);
+            if (this.type == TYPE_HISTOGRAM)
             {
-                ov1 = this.instance.getObjectInstance(i);
-                for (j=0; (j<numin) && (j<=i); j++)
-                {
-                    ov2 = this.instance.getObjectInstance(j);
-                    d   = calculateDistance(ov1, ov2, this.actind);
-                    if      (d < dmin) dmin = d;
-                    else if (d > dmax) dmax = d;
-                }
-                if (i%100 == 0) System.out.println("Making object data histogram distances "+i);
+                raf.writeDouble(this.histdist.xAxis().lowerEdge());
+                raf.writeDouble(this.histdist.xAxis().upperEdge());
             }
-            System.out.println("number of instances : "+numin+" min/max "+dmin+" "+dmax);
         }
+        catch(IOException ex) { throw new LearnerException(ex); }
+        finally
+        {
+            try { if (raf != null) raf.close(); } catch(IOException ex) { throw new LearnerException(ex); }
+        }
+        this.file = _file;
+    }
+    
+    private void readFile(File _file) throws LearnerException
+    {
+        DataInputStream  din;
+        RandomAccessFile raf;
+        int              ftype, fnumin;
+        double           dmin, dmax;
         
-        // Make a histogram of the distances. Fill the bin index distance.
-        this.histdist = new Histogram1D("Distance Histogram", bins, dmin, dmax);
-        this.dmb      = new byte[numin][numin];
-        if (this.primitive)
+        din = null;
+        raf = null;
+        try
         {
-            // For primitive data.
-            for (i=0; i<numin; i++)
+            // Check the header against the instances.
+            din = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+            if (din.readInt() != MAGIC)   throw new LearnerException("File '"+_file+"' is not a distance matrix file.");
+            if (din.readInt() != VERSION) throw new LearnerException("Unknown version of distance matrix file '"+_file+"'");
+            ftype  = din.readInt();
+            fnumin = din.readInt();
+            if (fnumin != this.numin) throw new LearnerException("Distance matrix file '"+_file+"' has "+fnumin+" instances instead of "+this.numin);
+            this.type  = ftype;
+            this.qmin  = din.readDouble();
+            this.qstep = din.readDouble();
+            if (this.type == TYPE_HISTOGRAM)
             {
-                v1 = this.instance.getInstance(i);
-                for (j=0; (j<numin) && (j<=i); j++)
-                {
-                    v2 = this.instance.getInstance(j);
-                    d  = calculateDistance(v1, v2, this.actind);
-                    this.histdist.fill(d);
-                    this.dmb[i][j] = (byte)this.histdist.xAxis().coordToIndex(d);
-                    this.dmb[j][i] = this.dmb[i][j];
-                }
+                dmin = din.readDouble();
+                dmax = din.readDouble();
+                makeHistogram(HISTOGRAM_BINS, dmin, dmax);
             }
+            
+            // Map the packed matrix.
+            raf = new RandomAccessFile(_file, "r");
+            if (raf.length() < DATA_OFFSET + getNumberOfBytes()) throw new LearnerException("Distance matrix file '"+_file+"' is truncated.");
+            allocate(raf.getChannel(), true);
+            this.file = _file;
         }
-        else
+        catch(IOException ex) { throw new LearnerException(ex); }
+        finally
         {
-            // Object Based Data
-            for (i=0; i<numin; i++)
+            // The mapping stays valid after the file is closed.
+            try
             {
-                ov1 = this.instance.getObjectInstance(i);
-                for (j=0; (j<numin) && (j<=i); j++)
-                {
-                    ov2 = this.instance.getObjectInstance(j);
-                    d   = calculateDistance(ov1, ov2, this.actind);
-                    this.histdist.fill(d);
-                    this.dmb[i][j] = (byte)this.histdist.xAxis().coordToIndex(d);
-                    this.dmb[j][i] = this.dmb[i][j];
-                }
+                if (din != null) din.close();
+                if (raf != null) raf.close();
             }
+            catch(IOException ex) { throw new LearnerException(ex); }
         }
-        
-        // Make the bin middle value vector
-        this.binmid = new double[bins];
-        for (i=0; i<bins; i++) this.binmid[i] = this.histdist.xAxis().binCentre(i);
     }
     
+    private int getThreads()
+    {
+        if (this.numberOfThreads <= 0) return Runtime.getRuntime().availableProcessors();
+        else                           return this.numberOfThreads;
+    }
+    
+    /**
+     * Set the number of threads calculating the distances.
+     * @param numberOfThreads The number of threads. 0 = number of processors.
+     */
+    public void setNumberOfThreads(int numberOfThreads)
+    {
+        this.numberOfThreads = numberOfThreads;
+    }
     
     // **********************************************************\
     // *                      Construction                      *
@@ -519,10 +806,62 @@ public class DistanceMatrix
         this.attributeDistance   = _attributeDistance;
         this.ignoreMissingValues = _ignoreMissingValues;
         this.instance            = _instance;
+        this.numin               = this.instance.getNumberOfInstances();
+        this.file                = null;
         setDataModel(this.instance.getDataModel());
+        try
+        {
+            if (this.type != TYPE_NONE) allocate(null, false);
+        }
+        catch(IOException ex) { throw new LearnerException(ex); }
         make();
     }
     
+    /**
+     * Create a distance cache of the given type in a memory-mapped file.
+     * The matrix can be bigger than the heap. Use {@link #load} to use the file again later.
+     * @param _type The type of distance matrix to make. Not TYPE_NONE.
+     * @param _distance The distance function
+     * @param _attributeDistance Use the attributes' distance relations to calculate the distance.
+     * @param _ignoreMissingValues Never use missing value data while calculating distances.
+     * @param _instance The set of instances.
+     * @param _file The file to store the matrix in. Is overwritten.
+     * @throws LearnerException If the file cannot be written or the distances cannot be calculated.
+     */
+    public void create(int _type, Statistic.VectorVectorFunction _distance, boolean _attributeDistance, boolean _ignoreMissingValues, Presenter _instance, File _file) throws LearnerException
+    {
+        if (_type == TYPE_NONE) throw new LearnerException("A fall-through distance matrix has nothing to store in a file.");
+        this.type                = _type;
+        this.distance            = _distance;
+        this.attributeDistance   = _attributeDistance;
+        this.ignoreMissingValues = _ignoreMissingValues;
+        this.instance            = _instance;
+        this.numin               = this.instance.getNumberOfInstances();
+        setDataModel(this.instance.getDataModel());
+        writeFile(_file);
+    }
+    
+    /**
+     * Map a distance matrix file made earlier for the same instances.
+     * The type of the matrix is the one stored in the file. No distances between instances of the set are calculated.
+     * @param _file The file made by {@link #create(int, Statistic.VectorVectorFunction, boolean, boolean, Presenter, File)}
+     * @param _distance The distance function. Used for distances with other vectors.
+     * @param _attributeDistance Use the attributes' distance relations to calculate the distance.
+     * @param _ignoreMissingValues Never use missing value data while calculating distances.
+     * @param _instance The set of instances the file was made for.
+     * @throws LearnerException If the file cannot be read or was made for a different number of instances.
+     */
+    public void load(File _file, Statistic.VectorVectorFunction _distance, boolean _attributeDistance, boolean _ignoreMissingValues, Presenter _instance) throws LearnerException
+    {
+        this.distance            = _distance;
+        this.attributeDistance   = _attributeDistance;
+        this.ignoreMissingValues = _ignoreMissingValues;
+        this.instance            = _instance;
+        this.numin               = this.instance.getNumberOfInstances();
+        setDataModel(this.instance.getDataModel());
+        readFile(_file);
+    }
+    
     public void setDataModel(DataModel _dataModel)
     {
         this.dataModel = _dataModel;
@@ -541,6 +880,20 @@ public class DistanceMatrix
     
     public DataModel getDataModel() { return(this.dataModel); }
     
+    public Statistic.VectorVectorFunction getDistanceFunction() { return(this.distance); }
+    public boolean getAttributeDistance()   { return(this.attributeDistance); }
+    public boolean getIgnoreMissingValues() { return(this.ignoreMissingValues); }
+    
+    /**
+     * Check if the distance is the Euclidean distance between the raw values of primitive instances.
+     * Only then, the distance can be calculated directly on the attribute values.
+     * @return <code>true</code> if the distance is the plain Euclidean distance divided by the number of attributes.
+     */
+    public boolean isEuclidean()
+    {
+        return(this.primitive && (this.distance == Statistic.EUCLID) && !this.attributeDistance && !this.ignoreMissingValues);
+    }
+    
     /**
      * Make a DistanceMatrix of TYPE_RAW with the Euclidean Distance function.
      */
@@ -0,0 +1,249 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.cbr;
+
+import org.shaman.exceptions.LearnerException;
+import org.shaman.learning.Presenter;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.ObjectMatrix1D;
+
+
+/**
+ * <h2>KD-Tree</h2>
+ * Nearest neighbor index for primitive data with the plain Euclidean distance.
+ * Each node splits its instances in 2 halves at the median of the
+ * attribute with the largest spread. A search descends to the leaf of the query and
+ * only enters the other side of a split when it can contain an instance closer than
+ * the current k-th neighbor.
+ * The distances are calculated exactly like the DistanceMatrix does, so the
+ * neighbors are the same as the ones found by a linear scan.
+ */
+
+// **********************************************************\
+// *              KD-Tree Nearest Neighbor Index            *
+// **********************************************************/
+public class KDTree implements NeighborIndex
+{
+    /** Maximum number of instances in a leaf */
+    public static final int LEAF_SIZE = 16;
+    // Relative slack on the pruning bound. Covers the rounding of the distance calculation.
+    private static final double BOUND_SLACK = 1e-12;
+
+    private int      numDim;          // Number of attributes
+    private double []x;               // Attributes of the instances. Row-major. In the order of the leaves.
+    private int    []order;           // [i] = Index in the instance set of row i of x
+    private long     distanceCount;
+
+    // The nodes. Node 0 is the root.
+    private int      numNodes;
+    private int    []nodeDim;         // Split attribute or -1 for a leaf
+    private double []nodeSplit;       // Split value
+    private int    []nodeLeft;        // Node with the instances <= split
+    private int    []nodeRight;       // Node with the instances >= split
+    private int    []nodeBegin;       // First row of a leaf
+    private int    []nodeEnd;         // Row after the last row of a leaf
+
+    // **********************************************************\
+    // *                      Neighbor Search                   *
+    // **********************************************************/
+    public void search(DoubleMatrix1D query, NeighborHeap heap) throws LearnerException
+    {
+        double []q, off;
+        int      i;
+
+        if (query.size() != this.numDim) throw new LearnerException("Query has "+query.size()+" attributes instead of "+this.numDim);
+        q   = new double[this.numDim];
+        off = new double[this.numDim];
+        for (i=0; i<q.length; i++) q[i] = query.getQuick(i);
+        if (this.numNodes > 0) search(0, q, off, 0, heap);
+    }
+
+    public void search(ObjectMatrix1D query, NeighborHeap heap) throws LearnerException
+    {
+        throw new LearnerException("The KD-Tree only indexes primitive data.");
+    }
+
+    private void search(int node, double []q, double []off, double rd, NeighborHeap heap)
+    {
+        int    dim, near, far;
+        double diff, old, rdfar;
+
+        dim = this.nodeDim[node];
+        if (dim == -1)
+        {
+            // Leaf. Calculate the distances to its instances.
+            for (int r=this.nodeBegin[node]; r<this.nodeEnd[node]; r++) heap.offer(this.order[r], distance(r, q));
+            this.distanceCount += this.nodeEnd[node] - this.nodeBegin[node];
+        }
+        else
+        {
+            // First the side of the query, then maybe the other side.
+            diff = q[dim] - this.nodeSplit[node];
+            if (diff < 0) { near = this.nodeLeft[node];  far = this.nodeRight[node]; }
+            else          { near = this.nodeRight[node]; far = this.nodeLeft[node]; }
+            search(near, q, off, rd, heap);
+
+            // Lower bound on the distance to the far side. Incrementally updated sum of squared offsets to the splits.
+            old   = off[dim];
+            rdfar = rd - old*old + diff*diff;
+            if (Math.sqrt(rdfar)/this.numDim <= heap.getBound()*(1+BOUND_SLACK))
+            {
+                off[dim] = diff;
+                search(far, q, off, rdfar, heap);
+                off[dim] = old;
+            }
+        }
+    }
+
+    private double distance(int r, double []q)
+    {
+        int    i, pos;
+        double d, s;
+
+        // Same summation order as Statistic.EUCLID. Scaled by the number of attributes like the DistanceMatrix.
+        pos = r*this.numDim;
+        i   = this.numDim-1;
+        d   = this.x[pos+i] - q[i];
+        s   = d*d;
+        for (i--; i>=0; i--)
+        {
+            d  = this.x[pos+i] - q[i];
+            s += d*d;
+        }
+
+        return(Math.sqrt(s) / this.numDim);
+    }
+
+    public long getDistanceCount()
+    {
+        return(this.distanceCount);
+    }
+
+    // **********************************************************\
+    // *                       Tree Building                    *
+    // **********************************************************/
+    public void build(Presenter instances, DistanceMatrix dm) throws LearnerException
+    {
+        DoubleMatrix1D ins;
+        double       []xin;
+        int          []index;
+        int            i, j, n, maxNodes;
+
+        if (!dm.isEuclidean()) throw new LearnerException("The KD-Tree needs primitive data and the plain Euclidean distance.");
+
+        // Copy the instances in a flat matrix. Leave out instances with missing (NaN) values. Their distance is never known.
+        this.numDim  = instances.getDataModel().getNumberOfActiveAttributes();
+        if (this.numDim == 0) throw new LearnerException("The KD-Tree needs at least 1 attribute.");
+        xin          = new double[instances.getNumberOfInstances()*this.numDim];
+        index        = new int[instances.getNumberOfInstances()];
+        this.order   = new int[index.length];
+        n            = 0;
+        for (i=0; i<this.order.length; i++)
+        {
+            ins = instances.getInstance(i);
+            for (j=0; j<this.numDim; j++) xin[n*this.numDim+j] = ins.getQuick(j);
+            for (j=0; (j<this.numDim) && !Double.isNaN(xin[n*this.numDim+j]); j++);
+            if (j == this.numDim) { index[n] = i; this.order[n] = n; n++; }
+        }
+
+        // Split recursively. A tree with leaves of at least 1 instance never has more than 2n nodes.
+        maxNodes       = Math.max(1, 2*n);
+        this.nodeDim   = new int[maxNodes];
+        this.nodeSplit = new double[maxNodes];
+        this.nodeLeft  = new int[maxNodes];
+        this.nodeRight = new int[maxNodes];
+        this.nodeBegin = new int[maxNodes];
+        this.nodeEnd   = new int[maxNodes];
+        this.numNodes  = 0;
+        if (n > 0) makeNode(xin, 0, n);
+
+        // Store the instances in the order of the leaves. Translate the rows to indices in the instance set.
+        this.x = new double[n*this.numDim];
+        for (i=0; i<n; i++)
+        {
+            System.arraycopy(xin, this.order[i]*this.numDim, this.x, i*this.numDim, this.numDim);
+            this.order[i] = index[this.order[i]];
+        }
+        this.distanceCount = 0;
+    }
+
+    private int makeNode(double []xin, int begin, int end)
+    {
+        int    node, dim, mid, i, j;
+        double min, max, v, spread, maxSpread;
+
+        node = this.numNodes++;
+        this.nodeBegin[node] = begin;
+        this.nodeEnd[node]   = end;
+        this.nodeDim[node]   = -1;
+        if (end - begin <= LEAF_SIZE) return(node);
+
+        // Split on the attribute with the largest spread.
+        dim = -1; maxSpread = 0;
+        for (j=0; j<this.numDim; j++)
+        {
+            min = Double.POSITIVE_INFINITY; max = Double.NEGATIVE_INFINITY;
+            for (i=begin; i<end; i++)
+            {
+                v = xin[this.order[i]*this.numDim+j];
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            spread = max - min;
+            if (spread > maxSpread) { maxSpread = spread; dim = j; }
+        }
+        if (dim == -1) return(node);  // All instances on the same spot. Or missing values.
+
+        // Median split. The left half is <= the split value, the right half >= it.
+        mid = (begin+end)/2;
+        select(xin, dim, begin, end, mid);
+        this.nodeDim[node]   = dim;
+        this.nodeSplit[node] = xin[this.order[mid]*this.numDim+dim];
+        this.nodeLeft[node]  = makeNode(xin, begin, mid);
+        this.nodeRight[node] = makeNode(xin, mid, end);
+
+        return(node);
+    }
+
+    private void select(double []xin, int dim, int begin, int end, int k)
+    {
+        int    lo, hi, i, j, buf;
+        double pivot;
+
+        // Quick-select. Afterwards order[k] is in its sorted position.
+        lo = begin; hi = end-1;
+        while (lo < hi)
+        {
+            pivot = xin[this.order[(lo+hi)>>>1]*this.numDim+dim];
+            i = lo; j = hi;
+            while (i <= j)
+            {
+                while (xin[this.order[i]*this.numDim+dim] < pivot) i++;
+                while (xin[this.order[j]*this.numDim+dim] > pivot) j--;
+                if (i <= j) { buf = this.order[i]; this.order[i] = this.order[j]; this.order[j] = buf; i++; j--; }
+            }
+            if      (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else             break;
+        }
+    }
+
+    public int getNumberOfNodes()
+    {
+        return(this.numNodes);
+    }
+
+    public KDTree()
+    {
+    }
+}
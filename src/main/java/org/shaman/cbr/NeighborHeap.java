@@ -0,0 +1,200 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.cbr;
+
+import cern.colt.map.OpenIntIntHashMap;
+
+
+/**
+ * <h2>K-Nearest Neighbor Heap</h2>
+ * Bounded max-heap holding the k nearest instances found so far.
+ * The root is the farthest of the k neighbors, so a new candidate
+ * only has to be compared with the root.
+ * Of 2 instances at the same distance, the one with the lowest index
+ * is the nearest. This makes the result independent of the order in
+ * which an index visits the instances.
+ */
+
+// **********************************************************\
+// *                K-Nearest Neighbor Heap                 *
+// **********************************************************/
+public class NeighborHeap
+{
+    private int               k;           // Maximum number of neighbors
+    private int               size;        // Current number of neighbors
+    private int             []index;       // [i] = Instance index of heap element i
+    private double          []dist;        // [i] = Distance to the query of heap element i
+    private boolean           sorted;      // The elements are sorted from nearest to farthest instead of a heap
+    private OpenIntIntHashMap exclude;     // Never accept instances with an index in the keyset of this Map. Can be null.
+
+    // **********************************************************\
+    // *                  Neighbor Candidates                   *
+    // **********************************************************/
+    /**
+     * Offer an instance as a nearest neighbor.
+     * @param i The index of the instance
+     * @param d The distance of the instance to the query
+     * @return <code>true</code> if the instance is one of the k nearest found so far
+     */
+    public boolean offer(int i, double d)
+    {
+        // Instances at an unknown distance are never neighbors.
+        if (Double.isNaN(d)) return(false);
+        if ((this.exclude != null) && this.exclude.containsKey(i)) return(false);
+        if (this.sorted) unsort();
+
+        if (this.size < this.k)
+        {
+            this.index[this.size] = i;
+            this.dist[this.size]  = d;
+            siftUp(this.size);
+            this.size++;
+            return(true);
+        }
+        else if (this.k > 0 && farther(this.dist[0], this.index[0], d, i))
+        {
+            // Replace the farthest neighbor.
+            this.index[0] = i;
+            this.dist[0]  = d;
+            siftDown(0);
+            return(true);
+        }
+        else return(false);
+    }
+
+    /**
+     * The distance an instance needs to beat to enter the heap.
+     * @return Distance of the farthest neighbor when the heap is full. Infinity otherwise.
+     */
+    public double getBound()
+    {
+        if (this.sorted) unsort();
+        if (this.size < this.k || this.k == 0) return(Double.POSITIVE_INFINITY);
+        else                                   return(this.dist[0]);
+    }
+
+    private static boolean farther(double d1, int i1, double d2, int i2)
+    {
+        return((d1 > d2) || ((d1 == d2) && (i1 > i2)));
+    }
+
+    private void siftUp(int pos)
+    {
+        int    par, ibuf;
+        double dbuf;
+
+        while (pos > 0)
+        {
+            par = (pos-1)/2;
+            if (farther(this.dist[pos], this.index[pos], this.dist[par], this.index[par]))
+            {
+                ibuf = this.index[pos]; this.index[pos] = this.index[par]; this.index[par] = ibuf;
+                dbuf = this.dist[pos];  this.dist[pos]  = this.dist[par];  this.dist[par]  = dbuf;
+                pos  = par;
+            }
+            else break;
+        }
+    }
+
+    private void siftDown(int pos)
+    {
+        int    c, cmax, ibuf;
+        double dbuf;
+
+        while ((c = 2*pos+1) < this.size)
+        {
+            cmax = c;
+            if ((c+1 < this.size) && farther(this.dist[c+1], this.index[c+1], this.dist[c], this.index[c])) cmax = c+1;
+            if (farther(this.dist[cmax], this.index[cmax], this.dist[pos], this.index[pos]))
+            {
+                ibuf = this.index[pos]; this.index[pos] = this.index[cmax]; this.index[cmax] = ibuf;
+                dbuf = this.dist[pos];  this.dist[pos]  = this.dist[cmax];  this.dist[cmax]  = dbuf;
+                pos  = cmax;
+            }
+            else break;
+        }
+    }
+
+    // **********************************************************\
+    // *                   Sorted Neighbors                     *
+    // **********************************************************/
+    /**
+     * Sort the neighbors from nearest to farthest.
+     * Afterwards, {@link #getIndex(int)} and {@link #getDistance(int)} give the neighbors in order.
+     * Offering another neighbor makes it a heap again.
+     * @return The number of neighbors found.
+     */
+    public int sort()
+    {
+        int    n, ibuf;
+        double dbuf;
+
+        if (this.sorted) return(this.size);
+
+        // Heap-sort. Repeatedly move the farthest neighbor to the back.
+        n = this.size;
+        while (this.size > 1)
+        {
+            this.size--;
+            ibuf = this.index[0]; this.index[0] = this.index[this.size]; this.index[this.size] = ibuf;
+            dbuf = this.dist[0];  this.dist[0]  = this.dist[this.size];  this.dist[this.size]  = dbuf;
+            siftDown(0);
+        }
+        this.size   = n;
+        this.sorted = true;
+
+        return(n);
+    }
+
+    private void unsort()
+    {
+        int    i, j, ibuf;
+        double dbuf;
+
+        // From farthest to nearest is a valid heap.
+        for (i=0, j=this.size-1; i<j; i++, j--)
+        {
+            ibuf = this.index[i]; this.index[i] = this.index[j]; this.index[j] = ibuf;
+            dbuf = this.dist[i];  this.dist[i]  = this.dist[j];  this.dist[j]  = dbuf;
+        }
+        this.sorted = false;
+    }
+
+    public int    getIndex(int i)    { return(this.index[i]); }
+    public double getDistance(int i) { return(this.dist[i]); }
+    public int    size()             { return(this.size); }
+    public int    getK()             { return(this.k); }
+
+    /**
+     * Remove all neighbors. Keeps the exclusion map.
+     */
+    public void clear()
+    {
+        this.size   = 0;
+        this.sorted = false;
+    }
+
+    /**
+     * Create a heap for the k nearest neighbors.
+     * @param k The number of neighbors to keep
+     * @param exclude Instances with an index in the keyset of this map are never neighbors. Can be null.
+     */
+    public NeighborHeap(int k, OpenIntIntHashMap exclude)
+    {
+        this.k       = k;
+        this.size    = 0;
+        this.sorted  = false;
+        this.index   = new int[k];
+        this.dist    = new double[k];
+        this.exclude = exclude;
+    }
+}
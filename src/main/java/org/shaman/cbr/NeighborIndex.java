@@ -0,0 +1,65 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.cbr;
+
+import org.shaman.exceptions.LearnerException;
+import org.shaman.learning.Presenter;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.ObjectMatrix1D;
+
+
+/**
+ * <h2>Nearest Neighbor Index</h2>
+ * Search structure over a set of instances that finds the exact
+ * k nearest instances of a query. The distances are the ones
+ * of a DistanceMatrix.
+ * After it's built, the index is only read. Several threads can
+ * search it at the same time, each with its own NeighborHeap.
+ */
+
+// **********************************************************\
+// *                 Nearest Neighbor Index                 *
+// **********************************************************/
+public interface NeighborIndex
+{
+    /**
+     * Build the index over the given instances.
+     * @param instances The instances to search in. The indices in the NeighborHeap are indices in this set.
+     * @param dm Calculates the distance between 2 instances
+     * @throws LearnerException If the index does not support the distance or data, or the instances cannot be read.
+     */
+    public void build(Presenter instances, DistanceMatrix dm) throws LearnerException;
+
+    /**
+     * Find the nearest neighbors of a primitive instance.
+     * @param query The instance
+     * @param heap Receives the nearest neighbors. Its size determines the number of neighbors.
+     * @throws LearnerException If the distances cannot be calculated.
+     */
+    public void search(DoubleMatrix1D query, NeighborHeap heap) throws LearnerException;
+
+    /**
+     * Find the nearest neighbors of an Object instance.
+     * @param query The instance
+     * @param heap Receives the nearest neighbors.
+     * @throws LearnerException If the distances cannot be calculated or the index only holds primitive data.
+     */
+    public void search(ObjectMatrix1D query, NeighborHeap heap) throws LearnerException;
+
+    /**
+     * Give the number of distances calculated by the searches since the index was built.
+     * Not exact when several threads search at the same time.
+     * @return The number of distance calculations
+     */
+    public long getDistanceCount();
+}
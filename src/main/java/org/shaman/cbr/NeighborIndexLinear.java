@@ -0,0 +1,91 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.cbr;
+
+import org.shaman.datamodel.DataModelPropertyVectorType;
+import org.shaman.exceptions.LearnerException;
+import org.shaman.learning.Presenter;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.ObjectMatrix1D;
+
+
+/**
+ * <h2>Linear Scan</h2>
+ * Compares the query with every instance.
+ * Works with every kind of distance and data.
+ */
+
+// **********************************************************\
+// *                 Linear Scan Neighbor Search            *
+// **********************************************************/
+public class NeighborIndexLinear implements NeighborIndex
+{
+    private DistanceMatrix     dm;
+    private DoubleMatrix1D   []dins;          // The primitive instances. Or null.
+    private ObjectMatrix1D   []oins;          // The Object instances. Or null.
+    private long               distanceCount;
+
+    // **********************************************************\
+    // *                      Neighbor Search                   *
+    // **********************************************************/
+    public void search(DoubleMatrix1D query, NeighborHeap heap) throws LearnerException
+    {
+        int i;
+
+        if (this.dins == null) throw new LearnerException("Cannot search a primitive instance in Object data.");
+        for (i=0; i<this.dins.length; i++) heap.offer(i, this.dm.distance(this.dins[i], query));
+        this.distanceCount += this.dins.length;
+    }
+
+    public void search(ObjectMatrix1D query, NeighborHeap heap) throws LearnerException
+    {
+        int i;
+
+        if (this.oins == null) throw new LearnerException("Cannot search an Object instance in primitive data.");
+        for (i=0; i<this.oins.length; i++) heap.offer(i, this.dm.distance(this.oins[i], query));
+        this.distanceCount += this.oins.length;
+    }
+
+    public long getDistanceCount()
+    {
+        return(this.distanceCount);
+    }
+
+    // **********************************************************\
+    // *                         Creation                       *
+    // **********************************************************/
+    public void build(Presenter instances, DistanceMatrix dm) throws LearnerException
+    {
+        int i, n;
+
+        this.dm            = dm;
+        this.distanceCount = 0;
+        n                  = instances.getNumberOfInstances();
+        if (instances.getDataModel().getVectorTypeProperty().equals(DataModelPropertyVectorType.doubleVector))
+        {
+            this.dins = new DoubleMatrix1D[n];
+            this.oins = null;
+            for (i=0; i<n; i++) this.dins[i] = instances.getInstance(i);
+        }
+        else
+        {
+            this.oins = new ObjectMatrix1D[n];
+            this.dins = null;
+            for (i=0; i<n; i++) this.oins[i] = instances.getObjectInstance(i);
+        }
+    }
+
+    public NeighborIndexLinear()
+    {
+    }
+}
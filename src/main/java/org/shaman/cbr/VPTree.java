@@ -0,0 +1,235 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.cbr;
+
+import java.util.Random;
+
+import org.shaman.datamodel.DataModelPropertyVectorType;
+import org.shaman.exceptions.LearnerException;
+import org.shaman.learning.Presenter;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.ObjectMatrix1D;
+
+
+/**
+ * <h2>Vantage-Point Tree</h2>
+ * Nearest neighbor index for any distance of the DistanceMatrix that is a metric.
+ * Works on primitive and on Object data, e.g. with the distance functions of the attributes.
+ * Each node picks a vantage point and splits the other instances at the median
+ * distance to it. The triangle inequality tells which halves can contain
+ * an instance closer than the current k-th neighbor.
+ * When the distance does not obey the triangle inequality, the search can miss neighbors.
+ */
+
+// **********************************************************\
+// *          Vantage-Point Tree Nearest Neighbor Index     *
+// **********************************************************/
+public class VPTree implements NeighborIndex
+{
+    /** Maximum number of instances in a leaf */
+    public static final int LEAF_SIZE = 8;
+    // Relative slack on the pruning bounds. Covers the rounding of the distance calculations.
+    private static final double BOUND_SLACK = 1e-12;
+
+    private DistanceMatrix     dm;
+    private DoubleMatrix1D   []dins;          // The primitive instances. Or null.
+    private ObjectMatrix1D   []oins;          // The Object instances. Or null.
+    private int              []order;         // Instance indices. The vantage point of a node followed by its inside and outside instances.
+    private long               distanceCount;
+    private long               seed;          // Seed for picking the vantage points
+
+    // The nodes. Node 0 is the root.
+    private int      numNodes;
+    private int    []nodeBegin;       // Position in order of the vantage point, or of the first instance of a leaf
+    private int    []nodeEnd;         // Position after the last instance in the subtree
+    private double []nodeRadius;      // Median distance to the vantage point
+    private int    []nodeInside;      // Node with the instances at distance <= radius. -1 for a leaf
+    private int    []nodeOutside;     // Node with the instances at distance >= radius
+
+    // **********************************************************\
+    // *                      Neighbor Search                   *
+    // **********************************************************/
+    public void search(DoubleMatrix1D query, NeighborHeap heap) throws LearnerException
+    {
+        if (this.dins == null) throw new LearnerException("Cannot search a primitive instance in Object data.");
+        if (this.numNodes > 0) search(0, query, null, heap);
+    }
+
+    public void search(ObjectMatrix1D query, NeighborHeap heap) throws LearnerException
+    {
+        if (this.oins == null) throw new LearnerException("Cannot search an Object instance in primitive data.");
+        if (this.numNodes > 0) search(0, null, query, heap);
+    }
+
+    private void search(int node, DoubleMatrix1D dq, ObjectMatrix1D oq, NeighborHeap heap) throws LearnerException
+    {
+        int    pos;
+        double d, mu, bound;
+
+        if (this.nodeInside[node] == -1)
+        {
+            // Leaf. Calculate the distances to its instances.
+            for (pos=this.nodeBegin[node]; pos<this.nodeEnd[node]; pos++) heap.offer(this.order[pos], distance(this.order[pos], dq, oq));
+        }
+        else
+        {
+            // The vantage point itself is a candidate.
+            pos = this.nodeBegin[node];
+            d   = distance(this.order[pos], dq, oq);
+            heap.offer(this.order[pos], d);
+
+            // Visit the half the query is in first. Skip the other half when it is too far away.
+            // Unknown (NaN) distances never prune.
+            mu = this.nodeRadius[node];
+            if (d < mu)
+            {
+                bound = heap.getBound()*(1+BOUND_SLACK);
+                if (!(d - bound > mu)) search(this.nodeInside[node], dq, oq, heap);
+                bound = heap.getBound()*(1+BOUND_SLACK);
+                if (!(d + bound < mu)) search(this.nodeOutside[node], dq, oq, heap);
+            }
+            else
+            {
+                bound = heap.getBound()*(1+BOUND_SLACK);
+                if (!(d + bound < mu)) search(this.nodeOutside[node], dq, oq, heap);
+                bound = heap.getBound()*(1+BOUND_SLACK);
+                if (!(d - bound > mu)) search(this.nodeInside[node], dq, oq, heap);
+            }
+        }
+    }
+
+    private double distance(int i, DoubleMatrix1D dq, ObjectMatrix1D oq) throws LearnerException
+    {
+        this.distanceCount++;
+        if (dq != null) return(this.dm.distance(this.dins[i], dq));
+        else            return(this.dm.distance(this.oins[i], oq));
+    }
+
+    public long getDistanceCount()
+    {
+        return(this.distanceCount);
+    }
+
+    // **********************************************************\
+    // *                       Tree Building                    *
+    // **********************************************************/
+    public void build(Presenter instances, DistanceMatrix dm) throws LearnerException
+    {
+        Random   ran;
+        double []dvp;
+        int      i, n;
+
+        this.dm = dm;
+        n       = instances.getNumberOfInstances();
+        if (instances.getDataModel().getVectorTypeProperty().equals(DataModelPropertyVectorType.doubleVector))
+        {
+            this.dins = new DoubleMatrix1D[n];
+            this.oins = null;
+            for (i=0; i<n; i++) this.dins[i] = instances.getInstance(i);
+        }
+        else
+        {
+            this.oins = new ObjectMatrix1D[n];
+            this.dins = null;
+            for (i=0; i<n; i++) this.oins[i] = instances.getObjectInstance(i);
+        }
+
+        this.order = new int[n];
+        for (i=0; i<n; i++) this.order[i] = i;
+        this.nodeBegin   = new int[Math.max(1, n)];
+        this.nodeEnd     = new int[Math.max(1, n)];
+        this.nodeRadius  = new double[Math.max(1, n)];
+        this.nodeInside  = new int[Math.max(1, n)];
+        this.nodeOutside = new int[Math.max(1, n)];
+        this.numNodes    = 0;
+
+        // Build the tree. A node has at least 1 instance, so there are at most n of them.
+        ran = new Random(this.seed);
+        dvp = new double[n];
+        if (n > 0) makeNode(ran, dvp, 0, n);
+        this.distanceCount = 0;
+    }
+
+    private int makeNode(Random ran, double []dvp, int begin, int end) throws LearnerException
+    {
+        int node, vp, mid, i, buf;
+
+        node = this.numNodes++;
+        this.nodeBegin[node]  = begin;
+        this.nodeEnd[node]    = end;
+        this.nodeInside[node] = -1;
+        if (end - begin <= LEAF_SIZE) return(node);
+
+        // Move a random vantage point to the front. Calculate the distance of the others to it.
+        i   = begin + ran.nextInt(end-begin);
+        buf = this.order[begin]; this.order[begin] = this.order[i]; this.order[i] = buf;
+        vp  = this.order[begin];
+        for (i=begin+1; i<end; i++)
+        {
+            if (this.dins != null) dvp[this.order[i]] = this.dm.distance(this.dins[this.order[i]], this.dins[vp]);
+            else                   dvp[this.order[i]] = this.dm.distance(this.oins[this.order[i]], this.oins[vp]);
+            if (Double.isNaN(dvp[this.order[i]])) dvp[this.order[i]] = Double.POSITIVE_INFINITY;
+        }
+
+        // Split at the median distance.
+        mid = (begin+1+end)/2;
+        select(dvp, begin+1, end, mid);
+        this.nodeRadius[node]  = dvp[this.order[mid]];
+        this.nodeInside[node]  = makeNode(ran, dvp, begin+1, mid);
+        this.nodeOutside[node] = makeNode(ran, dvp, mid, end);
+
+        return(node);
+    }
+
+    private void select(double []dvp, int begin, int end, int k)
+    {
+        int    lo, hi, i, j, buf;
+        double pivot;
+
+        // Quick-select on the distance to the vantage point. Afterwards order[k] is in its sorted position.
+        lo = begin; hi = end-1;
+        while (lo < hi)
+        {
+            pivot = dvp[this.order[(lo+hi)>>>1]];
+            i = lo; j = hi;
+            while (i <= j)
+            {
+                while (dvp[this.order[i]] < pivot) i++;
+                while (dvp[this.order[j]] > pivot) j--;
+                if (i <= j) { buf = this.order[i]; this.order[i] = this.order[j]; this.order[j] = buf; i++; j--; }
+            }
+            if      (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else             break;
+        }
+    }
+
+    /**
+     * Set the seed of the random generator that picks the vantage points.
+     * @param seed The seed
+     */
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+
+    public int getNumberOfNodes()
+    {
+        return(this.numNodes);
+    }
+
+    public VPTree()
+    {
+        this.seed = 1;
+    }
+}
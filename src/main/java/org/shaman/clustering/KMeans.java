@@ -14,6 +14,13 @@ package org.shaman.clustering;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.shaman.cbr.DistanceMatrix;
 import org.shaman.dataflow.Persister;
@@ -24,20 +31,26 @@ import org.shaman.exceptions.DataModelException;
 import org.shaman.exceptions.LearnerException;
 import org.shaman.learning.Classifier;
 import org.shaman.learning.ClassifierTransformation;
+import org.shaman.learning.InstanceSetColumnar;
 import org.shaman.learning.Presenter;
 
 import cern.colt.matrix.DoubleFactory1D;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.ObjectMatrix1D;
 import cern.colt.matrix.doublealgo.Statistic;
-import cern.colt.matrix.linalg.Blas;
-import cern.colt.matrix.linalg.SeqBlas;
-import cern.jet.random.Uniform;
 
 
 /**
  * <h2>K-Means Clustering</h2>
  * 
+ * Lloyd iterations on the Euclidean distance. The assignment step can keep
+ * bounds on the distance of each instance to the centroids (Hamerly or Elkan),
+ * which skips most distance calculations once the centroids move little.
+ * The bounds give the same clusters as the plain assignment.
+ * Assignment and centroid sums run in parallel over fixed parts of the instances,
+ * so the centroids do not depend on the number of threads.
+ * For very large training sets, the mini-batch mode updates the centroids
+ * with small random samples instead of passing over all instances.
  */
 
 // *********************************************************\
@@ -45,11 +58,57 @@ import cern.jet.random.Uniform;
 // *********************************************************/
 public class KMeans extends ClassifierTransformation implements Classifier, Persister
 {
-    private int    k;                // Number of clusters?
+    /** Initial centroids are k distinct random instances */
+    public static final int SEED_RANDOM   = 0;
+    /** k-means++. Each next centroid is drawn with a probability proportional to the squared distance to the nearest centroid so far */
+    public static final int SEED_KMEANSPP = 1;
+    
+    /** Calculate the distance of every instance to every centroid */
+    public static final int ASSIGN_LLOYD   = 0;
+    /** Hamerly's bounds. An upper bound to the own centroid and 1 lower bound to all others. Little memory. */
+    public static final int ASSIGN_HAMERLY = 1;
+    /** Elkan's bounds. A lower bound for each centroid. Skips more distances, needs k doubles per instance. */
+    public static final int ASSIGN_ELKAN   = 2;
+    
+    // Number of instances in a part. Parts are the unit of parallel work.
+    private static final int    PART_SIZE   = 1024;
+    // Maximum number of parts. Each has its own centroid sums.
+    private static final int    MAX_PARTS   = 64;
+    // Relative slack on the bounds. Covers the rounding of the distance calculations.
+    private static final double BOUND_SLACK = 1e-12;
+    // In mini-batch mode, the seeds are chosen in a sample of this many batches.
+    private static final int    SEED_BATCHES = 3;
+    
+    private int     k;                    // Number of clusters?
+    private int     seeding;              // How to choose the initial centroids
+    private int     assignment;           // How to assign the instances to the centroids
+    private int     maxIterations;        // Maximum number of iterations. 0 = until no instance changes cluster.
+    private int     miniBatchSize;        // Number of instances in a mini-batch. 0 = use all instances in each iteration.
+    private int     miniBatchIterations;  // Number of mini-batches
+    private long    randomSeed;           // Seed for the initial centroids and mini-batches
+    private int     numberOfThreads;      // 0 = number of processors
     
     // --- Cluster Calculation ----
     private DistanceMatrix   dm;              // Distance Calculation between instances
     private DoubleMatrix1D []centroid;        // Centroids of the clusters
+    private int              itcount;         // Number of iterations of the last training
+    private long             distanceCount;   // Number of distances calculated during the last training
+    
+    // --- Training Buffers ----
+    private transient ForkJoinPool pool;
+    private transient int          dim;             // Number of attributes
+    private transient double     []x;               // Instances. Row-major.
+    private transient double     []c;               // Centroids. Row-major.
+    private transient int        []member;          // [i] = Cluster of instance i
+    private transient double     []upper;           // [i] = Upper bound on the distance of instance i to its centroid
+    private transient double     []lower;           // Hamerly: [i] = Lower bound to the other centroids. Elkan: [i*k+j] = Lower bound to centroid j.
+    private transient double     []shift;           // [j] = Distance centroid j moved in the last update
+    private transient double     []half;            // [j] = Half the distance of centroid j to the nearest other centroid
+    private transient double     []cc;              // [j*k+l] = Distance between centroids j and l
+    private transient double   [][]partSum;         // [p][j*dim+a] = Sum of attribute a of the instances of part p in cluster j
+    private transient int      [][]partCount;       // [p][j] = Number of instances of part p in cluster j
+    private transient int        []partMoved;       // [p] = Number of instances of part p that changed cluster
+    private transient long       []partDistances;   // [p] = Number of distances calculated in part p
     
     // *********************************************************\
     // *           Case Base Reasoning Classification          *
@@ -85,107 +144,547 @@ public class KMeans extends ClassifierTransformation implements Classifier, Pers
     // **********************************************************/
     public void train() throws LearnerException
     {
-        int            []cpos;
-        DoubleMatrix1D []centroid;
-        boolean          already;
-        int              i, j, pos, numin;
+        Random ran;
+        int    i, threads;
         
         // Data sanity checks
         if (this.trainData.getNumberOfInstances() < this.k)
             throw new LearnerException("Not enough data to cluster in "+k+" clusters");
         
-        // Select 'k' distinct random training points as initial cluster centers
-        cpos   = new int[this.k];
-        i      = 0;
-        numin  = this.trainData.getNumberOfInstances();
-        while(i<this.k)
+        ran                = new Random(this.randomSeed);
+        this.dim           = this.trainData.getInstance(0).size();
+        this.itcount       = 0;
+        this.distanceCount = 0;
+        threads            = getThreads();
+        if (threads > 1) this.pool = new ForkJoinPool(threads);
+        try
         {
-            pos = Uniform.staticNextIntFromTo(0, numin-1);
-            already = false;
-            for (j=0; j<i; j++) if (cpos[j] == pos) already = true;
-            if (!already)
+            if (this.miniBatchSize > 0) trainMiniBatch(ran);
+            else                        trainBatch(ran);
+            
+            this.centroid = new DoubleMatrix1D[this.k];
+            for (i=0; i<this.k; i++)
             {
-                cpos[i] = pos;
-                i++;
+                this.centroid[i] = DoubleFactory1D.dense.make(this.dim);
+                this.centroid[i].assign(DoubleFactory1D.dense.make(this.c).viewPart(i*this.dim, this.dim));
             }
         }
-        centroid   = new DoubleMatrix1D[this.k];
-        for (i=0; i<cpos.length; i++) centroid[i] = this.trainData.getInstance(cpos[i]).copy();
-        
-        // Iterator until stop criterium is reached
-        boolean          stop;
-        int            []member1;
-        int            []member2, memberswap;
-        DoubleMatrix1D   point;
-        int            []ccount;
-        int              inlen, clmin, itcount;
-        int              movecount;
-        double           d, dmin;
-        Blas             blas;
-        
-        blas      = SeqBlas.seqBlas;
-        inlen     = this.trainData.getInstance(0).size();
-        member1   = new int[numin];
-        member2   = new int[numin];
-        for (i=0; i<member1.length; i++) member1[i] = -1;
-        ccount    = new int[k];
-        stop      = false;
-        itcount   = 0;
-        while(!stop)
+        finally
+        {
+            if (this.pool != null) this.pool.shutdown();
+            this.pool      = null;
+            this.x         = null; this.c      = null; this.member = null;
+            this.upper     = null; this.lower  = null; this.shift  = null;
+            this.half      = null; this.cc     = null;
+            this.partSum   = null; this.partCount = null; this.partMoved = null; this.partDistances = null;
+        }
+        
+        //System.err.println("-- itcount "+itcount);
+        //for (i=0; i<this.centroid.length; i++) System.err.println("centroid "+this.centroid[i]);
+    }
+    
+    private void trainBatch(Random ran) throws LearnerException
+    {
+        double []sum, cnew;
+        int      i, j, p, a, n, num, parts, movecount;
+        
+        // All instances in a flat matrix. Choose the initial centroids.
+        this.x = copyInstances(null);
+        n      = this.trainData.getNumberOfInstances();
+        this.c = seed(ran, n);
+        
+        this.member = new int[n];
+        for (i=0; i<n; i++) this.member[i] = -1;
+        if (this.assignment != ASSIGN_LLOYD)
+        {
+            this.upper = new double[n];
+            if (this.assignment == ASSIGN_ELKAN) this.lower = new double[n*this.k];
+            else                                 this.lower = new double[n];
+            this.half  = new double[this.k];
+            this.cc    = new double[this.k*this.k];
+            this.shift = null;
+        }
+        parts              = numberOfParts(n);
+        this.partSum       = new double[parts][this.k*this.dim];
+        this.partCount     = new int[parts][this.k];
+        this.partMoved     = new int[parts];
+        this.partDistances = new long[parts];
+        
+        // Iterate until no instance changes cluster
+        while(true)
         {
-            // Assign all training points to their nearest centroid
-            for (i=0; i<numin; i++)
+            if (this.assignment != ASSIGN_LLOYD) centroidDistances();
+            
+            // Assign all training points to their nearest centroid. Sum the clusters per part.
+            runParts(n, new PartTask()
             {
-                point = this.trainData.getInstance(i);
-                clmin = -1;
-                dmin  = Double.POSITIVE_INFINITY;
-                for (j=0; j<centroid.length; j++)
+                public void run(int part, int begin, int end) throws LearnerException
                 {
-                    d = this.dm.distance(centroid[j], point);
-                    if (d < dmin)
-                    {
-                        dmin  = d;
-                        clmin = j;
-                    }
+                    assignPart(part, begin, end);
                 }
-                member2[i] = clmin;
+            });
+            movecount = 0;
+            for (p=0; p<parts; p++) { movecount += this.partMoved[p]; this.distanceCount += this.partDistances[p]; }
+            if ((movecount == 0) || ((this.maxIterations > 0) && (this.itcount >= this.maxIterations))) break;
+            this.itcount++;
+            
+            // Calculate the centroid of the new cluster assignments. Combine the parts in order.
+            // An empty cluster keeps its centroid.
+            cnew       = this.c.clone();
+            sum        = new double[this.dim];
+            this.shift = new double[this.k];
+            for (j=0; j<this.k; j++)
+            {
+                num = 0;
+                java.util.Arrays.fill(sum, 0);
+                for (p=0; p<parts; p++)
+                {
+                    num += this.partCount[p][j];
+                    for (a=0; a<this.dim; a++) sum[a] += this.partSum[p][j*this.dim+a];
+                }
+                if (num > 0) for (a=0; a<this.dim; a++) cnew[j*this.dim+a] = sum[a] / num;
+                this.shift[j] = distance(this.c, j*this.dim, cnew, j*this.dim);
+            }
+            this.c = cnew;
+        }
+    }
+    
+    private void assignPart(int part, int begin, int end)
+    {
+        double []sum;
+        int    []count;
+        int      i, j, a, anew, xo, co, moved;
+        double   maxShift, secondShift;
+        int      maxShiftIndex;
+        
+        sum   = this.partSum[part];
+        count = this.partCount[part];
+        java.util.Arrays.fill(sum, 0);
+        java.util.Arrays.fill(count, 0);
+        this.partDistances[part] = 0;
+        moved = 0;
+        
+        // Largest and second largest centroid movement. For Hamerly's lower bound.
+        maxShift = 0; secondShift = 0; maxShiftIndex = -1;
+        if (this.shift != null)
+        {
+            for (j=0; j<this.k; j++)
+            {
+                if      (this.shift[j] > maxShift)    { secondShift = maxShift; maxShift = this.shift[j]; maxShiftIndex = j; }
+                else if (this.shift[j] > secondShift) { secondShift = this.shift[j]; }
             }
+        }
+        
+        for (i=begin; i<end; i++)
+        {
+            a = this.member[i];
+            if      ((this.assignment == ASSIGN_LLOYD) || (a == -1)) anew = assignAll(part, i);
+            else if (this.assignment == ASSIGN_HAMERLY)              anew = assignHamerly(part, i, a, (a == maxShiftIndex) ? secondShift : maxShift);
+            else                                                     anew = assignElkan(part, i, a);
             
-            // Check if the cluster assignments have stabilized enough to stop
-            movecount = 0;
-            for (i=0; i<numin; i++)
+            // Add the instance to the sums of its cluster.
+            if (anew != a) moved++;
+            this.member[i] = anew;
+            count[anew]++;
+            xo = i*this.dim;
+            co = anew*this.dim;
+            for (j=0; j<this.dim; j++) sum[co+j] += this.x[xo+j];
+        }
+        this.partMoved[part] = moved;
+    }
+    
+    private int assignAll(int part, int i)
+    {
+        int    j, anew, xo;
+        double d, d1, d2;
+        
+        // Distance to all centroids. Remember the bounds when needed.
+        xo   = i*this.dim;
+        anew = -1;
+        d1   = Double.POSITIVE_INFINITY; d2 = Double.POSITIVE_INFINITY;
+        for (j=0; j<this.k; j++)
+        {
+            d = distance(this.x, xo, this.c, j*this.dim);
+            if (this.assignment == ASSIGN_ELKAN) this.lower[i*this.k+j] = d;
+            if      (d < d1) { d2 = d1; d1 = d; anew = j; }
+            else if (d < d2) { d2 = d; }
+        }
+        this.partDistances[part] += this.k;
+        if (this.assignment != ASSIGN_LLOYD)
+        {
+            this.upper[i] = d1;
+            if (this.assignment == ASSIGN_HAMERLY) this.lower[i] = d2;
+        }
+        
+        return(anew);
+    }
+    
+    private int assignHamerly(int part, int i, int a, double otherShift)
+    {
+        int    j, anew, xo;
+        double d, d1, d2, m, u;
+        
+        // Move the bounds with the centroids.
+        u             = this.upper[i] + this.shift[a];
+        this.lower[i] = this.lower[i] - otherShift;
+        m             = Math.max(this.half[a], this.lower[i]);
+        this.upper[i] = u;
+        if (u*(1+BOUND_SLACK) <= m) return(a);
+        
+        // Tighten the upper bound. Only when it still overlaps, look at all centroids.
+        xo = i*this.dim;
+        u  = distance(this.x, xo, this.c, a*this.dim);
+        this.upper[i] = u;
+        this.partDistances[part]++;
+        if (u*(1+BOUND_SLACK) <= m) return(a);
+        
+        anew = a;
+        d1   = Double.POSITIVE_INFINITY; d2 = Double.POSITIVE_INFINITY;
+        for (j=0; j<this.k; j++)
+        {
+            if (j == a) d = u;
+            else      { d = distance(this.x, xo, this.c, j*this.dim); this.partDistances[part]++; }
+            if      (d < d1) { d2 = d1; d1 = d; anew = j; }
+            else if (d < d2) { d2 = d; }
+        }
+        this.upper[i] = d1;
+        this.lower[i] = d2;
+        
+        return(anew);
+    }
+    
+    private int assignElkan(int part, int i, int a)
+    {
+        boolean tight;
+        int     j, k, lo, xo;
+        double  d, u, us;
+        
+        // Move the bounds with the centroids.
+        k  = this.k;
+        lo = i*k;
+        u  = this.upper[i] + this.shift[a];
+        for (j=0; j<k; j++)
+        {
+            d = this.lower[lo+j] - this.shift[j];
+            this.lower[lo+j] = (d > 0) ? d : 0;
+        }
+        this.upper[i] = u;
+        if (u*(1+BOUND_SLACK) <= this.half[a]) return(a);
+        
+        // Only look at the centroids that can be closer than the own one.
+        xo    = i*this.dim;
+        tight = false;
+        for (j=0; j<k; j++)
+        {
+            if (j == a) continue;
+            us = u*(1+BOUND_SLACK);
+            if ((us <= this.lower[lo+j]) || (us <= 0.5*this.cc[a*k+j])) continue;
+            if (!tight)
+            {
+                u                = distance(this.x, xo, this.c, a*this.dim);
+                this.lower[lo+a] = u;
+                this.partDistances[part]++;
+                tight = true;
+                us    = u*(1+BOUND_SLACK);
+                if ((us <= this.lower[lo+j]) || (us <= 0.5*this.cc[a*k+j])) continue;
+            }
+            d = distance(this.x, xo, this.c, j*this.dim);
+            this.partDistances[part]++;
+            this.lower[lo+j] = d;
+            if ((d < u) || ((d == u) && (j < a))) { a = j; u = d; }
+        }
+        this.upper[i] = u;
+        
+        return(a);
+    }
+    
+    private void centroidDistances()
+    {
+        int    j, l;
+        double d;
+        
+        // Distances between the centroids. An instance closer to its centroid than half of these can not change cluster.
+        for (j=0; j<this.k; j++) this.half[j] = Double.POSITIVE_INFINITY;
+        for (j=0; j<this.k; j++)
+        {
+            this.cc[j*this.k+j] = 0;
+            for (l=0; l<j; l++)
             {
-                if (member1[i] != member2[i]) movecount++;
+                d = distance(this.c, j*this.dim, this.c, l*this.dim);
+                this.cc[j*this.k+l] = d;
+                this.cc[l*this.k+j] = d;
+                if (0.5*d < this.half[j]) this.half[j] = 0.5*d;
+                if (0.5*d < this.half[l]) this.half[l] = 0.5*d;
             }
+        }
+        this.distanceCount += this.k*(this.k-1)/2;
+    }
+    
+    // **********************************************************\
+    // *                    Mini-Batch K-Means                  *
+    // **********************************************************/
+    private void trainMiniBatch(Random ran) throws LearnerException
+    {
+        final int    []near;
+        final long   []dcount;
+        long         []v;
+        int          []ind;
+        int            i, j, a, n, nb, it, xo, co, parts;
+        double         eta;
+        
+        // Choose the initial centroids in a sample.
+        n   = this.trainData.getNumberOfInstances();
+        nb  = Math.min(n, Math.max(this.k, SEED_BATCHES*this.miniBatchSize));
+        ind = new int[nb];
+        for (i=0; i<nb; i++) ind[i] = (nb == n) ? i : ran.nextInt(n);
+        this.x = copyInstances(ind);
+        this.c = seed(ran, nb);
+        
+        // Move each centroid towards the batch instances assigned to it. With a learning rate of 1 / number of instances seen.
+        v      = new long[this.k];
+        ind    = new int[this.miniBatchSize];
+        near   = new int[this.miniBatchSize];
+        parts  = numberOfParts(this.miniBatchSize);
+        dcount = new long[parts];
+        for (it=0; it<this.miniBatchIterations; it++)
+        {
+            for (i=0; i<ind.length; i++) ind[i] = ran.nextInt(n);
+            final double []xb = copyInstances(ind);
+            runParts(ind.length, new PartTask()
+            {
+                public void run(int part, int begin, int end)
+                {
+                    for (int b=begin; b<end; b++) near[b] = nearest(xb, b*dim, c);
+                    dcount[part] = (long)(end-begin)*k;
+                }
+            });
+            for (i=0; i<parts; i++) this.distanceCount += dcount[i];
             
-            if (movecount > 0)
+            for (i=0; i<ind.length; i++)
+            {
+                a   = near[i];
+                v[a]++;
+                eta = 1.0 / v[a];
+                xo  = i*this.dim;
+                co  = a*this.dim;
+                for (j=0; j<this.dim; j++) this.c[co+j] += eta*(xb[xo+j] - this.c[co+j]);
+            }
+            this.itcount++;
+        }
+    }
+    
+    // **********************************************************\
+    // *                     Initial Centroids                  *
+    // **********************************************************/
+    private double []seed(Random ran, int n) throws LearnerException
+    {
+        final double []cseed, dmin;
+        final double []psum;
+        int          []cpos;
+        boolean        already;
+        int            i, j, pos, parts;
+        double         total, r;
+        
+        cseed = new double[this.k*this.dim];
+        if (this.seeding == SEED_RANDOM)
+        {
+            // Select 'k' distinct random training points as initial cluster centers
+            cpos = new int[this.k];
+            i    = 0;
+            while(i<this.k)
+            {
+                pos     = ran.nextInt(n);
+                already = false;
+                for (j=0; j<i; j++) if (cpos[j] == pos) already = true;
+                if (!already)
+                {
+                    cpos[i] = pos;
+                    i++;
+                }
+            }
+            for (i=0; i<this.k; i++) System.arraycopy(this.x, cpos[i]*this.dim, cseed, i*this.dim, this.dim);
+        }
+        else
+        {
+            // k-means++. First centroid uniformly at random, the next ones with probability proportional to the squared distance.
+            dmin  = new double[n];
+            parts = numberOfParts(n);
+            psum  = new double[parts];
+            for (i=0; i<n; i++) dmin[i] = Double.POSITIVE_INFINITY;
+            pos = ran.nextInt(n);
+            for (j=0; j<this.k; j++)
             {
-                itcount++;
+                final int cj = j;
+                
+                System.arraycopy(this.x, pos*this.dim, cseed, j*this.dim, this.dim);
+                if (j == this.k-1) break;
+                
+                // Update the squared distance to the nearest centroid. Sum per part, combined in order.
+                runParts(n, new PartTask()
+                {
+                    public void run(int part, int begin, int end)
+                    {
+                        double d, s;
+                        
+                        s = 0;
+                        for (int i=begin; i<end; i++)
+                        {
+                            d = distance(x, i*dim, cseed, cj*dim);
+                            if (d*d < dmin[i]) dmin[i] = d*d;
+                            s += dmin[i];
+                        }
+                        psum[part] = s;
+                    }
+                });
+                this.distanceCount += n;
+                total = 0;
+                for (i=0; i<parts; i++) total += psum[i];
                 
-                // Calculate the centroid of the new cluster assignments
-                for (i=0; i<this.k; i++)
+                // Draw the next centroid. When all instances coincide with a centroid, any instance will do.
+                if (total > 0)
                 {
-                    centroid[i] = DoubleFactory1D.dense.make(inlen);
-                    ccount[i]   = 0;
+                    r = ran.nextDouble()*total;
+                    for (pos=0; (pos<n-1) && ((r -= dmin[pos]) >= 0); pos++);
+                    while (dmin[pos] == 0 && pos > 0) pos--;
                 }
-                for (i=0; i<member2.length; i++)
+                else pos = ran.nextInt(n);
+            }
+        }
+        
+        return(cseed);
+    }
+    
+    // **********************************************************\
+    // *                    Distance Calculation                *
+    // **********************************************************/
+    private double distance(double []a, int ao, double []b, int bo)
+    {
+        int    i;
+        double d, s;
+        
+        // Euclidean distance. Unscaled, the DistanceMatrix divides by the number of attributes.
+        s = 0;
+        for (i=0; i<this.dim; i++)
+        {
+            d  = a[ao+i] - b[bo+i];
+            s += d*d;
+        }
+        
+        return(Math.sqrt(s));
+    }
+    
+    private int nearest(double []a, int ao, double []cen)
+    {
+        int    j, jmin;
+        double d, dmin;
+        
+        jmin = -1;
+        dmin = Double.POSITIVE_INFINITY;
+        for (j=0; j<this.k; j++)
+        {
+            d = distance(a, ao, cen, j*this.dim);
+            if (d < dmin) { dmin = d; jmin = j; }
+        }
+        
+        return(jmin);
+    }
+    
+    private double []copyInstances(int []ind) throws LearnerException
+    {
+        InstanceSetColumnar cols;
+        DoubleMatrix1D      ins;
+        double            []xcopy, col;
+        int                 i, j, n;
+        
+        // Copy the instances to a flat row-major matrix. A columnar set is copied column per column.
+        n     = (ind == null) ? this.trainData.getNumberOfInstances() : ind.length;
+        xcopy = new double[n*this.dim];
+        if (this.trainData instanceof InstanceSetColumnar)
+        {
+            cols = (InstanceSetColumnar)this.trainData;
+            if (ind == null)
+            {
+                col = null;
+                for (j=0; j<this.dim; j++)
                 {
-                    ccount[member2[i]]++;
-                    blas.daxpy(1.0, this.trainData.getInstance(i), centroid[member2[i]]);
+                    col = cols.getColumn(j, col);
+                    for (i=0; i<n; i++) xcopy[i*this.dim+j] = col[i];
                 }
-                for (i=0; i<this.k; i++) if (ccount[i] > 0) blas.dscal(1.0/ccount[i], centroid[i]);
-                
-                // Swap membership assignment buffers
-                memberswap = member2;
-                member2    = member1;
-                member1    = memberswap;
             }
-            else stop = true;
+            else
+            {
+                for (i=0; i<n; i++)
+                    for (j=0; j<this.dim; j++) xcopy[i*this.dim+j] = cols.getValue(ind[i], j);
+            }
+        }
+        else
+        {
+            for (i=0; i<n; i++)
+            {
+                ins = this.trainData.getInstance((ind == null) ? i : ind[i]);
+                for (j=0; j<this.dim; j++) xcopy[i*this.dim+j] = ins.getQuick(j);
+            }
         }
-        this.centroid = centroid;
+        for (i=0; i<xcopy.length; i++)
+            if (Double.isNaN(xcopy[i])) throw new LearnerException("K-Means cannot cluster instances with missing values.");
         
-        //System.err.println("-- itcount "+itcount);
-        //for (i=0; i<this.centroid.length; i++) System.err.println("centroid "+this.centroid[i]);
+        return(xcopy);
+    }
+    
+    // **********************************************************\
+    // *                    Parallel Parts                      *
+    // **********************************************************/
+    private interface PartTask
+    {
+        public void run(int part, int begin, int end) throws LearnerException;
+    }
+    
+    private int numberOfParts(int n)
+    {
+        // Depends only on the number of instances. The sums are the same for any number of threads.
+        return(Math.max(1, Math.min(MAX_PARTS, n / PART_SIZE)));
+    }
+    
+    private void runParts(int n, final PartTask task) throws LearnerException
+    {
+        List<Callable<Object>> tasks;
+        int                    parts, p;
+        
+        parts = numberOfParts(n);
+        if ((this.pool == null) || (parts == 1))
+        {
+            for (p=0; p<parts; p++) task.run(p, (int)(((long)n*p)/parts), (int)(((long)n*(p+1))/parts));
+        }
+        else
+        {
+            tasks = new ArrayList<Callable<Object>>(parts);
+            for (p=0; p<parts; p++)
+            {
+                final int part  = p;
+                final int begin = (int)(((long)n*p)/parts);
+                final int end   = (int)(((long)n*(p+1))/parts);
+                tasks.add(new Callable<Object>()
+                {
+                    public Object call() throws LearnerException
+                    {
+                        task.run(part, begin, end);
+                        return(null);
+                    }
+                });
+            }
+            try
+            {
+                for(Future<Object> done: this.pool.invokeAll(tasks)) done.get();
+            }
+            catch(InterruptedException ex) { throw new LearnerException(ex); }
+            catch(ExecutionException ex)   { throw new LearnerException("K-Means training failed.", ex.getCause()); }
+        }
+    }
+    
+    private int getThreads()
+    {
+        if (this.numberOfThreads <= 0) return(Runtime.getRuntime().availableProcessors());
+        else                           return(this.numberOfThreads);
     }
     
     // **********************************************************\
@@ -196,6 +695,73 @@ public class KMeans extends ClassifierTransformation implements Classifier, Pers
         this.k = k;
     }
     
+    /**
+     * Set how the initial centroids are chosen.
+     * @param seeding SEED_RANDOM or SEED_KMEANSPP
+     * @throws ConfigException If the method is unknown
+     */
+    public void setSeeding(int seeding) throws ConfigException
+    {
+        if ((seeding != SEED_RANDOM) && (seeding != SEED_KMEANSPP)) throw new ConfigException("Unknown K-Means seeding method "+seeding);
+        this.seeding = seeding;
+    }
+    
+    public int getSeeding() { return(this.seeding); }
+    
+    /**
+     * Set how the instances are assigned to the nearest centroid. All methods give the same clusters.
+     * @param assignment ASSIGN_LLOYD, ASSIGN_HAMERLY or ASSIGN_ELKAN
+     * @throws ConfigException If the method is unknown
+     */
+    public void setAssignment(int assignment) throws ConfigException
+    {
+        if ((assignment != ASSIGN_LLOYD) && (assignment != ASSIGN_HAMERLY) && (assignment != ASSIGN_ELKAN))
+            throw new ConfigException("Unknown K-Means assignment method "+assignment);
+        this.assignment = assignment;
+    }
+    
+    public int getAssignment() { return(this.assignment); }
+    
+    /**
+     * Set the maximum number of iterations.
+     * @param maxIterations The maximum. 0 = iterate until no instance changes cluster.
+     */
+    public void setMaxIterations(int maxIterations)
+    {
+        this.maxIterations = maxIterations;
+    }
+    
+    /**
+     * Use mini-batches instead of all instances in every iteration.
+     * Each batch is a random sample of the training set. Only the batch is read, so
+     * the training set can be very large or produce its instances on demand.
+     * @param miniBatchSize Number of instances in a batch. 0 = use all instances.
+     * @param miniBatchIterations Number of batches
+     */
+    public void setMiniBatch(int miniBatchSize, int miniBatchIterations)
+    {
+        this.miniBatchSize       = miniBatchSize;
+        this.miniBatchIterations = miniBatchIterations;
+    }
+    
+    public void setRandomSeed(long randomSeed)
+    {
+        this.randomSeed = randomSeed;
+    }
+    
+    /**
+     * Set the number of threads for the assignment and centroid calculation.
+     * @param numberOfThreads The number of threads. 0 = number of processors.
+     */
+    public void setNumberOfThreads(int numberOfThreads)
+    {
+        this.numberOfThreads = numberOfThreads;
+    }
+    
+    public DoubleMatrix1D []getCentroids()    { return(this.centroid); }
+    public int               getNumberOfIterations() { return(this.itcount); }
+    public long              getDistanceCount()      { return(this.distanceCount); }
+    
     // **********************************************************\
     // *            Transformation/Flow Interface               *
     // **********************************************************/
@@ -294,5 +860,12 @@ public class KMeans extends ClassifierTransformation implements Classifier, Pers
         super();
         this.name        = "K-Means Clustering";
         this.description = "K-Means Clustering";
+        this.seeding             = SEED_KMEANSPP;
+        this.assignment          = ASSIGN_HAMERLY;
+        this.maxIterations       = 0;
+        this.miniBatchSize       = 0;
+        this.miniBatchIterations = 100;
+        this.randomSeed          = 1;
+        this.numberOfThreads     = 1;
     }
 }
\ No newline at end of file
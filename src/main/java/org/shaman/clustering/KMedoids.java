@@ -12,6 +12,16 @@
 \*********************************************************/
 package org.shaman.clustering;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
 import org.shaman.cbr.DistanceMatrix;
 import org.shaman.datamodel.Attribute;
 import org.shaman.datamodel.DataModel;
@@ -60,11 +70,37 @@ public class KMedoids extends ClassifierTransformation implements Classifier
     /** Maximum Distance Function */
     public static final int DISTANCE_MAXIMUM     = 4;
     
+    // The search algorithms
+    /** PAM. BUILD and SWAP on the histogram distance matrix. Evaluates each medoid/candidate pair separately. */
+    public static final int ALGORITHM_PAM     = 0;
+    /** FastPAM. Evaluates all medoids in one pass per candidate. Several swaps per iteration. Full distance matrix. */
+    public static final int ALGORITHM_FASTPAM = 1;
+    /** CLARA. FastPAM on random samples. The medoids with the lowest cost on all data are kept. */
+    public static final int ALGORITHM_CLARA   = 2;
+    /** CLARANS. Randomized search of swaps. Calculates the distances when needed. */
+    public static final int ALGORITHM_CLARANS = 3;
+    
+    // Relative improvement below which a swap is not made. Avoids swapping back and forth on rounding errors.
+    private static final double SWAP_EPSILON   = 1e-12;
+    // Number of random neighbors CLARANS evaluates at the same time
+    private static final int    CLARANS_BATCH  = 8;
+    // Number of parts the candidates are split in per thread
+    private static final int    PARTS_PER_THREAD = 4;
+    
     // Clustering Parameters
     private int     nr;                        // Number of clusters to find
+    private int     algorithm;                 // Search algorithm
+    private int     maxIterations;             // Maximum number of FastPAM swap iterations
+    private int     numberOfSamples;           // CLARA number of samples
+    private int     sampleSize;                // CLARA sample size. 0 = 40+2k
+    private int     numberOfLocal;             // CLARANS number of local searches
+    private int     maxNeighbor;               // CLARANS number of neighbors examined without improvement. 0 = 1.25% of k(n-k), at least 250
+    private long    randomSeed;                // Seed of CLARA and CLARANS sampling
+    private int     numberOfThreads;           // Number of threads evaluating the candidates. 0 = number of processors.
     private int     distanceType;              // Type of distance.
     private boolean ignoreMissingValues;       // Never use data containing missing values.
     private boolean attributeDistance;         // Use the distance function of the Attributes
+    private File    distanceMatrixFile;        // File backing the distance matrix. Or null.
     
     // Output
     private double         [][]medoidData;      // The medoids as raw double vector data
@@ -79,6 +115,8 @@ public class KMedoids extends ClassifierTransformation implements Classifier
     private DistanceMatrix dm;                 // The point-to-point distance cache
     private int            nrobjects;
     private int            nrfeatures;
+    private double           cost;             // Sum of the distances of the instances to their medoids
+    private transient ForkJoinPool pool;       // Evaluates the candidates during training. Or null.
     
     // *********************************************************\
     // *      K-Medoid Clustering as Classifier Interface      *
@@ -169,9 +207,27 @@ public class KMedoids extends ClassifierTransformation implements Classifier
     
     public void train() throws LearnerException
     {
-        buildMedoids();
-        swapMedoids();
-        createClusVector();
+        int threads;
+        
+        threads = getThreads();
+        if (threads > 1) this.pool = new ForkJoinPool(threads);
+        try
+        {
+            if (this.algorithm == ALGORITHM_PAM)
+            {
+                buildMedoids();
+                swapMedoids();
+            }
+            else if (this.algorithm == ALGORITHM_FASTPAM) medoids = fastPAM(dm, nrobjects);
+            else if (this.algorithm == ALGORITHM_CLARA)   clara();
+            else if (this.algorithm == ALGORITHM_CLARANS) clarans();
+            createClusVector();
+        }
+        finally
+        {
+            if (this.pool != null) this.pool.shutdown();
+            this.pool = null;
+        }
     }
     
     public Presenter getTrainSet()
@@ -199,6 +255,87 @@ public class KMedoids extends ClassifierTransformation implements Classifier
         nr = _nr;
     }
     
+    /**
+     * Set the search algorithm.
+     * @param _algorithm ALGORITHM_PAM, ALGORITHM_FASTPAM, ALGORITHM_CLARA or ALGORITHM_CLARANS
+     */
+    public void setAlgorithm(int _algorithm)
+    {
+        algorithm = _algorithm;
+    }
+    
+    public int getAlgorithm() { return(algorithm); }
+    
+    /**
+     * Set the maximum number of swap iterations of FastPAM.
+     * @param _maxIterations The maximum number of iterations
+     */
+    public void setMaxIterations(int _maxIterations)
+    {
+        maxIterations = _maxIterations;
+    }
+    
+    /**
+     * Set the sampling of CLARA.
+     * @param _numberOfSamples Number of samples clustered with FastPAM
+     * @param _sampleSize Number of instances in a sample. 0 = 40+2k.
+     */
+    public void setSampleParameters(int _numberOfSamples, int _sampleSize)
+    {
+        numberOfSamples = _numberOfSamples;
+        sampleSize      = _sampleSize;
+    }
+    
+    /**
+     * Set the randomized search of CLARANS.
+     * @param _numberOfLocal Number of local searches from random medoids
+     * @param _maxNeighbor Number of random swaps examined without improvement before a local search stops.
+     *                     0 = 1.25% of k(n-k), at least 250.
+     */
+    public void setSearchParameters(int _numberOfLocal, int _maxNeighbor)
+    {
+        numberOfLocal = _numberOfLocal;
+        maxNeighbor   = _maxNeighbor;
+    }
+    
+    public void setRandomSeed(long _randomSeed)
+    {
+        randomSeed = _randomSeed;
+    }
+    
+    /**
+     * Set the number of threads evaluating the swap candidates and calculating the distance matrix.
+     * @param _numberOfThreads The number of threads. 0 = number of processors.
+     */
+    public void setNumberOfThreads(int _numberOfThreads)
+    {
+        numberOfThreads = _numberOfThreads;
+    }
+    
+    private int getThreads()
+    {
+        if (numberOfThreads <= 0) return Runtime.getRuntime().availableProcessors();
+        else                      return numberOfThreads;
+    }
+    
+    /**
+     * Give the indices of the medoids in the training set.
+     * @return The medoid indices
+     */
+    public int []getMedoids()
+    {
+        return(medoids);
+    }
+    
+    /**
+     * Give the sum of the distances of the training instances to their nearest medoid.
+     * @return The cost of the clustering
+     */
+    public double getCost()
+    {
+        return(cost);
+    }
+    
     public void setDistanceParameters(int _distanceType, boolean _attributeDistance, boolean _ignoreMissingValues)
     {
         distanceType        = _distanceType;
@@ -206,6 +343,16 @@ public class KMedoids extends ClassifierTransformation implements Classifier
         ignoreMissingValues = _ignoreMissingValues;
     }
     
+    /**
+     * Keep the distance matrix in a memory-mapped file. When the file exists, it's used
+     * instead of calculating the distances again. It must have been made for the same training set.
+     * @param _distanceMatrixFile The file or null to keep the matrix on the heap.
+     */
+    public void setDistanceMatrixFile(File _distanceMatrixFile)
+    {
+        distanceMatrixFile = _distanceMatrixFile;
+    }
+    
     public void checkDataModelFit(int port, DataModel dataModel) throws ConfigException
     {
         int      []actind;
@@ -241,9 +388,19 @@ public class KMedoids extends ClassifierTransformation implements Classifier
         else if (distanceType == DISTANCE_MAXIMUM)     distance = Statistic.MAXIMUM;
         else throw new LearnerException("Unknown distance type found!");
         
-        // Create the histogram based Distance cache.
+        // PAM uses the histogram based Distance cache. FastPAM the float distance matrix.
+        // CLARA and CLARANS calculate the distances when needed. Re-use the distance matrix file if there is one.
+        int dmtype;
+        
+        if      (algorithm == ALGORITHM_PAM)     dmtype = DistanceMatrix.TYPE_HISTOGRAM;
+        else if (algorithm == ALGORITHM_FASTPAM) dmtype = DistanceMatrix.TYPE_FLOAT;
+        else                                     dmtype = DistanceMatrix.TYPE_NONE;
         dm = new DistanceMatrix();
-        dm.create(DistanceMatrix.TYPE_HISTOGRAM, distance, attributeDistance, ignoreMissingValues, trainData);
+        dm.setNumberOfThreads(numberOfThreads);
+        if      ((distanceMatrixFile == null) || (dmtype == DistanceMatrix.TYPE_NONE)) dm.create(dmtype, distance, attributeDistance, ignoreMissingValues, trainData);
+        else if (distanceMatrixFile.exists())   dm.load(distanceMatrixFile, distance, attributeDistance, ignoreMissingValues, trainData);
+        else                                    dm.create(dmtype, distance, attributeDistance, ignoreMissingValues, trainData, distanceMatrixFile);
+        if (dm.getType() != dmtype) throw new LearnerException("The distance matrix file does not have the type needed by the K-Medoids algorithm.");
         
         // Make some other training and output buffers.
         nrobjects      = trainData.getNumberOfInstances();
@@ -270,6 +427,13 @@ public class KMedoids extends ClassifierTransformation implements Classifier
         super();
         name        = "K-Medoids";
         description = "K-Medoids Clustering";
+        algorithm       = ALGORITHM_FASTPAM;
+        maxIterations   = 100;
+        numberOfSamples = 5;
+        sampleSize      = 0;
+        numberOfLocal   = 2;
+        maxNeighbor     = 0;
+        randomSeed      = 1;
     }
     
     
@@ -319,7 +483,7 @@ public class KMedoids extends ClassifierTransformation implements Classifier
                     {
                         if (!(VectorMath.isIn(medoids,j)) && (j!=i))
                         {
-                            distje = VectorMath.selectElements(dm.distanceTo(j), meds);
+                            distje = dm.distancesAsBin(j, meds);
                             Dj     = VectorMath.minElement(distje);
                             dij    = dm.distance(i,j);
                             Cj[i]  = Cj[i] + Math.max(0 , dm.distanceBin(Dj)-dij );
@@ -393,7 +557,7 @@ public class KMedoids extends ClassifierTransformation implements Classifier
             if (!VectorMath.isIn(medoids,j) || (j!=h)) //All the notselected objects IF the swap is carried out+the gain that the newly selected object has
             {
                 minposW[0] = 0;
-                byte[] distje = VectorMath.selectElements(dm.distanceTo(j), medoids);
+                byte[] distje = dm.distancesAsBin(j, medoids);
                 Dj  = dm.distanceBin(VectorMath.minElement(distje, minposW));
                 dij = dm.distance(j,i);
                 dhj = dm.distance(j,h);
@@ -414,24 +578,494 @@ public class KMedoids extends ClassifierTransformation implements Classifier
         return Cjih;
     }
     
+    // ************************************ FASTPAM ********************************************************** //
+    /*
+     * The nearest and second nearest medoid of every object.
+     */
+    private static class Assignment
+    {
+        int    []med;         // Object index of the medoids
+        int    []near;        // [j] = Medoid slot nearest to object j
+        double []dnear;       // [j] = Distance of object j to its nearest medoid
+        double []dsecond;     // [j] = Distance of object j to its second nearest medoid
+        double   cost;        // Sum of the distances to the nearest medoids
+    }
+    
+    private Assignment assign(final DistanceMatrix d, int n, int []med) throws LearnerException
+    {
+        final Assignment a;
+        List<Callable<Object>> tasks;
+        int                    parts, p, j;
+        
+        a         = new Assignment();
+        a.med     = med.clone();
+        a.near    = new int[n];
+        a.dnear   = new double[n];
+        a.dsecond = new double[n];
+        
+        // Find the 2 nearest medoids of each object. In parts of the objects.
+        parts = numberOfParts(n);
+        tasks = new ArrayList<Callable<Object>>(parts);
+        for (p=0; p<parts; p++)
+        {
+            final int begin = (int)(((long)n*p)/parts);
+            final int end   = (int)(((long)n*(p+1))/parts);
+            tasks.add(new Callable<Object>()
+            {
+                public Object call() throws LearnerException
+                {
+                    int    j, m;
+                    double dj;
+                    
+                    for (j=begin; j<end; j++)
+                    {
+                        a.near[j]    = 0;
+                        a.dnear[j]   = Double.POSITIVE_INFINITY;
+                        a.dsecond[j] = Double.POSITIVE_INFINITY;
+                        for (m=0; m<a.med.length; m++)
+                        {
+                            dj = d.distance(j, a.med[m]);
+                            if      (dj < a.dnear[j])   { a.dsecond[j] = a.dnear[j]; a.dnear[j] = dj; a.near[j] = m; }
+                            else if (dj < a.dsecond[j]) { a.dsecond[j] = dj; }
+                        }
+                    }
+                    return(null);
+                }
+            });
+        }
+        invoke(tasks);
+        
+        // Sum in object order. Same cost whatever the number of threads.
+        a.cost = 0;
+        for (j=0; j<n; j++) a.cost += a.dnear[j];
+        
+        return(a);
+    }
+    
+    private double []removalLoss(Assignment a, int n)
+    {
+        double []loss;
+        int      j;
+        
+        // The cost increase when a medoid is removed. Its objects move to their second nearest medoid.
+        loss = new double[a.med.length];
+        for (j=0; j<n; j++) loss[a.near[j]] += a.dsecond[j] - a.dnear[j];
+        
+        return(loss);
+    }
+    
+    private void swapDeltas(DistanceMatrix d, int n, Assignment a, double []loss, int c, double []delta) throws LearnerException
+    {
+        int    j, m;
+        double dj, acc;
+        
+        // The cost change of swapping each of the medoids with candidate c. One pass over the objects for all medoids.
+        System.arraycopy(loss, 0, delta, 0, loss.length);
+        acc = 0;
+        for (j=0; j<n; j++)
+        {
+            dj = d.distance(j, c);
+            if (dj < a.dnear[j])
+            {
+                // Object moves to the candidate. Whatever medoid is removed.
+                acc              += dj - a.dnear[j];
+                delta[a.near[j]] += a.dnear[j] - a.dsecond[j];
+            }
+            else if (dj < a.dsecond[j])
+            {
+                // Only when its nearest medoid is removed, the object moves to the candidate instead of the second nearest.
+                delta[a.near[j]] += dj - a.dsecond[j];
+            }
+        }
+        for (m=0; m<delta.length; m++) delta[m] += acc;
+    }
+    
+    private int []fastPAM(DistanceMatrix d, int n) throws LearnerException
+    {
+        int []med;
+        
+        med = fastBuild(d, n);
+        fastSwap(d, n, med);
+        
+        return(med);
+    }
+    
+    private int []fastBuild(final DistanceMatrix d, final int n) throws LearnerException
+    {
+        final int    []med;
+        final double []dn;
+        final double [][]bestPart;
+        List<Callable<Object>> tasks;
+        int                    parts, p, k, j;
+        double                 best;
+        
+        // Greedy BUILD. First the most central object. Then each time the object that decreases the cost most.
+        med = new int[Math.min(nr, n)];
+        dn  = new double[n];
+        for (j=0; j<n; j++) dn[j] = Double.POSITIVE_INFINITY;
+        parts    = numberOfParts(n);
+        bestPart = new double[parts][];
+        for (k=0; k<med.length; k++)
+        {
+            final int kbuild = k;
+            
+            tasks = new ArrayList<Callable<Object>>(parts);
+            for (p=0; p<parts; p++)
+            {
+                final int begin = (int)(((long)n*p)/parts);
+                final int end   = (int)(((long)n*(p+1))/parts);
+                final int part  = p;
+                tasks.add(new Callable<Object>()
+                {
+                    public Object call() throws LearnerException
+                    {
+                        int    c, j, m;
+                        double gain, dj, bestGain, bestCand;
+                        
+                        // Best candidate of this part. The first one when equal.
+                        bestGain = Double.NEGATIVE_INFINITY; bestCand = -1;
+                        for (c=begin; c<end; c++)
+                        {
+                            for (m=0; (m<kbuild) && (med[m] != c); m++);
+                            if (m < kbuild) continue;
+                            
+                            gain = 0;
+                            for (j=0; j<n; j++)
+                            {
+                                dj = d.distance(j, c);
+                                if   (kbuild == 0)  gain -= dj;
+                                else if (dj < dn[j]) gain += dn[j] - dj;
+                            }
+                            if (gain > bestGain) { bestGain = gain; bestCand = c; }
+                        }
+                        bestPart[part] = new double[]{bestGain, bestCand};
+                        return(null);
+                    }
+                });
+            }
+            invoke(tasks);
+            
+            best = Double.NEGATIVE_INFINITY; med[k] = -1;
+            for (p=0; p<parts; p++) if ((bestPart[p][1] != -1) && ((med[k] == -1) || (bestPart[p][0] > best))) { best = bestPart[p][0]; med[k] = (int)bestPart[p][1]; }
+            for (j=0; j<n; j++) dn[j] = Math.min(dn[j], d.distance(j, med[k]));
+        }
+        
+        return(med);
+    }
+    
+    private void fastSwap(final DistanceMatrix d, final int n, final int []med) throws LearnerException
+    {
+        Assignment             a;
+        double               []loss, delta;
+        final double       [][]partDelta;
+        final int          [][]partCand;
+        double               []bestDelta;
+        int                  []bestCand;
+        Integer              []order;
+        List<Callable<Object>> tasks;
+        boolean                swapped, first;
+        int                    iter, parts, p, m, k, c;
+        double                 threshold;
+        
+        k         = med.length;
+        parts     = numberOfParts(n);
+        partDelta = new double[parts][];
+        partCand  = new int[parts][];
+        bestDelta = new double[k];
+        bestCand  = new int[k];
+        delta     = new double[k];
+        swapped   = true;
+        for (iter=0; (iter<maxIterations) && swapped; iter++)
+        {
+            final Assignment aiter;
+            final double   []lossiter;
+            
+            a         = assign(d, n, med);
+            loss      = removalLoss(a, n);
+            aiter     = a;
+            lossiter  = loss;
+            threshold = -SWAP_EPSILON*a.cost;
+            
+            // For every medoid, the candidate that gives the largest decrease. Candidates in parts.
+            tasks = new ArrayList<Callable<Object>>(parts);
+            for (p=0; p<parts; p++)
+            {
+                final int begin = (int)(((long)n*p)/parts);
+                final int end   = (int)(((long)n*(p+1))/parts);
+                final int part  = p;
+                tasks.add(new Callable<Object>()
+                {
+                    public Object call() throws LearnerException
+                    {
+                        double []dcand, dbest;
+                        int    []cbest;
+                        int      c, m;
+                        
+                        dcand = new double[med.length];
+                        dbest = new double[med.length];
+                        cbest = new int[med.length];
+                        Arrays.fill(dbest, Double.POSITIVE_INFINITY);
+                        Arrays.fill(cbest, -1);
+                        for (c=begin; c<end; c++)
+                        {
+                            for (m=0; (m<med.length) && (med[m] != c); m++);
+                            if (m < med.length) continue;
+                            
+                            swapDeltas(d, n, aiter, lossiter, c, dcand);
+                            for (m=0; m<med.length; m++) if (dcand[m] < dbest[m]) { dbest[m] = dcand[m]; cbest[m] = c; }
+                        }
+                        partDelta[part] = dbest;
+                        partCand[part]  = cbest;
+                        return(null);
+                    }
+                });
+            }
+            invoke(tasks);
+            
+            // Combine the parts in order. The lowest candidate index wins when equal.
+            Arrays.fill(bestDelta, Double.POSITIVE_INFINITY);
+            Arrays.fill(bestCand, -1);
+            for (p=0; p<parts; p++)
+                for (m=0; m<k; m++) if (partDelta[p][m] < bestDelta[m]) { bestDelta[m] = partDelta[p][m]; bestCand[m] = partCand[p][m]; }
+            
+            // Make the best swaps, starting with the largest decrease. After the first swap, check the others again.
+            order = new Integer[k];
+            for (m=0; m<k; m++) order[m] = m;
+            final double []bestDeltaSort = bestDelta;
+            Arrays.sort(order, new java.util.Comparator<Integer>()
+            {
+                public int compare(Integer m1, Integer m2) { return(Double.compare(bestDeltaSort[m1], bestDeltaSort[m2])); }
+            });
+            swapped = false;
+            first   = true;
+            for (Integer mbest: order)
+            {
+                m = mbest;
+                c = bestCand[m];
+                if ((c == -1) || !(bestDelta[m] < threshold)) break;
+                if (!first)
+                {
+                    for (p=0; (p<k) && (med[p] != c); p++);
+                    if (p < k) continue;
+                    a    = assign(d, n, med);
+                    loss = removalLoss(a, n);
+                    swapDeltas(d, n, a, loss, c, delta);
+                    if (!(delta[m] < -SWAP_EPSILON*a.cost)) continue;
+                }
+                med[m]  = c;
+                swapped = true;
+                first   = false;
+            }
+        }
+    }
+    
+    // ************************************ CLARA ************************************************************ //
+    private void clara() throws LearnerException
+    {
+        Random         ran;
+        Presenter      sample;
+        DistanceMatrix dmsample;
+        boolean      []chosen;
+        int          []ind, smed, med;
+        int            s, r, i, num, m;
+        double         costnow, costbest;
+        
+        // Sample size. All instances when there are not many.
+        s = (sampleSize > 0) ? sampleSize : 40 + 2*nr;
+        s = Math.min(s, nrobjects);
+        
+        ran      = new Random(randomSeed);
+        costbest = Double.POSITIVE_INFINITY;
+        for (r=0; r<numberOfSamples; r++)
+        {
+            // Draw a sample. Always include the best medoids so far.
+            chosen = new boolean[nrobjects];
+            num    = 0;
+            if (r > 0) for (m=0; m<nr; m++) if (!chosen[medoids[m]]) { chosen[medoids[m]] = true; num++; }
+            while (num < s)
+            {
+                i = ran.nextInt(nrobjects);
+                if (!chosen[i]) { chosen[i] = true; num++; }
+            }
+            ind = new int[s];
+            for (i=0, num=0; i<nrobjects; i++) if (chosen[i]) ind[num++] = i;
+            
+            // FastPAM on the sample.
+            try { sample = (Presenter)trainData.clone(); }
+            catch(CloneNotSupportedException ex) { throw new LearnerException(ex); }
+            sample.reorder(ind);
+            dmsample = new DistanceMatrix();
+            dmsample.setNumberOfThreads(numberOfThreads);
+            dmsample.create(DistanceMatrix.TYPE_FLOAT, distance, attributeDistance, ignoreMissingValues, sample);
+            smed = fastPAM(dmsample, s);
+            
+            // Keep the medoids with the lowest cost on all instances.
+            med = new int[smed.length];
+            for (m=0; m<smed.length; m++) med[m] = ind[smed[m]];
+            costnow = assign(dm, nrobjects, med).cost;
+            if (costnow < costbest) { costbest = costnow; medoids = med; }
+        }
+    }
+    
+    // ************************************ CLARANS ********************************************************** //
+    private void clarans() throws LearnerException
+    {
+        Random         ran;
+        Assignment     a;
+        double       []loss;
+        int          []med, best, cand, slot;
+        final double []pairDelta;
+        int            maxnb, l, j, b, m, c, numpair;
+        double         costbest;
+        
+        maxnb = maxNeighbor;
+        if (maxnb <= 0) maxnb = Math.max(250, (int)(0.0125*nr*(nrobjects-nr)));
+        
+        ran       = new Random(randomSeed);
+        best      = null;
+        costbest  = Double.POSITIVE_INFINITY;
+        cand      = new int[CLARANS_BATCH];
+        slot      = new int[CLARANS_BATCH];
+        pairDelta = new double[CLARANS_BATCH];
+        for (l=0; l<numberOfLocal; l++)
+        {
+            // Start from random medoids.
+            med = randomMedoids(ran);
+            a   = assign(dm, nrobjects, med);
+            
+            // Examine random swaps. Move to the first one that decreases the cost.
+            j = 0;
+            while (j < maxnb)
+            {
+                final Assignment abatch;
+                final double   []lbatch;
+                List<Callable<Object>> tasks;
+                
+                // A batch of random neighbors. The same ones whatever the number of threads.
+                numpair = Math.min(CLARANS_BATCH, maxnb - j);
+                for (b=0; b<numpair; b++)
+                {
+                    slot[b] = ran.nextInt(med.length);
+                    do { c = ran.nextInt(nrobjects); } while (isMedoid(med, c));
+                    cand[b] = c;
+                }
+                loss   = removalLoss(a, nrobjects);
+                abatch = a;
+                lbatch = loss;
+                tasks  = new ArrayList<Callable<Object>>(numpair);
+                for (b=0; b<numpair; b++)
+                {
+                    final int pair = b;
+                    final int cb   = cand[b];
+                    final int mb   = slot[b];
+                    tasks.add(new Callable<Object>()
+                    {
+                        public Object call() throws LearnerException
+                        {
+                            double []delta = new double[abatch.med.length];
+                            
+                            swapDeltas(dm, nrobjects, abatch, lbatch, cb, delta);
+                            pairDelta[pair] = delta[mb];
+                            return(null);
+                        }
+                    });
+                }
+                invoke(tasks);
+                
+                for (b=0; b<numpair; b++)
+                {
+                    j++;
+                    if (pairDelta[b] < -SWAP_EPSILON*a.cost)
+                    {
+                        med[slot[b]] = cand[b];
+                        a            = assign(dm, nrobjects, med);
+                        j            = 0;
+                        break;
+                    }
+                }
+            }
+            if (a.cost < costbest) { costbest = a.cost; best = med; }
+        }
+        medoids = best;
+    }
+    
+    private int []randomMedoids(Random ran)
+    {
+        int []med;
+        int   m, c;
+        
+        med = new int[Math.min(nr, nrobjects)];
+        for (m=0; m<med.length; m++)
+        {
+            do { c = ran.nextInt(nrobjects); } while (isMedoid(med, c, m));
+            med[m] = c;
+        }
+        
+        return(med);
+    }
+    
+    private static boolean isMedoid(int []med, int c)
+    {
+        return(isMedoid(med, c, med.length));
+    }
+    
+    private static boolean isMedoid(int []med, int c, int num)
+    {
+        int m;
+        
+        for (m=0; (m<num) && (med[m] != c); m++);
+        
+        return(m < num);
+    }
+    
+    // ********************************** CANDIDATE EVALUATION ********************************************* //
+    private int numberOfParts(int n)
+    {
+        if (this.pool == null) return(1);
+        else                   return(Math.max(1, Math.min(n, getThreads()*PARTS_PER_THREAD)));
+    }
+    
+    private void invoke(List<Callable<Object>> tasks) throws LearnerException
+    {
+        if ((this.pool == null) || (tasks.size() == 1))
+        {
+            try
+            {
+                for (Callable<Object> task: tasks) task.call();
+            }
+            catch(LearnerException ex) { throw ex; }
+            catch(Exception ex)        { throw new LearnerException(ex); }
+        }
+        else
+        {
+            try
+            {
+                for(Future<Object> done: this.pool.invokeAll(tasks)) done.get();
+            }
+            catch(InterruptedException ex) { throw new LearnerException(ex); }
+            catch(ExecutionException ex)   { throw new LearnerException("K-Medoids candidate evaluation failed.", ex.getCause()); }
+        }
+    }
+    
     // *********************************** CLUSVECTOR ******************************************************** //
     private void createClusVector() throws LearnerException
     {
-        int  i;
-        int []minposW = new int[1];
+        int    i, m;
+        double d, dmin;
         
-        // Find the cluster for the train data...
+        // Find the cluster for the train data. The nearest medoid.
+        cost = 0;
         for(i=0 ; i<nrobjects; i++)
         {
-            minposW[0] = 0;
-            if(VectorMath.isIn(medoids, i, minposW)) clusvector[i] = minposW[0];
-            else
+            clusvector[i] = -1;
+            dmin          = Double.POSITIVE_INFINITY;
+            for (m=0; m<nr; m++)
             {
-                //byte[] distje = VectorMath.selectElements(dm.distanceTo(i), medoids);
-                minposW[0] = 0;
-                //int minval = VectorMath.minElement(distje, minposW);
-                clusvector[i] = minposW[0];
+                if (this.primitive) d = dm.distance(trainData.getInstance(medoids[m]),       trainData.getInstance(i));
+                else                d = dm.distance(trainData.getObjectInstance(medoids[m]), trainData.getObjectInstance(i));
+                if (d < dmin) { dmin = d; clusvector[i] = m; }
             }
+            if (clusvector[i] != -1) cost += dmin;
         }
         
         // Make the clusters
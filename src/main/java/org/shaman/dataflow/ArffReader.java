@@ -0,0 +1,735 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.dataflow;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.shaman.datamodel.AttributeDouble;
+import org.shaman.datamodel.DataModelDouble;
+import org.shaman.exceptions.ConfigException;
+import org.shaman.exceptions.DataFlowException;
+import org.shaman.exceptions.DataModelException;
+
+
+/**
+ * <h2>ARFF File Reader</h2>
+ * Single-pass reader for Weka's Attribute-Relation File Format.
+ * Makes a DataModelDouble from the header and then reads the data
+ * one row at a time into a given double array. Dense and sparse
+ * (<code>{index value, ...}</code>) rows and instance weights
+ * (<code>,{weight}</code>) are supported. <p>
+ * Numeric attributes become continuous attributes. Nominal attributes
+ * become categorical attributes with the values 0, 1, 2, ... in the order
+ * of their declaration, as in Weka. Missing values (<code>?</code>) become NaN. <p>
+ * The file is read in large blocks through a NIO channel and the values are
+ * parsed straight from the bytes, so no Strings are made for the data.
+ * String, date and relational attributes are not supported.
+ */
+
+// **********************************************************\
+// *               Streaming ARFF File Parser               *
+// **********************************************************/
+public class ArffReader
+{
+    /** Make the last attribute the goal. */
+    public static final int GOAL_LAST = -1;
+    /** No goal attribute. */
+    public static final int GOAL_NONE = -2;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // Exact powers of ten for the fast number parsing path
+    private static final double []POW10 = new double[]
+    {
+        1e0,  1e1,  1e2,  1e3,  1e4,  1e5,  1e6,  1e7,  1e8,  1e9,  1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private File                file;          // The ARFF file. Or
+    private InputStream         input;         // a stream on the ARFF data.
+    private int                 goalIndex;     // Index of the goal attribute, GOAL_LAST or GOAL_NONE
+    private String              goalName;      // Name of the goal attribute. Has priority over the index.
+
+    // Header
+    private String              relation;      // Name of the relation
+    private DataModelDouble     dataModel;     // The DataModel made from the header
+    private SymbolTable       []nominal;       // [i] = Values of nominal attribute i. null if numeric.
+
+    // Input
+    private ReadableByteChannel channel;
+    private byte              []buf;           // Input buffer. Valid data between pos and lim.
+    private int                 pos, lim;
+    private boolean             eof;
+    private long                line;          // Current line number. For error messages.
+    private double              weight;        // Weight of the last row read
+
+    // **********************************************************\
+    // *                Nominal Value Lookup                    *
+    // **********************************************************/
+    /**
+     * Hash table from the UTF-8 bytes of nominal values to their index.
+     */
+    private static final class SymbolTable
+    {
+        private String  []value;
+        private byte    [][]sym;
+        private int     []table;     // Open addressing. Symbol index + 1. 0 is empty.
+        private int       mask;
+
+        SymbolTable(String []value)
+        {
+            int i, size, slot;
+
+            this.value = value;
+            this.sym   = new byte[value.length][];
+            size       = 4;
+            while (size < value.length*2) size <<= 1;
+            this.table = new int[size];
+            this.mask  = size-1;
+            for (i=0; i<value.length; i++)
+            {
+                this.sym[i] = utf8(value[i]);
+                slot        = hash(this.sym[i], 0, this.sym[i].length) & this.mask;
+                while (this.table[slot] != 0) slot = (slot+1) & this.mask;
+                this.table[slot] = i+1;
+            }
+        }
+
+        int find(byte []b, int off, int len)
+        {
+            int slot, ind;
+
+            slot = hash(b, off, len) & this.mask;
+            while ((ind = this.table[slot]) != 0)
+            {
+                if (equal(this.sym[ind-1], b, off, len)) return(ind-1);
+                slot = (slot+1) & this.mask;
+            }
+
+            return(-1);
+        }
+
+        private static int hash(byte []b, int off, int len)
+        {
+            int h, i;
+
+            h = 0;
+            for (i=off; i<off+len; i++) h = 31*h + b[i];
+
+            return(h ^ (h >>> 16));
+        }
+
+        private static boolean equal(byte []sym, byte []b, int off, int len)
+        {
+            int i;
+
+            if (sym.length != len) return(false);
+            for (i=0; i<len; i++) if (sym[i] != b[off+i]) return(false);
+
+            return(true);
+        }
+    }
+
+    // **********************************************************\
+    // *                     Header Parsing                     *
+    // **********************************************************/
+    /**
+     * Open the file and read the header. Makes the DataModel.
+     * @throws ConfigException If the file cannot be opened or the header cannot be understood.
+     */
+    public void open() throws ConfigException
+    {
+        String    hline, low;
+        ArrayList attname, attnom;
+        boolean   data;
+
+        try
+        {
+            if      (this.file  != null) this.channel = new FileInputStream(this.file).getChannel();
+            else if (this.input != null) this.channel = Channels.newChannel(this.input);
+            else throw new ConfigException("Please specify the ARFF file or an inputstream.");
+
+            this.buf  = new byte[BUFFER_SIZE];
+            this.pos  = 0;
+            this.lim  = 0;
+            this.eof  = false;
+            this.line = 0;
+
+            // Read the declarations up to the @data line.
+            attname = new ArrayList();
+            attnom  = new ArrayList();
+            data    = false;
+            while (!data && ((hline = readHeaderLine()) != null))
+            {
+                low = hline.toLowerCase();
+                if      (low.startsWith("@relation"))  this.relation = unquote(hline.substring(9).trim());
+                else if (low.startsWith("@attribute")) parseAttribute(hline.substring(10).trim(), attname, attnom);
+                else if (low.startsWith("@data"))      data = true;
+                else throw new ConfigException("Cannot understand ARFF header line "+this.line+" : '"+hline+"'");
+            }
+            if (!data)              throw new ConfigException("No @data section found in the ARFF file.");
+            if (attname.size() == 0) throw new ConfigException("No attributes declared in the ARFF file.");
+
+            makeDataModel(attname, attnom);
+        }
+        catch(IOException ex)        { throw new ConfigException(ex); }
+        catch(DataModelException ex) { throw new ConfigException(ex); }
+    }
+
+    private void parseAttribute(String decl, ArrayList attname, ArrayList attnom) throws ConfigException
+    {
+        String []nt;
+        String   type, low;
+
+        nt   = splitName(decl);
+        type = nt[1].trim();
+        low  = type.toLowerCase();
+        attname.add(nt[0]);
+        if      (type.startsWith("{"))
+        {
+            if (!type.endsWith("}")) throw new ConfigException("Unterminated nominal values of attribute '"+nt[0]+"' on line "+this.line);
+            attnom.add(splitValues(type.substring(1, type.length()-1)));
+        }
+        else if (low.equals("numeric") || low.equals("real") || low.equals("integer")) attnom.add(null);
+        else throw new ConfigException("Unsupported type '"+type+"' of attribute '"+nt[0]+"' on line "+this.line);
+    }
+
+    private void makeDataModel(ArrayList attname, ArrayList attnom) throws DataModelException, ConfigException
+    {
+        AttributeDouble atdnow;
+        String        []val;
+        double        []leg;
+        int             i, j, goal;
+
+        this.dataModel = new DataModelDouble(this.relation != null ? this.relation : "ARFF DataModel", attname.size());
+        this.nominal   = new SymbolTable[attname.size()];
+        for (i=0; i<attname.size(); i++)
+        {
+            atdnow = this.dataModel.getAttributeDouble(i);
+            atdnow.setName((String)attname.get(i));
+            val = (String [])attnom.get(i);
+            if (val != null)
+            {
+                leg = new double[val.length];
+                for (j=0; j<leg.length; j++) leg[j] = j;
+                atdnow.initAsSymbolCategorical(leg);
+                this.nominal[i] = new SymbolTable(val);
+            }
+            else atdnow.initAsNumberContinuous();
+            atdnow.setIsActive(true);
+        }
+
+        // Install the goal attribute
+        if (this.goalName != null)
+        {
+            goal = attname.indexOf(this.goalName);
+            if (goal == -1) throw new ConfigException("Cannot find goal attribute '"+this.goalName+"' in the ARFF file.");
+        }
+        else if (this.goalIndex == GOAL_LAST) goal = attname.size()-1;
+        else                                  goal = this.goalIndex;
+        if (goal >= attname.size()) throw new ConfigException("Goal index "+goal+" out of range. The ARFF file has "+attname.size()+" attributes.");
+        if (goal >= 0)
+        {
+            atdnow = this.dataModel.getAttributeDouble(goal);
+            atdnow.setIsActive(false);
+            if (this.nominal[goal] != null) atdnow.setValuesAsGoal();
+            else                            atdnow.setAsGoal();
+            this.dataModel.getLearningProperty().setGoal(goal);
+        }
+    }
+
+    private String readHeaderLine() throws IOException
+    {
+        String hline;
+        int    eol;
+
+        // Skip empty lines and comments.
+        hline = null;
+        while ((hline == null) && ((eol = nextLine()) != -1))
+        {
+            hline    = new String(this.buf, this.pos, eol-this.pos, "UTF-8").trim();
+            this.pos = eol+1;
+            if ((hline.length() == 0) || (hline.charAt(0) == '%')) hline = null;
+        }
+
+        return(hline);
+    }
+
+    // Split a declaration in a (quoted) name and the rest.
+    private String []splitName(String decl) throws ConfigException
+    {
+        int end;
+
+        if ((decl.length() > 0) && ((decl.charAt(0) == '\'') || (decl.charAt(0) == '"')))
+        {
+            end = decl.indexOf(decl.charAt(0), 1);
+            while ((end > 0) && (decl.charAt(end-1) == '\\')) end = decl.indexOf(decl.charAt(0), end+1);
+            if (end == -1) throw new ConfigException("Unterminated quote on ARFF header line "+this.line);
+            return(new String[]{unescape(decl.substring(1, end)), decl.substring(end+1)});
+        }
+        else
+        {
+            end = 0;
+            while ((end < decl.length()) && !Character.isWhitespace(decl.charAt(end))) end++;
+            if (end == decl.length()) throw new ConfigException("Missing attribute type on ARFF header line "+this.line);
+            return(new String[]{decl.substring(0, end), decl.substring(end)});
+        }
+    }
+
+    private String []splitValues(String list) throws ConfigException
+    {
+        ArrayList val;
+        String    rest;
+        String  []nt;
+        int       com;
+
+        val  = new ArrayList();
+        rest = list.trim();
+        while (rest.length() > 0)
+        {
+            if ((rest.charAt(0) == '\'') || (rest.charAt(0) == '"'))
+            {
+                nt   = splitName(rest+" ");
+                val.add(nt[0]);
+                rest = nt[1].trim();
+                if (rest.startsWith(",")) rest = rest.substring(1).trim();
+            }
+            else
+            {
+                com = rest.indexOf(',');
+                if (com == -1) { val.add(rest.trim()); rest = ""; }
+                else           { val.add(rest.substring(0, com).trim()); rest = rest.substring(com+1).trim(); }
+            }
+        }
+
+        return((String [])val.toArray(new String[val.size()]));
+    }
+
+    private static String unquote(String s)
+    {
+        if ((s.length() >= 2) && ((s.charAt(0) == '\'') || (s.charAt(0) == '"')) && (s.charAt(s.length()-1) == s.charAt(0)))
+            return(unescape(s.substring(1, s.length()-1)));
+        else return(s);
+    }
+
+    private static String unescape(String s)
+    {
+        StringBuffer sb;
+        int          i;
+        char         c;
+
+        if (s.indexOf('\\') == -1) return(s);
+        sb = new StringBuffer();
+        for (i=0; i<s.length(); i++)
+        {
+            c = s.charAt(i);
+            if ((c == '\\') && (i+1 < s.length()))
+            {
+                c = s.charAt(++i);
+                if      (c == 'n') c = '\n';
+                else if (c == 't') c = '\t';
+                else if (c == 'r') c = '\r';
+            }
+            sb.append(c);
+        }
+
+        return(sb.toString());
+    }
+
+    private static byte []utf8(String s)
+    {
+        try
+        {
+            return(s.getBytes("UTF-8"));
+        }
+        catch(java.io.UnsupportedEncodingException ex) { throw new IllegalStateException(ex.getMessage()); }
+    }
+
+    // **********************************************************\
+    // *                      Data Parsing                      *
+    // **********************************************************/
+    /**
+     * Read the next data row.
+     * @param row Array with the length of the number of attributes to put the values in.
+     * @return <code>false</code> if there are no more rows.
+     * @throws DataFlowException If the row cannot be read or parsed.
+     */
+    public boolean readRow(double []row) throws DataFlowException
+    {
+        return(readRow(row, 0));
+    }
+
+    /**
+     * Read the next data row into a part of the given array.
+     * @param data The array to put the values in
+     * @param off The position of the first attribute's value in the array
+     * @return <code>false</code> if there are no more rows.
+     * @throws DataFlowException If the row cannot be read or parsed.
+     */
+    public boolean readRow(double []data, int off) throws DataFlowException
+    {
+        int     eol, end;
+        boolean found;
+
+        try
+        {
+            found = false;
+            while (!found && ((eol = nextLine()) != -1))
+            {
+                // Skip blanks, empty lines and comments
+                while ((this.pos < eol) && isBlank(this.buf[this.pos])) this.pos++;
+                end = eol;
+                while ((end > this.pos) && isBlank(this.buf[end-1])) end--;
+                if ((end > this.pos) && (this.buf[this.pos] != '%'))
+                {
+                    this.weight = 1.0;
+                    if (this.buf[this.pos] == '{') parseSparse(data, off, this.pos, end);
+                    else                           parseDense(data, off, this.pos, end);
+                    found = true;
+                }
+                this.pos = eol+1;
+            }
+        }
+        catch(IOException ex) { throw new DataFlowException(ex); }
+
+        return(found);
+    }
+
+    /**
+     * Give the weight of the last row read. 1 if the row had no weight.
+     * @return The weight.
+     */
+    public double getWeight() { return(this.weight); }
+
+    private void parseDense(double []data, int off, int p, int end) throws DataFlowException
+    {
+        int i, numatt;
+
+        numatt = this.nominal.length;
+        for (i=0; i<numatt; i++)
+        {
+            if (p >= end) throw new DataFlowException("Line "+this.line+" has "+i+" values. Expected "+numatt+".");
+            p = parseValue(data, off, i, p, end);
+            p = skipSeparator(p, end, i == numatt-1);
+        }
+        if (p < end) p = parseWeight(p, end);
+    }
+
+    private void parseSparse(double []data, int off, int p, int end) throws DataFlowException
+    {
+        int ind;
+
+        // Values that are not mentioned are 0. The first value for nominal attributes.
+        Arrays.fill(data, off, off+this.nominal.length, 0);
+        p++;
+        p = skipBlanks(p, end);
+        while ((p < end) && (this.buf[p] != '}'))
+        {
+            ind = 0;
+            if (!isDigit(this.buf[p])) throw new DataFlowException("Attribute index expected on line "+this.line);
+            while ((p < end) && isDigit(this.buf[p])) { ind = ind*10 + (this.buf[p]-'0'); p++; }
+            if (ind >= this.nominal.length) throw new DataFlowException("Attribute index "+ind+" out of range on line "+this.line);
+            p = skipBlanks(p, end);
+            p = parseValue(data, off, ind, p, end);
+            p = skipBlanks(p, end);
+            if ((p < end) && (this.buf[p] == ',')) p = skipBlanks(p+1, end);
+        }
+        if (p >= end) throw new DataFlowException("Unterminated sparse row on line "+this.line);
+        p = skipBlanks(p+1, end);
+        if ((p < end) && (this.buf[p] == ',')) p = parseWeight(skipBlanks(p+1, end), end);
+        else if (p < end) throw new DataFlowException("Unexpected data after sparse row on line "+this.line);
+    }
+
+    private int parseWeight(int p, int end) throws DataFlowException
+    {
+        int close;
+
+        if (this.buf[p] != '{') throw new DataFlowException("Too many values on line "+this.line);
+        close = p+1;
+        while ((close < end) && (this.buf[close] != '}')) close++;
+        if (close == end) throw new DataFlowException("Unterminated instance weight on line "+this.line);
+        this.weight = parseNumber(p+1, close);
+
+        return(skipBlanks(close+1, end));
+    }
+
+    private int parseValue(double []data, int off, int att, int p, int end) throws DataFlowException
+    {
+        int  beg, stop, ind;
+        byte q;
+
+        // Find the extent of the value. Quoted or up to the next separator.
+        if ((this.buf[p] == '\'') || (this.buf[p] == '"'))
+        {
+            q    = this.buf[p];
+            beg  = p+1;
+            stop = beg;
+            while ((stop < end) && (this.buf[stop] != q)) stop += (this.buf[stop] == '\\') ? 2 : 1;
+            if (stop >= end) throw new DataFlowException("Unterminated quote on line "+this.line);
+            p = stop+1;
+        }
+        else
+        {
+            beg  = p;
+            stop = p;
+            while ((stop < end) && (this.buf[stop] != ',') && (this.buf[stop] != '}') && !isBlank(this.buf[stop])) stop++;
+            p = stop;
+            if ((stop-beg == 1) && (this.buf[beg] == '?')) { data[off+att] = Double.NaN; return(p); }
+        }
+        if (stop == beg) throw new DataFlowException("Empty value for attribute "+att+" on line "+this.line);
+
+        if (this.nominal[att] == null) data[off+att] = parseNumber(beg, stop);
+        else
+        {
+            ind = this.nominal[att].find(this.buf, beg, stop-beg);
+            if ((ind == -1) && (q(beg) != 0)) ind = findEscaped(att, beg, stop);
+            if (ind == -1) throw new DataFlowException("Unknown value '"+new String(this.buf, beg, stop-beg)+"' of attribute '"+
+                                                       this.dataModel.getAttribute(att).getName()+"' on line "+this.line);
+            data[off+att] = ind;
+        }
+
+        return(p);
+    }
+
+    // Slow path for quoted nominal values containing escapes
+    private byte q(int beg) { return((beg > 0) && ((this.buf[beg-1] == '\'') || (this.buf[beg-1] == '"')) ? this.buf[beg-1] : 0); }
+
+    private int findEscaped(int att, int beg, int stop)
+    {
+        String val;
+        int    i;
+
+        try
+        {
+            val = unescape(new String(this.buf, beg, stop-beg, "UTF-8"));
+        }
+        catch(java.io.UnsupportedEncodingException ex) { return(-1); }
+        for (i=0; i<this.nominal[att].value.length; i++) if (this.nominal[att].value[i].equals(val)) return(i);
+
+        return(-1);
+    }
+
+    private int skipSeparator(int p, int end, boolean last) throws DataFlowException
+    {
+        p = skipBlanks(p, end);
+        if (p < end)
+        {
+            if (this.buf[p] == ',') p = skipBlanks(p+1, end);
+            else if (!last) throw new DataFlowException("Separator expected on line "+this.line);
+        }
+
+        return(p);
+    }
+
+    private int skipBlanks(int p, int end)
+    {
+        while ((p < end) && isBlank(this.buf[p])) p++;
+        return(p);
+    }
+
+    private static boolean isBlank(byte b) { return((b == ' ') || (b == '\t') || (b == '\r')); }
+    private static boolean isDigit(byte b) { return((b >= '0') && (b <= '9')); }
+
+    /**
+     * Parse a decimal number from the input buffer. Numbers with at most 15 significant digits
+     * and small exponents are converted exactly without making a String, as in Double.parseDouble().
+     */
+    private double parseNumber(int beg, int end) throws DataFlowException
+    {
+        int     p, exp, ndig, nall, esign, eval;
+        long    mant;
+        boolean neg, fast;
+        double  val;
+
+        p    = beg;
+        neg  = false;
+        if ((p < end) && ((this.buf[p] == '-') || (this.buf[p] == '+'))) { neg = (this.buf[p] == '-'); p++; }
+
+        mant = 0; exp = 0; ndig = 0; nall = 0; fast = true;
+        while ((p < end) && isDigit(this.buf[p]))
+        {
+            if (mant < 100000000000000000L) { mant = mant*10 + (this.buf[p]-'0'); if (mant != 0) ndig++; }
+            else                              { exp++; fast = false; }
+            nall++; p++;
+        }
+        if ((p < end) && (this.buf[p] == '.'))
+        {
+            p++;
+            while ((p < end) && isDigit(this.buf[p]))
+            {
+                if (mant < 100000000000000000L) { mant = mant*10 + (this.buf[p]-'0'); exp--; if (mant != 0) ndig++; }
+                else fast = false;
+                nall++; p++;
+            }
+        }
+        if ((p < end) && ((this.buf[p] == 'e') || (this.buf[p] == 'E')))
+        {
+            p++;
+            esign = 1;
+            if ((p < end) && ((this.buf[p] == '-') || (this.buf[p] == '+'))) { if (this.buf[p] == '-') esign = -1; p++; }
+            eval = 0;
+            if ((p == end) || !isDigit(this.buf[p])) fast = false;
+            while ((p < end) && isDigit(this.buf[p])) { if (eval < 10000) eval = eval*10 + (this.buf[p]-'0'); p++; }
+            exp += esign*eval;
+        }
+
+        // Exact when the mantissa and the power of ten are both exact doubles.
+        if (fast && (p == end) && (nall > 0) && (ndig <= 15) && (exp >= -22) && (exp <= 22))
+        {
+            val = (double)mant;
+            if (exp < 0) val /= POW10[-exp];
+            else         val *= POW10[exp];
+            if (neg) val = -val;
+        }
+        else
+        {
+            try
+            {
+                val = Double.parseDouble(new String(this.buf, beg, end-beg, "US-ASCII"));
+            }
+            catch(NumberFormatException ex)                  { throw new DataFlowException("Cannot parse number '"+new String(this.buf, beg, end-beg)+"' on line "+this.line); }
+            catch(java.io.UnsupportedEncodingException ex) { throw new DataFlowException(ex); }
+        }
+
+        return(val);
+    }
+
+    // **********************************************************\
+    // *                    Buffered Input                      *
+    // **********************************************************/
+    /**
+     * Make sure a complete line starts at pos.
+     * @return The position of the end of the line. -1 if there is no more input.
+     */
+    private int nextLine() throws IOException
+    {
+        int     eol, scan;
+
+        scan = this.pos;
+        while (true)
+        {
+            for (eol=scan; eol<this.lim; eol++) if (this.buf[eol] == '\n') { this.line++; return(eol); }
+
+            if (this.eof)
+            {
+                // Last line without end of line character
+                if (this.pos < this.lim)
+                {
+                    this.line++;
+                    if (this.lim == this.buf.length) grow();
+                    this.buf[this.lim] = '\n';
+                    return(this.lim++);
+                }
+                return(-1);
+            }
+
+            // Move the partial line to the front and read more.
+            scan = this.lim - this.pos;
+            if (this.pos > 0)
+            {
+                System.arraycopy(this.buf, this.pos, this.buf, 0, this.lim-this.pos);
+                this.lim -= this.pos;
+                this.pos  = 0;
+            }
+            else if (this.lim == this.buf.length) grow();
+            fill();
+        }
+    }
+
+    private void fill() throws IOException
+    {
+        ByteBuffer bb;
+        int        n;
+
+        bb = ByteBuffer.wrap(this.buf, this.lim, this.buf.length-this.lim);
+        n  = this.channel.read(bb);
+        if (n == -1) this.eof = true;
+        else         this.lim += n;
+    }
+
+    private void grow()
+    {
+        byte []bufnew;
+
+        bufnew = new byte[this.buf.length*2];
+        System.arraycopy(this.buf, 0, bufnew, 0, this.lim);
+        this.buf = bufnew;
+    }
+
+    /**
+     * Close the file.
+     * @throws DataFlowException If closing failed.
+     */
+    public void close() throws DataFlowException
+    {
+        try
+        {
+            if (this.channel != null) this.channel.close();
+            this.channel = null;
+        }
+        catch(IOException ex) { throw new DataFlowException(ex); }
+    }
+
+    // **********************************************************\
+    // *                    Parameters / Header                 *
+    // **********************************************************/
+    /**
+     * Set the goal attribute by index.
+     * @param goalIndex The index of the goal attribute, <code>GOAL_LAST</code> or <code>GOAL_NONE</code>
+     */
+    public void setGoalIndex(int goalIndex) { this.goalIndex = goalIndex; this.goalName = null; }
+
+    /**
+     * Set the goal attribute by name.
+     * @param goalName The name of the goal attribute as declared in the ARFF file.
+     */
+    public void setGoalName(String goalName) { this.goalName = goalName; }
+
+    public DataModelDouble getDataModel() { return(this.dataModel); }
+    public int             getNumberOfAttributes() { return(this.nominal.length); }
+    public String          getRelation()  { return(this.relation); }
+
+    /**
+     * Give the values of a nominal attribute in the order of the header.
+     * The value of a nominal attribute in a row is the index in this array.
+     * @param att The attribute index
+     * @return The nominal values. <code>null</code> for numeric attributes.
+     */
+    public String []getNominalValues(int att)
+    {
+        if (this.nominal[att] != null) return(this.nominal[att].value);
+        else                           return(null);
+    }
+
+    // **********************************************************\
+    // *                      Construction                      *
+    // **********************************************************/
+    public ArffReader(File file)
+    {
+        this.file      = file;
+        this.goalIndex = GOAL_LAST;
+    }
+
+    public ArffReader(InputStream input)
+    {
+        this.input     = input;
+        this.goalIndex = GOAL_LAST;
+    }
+}
@@ -0,0 +1,188 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.dataflow;
+
+import java.io.File;
+import java.io.InputStream;
+
+import org.shaman.datamodel.DataModel;
+import org.shaman.exceptions.ConfigException;
+import org.shaman.exceptions.DataFlowException;
+import org.shaman.exceptions.DataModelException;
+
+import cern.colt.matrix.DoubleFactory1D;
+
+
+/**
+ * <h2>ARFF File Source</h2>
+ * Streams the rows of an ARFF file as double vectors out of its
+ * single output port. The output DataModel is made from the file's header.
+ * Rows are read when they are pushed, the file is never loaded as a whole.
+ * Use <code>pushBatch()</code> to output blocks of rows as a VectorBatch.
+ * @see ArffReader
+ */
+
+// **********************************************************\
+// *            Stream Data Vectors from an ARFF File       *
+// **********************************************************/
+public class ArffSource extends FileSource
+{
+    private File       arffFile;      // The ARFF file
+    private int        goalIndex;     // Goal attribute index or ArffReader.GOAL_LAST / GOAL_NONE
+    private String     goalName;      // Goal attribute name
+
+    // **** Run-time Data ***
+    private ArffReader reader;
+    private double   []row;
+
+    // **********************************************************\
+    // *                  Read Rows from the File               *
+    // **********************************************************/
+    protected Object sourceFile() throws DataFlowException, DataModelException
+    {
+        if (this.reader.readRow(this.row)) return(DoubleFactory1D.dense.make(this.row));
+        else                               return(null);
+    }
+
+    /**
+     * Read at most the given number of rows and output them as one VectorBatch.
+     * Rewinds the file when the source runs dry (and this method returns <code>false</code>)
+     * @param size The maximum number of rows in the batch
+     * @return <code>true</code> if a batch with at least one row was pushed.
+     * @throws DataFlowException If reading the rows or pushing them failed.
+     */
+    public boolean pushBatch(int size) throws DataFlowException
+    {
+        VectorBatch batch;
+        int         numatt, rownow;
+        boolean     more;
+
+        if (this.sourceDry) return(false);
+
+        numatt = this.row.length;
+        batch  = new VectorBatch(numatt, size);
+        more   = true;
+        while (more && (batch.getRows() < size))
+        {
+            rownow = batch.addRow();
+            more   = this.reader.readRow(batch.getData(), rownow*numatt);
+            if (!more) batch.setRows(rownow);
+        }
+
+        if (batch.getRows() > 0) setOutput(0, batch);
+        if (!more)
+        {
+            try
+            {
+                // Stop and Start again. Automatic re-Winding.
+                cleanUp();
+                init();
+                this.sourceDry = true;
+            }
+            catch(ConfigException ex) { throw new DataFlowException(ex); }
+        }
+
+        return(batch.getRows() > 0);
+    }
+
+    // **********************************************************\
+    // *              Source Parameter Specification            *
+    // **********************************************************/
+    /**
+     * Set the ARFF file to read.
+     * @param arffFile The file
+     */
+    public void setFile(File arffFile)
+    {
+        this.arffFile  = arffFile;
+        this.fileinput = null;
+    }
+
+    /**
+     * Read the ARFF data from the given stream. The source cannot re-start.
+     * @param input The stream
+     */
+    public void setInputStream(InputStream input)
+    {
+        this.fileinput = input;
+        this.arffFile  = null;
+    }
+
+    /**
+     * Set the goal attribute by index.
+     * @param goalIndex The index of the goal attribute, <code>ArffReader.GOAL_LAST</code> or <code>ArffReader.GOAL_NONE</code>
+     */
+    public void setGoalIndex(int goalIndex) { this.goalIndex = goalIndex; this.goalName = null; }
+
+    /**
+     * Set the goal attribute by name.
+     * @param goalName The name of the goal attribute.
+     */
+    public void setGoalName(String goalName) { this.goalName = goalName; }
+
+    /**
+     * Give the reader of the file. Has the nominal values of the attributes.
+     * @return The reader. <code>null</code> before init().
+     */
+    public ArffReader getReader() { return(this.reader); }
+
+    // **********************************************************\
+    // *                       Construction                     *
+    // **********************************************************/
+    protected void initFile() throws ConfigException
+    {
+        try
+        {
+            cleanUpFile();
+        }
+        catch(DataFlowException ex) { throw new ConfigException(ex); }
+        if      (this.arffFile  != null) this.reader = new ArffReader(this.arffFile);
+        else if (this.fileinput != null) this.reader = new ArffReader(this.fileinput);
+        else throw new ConfigException("Please specify the ARFF file or an inputstream.");
+        if (this.goalName != null) this.reader.setGoalName(this.goalName);
+        else                       this.reader.setGoalIndex(this.goalIndex);
+        this.reader.open();
+
+        // Keep the DataModel when re-starting.
+        if (this.dataModel == null) this.dataModel = this.reader.getDataModel();
+        this.row = new double[this.reader.getNumberOfAttributes()];
+    }
+
+    protected void cleanUpFile() throws DataFlowException
+    {
+        if (this.reader != null) this.reader.close();
+    }
+
+    public void init() throws ConfigException
+    {
+        // Read the header before the output DataModel is known.
+        initFile();
+        setOutputDataModel(0, this.dataModel);
+        this.sourceDry = false;
+    }
+
+    public void checkDataModelFit(int port, DataModel dm) throws DataModelException
+    {
+        ; // No input.
+    }
+
+    // **********************************************************\
+    // *                      Constructor                       *
+    // **********************************************************/
+    public ArffSource()
+    {
+        super();
+        this.goalIndex = ArffReader.GOAL_LAST;
+        name           = "arffsource";
+        description    = "Streams data vectors from an ARFF file";
+    }
+}
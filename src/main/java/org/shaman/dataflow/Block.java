@@ -79,6 +79,17 @@ public class Block extends Transformation
         return(null);
     }
     
+    /**
+     * Block a batch of vectors. The batch is collected as a whole.
+     * @throws DataFlowException never
+     */
+    public VectorBatch transformBatch(VectorBatch in) throws DataFlowException
+    {
+        transform(in);
+        
+        return(null);
+    }
+    
     public void init() throws ConfigException
     {
         // All input is fine.
@@ -181,6 +181,40 @@ public class DataModelConverter extends Transformation
         else             return(new Object[]{out});
     }
     
+    /**
+     * Convert a block of primitive vectors to a block of primitive vectors of the output DataModel.
+     * Conversions to Object vectors are done vector per vector.
+     * @param in The block of input vectors
+     * @return The converted block
+     * @throws DataFlowException If the output is not primitive and a vector cannot be converted.
+     */
+    public VectorBatch transformBatch(VectorBatch in) throws DataFlowException
+    {
+        VectorBatch out;
+        double    []indat, outdat;
+        int         r, i, numin, numout, inoff, outoff;
+        
+        if (!outPrimitive()) return(super.transformBatch(in));
+        
+        // Gather the output attributes from every row. Attributes not in the input become 0.
+        numin  = in.getColumns();
+        numout = this.inputInd.length;
+        indat  = in.getData();
+        out    = new VectorBatch(new double[Math.max(in.getRows()*numout, 1)], in.getRows(), numout);
+        outdat = out.getData();
+        for (r=0; r<in.getRows(); r++)
+        {
+            inoff  = r*numin;
+            outoff = r*numout;
+            for (i=0; i<numout; i++)
+            {
+                if (this.inputInd[i] != -1) outdat[outoff+i] = indat[inoff+this.inputInd[i]];
+            }
+        }
+        
+        return(out);
+    }
+    
     public int getNumberOfInputs()  { return(1); }
     public int getNumberOfOutputs() { return(1); }
     
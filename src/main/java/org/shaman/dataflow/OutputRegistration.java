@@ -26,6 +26,8 @@ public class OutputRegistration
         public DataFlow   consumer;
         /** The Input Port of the consumer connected to the output port associated with this OutputRegistration */
         public int        consumerPort;
+        /** The pipeline stage that runs the consumer. <code>null</code> if data is pushed synchronously */
+        PipelineExecutor.Stage stage;
         
 		/**
 		 * Get the data buffer of the output port connection of this OutputRegistration.
@@ -54,6 +56,12 @@ public class OutputRegistration
 		 */
         public int getConsumerPort() { return(consumerPort); }
         
+        /**
+         * Check if data on this connection is queued to a pipeline worker instead of pushed synchronously.
+         * @return <code>true</code> if the consumer runs in a different pipeline stage.
+         */
+        public boolean isQueued() { return(stage != null); }
+        
         
 		/**
 		 * Make an Output Port registration.
@@ -0,0 +1,401 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.dataflow;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.shaman.exceptions.ConfigException;
+import org.shaman.exceptions.DataFlowException;
+
+
+/**
+ * <h2>Pipelined Network Execution</h2>
+ * Runs the Transformations of a TransformationNetwork in stages,
+ * each on its own worker thread. A stage has a bounded input queue.
+ * Connections between Transformations in different stages put the data in the
+ * queue of the consumer's stage instead of pushing it through on the
+ * producer's thread, so the stages of the network overlap. When a queue
+ * is full the producer waits until the stage catches up.
+ * <p>
+ * Transformations assigned to the same stage are fused: data between them is
+ * pushed synchronously as in a normal network.
+ * The input PortMapping of the network runs on the thread supplying the data.
+ * The output PortMapping, and everything connected to it outside the network,
+ * runs on a separate output stage.
+ * <p>
+ * Networks with cycles between stages can block when the queues fill up.
+ */
+
+// **********************************************************\
+// *         Multi-Threaded TransformationNetwork Engine    *
+// **********************************************************/
+public class PipelineExecutor
+{
+    /** Default capacity of the input queue of a stage */
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    // Marks the end of the data in a stage's queue
+    private static final Packet STOP = new Packet(null, -1, null);
+
+    private TransformationNetwork net;         // The network to run
+    private int                 []stageOf;     // [i] = Stage of the network's Transformation i
+    private int                   queueSize;   // Capacity of the input queue of each stage
+
+    private Stage               []stage;       // The stages. The last one runs the output PortMapping.
+    private LinkedList            queued;      // The OutputRegistrations that queue to a stage
+    private AtomicLong            inFlight;    // Number of data objects put in a queue but not delivered yet
+    private Object                idleLock;    // Notified when there is no more data in flight or a stage failed
+    private volatile Throwable    error;       // First failure in one of the stages
+    private boolean               running;
+
+    // **********************************************************\
+    // *                  Data Object in a Queue                *
+    // **********************************************************/
+    private static final class Packet
+    {
+        Transformation consumer;
+        int            port;
+        Object         data;
+
+        Packet(Transformation consumer, int port, Object data)
+        {
+            this.consumer = consumer;
+            this.port     = port;
+            this.data     = data;
+        }
+    }
+
+    // **********************************************************\
+    // *                   Pipeline Stage Worker                *
+    // **********************************************************/
+    class Stage implements Runnable
+    {
+        private BlockingQueue queue;       // Data waiting to be processed by this stage
+        private LinkedList    pending;     // Data waiting for an input port that is still occupied
+        private Thread        thread;
+        private long          processed;   // Number of data objects processed
+
+        /**
+         * Queue the data for the given input port of a consumer that runs in this stage.
+         * Waits when the queue is full.
+         * @param con The consumer
+         * @param conport The input port of the consumer
+         * @param data The data
+         * @throws DataFlowException If the pipeline failed or the wait was interrupted.
+         */
+        void put(Transformation con, int conport, Object data) throws DataFlowException
+        {
+            if (error != null) throw new DataFlowException("Pipeline of '"+net.getName()+"' has failed.", error);
+
+            inFlight.incrementAndGet();
+            try
+            {
+                this.queue.put(new Packet(con, conport, data));
+            }
+            catch(InterruptedException ex)
+            {
+                done();
+                Thread.currentThread().interrupt();
+                throw new DataFlowException("Interrupted while waiting for '"+this.thread.getName()+"'", ex);
+            }
+        }
+
+        public void run()
+        {
+            Packet  packet;
+            boolean stop;
+
+            stop = false;
+            while (!stop)
+            {
+                try
+                {
+                    packet = (Packet)this.queue.take();
+                    if (packet == STOP) stop = true;
+                    else
+                    {
+                        // Keep taking data after a failure so the producers do not block.
+                        try
+                        {
+                            if (error == null) deliver(packet);
+                            else               done();
+                        }
+                        catch(Throwable ex) { fail(ex); }
+                    }
+                }
+                catch(InterruptedException ex) { stop = true; }
+            }
+        }
+
+        private void deliver(Packet packet) throws DataFlowException
+        {
+            Transformation target;
+
+            // Never overwrite data that is still waiting in an input port.
+            // The only other data that can occupy it is on the pending list of this stage.
+            target = Transformation.inputTarget(packet.consumer);
+            // Pending data stays in flight until it is delivered.
+            if (target.isInputFree(packet.port))
+            {
+                push(target, packet);
+                if (this.pending.size() > 0) deliverPending();
+            }
+            else this.pending.addLast(packet);
+        }
+
+        private void deliverPending() throws DataFlowException
+        {
+            Iterator       itpen;
+            Packet         packet;
+            Transformation target;
+            boolean        progress;
+
+            // Deliver the oldest pending data of every port that became free. Repeat until nothing moves.
+            progress = true;
+            while (progress && (this.pending.size() > 0))
+            {
+                progress = false;
+                itpen    = this.pending.iterator();
+                while (itpen.hasNext() && !progress)
+                {
+                    packet = (Packet)itpen.next();
+                    target = Transformation.inputTarget(packet.consumer);
+                    if (target.isInputFree(packet.port))
+                    {
+                        itpen.remove();
+                        push(target, packet);
+                        progress = true;
+                    }
+                }
+            }
+        }
+
+        private void push(Transformation target, Packet packet) throws DataFlowException
+        {
+            try
+            {
+                Transformation.pushInput(target, packet.port, packet.data);
+                this.processed++;
+            }
+            finally { done(); }
+        }
+
+        Stage(String name, int queueSize)
+        {
+            this.queue   = new ArrayBlockingQueue(queueSize);
+            this.pending = new LinkedList();
+            this.thread  = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+    }
+
+    // **********************************************************\
+    // *                 Pipeline Synchronization               *
+    // **********************************************************/
+    private void done()
+    {
+        if (this.inFlight.decrementAndGet() == 0)
+        {
+            synchronized(this.idleLock) { this.idleLock.notifyAll(); }
+        }
+    }
+
+    private synchronized void fail(Throwable ex)
+    {
+        if (this.error == null) this.error = ex;
+
+        // Pending data will never be delivered. Stop waiting for it.
+        synchronized(this.idleLock) { this.idleLock.notifyAll(); }
+    }
+
+    /**
+     * Wait until all data that entered the pipeline has been processed by all stages.
+     * Data waiting for an occupied input port is not processed yet, so this also waits until
+     * the port is free. Returns at the first failure in a stage.
+     * @throws DataFlowException If one of the stages failed, or if the wait was interrupted.
+     */
+    public void flush() throws DataFlowException
+    {
+        synchronized(this.idleLock)
+        {
+            while ((this.inFlight.get() > 0) && (this.error == null))
+            {
+                try
+                {
+                    this.idleLock.wait();
+                }
+                catch(InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new DataFlowException("Interrupted while flushing the pipeline of '"+this.net.getName()+"'", ex);
+                }
+            }
+        }
+        if (this.error != null) throw new DataFlowException("Pipeline of '"+this.net.getName()+"' has failed.", this.error);
+    }
+
+    // **********************************************************\
+    // *                    Start / Stop                        *
+    // **********************************************************/
+    /**
+     * Divide the network in stages, connect the stages by queues and start the workers.
+     * @throws ConfigException If the stage assignment does not fit the network.
+     */
+    public void start() throws ConfigException
+    {
+        Transformation   []trans;
+        int              [][]con;
+        int                i, numstage;
+        Transformation     prod, cons;
+        Stage              stagecon;
+        OutputRegistration oreg;
+
+        trans = this.net.getTransformations();
+        con   = this.net.con;
+        if (trans == null) throw new ConfigException("Cannot run the pipeline of unpopulated network '"+this.net.getName()+"'");
+
+        // By default each Transformation runs in its own stage.
+        if (this.stageOf == null)
+        {
+            this.stageOf = new int[trans.length];
+            for (i=0; i<trans.length; i++) this.stageOf[i] = i;
+        }
+        else if (this.stageOf.length != trans.length)
+            throw new ConfigException("Pipeline stage assignment has "+this.stageOf.length+" entries but network '"+this.net.getName()+"' has "+trans.length+" Transformations.");
+
+        numstage = 0;
+        for (i=0; i<this.stageOf.length; i++)
+        {
+            if (this.stageOf[i] < 0) throw new ConfigException("Negative pipeline stage for Transformation '"+trans[i].getName()+"'");
+            if (this.stageOf[i] >= numstage) numstage = this.stageOf[i]+1;
+        }
+
+        // Make the stages and the output stage.
+        this.stage = new Stage[numstage+1];
+        for (i=0; i<numstage; i++) this.stage[i] = new Stage(this.net.getName()+" stage "+i, this.queueSize);
+        this.stage[numstage] = new Stage(this.net.getName()+" output stage", this.queueSize);
+
+        // Let the connections that cross a stage boundary queue their data.
+        this.queued = new LinkedList();
+        for (i=0; i<con.length; i++)
+        {
+            if ((con[i][0] == -1) || (con[i][2] == -1) || (this.stageOf[con[i][0]] != this.stageOf[con[i][2]]))
+            {
+                if (con[i][0] == -1) prod = this.net.getInputPortMapping();
+                else                 prod = trans[con[i][0]];
+                if (con[i][2] == -1) { cons = this.net.getOutputPortMapping(); stagecon = this.stage[numstage]; }
+                else                 { cons = trans[con[i][2]];                stagecon = this.stage[this.stageOf[con[i][2]]]; }
+
+                oreg       = findRegistration(prod, con[i][1], cons);
+                oreg.stage = stagecon;
+                this.queued.add(oreg);
+            }
+        }
+
+        // Start the workers.
+        this.error = null;
+        this.inFlight.set(0);
+        for (i=0; i<this.stage.length; i++) this.stage[i].thread.start();
+        this.running = true;
+    }
+
+    private OutputRegistration findRegistration(Transformation prod, int port, Transformation cons) throws ConfigException
+    {
+        OutputRegistration []oreg;
+        int                  i;
+
+        // A network's consumers are registered at its output PortMapping.
+        if (prod instanceof TransformationNetwork) prod = ((TransformationNetwork)prod).getOutputPortMapping();
+
+        oreg = prod.getOutputRegistrations()[port];
+        for (i=0; (oreg != null) && (i<oreg.length); i++)
+        {
+            if (oreg[i].getConsumer() == cons) return(oreg[i]);
+        }
+        throw new ConfigException("Cannot find the connection from '"+prod.getName()+"' port "+port+" to '"+cons.getName()+"'");
+    }
+
+    /**
+     * Wait until all data is processed, stop the workers and make the connections synchronous again.
+     * @throws DataFlowException If one of the stages failed, or if the wait was interrupted.
+     */
+    public void stop() throws DataFlowException
+    {
+        Iterator itreg;
+        int      i;
+
+        if (this.running)
+        {
+            try
+            {
+                flush();
+            }
+            finally
+            {
+                // Back to synchronous data-flow.
+                itreg = this.queued.iterator();
+                while (itreg.hasNext()) ((OutputRegistration)itreg.next()).stage = null;
+
+                // Let the workers run out and wait for them.
+                try
+                {
+                    for (i=0; i<this.stage.length; i++) this.stage[i].queue.put(STOP);
+                    for (i=0; i<this.stage.length; i++) this.stage[i].thread.join();
+                }
+                catch(InterruptedException ex) { Thread.currentThread().interrupt(); }
+                this.running = false;
+            }
+        }
+    }
+
+    // **********************************************************\
+    // *                      Statistics                        *
+    // **********************************************************/
+    public boolean isRunning() { return(this.running); }
+
+    /**
+     * Give the number of stages, including the output stage.
+     * @return The number of stages.
+     */
+    public int getNumberOfStages() { return(this.stage == null ? 0 : this.stage.length); }
+
+    /**
+     * Give the number of data objects the given stage has processed.
+     * @param i The stage index. The last stage is the output stage.
+     * @return The number of processed data objects.
+     */
+    public long getProcessed(int i) { return(this.stage[i].processed); }
+
+    // **********************************************************\
+    // *                      Construction                      *
+    // **********************************************************/
+    /**
+     * Make a pipeline for the given populated network.
+     * @param net The network to run
+     * @param stageOf [i] is the stage of the network's Transformation i. Transformations with the same
+     *                stage are fused on one worker. <code>null</code> to give every Transformation its own stage.
+     * @param queueSize Capacity of the input queue of each stage
+     */
+    public PipelineExecutor(TransformationNetwork net, int []stageOf, int queueSize)
+    {
+        this.net       = net;
+        this.stageOf   = stageOf;
+        this.queueSize = queueSize;
+        this.inFlight  = new AtomicLong(0);
+        this.idleLock  = new Object();
+        this.running   = false;
+    }
+}
@@ -23,6 +23,8 @@ import org.shaman.exceptions.ConfigException;
 import org.shaman.exceptions.DataFlowException;
 import org.shaman.exceptions.TransformationException;
 
+import cern.colt.matrix.DoubleMatrix1D;
+
 
 /**
  * <h2>Data Vector Transforming  Base Class</h2>
@@ -311,11 +313,7 @@ public abstract class Transformation implements DataFlow
     public void setOutput(int port, Object data) throws DataFlowException
     {
         int                   i;
-        TransformationNetwork net;
-        Transformation        con;
-        Transformation        confast;
         OutputRegistration    oreg;
-        int                   conport;
             
         // For all registered consumers on the given port.
         if (this.outputs[port] != null)
@@ -323,27 +321,56 @@ public abstract class Transformation implements DataFlow
             for (i=0; i<this.outputs[port].length; i++)
             {
                 oreg = this.outputs[port][i];
-                con  = (Transformation)oreg.consumer;
-                
-                // Route data to the input identity of a network not the network itself
-                if (con instanceof TransformationNetwork)
-                {
-                   net = (TransformationNetwork)oreg.getConsumer();
-                   con = (Transformation)net.getInputPortMapping();
-                }
-                confast = (Transformation)con;
-                
-                // Set the new data to in the consumer's input port.
-                conport                    = oreg.consumerPort;
-                confast.inputData[conport] = data;
-                confast.inputsAvailable[conport/64] |= portMask[conport%64];
                 
-                // Propagate data through the network.
-                con.transform();
+                // Hand the data to the worker of a pipelined network, or push it through synchronously.
+                if (oreg.stage != null) oreg.stage.put((Transformation)oreg.consumer, oreg.consumerPort, data);
+                else                    pushInput((Transformation)oreg.consumer, oreg.consumerPort, data);
             }
         }
     }
     
+    /**
+     * Set the data in the given input port of the consumer and let it transform.
+     * Data for a TransformationNetwork is routed to the network's input PortMapping.
+     * @param con The consumer Transformation
+     * @param conport The input port of the consumer
+     * @param data The data object
+     * @throws DataFlowException If the consumer fails to transform the data.
+     */
+    static void pushInput(Transformation con, int conport, Object data) throws DataFlowException
+    {
+        // Route data to the input identity of a network not the network itself
+        con = inputTarget(con);
+        
+        // Set the new data to in the consumer's input port.
+        con.inputData[conport] = data;
+        con.inputsAvailable[conport/64] |= portMask[conport%64];
+        
+        // Propagate data through the network.
+        con.transform();
+    }
+    
+    /**
+     * Give the Transformation that actually receives the data sent to the given consumer.
+     * @param con The consumer
+     * @return The consumer itself, or the input PortMapping when it is a TransformationNetwork.
+     */
+    static Transformation inputTarget(Transformation con)
+    {
+        if (con instanceof TransformationNetwork) return(((TransformationNetwork)con).getInputPortMapping());
+        else                                      return(con);
+    }
+    
+    /**
+     * Check if the given input port does not hold any data yet.
+     * @param port The input port
+     * @return <code>true</code> if new data can be set in the port without overwriting data.
+     */
+    boolean isInputFree(int port)
+    {
+        return((this.inputsAvailable[port/64] & portMask[port%64]) == 0);
+    }
+    
     public void transform() throws DataFlowException
     {
        // Get data from input queue. Transform the data to (possibly) multiple outputs. Add them to output queue.
@@ -351,6 +378,7 @@ public abstract class Transformation implements DataFlow
        Object  obin;
        Object  []obsin;
        Object  []fout;
+       VectorBatch batout;
        boolean datathere;
 
        // If there's data present...
@@ -363,8 +391,14 @@ public abstract class Transformation implements DataFlow
                // Get data from 1 port input data
                obin = getInput(0);
 
-               // Transform the input to the output.
-               fout = transform(obin);
+               // Transform the input to the output. A block of vectors goes through as a whole.
+               if (obin instanceof VectorBatch)
+               {
+                   batout = transformBatch((VectorBatch)obin);
+                   if (batout != null) setOutput(0, batout);
+                   fout = null;
+               }
+               else fout = transform(obin);
            }
            else
            {
@@ -388,6 +422,56 @@ public abstract class Transformation implements DataFlow
     // Transform the multiple inputs into (one or more) outputs
     public Object []transform(Object []in) throws DataFlowException { return(null); }
     
+    /**
+     * Transform a block of double vectors into a block of output vectors.
+     * This default implementation transforms the rows one by one using <code>transform(Object)</code>.
+     * Override it when the Transformation can process the whole block at once.
+     * Rows for which no output is produced are left out of the output block.
+     * @param in The block of input vectors
+     * @return The block of output vectors. <code>null</code> if there is no output.
+     * @throws DataFlowException If the transformation fails or does not produce double vectors.
+     */
+    public VectorBatch transformBatch(VectorBatch in) throws DataFlowException
+    {
+        VectorBatch    out;
+        Object       []fout;
+        DoubleMatrix1D vout;
+        int            i,j;
+
+        out = null;
+        for (i=0; i<in.getRows(); i++)
+        {
+            fout = transform(in.getRow(i));
+            for (j=0; (fout != null) && (j<fout.length); j++)
+            {
+                if (!(fout[j] instanceof DoubleMatrix1D))
+                    throw new DataFlowException("Batch transformation in '"+getName()+"' needs double vectors at the output. Found '"+fout[j]+"'");
+                vout = (DoubleMatrix1D)fout[j];
+                if (out == null) out = new VectorBatch(vout.size(), in.getRows());
+                out.addRow(vout);
+            }
+        }
+
+        return(out);
+    }
+    
+    /**
+     * Check if the given method of this Transformation is the one implemented by the given base-class.
+     * Lets a base-class find out if a batch implementation still matches the per-vector behavior of a sub-class.
+     * @param base The base-class
+     * @param method The method name
+     * @param par The parameter types of the method
+     * @return <code>true</code> if the sub-class does not override the base-class's method.
+     */
+    protected boolean isInheritedFrom(Class base, String method, Class []par)
+    {
+        try
+        {
+            return(getClass().getMethod(method, par).getDeclaringClass() == base);
+        }
+        catch(NoSuchMethodException ex) { return(false); }
+    }
+    
     public void clear()
     {
         int i;
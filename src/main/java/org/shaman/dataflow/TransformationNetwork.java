@@ -71,6 +71,12 @@ public class TransformationNetwork extends Transformation implements Persister
    private   NetworkNode       []netnodes;
    private   NetworkConnection []netcons;
    
+   // Multi-threaded pipelined execution
+   private   boolean           pipelined;      // Run the Transformations on their own worker threads?
+   private   int             []pipelineStages; // [i] = Pipeline stage of Transformation i. null is one stage per Transformation.
+   private   int               pipelineQueue;  // Capacity of the input queue of a stage
+   private   PipelineExecutor  pipeline;       // The running pipeline. null if not running.
+   
    // **********************************************************\
    // *           Transformation Network Persistence           *
    // **********************************************************/
@@ -328,6 +334,64 @@ public class TransformationNetwork extends Transformation implements Persister
       return(this.netcons);
    }
 
+   // **********************************************************\
+   // *             Pipelined Multi-Threaded Execution         *
+   // **********************************************************/
+   /**
+    * Choose between synchronous and pipelined execution of the network.
+    * Synchronous execution pushes each data vector through the whole network on the caller's thread.
+    * Pipelined execution runs the internal Transformations on their own worker threads
+    * connected by bounded queues. Takes effect at the next init().
+    * Consumers of the network's output should call flush() before looking at the results.
+    * @param pipelined <code>true</code> for pipelined execution.
+    * @see PipelineExecutor
+    */
+   public void setPipelined(boolean pipelined)
+   {
+       this.pipelined = pipelined;
+   }
+   
+   public boolean isPipelined() { return(this.pipelined); }
+   
+   /**
+    * Fuse Transformations into pipeline stages. Transformations in the same stage share a worker thread.
+    * @param stages [i] is the stage of Transformation i. <code>null</code> for one stage per Transformation.
+    */
+   public void setPipelineStages(int []stages)
+   {
+       this.pipelineStages = stages;
+   }
+   
+   public int []getPipelineStages() { return(this.pipelineStages); }
+   
+   /**
+    * Set the capacity of the input queue of the pipeline stages.
+    * A producer waits when the queue of the consumer's stage is full.
+    * @param queueSize The number of data objects a stage's queue can hold.
+    */
+   public void setPipelineQueueSize(int queueSize)
+   {
+       this.pipelineQueue = queueSize;
+   }
+   
+   public int getPipelineQueueSize() { return(this.pipelineQueue); }
+   
+   /**
+    * Give the running pipeline.
+    * @return The pipeline. <code>null</code> if the network is not running pipelined.
+    */
+   public PipelineExecutor getPipeline() { return(this.pipeline); }
+   
+   /**
+    * Wait until all data that entered the network has been processed.
+    * Does nothing when the network is not running pipelined.
+    * @throws DataFlowException If a Transformation failed in one of the pipeline stages.
+    */
+   public void flush() throws DataFlowException
+   {
+       if (this.pipeline != null) this.pipeline.flush();
+   }
+   
    // **********************************************************\
    // *                Customized Flow Behavior                *
    // **********************************************************/
@@ -508,12 +572,37 @@ public class TransformationNetwork extends Transformation implements Persister
        dmout = idOut.getOutputDataModel(i);
        setOutputDataModel(i, dmout);
      }
+     
+     // Start the worker threads if pipelined
+     if (this.pipeline != null)
+     {
+        try { this.pipeline.stop(); }
+        catch(DataFlowException ex) { throw new ConfigException(ex); }
+        this.pipeline = null;
+     }
+     if (this.pipelined)
+     {
+        this.pipeline = new PipelineExecutor(this, this.pipelineStages, this.pipelineQueue);
+        this.pipeline.start();
+     }
   }
   
+  /**
+   * Stop the pipeline workers after all data has been processed.
+   * Then clean up the internal Transformations.
+   * @throws DataFlowException If a Transformation failed.
+   */
   public void cleanUp() throws DataFlowException
   {
       int i;
       
+      // Let the pipeline finish the data in its queues and stop the workers
+      if (this.pipeline != null)
+      {
+         try     { this.pipeline.stop(); }
+         finally { this.pipeline = null; }
+      }
+      
       // Cleanup all the Transformations
       for (i=0; i<this.trans.length; i++)
       {
@@ -856,5 +945,7 @@ public class TransformationNetwork extends Transformation implements Persister
     this.traname     = null;
     this.inMap       = null;
     this.outMap      = null;
+    this.pipelined   = false;
+    this.pipelineQueue = PipelineExecutor.DEFAULT_QUEUE_SIZE;
   }
 }
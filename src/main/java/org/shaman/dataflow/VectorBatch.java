@@ -0,0 +1,258 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.dataflow;
+
+import java.util.Iterator;
+import java.util.List;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+
+
+/**
+ * <h2>Block of Double Vectors</h2>
+ * A number of double vectors of the same length stored
+ * row after row in one primitive array.
+ * Flows through a network as a single data object.
+ * Transformations process it with <code>transformBatch()</code>.
+ */
+
+// **********************************************************\
+// *        Row-Major Block of Primitive Data Vectors       *
+// **********************************************************/
+public class VectorBatch
+{
+    private double []data;       // Row-major vector data. Row i starts at i*columns.
+    private int      rows;       // Number of vectors in the batch
+    private int      columns;    // Length of the vectors
+
+    // **********************************************************\
+    // *               Zero-Copy View on a Row                  *
+    // **********************************************************/
+    /**
+     * A DoubleMatrix1D on a row of the batch's array.
+     * Can be moved to another row to scan the batch without allocation.
+     */
+    public static class RowView extends DenseDoubleMatrix1D
+    {
+        private static final long serialVersionUID = 1L;
+
+        RowView(double []data, int offset, int size)
+        {
+            super(size, data, offset, 1);
+        }
+
+        void moveTo(double []data, int offset)
+        {
+            this.elements = data;
+            this.zero     = offset;
+        }
+    }
+
+    // **********************************************************\
+    // *                      Data Access                       *
+    // **********************************************************/
+    public int getRows()     { return(this.rows); }
+    public int getColumns()  { return(this.columns); }
+    public int getCapacity() { return(this.data.length / Math.max(this.columns, 1)); }
+
+    /**
+     * Give the array containing the data of the batch.
+     * Row i starts at position <code>i*getColumns()</code>. Only the first <code>getRows()</code> rows are valid.
+     * @return The row-major data array.
+     */
+    public double []getData() { return(this.data); }
+
+    public double get(int row, int column)
+    {
+        return(this.data[row*this.columns+column]);
+    }
+
+    public void set(int row, int column, double value)
+    {
+        this.data[row*this.columns+column] = value;
+    }
+
+    /**
+     * Give a view on the given row. Changes to the view change the batch.
+     * @param row The row
+     * @return A DoubleMatrix1D sharing the batch's data.
+     */
+    public DoubleMatrix1D viewRow(int row)
+    {
+        return(new RowView(this.data, row*this.columns, this.columns));
+    }
+
+    /**
+     * Give a view on the given row, re-using the given view when possible.
+     * @param row The row
+     * @param view A view returned by an earlier call. <code>null</code> to make a new one.
+     * @return A view on the row. The given view if it could be re-used.
+     */
+    public DoubleMatrix1D viewRow(int row, DoubleMatrix1D view)
+    {
+        RowView rowview;
+
+        if ((view instanceof RowView) && (view.size() == this.columns))
+        {
+            rowview = (RowView)view;
+            rowview.moveTo(this.data, row*this.columns);
+        }
+        else rowview = new RowView(this.data, row*this.columns, this.columns);
+
+        return(rowview);
+    }
+
+    /**
+     * Give a copy of the given row.
+     * @param row The row
+     * @return A new vector containing the row's data.
+     */
+    public DoubleMatrix1D getRow(int row)
+    {
+        return(viewRow(row).copy());
+    }
+
+    /**
+     * Give copies of all rows.
+     * @return Array of new vectors, one per row.
+     */
+    public Object []toVectors()
+    {
+        Object []vec;
+        int      i;
+
+        vec = new Object[this.rows];
+        for (i=0; i<this.rows; i++) vec[i] = getRow(i);
+
+        return(vec);
+    }
+
+    // **********************************************************\
+    // *                     Adding Rows                        *
+    // **********************************************************/
+    /**
+     * Add an empty row at the end of the batch. Grows the batch when needed.
+     * @return The index of the new row.
+     */
+    public int addRow()
+    {
+        double []datanew;
+
+        if ((this.rows+1)*this.columns > this.data.length)
+        {
+            datanew = new double[Math.max(2*this.data.length, (this.rows+1)*this.columns)];
+            System.arraycopy(this.data, 0, datanew, 0, this.rows*this.columns);
+            this.data = datanew;
+        }
+
+        return(this.rows++);
+    }
+
+    /**
+     * Copy the given vector at the end of the batch.
+     * @param vec A vector with the length of the batch's rows.
+     * @return The index of the new row.
+     */
+    public int addRow(DoubleMatrix1D vec)
+    {
+        int row, off, i;
+
+        if (vec.size() != this.columns) throw new IllegalArgumentException("Vector of size "+vec.size()+" does not fit in a batch of "+this.columns+" columns.");
+
+        row = addRow();
+        off = row*this.columns;
+        for (i=0; i<this.columns; i++) this.data[off+i] = vec.getQuick(i);
+
+        return(row);
+    }
+
+    /**
+     * Keep only the given number of first rows.
+     * @param rows The new number of rows. Not more than the current number of rows.
+     */
+    public void setRows(int rows)
+    {
+        if ((rows < 0) || (rows > this.rows)) throw new IllegalArgumentException("Cannot change a batch of "+this.rows+" rows to "+rows+" rows.");
+        this.rows = rows;
+    }
+
+    /**
+     * Remove all rows. Keeps the memory of the batch.
+     */
+    public void clear()
+    {
+        this.rows = 0;
+    }
+
+    /**
+     * Remove all rows and change the length of the rows.
+     * @param columns The new row length.
+     */
+    public void clear(int columns)
+    {
+        this.rows    = 0;
+        this.columns = columns;
+    }
+
+    /**
+     * Make a batch containing copies of the given vectors.
+     * @param vectors A List of DoubleMatrix1D of the same size.
+     * @return The batch.
+     */
+    public static VectorBatch fromVectors(List vectors)
+    {
+        VectorBatch batch;
+        Iterator    itvec;
+
+        batch = null;
+        itvec = vectors.iterator();
+        while (itvec.hasNext())
+        {
+            DoubleMatrix1D vec = (DoubleMatrix1D)itvec.next();
+            if (batch == null) batch = new VectorBatch(vec.size(), vectors.size());
+            batch.addRow(vec);
+        }
+        if (batch == null) batch = new VectorBatch(0, 0);
+
+        return(batch);
+    }
+
+    // **********************************************************\
+    // *                      Construction                      *
+    // **********************************************************/
+    /**
+     * Make an empty batch.
+     * @param columns The length of the vectors
+     * @param capacity The number of rows to reserve memory for
+     */
+    public VectorBatch(int columns, int capacity)
+    {
+        this.columns = columns;
+        this.rows    = 0;
+        this.data    = new double[Math.max(columns*capacity, 1)];
+    }
+
+    /**
+     * Make a batch on the given array. The array is not copied.
+     * @param data Row-major data
+     * @param rows The number of rows
+     * @param columns The number of columns
+     */
+    public VectorBatch(double []data, int rows, int columns)
+    {
+        if (rows*columns > data.length) throw new IllegalArgumentException("Array of length "+data.length+" cannot hold "+rows+" rows of "+columns+" columns.");
+        this.data    = data;
+        this.rows    = rows;
+        this.columns = columns;
+    }
+}
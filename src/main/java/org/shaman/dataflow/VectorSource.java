@@ -165,6 +165,25 @@ public class VectorSource extends Transformation
         this.setOutput(0, outfit);
     }
     
+    /**
+     * Outputs a block of double vectors on the only output port.
+     * When the datamodel fit is enforced, every row is checked.
+     * @param out The block of double vectors to output
+     * @throws DataFlowException If a row does not comply with the datamodel.
+     */
+    public void outputBatch(VectorBatch out) throws DataFlowException
+    {
+        DoubleMatrix1D row;
+        int            i;
+        
+        if (this.datamodelfit != FIT_NONE)
+        {
+            row = null;
+            for (i=0; i<out.getRows(); i++) { row = out.viewRow(i, row); checkFit(row); }
+        }
+        this.setOutput(0, out);
+    }
+    
     /**
      * Outputs an object-based or double vector on the only output port.
      * @param An object-based or double vector.
@@ -1,21 +1,108 @@
 package org.shaman.learning;
 
+import org.shaman.dataflow.ArffReader;
 import org.shaman.datamodel.DataModelDouble;
+import org.shaman.exceptions.ConfigException;
+import org.shaman.exceptions.DataFlowException;
+import org.shaman.exceptions.LearnerException;
 
 import java.io.File;
 
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+
 /**
+ * Loads an ARFF file in one pass into a CachingPresenter.
+ * The instances contain only the active attributes, so the full rows are never kept in memory.
+ * Rows with a missing goal value are left out.
+ * Use the ArffSource to stream the rows through a network instead.
+ *
  * @author Johan Kaers
  */
 public class ArffLoader
 {
-    public InstanceSetMemory loadARFF(File arffFile)
+    private int    goalIndex = ArffReader.GOAL_LAST;   // Goal attribute index or ArffReader.GOAL_LAST / GOAL_NONE
+    private String goalName;                           // Goal attribute name
+    private int    capacity  = 1024;                   // Initial number of instances to make space for
+
+    public void setGoalIndex(int goalIndex)  { this.goalIndex = goalIndex; this.goalName = null; }
+    public void setGoalName(String goalName) { this.goalName = goalName; }
+    public void setCapacity(int capacity)    { this.capacity = Math.max(capacity, 1); }
+
+    public InstanceSetMemory loadARFF(File arffFile) throws LearnerException
     {
-        DataModelDouble dataModel;
         InstanceSetMemory dataSet;
 
-        dataSet = null;
+        dataSet = new InstanceSetMemory();
+        loadARFF(arffFile, dataSet);
 
         return dataSet;
     }
+
+    /**
+     * Read the given ARFF file into the given CachingPresenter.
+     * @param arffFile The ARFF file
+     * @param dataSet The presenter to fill. Gets the DataModel made from the header.
+     * @return The DataModel of the file.
+     * @throws LearnerException If the file cannot be read.
+     */
+    public DataModelDouble loadARFF(File arffFile, CachingPresenter dataSet) throws LearnerException
+    {
+        ArffReader          reader;
+        DataModelDouble     dataModel;
+        DoubleMatrix1D    []instance, insnew;
+        double            []goal, weight, dnew;
+        double            []row;
+        int               []actind;
+        int                 i, num, goalind;
+
+        reader = new ArffReader(arffFile);
+        if (this.goalName != null) reader.setGoalName(this.goalName);
+        else                       reader.setGoalIndex(this.goalIndex);
+        try
+        {
+            reader.open();
+            dataModel = reader.getDataModel();
+            actind    = dataModel.getActiveIndices();
+            goalind   = dataModel.getLearningProperty().getHasGoal() ? dataModel.getLearningProperty().getGoalIndex() : -1;
+
+            // Read all rows. Keep the active attributes, the goal and the weight.
+            row      = new double[reader.getNumberOfAttributes()];
+            instance = new DoubleMatrix1D[this.capacity];
+            goal     = new double[this.capacity];
+            weight   = new double[this.capacity];
+            num      = 0;
+            while (reader.readRow(row))
+            {
+                if ((goalind != -1) && Double.isNaN(row[goalind])) continue;
+
+                if (num == instance.length)
+                {
+                    insnew = new DoubleMatrix1D[num*2]; System.arraycopy(instance, 0, insnew, 0, num); instance = insnew;
+                    dnew   = new double[num*2];         System.arraycopy(goal,     0, dnew,   0, num); goal     = dnew;
+                    dnew   = new double[num*2];         System.arraycopy(weight,   0, dnew,   0, num); weight   = dnew;
+                }
+                instance[num] = new DenseDoubleMatrix1D(actind.length);
+                for (i=0; i<actind.length; i++) instance[num].setQuick(i, row[actind[i]]);
+                if (goalind != -1) goal[num] = row[goalind];
+                weight[num]   = reader.getWeight();
+                num++;
+            }
+        }
+        catch(ConfigException ex)   { throw new LearnerException(ex); }
+        catch(DataFlowException ex) { throw new LearnerException(ex); }
+        finally
+        {
+            try { reader.close(); } catch(DataFlowException ex) { throw new LearnerException(ex); }
+        }
+
+        // Install the instances in the presenter
+        insnew = new DoubleMatrix1D[num]; System.arraycopy(instance, 0, insnew, 0, num);
+        dataSet.setDataModel(dataModel);
+        dataSet.setInstances(insnew);
+        dnew   = new double[num];         System.arraycopy(goal,     0, dnew,   0, num); dataSet.setGoals(dnew);
+        dnew   = new double[num];         System.arraycopy(weight,   0, dnew,   0, num); dataSet.setWeights(dnew);
+
+        return dataModel;
+    }
 }
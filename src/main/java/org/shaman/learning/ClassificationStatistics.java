@@ -0,0 +1,521 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.learning;
+
+import java.util.Arrays;
+
+import org.shaman.exceptions.LearnerException;
+
+
+/**
+ * <h2>Streaming Classification Statistics</h2>
+ *
+ * Accumulates the results of a classification test one prediction at a time.
+ * Keeps the confusion matrix, Brier score and log-loss. For 2-class problems also
+ * the scores of the positive class for the ROC curve, AUC, gain chart and calibration.
+ * Statistics of different folds or threads can be merged.
+ * <br>
+ * The scores are kept exactly in 2 primitive buffers (one for the positives, one for
+ * the negatives) that are sorted once when a ranking statistic is asked. That is
+ * 8 bytes per prediction and O(n log n) time. With a score resolution of b bins the
+ * scores (in [0,1]) are counted in a histogram instead. That needs a fixed amount of memory
+ * for any number of predictions. Scores in the same bin are then counted as ties.
+ *
+ * <br>
+ * <i>Fawcett T. (2006), An introduction to ROC analysis, Pattern Recognition Letters 27</i><br>
+ * <i>Niculescu-Mizil A., Caruana R. (2005), Predicting Good Probabilities With Supervised Learning, ICML</i>
+ */
+
+// **********************************************************\
+// *          Streaming Classification Statistics           *
+// **********************************************************/
+public class ClassificationStatistics
+{
+    /** Number of bins of the calibration table. */
+    public static final int    CALIBRATION_BINS = 10;
+    /** Smallest probability used in the log-loss. */
+    public static final double MIN_PROBABILITY  = 1e-15;
+
+    private int        numClass;         // Number of classes
+    private int        resolution;       // Number of score bins. 0 = Keep the exact scores.
+
+    // Classification Counts
+    private double [][]confusion;        // [goal][out] = Number of predictions
+    private long       numTested;        // Number of classified instances
+    private long       numUnclassified;  // Number of instances that could not be classified
+    private long       numProbability;   // Number of predictions in the Brier score and log-loss
+    private double     brier;            // Sum of the Brier scores
+    private double     logLoss;          // Sum of the log-losses
+
+    // Scores of the positive class. For ranking statistics.
+    private double   []posScore;         // Exact scores of the positives
+    private int        numPos;
+    private double   []negScore;         // Exact scores of the negatives
+    private int        numNeg;
+    private boolean    sorted;           // Are the exact score buffers sorted?
+    private long     []posBin;           // [b] = Number of positives in score bin b
+    private long     []negBin;           // [b] = Number of negatives in score bin b
+
+    // Calibration of the positive class scores
+    private long     []calCount;         // [b] = Number of scores in calibration bin b
+    private double   []calScore;         // [b] = Sum of the scores in bin b
+    private long     []calPos;           // [b] = Number of positives in bin b
+
+    // **********************************************************\
+    // *                  Adding Predictions                    *
+    // **********************************************************/
+    /**
+     * Add the result of classifying one instance.
+     * @param goal The goal class of the instance
+     * @param out The output class. -1 if the instance could not be classified.
+     * @param conf The confidence of all classes. <code>null</code> if not available.
+     *             For 2 classes, <code>conf[1]</code> is the score of the positive class.
+     */
+    public void add(int goal, int out, double []conf)
+    {
+        int    i;
+        double p, b;
+
+        if (out == -1) { this.numUnclassified++; return; }
+
+        this.numTested++;
+        this.confusion[goal][out]++;
+        if (conf != null)
+        {
+            // Brier score and log-loss of the class probabilities
+            b = 0;
+            for (i=0; i<this.numClass; i++)
+            {
+                if (i == goal) b += (1-conf[i])*(1-conf[i]);
+                else           b += conf[i]*conf[i];
+            }
+            p = Math.min(1, Math.max(MIN_PROBABILITY, conf[goal]));
+            this.brier   += b;
+            this.logLoss -= Math.log(p);
+            this.numProbability++;
+
+            if (this.numClass == 2) addScore(conf[1], goal == 1);
+        }
+    }
+
+    /**
+     * Add the score of one instance for the ranking statistics.
+     * @param score The score of the positive class. Higher scores rank first.
+     *              NaN counts as 0, the lowest score bin.
+     * @param positive <code>true</code> if the instance is a positive.
+     */
+    public void addScore(double score, boolean positive)
+    {
+        int c;
+
+        // A NaN would never tie with itself when the exact scores are grouped.
+        if (Double.isNaN(score)) score = 0;
+
+        // Calibration table of the scores in [0,1]
+        c = bin(score, CALIBRATION_BINS);
+        this.calCount[c]++;
+        this.calScore[c] += score;
+        if (positive) this.calPos[c]++;
+
+        if (this.resolution > 0)
+        {
+            if (positive) this.posBin[bin(score, this.resolution)]++;
+            else          this.negBin[bin(score, this.resolution)]++;
+        }
+        else
+        {
+            if (positive)
+            {
+                if (this.numPos == this.posScore.length) this.posScore = Arrays.copyOf(this.posScore, 2*this.numPos);
+                this.posScore[this.numPos++] = score;
+            }
+            else
+            {
+                if (this.numNeg == this.negScore.length) this.negScore = Arrays.copyOf(this.negScore, 2*this.numNeg);
+                this.negScore[this.numNeg++] = score;
+            }
+            this.sorted = false;
+        }
+    }
+
+    /**
+     * Add the statistics of another test to these.
+     * @param stat The other statistics. Should have the same number of classes and score resolution.
+     * @throws LearnerException If the statistics cannot be merged.
+     */
+    public void merge(ClassificationStatistics stat) throws LearnerException
+    {
+        int i, j;
+
+        if ((stat.numClass != this.numClass) || (stat.resolution != this.resolution))
+            throw new LearnerException("Cannot merge classification statistics with a different number of classes or score resolution.");
+
+        for (i=0; i<this.numClass; i++) for (j=0; j<this.numClass; j++) this.confusion[i][j] += stat.confusion[i][j];
+        this.numTested       += stat.numTested;
+        this.numUnclassified += stat.numUnclassified;
+        this.numProbability  += stat.numProbability;
+        this.brier           += stat.brier;
+        this.logLoss         += stat.logLoss;
+        for (i=0; i<CALIBRATION_BINS; i++)
+        {
+            this.calCount[i] += stat.calCount[i];
+            this.calScore[i] += stat.calScore[i];
+            this.calPos[i]   += stat.calPos[i];
+        }
+
+        if (this.resolution > 0)
+        {
+            for (i=0; i<this.resolution; i++) { this.posBin[i] += stat.posBin[i]; this.negBin[i] += stat.negBin[i]; }
+        }
+        else
+        {
+            this.posScore = append(this.posScore, this.numPos, stat.posScore, stat.numPos);
+            this.numPos  += stat.numPos;
+            this.negScore = append(this.negScore, this.numNeg, stat.negScore, stat.numNeg);
+            this.numNeg  += stat.numNeg;
+            this.sorted   = false;
+        }
+    }
+
+    private static double []append(double []a, int na, double []b, int nb)
+    {
+        if (na+nb > a.length) a = Arrays.copyOf(a, Math.max(na+nb, 2*a.length));
+        System.arraycopy(b, 0, a, na, nb);
+
+        return(a);
+    }
+
+    private static int bin(double score, int numBins)
+    {
+        int b;
+
+        if (!(score > 0)) b = 0;   // Also NaN
+        else              b = Math.min(numBins-1, (int)(score*numBins));
+
+        return(b);
+    }
+
+    // **********************************************************\
+    // *                Classification Counts                   *
+    // **********************************************************/
+    /**
+     * Give the confusion matrix.
+     * @return [goal class][output class] = Number of instances
+     */
+    public double [][]getConfusionMatrix()
+    {
+        return(this.confusion);
+    }
+
+    public long getNumberOfTested()
+    {
+        return(this.numTested);
+    }
+
+    public long getNumberOfUnclassified()
+    {
+        return(this.numUnclassified);
+    }
+
+    public long getNumberOfCorrect()
+    {
+        int  i;
+        long cor;
+
+        cor = 0;
+        for (i=0; i<this.numClass; i++) cor += (long)this.confusion[i][i];
+
+        return(cor);
+    }
+
+    /**
+     * Give the fraction of the classified instances that was classified wrong.
+     * @return The classification error. 0 if nothing was classified.
+     */
+    public double getClassificationError()
+    {
+        if (this.numTested > 0) return(((double)(this.numTested - getNumberOfCorrect()))/this.numTested);
+        else                    return(0);
+    }
+
+    /**
+     * Give the fraction of the instances that could not be classified.
+     * @return The fraction [0,1] of unclassified instances. 0 if there were no instances.
+     */
+    public double getErrorOfClassification()
+    {
+        long tot;
+
+        tot = this.numTested + this.numUnclassified;
+        if (tot > 0) return(((double)this.numUnclassified)/tot);
+        else         return(0);
+    }
+
+    /**
+     * Give the mean Brier score. The squared distance between the class confidences
+     * and the goal class.
+     * @return The mean Brier score. 0 if no confidences were given.
+     */
+    public double getBrierScore()
+    {
+        if (this.numProbability > 0) return(this.brier/this.numProbability);
+        else                         return(0);
+    }
+
+    /**
+     * Give the mean log-loss. Minus the log of the confidence of the goal class.
+     * @return The mean log-loss. 0 if no confidences were given.
+     */
+    public double getLogLoss()
+    {
+        if (this.numProbability > 0) return(this.logLoss/this.numProbability);
+        else                         return(0);
+    }
+
+    // **********************************************************\
+    // *                  Ranking Statistics                    *
+    // **********************************************************/
+    // The scores in decreasing order, grouped by equal score (or bin).
+    // [0][g] = Number of positives in group g. [1][g] = Number of negatives.
+    private long [][]getGroups()
+    {
+        long [][]group;
+        int      g, b, ip, in;
+        double   s;
+
+        if (this.resolution > 0)
+        {
+            group = new long[2][this.resolution];
+            for (b=0; b<this.resolution; b++)
+            {
+                group[0][b] = this.posBin[this.resolution-1-b];
+                group[1][b] = this.negBin[this.resolution-1-b];
+            }
+        }
+        else
+        {
+            if (!this.sorted)
+            {
+                Arrays.sort(this.posScore, 0, this.numPos);
+                Arrays.sort(this.negScore, 0, this.numNeg);
+                this.sorted = true;
+            }
+
+            // Merge the sorted buffers from the highest score down.
+            group = new long[2][this.numPos+this.numNeg];
+            ip = this.numPos-1; in = this.numNeg-1; g = 0;
+            while ((ip >= 0) || (in >= 0))
+            {
+                if      (ip < 0) s = this.negScore[in];
+                else if (in < 0) s = this.posScore[ip];
+                else             s = Math.max(this.posScore[ip], this.negScore[in]);
+                while ((ip >= 0) && (this.posScore[ip] == s)) { group[0][g]++; ip--; }
+                while ((in >= 0) && (this.negScore[in] == s)) { group[1][g]++; in--; }
+                g++;
+            }
+            group[0] = Arrays.copyOf(group[0], g);
+            group[1] = Arrays.copyOf(group[1], g);
+        }
+
+        return(group);
+    }
+
+    private void checkRanking() throws LearnerException
+    {
+        if (this.numClass != 2) throw new LearnerException("Cannot give ranking statistics of a multi-class classification.");
+    }
+
+    /**
+     * Give the area under the ROC curve. Ties count as half.
+     * @return The probability that a random positive scores higher than a random negative.
+     * @throws LearnerException If the problem is not a 2-class one or there are no positives or negatives.
+     */
+    public double getAUC() throws LearnerException
+    {
+        long [][]group;
+        int      g;
+        double   auc, negAbove, np, nn;
+
+        checkRanking();
+        group = getGroups();
+        np = 0; nn = 0;
+        for (g=0; g<group[0].length; g++) { np += group[0][g]; nn += group[1][g]; }
+        if ((np == 0) || (nn == 0)) throw new LearnerException("Cannot calculate AUC without positives and negatives.");
+
+        // Count the negatives ranked above each positive.
+        auc = 0; negAbove = 0;
+        for (g=0; g<group[0].length; g++)
+        {
+            auc      += group[0][g]*(negAbove + group[1][g]/2.0);
+            negAbove += group[1][g];
+        }
+
+        return(1.0 - auc/(np*nn));
+    }
+
+    /**
+     * Give the ROC curve. The true positive rate at equally spaced false positive rates.
+     * Between the scores the curve is interpolated linearly.
+     * @param ROCLEN The number of points in the curve.
+     * @return [i] = True positive rate at false positive rate i/ROCLEN
+     * @throws LearnerException If the problem is not a 2-class one.
+     */
+    public double []getROCCurve(int ROCLEN) throws LearnerException
+    {
+        long [][]group;
+        double []roc;
+        int      g, i;
+        double   np, nn, fp, tp, x;
+
+        checkRanking();
+        group = getGroups();
+        np = 0; nn = 0;
+        for (g=0; g<group[0].length; g++) { np += group[0][g]; nn += group[1][g]; }
+
+        roc = new double[ROCLEN];
+        if ((np == 0) || (nn == 0)) { Arrays.fill(roc, 1.0); return(roc); }
+
+        fp = 0; tp = 0; g = 0;
+        for (i=0; i<ROCLEN; i++)
+        {
+            x = nn*i/ROCLEN;
+            while ((g < group[1].length) && (fp + group[1][g] <= x)) { fp += group[1][g]; tp += group[0][g]; g++; }
+            if (g < group[1].length) roc[i] = (tp + group[0][g]*(x-fp)/group[1][g])/np;
+            else                     roc[i] = 1.0;
+        }
+
+        return(roc);
+    }
+
+    /**
+     * Give the gain chart. The lift minus one of the top ranked instances.
+     * @param GAINLEN The number of points in the chart.
+     * @param vbeg Begin fraction of the ranked instances on the X-axis.
+     * @param vend End fraction of the ranked instances on the X-axis.
+     * @return [i] = (positive rate of the top fraction) / (positive rate) - 1
+     * @throws LearnerException If the problem is not a 2-class one.
+     */
+    public double []getGainChart(int GAINLEN, double vbeg, double vend) throws LearnerException
+    {
+        long [][]group;
+        double []gain;
+        int      g, i;
+        double   np, nt, top, cnt, pos, nowTop, nowPos, base;
+
+        checkRanking();
+        group = getGroups();
+        np = 0; nt = 0;
+        for (g=0; g<group[0].length; g++) { np += group[0][g]; nt += group[0][g]+group[1][g]; }
+
+        gain = new double[GAINLEN];
+        if (np == 0) return(gain);
+        base = np/nt;
+
+        cnt = 0; pos = 0; g = 0;
+        for (i=0; i<GAINLEN; i++)
+        {
+            // The number of instances and positives in the top of the ranking.
+            top = (vbeg + i*(vend-vbeg)/GAINLEN)*nt;
+            while ((g < group[0].length) && (cnt + group[0][g] + group[1][g] <= top)) { cnt += group[0][g]+group[1][g]; pos += group[0][g]; g++; }
+            nowTop = cnt; nowPos = pos;
+            if ((g < group[0].length) && (top > cnt))
+            {
+                nowPos += group[0][g]*(top-cnt)/(group[0][g]+group[1][g]);
+                nowTop  = top;
+            }
+
+            if (nowTop == 0)
+            {
+                // At the very top. The positive rate of the highest scores.
+                while (group[0][g]+group[1][g] == 0) g++;
+                nowPos = group[0][g];
+                nowTop = group[0][g]+group[1][g];
+            }
+            gain[i] = (nowPos/nowTop)/base - 1.0;
+        }
+
+        return(gain);
+    }
+
+    /**
+     * Give the calibration table of the positive class scores.
+     * @return [b] = { mean score, fraction of positives, number of scores } of the scores in [b/CALIBRATION_BINS, (b+1)/CALIBRATION_BINS[
+     * @throws LearnerException If the problem is not a 2-class one.
+     */
+    public double [][]getCalibration() throws LearnerException
+    {
+        double [][]cal;
+        int        b;
+
+        checkRanking();
+        cal = new double[CALIBRATION_BINS][3];
+        for (b=0; b<CALIBRATION_BINS; b++)
+        {
+            if (this.calCount[b] > 0)
+            {
+                cal[b][0] = this.calScore[b]/this.calCount[b];
+                cal[b][1] = ((double)this.calPos[b])/this.calCount[b];
+            }
+            cal[b][2] = this.calCount[b];
+        }
+
+        return(cal);
+    }
+
+    public int getNumberOfClasses()
+    {
+        return(this.numClass);
+    }
+
+    public int getScoreResolution()
+    {
+        return(this.resolution);
+    }
+
+    /**
+     * Make empty statistics that keep the exact scores.
+     * @param numClass The number of classes
+     */
+    public ClassificationStatistics(int numClass)
+    {
+        this(numClass, 0);
+    }
+
+    /**
+     * Make empty statistics.
+     * @param numClass The number of classes
+     * @param resolution The number of score bins in [0,1]. 0 to keep the exact scores.
+     */
+    public ClassificationStatistics(int numClass, int resolution)
+    {
+        int i;
+
+        this.numClass   = numClass;
+        this.resolution = Math.max(0, resolution);
+        this.confusion  = new double[numClass][];
+        for (i=0; i<numClass; i++) this.confusion[i] = new double[numClass];
+        if (this.resolution > 0)
+        {
+            this.posBin = new long[this.resolution];
+            this.negBin = new long[this.resolution];
+        }
+        else
+        {
+            this.posScore = new double[16];
+            this.negScore = new double[16];
+        }
+        this.sorted   = true;
+        this.calCount = new long[CALIBRATION_BINS];
+        this.calScore = new double[CALIBRATION_BINS];
+        this.calPos   = new long[CALIBRATION_BINS];
+    }
+}
@@ -15,8 +15,10 @@ package org.shaman.learning;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
 
 import org.shaman.dataflow.Transformation;
+import org.shaman.dataflow.VectorBatch;
 import org.shaman.datamodel.Attribute;
 import org.shaman.datamodel.DataModel;
 import org.shaman.datamodel.DataModelDouble;
@@ -58,6 +60,7 @@ public abstract class ClassifierTransformation extends Transformation implements
     protected DataModelPropertyLearning learn;         // Machine Learning bridge of the DataModel
     protected int                     []actind;        // Indices of the instance attributes
     protected Attribute                 attgoal;       // The goal attributes
+    private   boolean                   nativeBatch;   // Classify batches without going through transform(Object)?
 
     // *********************************************************\
     // *          Typical Classifier Implementation            *
@@ -135,6 +138,64 @@ public abstract class ClassifierTransformation extends Transformation implements
         else             return(new Object[]{out});
     }
     
+    /**
+     * Classify a block of double vectors.
+     * Makes one output row per classified vector, in the format of makeClassifierOutput().
+     * Vectors that cannot be classified are left out.
+     * @param in The block of input vectors
+     * @return The block of classifier outputs
+     * @throws DataFlowException If the classification fails.
+     */
+    public VectorBatch transformBatch(VectorBatch in) throws DataFlowException
+    {
+        VectorBatch     out;
+        DoubleMatrix1D  row, inin;
+        double        []conf, outdat;
+        int             i, clout, off, numout;
+
+        // Fall back to per-vector transformation if a sub-class changed it.
+        if (!this.nativeBatch) return(super.transformBatch(in));
+        if (!this.primitive) throw new DataFlowException("Cannot classify double vectors in '"+getName()+"'. The DataModel is Object based.");
+
+        out = null;
+        row = null;
+        try
+        {
+            conf = new double[this.attgoal.getNumberOfGoalClasses()];
+            if      (this.classifierOutput == Classifier.OUT_CLASS)                numout = 1;
+            else if (this.classifierOutput == Classifier.OUT_CLASS_AND_CONFIDENCE) numout = 2;
+            else                                                                   numout = 1+conf.length;
+            out = new VectorBatch(numout, in.getRows());
+            
+            for (i=0; i<in.getRows(); i++)
+            {
+                // Classify the active attributes of the row
+                row   = in.viewRow(i, row);
+                inin  = this.learn.getInstanceVector(this.actind, row);
+                clout = -1;
+                if (inin != null)
+                {
+                    Arrays.fill(conf, 0);
+                    clout = classify(inin, conf);
+                }
+
+                // Write the classifier output in the next output row
+                if (clout != -1)
+                {
+                    off    = out.addRow()*numout;
+                    outdat = out.getData();
+                    outdat[off] = clout;
+                    if      (this.classifierOutput == Classifier.OUT_CLASS_AND_CONFIDENCE)        outdat[off+1] = conf[clout];
+                    else if (this.classifierOutput == Classifier.OUT_CLASS_AND_CONFIDENCE_VECTOR) System.arraycopy(conf, 0, outdat, off+1, conf.length);
+                }
+            }
+        }
+        catch(LearnerException ex) { throw new DataFlowException(ex); }
+        catch(ConfigException ex)  { throw new DataFlowException(ex); }
+
+        return(out);
+    }
+    
     protected DoubleMatrix1D makeClassifierOutput(int clout, double []conf)
     {
         DoubleMatrix1D out;
@@ -243,6 +304,10 @@ public abstract class ClassifierTransformation extends Transformation implements
         // Get instance indices and goal attribute from the datamodel.
         this.actind  = dmin.getActiveIndices();
         this.attgoal = dmin.getAttribute(dmin.getLearningProperty().getGoalIndex());
+        
+        // Batches can be classified directly if the per-vector transformation is the standard one.
+        this.nativeBatch = isInheritedFrom(ClassifierTransformation.class, "transform",       new Class[]{Object.class}) &&
+                           isInheritedFrom(ClassifierTransformation.class, "transformDouble", new Class[]{DoubleMatrix1D.class});
     }
     
     public String getInputName(int port)
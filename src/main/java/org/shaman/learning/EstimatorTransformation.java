@@ -13,6 +13,7 @@ package org.shaman.learning;
 
 
 import org.shaman.dataflow.Transformation;
+import org.shaman.dataflow.VectorBatch;
 import org.shaman.datamodel.Attribute;
 import org.shaman.datamodel.DataModel;
 import org.shaman.datamodel.DataModelDouble;
@@ -52,6 +53,7 @@ public abstract class EstimatorTransformation extends Transformation implements
     protected Object                  []oallbuf;       //                                 Object vectors 
     protected int                     []actind;        // Indices of the instance attributes
     protected Attribute                 attgoal;       // The goal attributes
+    private   boolean                   nativeBatch;   // Estimate batches without going through transform(Object)?
     
     // *********************************************************\
     // *          Typical Classifier Implementation            *
@@ -135,6 +137,51 @@ public abstract class EstimatorTransformation extends Transformation implements
         else               return(new Object[]{esout});
     }
     
+    /**
+     * Estimate the output for a block of double vectors.
+     * Makes one output row per estimated vector. Vectors without estimate are left out.
+     * @param in The block of input vectors
+     * @return The block of estimates
+     * @throws DataFlowException If the estimation fails.
+     */
+    public VectorBatch transformBatch(VectorBatch in) throws DataFlowException
+    {
+        VectorBatch     out;
+        DoubleMatrix1D  row, inin, esout;
+        double        []conf;
+        int             i;
+        
+        // Fall back to per-vector transformation if a sub-class changed it.
+        if (!this.nativeBatch) return(super.transformBatch(in));
+        if (!this.primitive) throw new DataFlowException("Cannot estimate double vectors in '"+getName()+"'. The DataModel is Object based.");
+        
+        out  = null;
+        row  = null;
+        conf = new double[1];
+        try
+        {
+            for (i=0; i<in.getRows(); i++)
+            {
+                // Estimate the active attributes of the row. Copy the estimate in the next output row.
+                row  = in.viewRow(i, row);
+                inin = this.learn.getInstanceVector(this.actind, row);
+                if (inin != null)
+                {
+                    esout = estimate(inin, conf);
+                    if (esout != null)
+                    {
+                        if (out == null) out = new VectorBatch(esout.size(), in.getRows());
+                        out.addRow(esout);
+                    }
+                }
+            }
+        }
+        catch(LearnerException ex) { throw new DataFlowException(ex); }
+        catch(ConfigException ex)  { throw new DataFlowException(ex); }
+        
+        return(out);
+    }
+    
     // **********************************************************\
     // *                  Estimator Training                    *
     // **********************************************************/
@@ -216,6 +263,10 @@ public abstract class EstimatorTransformation extends Transformation implements
         // Also make fast vector manipulation buffers
         if (this.primitive) this.dallbuf = new double[dmin.getAttributeCount()];
         else                this.oallbuf = new Object[dmin.getAttributeCount()];
+        
+        // Batches can be estimated directly if the per-vector transformation is the standard one.
+        this.nativeBatch = isInheritedFrom(EstimatorTransformation.class, "transform",       new Class[]{Object.class}) &&
+                           isInheritedFrom(EstimatorTransformation.class, "transformDouble", new Class[]{DoubleMatrix1D.class});
     }
     
     public String getInputName(int port)
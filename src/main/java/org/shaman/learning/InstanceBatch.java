@@ -11,8 +11,7 @@
 \*********************************************************/
 package org.shaman.learning;
 
-import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.SplittableRandom;
 
 import org.shaman.datamodel.Attribute;
 import org.shaman.datamodel.AttributeDouble;
@@ -45,6 +44,15 @@ public class InstanceBatch implements BatchPresenter
     private int       batchType;        // Type of batch refresh
     private Presenter source;           // The instance source (e.g. memory cache, hardware device)
     
+    // Sampling Buffers. Reused between batches.
+    private SplittableRandom random;    // Draws the batches. Not shared with other batches.
+    private int    []perm;              // Permutation of the source instances for sub-sampling
+    private int  [][]pool;              // [g] = The source instances of balance group g. null = not made yet.
+    private int    []poolPos;           // [g] = Number of instances drawn from pool g in its current round
+    private double []poolFraction;      // [g] = Fraction of the batch that should come from group g
+    private int    []poolCount;         // [g] = Number of instances of group g in the current batch
+    private int    []poolOrder;         // Order in which the groups get the left-over places in the batch
+    
     // **********************************************************\
     // *            Produce a new batch of instances            *
     // **********************************************************/
@@ -52,132 +60,202 @@ public class InstanceBatch implements BatchPresenter
     
     public void nextBatch() throws LearnerException
     {
-        int             i, j, numin;
-        int             ind1, ind2;
-        int             indbuf;
-        int             goalind;
-        DataModelPropertyLearning learn;
-        AttributeDouble attgoal;
-        Hashtable       hashgval;
-        double          []igoals;
-        double          []pgoals;
-        int             [][]gclass;
-        double          cd;
-        double          pclass;
-        Object          keynow;
-        Iterator        itkeys;
+        int numin, numinsrc;
         
         // Get a new batch of instances from the instance source
         if (firstTime || (batchType == BATCH_REFRESH))
         {
             source.getNewInstances();
+            this.pool = null;
         }
         
         // Create space for the instances if necessary
-        numin = (int)(sampleFraction*source.getNumberOfInstances());
+        numinsrc = source.getNumberOfInstances();
+        numin    = (int)(sampleFraction*numinsrc);
         if ((index == null) || (numin != index.length)) { index = new int[numin]; }
         
-        // No goal balancing
         if (balance == BatchPresenter.GOAL_BALANCE_NONE)
         {
-            // Create a new set of indices taking into account the sub-sampling and goal balancing parameters
-            if (sampleFraction == 1.00) // Use them all.
-            {
-                // Don't do the sub-sampling then...
-                for (i=0; i<index.length; i++) index[i] = i;
-            }
-            else
+            if (numin == numinsrc) // Use them all.
             {
-                // Select the specified random fraction of the instances
-                int     numinsrc = source.getNumberOfInstances();
-                byte    []isel = new byte[numinsrc];
-                
-                for (i=0; i<isel.length; i++) isel[i] = 0;
-                for (i=0; i<index.length; i++)
-                {
-                    ind1      = Uniform.staticNextIntFromTo(0, numinsrc-1);
-                    while (isel[ind1] == 1) { ind1++; if (ind1 == numinsrc) ind1 = 0; }
-                    index[i] = ind1;
-                }
+                // Don't do the sub-sampling then. Just change the order.
+                for (int i=0; i<index.length; i++) index[i] = i;
+                shuffle(index, index.length);
             }
+            else sample(numinsrc);
         }
         else if (balance == BatchPresenter.GOAL_BALANCE_CLASS || balance == BatchPresenter.GOAL_BALANCE_CLASS_VALUE)
         {
-            try
+            // Balance the instances according to their goal value or class.
+            if (this.pool == null) makePools();
+            sampleBalanced();
+            shuffle(index, index.length);
+        }
+        
+        firstTime = false;
+    }
+    
+    private void sample(int numinsrc)
+    {
+        int i, j, buf;
+        
+        // Select a random fraction of the instances. The first steps of a Fisher-Yates shuffle of all instances.
+        if ((this.perm == null) || (this.perm.length != numinsrc))
+        {
+            this.perm = new int[numinsrc];
+            for (i=0; i<numinsrc; i++) this.perm[i] = i;
+        }
+        for (i=0; i<index.length; i++)
+        {
+            j            = i + this.random.nextInt(numinsrc-i);
+            buf          = this.perm[i];
+            this.perm[i] = this.perm[j];
+            this.perm[j] = buf;
+            index[i]     = this.perm[i];
+        }
+    }
+    
+    private void sampleBalanced()
+    {
+        int i, g, pos, left;
+        
+        // The whole part of the fraction of every group. The left-over places go to different random groups.
+        left = index.length;
+        for (g=0; g<this.pool.length; g++)
+        {
+            this.poolCount[g] = (int)(index.length*this.poolFraction[g]);
+            left             -= this.poolCount[g];
+        }
+        left = Math.min(left, this.pool.length);
+        shuffle(this.poolOrder, left);
+        for (i=0; i<left; i++) this.poolCount[this.poolOrder[i]]++;
+        
+        // Draw the instances of each group from its pool.
+        pos = 0;
+        for (g=0; g<this.pool.length; g++)
+            for (i=0; i<this.poolCount[g]; i++) index[pos++] = nextFromPool(g);
+    }
+    
+    private int nextFromPool(int g)
+    {
+        int   k, j, buf;
+        int []p;
+        
+        // Draw without replacement until the pool is used up. Then start a new round.
+        p = this.pool[g];
+        k = this.poolPos[g];
+        j = k + this.random.nextInt(p.length-k);
+        buf  = p[k];
+        p[k] = p[j];
+        p[j] = buf;
+        if (k+1 == p.length) this.poolPos[g] = 0;
+        else                 this.poolPos[g] = k+1;
+        
+        return(p[k]);
+    }
+    
+    private void shuffle(int []a, int num)
+    {
+        int i, j, buf;
+        
+        // Put a random selection of 'num' elements in front, in random order.
+        for (i=0; i<num; i++)
+        {
+            j    = i + this.random.nextInt(a.length-i);
+            buf  = a[i];
+            a[i] = a[j];
+            a[j] = buf;
+        }
+    }
+    
+    private void makePools() throws LearnerException
+    {
+        int        i, j, g, gc, numinsrc;
+        int      []group, size, first;
+        int    [][]gclass;
+        double [][]gvalue;
+        double     gv;
+        Attribute  attgoal;
+        DataModelPropertyLearning learn;
+        
+        try
+        {
+            learn    = source.getDataModel().getLearningProperty();
+            attgoal  = source.getDataModel().getAttribute(learn.getGoalIndex());
+            gclass   = attgoal.getGoalClassIndices();
+            numinsrc = source.getNumberOfInstances();
+            
+            // The groups. Every goal class, or every goal value of every goal class.
+            first = new int[gclass.length];
+            if (balance == BatchPresenter.GOAL_BALANCE_CLASS)
             {
-                DataModelDouble dmdo;
-                
-                dmdo  = (DataModelDouble)source.getDataModel();
-                learn = source.getDataModel().getLearningProperty();
-                // Balance the instances according to their goal value or class.
+                this.poolFraction = new double[gclass.length];
+                for (i=0; i<gclass.length; i++) { first[i] = i; this.poolFraction[i] = 1.0 / gclass.length; }
+                gvalue = null;
+            }
+            else
+            {
+                if (!isPrimitive()) throw new LearnerException("Can only balance the goal values of primitive instances.");
                 
-                // Determine the probabilities of having a certain goal value or class.
-                goalind  = learn.getGoalIndex();
-                attgoal  = dmdo.getAttributeDouble(goalind);
-                hashgval = new Hashtable();
-                gclass   = dmdo.getAttributeDouble(goalind).getGoalClassIndices();
-                pclass   = 1.0 / gclass.length;
+                gvalue = new double[gclass.length][];
+                g      = 0;
                 for (i=0; i<gclass.length; i++)
                 {
-                    if (balance == GOAL_BALANCE_CLASS_VALUE)
-                    {
-                        for (j=0; j<gclass[i].length; j++)
-                        {
-                            cd = attgoal.getCategoryDouble(gclass[i][j]);  // Balance according to goal value
-                            hashgval.put(new Double(cd), new Double(pclass / gclass[i].length));
-                        }
-                    }
-                    else if (balance == GOAL_BALANCE_CLASS)
-                    {
-                        hashgval.put(new Double(i), new Double(pclass));  // Balance according to goal class
-                    }
+                    first[i]  = g;
+                    gvalue[i] = new double[gclass[i].length];
+                    for (j=0; j<gclass[i].length; j++) gvalue[i][j] = ((AttributeDouble)attgoal).getCategoryDouble(gclass[i][j]);
+                    g += gclass[i].length;
                 }
-            }
-            catch(DataModelException ex) { throw new LearnerException(ex); }
-            
-            // Make a PDF for selecting a goal class or value.
-            itkeys   = hashgval.keySet().iterator();
-            igoals   = new double[hashgval.size()];
-            pgoals   = new double[hashgval.size()];
-            i = 0;
-            while (itkeys.hasNext())
-            {
-                keynow    = itkeys.next();
-                igoals[i] = ((Double)keynow).doubleValue();
-                pgoals[i] = ((Double)hashgval.get(keynow)).doubleValue();
-                i++;
+                this.poolFraction = new double[g];
+                for (i=0; i<gclass.length; i++)
+                    for (j=0; j<gclass[i].length; j++) this.poolFraction[first[i]+j] = (1.0 / gclass.length) / gclass[i].length;
             }
             
-            double rv, acc;
-            for (i=0; i<index.length; i++)
+            // Find the group of every instance.
+            group = new int[numinsrc];
+            size  = new int[this.poolFraction.length];
+            for (i=0; i<numinsrc; i++)
             {
-                // Select the goal value of the next instances according to the PDF
-                rv = Uniform.staticNextDoubleFromTo(0.0,1.0);
-                j = 0; acc = pgoals[0]; while (acc < rv) { acc += pgoals[++j]; }
-                
-                // Get an instance with the correct goal value
-                if (balance == BatchPresenter.GOAL_BALANCE_CLASS)
-                {
-                    index[i] = source.getIndexWithGoalClass((int)igoals[j]);
-                }
-                else if (balance == BatchPresenter.GOAL_BALANCE_CLASS_VALUE)
+                gc = source.getGoalClass(i);
+                g  = -1;
+                if (gc != -1)
                 {
-                    index[i] = source.getIndexWithGoalValue(igoals[j]);
+                    if (gvalue == null) g = gc;
+                    else
+                    {
+                        gv = source.getGoal(i);
+                        for (j=0; (j<gvalue[gc].length) && (g == -1); j++) if (gvalue[gc][j] == gv) g = first[gc]+j;
+                    }
                 }
+                group[i] = g;
+                if (g != -1) size[g]++;
             }
         }
+        catch(DataModelException ex) { throw new LearnerException(ex); }
         
-        // Shuffle them around a bit to re-gain the randomness.
-        for (i=0; i<index.length; i++)
+        // Fill the pools.
+        this.pool = new int[size.length][];
+        for (g=0; g<size.length; g++)
         {
-            ind1   = Uniform.staticNextIntFromTo(0, index.length-1);
-            ind2   = Uniform.staticNextIntFromTo(0, index.length-1);
-            indbuf = index[ind1];
-            index[ind1] = index[ind2];
-            index[ind2] = indbuf;
+            if (size[g] == 0) throw new LearnerException("Cannot find an instance of balance group "+g);
+            this.pool[g] = new int[size[g]];
+            size[g]      = 0;
         }
-        
-        firstTime = false;
+        for (i=0; i<group.length; i++) if (group[i] != -1) this.pool[group[i]][size[group[i]]++] = i;
+        this.poolPos   = new int[this.pool.length];
+        this.poolCount = new int[this.pool.length];
+        this.poolOrder = new int[this.pool.length];
+        for (g=0; g<this.pool.length; g++) this.poolOrder[g] = g;
+    }
+    
+    /**
+     * Set the seed of the random numbers used to sample the batches.
+     * By default the seed is taken from the Colt random engine when the batch is made.
+     * @param seed The seed
+     */
+    public void setRandomSeed(long seed)
+    {
+        this.random = new SplittableRandom(seed);
     }
     
     public int getIndexWithGoalClass(int gc) throws LearnerException
@@ -248,6 +326,7 @@ public class InstanceBatch implements BatchPresenter
             }
         }
         else throw new LearnerException("Can't reorder because the source Presenter is not a CachingPresenter.");
+        this.pool = null;
     }
     
     
@@ -260,6 +339,13 @@ public class InstanceBatch implements BatchPresenter
         else               return(-1);
     }
     
+    /**
+     * Give the position in the source of an instance of the batch.
+     * @param ind The position in the batch
+     * @return The position of the instance in the source Presenter
+     */
+    public int getIndex(int ind) { return(index[ind]); }
+    
     public DataModel getDataModel()              { return(source.getDataModel()); }
     public DataModel getInputDataModel(int port) { return(source.getDataModel()); }
     public void setDataModel(DataModel dm) { source.setDataModel(dm); }
@@ -272,8 +358,8 @@ public class InstanceBatch implements BatchPresenter
     public int            getGoalClass(int ind) throws LearnerException      { return(source.getGoalClass(index[ind])); }
     public void           setInstance(int ind, DoubleMatrix1D in)          { source.setInstance(index[ind], in); }
     public void           setObjectInstance(int ind, ObjectMatrix1D in)    { source.setObjectInstance(index[ind], in); }
-    public void           setGoal(int ind, double g)                { source.setGoal(index[ind],g);  }
-    public void           setObjectGoal(int ind, Object g)          { source.setObjectGoal(index[ind], g); }
+    public void           setGoal(int ind, double g)                { source.setGoal(index[ind],g); this.pool = null; }
+    public void           setObjectGoal(int ind, Object g)          { source.setObjectGoal(index[ind], g); this.pool = null; }
     public void           setWeight(int ind, double w)              { source.setWeight(index[ind], w);  }
     
     public void setWeights(double []weights)
@@ -325,6 +411,7 @@ public class InstanceBatch implements BatchPresenter
     // **********************************************************/
     public InstanceBatch()
     {
+        this.random = new SplittableRandom(Uniform.staticNextLongFromTo(Long.MIN_VALUE, Long.MAX_VALUE));
     }
     
     /**
@@ -362,6 +449,7 @@ public class InstanceBatch implements BatchPresenter
         {
             clib.create(source, batchType, balance, sampleFraction);
             clib.index          = (int [])index.clone(); // Otherwise super.clone() could be used
+            clib.random         = this.random.split();
         }
         catch(LearnerException ex) { throw new CloneNotSupportedException("Cannot clone because of HCI exception"); }
         
@@ -0,0 +1,169 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.learning;
+
+import java.io.File;
+
+import org.shaman.dataflow.FileSource;
+import org.shaman.dataflow.Transformation;
+import org.shaman.dataflow.VectorBatch;
+import org.shaman.datamodel.DataModel;
+import org.shaman.datamodel.DataModelDouble;
+import org.shaman.exceptions.ConfigException;
+import org.shaman.exceptions.DataFlowException;
+import org.shaman.exceptions.DataModelException;
+import org.shaman.exceptions.LearnerException;
+
+import cern.colt.matrix.DoubleMatrix1D;
+
+
+/**
+ * <h2>Instance File Sink</h2>
+ * Writes the primitive data vectors flowing into it as instances in a binary instance file.
+ * The file can be mapped with <code>InstanceSetMapped</code>.
+ * Use <code>convert()</code> to turn the output of e.g. a CSV FileSource or an ArffSource into an instance file.
+ * @see InstanceFileWriter
+ */
+
+// **********************************************************\
+// *       Data Flow End-point Writing an Instance File     *
+// **********************************************************/
+public class InstanceFileSink extends Transformation
+{
+    private File               file;         // The instance file to write
+    private int                precision;    // InstanceFileWriter.PRECISION_DOUBLE or PRECISION_FLOAT
+
+    // **** Run-time Data ***
+    private InstanceFileWriter writer;
+
+    // **********************************************************\
+    // *                  Write the Input Vectors               *
+    // **********************************************************/
+    public Object []transform(Object in) throws DataFlowException
+    {
+        try
+        {
+            this.writer.writeVector((DoubleMatrix1D)in);
+        }
+        catch(LearnerException ex) { throw new DataFlowException(ex); }
+
+        return(null);
+    }
+
+    public VectorBatch transformBatch(VectorBatch in) throws DataFlowException
+    {
+        DoubleMatrix1D view;
+        int            i;
+
+        try
+        {
+            view = null;
+            for (i=0; i<in.getRows(); i++)
+            {
+                view = in.viewRow(i, view);
+                this.writer.writeVector(view);
+            }
+        }
+        catch(LearnerException ex) { throw new DataFlowException(ex); }
+
+        return(null);
+    }
+
+    /**
+     * Convert all data vectors of the given source into an instance file.
+     * The source should output primitive vectors with the goal attribute defined in its DataModel.
+     * @param src An initialized source. Is pushed until it runs dry.
+     * @param file The instance file to make
+     * @param precision <code>InstanceFileWriter.PRECISION_DOUBLE</code> or <code>PRECISION_FLOAT</code>
+     * @return The number of instances written.
+     * @throws LearnerException If the source cannot be read or the file cannot be written.
+     */
+    public static long convert(FileSource src, File file, int precision) throws LearnerException
+    {
+        InstanceFileSink sink;
+        long             num;
+
+        sink = new InstanceFileSink();
+        sink.setFile(file);
+        sink.setPrecision(precision);
+        try
+        {
+            src.registerConsumer(0, sink, 0);
+            sink.registerSupplier(0, src, 0);
+            sink.init();
+            while (src.push()) ;
+            num = sink.writer.getNumberOfInstances();
+            sink.cleanUp();
+        }
+        catch(ConfigException ex)   { throw new LearnerException(ex); }
+        catch(DataFlowException ex) { throw new LearnerException(ex); }
+
+        return(num);
+    }
+
+    // **********************************************************\
+    // *                   Sink Configuration                   *
+    // **********************************************************/
+    public void setFile(File file)           { this.file      = file; }
+    public void setPrecision(int precision)  { this.precision = precision; }
+
+    // **********************************************************\
+    // *            Transformation/Flow Interface               *
+    // **********************************************************/
+    public void init() throws ConfigException
+    {
+        if (this.file == null) throw new ConfigException("Please specify the instance file to write.");
+
+        setSupplierAsInputDataModel(0);
+        try
+        {
+            this.writer = new InstanceFileWriter(this.file, getInputDataModel(0), this.precision);
+        }
+        catch(LearnerException ex) { throw new ConfigException(ex); }
+    }
+
+    public void cleanUp() throws DataFlowException
+    {
+        try
+        {
+            if (this.writer != null) this.writer.close();
+        }
+        catch(LearnerException ex) { throw new DataFlowException(ex); }
+    }
+
+    public String getOutputName(int port)
+    {
+        return(null);
+    }
+
+    public String getInputName(int port)
+    {
+        if (port == 0) return("Instance Input");
+        else return(null);
+    }
+
+    public int getNumberOfInputs()  { return(1); }
+    public int getNumberOfOutputs() { return(0); }
+
+    public void checkDataModelFit(int port, DataModel dataModel) throws DataModelException
+    {
+        if (!(dataModel instanceof DataModelDouble)) throw new DataModelException("Only primitive data vectors can be written in an instance file.");
+    }
+
+    public InstanceFileSink()
+    {
+        super();
+        this.precision = InstanceFileWriter.PRECISION_DOUBLE;
+        name           = "Instance File Sink";
+        description    = "Writes the input vectors in a memory-mappable instance file";
+    }
+}
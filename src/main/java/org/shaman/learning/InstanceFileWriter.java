@@ -0,0 +1,348 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.learning;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.shaman.datamodel.Attribute;
+import org.shaman.datamodel.AttributeDouble;
+import org.shaman.datamodel.DataModel;
+import org.shaman.datamodel.DataModelDouble;
+import org.shaman.datamodel.DataModelPropertyLearning;
+import org.shaman.exceptions.DataModelException;
+import org.shaman.exceptions.LearnerException;
+
+import cern.colt.matrix.DoubleMatrix1D;
+
+
+// **********************************************************\
+// *            Write Instances in a Binary File            *
+// **********************************************************/
+/**
+ * <h2>Instance File Writer</h2>
+ * Writes instances in the binary format read by <code>InstanceSetMapped</code>.
+ * The file starts with a header describing the DataModel, followed by
+ * fixed-width rows: the active attribute values as doubles or floats,
+ * then the goal and the weight as doubles. Rows are little-endian.
+ * <p>
+ * The instances are written one by one, so the data set never has to fit in memory.
+ * @see InstanceSetMapped
+ * @see InstanceFileSink
+ */
+public class InstanceFileWriter
+{
+    /** File format identification */
+    public static final int MAGIC   = 0x53484D49;
+    public static final int VERSION = 1;
+
+    /** Store the attribute values as 8 byte doubles. */
+    public static final int PRECISION_DOUBLE = 8;
+    /** Store the attribute values as 4 byte floats. */
+    public static final int PRECISION_FLOAT  = 4;
+
+    // Position of the instance count in the header
+    static final int POSITION_COUNT = 16;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private DataModelDouble dataModel;       // The DataModel of the instances
+    private int             precision;       // PRECISION_DOUBLE or PRECISION_FLOAT
+    private int           []actind;          // Indices of the active attributes
+    private int             goalind;         // Index of the goal. -1 if none.
+
+    // **** Run-time Data ***
+    private RandomAccessFile file;
+    private FileChannel      channel;
+    private ByteBuffer       buffer;          // Rows waiting to be written
+    private long             count;           // Number of instances written
+
+    // **********************************************************\
+    // *                    Writing Instances                   *
+    // **********************************************************/
+    /**
+     * Write an instance.
+     * @param instance The values of the active attributes
+     * @param goal The goal value
+     * @param weight The weight of the instance
+     * @throws LearnerException If the instance has the wrong size or writing fails.
+     */
+    public void write(DoubleMatrix1D instance, double goal, double weight) throws LearnerException
+    {
+        int i;
+
+        if (instance.size() != this.actind.length) throw new LearnerException("Cannot write instance of size "+instance.size()+". Expected "+this.actind.length+" active attribute values.");
+
+        makeRoom();
+        if (this.precision == PRECISION_DOUBLE) for (i=0; i<this.actind.length; i++) this.buffer.putDouble(instance.getQuick(i));
+        else                                    for (i=0; i<this.actind.length; i++) this.buffer.putFloat((float)instance.getQuick(i));
+        this.buffer.putDouble(goal);
+        this.buffer.putDouble(weight);
+        this.count++;
+    }
+
+    /**
+     * Write the instance made from a data vector of the DataModel.
+     * Vectors with a missing goal value are skipped, as in <code>InstanceSetMemory</code>.
+     * @param vec A data vector containing all attributes.
+     * @return <code>true</code> if the vector was written.
+     * @throws LearnerException If writing fails.
+     */
+    public boolean writeVector(DoubleMatrix1D vec) throws LearnerException
+    {
+        double goal;
+        int    i;
+
+        goal = 0;
+        try
+        {
+            if (this.goalind != -1)
+            {
+                goal = vec.getQuick(this.goalind);
+                if (this.dataModel.getAttributeDouble(this.goalind).isMissingAsDouble(goal)) return(false);
+            }
+        }
+        catch(DataModelException ex) { throw new LearnerException(ex); }
+
+        makeRoom();
+        if (this.precision == PRECISION_DOUBLE) for (i=0; i<this.actind.length; i++) this.buffer.putDouble(vec.getQuick(this.actind[i]));
+        else                                    for (i=0; i<this.actind.length; i++) this.buffer.putFloat((float)vec.getQuick(this.actind[i]));
+        this.buffer.putDouble(goal);
+        this.buffer.putDouble(1.0);
+        this.count++;
+
+        return(true);
+    }
+
+    public long getNumberOfInstances() { return(this.count); }
+
+    private void makeRoom() throws LearnerException
+    {
+        if (this.buffer.remaining() < getRowSize(this.actind.length, this.precision)) flush();
+    }
+
+    private void flush() throws LearnerException
+    {
+        try
+        {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) this.channel.write(this.buffer);
+            this.buffer.clear();
+        }
+        catch(IOException ex) { throw new LearnerException(ex); }
+    }
+
+    /**
+     * Write the remaining rows and the number of instances. Closes the file.
+     * @throws LearnerException If writing fails.
+     */
+    public void close() throws LearnerException
+    {
+        ByteBuffer cbuf;
+
+        if (this.file == null) return;
+        try
+        {
+            flush();
+            cbuf = ByteBuffer.allocate(8);
+            cbuf.putLong(this.count);
+            cbuf.flip();
+            this.channel.write(cbuf, POSITION_COUNT);
+            this.file.close();
+        }
+        catch(IOException ex) { throw new LearnerException(ex); }
+        finally
+        {
+            this.file    = null;
+            this.channel = null;
+        }
+    }
+
+    /**
+     * Give the number of bytes of one row in the file.
+     * @param numatt The number of active attributes
+     * @param precision PRECISION_DOUBLE or PRECISION_FLOAT
+     * @return The size of a row.
+     */
+    public static int getRowSize(int numatt, int precision)
+    {
+        return(numatt*precision+16);
+    }
+
+    // **********************************************************\
+    // *                  DataModel Description                 *
+    // **********************************************************/
+    /*
+     * The DataModel is not Serializable. Write the parts a learner needs:
+     * name, type, legal and missing values, activity and goal of each attribute.
+     */
+    static void writeDataModel(DataOutput out, DataModelDouble dm) throws IOException, DataModelException
+    {
+        AttributeDouble att;
+        double      [][]gc;
+        int             i, j;
+
+        out.writeUTF(dm.getName() != null ? dm.getName() : "");
+        out.writeInt(dm.getAttributeCount());
+        out.writeInt(dm.getLearningProperty().getHasGoal() ? dm.getLearningProperty().getGoalIndex() : -1);
+        for (i=0; i<dm.getAttributeCount(); i++)
+        {
+            att = dm.getAttributeDouble(i);
+            out.writeUTF(att.getName() != null ? att.getName() : "");
+            if      (att.hasProperty(Attribute.PROPERTY_CATEGORICAL)) out.writeByte(2);
+            else if (att.hasProperty(Attribute.PROPERTY_CONTINUOUS))  out.writeByte(1);
+            else                                                       out.writeByte(0);
+            writeArray(out, att.getLegalValues());
+            writeArray(out, att.getMissingValues());
+            out.writeDouble(att.getMissingAsDouble());
+            out.writeDouble(att.getDefaultValue());
+            out.writeInt(att.getMissingIs());
+            out.writeBoolean(att.getIllegalIsMissing());
+            out.writeBoolean(att.getIsActive());
+            out.writeBoolean(att.getIsGoal());
+            out.writeInt(att.getGoalType());
+            gc = att.getGoalClasses();
+            out.writeInt(gc != null ? gc.length : -1);
+            if (gc != null) for (j=0; j<gc.length; j++) writeArray(out, gc[j]);
+        }
+    }
+
+    static DataModelDouble readDataModel(DataInput in) throws IOException, DataModelException
+    {
+        DataModelDouble dm;
+        AttributeDouble att;
+        String          name;
+        double      [][]gc;
+        double        []legal;
+        int             i, j, numatt, goalind, kind, numgc;
+        boolean         isgoal;
+        int             goaltype;
+
+        name    = in.readUTF();
+        numatt  = in.readInt();
+        goalind = in.readInt();
+        dm      = new DataModelDouble(name, numatt);
+        for (i=0; i<numatt; i++)
+        {
+            att = dm.getAttributeDouble(i);
+            att.setName(in.readUTF());
+            kind  = in.readByte();
+            legal = readArray(in);
+            if      (kind == 2) att.initAsSymbolCategorical(legal);
+            else if (kind == 1) att.initAsNumberContinuous(legal);
+            else                { att.initAsFreeNumber(); att.setLegalValues(legal); }
+            att.setMissingValues(readArray(in));
+            att.setMissingAsDouble(in.readDouble());
+            att.setDefaultValue(in.readDouble());
+            att.setMissingIs(in.readInt());
+            att.setIllegalIsMissing(in.readBoolean());
+            att.setIsActive(in.readBoolean());
+            isgoal   = in.readBoolean();
+            goaltype = in.readInt();
+            numgc    = in.readInt();
+            if (numgc >= 0)
+            {
+                gc = new double[numgc][];
+                for (j=0; j<numgc; j++) gc[j] = readArray(in);
+                att.setValueGroupsAsGoal(gc);
+            }
+            att.setIsGoal(isgoal);
+            att.setGoalType(goaltype);
+        }
+        if (goalind != -1) dm.getLearningProperty().setGoal(goalind);
+
+        return(dm);
+    }
+
+    private static void writeArray(DataOutput out, double []arr) throws IOException
+    {
+        out.writeInt(arr != null ? arr.length : -1);
+        if (arr != null) for (int i=0; i<arr.length; i++) out.writeDouble(arr[i]);
+    }
+
+    private static double []readArray(DataInput in) throws IOException
+    {
+        double []arr;
+        int      len;
+
+        len = in.readInt();
+        if (len < 0) return(null);
+        arr = new double[len];
+        for (int i=0; i<len; i++) arr[i] = in.readDouble();
+
+        return(arr);
+    }
+
+    // **********************************************************\
+    // *                      Construction                      *
+    // **********************************************************/
+    /**
+     * Create the file and write the header.
+     * @param out The file to write
+     * @param dm The DataModel of the instances. Should be primitive.
+     * @param precision <code>PRECISION_DOUBLE</code> or <code>PRECISION_FLOAT</code>
+     * @throws LearnerException If the DataModel is not primitive or the file cannot be written.
+     */
+    public InstanceFileWriter(File out, DataModel dm, int precision) throws LearnerException
+    {
+        ByteArrayOutputStream bout;
+        DataOutputStream      dout;
+        DataModelPropertyLearning learn;
+        int                   pad;
+
+        if (!(dm instanceof DataModelDouble)) throw new LearnerException("Only primitive instances can be written in an instance file.");
+        if ((precision != PRECISION_DOUBLE) && (precision != PRECISION_FLOAT)) throw new LearnerException("Unknown precision "+precision);
+
+        this.dataModel = (DataModelDouble)dm;
+        this.precision = precision;
+        this.actind    = dm.getActiveIndices();
+        learn          = dm.getLearningProperty();
+        this.goalind   = learn.getHasGoal() ? learn.getGoalIndex() : -1;
+        try
+        {
+            // Header. Rows start at a multiple of 8 bytes.
+            bout = new ByteArrayOutputStream();
+            dout = new DataOutputStream(bout);
+            dout.writeInt(MAGIC);
+            dout.writeInt(VERSION);
+            dout.writeInt(precision);
+            dout.writeInt(this.actind.length);
+            dout.writeLong(0);                      // Number of instances. Written at close().
+            dout.writeLong(0);                      // Offset of the first row.
+            writeDataModel(dout, this.dataModel);
+            pad = (8 - (dout.size() % 8)) % 8;
+            for (int i=0; i<pad; i++) dout.writeByte(0);
+            dout.flush();
+
+            this.file    = new RandomAccessFile(out, "rw");
+            this.file.setLength(0);
+            this.channel = this.file.getChannel();
+            this.buffer  = ByteBuffer.wrap(bout.toByteArray());
+            this.buffer.putLong(POSITION_COUNT+8, bout.size());
+            while (this.buffer.hasRemaining()) this.channel.write(this.buffer);
+
+            this.buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, getRowSize(this.actind.length, precision)));
+            this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.count  = 0;
+        }
+        catch(IOException ex)        { throw new LearnerException(ex); }
+        catch(DataModelException ex) { throw new LearnerException(ex); }
+    }
+}
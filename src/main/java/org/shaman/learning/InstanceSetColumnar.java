@@ -0,0 +1,485 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.learning;
+
+import org.shaman.datamodel.Attribute;
+import org.shaman.datamodel.AttributeDouble;
+import org.shaman.datamodel.DataModel;
+import org.shaman.datamodel.DataModelDouble;
+import org.shaman.exceptions.DataModelException;
+import org.shaman.exceptions.LearnerException;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.ObjectMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+
+
+// **********************************************************\
+// *   Primitive Instances in one Contiguous Memory Block   *
+// **********************************************************/
+/**
+ * <h2>Columnar CachingPresenter</h2>
+ * Stores the instances of a primitive DataModel in one <code>double[]</code>.
+ * By default the store is column-major: the values of an attribute are next to each other,
+ * which is what learners that count or sort per attribute need.
+ * A row-major layout can be chosen for learners that mostly scan whole instances.
+ * <p>
+ * <code>getInstance()</code> returns a view on the store, nothing is copied.
+ * <code>reorder()</code> only permutes an index, so the train and test sets of a Validation
+ * share the same store. Learners can detect this class and read the columns directly
+ * with <code>getValue()</code> and <code>getColumn()</code>.
+ * <p>
+ * Object instances are not supported.
+ */
+public class InstanceSetColumnar implements CachingPresenter
+{
+    /** Values of an attribute are contiguous. */
+    public static final int LAYOUT_COLUMN_MAJOR = 0;
+    /** Values of an instance are contiguous. */
+    public static final int LAYOUT_ROW_MAJOR    = 1;
+
+    private DataModel  dataModel;      // The datamodel of the instances' attributes
+    private int        layout;         // Column or row major store
+
+    // The Store
+    private double   []store;          // The active attribute values of all physical rows
+    private int        numatt;         // Number of (active) attributes in an instance
+    private int        numrow;         // Number of physical rows in the store
+    private boolean    shared;         // Store is shared with a clone. Copy before changing it.
+
+    // Logical instances
+    private int      []index;          // [i] = Physical row of instance i
+    private double   []goal;           // Goal value of instance i
+    private double   []weight;         // Weight of instance i
+    // Class Balancing
+    private int        pos = 0;
+
+    // **********************************************************\
+    // *              Zero-Copy View on an Instance             *
+    // **********************************************************/
+    /**
+     * A DoubleMatrix1D on a row of the store.
+     */
+    static class InstanceView extends DenseDoubleMatrix1D
+    {
+        private static final long serialVersionUID = 1L;
+
+        InstanceView(int size, double []store, int zero, int stride)
+        {
+            super(size, store, zero, stride);
+        }
+    }
+
+    private DoubleMatrix1D makeView(int row)
+    {
+        if (this.layout == LAYOUT_COLUMN_MAJOR) return(new InstanceView(this.numatt, this.store, row, this.numrow));
+        else                                    return(new InstanceView(this.numatt, this.store, row*this.numatt, 1));
+    }
+
+    private int offset(int row, int att)
+    {
+        if (this.layout == LAYOUT_COLUMN_MAJOR) return(att*this.numrow+row);
+        else                                    return(row*this.numatt+att);
+    }
+
+    // **********************************************************\
+    // *                   Direct Column Access                 *
+    // **********************************************************/
+    /**
+     * Give the value of an attribute of an instance without making a view.
+     * @param ind The instance index
+     * @param att The index of the attribute in the instance (i.e. among the active attributes)
+     * @return The value
+     */
+    public double getValue(int ind, int att)
+    {
+        return(this.store[offset(this.index[ind], att)]);
+    }
+
+    /**
+     * Copy the values of an attribute of all instances in the given buffer, in instance order.
+     * @param att The index of the attribute in the instances
+     * @param buf The buffer. If <code>null</code> or too small, a new one is made.
+     * @return The buffer containing the values.
+     */
+    public double []getColumn(int att, double []buf)
+    {
+        int i, numins, base;
+
+        numins = this.index.length;
+        if ((buf == null) || (buf.length < numins)) buf = new double[numins];
+        if (this.layout == LAYOUT_COLUMN_MAJOR)
+        {
+            base = att*this.numrow;
+            for (i=0; i<numins; i++) buf[i] = this.store[base+this.index[i]];
+        }
+        else
+        {
+            for (i=0; i<numins; i++) buf[i] = this.store[this.index[i]*this.numatt+att];
+        }
+
+        return(buf);
+    }
+
+    /**
+     * Give the goal classes of all instances.
+     * @return [i] = goal class of instance i
+     * @throws LearnerException If the goal is not a class.
+     */
+    public int []getGoalClasses() throws LearnerException
+    {
+        int           []gc;
+        AttributeDouble attgoal;
+        int             i;
+
+        attgoal = getGoalAttribute();
+        gc      = new int[this.goal.length];
+        try
+        {
+            for (i=0; i<gc.length; i++) gc[i] = attgoal.getGoalClass(this.goal[i]);
+        }
+        catch(DataModelException ex) { throw new LearnerException(ex); }
+
+        return(gc);
+    }
+
+    /**
+     * Give the number of (active) attributes in the instances.
+     * @return The instance size.
+     */
+    public int getNumberOfAttributes()
+    {
+        return(this.numatt);
+    }
+
+    public int getLayout()
+    {
+        return(this.layout);
+    }
+
+    private AttributeDouble getGoalAttribute() throws LearnerException
+    {
+        Attribute attgoal;
+
+        attgoal = this.dataModel.getAttribute(this.dataModel.getLearningProperty().getGoalIndex());
+        if (attgoal.getGoalType() != Attribute.GOAL_CLASS)
+            throw new LearnerException("Cannot get goal class for regression goal attribute '"+attgoal.getName()+"'");
+
+        return((AttributeDouble)attgoal);
+    }
+
+    // **********************************************************\
+    // *     Interface for Batch Presenter Class Balancing      *
+    // **********************************************************/
+    public int getIndexWithGoalClass(int gc) throws LearnerException
+    {
+        AttributeDouble attgoal;
+        int             begpos;
+
+        begpos  = this.pos;
+        attgoal = getGoalAttribute();
+        try
+        {
+            while (attgoal.getGoalClass(this.goal[this.pos]) != gc)
+            {
+                if (this.pos == (this.goal.length-1)) this.pos = 0;
+                else                                  this.pos++;
+                if (this.pos == begpos) throw new LearnerException("Cannot find an instance with primitive goal class "+gc);
+            }
+        }
+        catch(DataModelException ex) { throw new LearnerException(ex); }
+
+        return(this.pos);
+    }
+
+    public int getIndexWithGoalValue(double gv) throws LearnerException
+    {
+        int begpos;
+
+        begpos = this.pos;
+        while (this.goal[this.pos] != gv)
+        {
+            if (this.pos == (this.goal.length-1)) this.pos = 0;
+            else                                  this.pos++;
+            if (this.pos == begpos) throw new LearnerException("Cannot find an instance with goal value "+gv);
+        }
+
+        return(this.pos);
+    }
+
+    public int getIndexWithObjectGoalValue(Object gv) throws LearnerException
+    {
+        throw new LearnerException("Object instances not supported.");
+    }
+
+    // **********************************************************\
+    // *                  Instance Weighting                    *
+    // **********************************************************/
+    public void setWeightWhereGoalIs(double goalValue, double w)
+    {
+        for (int i=0; i<this.goal.length; i++)
+        {
+            if (this.goal[i] == goalValue) this.weight[i] = w;
+        }
+    }
+
+    public void setWeightWhereGoalIs(Object goalValue, double w)
+    {
+        throw new UnsupportedOperationException("Object instances not supported.");
+    }
+
+    // **********************************************************\
+    // *                  Raw Random Data Access                *
+    // **********************************************************/
+    public int getNumberOfInstances()
+    {
+        if (this.index != null) return(this.index.length);
+        else                    return(-1);
+    }
+
+    public void getNewInstances() { }
+
+    public DataModel getDataModel()        { return(this.dataModel); }
+    public void setDataModel(DataModel dm) { this.dataModel = dm; }
+
+    public double getWeight(int ind)                           { return(this.weight[ind]); }
+    public double getGoal(int ind) throws LearnerException     { return(this.goal[ind]); }
+    public void   setWeight(int ind, double w)                 { this.weight[ind] = w; }
+    public void   setGoal(int ind, double g)                   { this.goal[ind]   = g; }
+
+    public DoubleMatrix1D getInstance(int ind) throws LearnerException
+    {
+        return(makeView(this.index[ind]));
+    }
+
+    public int getGoalClass(int ind) throws LearnerException
+    {
+        try
+        {
+            return(getGoalAttribute().getGoalClass(this.goal[ind]));
+        }
+        catch(DataModelException ex) { throw new LearnerException(ex); }
+    }
+
+    /**
+     * Copy the values of the given vector in the store.
+     * A clone sharing the store does not see the change.
+     */
+    public void setInstance(int ind, DoubleMatrix1D in)
+    {
+        int row, i;
+
+        unshare();
+        row = this.index[ind];
+        for (i=0; i<this.numatt; i++) this.store[offset(row, i)] = in.getQuick(i);
+    }
+
+    public ObjectMatrix1D getObjectInstance(int ind) throws LearnerException { throw new LearnerException("Object instances not supported."); }
+    public Object         getObjectGoal(int ind) throws LearnerException     { throw new LearnerException("Object instances not supported."); }
+    public void           setObjectGoal(int ind, Object g)                   { throw new UnsupportedOperationException("Object instances not supported."); }
+    public void           setObjectInstance(int ind, ObjectMatrix1D in)      { throw new UnsupportedOperationException("Object instances not supported."); }
+
+    // **********************************************************\
+    // *                 Caching Presenter Arrays               *
+    // **********************************************************/
+    /**
+     * Give views on all instances. The views share the store.
+     */
+    public DoubleMatrix1D []getInstances()
+    {
+        DoubleMatrix1D []ins;
+        int              i;
+
+        if (this.index == null) return(null);
+        ins = new DoubleMatrix1D[this.index.length];
+        for (i=0; i<ins.length; i++) ins[i] = makeView(this.index[i]);
+
+        return(ins);
+    }
+
+    /**
+     * Copy the given instances into a new store.
+     * Goals and weights are kept when their number matches, otherwise they are reset.
+     */
+    public void setInstances(DoubleMatrix1D []ins)
+    {
+        int i, j;
+
+        this.numatt = (ins.length > 0) ? ins[0].size() : this.numatt;
+        allocate(ins.length);
+        for (i=0; i<ins.length; i++)
+            for (j=0; j<this.numatt; j++) this.store[offset(i, j)] = ins[i].getQuick(j);
+    }
+
+    public double []getGoals()              { return(this.goal); }
+    public double []getWeights()            { return(this.weight); }
+    public void     setGoals(double []g)    { this.goal   = g; }
+    public void     setWeights(double []w)  { this.weight = w; }
+
+    public ObjectMatrix1D []getObjectInstances()               { return(null); }
+    public Object         []getObjectGoals()                   { return(null); }
+    public void             setObjectInstances(ObjectMatrix1D []oins) { throw new UnsupportedOperationException("Object instances not supported."); }
+    public void             setObjectGoals(Object []ogoal)    { throw new UnsupportedOperationException("Object instances not supported."); }
+
+    public void makeInstances(int size)
+    {
+        if (this.dataModel != null) this.numatt = this.dataModel.getNumberOfActiveAttributes();
+        allocate(size);
+    }
+
+    private void allocate(int size)
+    {
+        int i;
+
+        this.numrow = size;
+        this.store  = new double[size*this.numatt];
+        this.shared = false;
+        this.index  = new int[size];
+        for (i=0; i<size; i++) this.index[i] = i;
+        if ((this.goal == null) || (this.goal.length != size)) this.goal = new double[size];
+        if ((this.weight == null) || (this.weight.length != size))
+        {
+            this.weight = new double[size];
+            for (i=0; i<size; i++) this.weight[i] = 1.0;
+        }
+    }
+
+    private void unshare()
+    {
+        if (this.shared)
+        {
+            this.store  = this.store.clone();
+            this.shared = false;
+        }
+    }
+
+    // **********************************************************\
+    // *              Data Set Resizing and reordering          *
+    // **********************************************************/
+    /**
+     * Make a new instance order. Only the index, goals and weights are copied,
+     * the store is left untouched.
+     */
+    public void reorder(int []ind)
+    {
+        int    []indexnew;
+        double []goalnew, weightnew;
+        int      i;
+
+        indexnew  = new int[ind.length];
+        goalnew   = new double[ind.length];
+        weightnew = new double[ind.length];
+        for (i=0; i<ind.length; i++)
+        {
+            indexnew[i]  = this.index[ind[i]];
+            goalnew[i]   = this.goal[ind[i]];
+            weightnew[i] = this.weight[ind[i]];
+        }
+        this.index  = indexnew;
+        this.goal   = goalnew;
+        this.weight = weightnew;
+        this.pos    = 0;
+    }
+
+    /**
+     * Copy the instances in their current order into a new store that has no unused rows.
+     * Useful after a reorder() kept only a small part of a large store.
+     */
+    public void compact()
+    {
+        double []storenew;
+        int      i, j, numins;
+
+        numins   = this.index.length;
+        storenew = new double[numins*this.numatt];
+        for (i=0; i<numins; i++)
+        {
+            for (j=0; j<this.numatt; j++)
+            {
+                if (this.layout == LAYOUT_COLUMN_MAJOR) storenew[j*numins+i]      = this.store[offset(this.index[i], j)];
+                else                                    storenew[i*this.numatt+j] = this.store[offset(this.index[i], j)];
+            }
+        }
+        this.store  = storenew;
+        this.numrow = numins;
+        this.shared = false;
+        for (i=0; i<numins; i++) this.index[i] = i;
+    }
+
+    // **********************************************************\
+    // *        Clone the presenter. Share the store.           *
+    // **********************************************************/
+    public Object clone() throws CloneNotSupportedException
+    {
+        InstanceSetColumnar clis;
+
+        clis           = new InstanceSetColumnar(this.layout);
+        clis.dataModel = this.dataModel;
+        clis.store     = this.store;
+        clis.numatt    = this.numatt;
+        clis.numrow    = this.numrow;
+        clis.index     = this.index.clone();
+        clis.goal      = this.goal.clone();
+        clis.weight    = this.weight.clone();
+        clis.shared    = true;
+        this.shared    = true;
+
+        return(clis);
+    }
+
+    // **********************************************************\
+    // *                     Construction                       *
+    // **********************************************************/
+    /**
+     * Create the store containing all instances from the specified source Presenter.
+     * @param src The source presenter to get all instances from. Should have a primitive DataModel.
+     * @throws LearnerException If the instances, their goals or weights cannot be read from the source presenter.
+     */
+    public void create(Presenter src) throws LearnerException
+    {
+        DoubleMatrix1D vec;
+        int            i, j, numins;
+
+        if (!(src.getDataModel() instanceof DataModelDouble)) throw new LearnerException("Object instances not supported.");
+
+        numins         = src.getNumberOfInstances();
+        this.dataModel = src.getDataModel();
+        this.goal      = new double[numins];
+        this.weight    = new double[numins];
+        this.numatt    = (numins > 0) ? src.getInstance(0).size() : this.dataModel.getNumberOfActiveAttributes();
+        allocate(numins);
+        for (i=0; i<numins; i++)
+        {
+            vec = src.getInstance(i);
+            for (j=0; j<this.numatt; j++) this.store[offset(i, j)] = vec.getQuick(j);
+            this.goal[i]   = src.getGoal(i);
+            this.weight[i] = src.getWeight(i);
+        }
+    }
+
+    /**
+     * Make an empty column-major instance set.
+     */
+    public InstanceSetColumnar()
+    {
+        this(LAYOUT_COLUMN_MAJOR);
+    }
+
+    /**
+     * Make an empty instance set with the given store layout.
+     * @param layout <code>LAYOUT_COLUMN_MAJOR</code> or <code>LAYOUT_ROW_MAJOR</code>
+     */
+    public InstanceSetColumnar(int layout)
+    {
+        this.layout = layout;
+    }
+}
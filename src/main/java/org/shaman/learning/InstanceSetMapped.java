@@ -0,0 +1,410 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.learning;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.shaman.datamodel.Attribute;
+import org.shaman.datamodel.AttributeDouble;
+import org.shaman.datamodel.DataModel;
+import org.shaman.exceptions.DataModelException;
+import org.shaman.exceptions.LearnerException;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.ObjectMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+
+
+// **********************************************************\
+// *      Instances in a Memory-Mapped File, off the Heap   *
+// **********************************************************/
+/**
+ * <h2>Memory-Mapped CachingPresenter</h2>
+ * Reads the instances of a file written by <code>InstanceFileWriter</code>
+ * through memory-mapped buffers. The attribute values stay outside of the Java heap,
+ * the operating system pages them in when they are used. Data sets larger than the heap
+ * (and even larger than the physical memory) can be used by Validation, InstanceBatch and the learners.
+ * <p>
+ * Only the goals, weights and the instance order are kept on the heap (20 bytes per instance).
+ * <code>reorder()</code> permutes the order, the file is never changed.
+ * <code>getInstance()</code> returns a new vector containing a copy of the row.
+ * The instances cannot be changed, only their goal and weight.
+ * @see InstanceFileWriter
+ */
+public class InstanceSetMapped implements CachingPresenter
+{
+    // Maximum size of one mapped buffer
+    private static final long CHUNK_SIZE = Integer.MAX_VALUE;
+
+    private File             file;            // The instance file
+    private DataModel        dataModel;       // The datamodel of the instances' attributes
+    private int              precision;       // InstanceFileWriter.PRECISION_DOUBLE or PRECISION_FLOAT
+    private int              numatt;          // Number of active attribute values in a row
+    private int              rowSize;         // Bytes per row
+    private int              chunkRows;       // Rows per mapped buffer
+
+    // The mapped rows. Shared by the clones.
+    private MappedByteBuffer []chunk;
+
+    // Logical instances
+    private int            []index;           // [i] = Row in the file of instance i
+    private double         []goal;            // Goal value of instance i
+    private double         []weight;          // Weight of instance i
+    // Class Balancing
+    private int              pos = 0;
+
+    // **********************************************************\
+    // *                   Reading the Rows                     *
+    // **********************************************************/
+    /**
+     * Copy the attribute values of an instance into the given buffer.
+     * Use this to scan the instances without allocating vectors.
+     * @param ind The instance index
+     * @param buf Buffer of at least <code>getNumberOfAttributes()</code> values
+     */
+    public void readInstance(int ind, double []buf)
+    {
+        MappedByteBuffer mbuf;
+        int              row, off, i;
+
+        row  = this.index[ind];
+        mbuf = this.chunk[row / this.chunkRows];
+        off  = (row % this.chunkRows)*this.rowSize;
+        if (this.precision == InstanceFileWriter.PRECISION_DOUBLE) for (i=0; i<this.numatt; i++) buf[i] = mbuf.getDouble(off+8*i);
+        else                                                        for (i=0; i<this.numatt; i++) buf[i] = mbuf.getFloat(off+4*i);
+    }
+
+    /**
+     * Give the value of one attribute of an instance.
+     * @param ind The instance index
+     * @param att The index of the attribute in the instance
+     * @return The value
+     */
+    public double getValue(int ind, int att)
+    {
+        MappedByteBuffer mbuf;
+        int              row, off;
+
+        row  = this.index[ind];
+        mbuf = this.chunk[row / this.chunkRows];
+        off  = (row % this.chunkRows)*this.rowSize;
+        if (this.precision == InstanceFileWriter.PRECISION_DOUBLE) return(mbuf.getDouble(off+8*att));
+        else                                                        return(mbuf.getFloat(off+4*att));
+    }
+
+    public int  getNumberOfAttributes() { return(this.numatt); }
+    public File getFile()               { return(this.file); }
+
+    private AttributeDouble getGoalAttribute() throws LearnerException
+    {
+        Attribute attgoal;
+
+        attgoal = this.dataModel.getAttribute(this.dataModel.getLearningProperty().getGoalIndex());
+        if (attgoal.getGoalType() != Attribute.GOAL_CLASS)
+            throw new LearnerException("Cannot get goal class for regression goal attribute '"+attgoal.getName()+"'");
+
+        return((AttributeDouble)attgoal);
+    }
+
+    // **********************************************************\
+    // *     Interface for Batch Presenter Class Balancing      *
+    // **********************************************************/
+    public int getIndexWithGoalClass(int gc) throws LearnerException
+    {
+        AttributeDouble attgoal;
+        int             begpos;
+
+        begpos  = this.pos;
+        attgoal = getGoalAttribute();
+        try
+        {
+            while (attgoal.getGoalClass(this.goal[this.pos]) != gc)
+            {
+                if (this.pos == (this.goal.length-1)) this.pos = 0;
+                else                                  this.pos++;
+                if (this.pos == begpos) throw new LearnerException("Cannot find an instance with primitive goal class "+gc);
+            }
+        }
+        catch(DataModelException ex) { throw new LearnerException(ex); }
+
+        return(this.pos);
+    }
+
+    public int getIndexWithGoalValue(double gv) throws LearnerException
+    {
+        int begpos;
+
+        begpos = this.pos;
+        while (this.goal[this.pos] != gv)
+        {
+            if (this.pos == (this.goal.length-1)) this.pos = 0;
+            else                                  this.pos++;
+            if (this.pos == begpos) throw new LearnerException("Cannot find an instance with goal value "+gv);
+        }
+
+        return(this.pos);
+    }
+
+    public int getIndexWithObjectGoalValue(Object gv) throws LearnerException
+    {
+        throw new LearnerException("Object instances not supported.");
+    }
+
+    // **********************************************************\
+    // *                  Instance Weighting                    *
+    // **********************************************************/
+    public void setWeightWhereGoalIs(double goalValue, double w)
+    {
+        for (int i=0; i<this.goal.length; i++)
+        {
+            if (this.goal[i] == goalValue) this.weight[i] = w;
+        }
+    }
+
+    public void setWeightWhereGoalIs(Object goalValue, double w)
+    {
+        throw new UnsupportedOperationException("Object instances not supported.");
+    }
+
+    // **********************************************************\
+    // *                  Raw Random Data Access                *
+    // **********************************************************/
+    public int getNumberOfInstances()
+    {
+        if (this.index != null) return(this.index.length);
+        else                    return(-1);
+    }
+
+    public void getNewInstances() { }
+
+    public DataModel getDataModel()        { return(this.dataModel); }
+    public void setDataModel(DataModel dm) { this.dataModel = dm; }
+
+    public double getWeight(int ind)                           { return(this.weight[ind]); }
+    public double getGoal(int ind) throws LearnerException     { return(this.goal[ind]); }
+    public void   setWeight(int ind, double w)                 { this.weight[ind] = w; }
+    public void   setGoal(int ind, double g)                   { this.goal[ind]   = g; }
+
+    public DoubleMatrix1D getInstance(int ind) throws LearnerException
+    {
+        return(readVector(ind));
+    }
+
+    private DoubleMatrix1D readVector(int ind)
+    {
+        DoubleMatrix1D   vec;
+        MappedByteBuffer mbuf;
+        int              row, off, i;
+
+        vec  = new DenseDoubleMatrix1D(this.numatt);
+        row  = this.index[ind];
+        mbuf = this.chunk[row / this.chunkRows];
+        off  = (row % this.chunkRows)*this.rowSize;
+        if (this.precision == InstanceFileWriter.PRECISION_DOUBLE) for (i=0; i<this.numatt; i++) vec.setQuick(i, mbuf.getDouble(off+8*i));
+        else                                                        for (i=0; i<this.numatt; i++) vec.setQuick(i, mbuf.getFloat(off+4*i));
+
+        return(vec);
+    }
+
+    public int getGoalClass(int ind) throws LearnerException
+    {
+        try
+        {
+            return(getGoalAttribute().getGoalClass(this.goal[ind]));
+        }
+        catch(DataModelException ex) { throw new LearnerException(ex); }
+    }
+
+    public void setInstance(int ind, DoubleMatrix1D in) { throw new UnsupportedOperationException("The instances of a mapped file cannot be changed."); }
+
+    public ObjectMatrix1D getObjectInstance(int ind) throws LearnerException { throw new LearnerException("Object instances not supported."); }
+    public Object         getObjectGoal(int ind) throws LearnerException     { throw new LearnerException("Object instances not supported."); }
+    public void           setObjectGoal(int ind, Object g)                   { throw new UnsupportedOperationException("Object instances not supported."); }
+    public void           setObjectInstance(int ind, ObjectMatrix1D in)      { throw new UnsupportedOperationException("Object instances not supported."); }
+
+    // **********************************************************\
+    // *                 Caching Presenter Arrays               *
+    // **********************************************************/
+    /**
+     * Copy all instances onto the heap. Only for data sets that fit in memory.
+     */
+    public DoubleMatrix1D []getInstances()
+    {
+        DoubleMatrix1D []ins;
+        int              i;
+
+        if (this.index == null) return(null);
+        ins = new DoubleMatrix1D[this.index.length];
+        for (i=0; i<ins.length; i++) ins[i] = readVector(i);
+
+        return(ins);
+    }
+
+    public void setInstances(DoubleMatrix1D []ins) { throw new UnsupportedOperationException("The instances of a mapped file cannot be changed."); }
+    public void makeInstances(int size)            { throw new UnsupportedOperationException("Use an InstanceFileWriter to make a mapped instance file."); }
+
+    public double []getGoals()              { return(this.goal); }
+    public double []getWeights()            { return(this.weight); }
+    public void     setGoals(double []g)    { this.goal   = g; }
+    public void     setWeights(double []w)  { this.weight = w; }
+
+    public ObjectMatrix1D []getObjectInstances()                       { return(null); }
+    public Object         []getObjectGoals()                           { return(null); }
+    public void             setObjectInstances(ObjectMatrix1D []oins) { throw new UnsupportedOperationException("Object instances not supported."); }
+    public void             setObjectGoals(Object []ogoal)            { throw new UnsupportedOperationException("Object instances not supported."); }
+
+    // **********************************************************\
+    // *              Data Set Resizing and reordering          *
+    // **********************************************************/
+    public void reorder(int []ind)
+    {
+        int    []indexnew;
+        double []goalnew, weightnew;
+        int      i;
+
+        indexnew  = new int[ind.length];
+        goalnew   = new double[ind.length];
+        weightnew = new double[ind.length];
+        for (i=0; i<ind.length; i++)
+        {
+            indexnew[i]  = this.index[ind[i]];
+            goalnew[i]   = this.goal[ind[i]];
+            weightnew[i] = this.weight[ind[i]];
+        }
+        this.index  = indexnew;
+        this.goal   = goalnew;
+        this.weight = weightnew;
+        this.pos    = 0;
+    }
+
+    // **********************************************************\
+    // *        Clone the presenter. Share the mapping.         *
+    // **********************************************************/
+    public Object clone() throws CloneNotSupportedException
+    {
+        InstanceSetMapped clis;
+
+        clis           = new InstanceSetMapped();
+        clis.file      = this.file;
+        clis.dataModel = this.dataModel;
+        clis.precision = this.precision;
+        clis.numatt    = this.numatt;
+        clis.rowSize   = this.rowSize;
+        clis.chunkRows = this.chunkRows;
+        clis.chunk     = this.chunk;
+        clis.index     = this.index.clone();
+        clis.goal      = this.goal.clone();
+        clis.weight    = this.weight.clone();
+
+        return(clis);
+    }
+
+    // **********************************************************\
+    // *                     Construction                       *
+    // **********************************************************/
+    /**
+     * Map the given instance file. Reads the DataModel from the header
+     * and the goals and weights from the rows.
+     * @param file A file made by an InstanceFileWriter
+     * @throws LearnerException If the file cannot be read or has the wrong format.
+     */
+    public void open(File file) throws LearnerException
+    {
+        DataInputStream  din;
+        RandomAccessFile raf;
+        FileChannel      channel;
+        long             numins, dataoff, len;
+        int              i, numchunk;
+        MappedByteBuffer mbuf;
+        int              off;
+
+        din = null;
+        raf = null;
+        try
+        {
+            // Header
+            din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (din.readInt() != InstanceFileWriter.MAGIC)   throw new LearnerException("File '"+file+"' is not an instance file.");
+            if (din.readInt() != InstanceFileWriter.VERSION) throw new LearnerException("Unknown version of instance file '"+file+"'");
+            this.precision = din.readInt();
+            this.numatt    = din.readInt();
+            numins         = din.readLong();
+            dataoff        = din.readLong();
+            this.dataModel = InstanceFileWriter.readDataModel(din);
+            if (numins > Integer.MAX_VALUE) throw new LearnerException("Instance file '"+file+"' contains more than "+Integer.MAX_VALUE+" instances.");
+
+            // Map the rows in chunks of at most 2GB.
+            this.rowSize   = InstanceFileWriter.getRowSize(this.numatt, this.precision);
+            this.chunkRows = (int)Math.max(1, CHUNK_SIZE / this.rowSize);
+            numchunk       = (int)((numins + this.chunkRows - 1) / this.chunkRows);
+            raf            = new RandomAccessFile(file, "r");
+            channel        = raf.getChannel();
+            if (channel.size() < dataoff + numins*this.rowSize) throw new LearnerException("Instance file '"+file+"' is truncated.");
+            this.chunk     = new MappedByteBuffer[numchunk];
+            for (i=0; i<numchunk; i++)
+            {
+                len           = Math.min(this.chunkRows, numins - ((long)i)*this.chunkRows) * this.rowSize;
+                this.chunk[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataoff + ((long)i)*this.chunkRows*this.rowSize, len);
+                this.chunk[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            // Goals and weights on the heap. Instances in file order.
+            this.index  = new int[(int)numins];
+            this.goal   = new double[(int)numins];
+            this.weight = new double[(int)numins];
+            for (i=0; i<numins; i++)
+            {
+                mbuf           = this.chunk[i / this.chunkRows];
+                off            = (i % this.chunkRows)*this.rowSize + this.numatt*this.precision;
+                this.index[i]  = i;
+                this.goal[i]   = mbuf.getDouble(off);
+                this.weight[i] = mbuf.getDouble(off+8);
+            }
+            this.file = file;
+            this.pos  = 0;
+        }
+        catch(IOException ex)        { throw new LearnerException(ex); }
+        catch(DataModelException ex) { throw new LearnerException(ex); }
+        finally
+        {
+            // The mapping stays valid after the file is closed.
+            try
+            {
+                if (din != null) din.close();
+                if (raf != null) raf.close();
+            }
+            catch(IOException ex) { throw new LearnerException(ex); }
+        }
+    }
+
+    public InstanceSetMapped()
+    {
+    }
+
+    /**
+     * Map the given instance file.
+     * @param file A file made by an InstanceFileWriter
+     * @throws LearnerException If the file cannot be read.
+     */
+    public InstanceSetMapped(File file) throws LearnerException
+    {
+        open(file);
+    }
+}
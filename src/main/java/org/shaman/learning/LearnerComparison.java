@@ -11,6 +11,11 @@
 \*********************************************************/
 package org.shaman.learning;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
 import org.shaman.exceptions.LearnerException;
 
 import cern.jet.stat.Probability;
@@ -24,6 +29,9 @@ import cern.jet.stat.Probability;
  * instance set.
  * <br>
  * <i>Only Classifiers are supported for now<i>
+ * <br>
+ * With a LearnerFactory for both learners, the folds of all cross-validations
+ * are trained and tested at the same time.
  *
  * <br>
  * <i>Tom M. Mitchell (1997), Machine Learning, Chapter 5</i><br>
@@ -42,6 +50,9 @@ public class LearnerComparison
     private int       numRepeats;          // Number of times to repeat the cross-validation using the 2 learners
     private int       numFolds;            // Number of folds in 1 cross-validation
     private boolean   skipTrain;           // Do not train during cross-validation. Just test.
+    private LearnerFactory factory1;       // Make the Learners of the parallel folds
+    private LearnerFactory factory2;
+    private int       numberOfThreads;     // Number of folds done at the same time. 0 = number of processors.
     
     // Comparison Buffers
     private int        learnerType;         // Type of both learners. As in Validation.LEARNER_x
@@ -177,6 +188,7 @@ public class LearnerComparison
     
     /**
      * Perform a number of repeated n-fold cross-validations on the 2 classifiers.
+     * All fold assignments are made before training, so they do not depend on the learners or the number of threads.
      */
     public void testClassifiers() throws LearnerException
     {
@@ -191,7 +203,8 @@ public class LearnerComparison
         clerr1         = new double[numRepeats];
         clerr2         = new double[numRepeats];
         val            = new Validation[2][numRepeats];
-        // Do the repeated cross-validation
+        
+        // Make the repeated cross-validations
         for (i=0; i<numRepeats; i++)
         {
             // Cross-Validation with the same instance set and cross-validation parameters.
@@ -204,25 +217,66 @@ public class LearnerComparison
             val2.setNumberOfFolds(val1.getNumberOfFolds());
             val2.setSet(val1.getSet());
             val2.setSkipTrain(skipTrain);
+            val1.setLearnerFactory(factory1);
+            val2.setLearnerFactory(factory2);
+            val1.setNumberOfThreads(numberOfThreads);
+            val2.setNumberOfThreads(numberOfThreads);
             val[0][i] = val1;
             val[1][i] = val2;
+        }
+        
+        if (val[0][0].isParallel() && val[1][0].isParallel())
+        {
+            List<Callable<Object>> tasks;
+            ForkJoinPool           pool;
             
-            // Cross-Validate the first model.
-            val1.test();
-            // Cross-Validate the second model
-            val2.test();
-            // Remember the Classification Error results of this Cross-Validation Repeat.
-            clerr1[i] = val1.getValidationClassifier().getClassificationError();
-            clerr2[i] = val2.getValidationClassifier().getClassificationError();
-            
+            // Train and test all folds of all repeats together.
+            tasks = new ArrayList<Callable<Object>>();
+            for (i=0; i<numRepeats; i++)
+            {
+                val[0][i].initTest();
+                val[1][i].initTest();
+                tasks.addAll(val[0][i].getFoldTasks());
+                tasks.addAll(val[1][i].getFoldTasks());
+            }
+            pool = new ForkJoinPool(Math.min(Validation.getThreads(numberOfThreads), tasks.size()));
+            try
+            {
+                Validation.runFolds(pool, tasks);
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+            for (i=0; i<numRepeats; i++)
+            {
+                val[0][i].endTest();
+                val[1][i].endTest();
+            }
+        }
+        else
+        {
+            for (i=0; i<numRepeats; i++)
+            {
+                // Cross-Validate the first and second model.
+                val[0][i].test();
+                val[1][i].test();
+            }
+        }
+        
+        // Remember the Classification Error results of the Cross-Validation Repeats.
+        for (i=0; i<numRepeats; i++)
+        {
+            clerr1[i] = val[0][i].getValidationClassifier().getClassificationError();
+            clerr2[i] = val[1][i].getValidationClassifier().getClassificationError();
             System.out.println("Repeat "+numRepeatsDone+" error 1 "+clerr1[i]+" error 2 "+clerr2[i]);
+            numRepeatsDone++;
         }
         
         // Pre-calculate some things...
         prepareStatistics(this.clerr1, this.clerr2, this.numRepeatsDone);
     }
     
-    
     public void prepareStatistics(double []clerr1, double []clerr2, int numRepeatsDone)
     {
         int i;
@@ -284,6 +338,27 @@ public class LearnerComparison
             throw new LearnerException("Only suppor CLASSIFIERS for now... Come back later.");
     }
     
+    /**
+     * Set the factories that make a new Learner for every fold.
+     * When both are given, the folds of all repeats are trained and tested in parallel.
+     * @param _factory1 Makes Learners configured like the first learner. <code>null</code> to train one fold after the other.
+     * @param _factory2 Makes Learners configured like the second learner.
+     */
+    public void setLearnerFactories(LearnerFactory _factory1, LearnerFactory _factory2)
+    {
+        this.factory1 = _factory1;
+        this.factory2 = _factory2;
+    }
+    
+    /**
+     * Set the number of folds that are trained and tested at the same time.
+     * @param _numberOfThreads The number of threads. 0 = number of processors. 1 (the default) = one fold after the other.
+     */
+    public void setNumberOfThreads(int _numberOfThreads)
+    {
+        this.numberOfThreads = _numberOfThreads;
+    }
+    
     /**
      * Get the cross-validation of the given learner and repeat.
      * @param learner '1' for the first Learner, '2' for the second Learner
@@ -367,5 +442,6 @@ public class LearnerComparison
         skipTrain  = false;
         numFolds   = 10;
         numRepeats = 10;
+        numberOfThreads = 1;
     }
 }
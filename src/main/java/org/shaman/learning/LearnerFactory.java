@@ -0,0 +1,30 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.learning;
+
+import org.shaman.exceptions.LearnerException;
+
+/**
+ * <h2>Making Learners</h2>
+ * Makes independent copies of a configured Learner.
+ * Used to train the folds of a Validation at the same time.
+ */
+public interface LearnerFactory
+{
+    /**
+     * Make a new Learner with the same configuration as the one that is validated.
+     * It should be ready to train. e.g. initialized with its input DataModel.
+     * @return A new Learner. It shares no state that changes during training or testing with other Learners.
+     * @throws LearnerException If the Learner cannot be made.
+     */
+    public Learner create() throws LearnerException;
+}
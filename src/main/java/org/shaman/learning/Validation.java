@@ -11,6 +11,12 @@
 \*********************************************************/
 package org.shaman.learning;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.shaman.datamodel.Attribute;
 import org.shaman.datamodel.DataModel;
@@ -29,6 +35,10 @@ import cern.jet.random.Uniform;
  * and leave-one-out testing. Contains links to classes that have
  * a lot of reporting methods to statistically analyse the performance
  * of the machine-learning under interrogation.
+ * <br>
+ * When a LearnerFactory is given, the folds can be trained and tested at the
+ * same time. Every fold then gets its own Learner. The fold assignment and the
+ * test results do not depend on the number of threads.
  *
  * <br>
  * <i>Tom M. Mitchell (1997), Machine Learning, Chapter 5</i><br>
@@ -54,6 +64,9 @@ public class Validation implements Tester
     
     private Presenter instances;           // The set of instances to work on.
     private Learner   learner;             // Trains the model on the set(s) created by this class.
+    private LearnerFactory learnerFactory; // Makes a Learner for each fold when training folds in parallel.
+    private int       numberOfThreads;     // Number of folds trained at the same time. 0 = number of processors.
+    private int       scoreResolution;     // Number of score bins of the classification statistics. 0 = exact scores.
     private int       []split;             // The fold-number in which the instance is assigned to the test-set
     
     // The Validation Algorithms and Reporting Classes
@@ -69,6 +82,7 @@ public class Validation implements Tester
     
     // Progress indicator
     private int              currentFold;            // Fold currently being processed. (-1 when not started)
+    private int              foldsDone;              // Number of folds finished.
     
     // **********************************************************\
     // *                Simple Reporting Methods                *
@@ -107,46 +121,144 @@ public class Validation implements Tester
     // *   Common Validation Logic for all types of Learners    *
     // **********************************************************/
     /**
-     * Perform the testing procedures on the Learner
+     * Perform the testing procedures on the Learner.
+     * If there is a LearnerFactory and more than 1 thread, the folds are trained and tested in parallel.
+     * The Learner given at construction is then not trained.
      * @throws LearnerException If something went wrong while testing.
      */
     public void test() throws LearnerException
     {
-        int            i;
-        Presenter      []tt;
-        Presenter      train, test;
+        int i;
         
         // Make the right kind of test result buffers
         initTest();
         
         // Train and test the model a number of times. Remember the results.
-        for (i=1; i<=this.numFolds; i++)
+        if (isParallel())
         {
-            // Create the next train/test set combination.
-            tt    = nextTrainTest(i);
-            train = tt[0];
-            test  = tt[1];
+            ForkJoinPool pool;
             
-            // Train the learner on this fold if it is necessary.
-            if (!skipTrain)
+            pool = new ForkJoinPool(Math.min(getThreads(), this.numFolds));
+            try
             {
-                this.learner.setTrainSet(train);
-                this.learner.initializeTraining();
-                this.learner.train();
+                runFolds(pool, getFoldTasks());
+            }
+            finally
+            {
+                pool.shutdown();
             }
-            
-            if      (this.learnerType == Learner.LEARNER_CLASSIFIER) valclas.testClassifier(i, test);
-            else if (this.learnerType == Learner.LEARNER_CLUSTERER)  valclus.testClusterer(i, test);
-            else if (this.learnerType == Learner.LEARNER_ESTIMATOR)  valest.testEstimator(i, test);
-            
-            this.currentFold = i;
+        }
+        else
+        {
+            for (i=1; i<=this.numFolds; i++) testFold(i, this.learner);
         }
         
         // Finish compiling to test data
         endTest();
     }
     
-    private void initTest() throws LearnerException
+    /**
+     * Train and test a fold.
+     * @param fold The fold number (starts at 1)
+     * @param foldLearner The Learner to train and test
+     * @throws LearnerException If training or testing fails.
+     */
+    private void testFold(int fold, Learner foldLearner) throws LearnerException
+    {
+        Presenter      []tt;
+        Presenter      train, test;
+        
+        // Create the next train/test set combination.
+        synchronized(this) { tt = nextTrainTest(fold); }
+        train = tt[0];
+        test  = tt[1];
+        
+        // Train the learner on this fold if it is necessary.
+        if (!skipTrain)
+        {
+            foldLearner.setTrainSet(train);
+            foldLearner.initializeTraining();
+            foldLearner.train();
+        }
+        
+        if      (this.learnerType == Learner.LEARNER_CLASSIFIER) valclas.testClassifier(fold, test, (Classifier)foldLearner);
+        else if (this.learnerType == Learner.LEARNER_CLUSTERER)  valclus.testClusterer(fold, test, (Classifier)foldLearner);
+        else if (this.learnerType == Learner.LEARNER_ESTIMATOR)  valest.testEstimator(fold, test, (Estimator)foldLearner);
+        
+        synchronized(this)
+        {
+            this.foldsDone++;
+            this.currentFold = fold;
+        }
+    }
+    
+    /**
+     * Make a task for every fold. Each one trains and tests a new Learner from the factory.
+     * @return The fold tasks. Run them after <code>initTest()</code> and before <code>endTest()</code>.
+     */
+    List<Callable<Object>> getFoldTasks()
+    {
+        List<Callable<Object>> tasks;
+        int                    i;
+        
+        tasks = new ArrayList<Callable<Object>>();
+        for (i=1; i<=this.numFolds; i++)
+        {
+            final int fold = i;
+            tasks.add(new Callable<Object>()
+            {
+                public Object call() throws Exception
+                {
+                    testFold(fold, learnerFactory.create());
+                    return(null);
+                }
+            });
+        }
+        
+        return(tasks);
+    }
+    
+    static void runFolds(ForkJoinPool pool, List<Callable<Object>> tasks) throws LearnerException
+    {
+        try
+        {
+            for(Future<Object> done: pool.invokeAll(tasks)) done.get();
+        }
+        catch(InterruptedException ex) { throw new LearnerException(ex); }
+        catch(ExecutionException ex)
+        {
+            Throwable cause;
+            
+            // Report the fold's own LearnerException. The pool can wrap it in RuntimeExceptions.
+            cause = ex.getCause();
+            while ((cause != null) && !(cause instanceof LearnerException)) cause = cause.getCause();
+            if (cause != null) throw (LearnerException)cause;
+            else               throw new LearnerException("Validation of a fold failed.", ex.getCause());
+        }
+    }
+    
+    /**
+     * Check if the folds are trained in parallel.
+     * Needs a LearnerFactory, more than 1 thread and more than 1 fold. A model that is not trained is tested by one thread.
+     * @return <code>true</code> if the folds are done in parallel.
+     */
+    boolean isParallel()
+    {
+        return((this.learnerFactory != null) && (getThreads() > 1) && (this.numFolds > 1) && !this.skipTrain);
+    }
+    
+    static int getThreads(int numberOfThreads)
+    {
+        if (numberOfThreads <= 0) return(Runtime.getRuntime().availableProcessors());
+        else                      return(numberOfThreads);
+    }
+    
+    private int getThreads()
+    {
+        return(getThreads(this.numberOfThreads));
+    }
+    
+    void initTest() throws LearnerException
     {
         try
         {
@@ -154,6 +266,7 @@ public class Validation implements Tester
             {
                 // Confusion, ROC, etc...
                 this.valclas = new ValidationClassifier();
+                this.valclas.setScoreResolution(this.scoreResolution);
                 this.valclas.initTest(this, instances, split, numFolds, (Classifier)learner);
             }
             else if (learnerType == Learner.LEARNER_CLUSTERER)
@@ -170,11 +283,12 @@ public class Validation implements Tester
             }
             
             this.currentFold = -1;
+            this.foldsDone   = 0;
         }
         catch(DataModelException ex) { throw new LearnerException(ex); }
     }
     
-    private void endTest()
+    void endTest()
     {
         if      (learnerType == Learner.LEARNER_CLASSIFIER)
         {
@@ -398,6 +512,27 @@ public class Validation implements Tester
      */
     public void setSkipTrain(boolean _skipTrain) { this.skipTrain = _skipTrain; }
     
+    /**
+     * Set the factory that makes a new Learner for every fold.
+     * Needed to train the folds in parallel.
+     * @param _learnerFactory Makes Learners configured like the one given at construction. <code>null</code> to train the folds one after the other.
+     */
+    public void setLearnerFactory(LearnerFactory _learnerFactory) { this.learnerFactory = _learnerFactory; }
+    
+    /**
+     * Set the number of folds that are trained and tested at the same time.
+     * Only used when there is a LearnerFactory.
+     * @param _numberOfThreads The number of threads. 0 = number of processors. 1 (the default) = one fold after the other.
+     */
+    public void setNumberOfThreads(int _numberOfThreads) { this.numberOfThreads = _numberOfThreads; }
+    
+    /**
+     * Set the number of bins in which the classification scores are counted for the ROC curves, AUC and gain charts.
+     * Binned scores need a fixed amount of memory for any number of test instances.
+     * @param _scoreResolution The number of score bins in [0,1]. 0 (the default) = keep the exact scores.
+     */
+    public void setScoreResolution(int _scoreResolution) { this.scoreResolution = _scoreResolution; }
+    
     /**
      * Get if the cross-validation should skip the (re)training of the model.
      * @return <code>true</code> if the cross-validation will skip the training.
@@ -439,6 +574,12 @@ public class Validation implements Tester
     // **********************************************************/
     public int getProgress() { return(this.currentFold); }
     
+    /**
+     * Get the number of folds that are finished.
+     * @return The number of trained and tested folds.
+     */
+    public synchronized int getNumberOfFoldsDone() { return(this.foldsDone); }
+    
     // **********************************************************\
     // *                  Tester Interface                      *
     // **********************************************************/
@@ -510,5 +651,6 @@ public class Validation implements Tester
         this.trainSet    = null;
         this.testSet     = null;
         this.learnerType = findLearnerType(learner, instances);
+        this.numberOfThreads = 1;
     }
 }
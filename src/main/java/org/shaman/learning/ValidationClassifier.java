@@ -12,7 +12,6 @@
 package org.shaman.learning;
 
 import java.io.FileWriter;
-import java.util.Arrays;
 
 import org.shaman.datamodel.DataModel;
 import org.shaman.datamodel.DataModelDouble;
@@ -50,7 +49,6 @@ public class ValidationClassifier
     private Presenter   instances;          // The complete set of instances (if possible)
     private Classifier  cl;                 // The Classifier used in the tests
     private DataModel   dataModel;          // DataModel of the Data
-    private int    numTest;                 // Number of instances tested
     private int  []split;                   // How to Split up the total instances set
     private int    numFolds;                // Number of Folds
     
@@ -59,106 +57,39 @@ public class ValidationClassifier
     
     // Classification Test Buffers
     private int    numClass;                // Number of classes
-    private int    [][]classTest;           // Results of classification tests folds (should match with corresponding goal classes)
+    private int    scoreResolution;         // Number of score bins of the statistics. 0 = exact scores.
     private int    []classOut;              // Test result as classification output.
     private int    []classGoal;             // Expected test result. (if classGoal[i] == classOut[i] then classError[i] = 0)
     private byte   []classError;            // Test correctness (0 = incorrect, 1 = correct, -1 = couldn't classify)
-    private double [][]classConfusion;      // Classification confusion matrix
-    private int    []classCount;            // Number of instances of the various classes
-    private ClassConfidence []confidence;   // Positive class confidence table. For lift charts/ROC curves, etc...
+    private ClassificationStatistics   stat;       // Statistics of all folds. Confusion matrix, ROC curves, etc...
+    private ClassificationStatistics []foldStat;   // [fold-1] = Statistics of the fold
     
     // **********************************************************\
     // *             Cost Sensitive Reporting                   *
     // **********************************************************/
     /**
-     * Give the gain chart over all folds from the .
+     * Give the gain chart averaged over all folds.
      * @param GAINLEN The number of points in the chart.
      * @param vbeg Begin percentage on the X-axis of the chart.
      * @param vend End percentage on the X-axis of the chart.
-     * @return The ROC curve as double[] indexed by the x-value, containing the y-values.
-     * @throws LearnerException If an error occuring while generating or saving the ROC curve.
+     * @return The gain chart as double[] indexed by the x-value, containing the y-values.
+     * @throws LearnerException If an error occuring while generating the gain chart.
      */
     public double []getGainChart(int GAINLEN, double vbeg, double vend) throws LearnerException
     {
-        int             i,j,k;
-        double          [][]gainfold;
-        double          []gain;
-        int             not, ind, pos;
-        double          nt, cavg, cnow, gainnow;
-        double          x;
-        double          xstep;
-        ClassConfidence []confbuf;
-        DataModelPropertyLearning learn;
+        int       i,j;
+        double  []gain, gainfold;
         
-        learn = dataModel.getLearningProperty();
+        checkTwoClass("Cannot generate a Gain Chart of a multi-class classification.");
         
-        try
-        {
-            // Check classification appropriateness.
-            if (dataModel.getAttribute(learn.getGoalIndex()).getNumberOfGoalClasses() != 2)
-                throw new LearnerException("Cannot generate a Gain Chart of a multi-class classification.");
-        }
-        catch(DataModelException ex) { throw new LearnerException(ex); }
-        
-        // Make buffers for the ROC curves of the different folds as well as for the combines one.
-        gainfold = new double[numFolds][];
-        for (i=0; i<gainfold.length; i++) gainfold[i] = new double[GAINLEN];
+        // Average the Gain Charts of the folds
         gain = new double[GAINLEN];
-        
-        // Iterate over the folds
-        for (i=1; i<=numFolds; i++)
+        for (i=0; i<numFolds; i++)
         {
-            // Count the number of succesfully tested instances in this fold and the number of positives
-            not = 0; cavg = 0;
-            for (j=0; j<split.length; j++) if ((split[j] == i) && (classError[j] != -1)) not++;
-            confbuf = new ClassConfidence[not];
-            pos = 0;
-            for (j=0; j<split.length; j++)
-            {
-                if ((split[j] == i) && (classError[j] != -1))
-                {
-                    confbuf[pos++] = confidence[j];
-                    if (classGoal[j] == 1) cavg++;
-                }
-            }
-            cavg /= pos;
-            
-            // Order the results over decreasing confidence.
-            Arrays.sort(confbuf);
-            
-            // The total number of classifications
-            nt    = confbuf.length;
-            xstep = (vend-vbeg) / GAINLEN;
-            
-            // Make Gain Chart.
-            x = vbeg;
-            for (j=0; j<GAINLEN; j++)
-            {
-                // Calculate gain at 'ind'
-                ind  = (int)(x*nt);
-                cnow = 0;
-                for (k=0; k<ind; k++)
-                {
-                    pos = confbuf[k].ind;
-                    if (classGoal[pos] == 1) cnow++;
-                }
-                cnow            /= ind;
-                gainnow          = (cnow/cavg)-1.0;
-                gainfold[i-1][j] = gainnow;
-                
-                // Move on the show.
-                x += xstep;
-            }
-        }
-        
-        // Merge the Gain Charts of the folds
-        for (i=0; i<GAINLEN; i++)
-        {
-            gainnow = 0;
-            for (j=0; j<numFolds; j++) gainnow += gainfold[j][i];
-            gainnow /= numFolds;
-            gain[i] = gainnow;
+            gainfold = foldStat[i].getGainChart(GAINLEN, vbeg, vend);
+            for (j=0; j<GAINLEN; j++) gain[j] += gainfold[j];
         }
+        for (j=0; j<GAINLEN; j++) gain[j] /= numFolds;
         
         return(gain);
     }
@@ -214,21 +145,18 @@ public class ValidationClassifier
     {
         double []ci = new double[4];
         int    i;
-        int    count;
-        int    cor;
+        long   count;
+        long   cor;
         double acc, var;
         
         ci[0] = 0; ci[1] = 0; ci[2] = 0; ci[3] = 0;
         
         // Find accuracy and test count
         count = 0; cor = 0;
-        for (i=0; i<classError.length; i++)
+        for (i=fmin; i<=fmax; i++)
         {
-            if (inFold(split[i], fmin, fmax))
-            {
-                if (classError[i] != -1) count++;
-                if (classError[i] ==  1) cor++;
-            }
+            count += foldStat[i-1].getNumberOfTested();
+            cor   += foldStat[i-1].getNumberOfCorrect();
         }
         if (count > 0) { acc = ((double)cor)/count; var = (cor*(1-acc) + (count-cor)*acc)/ (count-1); }
         else           { acc = 0; var = 0; }
@@ -257,16 +185,15 @@ public class ValidationClassifier
         return(ci);
     }
     
-    private boolean inFold(int i, int fmin, int fmax)
+    private void checkTwoClass(String msg) throws LearnerException
     {
-        boolean in;
-        int     s;
-        
-        s = split[i];
-        if ((s >= fmin) && (s <= fmax)) in = true;
-        else                            in = false;
-        
-        return(in);
+        try
+        {
+            // Check classification appropriateness.
+            if (dataModel.getAttribute(dataModel.getLearningProperty().getGoalIndex()).getNumberOfGoalClasses() != 2)
+                throw new LearnerException(msg);
+        }
+        catch(DataModelException ex) { throw new LearnerException(ex); }
     }
     
     // **********************************************************\
@@ -280,30 +207,24 @@ public class ValidationClassifier
     // **********************************************************\
     // *             Reporting about a specific Fold            *
     // **********************************************************/
+    /**
+     * Give the statistics of the given fold.
+     * @param fold The number of the fold (starts at 1)
+     * @return The statistics of the tests in this fold.
+     */
+    public ClassificationStatistics getStatistics(int fold)
+    {
+        return(this.foldStat[fold-1]);
+    }
+    
     /**
      * Give the percentage of instances that could not be classified in the given fold.
      * @param fold The number of the fold (starts at 1)
-     * @return The
+     * @return The percentage [0,1] of the instances of the fold that could not be classified.
      */
     public double getErrorOfClassification(int fold)
     {
-        int    i;
-        double counterr, counttot;
-        double err;
-        
-        counterr = 0; counttot = 0;
-        for (i=0; i<classError.length; i++)
-        {
-            if (split[i] == fold)
-            {
-                if (classError[i] == -1) counterr++;
-                counttot++;
-            }
-        }
-        if (counttot != 0) err = counterr / counttot;
-        else               err = 0;
-        
-        return(err);
+        return(this.foldStat[fold-1].getErrorOfClassification());
     }
     
     /**
@@ -313,23 +234,7 @@ public class ValidationClassifier
      */
     public double getClassificationError(int fold)
     {
-        int    i;
-        int    count;
-        double err;
-        
-        count = 0; err = 0;
-        for (i=0; i<classError.length; i++)
-        {
-            if (split[i] == fold)
-            {
-                if (classError[i] != -1) count++;
-                if (classError[i] ==  0) err++;
-            }
-        }
-        if (count > 0) err /= count;
-        else           err = 0;
-        
-        return(err);
+        return(this.foldStat[fold-1].getClassificationError());
     }
     
     /**
@@ -339,37 +244,7 @@ public class ValidationClassifier
      */
     public double [][]getConfusionMatrix(int fold)
     {
-        int    i,j;
-        int    []gccount;
-        double [][]confold;
-        
-        // Make space for the confusion matrix of the fold
-        confold = new double[numClass][];
-        gccount = new int[numClass];
-        for (i=0; i<confold.length; i++) confold[i] = new double[numClass];
-        for (i=0; i<confold.length; i++)
-        {
-            for (j=0; j<confold.length; j++) confold[i][j] = 0;
-            gccount[i] = 0;
-        }
-        
-        // Find test of this fold and update the confusion matrix with them.
-        for (i=0; i<split.length; i++)
-        {
-            if (split[i] == fold)
-            {
-                if (classOut[i] != -1)
-                {
-                    confold[classGoal[i]][classOut[i]]++;
-                    gccount[classGoal[i]]++;
-                }
-            }
-        }
-        
-        // Normalize over Goal Class rows?
-        ;
-        
-        return(confold);
+        return(this.foldStat[fold-1].getConfusionMatrix());
     }
     
     /**
@@ -395,83 +270,53 @@ public class ValidationClassifier
      */
     public double []getROCCurve(int fold, int ROCLEN, String rocfile) throws LearnerException
     {
-        int             i,j;
-        double          []roc;
-        int             not, np, nn, ind, pos;
-        double          x, y;
-        double          xstep;
-        ClassConfidence []confbuf;
-        
-        // Check classification appropriateness.
-        try
-        {
-            if (dataModel.getAttribute(dataModel.getLearningProperty().getGoalIndex()).getNumberOfGoalClasses() != 2)
-                throw new LearnerException("Cannot generate a Lift/ROC curve of a multi-class classification.");
-        }
-        catch(DataModelException ex) { throw new LearnerException(ex); }
+        double []roc;
         
-        // Make buffer for the ROC curve
-        roc = new double[ROCLEN];
+        checkTwoClass("Cannot generate a Lift/ROC curve of a multi-class classification.");
+        roc = this.foldStat[fold-1].getROCCurve(ROCLEN);
+        if (rocfile != null) writeROCCurve(roc, rocfile);
         
-        // Count the number of succesfully tested instances in the fold
-        not = 0;
-        for (j=0; j<split.length; j++) if ((split[j] == fold) && (classError[j] != -1)) not++;
-        confbuf = new ClassConfidence[not];
-        pos = 0;
-        for (j=0; j<split.length; j++)
-        {
-            if ((split[j] == fold) && (classError[j] != -1)) confbuf[pos++] = confidence[j];
-        }
-        
-        // Order the results over decreasing confidence.
-        Arrays.sort(confbuf);
-        
-        // Count total number of positives(1) and negatives(0)
-        np  = 0; nn = 0;
-        for (j=0; j<not; j++)
-        {
-            if (classGoal[confbuf[j].ind] == 1) np++;
-            else                                nn++;
-        }
+        return(roc);
+    }
+    
+    /**
+     * Give the area under the ROC curve of the given fold of the tested 2-class classification problem.
+     * @param fold The fold number (starting at 1)
+     * @return The area under the ROC curve of the fold.
+     * @throws LearnerException If the fold has no positives or negatives or it's a multi-class problem.
+     */
+    public double getAUC(int fold) throws LearnerException
+    {
+        checkTwoClass("Cannot calculate the AUC of a multi-class classification.");
         
-        // Make ROC curce
-        xstep = ((double)nn) / ROCLEN;
-        x = 0; pos = 1; y = 0;
-        for (j=0; (j<not) && (pos < ROCLEN); j++)
-        {
-            ind = confbuf[j].ind;
-            if (classGoal[ind] == 1) y += 1;
-            else                     x += 1;
-            
-            if (x >= xstep)
-            {
-                while (((x-xstep) > 0) && (pos < ROCLEN))
-                {
-                    x         -= xstep;
-                    roc[pos++] = y/np;
-                }
-            }
-        }
-        for (; pos<ROCLEN; pos++) roc[pos] = 1.00;
+        return(this.foldStat[fold-1].getAUC());
+    }
+    
+    private void writeROCCurve(double []roc, String rocfile)
+    {
+        int i;
         
-        // Write out the merged ROC curve
-        if (rocfile != null)
+        try
         {
-            try
-            {
-                FileWriter froc = new FileWriter(rocfile);
-                for (i=0; i<ROCLEN; i++) froc.write((((double)i)/ROCLEN)+"\t"+roc[i]+"\n");
-                froc.close();
-            }
-            catch(java.io.IOException ex) { ex.printStackTrace(); }
+            FileWriter froc = new FileWriter(rocfile);
+            for (i=0; i<roc.length; i++) froc.write((((double)i)/roc.length)+"\t"+roc[i]+"\n");
+            froc.close();
         }
-        
-        return(roc);
+        catch(java.io.IOException ex) { ex.printStackTrace(); }
     }
     
     // **********************************************************\
     // *                Reporting over all Folds                *
     // **********************************************************/
+    /**
+     * Give the statistics of all folds together.
+     * @return The merged statistics of all tested instances.
+     */
+    public ClassificationStatistics getStatistics()
+    {
+        return(this.stat);
+    }
+    
     /**
      * Give the average ROC curve (over the folds) of the tested 2-class classification.
      * @param ROCLEN The number of points in the ROC curve. (typical value 100)
@@ -493,103 +338,45 @@ public class ValidationClassifier
      */
     public double []getROCCurve(int ROCLEN, String rocfile) throws LearnerException
     {
-        int             i,j;
-        double          [][]rocfold;
-        double          []roc;
-        int             not, np, nn, ind, pos;
-        double          x, y;
-        double          xstep, rocnow;
-        ClassConfidence []confbuf;
+        int       i,j;
+        double  []roc, rocfold;
         
-        try
-        {
-            // Check classification appropriateness.
-            if (dataModel.getAttribute(dataModel.getLearningProperty().getGoalIndex()).getNumberOfGoalClasses() != 2)
-                throw new LearnerException("Cannot generate a Lift/ROC curve of a multi-class classification.");
-        }
-        catch(DataModelException ex) { throw new LearnerException(ex); }
+        checkTwoClass("Cannot generate a Lift/ROC curve of a multi-class classification.");
         
-        // Make buffers for the ROC curves of the different folds as well as for the combines one.
-        rocfold = new double[numFolds][];
-        for (i=0; i<rocfold.length; i++) rocfold[i] = new double[ROCLEN];
+        // Average the ROC curves of the folds
         roc = new double[ROCLEN];
-        
-        // Iterate over the folds
-        for (i=1; i<=numFolds; i++)
+        for (i=0; i<numFolds; i++)
         {
-            // Count the number of succesfully tested instances in this fold
-            not = 0;
-            for (j=0; j<split.length; j++) if ((split[j] == i) && (classError[j] != -1)) not++;
-            confbuf = new ClassConfidence[not];
-            pos = 0;
-            for (j=0; j<split.length; j++)
-            {
-                if ((split[j] == i) && (classError[j] != -1)) confbuf[pos++] = confidence[j];
-            }
-            
-            // Order the results over decreasing confidence.
-            Arrays.sort(confbuf);
-            
-            // Count total number of positives(1) and negatives(0)
-            np  = 0; nn = 0;
-            for (j=0; j<not; j++)
-            {
-                if (classGoal[confbuf[j].ind] == 1) np++;
-                else                                nn++;
-            }
-            
-            // Make ROC curce
-            xstep = ((double)nn) / ROCLEN;
-            x = 0; pos = 1; y = 0;
-            for (j=0; (j<not) && (pos < ROCLEN); j++)
-            {
-                ind = confbuf[j].ind;
-                if (classGoal[ind] == 1) y += 1;
-                else                     x += 1;
-                
-                if (x >= xstep)
-                {
-                    while (((x-xstep) > 0) && (pos < ROCLEN))
-                    {
-                        x                  -= xstep;
-                        rocfold[i-1][pos++] = y/np;
-                    }
-                }
-            }
-            for (; pos<ROCLEN; pos++) rocfold[i-1][pos] = 1.00;
-        }
-        
-        // Merge the ROC curves of the folds
-        for (i=0; i<ROCLEN; i++)
-        {
-            rocnow = 0;
-            for (j=0; j<numFolds; j++) rocnow += rocfold[j][i];
-            rocnow /= numFolds;
-            roc[i] = rocnow;
+            rocfold = foldStat[i].getROCCurve(ROCLEN);
+            for (j=0; j<ROCLEN; j++) roc[j] += rocfold[j];
         }
+        for (j=0; j<ROCLEN; j++) roc[j] /= numFolds;
         
         // Write out the merged ROC curve
-        if (rocfile != null)
-        {
-            try
-            {
-                FileWriter froc = new FileWriter(rocfile);
-                for (i=0; i<ROCLEN; i++) froc.write((((double)i)/ROCLEN)+"\t"+roc[i]+"\n");
-                froc.close();
-            }
-            catch(java.io.IOException ex) { ex.printStackTrace(); }
-        }
+        if (rocfile != null) writeROCCurve(roc, rocfile);
         
         return(roc);
     }
     
+    /**
+     * Give the area under the ROC curve of all tested instances of the 2-class classification.
+     * @return The area under the ROC curve.
+     * @throws LearnerException If there are no positives or negatives or it's a multi-class problem.
+     */
+    public double getAUC() throws LearnerException
+    {
+        checkTwoClass("Cannot calculate the AUC of a multi-class classification.");
+        
+        return(this.stat.getAUC());
+    }
+    
     /**
      * Give the confusion matrix of the tested classification.
      * @return The confusion-matrix as a <code>double [][]</code>
      */
     public double [][]getConfusionMatrix()
     {
-        return(classConfusion);
+        return(this.stat.getConfusionMatrix());
     }
 
     
@@ -619,20 +406,7 @@ public class ValidationClassifier
      */
     public double getClassificationError()
     {
-        int    i;
-        int    count;
-        double err;
-        
-        count = 0; err = 0;
-        for (i=0; i<classError.length; i++)
-        {
-            if (classError[i] != -1) count++;
-            if (classError[i] == 0) err++;
-        }
-        if (count > 0) err /= count;
-        else           err = 0;
-        
-        return(err);
+        return(this.stat.getClassificationError());
     }
     
     // **********************************************************\
@@ -645,6 +419,19 @@ public class ValidationClassifier
      * @throws LearnerException If something goes wrong during the test classification operations.
      */
     void testClassifier(int fold, Presenter testSet) throws LearnerException
+    {
+        testClassifier(fold, testSet, this.cl);
+    }
+    
+    /**
+     * Test the given classifier on the test-set of a fold.
+     * Different folds can be tested at the same time, each with their own classifier.
+     * @param fold The fold-number of this test.
+     * @param testSet The set of instances that should be tested
+     * @param cl The classifier trained for this fold.
+     * @throws LearnerException If something goes wrong during the test classification operations.
+     */
+    void testClassifier(int fold, Presenter testSet, Classifier cl) throws LearnerException
     {
         int             i;
         int             gcnow;
@@ -654,62 +441,58 @@ public class ValidationClassifier
         ObjectMatrix1D  oinsnow;
         byte            []errbuf;
         int             []goalbuf;
-        ClassConfidence []confbuf;
+        int             []testbuf;
+        ClassificationStatistics statnow;
         int             epos;
+        boolean         primitive;
         double          []conf = new double[numClass];
         
         numins            = testSet.getNumberOfInstances();
-        dataModel         = testSet.getDataModel();
+        primitive         = (testSet.getDataModel() instanceof DataModelDouble);
         errbuf            = new byte[numins];
         goalbuf           = new int[numins];
-        confbuf           = new ClassConfidence[numins];
-        classTest[fold-1] = new int[numins];
+        testbuf           = new int[numins];
+        statnow           = new ClassificationStatistics(this.numClass, this.scoreResolution);
         
-        // Update the test results, confusion matrix and error vector.
+        // Classify the test instances of this fold.
         for (i=0; i<numins; i++)
         {
             // Test the current instance
             insnow = null; oinsnow = null;
-            if (isPrimitive())  insnow = testSet.getInstance(i);
-            else               oinsnow = testSet.getObjectInstance(i);
+            if (primitive)  insnow = testSet.getInstance(i);
+            else           oinsnow = testSet.getObjectInstance(i);
             gcnow      = testSet.getGoalClass(i);
             goalbuf[i] = gcnow;
-            if (isPrimitive())  clnow = cl.classify(insnow, conf);
-            else                clnow = cl.classify(oinsnow, conf);
+            if (primitive)  clnow = cl.classify(insnow, conf);
+            else            clnow = cl.classify(oinsnow, conf);
             
+            testbuf[i] = clnow;
+            statnow.add(gcnow, clnow, conf);
             if (clnow != -1)
             {
-                // If the classification succeeded. Update error, confusion, confidence buffers.
-                numTest++;
-                this.classCount[gcnow]++;
-                this.classConfusion[gcnow][clnow]++;
-                
-                this.classTest[fold-1][i] = clnow;
-                confbuf[i]           = new ClassConfidence(conf[1]);
                 if (clnow == gcnow) errbuf[i] = 1;
                 else                errbuf[i] = 0;
             }
-            else
-            {
-                // Classification didn't work...
-                this.classTest[fold-1][i] = -1;
-                confbuf[i]                = null;
-                errbuf[i]                 = -1;
-            }
+            else errbuf[i] = -1; // Classification didn't work...
         }
         
-        // Merge this fold's buffers in the global buffers used by the reporting methods.
-        epos = 0;
-        for (i=0; i<this.split.length; i++)
+        // Merge this fold's results in the global buffers used by the reporting methods.
+        synchronized(this)
         {
-            if (split[i] == fold)
+            this.dataModel        = testSet.getDataModel();
+            this.foldStat[fold-1] = statnow;
+            this.stat.merge(statnow);
+            
+            epos = 0;
+            for (i=0; i<this.split.length; i++)
             {
-                this.classOut[i]   = this.classTest[fold-1][epos];
-                this.classGoal[i]  = goalbuf[epos];
-                this.classError[i] = errbuf[epos];
-                this.confidence[i] = confbuf[epos];
-                if (this.confidence[i] != null) this.confidence[i].ind = i;
-                epos++;
+                if (split[i] == fold)
+                {
+                    this.classOut[i]   = testbuf[epos];
+                    this.classGoal[i]  = goalbuf[epos];
+                    this.classError[i] = errbuf[epos];
+                    epos++;
+                }
             }
         }
         //System.out.println("Finished validating fold "+fold+" of "+numFolds);
@@ -721,7 +504,7 @@ public class ValidationClassifier
     // **********************************************************/
     void initTest(Validation _val, Presenter _instances, int []_split, int _numFolds, Classifier _cl) throws DataModelException
     {
-        int       i,j;
+        int       i;
         int       numins;
         DataModel dm;
         DataModelPropertyLearning learn;
@@ -733,47 +516,29 @@ public class ValidationClassifier
         this.split     = _split;
         this.numFolds  = _numFolds;
         this.cl        = _cl;
-        this.numTest   = 0;
         
         // Check DataModel fit.
         learn = this.dataModel.getLearningProperty();
         if (learn.getGoalIndex() == -1)
             throw new DataModelException("Cannot comparis classifier that has no goal class... Impossible configuration for a Classifier.");
         
-        // Test Results. Error vector. Confusion Matrix.
+        // Test Results. Error vector. Statistics of the folds.
         dm         = instances.getDataModel();
         numins     = instances.getNumberOfInstances();
         this.numClass   = dm.getAttribute(learn.getGoalIndex()).getNumberOfGoalClasses();
-        this.classTest  = new int[numFolds][];
         this.classOut   = new int[numins];
         this.classGoal  = new int[numins];
         this.classError = new byte[numins];
         for (i=0; i<this.classError.length; i++) { this.classOut[i] = -1; this.classError[i] = -1; }
-        this.classConfusion = new double[numClass][];
-        this. classCount     = new int[numClass];
-        for (i=0; i<numClass; i++)
-        {
-            this.classConfusion[i] = new double[numClass];
-            this.classCount[i]     = 0;
-            for (j=0; j<numClass; j++) this.classConfusion[i][j] = 0;
-        }
-        this.confidence = new ClassConfidence[numins];
+        this.stat     = new ClassificationStatistics(this.numClass, this.scoreResolution);
+        this.foldStat = new ClassificationStatistics[this.numFolds];
+        for (i=0; i<this.numFolds; i++) this.foldStat[i] = new ClassificationStatistics(this.numClass, this.scoreResolution);
     }
     
     void endTest()
     {
         int i,j;
         
-        // Make the confusion matrix
-        for(i=0; i<classConfusion.length; i++)
-        {
-            for (j=0; j<classConfusion[i].length; j++)
-            {
-                //if (classCount[i] != 0) classConfusion[i][j] /= classCount[i];
-                //else                    classConfusion[i][j]  = 0;
-            }
-        }
-        
         // Install Default Costs.
         costMatrix = new double[numClass][numClass];
         for (i=0; i<costMatrix.length; i++)
@@ -783,6 +548,16 @@ public class ValidationClassifier
         }
     }
     
+    /**
+     * Set the number of bins in which the scores of the positive class are counted.
+     * With 0 bins (the default), the exact scores are kept and the ROC curves and AUC are exact.
+     * Should be set before the test.
+     * @param scoreResolution The number of score bins. 0 for exact scores.
+     */
+    void setScoreResolution(int scoreResolution)
+    {
+        this.scoreResolution = scoreResolution;
+    }
     
     public ValidationClassifier()
     {
@@ -794,116 +569,31 @@ public class ValidationClassifier
     }
     
     // **********************************************************\
-    // *   The confidence of classification test an instance    *
+    // *                   Univariate Analysis                  *
     // **********************************************************/
-    private class ClassConfidence implements Comparable
+    private ClassificationStatistics getUnivariateStatistics(int index) throws LearnerException
     {
-        int    ind;     // The index in the 'instances' set.
-        double conf;    // Confidence of classification test.
+        int                      i;
+        ClassificationStatistics ustat;
         
-        public int compareTo(Object o)
-        {
-            ClassConfidence cc = (ClassConfidence)o;
-            if      (conf <  cc.conf) return(1);
-            else if (conf == cc.conf) return(0);
-            else                      return(-1);
-        }
+        // Rank the instances on the value of the attribute.
+        ustat = new ClassificationStatistics(2, this.scoreResolution);
+        for (i=0; i<instances.getNumberOfInstances(); i++)
+            ustat.addScore(instances.getInstance(i).get(index), classGoal[i] == 1);
         
-        public ClassConfidence(double _conf) { conf = _conf; }
-    }
-    
-    // **********************************************************\
-    // *                   Univariate Analysis                  *
-    // **********************************************************/
-    private int getbin(double min,double max,int nrofbins,double value) {
-        double  x0 = min;
-        double  x1 = max;
-        int     b0 = 0;
-        int     b1 = nrofbins-1;
-        while (b1 - b0 > 1) {
-            double    x = (x1 + x0)/2;
-            int       b = (b0 + b1)/2;
-            if (value < x) {
-                b1 = b;
-                x1 = x;
-            } else {
-                b0 = b;
-                x0 = x;
-            }
-        };
-        return b0;
+        return(ustat);
     }
     
+    /**
+     * Give the area under the ROC curve of a single attribute used as score of the positive class.
+     * @param index The index of the attribute
+     * @param threshold Not used
+     * @return The area under the ROC curve.
+     * @throws LearnerException If the AUC cannot be calculated.
+     */
     public double UnivariateROCValue(int index,double threshold) throws LearnerException
     {
-        int                 signallength = instances.getNumberOfInstances();
-        DoubleMatrix1D      signal  =    DoubleFactory1D.dense.make(signallength);
-        
-        double    max = 0,min = 0;
-        double    result = 0;
-        
-        //prepare signal and look for min,max
-        for (int i = 0;i < signallength;i++) {
-            signal.set(i,instances.getInstance(i).get(index));
-            //System.out.println(signal.get(i));
-            if (i == 0) {
-                max = signal.get(i);
-                min = max;
-            } else {
-                if (max < signal.get(i)) max = signal.get(i);
-                if (min > signal.get(i)) min = signal.get(i);
-            };
-        }
-        
-        //System.out.println("max = " + max);
-        //System.out.println("min = " + min);
-        
-        //initialize histograms
-        int   nrofbins = 256;
-        int   nrofclasses = 2;
-        int   [][]histclass = new int[nrofclasses][];
-        int   []nrofpoints = new int[nrofclasses];
-        
-        for (int j = 0;j < nrofclasses;j++) {
-            nrofpoints[j] = 0;
-            histclass[j] = new int[nrofbins];
-            for (int i = 0;i < nrofbins;i++) histclass[j][i] = 0;
-        }
-        
-        //normalize and check
-        for (int i = 0;i < signallength;i++) {
-            double value = (signal.get(i)-min)/(max - min);
-            int t = getbin(0.0,1.0,nrofbins,value);
-            //System.out.println("["+value + "]-"+t);
-            histclass[classGoal[i]][t]++;
-            nrofpoints[classGoal[i]]++;
-        }
-        
-        //Generate coordinates  (cumulative histogram)
-        double [][]x = new double[nrofclasses][];
-        double []p = new double[nrofclasses];
-        for (int j = 0;j < nrofclasses;j++) {
-            x[j] = new double[nrofbins];
-            p[j] = 0.0;
-            double c = 0.0;
-            for (int i = 0;i < nrofbins;i++) {
-                c += (double) (((double) histclass[j][i])/(double) nrofpoints[j]);
-                x[j][i] = c;
-                //System.out.print( c + ",");
-            }
-            //System.out.println("");
-            
-        }
-        
-        //calculate integrale
-        result = 0.0;
-        for (int i = 0;i < nrofbins;i++ ) {
-            result += (x[0][i] - p[0])*(x[1][i]+p[1])/2;
-            for (int j = 0;j < nrofclasses;j++) p[j] = x[j][i];
-        };
-        
-        
-        return 1-result;
+        return(getUnivariateStatistics(index).getAUC());
     }
     
     public double UnivariateROCValue(int index) throws LearnerException
@@ -911,95 +601,18 @@ public class ValidationClassifier
         return UnivariateROCValue(index,0.5);
     }
     
+    /**
+     * Give the ROC curve of a single attribute used as score of the positive class.
+     * @param index The index of the attribute
+     * @param threshold Not used
+     * @param from Not used
+     * @param too Not used
+     * @return The ROC curve in 256 points.
+     * @throws LearnerException If the ROC curve cannot be made.
+     */
     public DoubleMatrix1D getROCCurveUnivariate(int index,double threshold,double from, double too) throws LearnerException
     {
-        int                 signallength = instances.getNumberOfInstances();
-        DoubleMatrix1D      signal  =    DoubleFactory1D.dense.make(signallength);
-        
-        double    max = 0,min = 0;
-        
-        //prepare signal and look for min,max
-        for (int i = 0;i < signallength;i++) {
-            signal.set(i,instances.getInstance(i).get(index));
-            //System.out.println(signal.get(i));
-            if (i == 0) {
-                max = signal.get(i);
-                min = max;
-            } else {
-                if (max < signal.get(i)) max = signal.get(i);
-                if (min > signal.get(i)) min = signal.get(i);
-            };
-        }
-        
-        //System.out.println("max = " + max);
-        //System.out.println("min = " + min);
-        
-        //initialize histograms
-        int   nrofbins = 256;
-        int   nrofclasses = 2;
-        int   [][]histclass = new int[nrofclasses][];
-        int   []nrofpoints = new int[nrofclasses];
-        
-        for (int j = 0;j < nrofclasses;j++) {
-            nrofpoints[j] = 0;
-            histclass[j] = new int[nrofbins];
-            for (int i = 0;i < nrofbins;i++) histclass[j][i] = 0;
-        }
-        
-        //normalize and check
-        for (int i = 0;i < signallength;i++) {
-            double value = (signal.get(i)-min)/(max - min);
-            int t = getbin(0.0,1.0,nrofbins,value);
-            //System.out.println("["+value + "]-"+t);
-            histclass[classGoal[i]][t]++;
-            nrofpoints[classGoal[i]]++;
-        }
-        
-        //Generate coordinates  (cumulative histogram)
-        double [][]x = new double[nrofclasses][];
-        double []p = new double[nrofclasses];
-        for (int j = 0;j < nrofclasses;j++) {
-            x[j] = new double[nrofbins];
-            p[j] = 0.0;
-            double c = 0.0;
-            for (int i = 0;i < nrofbins;i++) {
-                c += (double) (((double) histclass[j][i])/(double) nrofpoints[j]);
-                x[j][i] = c;
-                //System.out.print( c + ",");
-            }
-            //System.out.println("");
-            
-        }
-        
-        DoubleMatrix1D      result  =    DoubleFactory1D.dense.make(signallength);
-        
-        int   nrofsamples = 256;
-        int   offset = 0;
-        
-        for (int j = 0;j < nrofclasses;j++)  p[j] = 0.0;
-        
-        for (int i = 0;i < nrofsamples;i++) {
-            double t = (double) i / (double) nrofsamples;
-            if  (t >= x[0][offset]) {
-                while (offset < nrofbins && t >= x[0][offset]) offset++;
-            }
-            //interpolate
-            if (offset > 0) {
-                if (offset == nrofbins) {
-                    result.set(i,x[1][offset-1] + ((1.0-x[1][offset-1])/(1.0-x[0][offset-1])) * (t - x[0][offset-1]));
-                } else {
-                    if ((x[0][offset]-x[0][offset-1]) > 0)
-                        result.set(i,x[1][offset-1] + ((x[1][offset]-x[1][offset-1])/(x[0][offset]-x[0][offset-1])) * (t - x[0][offset-1]));
-                    else
-                        result.set(i,result.get(i-1));
-                }
-            } else {
-                result.set(i,(x[1][offset])/(x[0][offset]) * (t));
-            }
-            //System.out.println(t + "\t" + x[0][offset] + "\t" + result.get(i));
-        }
-        
-        return result;
+        return(DoubleFactory1D.dense.make(getUnivariateStatistics(index).getROCCurve(256)));
     }
     
 }
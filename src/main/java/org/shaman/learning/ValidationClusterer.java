@@ -155,14 +155,29 @@ public class ValidationClusterer
     // *                   Clusterer Testing                    *
     // **********************************************************/
     void testClusterer(int fold, Presenter testSet) throws LearnerException
+    {
+        testClusterer(fold, testSet, this.cl);
+    }
+    
+    /**
+     * Test the given clusterer on the test-set of a fold.
+     * Different folds can be tested at the same time, each with their own clusterer.
+     * @param fold The fold-number of this test.
+     * @param testSet The set of instances that should be tested
+     * @param cl The clusterer trained for this fold.
+     * @throws LearnerException If something goes wrong during the clustering.
+     */
+    void testClusterer(int fold, Presenter testSet, Classifier cl) throws LearnerException
     {
         int            i, numins;
         DoubleMatrix1D ins;
         ObjectMatrix1D oins;
         int            clus;
         
-        numins           = testSet.getNumberOfInstances();
-        clusTest[fold-1] = new int[numins];
+        int          []clusbuf;
+        
+        numins  = testSet.getNumberOfInstances();
+        clusbuf = new int[numins];
         for (i=0; i<numins; i++)
         {
             if (isPrimitive())
@@ -175,8 +190,9 @@ public class ValidationClusterer
                 oins = testSet.getObjectInstance(i);
                 clus = cl.classify(oins);
             }
-            clusTest[fold-1][i] = clus;
+            clusbuf[i] = clus;
         }
+        synchronized(this) { clusTest[fold-1] = clusbuf; }
     }
     
     // **********************************************************\
@@ -231,6 +231,19 @@ public class ValidationEstimator
     // *                   Estimator Testing                    *
     // **********************************************************/
     void testEstimator(int fold, Presenter testSet) throws LearnerException
+    {
+        testEstimator(fold, testSet, this.es);
+    }
+    
+    /**
+     * Test the given estimator on the test-set of a fold.
+     * Different folds can be tested at the same time, each with their own estimator.
+     * @param fold The fold-number of this test.
+     * @param testSet The set of instances that should be tested
+     * @param es The estimator trained for this fold.
+     * @throws LearnerException If something goes wrong during the estimation.
+     */
+    void testEstimator(int fold, Presenter testSet, Estimator es) throws LearnerException
     {
         int             i;
         double          gnow, enow;
@@ -241,19 +254,22 @@ public class ValidationEstimator
         boolean         []errbuf;
         double          []goalbuf;
         int             epos;
-        boolean         sup;
+        boolean         sup, primitive;
+        double          []testbuf;
+        int             numok;
         
         numins            = testSet.getNumberOfInstances();
-        dataModel         = testSet.getDataModel();
+        primitive         = (testSet.getDataModel() instanceof DataModelDouble);
         sup               = es.isSupervised();
         errbuf            = new boolean[numins];
         goalbuf           = new double[numins];
-        estTest[fold-1]   = new double[numins];
+        testbuf           = new double[numins];
+        numok             = 0;
         
         // Estimate the error for all instances.
         for (i=0; i<numins; i++)
         {
-            if (isPrimitive())  // Primitive Data
+            if (primitive)  // Primitive Data
             {
                 insnow = testSet.getInstance(i);
                 if (sup) // This estimator estimates the goal's value. (e.g. MLP with regression)
@@ -296,28 +312,34 @@ public class ValidationEstimator
             
             if (!Double.isNaN(enow))            // If Estimation worked... Update this fold's buffers.
             {
-                numTest++;
-                estTest[fold-1][i] = enow;
+                numok++;
+                testbuf[i]         = enow;
                 goalbuf[i]         = gnow;
                 errbuf[i]          = false;
             }
             else
             {
-                estTest[fold-1][i] = Double.NaN;  // Else remember that the thing failed.
+                testbuf[i]         = Double.NaN;  // Else remember that the thing failed.
                 goalbuf[i]         = Double.NaN;
                 errbuf[i]          = true;
             }
         }
         // Merge the folds buffers whit the global ones on which the reporting operates.
-        epos = 0;
-        for (i=0; i<split.length; i++)
+        synchronized(this)
         {
-            if (split[i] == fold)
+            dataModel        = testSet.getDataModel();
+            numTest         += numok;
+            estTest[fold-1]  = testbuf;
+            epos = 0;
+            for (i=0; i<split.length; i++)
             {
-                estOut[i]     = estTest[fold-1][epos];
-                estGoal[i]    = goalbuf[epos];
-                estError[i]   = errbuf[epos];
-                epos++;
+                if (split[i] == fold)
+                {
+                    estOut[i]     = testbuf[epos];
+                    estGoal[i]    = goalbuf[epos];
+                    estError[i]   = errbuf[epos];
+                    epos++;
+                }
             }
         }
     }
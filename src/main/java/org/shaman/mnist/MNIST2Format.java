@@ -115,6 +115,20 @@ public abstract class MNIST2Format {
     return ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN).getInt();
   }
 
+  /**
+   * opens the output file. Writes text through m_Output by default.
+   */
+  protected void openOutput() throws Exception {
+    m_Output = new PrintStream(new FileOutputStream(m_OutputFilename));
+  }
+
+  /**
+   * closes the output file
+   */
+  protected void closeOutput() throws Exception {
+    closeOutput();
+  }
+
   /**
    * writes the header of the output file
    */
@@ -147,7 +161,7 @@ public abstract class MNIST2Format {
     // init
     m_Features = new FileInputStream(m_FeaturesFilename);
     m_Labels   = new FileInputStream(m_LabelsFilename);
-    m_Output   = new PrintStream(new FileOutputStream(m_OutputFilename));
+    openOutput();
     array      = new byte[4];
     features   = new float[NUM_FEATURES];
 
@@ -192,8 +206,7 @@ public abstract class MNIST2Format {
     // close streams
     m_Features.close();
     m_Labels.close();
-    m_Output.flush();
-    m_Output.close();
+    closeOutput();
 
     // write footer
     writeFooter();
@@ -0,0 +1,157 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    MNIST2Instances.java
+ *
+ */
+
+package org.shaman.mnist;
+
+import java.io.File;
+
+import org.shaman.datamodel.AttributeDouble;
+import org.shaman.datamodel.DataModelDouble;
+import org.shaman.learning.InstanceFileWriter;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+
+/**
+ * Transforms the raw data (floats, stored in little endian) into a binary
+ * instance file that can be memory-mapped with InstanceSetMapped.
+ * The features are stored as floats, like in the raw data.
+ * It takes as first parameter the feature file, as second the label data and
+ * finally as third and last parameter the output file
+ *
+ * @see org.shaman.learning.InstanceSetMapped
+ */
+
+public class MNIST2Instances extends MNIST2Format {
+  /** the number of classes */
+  protected final static int NUM_CLASSES = 10;
+
+  /** the instance file writer */
+  protected InstanceFileWriter m_Writer;
+
+  /** buffer holding the features of one instance */
+  protected DoubleMatrix1D m_Instance;
+
+  /**
+   * initializes the transformation
+   */
+  public MNIST2Instances() {
+    super();
+  }
+
+  /**
+   * makes the DataModel of the MNIST instances: the features and
+   * a categorical class attribute as goal
+   * @return              the DataModel
+   * @throws Exception    if the DataModel cannot be made
+   */
+  public static DataModelDouble makeDataModel() throws Exception {
+    DataModelDouble     dm;
+    AttributeDouble     att;
+    double[]            classes;
+    int                 i;
+
+    dm = new DataModelDouble("MNIST", NUM_FEATURES + 1);
+    for (i = 0; i < NUM_FEATURES; i++) {
+      att = dm.getAttributeDouble(i);
+      att.setName("feature" + (i+1));
+      att.initAsNumberContinuous();
+      att.setIsActive(true);
+    }
+
+    classes = new double[NUM_CLASSES];
+    for (i = 0; i < NUM_CLASSES; i++)
+      classes[i] = i;
+    att = dm.getAttributeDouble(NUM_FEATURES);
+    att.setName("class");
+    att.initAsSymbolCategorical(classes);
+    att.setIsActive(false);
+    att.setValuesAsGoal();
+    dm.getLearningProperty().setGoal(NUM_FEATURES);
+
+    return dm;
+  }
+
+  /**
+   * opens the instance file instead of a text output
+   */
+  protected void openOutput() throws Exception {
+    m_Writer   = new InstanceFileWriter(new File(m_OutputFilename), makeDataModel(), InstanceFileWriter.PRECISION_FLOAT);
+    m_Instance = new DenseDoubleMatrix1D(NUM_FEATURES);
+  }
+
+  /**
+   * writes the instance count and closes the file
+   */
+  protected void closeOutput() throws Exception {
+    m_Writer.close();
+  }
+
+  /**
+   * nothing to write, the header is written when the file is opened
+   */
+  protected void writeHeader() throws Exception {
+  }
+
+  /**
+   * writes the given data to the output file
+   */
+  protected void writeData(float[] features, int cls) throws Exception {
+    int                 i;
+
+    for (i = 0; i < NUM_FEATURES; i++)
+      m_Instance.setQuick(i, features[i]);
+
+    m_Writer.write(m_Instance, cls, 1.0);
+  }
+
+  /**
+   * writes the footer of the output file
+   */
+  protected void writeFooter() throws Exception {
+  }
+
+  /**
+   * you must call the class like this:<br/>
+   * MNIST2Instances feature-file label-file output-file
+   */
+  public static void main(String[] args) throws Exception {
+    MNIST2Instances     m;
+
+    // correct parameters?
+    if (args.length != 3) {
+      System.out.println();
+      System.out.println("Converts the MNIST database from raw Intel float");
+      System.out.println("into a memory-mappable instance file (576 features per instance).");
+      System.out.println();
+      System.out.println("Usage: MNIST2Instances feature-file label-file output-file");
+      System.out.println();
+      System.exit(1);
+    }
+
+    // process
+    m = new MNIST2Instances();
+    m.setFeatureFile(args[0]);
+    m.setLabelFile(args[1]);
+    m.setOutputFile(args[2]);
+    m.execute();
+  }
+}
@@ -22,6 +22,13 @@ public interface ActivationFunction
      */
     public double act();             // The activation function
     
+    /**
+     * Execute the activation function on the given net input instead of the neuron's current input.
+     * @param x The net input. e.g. the dot-product of the weights and the inputs.
+     * @return The activation of the neuron for net input x
+     */
+    public double act(double x);     // The activation function at x
+    
     /**
      * Calculate the derivative of the activation function at the given value.
      * @param x The value to calculate the derivative for.
@@ -15,6 +15,12 @@ package org.shaman.neural;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.shaman.dataflow.Persister;
 import org.shaman.datamodel.Attribute;
@@ -64,6 +70,7 @@ public class KMER extends EstimatorTransformation implements Estimator, Persiste
     private double        eta;           // Learning Rate
     private double        rho;           // Scale Factor
     private int           maxt;          // Number of epochs to train
+    private int           numberOfThreads; // Number of threads training an epoch. 0 = number of processors.
     
     // Batch Parameters
     private int           batchType;
@@ -81,12 +88,16 @@ public class KMER extends EstimatorTransformation implements Estimator, Persiste
     // Training Buffers
     private int     epoch;         // Current epoch
     private int     inputSize;     // The number of input attributes
-    private double  []inbuf;
-    private double  [][]weibuf;
-    private double  [][]dwei;
-    private double  [][]sigmabuf;
-    private double  []dsigma;
-    private boolean []actbuf;
+    private double  [][]weibuf;    // [i] = The weights of neuron i
+    private double  [][]sigmabuf;  // [i][0] = The radius of neuron i
+    private double  []wei;         // The weights of all neurons. Row-major numneu x inputSize.
+    private double  []weisq;       // [i] = Squared norm of the weights of neuron i
+    private double  []sigmasq;     // [i] = Squared radius of neuron i
+    private int     [][]latpos;    // [i] = Lattice coordinates of neuron i
+    private double  []neighbor;    // [k] = Neighborhood function of neurons k apart along one lattice dimension
+    private double  []na;          // [ic] = Number of active neurons of instance ic of the batch
+    private EpochPart []parts;     // Each trains on a part of the batch.
+    private transient ForkJoinPool pool;  // Threads running the parts
     
     // Disentanglement and Monitoring Heuristics
     //private double  ov;         // Overlap Variability Heuristic.
@@ -370,6 +381,17 @@ public class KMER extends EstimatorTransformation implements Estimator, Persiste
         maxt = _maxt;
     }
     
+    /**
+     * Set the number of threads that train on the instances of a batch.
+     * Each thread sums the neuron updates of its part of the batch.
+     * The parts are added in the same order every epoch, so training with the same number of threads is reproducible.
+     * @param _numberOfThreads Number of threads. 0 = use all processors.
+     */
+    public void setNumberOfThreads(int _numberOfThreads)
+    {
+        numberOfThreads = _numberOfThreads;
+    }
+    
     // **********************************************************\
     // *                    Learner Interface                   *
     // **********************************************************/
@@ -438,127 +460,271 @@ public class KMER extends EstimatorTransformation implements Estimator, Persiste
     
     private void trainKMER(int maxt) throws LearnerException
     {
-        int i;
+        int i, threads;
         
-        for (i=0; i<maxt; i++)
+        // One part of the batch per thread.
+        threads = getThreads();
+        if ((this.parts == null) || (this.parts.length != threads))
         {
-            KMEREpoch();
-            
-            if ( (i%1)==0) { System.out.print("."); System.out.flush();  }
-            if ((i%10)==0) { System.out.print(i+"  "+meanna+"  "+stdevna); System.out.println(); }
+            this.parts = new EpochPart[threads];
+            for (i=0; i<threads; i++) this.parts[i] = new EpochPart();
+        }
+        
+        try
+        {
+            if (threads > 1) this.pool = new ForkJoinPool(threads);
+            for (i=0; i<maxt; i++)
+            {
+                KMEREpoch();
+                
+                if ( (i%1)==0) { System.out.print("."); System.out.flush();  }
+                if ((i%10)==0) { System.out.print(i+"  "+meanna+"  "+stdevna); System.out.println(); }
+            }
+        }
+        finally
+        {
+            if (this.pool != null) { this.pool.shutdown(); this.pool = null; }
         }
     }
     
     private void KMEREpoch() throws LearnerException
     {
-        int    ic, i, j, numIns;
-        double din, dinmin;
-        int    minpos;
-        int    numact;
-        double d3, sign;
-        double []na;       // Number of active neurons for all training instances
+        int    i, j, p, numIns;
+        double w;
+        double []dwei, dsigma;
         
         if (epoch > maxt) epoch = (int)maxt;
         
         // Start new batch
         ((BatchPresenter)this.trainData).nextBatch();
         numIns = this.trainData.getNumberOfInstances();
-        na     = new double[numIns];
+        if ((this.na == null) || (this.na.length < numIns)) this.na = new double[numIns];
+        
+        // Copy the neurons in the contiguous weight matrix.
+        for (i=0; i<this.numneu; i++)
+        {
+            w = 0;
+            for (j=0; j<this.inputSize; j++)
+            {
+                this.wei[i*this.inputSize+j] = this.weibuf[i][j];
+                w += this.weibuf[i][j]*this.weibuf[i][j];
+            }
+            this.weisq[i]   = w;
+            this.sigmasq[i] = this.sigmabuf[i][0]*this.sigmabuf[i][0];
+        }
+        
+        // The Gaussian neighborhood function is the product of its values along the lattice dimensions.
+        for (i=0; i<this.neighbor.length; i++) this.neighbor[i] = this.lattice.neighborhood(new int[]{0}, new int[]{i}, epoch);
         
         // Optimized Batch KMER Algorithm. (Van Hulle, Faithful Representations and Topographic Maps p139)
+        for (p=0; p<this.parts.length; p++) this.parts[p].setInstances((int)(((long)p*numIns)/this.parts.length), (int)(((long)(p+1)*numIns)/this.parts.length));
+        runParts();
+        
+        // Add the neuron updates of the parts. Always in the same order.
+        dwei   = this.parts[0].dwei;
+        dsigma = this.parts[0].dsigma;
+        for (p=1; p<this.parts.length; p++)
+        {
+            for (i=0; i<dwei.length; i++)   dwei[i]   += this.parts[p].dwei[i];
+            for (i=0; i<dsigma.length; i++) dsigma[i] += this.parts[p].dsigma[i];
+        }
+        
+        // Batch update of neurons
         for (i=0; i<this.numneu; i++)
         {
-            for (j=0; j<this.inputSize; j++) this.dwei[i][j] = 0;
-            this.dsigma[i] = 0;
+            for (j=0; j<this.inputSize; j++) this.weibuf[i][j] += this.eta*dwei[i*this.inputSize+j];
+            this.sigmabuf[i][0] += this.eta*dsigma[i];
         }
-        for (ic=0; ic<numIns; ic++)
+        
+        // Overlap variability heuristic
+        this.meanna = 0;
+        for (i=0; i<numIns; i++) this.meanna += na[i];
+        this.meanna /= numIns;
+        this.stdevna = 0;
+        for (i=0; i<numIns; i++) this.stdevna += (na[i]-meanna)*(na[i]-meanna);
+        this.stdevna /= numIns-1;
+        this.stdevna = Math.sqrt(stdevna);
+        //if (meanna != 0)  ov = stdevna / meanna;
+        //else              ov = -1;
+        
+        this.epoch++;
+    }
+    
+    private void runParts() throws LearnerException
+    {
+        if (this.pool == null)
         {
-            // Feed the instance through the KMER network.
-            this.trainData.getInstance(ic).toArray(this.inbuf);
-            this.net.setInput(this.inbuf);
+            for (int p=0; p<this.parts.length; p++) this.parts[p].call();
+        }
+        else
+        {
+            List<EpochPart> tasks;
+            
+            tasks = new ArrayList<EpochPart>(this.parts.length);
+            for (int p=0; p<this.parts.length; p++) tasks.add(this.parts[p]);
+            try
+            {
+                for (Future<Object> done: this.pool.invokeAll(tasks)) done.get();
+            }
+            catch(InterruptedException ex) { throw new LearnerException(ex); }
+            catch(ExecutionException ex)   { throw new LearnerException("KMER training of a part of the batch failed.", ex.getCause()); }
+        }
+    }
+    
+    private int getThreads()
+    {
+        if (this.numberOfThreads > 0) return(this.numberOfThreads);
+        else                          return(Runtime.getRuntime().availableProcessors());
+    }
+    
+    // Number of instances whose distances to the neurons are calculated together
+    private static final int INSTANCE_BLOCK = 64;
+    // Number of neurons in a block of the distance calculation
+    private static final int NEURON_BLOCK   = 32;
+    
+    /**
+     * <h3>Part of a KMER Epoch</h3>
+     * Finds the active neurons of a range of instances of the batch and sums their neuron updates.
+     * The squared distances of a block of instances to all neurons are calculated as
+     * <code>|x|^2 - 2 x.w + |w|^2</code>, a matrix product done in blocks of neurons.
+     */
+    class EpochPart implements Callable<Object>
+    {
+        private int         begin, end;  // The instances of the batch
+        private double    []dwei;        // The summed weight updates. Row-major numneu x inputSize.
+        private double    []dsigma;      // The summed radius updates
+        private double    []xb;          // A block of instances. Row-major.
+        private double    []xsq;         // Their squared norms
+        private double    []dist;        // Their squared distance to the neurons. Row-major instances x numneu.
+        private boolean   []act;         // Active neurons of an instance
+        
+        public Object call() throws LearnerException
+        {
+            int            ic, b, j, nb, d;
+            double         x, s;
+            DoubleMatrix1D insnow;
+            
+            d = inputSize;
+            for (j=0; j<this.dwei.length; j++)   this.dwei[j]   = 0;
+            for (j=0; j<this.dsigma.length; j++) this.dsigma[j] = 0;
+            for (ic=this.begin; ic<this.end; ic+=INSTANCE_BLOCK)
+            {
+                // Copy a block of instances.
+                nb = Math.min(INSTANCE_BLOCK, this.end-ic);
+                for (b=0; b<nb; b++)
+                {
+                    insnow = trainData.getInstance(ic+b);
+                    s      = 0;
+                    for (j=0; j<d; j++) { x = insnow.getQuick(j); this.xb[b*d+j] = x; s += x*x; }
+                    this.xsq[b] = s;
+                }
+                
+                distances(nb);
+                for (b=0; b<nb; b++) na[ic+b] = update(b);
+            }
+            
+            return(null);
+        }
+        
+        private void distances(int nb)
+        {
+            int    i, ib, iend, b, j, d, xo, wo;
+            double dot;
+            
+            // The weights of a block of neurons are used for all instances of the block.
+            d = inputSize;
+            for (ib=0; ib<numneu; ib+=NEURON_BLOCK)
+            {
+                iend = Math.min(ib+NEURON_BLOCK, numneu);
+                for (b=0; b<nb; b++)
+                {
+                    xo = b*d;
+                    for (i=ib; i<iend; i++)
+                    {
+                        wo  = i*d;
+                        dot = 0;
+                        for (j=0; j<d; j++) dot += this.xb[xo+j]*wei[wo+j];
+                        this.dist[b*numneu+i] = Math.max(0, this.xsq[b] - 2*dot + weisq[i]);
+                    }
+                }
+            }
+        }
+        
+        private int update(int b)
+        {
+            int    i, j, d, xo, wo, minpos, numact, numfound;
+            double din, dinmin, c, rhon;
             
             // Look for the active neurons
-            for (i=0; i<this.numneu; i++) this.actbuf[i] = false;
+            d      = inputSize;
+            xo     = b*d;
             dinmin = Double.MAX_VALUE;
-            numact = 0; 
+            numact = 0;
             minpos = -1;
-            for (i=0; i<this.numneu; i++)
+            for (i=0; i<numneu; i++)
             {
-                // Calculate euclidian distance between input and neuron
-                din = 0;
-                for (j=0; j<this.inputSize; j++) 
-                    din += (this.weibuf[i][j] - this.inbuf[j]) * (this.weibuf[i][j] - this.inbuf[j]);
-                
                 // Mark and count active neurons
-                if (din < this.sigmabuf[i][0]*this.sigmabuf[i][0])
-                {
-                    numact++;
-                    this.actbuf[i] = true;
-                }
+                din         = this.dist[b*numneu+i];
+                this.act[i] = (din < sigmasq[i]);
+                if (this.act[i]) numact++;
                 if (din < dinmin) { dinmin = din; minpos = i; } // Remember closest numbers
             }
-            na[ic] = numact;
+            numfound = numact;
             
             // If no active neurons
+            rhon = rho/numneu;
             if (numact == 0)
             {
                 // Make the closest neuron active. Adapt it's radius.
-                numact         = 1;
-                this.actbuf[minpos] = true;
-                this.dsigma[minpos] += this.rho/this.numneu + 1.0;
+                numact               = 1;
+                this.act[minpos]     = true;
+                this.dsigma[minpos] += rhon + 1.0;
             }
             
             // Adjust the neurons
-            for (i=0; i<this.numneu; i++)
+            for (i=0; i<numneu; i++)
             {
-                if (!this.actbuf[i]) // Non-Active neuron
+                wo = i*d;
+                if (!this.act[i]) // Non-Active neuron
                 {
-                    d3 = 1.0/numact * this.lattice.neighborhood(i, minpos, epoch);
-                    for (j=0; j<this.inputSize; j++)
-                    {
-                        if (this.inbuf[j] - this.weibuf[i][j] <= 0) sign = -1;
-                        else                                        sign = 1;
-                        this.dwei[i][j] += d3*sign;
-                    }
-                    this.dsigma[i] += rho / numneu;
+                    c = 1.0/numact * neighbor[Math.abs(latpos[i][0]-latpos[minpos][0])]
+                                   * neighbor[Math.abs(latpos[i][1]-latpos[minpos][1])]
+                                   * neighbor[Math.abs(latpos[i][2]-latpos[minpos][2])];
+                    this.dsigma[i] += rhon;
                 }
-                else      // Active neurons
+                else              // Active neurons
                 {
-                    for (j=0; j<this.inputSize; j++)
-                    {
-                        if (this.inbuf[j] - this.weibuf[i][j] <= 0) sign = -1;
-                        else                                        sign = 1;
-                        this.dwei[i][j] += sign/numact;
-                    }
+                    c = 1.0/numact;
                     this.dsigma[i] -= 1;
                 }
+                for (j=0; j<d; j++) this.dwei[wo+j] += (this.xb[xo+j] - wei[wo+j] <= 0) ? -c : c;
             }
+            
+            return(numfound);
         }
-        // Batch update of neurons
-        for (i=0; i<this.numneu; i++)
+        
+        void setInstances(int begin, int end)
         {
-            for (j=0; j<this.inputSize; j++) this.weibuf[i][j] += this.eta*this.dwei[i][j];
-            this.sigmabuf[i][0] += this.eta*this.dsigma[i];
+            this.begin = begin;
+            this.end   = end;
         }
         
-        // Overlap variability heuristic
-        this.meanna = 0;
-        for (i=0; i<numIns; i++) this.meanna += na[i];
-        this.meanna /= numIns;
-        this.stdevna = 0;
-        for (i=0; i<numIns; i++) this.stdevna += (na[i]-meanna)*(na[i]-meanna);
-        this.stdevna /= numIns-1;
-        this.stdevna = Math.sqrt(stdevna);
-        //if (meanna != 0)  ov = stdevna / meanna;
-        //else              ov = -1;
-        
-        this.epoch++;
+        EpochPart()
+        {
+            this.dwei   = new double[numneu*inputSize];
+            this.dsigma = new double[numneu];
+            this.xb     = new double[INSTANCE_BLOCK*inputSize];
+            this.xsq    = new double[INSTANCE_BLOCK];
+            this.dist   = new double[INSTANCE_BLOCK*numneu];
+            this.act    = new boolean[numneu];
+        }
     }
     
     private void initKMER() throws LearnerException
     {
-        int    i;
-        Neuron neunow;
+        int      i, j;
+        Neuron   neunow;
+        double []lpos = new double[3];
         
         // Initialize Neighborhood
         if (this.n2 == 0) { this.lattice = new Lattice(this.n1);                   } // 1D Lattice
@@ -568,18 +734,23 @@ public class KMER extends EstimatorTransformation implements Estimator, Persiste
         
         // Initialize Training buffers
         this.epoch    = 0;
-        this.inbuf    = new double[this.inputSize];
-        this.actbuf   = new boolean[this.numneu];
         this.weibuf   = new double[this.numneu][];
-        this.dwei     = new double[this.numneu][];
         this.sigmabuf = new double[this.numneu][];
-        this.dsigma   = new double[this.numneu];
+        this.wei      = new double[this.numneu*this.inputSize];
+        this.weisq    = new double[this.numneu];
+        this.sigmasq  = new double[this.numneu];
+        this.latpos   = new int[this.numneu][3];
+        this.neighbor = new double[Math.max(this.n1, Math.max(this.n2, this.n3))];
+        this.parts    = null;
         for (i=0; i<numneu; i++)
         {
             neunow           = this.net.getNeuron(this.neuBeg+i);
             this.weibuf[i]   = neunow.getWeights();
-            this.dwei[i]     = new double[inputSize];
             this.sigmabuf[i] = neunow.getActivationParameter();
+            
+            // Lattice coordinates for the neighborhood function.
+            this.lattice.indexToLattice(i, lpos);
+            for (j=0; j<lpos.length; j++) this.latpos[i][j] = (int)lpos[j];
         }
     }
     
@@ -14,6 +14,12 @@ package org.shaman.neural;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -66,6 +72,8 @@ public class MLP implements Persister
     private double   alpha;                   // Momentum Parameters
     private boolean  momentum;                // Use momentum term in weight update
     private int      numEpochs;               // Numbers of epochs to train.
+    private int      miniBatchSize;           // Number of instances whose weight updates are averaged before adjusting the weights. 1 = incremental.
+    private int      numberOfThreads;         // Number of threads processing a mini-batch. 0 = number of processors.
     
     // Batch Presenter Parameters
     private int    batchType;
@@ -185,6 +193,32 @@ public class MLP implements Persister
         return(numEpochs);
     }
     
+    /**
+     * Set the number of instances in a mini-batch.
+     * The weights are adjusted with the average weight update of the instances in a mini-batch.
+     * The instances of big mini-batches are divided over the threads.
+     * @param _miniBatchSize Number of instances in a mini-batch. 1 = adjust the weights after every instance.
+     */
+    public void setMiniBatchSize(int _miniBatchSize)
+    {
+        miniBatchSize = _miniBatchSize;
+    }
+    
+    public int getMiniBatchSize()
+    {
+        return(miniBatchSize);
+    }
+    
+    /**
+     * Set the number of threads that feed forward and back-propagate the instances of a mini-batch.
+     * The trained weights do not depend on the number of threads.
+     * @param _numberOfThreads Number of threads. 0 = use all processors.
+     */
+    public void setNumberOfThreads(int _numberOfThreads)
+    {
+        numberOfThreads = _numberOfThreads;
+    }
+    
     /**
      * Set the kind of neuron and it's parameters.
      * @param _neuronActivation Type of activation function to use in the neurons of this network.
@@ -204,53 +238,74 @@ public class MLP implements Persister
     // **********************************************************\
     // *                 Backpropagation Learning               *
     // **********************************************************/
+    // Number of instances of a mini-batch handled together by 1 thread
+    private static final int SHARD_SIZE = 32;
+    // Number of neurons whose weights are multiplied with a block of instances at once
+    private static final int NEURON_BLOCK = 8;
+    
     private ActivationFunction fact;        // Activation function of the neurons
-    private double  [][]layout;             // The output of the (hidden and output) layers
-    private double  [][]delta;              // The back-propagated error
-    private double  [][][]weight;           // The weights of the neurons
-    private double  [][][]weightMomentum;   // The momentum term of the weights
-    private double  []weibuf;               // Buffers for the algoritm
-    private double  []inbuf;
-    private double  []outbuf;
+    private ActivationFunction []layact;    // [i] = Activation function of the neurons of layer i
+    private double  [][]weight;             // [i] = The weights of layer i. Row-major layerSize[i] x layerSize[i-1] matrix.
+    private double  [][]weightMomentum;     // [i] = The momentum term of the weights of layer i
+    private int     [][]weightInput;        // [i][k] = Position in layer i-1 of the input of weight k. null if in order.
+    private double  []inbuf;                // Buffers for the algoritm
     private double  []goalbuf;
+    private double  []batchIn;              // The input of the instances in the mini-batch. Row-major.
+    private double  []batchGoal;            // Their desired output
+    private double  []batchWeight;          // Their weights
+    private Shard   []shards;               // Mini-batch shards. Each calculates the weight updates of a part of the mini-batch.
     private double  [][]conftrain;          // Confusion matrix of the training
     private int     []confcount;
+    private transient ForkJoinPool pool;    // Threads processing the shards
     
     protected void initBackPropagation() throws LearnerException
     {
         int i,j,k,laypos;
+        int batchSize, numShards;
         
         // Initialize Various Buffers and Parameters for Error Back Propagation Learning
         fact           = this.net.getNeuron(0).getActivationFunction();
         inbuf          = new double[getInputSize()];
-        outbuf         = new double[getOutputSize()];
         goalbuf        = new double[getOutputSize()];
-        layout         = new double[layerSize.length][];
-        delta          = new double[layerSize.length][];
-        weight         = new double[layerSize.length][][];
-        if (momentum) weightMomentum = new double[layerSize.length][][];
-        for (i=0; i<layerSize.length; i++)
+        layact         = new ActivationFunction[layerSize.length];
+        weight         = new double[layerSize.length][];
+        weightInput    = new int[layerSize.length][];
+        if (momentum) weightMomentum = new double[layerSize.length][];
+        for (i=1; i<layerSize.length; i++)
         {
-            layout[i]         = new double[layerSize[i]];
-            delta[i]          = new double[layerSize[i]];
-            weight[i]         = new double[layerSize[i]][];
-            if (momentum) weightMomentum[i] = new double[layerSize[i]][];
-            if (i > 0)
+            // Flat weight matrix of the layer. The momentum term starts at 0.
+            laypos            = this.net.getLayerBegin(i);
+            layact[i]         = this.net.getNeuron(laypos).getActivationFunction();
+            weight[i]         = new double[layerSize[i]*layerSize[i-1]];
+            if (momentum) weightMomentum[i] = new double[layerSize[i]*layerSize[i-1]];
+            
+            int []laypre, input;
+            
+            // Find the position in the previous layer of the input of each weight. Same for all neurons in a fully connected layer.
+            laypre = new int[this.net.getNeuron(laypos).getInputConnections().length];
+            for (j=0; j<layerSize[i]; j++)
             {
-                laypos = this.net.getLayerBegin(i);
-                for (j=0; j<layerSize[i]; j++)
+                input = this.net.getNeuron(laypos+j).getInputConnections();
+                if (input.length != layerSize[i-1]) throw new LearnerException("Layer "+i+" of the MLP is not fully connected.");
+                for (k=0; k<input.length; k++)
                 {
-                    weibuf               = this.net.getNeuron(laypos+j).getWeights();
-                    weight[i][j]         = weibuf;
-                    if (momentum)
-                    {
-                        weightMomentum[i][j] = new double[weibuf.length];
-                        for (k=0; k<weightMomentum[i][j].length; k++) weightMomentum[i][j][k] = 0;
-                    }
+                    if (j == 0) laypre[k] = positionInLayer(i-1, input[k]);
+                    else if (laypre[k] != positionInLayer(i-1, input[k])) throw new LearnerException("The neurons of layer "+i+" of the MLP are connected in a different order.");
                 }
             }
+            for (k=0; k<laypre.length && laypre[k] == k; k++);
+            if (k < laypre.length) weightInput[i] = laypre;
         }
         
+        // Buffers for the instances of a mini-batch. And the shards splitting it up.
+        batchSize   = Math.max(this.miniBatchSize, 1);
+        numShards   = (batchSize+SHARD_SIZE-1)/SHARD_SIZE;
+        batchIn     = new double[batchSize*getInputSize()];
+        batchGoal   = new double[batchSize*getOutputSize()];
+        batchWeight = new double[batchSize];
+        shards      = new Shard[numShards];
+        for (i=0; i<numShards; i++) shards[i] = new Shard(Math.min(SHARD_SIZE, batchSize-i*SHARD_SIZE));
+        
         try
         {
             // Make a confusion matrix for classification goals
@@ -266,6 +321,17 @@ public class MLP implements Persister
         catch(DataModelException ex) { throw new LearnerException("Cannot create confusion matrix for training."); }
     }
     
+    private int positionInLayer(int layer, int stateIndex) throws LearnerException
+    {
+        int pos, beg;
+        
+        // Find the neuron of the layer with the given output in the network's state
+        beg = this.net.getLayerBegin(layer);
+        for (pos=0; pos<layerSize[layer]; pos++) if (this.net.getNeuron(beg+pos).getOutputConnection() == stateIndex) return(pos);
+        
+        throw new LearnerException("Neuron input is not connected to the previous layer of the MLP.");
+    }
+    
     public void backPropagation() throws LearnerException
     {
         int     e;
@@ -273,6 +339,9 @@ public class MLP implements Persister
         
         try
         {
+            // Threads for the shards of the mini-batches. When there's more than 1 of both.
+            if (this.shards.length > 1 && getThreads() > 1) this.pool = new ForkJoinPool(getThreads());
+            
             error  = 0;
             for (e=0; e<this.numEpochs; e++)
             {
@@ -285,24 +354,25 @@ public class MLP implements Persister
             log.debug("Error after training "+error);
         }
         catch(DataModelException ex) { throw new LearnerException(ex); }
+        finally
+        {
+            if (this.pool != null) { this.pool.shutdown(); this.pool = null; }
+        }
     }
     
     public double backPropagationEpoch() throws LearnerException, DataModelException
     {
-        int     i, j, k, ic;
-        int     numIns;
-        int     outind;
-        double  lo, sdw;
-        double  iweight;
+        int     i, j, ic;
+        int     numIns, batchSize, batchEnd, outSize;
         double  error, errnow;
         double  match;
-        double  dij, dwk;
+        double  []outbuf;
         
         // Start new batch
         batch.nextBatch();
         numIns = batch.getNumberOfInstances();
         
-        // Incremental Error Back Propagation Learning Rule
+        // Mini-Batch Error Back Propagation Learning Rule. Incremental when the mini-batches contain 1 instance.
         error = 0; match = 0;
         
         // Reset confusion during training of classification network
@@ -312,85 +382,363 @@ public class MLP implements Persister
             for (i=0; i<confcount.length; i++) confcount[i] = 0;
         }
         
-        for (ic = 0; ic<numIns; ic++)
+        // Train on the current weights of the neurons
+        copyWeights(true);
+        
+        outSize   = getOutputSize();
+        batchSize = batchWeight.length;
+        for (ic = 0; ic<numIns; ic+=batchSize)
+        {
+            // Collect the input, desired output and weight of the instances in the mini-batch
+            batchEnd = Math.min(ic+batchSize, numIns);
+            for (i=ic; i<batchEnd; i++)
+            {
+                batch.getInstance(i).toArray(inbuf);
+                toDesiredOutput(batch.getGoal(i), goalbuf);
+                System.arraycopy(inbuf,   0, batchIn,   (i-ic)*inbuf.length, inbuf.length);
+                System.arraycopy(goalbuf, 0, batchGoal, (i-ic)*outSize,      outSize);
+                batchWeight[i-ic] = batch.getWeight(i);
+            }
+            
+            // Feed forward the instances and propagate the error back. Per shard, in parallel if possible.
+            runShards(batchEnd-ic);
+            
+            Shard shard;
+            int   pos;
+            
+            // Check the output of the instances. In instance order.
+            for (i=0; i<batchEnd-ic; i++)
+            {
+                shard  = shards[i/SHARD_SIZE];
+                outbuf = shard.layout[layerSize.length-1];
+                pos    = (i%SHARD_SIZE)*outSize;
+                for (j=0; j<outSize; j++) goalbuf[j] = batchGoal[i*outSize+j];
+                if (checkMatch(outbuf, pos, goalbuf)) match++;
+                
+                // Update the error.
+                errnow = 0;
+                for (j=0; j<outSize; j++) errnow += (goalbuf[j]-outbuf[pos+j])*(goalbuf[j]-outbuf[pos+j]);
+                errnow /= (outSize*2);
+                error += errnow;
+            }
+            
+            // Average the weight updates of the instances and adjust the weights
+            updateWeights(batchEnd-ic);
+            
+            if ((ic > 0) && (ic%100 == 0)) match = 0;
+        }
+        
+        // Store the trained weights in the neurons
+        copyWeights(false);
+        
+        // Make confusion during training
+        if ((outputType == OUTPUT_ONE_OF_N) || (outputType == OUTPUT_ERROR_CORRECTING_CODE))
+        {
+            for(i=0; i<conftrain.length; i++)
+            {
+                if (confcount[i] != 0)
+                    for(j=0; j<conftrain[i].length; j++) conftrain[i][j] /= confcount[i];
+            }
+        }
+        
+        return(error);
+    }
+    
+    private void runShards(int numBatch) throws LearnerException
+    {
+        int numShards;
+        
+        // Split the mini-batch over the shards
+        numShards = (numBatch+SHARD_SIZE-1)/SHARD_SIZE;
+        for (int s=0; s<numShards; s++) shards[s].setInstances(s*SHARD_SIZE, Math.min((s+1)*SHARD_SIZE, numBatch));
+        
+        if (this.pool == null || numShards == 1)
+        {
+            for (int s=0; s<numShards; s++) shards[s].call();
+        }
+        else
+        {
+            List<Shard> tasks;
+            List<Future<Object>> done;
+            
+            tasks = new ArrayList<Shard>(numShards);
+            for (int s=0; s<numShards; s++) tasks.add(shards[s]);
+            try
+            {
+                done = this.pool.invokeAll(tasks);
+                for (Future<Object> shard: done) shard.get();
+            }
+            catch(InterruptedException ex) { throw new LearnerException(ex); }
+            catch(ExecutionException ex)   { throw new LearnerException("Back-propagation of a mini-batch shard failed.", ex.getCause()); }
+        }
+    }
+    
+    private void updateWeights(int numBatch)
+    {
+        int      i, k, pos, numShards;
+        double []wl, ml, grad, gs;
+        double   dwk;
+        
+        // Sum the weight updates of the shards in the first shard. Always in the same order, whatever the number of threads.
+        numShards = (numBatch+SHARD_SIZE-1)/SHARD_SIZE;
+        grad      = shards[0].gradient;
+        for (int s=1; s<numShards; s++)
+        {
+            gs = shards[s].gradient;
+            for (k=0; k<grad.length; k++) grad[k] += gs[k];
+        }
+        
+        // Use the average weight update of the instances in the mini-batch
+        if (numBatch > 1) for (k=0; k<grad.length; k++) grad[k] /= numBatch;
+        
+        // Adjust the weights
+        pos = 0;
+        for (i=1; i<layerSize.length; i++)
+        {
+            wl = weight[i];
+            ml = momentum ? weightMomentum[i] : null;
+            for (k=0; k<wl.length; k++)
+            {
+                dwk = grad[pos+k];
+                
+                // Add momentum term if enabled
+                if (momentum)
+                {
+                    dwk  += alpha*ml[k];
+                    ml[k] = dwk;
+                }
+                // Adjust weights
+                wl[k] += dwk;
+            }
+            pos += wl.length;
+        }
+    }
+    
+    private void copyWeights(boolean fromNeurons)
+    {
+        int      i, j, laypos, nin;
+        double []neuronWeight;
+        
+        // Copy between the weights of the neurons and the flat weight matrices
+        for (i=1; i<layerSize.length; i++)
+        {
+            laypos = this.net.getLayerBegin(i);
+            nin    = layerSize[i-1];
+            for (j=0; j<layerSize[i]; j++)
+            {
+                neuronWeight = this.net.getNeuron(laypos+j).getWeights();
+                if (fromNeurons) System.arraycopy(neuronWeight, 0, weight[i], j*nin, nin);
+                else             System.arraycopy(weight[i], j*nin, neuronWeight, 0, nin);
+            }
+        }
+    }
+    
+    private int getThreads()
+    {
+        if (this.numberOfThreads > 0) return(this.numberOfThreads);
+        else                          return(Runtime.getRuntime().availableProcessors());
+    }
+    
+    // **********************************************************\
+    // *           Matrix Products of the Mini-Batches          *
+    // **********************************************************/
+    /**
+     * out = a * w'. With a numb x nin and w nout x nin row-major matrices.
+     * Blocks of rows of w are multiplied with all rows of a.
+     */
+    static void multiplyTransposed(double []a, double []w, double []out, int numb, int nin, int nout)
+    {
+        int    jb, jend, b, j, k, ao, wo;
+        double dp;
+        
+        for (jb=0; jb<nout; jb+=NEURON_BLOCK)
+        {
+            jend = Math.min(jb+NEURON_BLOCK, nout);
+            for (b=0; b<numb; b++)
+            {
+                ao = b*nin;
+                for (j=jb; j<jend; j++)
+                {
+                    wo = j*nin;
+                    dp = 0;
+                    for (k=0; k<nin; k++) dp += a[ao+k] * w[wo+k];
+                    out[b*nout+j] = dp;
+                }
+            }
+        }
+    }
+    
+    /**
+     * out = d * w. With d numb x nout and w nout x nin row-major matrices.
+     */
+    static void multiply(double []d, double []w, double []out, int numb, int nout, int nin)
+    {
+        int    b, j, k, oo, wo;
+        double dk;
+        
+        for (b=0; b<numb; b++)
+        {
+            oo = b*nin;
+            for (j=0; j<nin; j++) out[oo+j] = 0;
+            for (k=0; k<nout; k++)
+            {
+                dk = d[b*nout+k];
+                wo = k*nin;
+                for (j=0; j<nin; j++) out[oo+j] += w[wo+j]*dk;
+            }
+        }
+    }
+    
+    /**
+     * g += d' * a. With d numb x nout and a numb x nin row-major matrices. g is a nout x nin matrix at the given position.
+     */
+    static void multiplyAccumulate(double []d, double []a, double []g, int pos, int numb, int nout, int nin)
+    {
+        int    b, j, k, ao, go;
+        double dj;
+        
+        for (b=0; b<numb; b++)
+        {
+            ao = b*nin;
+            for (j=0; j<nout; j++)
+            {
+                dj = d[b*nout+j];
+                go = pos+j*nin;
+                for (k=0; k<nin; k++) g[go+k] += dj * a[ao+k];
+            }
+        }
+    }
+    
+    /**
+     * <h3>Mini-Batch Shard</h3>
+     * Feeds forward a part of the instances of a mini-batch and propagates their error back.
+     * Sums the resulting weight updates.
+     */
+    class Shard implements Callable<Object>
+    {
+        private int         begin, end;    // The instances of the mini-batch
+        private double  [][]layout;        // [i] = The output of layer i. Row-major instances x layerSize[i].
+        private double  [][]delta;         // [i] = The back-propagated error of layer i.
+        private double  [][]layin;         // [i] = Input of layer i in the order of its weights. If not in order of layer i-1.
+        private double    []gradient;      // The summed weight updates. Layer after layer.
+        
+        public Object call()
         {
-            // Feed forward the instance through the network
-            batch.getInstance(ic).toArray(inbuf);
-            toDesiredOutput(batch.getGoal(ic), goalbuf);
-            this.net.setInput(inbuf);
-            this.net.updateSynchronous();
-            this.net.getOutput(outbuf);
-            if (checkMatch(outbuf, goalbuf)) match++;
+            int      i, j, b, numb, nin, nout;
+            double []in, out, del;
+            ActivationFunction act;
+            
+            numb = end-begin;
             
-            // Take into account this instance's weight
-            iweight = batch.getWeight(ic);
+            // The Input 'layer'
+            System.arraycopy(batchIn, begin*layerSize[0], layout[0], 0, numb*layerSize[0]);
             
-            // Get all the layer's output
-            for (i=0; i<inbuf.length; i++)     layout[0][i] = inbuf[i];         // The Input 'layer'
+            // Feed forward the instances through the network.
             for (i=1; i<layerSize.length; i++)
             {
-                this.net.getOutput(i, layout[i]); // The hidden and output ones
+                nin  = layerSize[i-1];
+                nout = layerSize[i];
+                out  = layout[i];
+                act  = layact[i];
+                multiplyTransposed(layerInput(i, numb), weight[i], out, numb, nin, nout);
+                for (j=0; j<numb*nout; j++) out[j] = act.act(out[j]);
             }
             
+            int outind, pos;
+            
             // Propagate the error back through the connections. BACK PROPAGATION.
             outind = layerSize.length-1;
-            for (j=0; j<layerSize[outind]; j++)
-            {
-                delta[outind][j] = fact.actDer(layout[outind][j]) * (goalbuf[j]-outbuf[j]);
-            }
+            nout   = layerSize[outind];
+            out    = layout[outind];
+            del    = delta[outind];
+            pos    = begin*nout;
+            for (j=0; j<numb*nout; j++) del[j] = fact.actDer(out[j]) * (batchGoal[pos+j]-out[j]);
             for (i=layerSize.length-2; i>0; i--)
             {
-                for (j=0; j<layerSize[i]; j++)
+                // delta = f'(out) * W' * delta of next layer
+                nin  = layerSize[i];
+                nout = layerSize[i+1];
+                out  = layout[i];
+                del  = delta[i];
+                multiply(delta[i+1], weight[i+1], del, numb, nout, nin);
+                if (weightInput[i+1] != null)
                 {
-                    lo  =  fact.actDer(layout[i][j]);   // Derivative of the layer's output
-                    sdw = 0; for (k=0; k<layerSize[i+1]; k++) sdw += weight[i+1][k][j]*delta[i+1][k];
-                    delta[i][j] = lo*sdw;
+                    // The sums are in the order of the weights. Move them to the order of the layer.
+                    in = layin[i+1];
+                    System.arraycopy(del, 0, in, 0, numb*nin);
+                    for (b=0; b<numb; b++)
+                        for (j=0; j<nin; j++) del[b*nin+weightInput[i+1][j]] = in[b*nin+j];
                 }
+                for (j=0; j<numb*nin; j++) del[j] = fact.actDer(out[j])*del[j];
             }
             
-            // Adjust the weights
+            double []grad;
+            
+            // Sum the weight updates. Take into account instance weight by muliplying the learning rate with it.
+            grad = this.gradient;
+            for (j=0; j<grad.length; j++) grad[j] = 0;
+            pos = 0;
             for (i=1; i<layerSize.length; i++)
             {
-                for (j=0; j<layerSize[i]; j++)
+                nin  = layerSize[i-1];
+                nout = layerSize[i];
+                del  = delta[i];
+                for (b=0; b<numb; b++)
                 {
-                    dij = delta[i][j];
-                    for (k=0; k<layerSize[i-1]; k++)
-                    {
-                        // Calculate delta. Take into account instance weight by muliplying the learning rate with it.
-                        dwk = (eta*iweight) * dij * layout[i-1][k];
-                        
-                        // Add momentum term if enabled
-                        if (momentum)
-                        {
-                            dwk                    += alpha*weightMomentum[i][j][k];
-                            weightMomentum[i][j][k] = dwk;
-                        }
-                        // Adjust weights
-                        weight[i][j][k] += dwk;
-                    }
+                    double eb = eta*batchWeight[begin+b];
+                    for (j=0; j<nout; j++) del[b*nout+j] = eb * del[b*nout+j];
                 }
+                multiplyAccumulate(del, layerInput(i, numb), grad, pos, numb, nout, nin);
+                pos += nout*nin;
             }
             
-            // Update the error.
-            errnow = 0;
-            for (i=0; i<outbuf.length; i++) errnow += (goalbuf[i]-outbuf[i])*(goalbuf[i]-outbuf[i]);
-            errnow /= (outbuf.length*2);
-            error += errnow;
-            
-            if ((ic > 0) && (ic%100 == 0)) match = 0;
+            return(null);
         }
         
-        // Make confusion during training
-        if ((outputType == OUTPUT_ONE_OF_N) || (outputType == OUTPUT_ERROR_CORRECTING_CODE))
+        private double []layerInput(int i, int numb)
         {
-            for(i=0; i<conftrain.length; i++)
+            int      b, k, nin;
+            double []in;
+            
+            // Output of the previous layer. Rearranged in the order of the weights if needed.
+            if (weightInput[i] == null) in = layout[i-1];
+            else
             {
-                if (confcount[i] != 0)
-                    for(j=0; j<conftrain[i].length; j++) conftrain[i][j] /= confcount[i];
+                in  = layin[i];
+                nin = layerSize[i-1];
+                for (b=0; b<numb; b++)
+                    for (k=0; k<nin; k++) in[b*nin+k] = layout[i-1][b*nin+weightInput[i][k]];
             }
+            
+            return(in);
         }
         
-        return(error);
+        void setInstances(int begin, int end)
+        {
+            this.begin = begin;
+            this.end   = end;
+        }
+        
+        Shard(int size)
+        {
+            int i, numWeights;
+            
+            layout     = new double[layerSize.length][];
+            delta      = new double[layerSize.length][];
+            layin      = new double[layerSize.length][];
+            numWeights = 0;
+            for (i=0; i<layerSize.length; i++)
+            {
+                layout[i] = new double[size*layerSize[i]];
+                delta[i]  = new double[size*layerSize[i]];
+                if (i > 0)
+                {
+                    if (weightInput[i] != null) layin[i] = new double[size*layerSize[i-1]];
+                    numWeights += layerSize[i]*layerSize[i-1];
+                }
+            }
+            gradient = new double[numWeights];
+        }
     }
     
     public double[][] getConfusionOfLastEpoch()
@@ -427,7 +775,7 @@ public class MLP implements Persister
         }
     }
     
-    private boolean checkMatch(double []out, double []goal)
+    private boolean checkMatch(double []out, int outpos, double []goal)
     {
         int     i;
         boolean match;
@@ -441,9 +789,9 @@ public class MLP implements Persister
             gpos = -1; opos = -1;
             for (i=0; i<goal.length; i++) if (goal[i] == 1.00) gpos = i;
             omax = Double.NEGATIVE_INFINITY;
-            for (i=0; i<out.length; i++)
+            for (i=0; i<goal.length; i++)
             {
-                if (out[i] > omax) { omax = out[i]; opos = i; }
+                if (out[outpos+i] > omax) { omax = out[outpos+i]; opos = i; }
             }
             if (gpos == opos) match = true;
             
@@ -625,7 +973,8 @@ public class MLP implements Persister
     
     public MLP()
     {
-        this.inSize  = -1;
-        this.outSize = -1;
+        this.inSize        = -1;
+        this.outSize       = -1;
+        this.miniBatchSize = 1;
     }
 }
@@ -303,6 +303,12 @@ public class Neuron
             return(sign);
         }
         
+        public double act(double x)
+        {
+            if (x < 0) return(-1);
+            else       return( 1);
+        }
+        
         public double actDer(double x)
         {
             return(0);
@@ -338,6 +344,12 @@ public class Neuron
             //else               return(0);
         }
         
+        // x = squared distance between input and weights
+        public double act(double x)
+        {
+            return(Math.exp(-x / ap[0]*ap[0]));
+        }
+        
         public double actDer(double x) { return(0); }
         
         public String toString() { return("KERNELGAUSSIAN"); }
@@ -355,6 +367,11 @@ public class Neuron
             return(dotInputsWeights() - threshold);
         }
         
+        public double act(double x)
+        {
+            return(x - threshold);
+        }
+        
         public double actDer(double x)
         {
             return(x - threshold);
@@ -17,10 +17,12 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
 import org.shaman.dataflow.Persister;
+import org.shaman.dataflow.VectorBatch;
 import org.shaman.datamodel.Attribute;
 import org.shaman.datamodel.AttributeDouble;
 import org.shaman.datamodel.DataModel;
 import org.shaman.datamodel.DataModelDouble;
+import org.shaman.datamodel.DataModelPropertyLearning;
 import org.shaman.datamodel.DataModelPropertyVectorType;
 import org.shaman.exceptions.ConfigException;
 import org.shaman.exceptions.DataFlowException;
@@ -62,6 +64,7 @@ public class Normalization extends EstimatorTransformation implements Estimator,
     private double  []inbuf;
     private boolean []attcon;
     private int       numcon;
+    private AttributeDouble []attact;   // The active attributes
     
     // **********************************************************\
     // *                 Train the Normalization                *
@@ -332,6 +335,64 @@ public class Normalization extends EstimatorTransformation implements Estimator,
         else             return(new Object[]{out});
     }
     
+    /**
+     * Normalize a block of vectors. Like transformDouble() but without making vectors for every row.
+     * @param in The block of input vectors
+     * @return The block with the continuous active attributes normalized
+     * @throws DataFlowException If a data value cannot be checked against its attribute.
+     */
+    public VectorBatch transformBatch(VectorBatch in) throws DataFlowException
+    {
+        VectorBatch out;
+        double    []indat, dat;
+        double      v;
+        int         r, j, numcol, inoff, off, row;
+        boolean     discard, abort;
+        
+        numcol  = in.getColumns();
+        indat   = in.getData();
+        out     = new VectorBatch(numcol, in.getRows());
+        discard = (this.learn.getMissingHandling() == DataModelPropertyLearning.MISSING_DISCARD);
+        try
+        {
+            for (r=0; r<in.getRows(); r++)
+            {
+                // Copy the row. Then normalize the continuous active attributes in place.
+                inoff = r*numcol;
+                row   = out.addRow();
+                off   = row*numcol;
+                dat   = out.getData();
+                System.arraycopy(indat, inoff, dat, off, numcol);
+                abort = false;
+                for (j=0; (j<this.actind.length) && !abort; j++)
+                {
+                    if (this.attcon[j])
+                    {
+                        v = dat[off+this.actind[j]];
+                        if (this.attact[j].isMissingValue(v))
+                        {
+                            if (discard) abort = true;
+                            v = this.attact[j].getMissingAsDouble();
+                        }
+                        if (!this.attact[j].isMissingAsDouble(v))
+                        {
+                            if      (this.type == TYPE_NORMALIZE)   v = (((v - this.min[j]) / (this.max[j] - this.min[j])) * 2.0) - 1.0;
+                            else if (this.type == TYPE_STANDARDIZE) v = (this.stdev[j] != 0) ? (v - this.mean[j]) / this.stdev[j] : 0;
+                        }
+                        dat[off+this.actind[j]] = v;
+                    }
+                    else if (discard && this.attact[j].isMissingValue(dat[off+this.actind[j]])) abort = true;
+                }
+                
+                // Instances with missing values can be discarded
+                if (abort) out.setRows(row);
+            }
+        }
+        catch(DataModelException ex) { throw new DataFlowException(ex); }
+        
+        return(out);
+    }
+    
     public Object []transformObject(ObjectMatrix1D vecin) throws LearnerException, DataModelException
     {
        throw new DataModelException("Cannot handle Object based data");
@@ -363,10 +424,12 @@ public class Normalization extends EstimatorTransformation implements Estimator,
         this.inbuf  = new double[this.actind.length];
         this.allbuf = new double[this.dataModel.getAttributeCount()];
         this.attcon = new boolean[actind.length];
+        this.attact = new AttributeDouble[actind.length];
         this.numcon = 0;
         for (i=0; i<actind.length; i++)
         {
             attnow = this.dataModel.getAttribute(this.actind[i]);
+            this.attact[i] = (AttributeDouble)attnow;
             if (attnow.hasProperty(Attribute.PROPERTY_CONTINUOUS)) { this.attcon[i] = true; this.numcon++; }
             else                                                     this.attcon[i] = false;
         }
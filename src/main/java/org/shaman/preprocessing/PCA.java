@@ -17,6 +17,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
 import org.shaman.dataflow.Persister;
+import org.shaman.dataflow.VectorBatch;
 import org.shaman.datamodel.Attribute;
 import org.shaman.datamodel.AttributeDouble;
 import org.shaman.datamodel.DataModel;
@@ -73,6 +74,7 @@ public class PCA extends EstimatorTransformation implements Estimator, Persister
     private double  []inbuf;
     private double  []outbuf;
     private int     []outind;
+    private AttributeDouble []attact;       // The active attributes
     
     // **********************************************************\
     // *                   Parameter Configuration              *
@@ -336,6 +338,82 @@ public class PCA extends EstimatorTransformation implements Estimator, Persister
         else             return(new Object[]{out});
     }
     
+    /**
+     * Project a block of vectors over the Principal Components.
+     * Like transform() but straight from and to the batch arrays.
+     * @param in The block of input vectors
+     * @return The block of projected vectors followed by the non-active input data
+     * @throws DataFlowException If the input contains missing values that cannot be checked.
+     */
+    public VectorBatch transformBatch(VectorBatch in) throws DataFlowException
+    {
+        VectorBatch      out;
+        double         []indat, outdat, pcnow;
+        double           v, dot;
+        int              r, i, j, numcol, numout, inoff, outoff, row;
+        boolean          missing, discard;
+        
+        if (this.type != TYPE_LINEAR) throw new DataFlowException("Unknown PCA type");
+        
+        numcol  = in.getColumns();
+        numout  = this.outind.length;
+        indat   = in.getData();
+        out     = new VectorBatch(numout, in.getRows());
+        discard = (this.dmdo.getLearningProperty().getMissingHandling() == DataModelPropertyLearning.MISSING_DISCARD);
+        try
+        {
+            for (r=0; r<in.getRows(); r++)
+            {
+                inoff = r*numcol;
+                
+                // Standardize the active attributes. Look out for missing values.
+                missing = false;
+                for (i=0; (i<this.actind.length) && !missing; i++)
+                {
+                    v = indat[inoff+this.actind[i]];
+                    if (this.attact[i].isMissingValue(v) || this.attact[i].isMissingAsDouble(v)) missing = true;
+                    else if (this.stdev[i] != 0) this.inbuf[i] = (v - this.mean[i]) / this.stdev[i];
+                    else                         this.inbuf[i] =  0;
+                }
+                if (missing && discard && hasMissingValue(indat, inoff)) continue;
+                
+                // Project over the Principal Components. Then copy the non-active input data.
+                row    = out.addRow();
+                outdat = out.getData();
+                outoff = row*numout;
+                for (i=0; i<numout; i++)
+                {
+                    if (this.outind[i] < 0)
+                    {
+                        if (!missing)
+                        {
+                            pcnow = this.pcraw[-(this.outind[i]+1)];
+                            dot   = 0;
+                            for (j=0; j<pcnow.length; j++) dot += pcnow[j]*this.inbuf[j];
+                            outdat[outoff+i] = dot;
+                        }
+                        else outdat[outoff+i] = Double.NaN;
+                    }
+                    else outdat[outoff+i] = indat[inoff+this.outind[i]];
+                }
+            }
+        }
+        catch(DataModelException ex) { throw new DataFlowException(ex); }
+        
+        return(out);
+    }
+    
+    private boolean hasMissingValue(double []indat, int inoff) throws DataModelException
+    {
+        boolean missing;
+        int     i;
+        
+        missing = false;
+        for (i=0; (i<this.actind.length) && !missing; i++) missing = this.attact[i].isMissingValue(indat[inoff+this.actind[i]]);
+        
+        return(missing);
+    }
+    
     // **********************************************************\
     // *                       Construction                     *
     // **********************************************************/
@@ -350,6 +428,8 @@ public class PCA extends EstimatorTransformation implements Estimator, Persister
         
         dmin   = this.dataModel;
         this.inbuf  = new double[this.actind.length];
+        this.attact = new AttributeDouble[this.actind.length];
+        for (i=0; i<this.actind.length; i++) this.attact[i] = (AttributeDouble)dmin.getAttribute(this.actind[i]);
         this.allbuf = new double[dmin.getAttributeCount()];
         this.outbuf = new double[dmin.getAttributeCount() - this.actind.length + this.numpc];
         this.outind = new    int[dmin.getAttributeCount() - this.actind.length + this.numpc];
@@ -27,6 +27,7 @@ import org.shaman.exceptions.DataModelException;
 import org.shaman.exceptions.LearnerException;
 import org.shaman.learning.Classifier;
 import org.shaman.learning.ClassifierTransformation;
+import org.shaman.learning.InstanceSetColumnar;
 import org.shaman.learning.Presenter;
 
 import cern.colt.list.IntArrayList;
@@ -59,6 +60,9 @@ public class DecisionTree extends ClassifierTransformation implements Classifier
     // ---------
     private int []insind;        // [i] = position in instance of Attribute i. -1 if not in instance.
     private Tree  root;          // The root of this decision tree
+    // ---------
+    private InstanceSetColumnar trainColumns;   // The training set if its columns can be read directly
+    private int               []trainClass;     // [i] = goal class of training instance i. Only when columnar.
     
     // *********************************************************\
     // *             Decision Tree Classification              *
@@ -281,10 +285,28 @@ public class DecisionTree extends ClassifierTransformation implements Classifier
         
         try
         {
+            // Read the values and goal classes directly from a columnar training set.
+            if (this.trainData instanceof InstanceSetColumnar)
+            {
+                this.trainColumns = (InstanceSetColumnar)this.trainData;
+                this.trainClass   = this.trainColumns.getGoalClasses();
+            }
+            
             // Do ID3 induction
             this.root = ID3Rec(1, null, 0, examples, attributes);
         }
         catch(DataModelException ex) { throw new LearnerException(ex); }
+        finally
+        {
+            this.trainColumns = null;
+            this.trainClass   = null;
+        }
+    }
+    
+    private int getGoalClass(int ind) throws LearnerException
+    {
+        if (this.trainClass != null) return(this.trainClass[ind]);
+        else                         return(this.trainData.getGoalClass(ind));
     }
     
     private Tree ID3Rec(int depth, String attname, int cat, IntArrayList examples, ArrayList attributes) throws LearnerException, DataModelException
@@ -309,7 +331,7 @@ public class DecisionTree extends ClassifierTransformation implements Classifier
         {
             // Add index of current example to list of it's class. Add example weight to sum of class weights.
             ind            = examples.get(i);
-            inclass        = this.trainData.getGoalClass(ind);
+            inclass        = getGoalClass(ind);
             cpdf[inclass] += this.trainData.getWeight(ind);
             exclass[inclass].add(ind);
         }
@@ -426,7 +448,8 @@ public class DecisionTree extends ClassifierTransformation implements Classifier
             if (this.primitive)
             {
                 attdonow = (AttributeDouble)attnow;
-                val      = this.trainData.getInstance(ind).getQuick(this.insind[attind]);
+                if (this.trainColumns != null) val = this.trainColumns.getValue(ind, this.insind[attind]);
+                else                           val = this.trainData.getInstance(ind).getQuick(this.insind[attind]);
                 if (attdonow.isMissingAsDouble(val)) // Missing value?
                 {
                     if      (attdonow.getMissingIs() == Attribute.MISSING_IS_UNKNOWN) cat = -1;     // Treat missing values as if they don't exist
@@ -492,7 +515,7 @@ public class DecisionTree extends ClassifierTransformation implements Classifier
         for (i=0; i<examples.size(); i++)
         {
             exind   = examples.get(i);
-            inclass = this.trainData.getGoalClass(exind);
+            inclass = getGoalClass(exind);
             wei     = this.trainData.getWeight(exind);
             numclass[inclass] += wei;
             weiall            += wei;
@@ -0,0 +1,407 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.rule;
+
+import java.util.Map;
+
+import org.nfunk.jep.ASTConstant;
+import org.nfunk.jep.ASTFunNode;
+import org.nfunk.jep.ASTVarNode;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.Variable;
+import org.nfunk.jep.function.Abs;
+import org.nfunk.jep.function.Add;
+import org.nfunk.jep.function.Comparative;
+import org.nfunk.jep.function.Cosine;
+import org.nfunk.jep.function.Divide;
+import org.nfunk.jep.function.Exp;
+import org.nfunk.jep.function.Logarithm;
+import org.nfunk.jep.function.Logical;
+import org.nfunk.jep.function.Modulus;
+import org.nfunk.jep.function.Multiply;
+import org.nfunk.jep.function.NaturalLogarithm;
+import org.nfunk.jep.function.Not;
+import org.nfunk.jep.function.PostfixMathCommandI;
+import org.nfunk.jep.function.Power;
+import org.nfunk.jep.function.Sine;
+import org.nfunk.jep.function.SquareRoot;
+import org.nfunk.jep.function.Subtract;
+import org.nfunk.jep.function.Tangent;
+import org.nfunk.jep.function.UMinus;
+
+import cern.colt.matrix.DoubleMatrix1D;
+
+
+/**
+ * <h2>Compiled Expression</h2>
+ * Tree of closures made from the parse tree of an ExpressionParser.
+ * Evaluates the expression on a primitive data vector with double arithmetic.
+ * The variables read the vector at the index of their attribute, found when the
+ * expression was compiled. Nothing is boxed and the symbol table is not used.
+ * <br>
+ * Knows the arithmetic, comparison and logical operators, some standard
+ * math functions and 'ifthenelse'. Gives exactly the same values as the JEP interpreter.
+ * Where the interpreter would continue with complex numbers, like the square root of a
+ * negative number, the evaluation stops with a {@link Fallback} and the
+ * parser uses the interpreter for that vector.
+ */
+
+// **********************************************************\
+// *                  Compiled Expression                   *
+// **********************************************************/
+abstract class ExpressionCompiled
+{
+    // Same constant as the JEP 'log' function.
+    private static final double LOG10 = Math.log(10);
+    
+    /**
+     * Thrown when a value can not be calculated with doubles.
+     * Shared and without stack trace. Signals the parser to interpret the expression.
+     */
+    static final class Fallback extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Fallback() { super("Expression needs the interpreter", null, false, false); }
+    }
+    static final Fallback FALLBACK = new Fallback();
+    
+    /**
+     * Evaluate the expression.
+     * @param vec The input vector
+     * @return The value of the expression
+     * @throws Fallback If the value needs complex numbers.
+     */
+    abstract double getValue(DoubleMatrix1D vec);
+    
+    // **********************************************************\
+    // *               Compile the Parse Tree                   *
+    // **********************************************************/
+    /**
+     * Compile a parse tree.
+     * @param node The top node of the parse tree
+     * @param varIndex Map of variable name to the index of its attribute in the vector
+     * @param plus The function of the untyped '+' operator of the parser
+     * @param ifThenElse The 'ifthenelse' function of the parser
+     * @return The compiled expression. Or <code>null</code> if the tree contains something that can not be compiled.
+     */
+    static ExpressionCompiled compile(Node node, Map varIndex, PostfixMathCommandI plus, PostfixMathCommandI ifThenElse)
+    {
+        ExpressionCompiled []arg;
+        ASTFunNode           fun;
+        PostfixMathCommandI  pfmc;
+        String               name;
+        Object               value;
+        int                  i;
+        
+        if (node instanceof ASTConstant)
+        {
+            // Only numbers. Strings and complex numbers are left to the interpreter.
+            value = ((ASTConstant)node).getValue();
+            if (value instanceof Double) return(new Constant(((Double)value).doubleValue()));
+            else                         return(null);
+        }
+        else if (node instanceof ASTVarNode)
+        {
+            Variable var;
+            
+            // Attributes read the vector. Constants and the boolean values are inlined.
+            name  = ((ASTVarNode)node).getName();
+            value = varIndex.get(name);
+            if (value != null) return(new Attribute(((Integer)value).intValue()));
+            
+            var = ((ASTVarNode)node).getVar();
+            if ((var != null) && (var.isConstant() || name.equals("true") || name.equals("false")) && (var.getValue() instanceof Double))
+                return(new Constant(((Double)var.getValue()).doubleValue()));
+            else return(null);
+        }
+        else if (node instanceof ASTFunNode)
+        {
+            fun  = (ASTFunNode)node;
+            pfmc = fun.getPFMC();
+            name = fun.getName();
+            arg  = new ExpressionCompiled[fun.jjtGetNumChildren()];
+            for (i=0; i<arg.length; i++)
+            {
+                arg[i] = compile(fun.jjtGetChild(i), varIndex, plus, ifThenElse);
+                if (arg[i] == null) return(null);
+            }
+            
+            if (arg.length == 1)
+            {
+                if      (pfmc instanceof UMinus)           return(new Negate(arg[0]));
+                else if (pfmc instanceof Not)              return(new Not0(arg[0]));
+                else if (pfmc instanceof SquareRoot)       return(new Sqrt(arg[0]));
+                else if (pfmc instanceof NaturalLogarithm) return(new Ln(arg[0]));
+                else if (pfmc instanceof Logarithm)        return(new Log(arg[0]));
+                else if (pfmc instanceof Exp)              return(new Exp0(arg[0]));
+                else if (pfmc instanceof Abs)              return(new Abs0(arg[0]));
+                else if (pfmc instanceof Sine)             return(new Sin(arg[0]));
+                else if (pfmc instanceof Cosine)           return(new Cos(arg[0]));
+                else if (pfmc instanceof Tangent)          return(new Tan(arg[0]));
+            }
+            else if (arg.length == 2)
+            {
+                if      ((pfmc == plus) || (pfmc instanceof Add)) return(new Add0(arg[0], arg[1]));
+                else if (pfmc instanceof Subtract)  return(new Subtract0(arg[0], arg[1]));
+                else if (pfmc instanceof Multiply)  return(new Multiply0(arg[0], arg[1]));
+                else if (pfmc instanceof Divide)    return(new Divide0(arg[0], arg[1]));
+                else if (pfmc instanceof Modulus)   return(new Modulus0(arg[0], arg[1]));
+                else if (pfmc instanceof Power)     return(new Power0(arg[0], arg[1]));
+                else if (pfmc instanceof Logical)
+                {
+                    if      (name.equals("&&")) return(new And(arg[0], arg[1]));
+                    else if (name.equals("||")) return(new Or(arg[0], arg[1]));
+                }
+                else if (pfmc instanceof Comparative)
+                {
+                    if      (name.equals("<"))  return(new Compare(Compare.LT, arg[0], arg[1]));
+                    else if (name.equals(">"))  return(new Compare(Compare.GT, arg[0], arg[1]));
+                    else if (name.equals("<=")) return(new Compare(Compare.LE, arg[0], arg[1]));
+                    else if (name.equals(">=")) return(new Compare(Compare.GE, arg[0], arg[1]));
+                    else if (name.equals("==")) return(new Compare(Compare.EQ, arg[0], arg[1]));
+                    else if (name.equals("!=")) return(new Compare(Compare.NE, arg[0], arg[1]));
+                }
+            }
+            else if ((arg.length == 3) && (pfmc == ifThenElse)) return(new IfThenElse0(arg[0], arg[1], arg[2]));
+            
+            // Any other function. E.g. a Transformation, a virtual field or a String function.
+            return(null);
+        }
+        else return(null);
+    }
+    
+    // **********************************************************\
+    // *                    Values and Operators                *
+    // **********************************************************/
+    private static final class Constant extends ExpressionCompiled
+    {
+        private final double value;
+        Constant(double value)             { this.value = value; }
+        double getValue(DoubleMatrix1D vec) { return(this.value); }
+    }
+    
+    private static final class Attribute extends ExpressionCompiled
+    {
+        private final int index;
+        Attribute(int index)                { this.index = index; }
+        double getValue(DoubleMatrix1D vec) { return(vec.getQuick(this.index)); }
+    }
+    
+    private static abstract class Unary extends ExpressionCompiled
+    {
+        protected final ExpressionCompiled a;
+        Unary(ExpressionCompiled a) { this.a = a; }
+    }
+    
+    private static abstract class Binary extends ExpressionCompiled
+    {
+        protected final ExpressionCompiled a, b;
+        Binary(ExpressionCompiled a, ExpressionCompiled b) { this.a = a; this.b = b; }
+    }
+    
+    private static final class Add0 extends Binary
+    {
+        Add0(ExpressionCompiled a, ExpressionCompiled b) { super(a, b); }
+        double getValue(DoubleMatrix1D vec) { return(this.a.getValue(vec) + this.b.getValue(vec)); }
+    }
+    
+    private static final class Subtract0 extends Binary
+    {
+        Subtract0(ExpressionCompiled a, ExpressionCompiled b) { super(a, b); }
+        double getValue(DoubleMatrix1D vec) { return(this.a.getValue(vec) - this.b.getValue(vec)); }
+    }
+    
+    private static final class Multiply0 extends Binary
+    {
+        Multiply0(ExpressionCompiled a, ExpressionCompiled b) { super(a, b); }
+        double getValue(DoubleMatrix1D vec) { return(this.a.getValue(vec) * this.b.getValue(vec)); }
+    }
+    
+    private static final class Divide0 extends Binary
+    {
+        Divide0(ExpressionCompiled a, ExpressionCompiled b) { super(a, b); }
+        double getValue(DoubleMatrix1D vec) { return(this.a.getValue(vec) / this.b.getValue(vec)); }
+    }
+    
+    private static final class Modulus0 extends Binary
+    {
+        Modulus0(ExpressionCompiled a, ExpressionCompiled b) { super(a, b); }
+        double getValue(DoubleMatrix1D vec) { return(this.a.getValue(vec) % this.b.getValue(vec)); }
+    }
+    
+    private static final class Power0 extends Binary
+    {
+        Power0(ExpressionCompiled a, ExpressionCompiled b) { super(a, b); }
+        double getValue(DoubleMatrix1D vec)
+        {
+            double x, y;
+            
+            // A negative number to a non-integer power is complex.
+            x = this.a.getValue(vec);
+            y = this.b.getValue(vec);
+            if ((x < 0) && (y != (double)((int)y))) throw FALLBACK;
+            return(Math.pow(x, y));
+        }
+    }
+    
+    private static final class Negate extends Unary
+    {
+        Negate(ExpressionCompiled a)        { super(a); }
+        double getValue(DoubleMatrix1D vec) { return(-this.a.getValue(vec)); }
+    }
+    
+    private static final class Compare extends Binary
+    {
+        static final int LT = 0, GT = 1, LE = 2, GE = 3, EQ = 4, NE = 5;
+        private final int op;
+        
+        Compare(int op, ExpressionCompiled a, ExpressionCompiled b) { super(a, b); this.op = op; }
+        double getValue(DoubleMatrix1D vec)
+        {
+            double  x, y;
+            boolean c;
+            
+            // Equality like Double.equals(), as the interpreter compares the boxed values.
+            x = this.a.getValue(vec);
+            y = this.b.getValue(vec);
+            switch(this.op)
+            {
+                case LT: c = x < y;  break;
+                case GT: c = x > y;  break;
+                case LE: c = x <= y; break;
+                case GE: c = x >= y; break;
+                case EQ: c = Double.doubleToLongBits(x) == Double.doubleToLongBits(y); break;
+                default: c = Double.doubleToLongBits(x) != Double.doubleToLongBits(y); break;
+            }
+            return(c ? 1.0 : 0.0);
+        }
+    }
+    
+    private static final class And extends Binary
+    {
+        And(ExpressionCompiled a, ExpressionCompiled b) { super(a, b); }
+        double getValue(DoubleMatrix1D vec)
+        {
+            double x, y;
+            
+            // Both sides are evaluated, like the interpreter does.
+            x = this.a.getValue(vec);
+            y = this.b.getValue(vec);
+            return(((x != 0) && (y != 0)) ? 1.0 : 0.0);
+        }
+    }
+    
+    private static final class Or extends Binary
+    {
+        Or(ExpressionCompiled a, ExpressionCompiled b) { super(a, b); }
+        double getValue(DoubleMatrix1D vec)
+        {
+            double x, y;
+            
+            x = this.a.getValue(vec);
+            y = this.b.getValue(vec);
+            return(((x != 0) || (y != 0)) ? 1.0 : 0.0);
+        }
+    }
+    
+    private static final class Not0 extends Unary
+    {
+        Not0(ExpressionCompiled a)          { super(a); }
+        double getValue(DoubleMatrix1D vec) { return((this.a.getValue(vec) == 0) ? 1.0 : 0.0); }
+    }
+    
+    private static final class IfThenElse0 extends ExpressionCompiled
+    {
+        private final ExpressionCompiled cond, othen, oelse;
+        
+        IfThenElse0(ExpressionCompiled cond, ExpressionCompiled othen, ExpressionCompiled oelse)
+        {
+            this.cond  = cond;
+            this.othen = othen;
+            this.oelse = oelse;
+        }
+        
+        double getValue(DoubleMatrix1D vec)
+        {
+            // The interpreter takes the integer part of the condition. Only the chosen branch is evaluated here.
+            if (((int)this.cond.getValue(vec)) == 1) return(this.othen.getValue(vec));
+            else                                     return(this.oelse.getValue(vec));
+        }
+    }
+    
+    // **********************************************************\
+    // *                    Standard Functions                  *
+    // **********************************************************/
+    private static final class Sqrt extends Unary
+    {
+        Sqrt(ExpressionCompiled a) { super(a); }
+        double getValue(DoubleMatrix1D vec)
+        {
+            double x = this.a.getValue(vec);
+            if (x < 0) throw FALLBACK;
+            return(Math.sqrt(x));
+        }
+    }
+    
+    private static final class Ln extends Unary
+    {
+        Ln(ExpressionCompiled a) { super(a); }
+        double getValue(DoubleMatrix1D vec)
+        {
+            double x = this.a.getValue(vec);
+            if (!(x > 0)) throw FALLBACK;
+            return(Math.log(x));
+        }
+    }
+    
+    private static final class Log extends Unary
+    {
+        Log(ExpressionCompiled a) { super(a); }
+        double getValue(DoubleMatrix1D vec)
+        {
+            double x = this.a.getValue(vec);
+            if (!(x > 0)) throw FALLBACK;
+            return(Math.log(x) / LOG10);
+        }
+    }
+    
+    private static final class Exp0 extends Unary
+    {
+        Exp0(ExpressionCompiled a)          { super(a); }
+        double getValue(DoubleMatrix1D vec) { return(Math.exp(this.a.getValue(vec))); }
+    }
+    
+    private static final class Abs0 extends Unary
+    {
+        Abs0(ExpressionCompiled a)          { super(a); }
+        double getValue(DoubleMatrix1D vec) { return(Math.abs(this.a.getValue(vec))); }
+    }
+    
+    private static final class Sin extends Unary
+    {
+        Sin(ExpressionCompiled a)           { super(a); }
+        double getValue(DoubleMatrix1D vec) { return(Math.sin(this.a.getValue(vec))); }
+    }
+    
+    private static final class Cos extends Unary
+    {
+        Cos(ExpressionCompiled a)           { super(a); }
+        double getValue(DoubleMatrix1D vec) { return(Math.cos(this.a.getValue(vec))); }
+    }
+    
+    private static final class Tan extends Unary
+    {
+        Tan(ExpressionCompiled a)           { super(a); }
+        double getValue(DoubleMatrix1D vec) { return(Math.tan(this.a.getValue(vec))); }
+    }
+}
@@ -80,6 +80,8 @@ public class ExpressionParser extends JEP implements Cloneable
     private String           expst;            // The Last Expression that was Parsed
     private String         []varnames;         // The DataModel Attributes that are used as variables. And their indices.
     private int            []varind;
+    private boolean            compile;          // Compile expressions over primitive vectors?
+    private ExpressionCompiled compiled;         // The compiled expression or null if interpreted.
     
     // Various very handy extra functions that are added to JEPs default set of functions.
     private static boolean            functions_there;
@@ -199,6 +201,7 @@ public class ExpressionParser extends JEP implements Cloneable
         parseout.dataModel = this.dataModel;
         parseout.vecnow    = this.vecnow;
         parseout.expst     = this.expst;
+        parseout.compile   = this.compile;
         
         // Clone the Function- and Symbol-Tables of the Template. Copy JEP settings.
         parseout.funTab          = (FunctionTable)this.funTab.clone();
@@ -243,7 +246,8 @@ public class ExpressionParser extends JEP implements Cloneable
     public void parseExp(String expression) throws ConfigException
     {
         // Remember the Parsed Expression
-        this.expst = expression;
+        this.expst    = expression;
+        this.compiled = null;
         
         // Use JEP to Parse the expression
         super.parseExpression(expression);
@@ -306,6 +310,10 @@ public class ExpressionParser extends JEP implements Cloneable
                 // Use this information while evaluating.
                 this.varnames = varnames;
                 this.varind   = varind;
+                
+                // Try to compile the expression when the vectors are primitive.
+                if (this.compile && (this.dmdo != null) && (this.dataModel == this.dmdo))
+                    this.compiled = ExpressionCompiled.compile(topnode, varmap, ExpressionParser.func_smartplus, ExpressionParser.func_ifthenelse);
             }
             else
             {
@@ -404,6 +412,16 @@ public class ExpressionParser extends JEP implements Cloneable
         // Set the current input vector so the ExpressionParserFunctions can access with getDataVector()
         this.vecnow = invec;
         
+        // Use the compiled expression if there is one. Interpret when it needs complex numbers.
+        if (this.compiled != null)
+        {
+            try
+            {
+                return(this.compiled.getValue(invec));
+            }
+            catch(ExpressionCompiled.Fallback ex) { }
+        }
+        
         // Fill in the variables with the current values
         if (this.dataModel != null)
         {
@@ -510,6 +528,21 @@ public class ExpressionParser extends JEP implements Cloneable
     
     public Object    getDataVector() { return(this.vecnow); }
     public DataModel getDataModel()  { return(this.dataModel); }
+    
+    /**
+     * Compile the expressions over vectors of doubles to a tree of typed closures.
+     * The compiled expression skips the JEP symbol table and boxing.
+     * Expressions with functions that can not be compiled are interpreted. Default on.
+     * @param compile <code>true</code> if the next parsed expressions should be compiled if possible.
+     */
+    public void    setCompile(boolean compile) { this.compile = compile; }
+    public boolean getCompile()                { return(this.compile); }
+    
+    /**
+     * Check if the last parsed expression was compiled.
+     * @return <code>true</code> if getValue(DoubleMatrix1D) uses the compiled expression.
+     */
+    public boolean isCompiled() { return(this.compiled != null); }
 
     // **********************************************************\
     // *  Check if the given DataModel can be used in functions *
@@ -714,7 +747,8 @@ public class ExpressionParser extends JEP implements Cloneable
         super();
         
         initializeDefaults();
-        this.expst = null;
+        this.expst   = null;
+        this.compile = true;
         //this.ev    = new FastEvaluatorVisitor();
     }
     
@@ -727,7 +761,8 @@ public class ExpressionParser extends JEP implements Cloneable
         super();
         initializeDefaults();
         
-        this.expst = null;
+        this.expst   = null;
+        this.compile = true;
         //this.ev    = new FastEvaluatorVisitor();
         setDataModel(dataModel);
     }
@@ -12,18 +12,30 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.shaman.exceptions.LearnerException;
 
 public class RandomForest implements Serializable
 {
+    // Number of instances classified together by the trees in a batch classification
+    private static final int CLASSIFY_BLOCK = 256;
+
     private int minObjects;                // Minimum number of instances in leaf nodes
     private int maxDepth;                  // Maximum number of levels in the tree
     private double trainFraction;          // Fraction of train data to use for each Tree
     private int numberOfVariables;         // Number of variables to consider at each tree-node
     private int numberOfTrees;             // The number of decision trees in the ensemble
     private int randomSeed;                // Seed for Random number generator
+    private int numberOfThreads;           // Number of threads training the trees and classifying batches. 0 = number of processors.
 
     private int      []attributeDescription;   // [i] = -1: inactive, [i] = 0 : continuous value, [i] = n > 0 : categorical value with n classes
     private int        goalClasses;            // Number of classes in the goal attribute
@@ -31,6 +43,9 @@ public class RandomForest implements Serializable
     // ----------
     private double     outOfBagError;       // Estimate of classification error using the out-of-bag instances.
     private List<RandomForestTree> trees;   // The classification trees making up the random forest.
+    private RandomForestCompiled compiled;  // All trees flattened for fast classification
+    private transient AtomicInteger cntTrained;  // Number of trees trained so far
+    private transient int [][]presortedInstances; // [a] = All instances in ascending order of continuous attribute a. Shared by the trees during training.
 
     // *********************************************************\
     // *                   Persistence                         *
@@ -69,7 +84,7 @@ public class RandomForest implements Serializable
             RandomForestTree tree;
 
             // Read the trees themselves.
-            trees = new LinkedList<RandomForestTree>();
+            trees = new ArrayList<RandomForestTree>(this.numberOfTrees);
             for(int i=0; i<this.numberOfTrees; i++)
             {
                 tree = new RandomForestTree();
@@ -77,56 +92,84 @@ public class RandomForest implements Serializable
                 trees.add(tree);
             }
             this.trees = trees;
+            this.compiled = compile();
         }
         catch (ClassNotFoundException ex) { throw new IOException(ex); }
+        catch (LearnerException ex)       { throw new IOException(ex); }
     }
 
     // *********************************************************\
     // *             Random Forest Classification              *
     // *********************************************************/
-    public void train()
+    public void train() throws LearnerException
     {
-        List<RandomForestTree> randomForestTrees;
         Random random;
+        long []treeSeeds;
 
-        // Collect the Decision Trees of the Random Forest.
-        randomForestTrees = new LinkedList<RandomForestTree>();
-
-        // Initialize the shared Random generator with the seed in case exact reproducability is wanted.
+        // Initialize the Random generator with the seed in case exact reproducability is wanted.
         if (this.randomSeed != 0)
             random = new Random(this.randomSeed);
         else random = new Random();
 
-        int [][]outOfBagClass;
+        // Draw a seed for each tree up-front. Every tree gets its own Random generator, so the forest does not depend on the order in which the trees are trained.
+        treeSeeds = new long[this.numberOfTrees];
+        for(int i=0; i<treeSeeds.length; i++) treeSeeds[i] = random.nextLong();
 
-        // Calculate Out-of-bag error estimate during training
-        outOfBagClass = new int[this.data.getNumberOfInstances()][this.goalClasses];
+        // Sort the instances on each continuous attribute once. The trees only filter out their own instances.
+        this.presortedInstances = RandomForestTree.presort(this.data, this.attributeDescription);
+
+        final RandomForestTree []randomForestTrees;
+        int threads;
 
-        // Create the Classification Trees
-        for(int i=0; i<this.numberOfTrees; i++)
+        // Create the Classification Trees. In parallel when there's more than 1 processor to use.
+        randomForestTrees = new RandomForestTree[this.numberOfTrees];
+        threads = getThreads();
+        this.cntTrained = new AtomicInteger();
+        if (threads <= 1 || randomForestTrees.length <= 1)
         {
-            RandomForestTree randomForestTree;
-
-            // Train another Tree with the given parameters and training data.
-            randomForestTree = new RandomForestTree();
-            randomForestTree.setAttributeDescription(this.attributeDescription);
-            randomForestTree.setTrainInstances(this.data);
-            randomForestTree.setGoalClasses(this.goalClasses);
-            randomForestTree.setMinObjects(this.minObjects);
-            randomForestTree.setNumberOfVariables(this.numberOfVariables);
-            randomForestTree.setTrainFraction(this.trainFraction);
-            randomForestTree.setMaxDepth(this.maxDepth);
-            randomForestTree.setOutOfBagClass(outOfBagClass);
-            randomForestTree.setRandom(random);
-            randomForestTree.trainTree();
-
-            System.out.println("Trained Tree "+(i+1)+" of "+this.numberOfTrees);
-
-            randomForestTrees.add(randomForestTree);
+            for(int i=0; i<randomForestTrees.length; i++) randomForestTrees[i] = trainTree(treeSeeds[i]);
         }
+        else
+        {
+            ForkJoinPool pool;
+            List<Callable<RandomForestTree>> tasks;
+            List<Future<RandomForestTree>> trained;
 
-        // Done. Remember Trees for classification.
-        this.trees = randomForestTrees;
+            // One task per tree. Each trains on the shared read-only training data.
+            tasks = new ArrayList<Callable<RandomForestTree>>(randomForestTrees.length);
+            for(int i=0; i<randomForestTrees.length; i++)
+            {
+                final long treeSeed = treeSeeds[i];
+                tasks.add(new Callable<RandomForestTree>()
+                {
+                    public RandomForestTree call() { return trainTree(treeSeed); }
+                });
+            }
+
+            pool = new ForkJoinPool(threads);
+            try
+            {
+                trained = pool.invokeAll(tasks);
+                for(int i=0; i<randomForestTrees.length; i++) randomForestTrees[i] = trained.get(i).get();
+            }
+            catch(InterruptedException ex) { throw new LearnerException(ex); }
+            catch(ExecutionException ex)   { throw new LearnerException("Training of a Random Forest Tree failed.", ex.getCause()); }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+        this.presortedInstances = null;
+
+        // Done. Remember Trees for classification. And their flattened version.
+        this.trees = new ArrayList<RandomForestTree>(Arrays.asList(randomForestTrees));
+        this.compiled = compile();
+
+        int [][]outOfBagClass;
+
+        // Calculate Out-of-bag error estimate. Collect the out-of-bag votes of the trees after training, in tree order.
+        outOfBagClass = new int[this.data.getNumberOfInstances()][this.goalClasses];
+        for(RandomForestTree tree: randomForestTrees) tree.addOutOfBagVotes(outOfBagClass);
 
         int  maxClassCount, maxClass;
         double cntError;
@@ -139,7 +182,7 @@ public class RandomForest implements Serializable
             // Find the class that was predicted most for this instance.
             maxClass      = -1;
             maxClassCount = Integer.MIN_VALUE;
-            for(int j=0; j<outOfBagClass[j].length; j++)
+            for(int j=0; j<outOfBagClass[i].length; j++)
             {
                 if (outOfBagClass[i][j] > maxClassCount) { maxClass = j; maxClassCount = outOfBagClass[i][j]; }
             }
@@ -159,53 +202,127 @@ public class RandomForest implements Serializable
         this.outOfBagError = cntError / outOfBagClass.length;
     }
 
-    public int classify(double []instance, double []confidence)
+    private RandomForestTree trainTree(long treeSeed)
     {
-        int modeClass;
-
-        modeClass = -1;
+        RandomForestTree randomForestTree;
+
+        // Train another Tree with the given parameters and training data.
+        randomForestTree = new RandomForestTree();
+        randomForestTree.setAttributeDescription(this.attributeDescription);
+        randomForestTree.setTrainInstances(this.data);
+        randomForestTree.setGoalClasses(this.goalClasses);
+        randomForestTree.setMinObjects(this.minObjects);
+        randomForestTree.setNumberOfVariables(this.numberOfVariables);
+        randomForestTree.setTrainFraction(this.trainFraction);
+        randomForestTree.setMaxDepth(this.maxDepth);
+        randomForestTree.setRandom(new Random(treeSeed));
+        randomForestTree.setPresortedInstances(this.presortedInstances);
+        randomForestTree.trainTree();
+
+        System.out.println("Trained Tree "+this.cntTrained.incrementAndGet()+" of "+this.numberOfTrees);
+
+        return randomForestTree;
+    }
 
-        double []sumConfidence;
-        double []treeConfidence;
-        int vote, cntVotes;
-        double maxConfidence;
+    public int classify(double []instance, double []confidence)
+    {
+        // Classify the instance with all the trees in the forest. Average the class distributions at leaf node where the instance ends up.
+        return this.compiled.classify(instance, confidence);
+    }
 
-        // Calculate the average of the confidences over all Trees
-        sumConfidence = new double[this.goalClasses];
-        treeConfidence = new double[this.goalClasses];
-        cntVotes = 0;
+    /**
+     * Classify a set of instances. The instances are classified in blocks.
+     * All trees are run over a block before moving on to the next block. The blocks are spread over the threads.
+     * Gives the same classes and confidences as classifying the instances one by one.
+     * @param instances The instances to classify
+     * @param confidence Buffer for the class-confidence of each instance. Can be null.
+     * @return The class of each instance. -1 if the forest has no vote.
+     * @throws LearnerException If the classification is interrupted.
+     */
+    public int []classify(final double [][]instances, final double [][]confidence) throws LearnerException
+    {
+        final int []modeClass;
+        int         threads, numBlocks;
 
-        // Classify the instance with all the trees in the forest. Sum the class distributions at leaf node where the instance ends up.
-        for(RandomForestTree tree: this.trees)
+        modeClass = new int[instances.length];
+        numBlocks = (instances.length + CLASSIFY_BLOCK - 1) / CLASSIFY_BLOCK;
+        threads   = getThreads();
+        if (threads <= 1 || numBlocks <= 1)
         {
-            vote = tree.classify(instance, treeConfidence);
-            if (vote != -1)
-            {
-                for(int i=0; i<treeConfidence.length; i++) sumConfidence[i] += treeConfidence[i];
-                cntVotes++;
-            }
+            for(int i=0; i<numBlocks; i++) classifyBlock(instances, i*CLASSIFY_BLOCK, Math.min(instances.length, (i+1)*CLASSIFY_BLOCK), modeClass, confidence);
         }
-        if (cntVotes > 0)
+        else
         {
-            // Pick the class with highest occurence in the lead nodes as output.
-            maxConfidence = Double.NEGATIVE_INFINITY;
-            for(int i=0; i<sumConfidence.length; i++) sumConfidence[i] /= cntVotes;
-            for(int i=0; i<sumConfidence.length; i++)
+            ForkJoinPool pool;
+            List<Callable<Object>> tasks;
+
+            // A task per block of instances. The blocks write in disjoint parts of the output.
+            tasks = new ArrayList<Callable<Object>>(numBlocks);
+            for(int i=0; i<numBlocks; i++)
             {
-                if (sumConfidence[i] >= maxConfidence)
+                final int begin = i*CLASSIFY_BLOCK;
+                final int end   = Math.min(instances.length, begin+CLASSIFY_BLOCK);
+                tasks.add(new Callable<Object>()
                 {
-                    maxConfidence = sumConfidence[i];
-                    modeClass = i;
-                }
+                    public Object call() { classifyBlock(instances, begin, end, modeClass, confidence); return null; }
+                });
+            }
+
+            pool = new ForkJoinPool(threads);
+            try
+            {
+                for(Future<Object> done: pool.invokeAll(tasks)) done.get();
+            }
+            catch(InterruptedException ex) { throw new LearnerException(ex); }
+            catch(ExecutionException ex)   { throw new LearnerException("Classification with the Random Forest failed.", ex.getCause()); }
+            finally
+            {
+                pool.shutdown();
             }
-            // Also copy the class-confidence over the entire forrest?
-            if (confidence != null)
-                for(int i=0; i<sumConfidence.length; i++) confidence[i] = sumConfidence[i];
         }
 
         return modeClass;
     }
 
+    private void classifyBlock(double [][]instances, int begin, int end, int []modeClass, double [][]confidence)
+    {
+        // Run the trees one after the other over the instances in the block. Keeps each tree in the cache while it's used.
+        this.compiled.classify(instances, begin, end, modeClass, confidence);
+    }
+
+    /**
+     * Flatten the trees of the forest in one compiled tree.
+     * @return The compiled version of the trees.
+     * @throws LearnerException If a tree cannot be compiled.
+     */
+    private RandomForestCompiled compile() throws LearnerException
+    {
+        RandomForestCompiled compiled;
+        List<RandomForestRuntimeTree> runtimeTrees;
+
+        runtimeTrees = new ArrayList<RandomForestRuntimeTree>(this.trees.size());
+        for(RandomForestTree tree: this.trees) runtimeTrees.add(tree.getRuntimeTree());
+        compiled = new RandomForestCompiled();
+        compiled.make(runtimeTrees, this.goalClasses);
+
+        return compiled;
+    }
+
+    /**
+     * Give the compiled version of the forest. Can be saved in a compact binary format and used for classification on its own.
+     * @return The compiled forest.
+     */
+    public RandomForestCompiled getCompiled()
+    {
+        return this.compiled;
+    }
+
+    private int getThreads()
+    {
+        if (this.numberOfThreads <= 0) return Runtime.getRuntime().availableProcessors();
+        else                           return this.numberOfThreads;
+    }
+
     public double getOutOfBagError()
     {
         return this.outOfBagError;
@@ -244,6 +361,11 @@ public class RandomForest implements Serializable
         this.randomSeed = randomSeed;
     }
 
+    public void setNumberOfThreads(int numberOfThreads)
+    {
+        this.numberOfThreads = numberOfThreads;
+    }
+
     public void setAttributeDescription(int []attributeDescription)
     {
         this.attributeDescription = attributeDescription;
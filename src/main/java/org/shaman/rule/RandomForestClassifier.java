@@ -19,6 +19,7 @@ import org.shaman.exceptions.DataModelException;
 import org.shaman.exceptions.LearnerException;
 import org.shaman.learning.Classifier;
 import org.shaman.learning.ClassifierTransformation;
+import org.shaman.learning.InstanceSetColumnar;
 import org.shaman.learning.Presenter;
 
 /**
@@ -33,6 +34,7 @@ public class RandomForestClassifier  extends ClassifierTransformation implements
     private int numberOfVariables;         // Number of variables to consider at each tree-node
     private int numberOfTrees;             // The number of decision trees in the ensemble
     private int randomSeed;                // Seed of the Random number generator
+    private int numberOfThreads;           // Number of threads training the trees. 0 = number of processors.
     // -----------
     private RandomForest randomForest;
 
@@ -45,25 +47,27 @@ public class RandomForestClassifier  extends ClassifierTransformation implements
         {
             int   goalClasses;
             int []attributeDescription;
-            double [][]trainInstances;
             RandomForest randomForest;
 
-            // Make the training dataset and a description of the instances' Attributes.
+            // Make a description of the instances' Attributes.
             goalClasses = getGoalClasses();
             attributeDescription = makeAttributeDescription();
-            trainInstances = makeTrainInstances();
 
             // Create and configure the RandomForest with the given parameters and dataset.
             randomForest = new RandomForest();
             randomForest.setGoalClasses(goalClasses);
             randomForest.setAttributeDescription(attributeDescription);
-            randomForest.setTrainInstances(trainInstances);
+            // Read a columnar training set in place. Otherwise copy the instances in a double [][].
+            if (this.trainData instanceof InstanceSetColumnar)
+                 randomForest.setTrainInstances(new RandomForestColumnarData((InstanceSetColumnar)this.trainData));
+            else randomForest.setTrainInstances(makeTrainInstances());
             randomForest.setNumberOfTrees(this.numberOfTrees);
             randomForest.setMinObjects(this.minObjects);
             randomForest.setNumberOfVariables(this.numberOfVariables);
             randomForest.setTrainFraction(this.trainFraction);
             randomForest.setMaxDepth(this.maxDepth);
             randomForest.setRandomSeed(this.randomSeed);
+            randomForest.setNumberOfThreads(this.numberOfThreads);
 
             // Train the Trees of the RandomForest.
             randomForest.train();
@@ -193,6 +197,11 @@ public class RandomForestClassifier  extends ClassifierTransformation implements
         this.randomSeed = randomSeed;
     }
 
+    public void setNumberOfThreads(int numberOfThreads)
+    {
+        this.numberOfThreads = numberOfThreads;
+    }
+
     public double getOutOfBagError()
     {
         return this.randomForest.getOutOfBagError();
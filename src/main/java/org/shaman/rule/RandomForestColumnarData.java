@@ -0,0 +1,51 @@
+package org.shaman.rule;
+
+import org.shaman.exceptions.LearnerException;
+import org.shaman.learning.InstanceSetColumnar;
+
+/**
+ * Random Forest training data read straight from the store of a columnar instance set.
+ * The goal class follows the attributes of the instance, like in the other RandomForestData.
+ *
+ * @author Johan Kaers
+ */
+public class RandomForestColumnarData implements RandomForestData
+{
+    private InstanceSetColumnar trainInstances;
+    private int               []instanceClass;
+    private int                 numberOfAttributes;
+
+    public RandomForestColumnarData(InstanceSetColumnar trainInstances) throws LearnerException
+    {
+        this.trainInstances     = trainInstances;
+        this.instanceClass      = trainInstances.getGoalClasses();
+        this.numberOfAttributes = trainInstances.getNumberOfAttributes();
+    }
+
+    public double []getInstance(int instanceIndex)
+    {
+        double []instance;
+
+        instance = new double[this.numberOfAttributes+1];
+        for(int i=0; i<this.numberOfAttributes; i++) instance[i] = this.trainInstances.getValue(instanceIndex, i);
+        instance[this.numberOfAttributes] = this.instanceClass[instanceIndex];
+
+        return instance;
+    }
+
+    public double getInstanceValueForAttribute(int instanceIndex, int attributeIndex)
+    {
+        if (attributeIndex < this.numberOfAttributes) return this.trainInstances.getValue(instanceIndex, attributeIndex);
+        else                                          return this.instanceClass[instanceIndex];
+    }
+
+    public int getInstanceClass(int instanceIndex)
+    {
+        return this.instanceClass[instanceIndex];
+    }
+
+    public int getNumberOfInstances()
+    {
+        return this.instanceClass.length;
+    }
+}
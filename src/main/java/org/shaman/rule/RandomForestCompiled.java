@@ -0,0 +1,396 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2013 Shaman Research                   *
+ \*********************************************************/
+package org.shaman.rule;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.shaman.exceptions.LearnerException;
+
+/**
+ * Compiled inference format of an entire Random Forest.
+ * All trees are flattened into a few contiguous primitive arrays.
+ * The branches of a node are stored next to each other, so a binary split
+ * becomes <code>x &lt; t ? left : right</code> and a categorical split
+ * becomes <code>left + x</code>.
+ * The class distributions of all nodes are stored in one array.
+ * Classifies exactly like the RandomForestRuntimeTree it was made from.
+ *
+ * @author Johan Kaers
+ */
+public class RandomForestCompiled implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    // Binary format identification
+    private static final int MAGIC   = 0x53524643;
+    private static final int VERSION = 1;
+
+    private int        goalClasses;      // Number of classes in the goal attribute
+    private int      []roots;            // [i] = Node index of the root of tree i
+    private int      []feature;          // [n] = Index of instance value tested in node n. -1 for a leaf node.
+    private double   []threshold;        // [n] = Split value of binary node n
+    private int      []left;             // [n] = Branch for x < threshold. Or the branch for category 0 of a categorical node.
+    private int      []right;            // [n] = Branch for x >= threshold. Or minus the number of categories of a categorical node.
+    private int      []distribution;     // [n] = Offset in distributions[] of the class distribution of node n
+    private double   []distributions;    // The distinct class distributions, goalClasses values each.
+
+    // *********************************************************\
+    // *                      Classification                   *
+    // *********************************************************/
+    /**
+     * Find the node where the given instance ends up in a tree.
+     * Stops at an inner node when none of its branches match, like the runtime tree.
+     * @param tree The index of the tree
+     * @param instance The instance
+     * @return The offset of the class distribution of that node.
+     */
+    private int findLeafDistribution(int tree, double []instance)
+    {
+        int    node, att, branch, category;
+        double x;
+
+        node = this.roots[tree];
+        while ((att = this.feature[node]) >= 0)
+        {
+            x      = instance[att];
+            branch = this.right[node];
+            if (branch >= 0)
+            {
+                // Binary split. NaN matches neither branch.
+                if      (x <  this.threshold[node]) node = this.left[node];
+                else if (x >= this.threshold[node]) node = branch;
+                else break;
+            }
+            else
+            {
+                // Categorical split. Unknown categories match no branch.
+                category = (int)x;
+                if (category == x && category >= 0 && category < -branch) node = this.left[node] + category;
+                else break;
+            }
+        }
+
+        return this.distribution[node];
+    }
+
+    /**
+     * Classify an instance with all trees.
+     * @param instance The instance to classify
+     * @param confidence Buffer for the average class distribution. Can be null.
+     * @return The class with the highest average confidence. -1 if there are no trees.
+     */
+    public int classify(double []instance, double []confidence)
+    {
+        double []sumConfidence;
+        int      offset;
+
+        sumConfidence = new double[this.goalClasses];
+        for(int i=0; i<this.roots.length; i++)
+        {
+            offset = findLeafDistribution(i, instance);
+            for(int j=0; j<this.goalClasses; j++) sumConfidence[j] += this.distributions[offset+j];
+        }
+
+        return pickClass(sumConfidence, 0, confidence);
+    }
+
+    /**
+     * Classify a range of instances. Walks all instances through one tree before moving on to the next tree.
+     * @param instances The instances
+     * @param begin Index of the first instance to classify
+     * @param end Index after the last instance to classify
+     * @param classes Buffer for the class of each instance
+     * @param confidence Buffer for the class confidence of each instance. Can be null.
+     */
+    public void classify(double [][]instances, int begin, int end, int []classes, double [][]confidence)
+    {
+        double []sumConfidence;
+        int      offset, base;
+
+        sumConfidence = new double[(end-begin)*this.goalClasses];
+        for(int i=0; i<this.roots.length; i++)
+        {
+            for(int j=begin; j<end; j++)
+            {
+                offset = findLeafDistribution(i, instances[j]);
+                base   = (j-begin)*this.goalClasses;
+                for(int k=0; k<this.goalClasses; k++) sumConfidence[base+k] += this.distributions[offset+k];
+            }
+        }
+        for(int j=begin; j<end; j++)
+            classes[j] = pickClass(sumConfidence, (j-begin)*this.goalClasses, confidence != null ? confidence[j] : null);
+    }
+
+    private int pickClass(double []sumConfidence, int base, double []confidence)
+    {
+        int    modeClass;
+        double maxConfidence;
+
+        modeClass = -1;
+        if (this.roots.length > 0)
+        {
+            // Average over the trees. Pick the class with highest confidence.
+            maxConfidence = Double.NEGATIVE_INFINITY;
+            for(int i=0; i<this.goalClasses; i++) sumConfidence[base+i] /= this.roots.length;
+            for(int i=0; i<this.goalClasses; i++)
+            {
+                if (sumConfidence[base+i] >= maxConfidence)
+                {
+                    maxConfidence = sumConfidence[base+i];
+                    modeClass = i;
+                }
+            }
+            if (confidence != null) System.arraycopy(sumConfidence, base, confidence, 0, this.goalClasses);
+        }
+
+        return modeClass;
+    }
+
+    public int getNumberOfTrees()
+    {
+        return this.roots.length;
+    }
+
+    public int getNumberOfNodes()
+    {
+        return this.feature.length;
+    }
+
+    // *********************************************************\
+    // *                      Compilation                      *
+    // *********************************************************/
+    /**
+     * Compile the given runtime trees into one flat forest.
+     * @param trees The runtime trees
+     * @param goalClasses The number of goal classes
+     * @throws LearnerException If a tree contains a node with branches that are not a binary or a categorical split.
+     */
+    public void make(List<RandomForestRuntimeTree> trees, int goalClasses) throws LearnerException
+    {
+        int numNodes;
+        HashMap<String, Integer> distributionOffsets;
+        List<double []> distinctDistributions;
+
+        // Allocate the node arrays for all trees.
+        numNodes = 0;
+        for(RandomForestRuntimeTree tree: trees) numNodes += tree.getConditions().length;
+        this.goalClasses  = goalClasses;
+        this.roots        = new int[trees.size()];
+        this.feature      = new int[numNodes];
+        this.threshold    = new double[numNodes];
+        this.left         = new int[numNodes];
+        this.right        = new int[numNodes];
+        this.distribution = new int[numNodes];
+
+        // Flatten the trees one after the other. Share the class distributions over the entire forest.
+        distributionOffsets   = new HashMap<String, Integer>();
+        distinctDistributions = new ArrayList<double []>();
+        numNodes = 0;
+        for(int i=0; i<trees.size(); i++)
+        {
+            this.roots[i] = numNodes;
+            numNodes = flatten(trees.get(i), numNodes, distributionOffsets, distinctDistributions);
+        }
+
+        this.distributions = new double[distinctDistributions.size()*goalClasses];
+        for(int i=0; i<distinctDistributions.size(); i++)
+            System.arraycopy(distinctDistributions.get(i), 0, this.distributions, i*goalClasses, goalClasses);
+    }
+
+    private int flatten(RandomForestRuntimeTree tree, int firstSlot, HashMap<String, Integer> distributionOffsets, List<double []> distinctDistributions) throws LearnerException
+    {
+        byte   []conditions;
+        int    []attributeIdx, valueIdx, classDistributionIdx;
+        int  [][]branches;
+        double []values;
+        double [][]classDistributions;
+        int    []queue, slot;
+        int      head, tail, nextSlot, node, s;
+        int    []nodeBranches;
+
+        conditions           = tree.getConditions();
+        attributeIdx         = tree.getAttributeIdx();
+        valueIdx             = tree.getValueIdx();
+        classDistributionIdx = tree.getClassDistributionIdx();
+        branches             = tree.getBranches();
+        values               = tree.getValues();
+        classDistributions   = tree.getClassDistributions();
+
+        // Breadth-first through the tree so the branches of each node get consecutive slots.
+        queue    = new int[conditions.length];
+        slot     = new int[conditions.length];
+        head     = 0;
+        tail     = 0;
+        queue[tail++] = 0;
+        slot[0]  = firstSlot;
+        nextSlot = firstSlot+1;
+        while (head < tail)
+        {
+            node = queue[head++];
+            s    = slot[node];
+            this.distribution[s] = distributionOffset(classDistributions[classDistributionIdx[node]], distributionOffsets, distinctDistributions);
+            nodeBranches = branches[node];
+            if (nodeBranches == null || nodeBranches.length == 0)
+            {
+                // Leaf node. Or a node where no split was found.
+                this.feature[s] = -1;
+            }
+            else if (isBinarySplit(nodeBranches, conditions, attributeIdx, valueIdx))
+            {
+                // x < t ? left : right
+                this.feature[s]   = attributeIdx[nodeBranches[0]];
+                this.threshold[s] = values[valueIdx[nodeBranches[0]]];
+                this.left[s]      = nextSlot;
+                this.right[s]     = nextSlot+1;
+            }
+            else if (isCategoricalSplit(nodeBranches, conditions, attributeIdx, valueIdx, values))
+            {
+                // left + x
+                this.feature[s]   = attributeIdx[nodeBranches[0]];
+                this.left[s]      = nextSlot;
+                this.right[s]     = -nodeBranches.length;
+            }
+            else throw new LearnerException("Cannot compile Random Forest tree node with "+nodeBranches.length+" branches that is not a binary or categorical split.");
+
+            // Branches in the next free slots.
+            if (nodeBranches != null)
+            {
+                for(int i=0; i<nodeBranches.length; i++)
+                {
+                    slot[nodeBranches[i]] = nextSlot++;
+                    queue[tail++] = nodeBranches[i];
+                }
+            }
+        }
+
+        return nextSlot;
+    }
+
+    private boolean isBinarySplit(int []nodeBranches, byte []conditions, int []attributeIdx, int []valueIdx)
+    {
+        return nodeBranches.length == 2
+            && conditions[nodeBranches[0]] == TreeNode.IS_SMALLER
+            && conditions[nodeBranches[1]] == TreeNode.IS_GREATER_EQUAL
+            && attributeIdx[nodeBranches[0]] == attributeIdx[nodeBranches[1]]
+            && valueIdx[nodeBranches[0]] == valueIdx[nodeBranches[1]];
+    }
+
+    private boolean isCategoricalSplit(int []nodeBranches, byte []conditions, int []attributeIdx, int []valueIdx, double []values)
+    {
+        boolean categorical;
+
+        // Branch i selects category i of the same attribute.
+        categorical = true;
+        for(int i=0; i<nodeBranches.length && categorical; i++)
+        {
+            categorical = conditions[nodeBranches[i]] == TreeNode.IS_EQUAL
+                       && attributeIdx[nodeBranches[i]] == attributeIdx[nodeBranches[0]]
+                       && values[valueIdx[nodeBranches[i]]] == i;
+        }
+
+        return categorical;
+    }
+
+    private int distributionOffset(double []classDistribution, HashMap<String, Integer> distributionOffsets, List<double []> distinctDistributions)
+    {
+        StringBuilder cdKey;
+        Integer       offset;
+
+        // Same key as the runtime tree uses to find the distinct distributions.
+        cdKey = new StringBuilder();
+        for(int i=0; i<classDistribution.length; i++) cdKey.append("#").append(classDistribution[i]);
+        offset = distributionOffsets.get(cdKey.toString());
+        if (offset == null)
+        {
+            offset = distinctDistributions.size()*this.goalClasses;
+            distributionOffsets.put(cdKey.toString(), offset);
+            distinctDistributions.add(classDistribution);
+        }
+
+        return offset;
+    }
+
+    // *********************************************************\
+    // *                   Binary Persistence                  *
+    // *********************************************************/
+    /**
+     * Write the compiled forest as a compact binary blob.
+     * @param out The stream to write to. Is not closed.
+     * @throws IOException If writing fails.
+     */
+    public void save(OutputStream out) throws IOException
+    {
+        DataOutputStream dout;
+
+        dout = new DataOutputStream(new BufferedOutputStream(out, 1<<16));
+        dout.writeInt(MAGIC);
+        dout.writeInt(VERSION);
+        dout.writeInt(this.goalClasses);
+        dout.writeInt(this.roots.length);
+        dout.writeInt(this.feature.length);
+        dout.writeInt(this.distributions.length);
+        for(int i=0; i<this.roots.length; i++) dout.writeInt(this.roots[i]);
+        for(int i=0; i<this.feature.length; i++)
+        {
+            dout.writeInt(this.feature[i]);
+            dout.writeDouble(this.threshold[i]);
+            dout.writeInt(this.left[i]);
+            dout.writeInt(this.right[i]);
+            dout.writeInt(this.distribution[i]);
+        }
+        for(int i=0; i<this.distributions.length; i++) dout.writeDouble(this.distributions[i]);
+        dout.flush();
+    }
+
+    /**
+     * Read a compiled forest written by <code>save()</code>
+     * Reads no further than the end of the forest, so the stream can go on with other data.
+     * @param in The stream to read from. Is not closed. Buffer it if it is slow to read from.
+     * @throws IOException If reading fails or the stream does not contain a compiled forest.
+     */
+    public void load(InputStream in) throws IOException
+    {
+        DataInputStream din;
+        int numTrees, numNodes, numValues;
+
+        din = new DataInputStream(in);
+        if (din.readInt() != MAGIC)   throw new IOException("Not a compiled Random Forest.");
+        if (din.readInt() != VERSION) throw new IOException("Unknown version of compiled Random Forest.");
+        this.goalClasses  = din.readInt();
+        numTrees          = din.readInt();
+        numNodes          = din.readInt();
+        numValues         = din.readInt();
+        this.roots        = new int[numTrees];
+        this.feature      = new int[numNodes];
+        this.threshold    = new double[numNodes];
+        this.left         = new int[numNodes];
+        this.right        = new int[numNodes];
+        this.distribution = new int[numNodes];
+        this.distributions = new double[numValues];
+        for(int i=0; i<numTrees; i++) this.roots[i] = din.readInt();
+        for(int i=0; i<numNodes; i++)
+        {
+            this.feature[i]      = din.readInt();
+            this.threshold[i]    = din.readDouble();
+            this.left[i]         = din.readInt();
+            this.right[i]        = din.readInt();
+            this.distribution[i] = din.readInt();
+        }
+        for(int i=0; i<numValues; i++) this.distributions[i] = din.readDouble();
+    }
+}
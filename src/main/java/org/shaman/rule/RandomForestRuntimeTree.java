@@ -118,6 +118,15 @@ public class RandomForestRuntimeTree implements Serializable
         return match;
     }
 
+    // Access to the model arrays for RandomForestCompiled
+    byte   []getConditions()           { return this.conditions; }
+    int    []getAttributeIdx()         { return this.attributeIdx; }
+    int    []getValueIdx()             { return this.valueIdx; }
+    int    []getClassDistributionIdx() { return this.classDistributionIdx; }
+    int  [][]getBranches()             { return this.branches; }
+    double []getValues()               { return this.values; }
+    double [][]getClassDistributions() { return this.classDistributions; }
+
     /**
      * Convert a TreeNode trained by the RandomForestTree to this more efficient runtime version.
      * @param root The root of the decision tree.
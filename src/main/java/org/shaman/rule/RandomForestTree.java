@@ -13,13 +13,8 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
-import java.util.TreeMap;
 
 public class RandomForestTree implements Serializable
 {
@@ -27,17 +22,39 @@ public class RandomForestTree implements Serializable
     public static final int NUMBER_OF_VARIABLES_ALL  = 0;        // All: Forest behaves as Bagger ensemble, Tree behaves al plain DecisionTree
     public static final int NUMBER_OF_VARIABLES_SQRT = 1;        // Random Forest: at each decision point, only look at the square root of the total number of attributes
 
+    // Maximum number of split values to try on a continuous attribute
+    private static final int MAX_SPLIT = 20;
+
     // Train data
     private int []attributeDescription;    // [i] = -1: inactive, [i] = 0 : continuous value, [i] = n > 0 : categorical value with n classes
     private int goalClasses;               // Number of classes in the goal attribute
     private RandomForestData data;         // Set of instances to train tree on
     private int [][]outOfBagClass;         // [i][j] = number of time class [j] is predicted when [i] is out-of-bag for a tree.
+    private int []outOfBagInstances;       // [i] = Index of the i-th out-of-bag instance of this tree
+    private int []outOfBagPredictions;     // [i] = Class predicted by this tree for out-of-bag instance i
     // Tree parameters
     private int minObjects;                // Minimum number of instances in leaf node
     private int numberOfVariables;         // Number of variables to consider at each tree-node
     private double trainFraction;          // Fraction of train instances to sub-select for training each Tree
     private int maxDepth;                  // Maximum number of levels in the tree
     private Random random;                 // Random number generator
+    private int [][]presortedInstances;    // [a] = All instances in ascending order of continuous attribute a. Shared by the trees of a forest.
+    // Training buffers
+    private int [][]sortedInstances;       // [a] = In-bag instances in ascending order of continuous attribute a. Partitioned per tree node.
+    private int []nodeInstances;           // In-bag instances. Partitioned per tree node.
+    private int []instanceClass;           // [i] = Goal class of instance i
+    private int []branchOf;                // [i] = Branch instance i goes to in the node being split. -1 = none.
+    private int []partitionBuffer;         // Buffer for partitioning the index arrays
+    private double []values;               // Values of the instances of a node in ascending order
+    private double []distinctValues;       // Distinct values of the instances of a node in ascending order
+    private int []distinctCount;           // [i] = number of instances with distinct value i
+    private double []splitValues;          // Split values to try on a continuous attribute
+    private double splitValue;             // Best split value found by infoGainContinuous()
+    private double []classCount;           // Class counts of the instances in a node
+    private double []leftCount;            // Class counts of the instances lower than a split value
+    private double []rightCount;           // Class counts of the instances higher than a split value
+    private double []categoryCount;        // [i*goalClasses+j] = number of instances of category i and class j
+    private double []categorySize;         // [i] = number of instances of category i
     // Runtime version of tree
     private RandomForestRuntimeTree tree;  // Efficient tree implementation only used for classification.
 
@@ -103,11 +120,12 @@ public class RandomForestTree implements Serializable
     // *********************************************************/
     public void trainTree()
     {
-        int          i;
-        List<Integer> instances, outOfBagInstances;
-        List<Integer> attributes;
+        int            i, numInBag;
+        boolean      []inBag;
+        List<Integer>  outOfBagInstances;
+        List<Integer>  attributes;
 
-        // Make sure there's a Random Generator. Shared with the other trees when part of a Random Forest.
+        // Make sure there's a Random Generator. Seeded by the Random Forest when part of one.
         if (this.random == null) this.random = new Random();
 
         // Minimum number of objects in leaf node
@@ -122,42 +140,56 @@ public class RandomForestTree implements Serializable
             if (this.attributeDescription[i] >= 0) attributes.add(i);
 
         // Pick the instances to train on.
-        instances         = new ArrayList<Integer>(this.data.getNumberOfInstances());
-        outOfBagInstances = new ArrayList<Integer>(this.data.getNumberOfInstances());
-        for (i=0; i<this.data.getNumberOfInstances(); i++)
+        inBag             = new boolean[this.data.getNumberOfInstances()];
+        outOfBagInstances = new ArrayList<Integer>();
+        numInBag          = 0;
+        for (i=0; i<inBag.length; i++)
         {
             // Bagging ensemble: select a fraction of all instances in the Train set. // Remember the other ones as out-of-bag instances.
             if (this.trainFraction > 0 && this.trainFraction < 1.0)
             {
                 if (this.random.nextDouble() <= this.trainFraction)
-                    instances.add(i);
+                     inBag[i] = true;
                 else outOfBagInstances.add(i);
             }
             else
             {
                 // Or just include them all...
-                instances.add(i);
+                inBag[i] = true;
             }
+            if (inBag[i]) numInBag++;
         }
 
+        // Prepare the instance index arrays and buffers used to grow the tree.
+        initTraining(inBag, numInBag);
+
         TreeNode tree;
 
         // Create root node of the Classification Tree.
         tree = new TreeNode();
-        tree.setClassDistribution(getClassDistribution(instances));
+        countClasses(this.nodeInstances, 0, numInBag, this.classCount);
+        tree.setClassDistribution(makeClassDistribution(this.classCount, 0, numInBag));
 
         // Recursively derive the tree branches.
-        findBranches(tree, 1, instances, attributes);
+        findBranches(tree, 1, 0, numInBag, attributes);
+
+        // Training buffers are not needed anymore.
+        cleanUpTraining();
+
+        int oobIndex;
 
         // For all instances that weren't selected (the out-of-bag instances), predict and remember their classification for the out-of-bag error estimate of the Random Forest.
-        if (this.outOfBagClass != null)
+        // Kept with the tree, so trees trained in parallel don't write in the same counters.
+        this.outOfBagInstances   = new int[outOfBagInstances.size()];
+        this.outOfBagPredictions = new int[outOfBagInstances.size()];
+        oobIndex = 0;
+        for(Integer oobInstance: outOfBagInstances)
         {
-            for(Integer oobInstance: outOfBagInstances)
-            {
-                // Increase the counter for the instance / classification combination.
-                this.outOfBagClass[oobInstance][classify(tree, this.data.getInstance(oobInstance), null)]++;
-            }
+            this.outOfBagInstances[oobIndex]   = oobInstance;
+            this.outOfBagPredictions[oobIndex] = classify(tree, this.data.getInstance(oobInstance), null);
+            oobIndex++;
         }
+        if (this.outOfBagClass != null) addOutOfBagVotes(this.outOfBagClass);
 
         RandomForestRuntimeTree runtimeTree;
 
@@ -167,7 +199,22 @@ public class RandomForestTree implements Serializable
         this.tree = runtimeTree;
     }
 
-    private void findBranches(TreeNode treeNode, int depth, List<Integer> instances, List<Integer> attributes)
+    /**
+     * Add the predictions of this tree for its out-of-bag instances to the counters.
+     * The predictions are forgotten afterwards.
+     * @param outOfBagClass [i][j] = number of time class [j] is predicted when [i] is out-of-bag for a tree.
+     */
+    public void addOutOfBagVotes(int [][]outOfBagClass)
+    {
+        if (this.outOfBagInstances != null)
+        {
+            for(int i=0; i<this.outOfBagInstances.length; i++) outOfBagClass[this.outOfBagInstances[i]][this.outOfBagPredictions[i]]++;
+            this.outOfBagInstances   = null;
+            this.outOfBagPredictions = null;
+        }
+    }
+
+    private void findBranches(TreeNode treeNode, int depth, int begin, int end, List<Integer> attributes)
     {
         List<Integer>   selectedAttributes;
 
@@ -198,60 +245,75 @@ public class RandomForestTree implements Serializable
             }
         }
 
-        int             branchAttributeIndex, maxIndex;
-        double          branchInfoGain, maxInfoGain;
-        List<TreeNode> branchConditions, maxBranchConditions;
-        List<Integer>  []branchInstances;
-        List<Integer>  []maxBranchInstances;
+        int     branchAttributeIndex, maxIndex;
+        double  entropyAll, branchInfoGain, maxInfoGain, maxSplit;
+
+        // Calculate the entropy of the instances in the node.
+        countClasses(this.nodeInstances, begin, end, this.classCount);
+        entropyAll = entropy(this.classCount, 0, end-begin);
 
         // Find the attribute with the highest information gain when the instances are split-up accoring to its condition.
-        maxBranchInstances  = null;
-        maxBranchConditions = null;
-        maxIndex = -1;
+        maxIndex    = -1;
+        maxSplit    = Double.NaN;
         maxInfoGain = Double.NEGATIVE_INFINITY;
         for (int i=0; i<selectedAttributes.size(); i++)
         {
             // Calculate information-gain of given Attribute
             branchAttributeIndex = selectedAttributes.get(i);
-            branchConditions     = new LinkedList<TreeNode>();
-            if      (this.attributeDescription[branchAttributeIndex] > 0)
+            if (this.attributeDescription[branchAttributeIndex] > 0)
             {
                 // Infogain by splitting up on categorical value
-                branchInstances = new List[this.attributeDescription[branchAttributeIndex]];
-                branchInfoGain  = infoGainCategorical(instances, branchAttributeIndex, branchInstances, branchConditions);
+                branchInfoGain = infoGainCategorical(begin, end, branchAttributeIndex, entropyAll);
             }
             else
             {
                 // Infogain by splitting continuous values in 2 classes, over/under threshold value.
-                branchInstances = new List[2];
-                branchInfoGain = infoGainContinuous(instances, branchAttributeIndex, branchInstances, branchConditions);
+                branchInfoGain = infoGainContinuous(begin, end, branchAttributeIndex, entropyAll);
             }
             if (branchInfoGain > maxInfoGain)
             {
                 // Remember Attribute with highest gain. Branch on this Attribute
-                maxIndex           = branchAttributeIndex;
-                maxInfoGain        = branchInfoGain;
-                maxBranchInstances = branchInstances;
-                maxBranchConditions = branchConditions;
+                maxIndex    = branchAttributeIndex;
+                maxInfoGain = branchInfoGain;
+                maxSplit    = this.splitValue;
             }
         }
 
-        TreeNode    []branches;
         List<Integer> attributesForBranches;
-        boolean       recurse;
-        double      []branchDistribution;
+        int           numBranches;
 
         // Remove the Attribute of this tree from the list of available Attributes
         attributesForBranches  = new ArrayList<Integer>(attributes);
         attributesForBranches.remove(attributesForBranches.indexOf(maxIndex));
 
+        // Number of branches. No branches when a continuous attribute can't be split.
+        if      (this.attributeDescription[maxIndex] > 0) numBranches = this.attributeDescription[maxIndex];
+        else if (!Double.isNaN(maxSplit))                 numBranches = 2;
+        else                                              numBranches = 0;
+
+        TreeNode    []branches;
+        int         []branchBegin;
+        double      []branchCount;
+        boolean       recurse;
+        double      []branchDistribution;
+        int           branchSize;
+
+        // Split the instances of the node over the branches. Keeps the instances of each branch together in all index arrays.
+        branchCount = new double[numBranches*this.goalClasses];
+        branchBegin = splitInstances(begin, end, maxIndex, maxSplit, numBranches, attributesForBranches, branchCount);
+
         // Install the branches splitting up the most informative attribute.
-        branches = new TreeNode[maxBranchConditions.size()];
+        branches = new TreeNode[numBranches];
         for (int i=0; i<branches.length; i++)
         {
+            // The condition selecting the instances of the branch.
+            if (numBranches == 2 && this.attributeDescription[maxIndex] == 0)
+                 branches[i] = new TreeNode(maxIndex, i == 0 ? TreeNode.IS_SMALLER : TreeNode.IS_GREATER_EQUAL, maxSplit);
+            else branches[i] = new TreeNode(maxIndex, TreeNode.IS_EQUAL, (double)i);
+
             // Calculate the distribution of instances for the TreeNode
-            branches[i] = maxBranchConditions.get(i);
-            branchDistribution = getClassDistribution(maxBranchInstances[i]);
+            branchSize         = branchBegin[i+1] - branchBegin[i];
+            branchDistribution = makeClassDistribution(branchCount, i*this.goalClasses, branchSize);
             branches[i].setClassDistribution(branchDistribution);
 
             // Continue down the branch if:
@@ -260,265 +322,377 @@ public class RandomForestTree implements Serializable
             // - there are attributes to choose from left
             // - there are instances of different classes
             recurse =  (this.maxDepth == 0 || this.maxDepth > depth)
-                    && maxBranchInstances[i].size() >= this.minObjects
+                    && branchSize >= this.minObjects
                     && attributesForBranches.size() > 0;
             for (int j=0; (j<branchDistribution.length) && recurse; j++) if (branchDistribution[j] == 1.0) recurse = false;
             if (recurse)
             {
-                findBranches(branches[i], depth+1, maxBranchInstances[i], attributesForBranches);
+                findBranches(branches[i], depth+1, branchBegin[i], branchBegin[i+1], attributesForBranches);
             }
         }
         treeNode.setBranches(branches);
     }
 
-    private double []getClassDistribution(List<Integer> instances)
+    private double []makeClassDistribution(double []classCount, int offset, int numInstances)
     {
         double []classDistribution;
 
-        // Split the examples up according to their goal class. And calculate class probability distribution.
+        // Class probability distribution of the given class counts.
         classDistribution = new double[this.goalClasses];
-        for (int i=0; i<instances.size(); i++)
+        for (int i=0; i<classDistribution.length; i++) classDistribution[i] = classCount[offset+i] / numInstances;
+
+        return classDistribution;
+    }
+
+    // *********************************************************\
+    // *         Presorted Instance Index Arrays               *
+    // *********************************************************/
+    /**
+     * Sort the instances on the value of each continuous attribute.
+     * Can be done once for all the trees in a forest.
+     * @param data The training data
+     * @param attributeDescription The description of the attributes.
+     * @return [i] = Index of all instances in ascending order of continuous attribute i. null for the other attributes.
+     */
+    public static int [][]presort(RandomForestData data, int []attributeDescription)
+    {
+        int [][]presortedInstances;
+
+        presortedInstances = new int[attributeDescription.length][];
+        for (int i=0; i<attributeDescription.length; i++)
+            if (attributeDescription[i] == 0) presortedInstances[i] = sortOnValue(data, i);
+
+        return presortedInstances;
+    }
+
+    private static int []sortOnValue(RandomForestData data, int attributeIndex)
+    {
+        int      n, width, lo, mid, hi, i, j, k;
+        double []key, keyBuffer, keySwap;
+        int    []index, indexBuffer, indexSwap;
+
+        // Bottom-up merge sort of the values and the instance indices together. NaN sorts last.
+        n           = data.getNumberOfInstances();
+        key         = new double[n];
+        index       = new int[n];
+        keyBuffer   = new double[n];
+        indexBuffer = new int[n];
+        for (i=0; i<n; i++) { key[i] = data.getInstanceValueForAttribute(i, attributeIndex); index[i] = i; }
+        for (width=1; width<n; width*=2)
         {
-            // Add index of current example to list of its class.
-            classDistribution[this.data.getInstanceClass(instances.get(i))]++;
+            for (lo=0; lo<n; lo+=2*width)
+            {
+                mid = Math.min(lo+width, n);
+                hi  = Math.min(lo+2*width, n);
+                i = lo; j = mid; k = lo;
+                while (i < mid && j < hi)
+                {
+                    if (Double.compare(key[j], key[i]) < 0) { keyBuffer[k] = key[j]; indexBuffer[k++] = index[j++]; }
+                    else                                    { keyBuffer[k] = key[i]; indexBuffer[k++] = index[i++]; }
+                }
+                while (i < mid) { keyBuffer[k] = key[i]; indexBuffer[k++] = index[i++]; }
+                while (j < hi)  { keyBuffer[k] = key[j]; indexBuffer[k++] = index[j++]; }
+            }
+            keySwap   = key;   key   = keyBuffer;   keyBuffer   = keySwap;
+            indexSwap = index; index = indexBuffer; indexBuffer = indexSwap;
         }
-        for (int i=0; i<classDistribution.length; i++) classDistribution[i] = classDistribution[i] / instances.size();
 
-        return classDistribution;
+        return index;
+    }
+
+    private void initTraining(boolean []inBag, int numInBag)
+    {
+        int [][]presorted;
+        int     n, maxCategories;
+
+        // The in-bag instances of the node being grown are in [begin, end[ of these index arrays. Per continuous attribute in ascending order.
+        presorted = this.presortedInstances;
+        if (presorted == null) presorted = presort(this.data, this.attributeDescription);
+        this.sortedInstances = new int[this.attributeDescription.length][];
+        for (int i=0; i<presorted.length; i++)
+        {
+            if (presorted[i] != null)
+            {
+                this.sortedInstances[i] = new int[numInBag];
+                n = 0;
+                for (int j=0; j<presorted[i].length; j++) if (inBag[presorted[i][j]]) this.sortedInstances[i][n++] = presorted[i][j];
+            }
+        }
+        this.nodeInstances = new int[numInBag];
+        n = 0;
+        for (int i=0; i<inBag.length; i++) if (inBag[i]) this.nodeInstances[n++] = i;
+
+        // Goal class of all instances and the buffers for the split search.
+        this.instanceClass = new int[inBag.length];
+        for (int i=0; i<inBag.length; i++) if (inBag[i]) this.instanceClass[i] = this.data.getInstanceClass(i);
+        maxCategories = 0;
+        for (int i=0; i<this.attributeDescription.length; i++) maxCategories = Math.max(maxCategories, this.attributeDescription[i]);
+        this.branchOf        = new int[inBag.length];
+        this.partitionBuffer = new int[numInBag];
+        this.values          = new double[numInBag];
+        this.distinctValues  = new double[numInBag];
+        this.distinctCount   = new int[numInBag];
+        this.classCount      = new double[this.goalClasses];
+        this.leftCount       = new double[this.goalClasses];
+        this.rightCount      = new double[this.goalClasses];
+        this.categoryCount   = new double[maxCategories*this.goalClasses];
+        this.categorySize    = new double[maxCategories];
+        this.splitValues     = new double[MAX_SPLIT];
+    }
+
+    private void cleanUpTraining()
+    {
+        this.sortedInstances = null;
+        this.nodeInstances   = null;
+        this.instanceClass   = null;
+        this.branchOf        = null;
+        this.partitionBuffer = null;
+        this.values          = null;
+        this.distinctValues  = null;
+        this.distinctCount   = null;
+        this.categoryCount   = null;
+        this.categorySize    = null;
+    }
+
+    private int []splitInstances(int begin, int end, int attributeIndex, double split, int numBranches, List<Integer> attributesForBranches, double []branchCount)
+    {
+        int    []branchBegin;
+        int      instanceIndex, branch;
+        double   attributeValue;
+
+        // Find the branch of each instance. Count the classes in the branches.
+        branchBegin = new int[numBranches+2];
+        for (int i=begin; i<end; i++)
+        {
+            instanceIndex  = this.nodeInstances[i];
+            attributeValue = this.data.getInstanceValueForAttribute(instanceIndex, attributeIndex);
+            if (numBranches == 0)                             branch = -1;
+            else if (this.attributeDescription[attributeIndex] > 0) branch = (int)attributeValue;
+            else                                              branch = attributeValue < split ? 0 : 1;
+            this.branchOf[instanceIndex] = branch;
+            if (branch != -1)
+            {
+                branchCount[branch*this.goalClasses + this.instanceClass[instanceIndex]]++;
+                branchBegin[branch+1]++;
+            }
+        }
+
+        // Instances of branch i go to [branchBegin[i], branchBegin[i+1][. Instances without a branch (missing category) go last.
+        branchBegin[0] = begin;
+        for (int i=1; i<=numBranches; i++) branchBegin[i] += branchBegin[i-1];
+        branchBegin[numBranches+1] = end;
+
+        // Partition the index arrays that are still needed in the branches. Keeps the order within each branch.
+        partition(this.nodeInstances, begin, end, branchBegin, numBranches);
+        for (Integer attribute: attributesForBranches)
+            if (this.sortedInstances[attribute] != null) partition(this.sortedInstances[attribute], begin, end, branchBegin, numBranches);
+
+        return branchBegin;
+    }
+
+    private void partition(int []instances, int begin, int end, int []branchBegin, int numBranches)
+    {
+        int []position;
+        int   branch;
+
+        // Stable partition of the instances on their branch.
+        position = new int[numBranches+1];
+        for (int i=0; i<=numBranches; i++) position[i] = branchBegin[i]-begin;
+        for (int i=begin; i<end; i++)
+        {
+            branch = this.branchOf[instances[i]];
+            if (branch == -1) branch = numBranches;
+            this.partitionBuffer[position[branch]++] = instances[i];
+        }
+        System.arraycopy(this.partitionBuffer, 0, instances, begin, end-begin);
     }
 
     // *********************************************************\
     // *               Information Gain Criterion              *
     // *********************************************************/
-    private double infoGainContinuous(List<Integer> instances, int attributeIndex, List<Integer>[] branchInstances, List<TreeNode> branchConditions)
+    private double infoGainContinuous(int begin, int end, int attributeIndex, double entropyAll)
     {
-        HashSet<Double> distinctValues;
-        Double []sortedValues;
-        double infoGain, entropyAll;
-
-        // Calculate the entropy of the entire instance set.
-        entropyAll = entropy(instances);
-        infoGain = 0;
+        int    []sortedInstances;
+        int      numInstances, numDistinct, numSplits;
+        double   infoGain;
+
+        // Read the values of the instances in ascending order. Collect the distinct values and how often they occur.
+        sortedInstances = this.sortedInstances[attributeIndex];
+        numInstances    = end-begin;
+        numDistinct     = 0;
+        for (int i=0; i<numInstances; i++)
+        {
+            this.values[i] = this.data.getInstanceValueForAttribute(sortedInstances[begin+i], attributeIndex);
+            if (i == 0 || Double.compare(this.values[i], this.values[i-1]) != 0)
+            {
+                this.distinctValues[numDistinct] = this.values[i];
+                this.distinctCount[numDistinct]  = 0;
+                numDistinct++;
+            }
+            this.distinctCount[numDistinct-1]++;
+        }
 
-        // Find all distinct values of the Attribute in the given instances
-        distinctValues = new HashSet<Double>();
-        for(Integer instanceIndex: instances)
-            distinctValues.add(this.data.getInstanceValueForAttribute(instanceIndex, attributeIndex));
+        infoGain        = 0;
+        this.splitValue = Double.NaN;
 
         // Continue when there's at least 2 value to split on...
-        if (distinctValues.size() >= 2)
+        if (numDistinct >= 2)
         {
-            // Sort the distinct values.
-            sortedValues = distinctValues.toArray(new Double[distinctValues.size()]);
-            Arrays.sort(sortedValues);
-
-            Integer instanceIndex;
-            Double []splitValues;
-            double instanceValue, split, maxSplit, maxInfoGain, infoGainSplit;
-            List<Integer> []splitInstances, maxSplitInstances;
+            int    pos, numLeft, numRight;
+            double split, maxSplit, maxInfoGain, infoGainSplit;
 
             // Try splitting up the instances. Remember the split with the highest infoGain.
-            splitValues = makeSplitValues(sortedValues, instances, attributeIndex);
+            numSplits   = makeSplitValues(numDistinct, numInstances);
             maxInfoGain = Double.NEGATIVE_INFINITY;
-            maxSplit = Double.NaN;
-            maxSplitInstances = new List[2];
-            splitInstances = new List[]{new ArrayList<Integer>(instances.size()), new ArrayList<Integer>(instances.size())};
+            maxSplit    = Double.NaN;
 
-            // For all split values.
-            for(int i=0; i<splitValues.length; i++)
+            // The split values are ascending. The instances lower than the split are at the start of the sorted instances.
+            for (int i=0; i<this.goalClasses; i++) this.leftCount[i] = 0;
+            pos = 0;
+            for (int i=0; i<numSplits; i++)
             {
+                // Nothing is lower than NaN. Can't have higher information gain.
+                split = this.splitValues[i];
+                if (Double.isNaN(split)) continue;
+
                 // Collect the instances lower / higher than the split.
-                split = splitValues[i];
-                splitInstances[0].clear();
-                splitInstances[1].clear();
-                for(int j=0; j<instances.size(); j++)
+                while (pos < numInstances && this.values[pos] < split)
                 {
-                    instanceIndex = instances.get(j);
-                    instanceValue = this.data.getInstanceValueForAttribute(instanceIndex, attributeIndex);
-                    if (instanceValue < split)
-                        splitInstances[0].add(instanceIndex);
-                    else splitInstances[1].add(instanceIndex);
+                    this.leftCount[this.instanceClass[sortedInstances[begin+pos]]]++;
+                    pos++;
                 }
+                numLeft  = pos;
+                numRight = numInstances-pos;
+                for (int j=0; j<this.goalClasses; j++) this.rightCount[j] = this.classCount[j] - this.leftCount[j];
 
                 // Calculate the information gain obtained by splitting up the instances like this.
-                infoGainSplit = entropyAll - ((entropy(splitInstances[0])*splitInstances[0].size())/instances.size() + (entropy(splitInstances[1])*splitInstances[1].size())/instances.size());
+                infoGainSplit = entropyAll - ((entropy(this.leftCount, 0, numLeft)*numLeft)/numInstances + (entropy(this.rightCount, 0, numRight)*numRight)/numInstances);
 
                 // Remember the split value with the highest information gain.
                 if (infoGainSplit > maxInfoGain)
                 {
                     maxInfoGain = infoGainSplit;
                     maxSplit = split;
-                    maxSplitInstances[0] = new ArrayList<Integer>(splitInstances[0]);
-                    maxSplitInstances[1] = new ArrayList<Integer>(splitInstances[1]);
                 }
             }
 
+            // The 2 branches go on the split-value with the highest information gain.
             if (!Double.isNaN(maxSplit))
             {
-                // Create the 2 branches on the split-value with the highest information gain. Return the instances split-up like this as well.
-                infoGain = maxInfoGain;
-                branchInstances[0] = maxSplitInstances[0];
-                branchInstances[1] = maxSplitInstances[1];
-                branchConditions.add(new TreeNode(attributeIndex, TreeNode.IS_SMALLER, maxSplit));
-                branchConditions.add(new TreeNode(attributeIndex, TreeNode.IS_GREATER_EQUAL, maxSplit));
+                infoGain        = maxInfoGain;
+                this.splitValue = maxSplit;
             }
         }
         // All values are the same. So can't split up and gain information.
-        else infoGain = 0;
 
         return infoGain;
     }
 
-    private Double []makeSplitValues(Double []sortedValues, List<Integer> instances, int attributeIndex)
+    private int makeSplitValues(int numDistinct, int numInstances)
     {
-        final int MAX_SPLIT = 20;
-        List<Double> splitsList;
+        int numSplits;
 
-        splitsList = new LinkedList<Double>();
-        if (sortedValues.length < MAX_SPLIT)
+        numSplits = 0;
+        if (numDistinct < MAX_SPLIT)
         {
-            double value, nextValue, split;
-            int distinctPos, step;
-
-            step = 1;
-            distinctPos = 1;
-            while(distinctPos < sortedValues.length)
-            {
-                value = sortedValues[distinctPos-1];
-                nextValue = sortedValues[distinctPos];
-                split = (value+nextValue)/2;
-                splitsList.add(split);
-
-                distinctPos += step;
-            }
+            // Halfway between each pair of distinct values.
+            for (int i=1; i<numDistinct; i++)
+                this.splitValues[numSplits++] = (this.distinctValues[i-1]+this.distinctValues[i])/2;
         }
         else
         {
-            TreeMap<Double, int []> distinctCount;
-            double instanceValue;
-
-            distinctCount = new TreeMap<Double, int []>();
-            for(Double value: sortedValues) distinctCount.put(value, new int[]{0});
-            for(Integer instanceIndex: instances)
-            {
-                instanceValue = this.data.getInstanceValueForAttribute(instanceIndex, attributeIndex);
-                distinctCount.get(instanceValue)[0]++;
-            }
-
             double step, stepLimit;
-            double sumIns, value, nextValue;
-            Iterator<Double> itValue;
+            double sumIns, value;
+            int    next;
 
-            step = (double)instances.size() / MAX_SPLIT;
+            // Distinct values at roughly equal numbers of instances apart.
+            step = (double)numInstances / MAX_SPLIT;
             sumIns = 0;
             stepLimit = step/2.0;
-            itValue = distinctCount.keySet().iterator();
-            while(itValue.hasNext() && splitsList.size() < MAX_SPLIT)
+            next = 0;
+            while(next < numDistinct && numSplits < MAX_SPLIT)
             {
-                value = itValue.next();
-                sumIns += distinctCount.get(value)[0];
-                while(sumIns < stepLimit && itValue.hasNext())
+                value = this.distinctValues[next];
+                sumIns += this.distinctCount[next++];
+                while(sumIns < stepLimit && next < numDistinct)
                 {
-                    value = itValue.next();
-                    sumIns += distinctCount.get(value)[0];
+                    value = this.distinctValues[next];
+                    sumIns += this.distinctCount[next++];
                 }
-                if (itValue.hasNext())
+                if (next < numDistinct)
                 {
                     stepLimit += step;
-                    splitsList.add(value);
+                    this.splitValues[numSplits++] = value;
                 }
             }
         }
 
-        return splitsList.toArray(new Double[splitsList.size()]);
+        return numSplits;
     }
 
-    private double infoGainCategorical(List<Integer> instances, int attributeIndex, List<Integer>[] branchInstances, List<TreeNode> branchConditions)
+    private double infoGainCategorical(int begin, int end, int attributeIndex, double entropyAll)
     {
-        int             instanceIndex;
-        int             missingCategory, instanceCategory;
-        double          attributeValue;
+        int             instanceIndex, numCategories;
+        int             instanceCategory;
         int             cntAll;
-        double        []cntBranch;
-        double          infoGain, entropyAll, entropyPartitions;
-
-        // Calculate the entropy of the entire instance set.
-        entropyAll = entropy(instances);
-
-        // Make empty sets that will contain the instances partitioned on their value at the given Attribute
-        for (int i=0; i<branchInstances.length; i++)
-        {
-            branchInstances[i] = new ArrayList<Integer>(instances.size());
+        double          infoGain, entropyPartitions;
 
-            // Create the conditions that select the various categories of the Attribute.
-            branchConditions.add(new TreeNode(attributeIndex, TreeNode.IS_EQUAL, (double)i));
-        }
-
-        // Partition the instance in the branches according to the Attribute
-        cntBranch = new double[branchInstances.length];
-        cntAll    = 0;
-        for (int i=0; i<instances.size(); i++)
+        // Count the classes of the instances in each category of the Attribute.
+        numCategories = this.attributeDescription[attributeIndex];
+        for (int i=0; i<numCategories*this.goalClasses; i++) this.categoryCount[i] = 0;
+        for (int i=0; i<numCategories; i++)                  this.categorySize[i]  = 0;
+        cntAll = 0;
+        for (int i=begin; i<end; i++)
         {
-            instanceIndex = instances.get(i);
+            instanceIndex    = this.nodeInstances[i];
+            instanceCategory = (int)this.data.getInstanceValueForAttribute(instanceIndex, attributeIndex);
 
-            // Find the category of the instance's value.
-            attributeValue   = this.data.getInstanceValueForAttribute(instanceIndex, attributeIndex);
-            instanceCategory = (int)attributeValue;
-
-            // Add current example to it's branch's example list.
+            // Missing values are not counted.
             if (instanceCategory != -1)
             {
-                branchInstances[instanceCategory].add(instanceIndex);
-                cntBranch[instanceCategory]++;
+                this.categoryCount[instanceCategory*this.goalClasses + this.instanceClass[instanceIndex]]++;
+                this.categorySize[instanceCategory]++;
                 cntAll++;
             }
         }
 
         // Calculate the entropy over the partitions
-        entropyPartitions    = 0;
-        for (int i=0; i<branchInstances.length; i++)
+        entropyPartitions = 0;
+        for (int i=0; i<numCategories; i++)
         {
-            if (cntBranch[i] > 0)
+            if (this.categorySize[i] > 0)
             {
-                entropyPartitions += (cntBranch[i] / cntAll) * entropy(branchInstances[i]);
+                entropyPartitions += (this.categorySize[i] / cntAll) * entropy(this.categoryCount, i*this.goalClasses, this.categorySize[i]);
             }
         }
 
         // Information gain is the difference between entropy of the entire set and the entropy over the partitions
         infoGain = entropyAll - entropyPartitions;
+        this.splitValue = Double.NaN;
 
         return(infoGain);
     }
 
-    private double entropy(List<Integer> instances)
+    private void countClasses(int []instances, int begin, int end, double []classCount)
+    {
+        for (int i=0; i<classCount.length; i++) classCount[i] = 0;
+        for (int i=begin; i<end; i++) classCount[this.instanceClass[instances[i]]]++;
+    }
+
+    private double entropy(double []cntClass, int offset, double cntAll)
     {
-        int      instanceIndex, instanceClass;
         double   log2;
-        double   cntAll;
-        double []cntClass;
-        double []pclass;
+        double   pclass;
         double   entropy;
 
         log2 = Math.log(2.0);
 
-        // Calculate the entropy of the given set of instances.
-        cntClass = new double[this.goalClasses];
-        pclass   = new double[this.goalClasses];
-        for (int i=0; i<cntClass.length; i++) { pclass[i] = 0; cntClass[i] = 0; }
-        cntAll = 0;
-        for (int i=0; i<instances.size(); i++)
-        {
-            instanceIndex = instances.get(i);
-            instanceClass = this.data.getInstanceClass(instanceIndex);
-            cntClass[instanceClass]++;
-            cntAll++;
-        }
-        for (int i=0; i<cntClass.length; i++) pclass[i] = cntClass[i] / cntAll;
-
+        // Calculate the entropy of the given class counts.
         entropy = 0;
-        for (int i=0; i<cntClass.length; i++)
+        for (int i=0; i<this.goalClasses; i++)
         {
-            if (pclass[i] != 0) entropy -= pclass[i]*(Math.log(pclass[i])/log2);
+            pclass = cntClass[offset+i] / cntAll;
+            if (pclass != 0) entropy -= pclass*(Math.log(pclass)/log2);
         }
 
         return(entropy);
@@ -608,4 +782,18 @@ public class RandomForestTree implements Serializable
     {
         this.outOfBagClass = outOfBagClass;
     }
+
+    /**
+     * Set the instances sorted on their continuous attribute values. Saves each tree of a forest from sorting them.
+     * @param presortedInstances As made by <code>presort()</code>
+     */
+    public void setPresortedInstances(int [][]presortedInstances)
+    {
+        this.presortedInstances = presortedInstances;
+    }
+
+    RandomForestRuntimeTree getRuntimeTree()
+    {
+        return this.tree;
+    }
 }
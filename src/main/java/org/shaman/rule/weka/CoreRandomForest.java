@@ -40,6 +40,7 @@ public class CoreRandomForest extends AbstractClassifier implements OptionHandle
     private int numberOfVariables = RandomForestTree.NUMBER_OF_VARIABLES_SQRT;         // Number of variables to consider at each tree-node
     private int numberOfTrees= 10;                  // The number of decision trees in the ensemble
     private int randomSeed = 1;                     // Random generator seed
+    private int numberOfThreads = 0;                // Number of execution slots. 0 = number of processors.
     // --------
     private RandomForest randomForest;
 
@@ -76,6 +77,7 @@ public class CoreRandomForest extends AbstractClassifier implements OptionHandle
         randomForest.setTrainFraction(this.trainFraction);
         randomForest.setMaxDepth(this.maxDepth);
         randomForest.setRandomSeed(this.randomSeed);
+        randomForest.setNumberOfThreads(this.numberOfThreads);
         randomForest.train();
         this.randomForest = randomForest;
     }
@@ -211,6 +213,32 @@ public class CoreRandomForest extends AbstractClassifier implements OptionHandle
         return confidence;
     }
 
+    /**
+     * Returns the class probability distributions of a set of instances.
+     * The instances are classified in blocks, in parallel.
+     *
+     * @param instances the instances to be classified
+     * @return the distribution the forest generates for each instance
+     * @throws Exception if computation fails
+     */
+    public double[][] distributionsForInstances(Instances instances) throws Exception
+    {
+        double [][]data;
+        double [][]confidence;
+
+        data = new double[instances.numInstances()][];
+        confidence = new double[instances.numInstances()][getGoalClasses(instances)];
+        for(int i=0; i<data.length; i++) data[i] = instances.instance(i).toDoubleArray();
+        this.randomForest.classify(data, confidence);
+
+        return confidence;
+    }
+
+    public boolean implementsMoreEfficientBatchPrediction()
+    {
+        return true;
+    }
+
     public String globalInfo()
     {
         return "Class for constructing a forest of decision trees.\n\nFor more information see: \n\n"+ getTechnicalInformation().toString();
@@ -308,6 +336,21 @@ public class CoreRandomForest extends AbstractClassifier implements OptionHandle
         return this.randomSeed;
     }
 
+    public String numExecutionSlotsTipText()
+    {
+        return "The number of execution slots (threads) to use for constructing the forest and classifying batches. 0 = number of processors.";
+    }
+
+    public void setNumExecutionSlots(int numSlots)
+    {
+        this.numberOfThreads = numSlots;
+    }
+
+    public int getNumExecutionSlots()
+    {
+        return this.numberOfThreads;
+    }
+
     public String maxDepthTipText()
     {
         return "The maximum depth of the trees, 0 for unlimited.";
@@ -391,6 +434,11 @@ public class CoreRandomForest extends AbstractClassifier implements OptionHandle
                         + "\t(default 1)",
                 "S", 1, "-S"));
 
+        newVector.addElement(new Option(
+                "\tNumber of execution slots.\n"
+                        + "\t(default 0 - use all available processors)",
+                "num-slots", 1, "-num-slots <num>"));
+
         Enumeration enu = super.listOptions();
         while (enu.hasMoreElements())
         {
@@ -429,6 +477,9 @@ public class CoreRandomForest extends AbstractClassifier implements OptionHandle
         result.add("-S");
         result.add("" + getSeed());
 
+        result.add("-num-slots");
+        result.add("" + getNumExecutionSlots());
+
         options = super.getOptions();
         for (i = 0; i < options.length; i++) result.add(options[i]);
 
@@ -459,6 +510,10 @@ public class CoreRandomForest extends AbstractClassifier implements OptionHandle
      *  The maximum depth of the trees, 0 for unlimited.
      *  (default 0)</pre>
      *
+     * <pre> -num-slots &lt;num&gt;
+     *  Number of execution slots.
+     *  (default 0 - use all available processors)</pre>
+     *
      * <pre> -D
      *  If set, classifier is run in debug mode and
      *  may output additional info to the console</pre>
@@ -511,6 +566,13 @@ public class CoreRandomForest extends AbstractClassifier implements OptionHandle
         } else {
             setSeed(1);
         }
+
+        tmpStr = Utils.getOption("num-slots", options);
+        if (tmpStr.length() != 0) {
+            setNumExecutionSlots(Integer.parseInt(tmpStr));
+        } else {
+            setNumExecutionSlots(0);
+        }
         super.setOptions(options);
 
         Utils.checkForRemainingOptions(options);
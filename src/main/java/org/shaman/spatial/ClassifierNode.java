@@ -8,17 +8,57 @@ import weka.core.Instances;
 
 public class ClassifierNode // TODO: extends org.shaman.graph.Node implements .GraphNode
 {
-    private Instances  data;                  // The dataset to train the classifier on
-    private AbstractClassifier classifier;      // The Weka Classifier used to test instances on
-    private AbstractClassifier trainClassiifer; // and the one to train the dataset on
+    private volatile NodeData           current;          // The current version of the dataset to train the classifier on
+    private volatile AbstractClassifier classifier;       // The Weka Classifier used to test instances on
+    private AbstractClassifier          template;         // and the untrained copy to train new ones from
     
-    private Instances  selectedInstances;      // The instances selected for the next epoch
+    private volatile Instances  selectedInstances;      // The instances selected for the next epoch
+    
+    /**
+     * Version of the dataset of a Node together with the weights of its instances.
+     * A version is never changed after it is published. Neighbors read it without locking
+     * while the Node prepares the next one.
+     */
+    public static final class NodeData
+    {
+        private final Instances data;
+        private final double  []weights;    // null when the weights of the instances themselves are used
+        private final int       version;
+        
+        NodeData(Instances data, double []weights, int version)
+        {
+            this.data    = data;
+            this.weights = weights;
+            this.version = version;
+        }
         
-    // Dataset to train on
-    public synchronized void setData(Instances data)
+        public Instances getData()    { return this.data; }
+        public int       getVersion() { return this.version; }
+        
+        public double getWeight(int i)
+        {
+            if (this.weights == null) return(this.data.instance(i).weight());
+            else                      return(this.weights[i]);
+        }
+    }
+    
+    // Dataset to train on. Publishes a new version.
+    public void setData(Instances data)
     {
-    	
-        this.data = data;
+        NodeData prev = this.current;
+        this.current = new NodeData(data, null, (prev == null) ? 0 : prev.version+1);
+    }
+    
+    // Weights of the current dataset. Publishes a new version, the instances are not changed.
+    public void setWeights(double []weights)
+    {
+        NodeData prev = this.current;
+        this.current = new NodeData(prev.data, weights, prev.version+1);
+    }
+    
+    public NodeData getNodeData()
+    {
+        return this.current;
     }
     
     public Classifier getClassifier(){
@@ -28,40 +68,47 @@ public class ClassifierNode // TODO: extends org.shaman.graph.Node implements .G
     public void setClassifier(AbstractClassifier classifier) throws Exception
     {
         // Make a copy of the Classifier template to train with and to test on.
-        this.classifier      = (AbstractClassifier)AbstractClassifier.makeCopy(classifier);
-        this.trainClassiifer = (AbstractClassifier)AbstractClassifier.makeCopy(classifier);
+        this.classifier = (AbstractClassifier)AbstractClassifier.makeCopy(classifier);
+        this.template   = (AbstractClassifier)AbstractClassifier.makeCopy(classifier);
     }
     
-    public synchronized Instances getData()
+    public Instances getData()
     {
-        return this.data;
+        NodeData now = this.current;
+        return (now == null) ? null : now.data;
     }
     
     // Derive classification model from dataset
     public void train() throws Exception
     {
-        this.classifier.buildClassifier(this.data);
+        this.classifier.buildClassifier(this.current.data);
     }
     
+    // Train a new classifier while neighbors keep testing on the current one. Publish it when done.
     public void trainSafe() throws Exception
     {
-        AbstractClassifier trainClassifier, tempClassifier;
+        AbstractClassifier trainClassifier;
         
-        trainClassifier = this.trainClassiifer;
-        tempClassifier  = this.classifier;
-        trainClassifier.buildClassifier(this.data);
-        this.classifier      = trainClassifier;
-        this.trainClassiifer = tempClassifier;
+        trainClassifier = (AbstractClassifier)AbstractClassifier.makeCopy(this.template);
+        trainClassifier.buildClassifier(this.current.data);
+        this.classifier = trainClassifier;
     }
     
     // Set label of instance and return confidence of classification
     public double classify(Instance instance) throws Exception
     {
+        AbstractClassifier now;
         double []pc;
         double   maxp;
 
+        // Neighbors test on this Node's classifier at the same time. Weka classifiers aren't thread-safe
+        // (e.g. NaiveBayes discretizes with a Filter), so one classification at a time per classifier.
         maxp = Double.NEGATIVE_INFINITY;
-        pc   = this.classifier.distributionForInstance(instance);
+        now  = this.classifier;
+        synchronized(now)
+        {
+            pc = now.distributionForInstance(instance);
+        }
         for(int i=0; i<pc.length; i++)
             if (pc[i] > maxp) maxp = pc[i];
         
@@ -94,12 +141,12 @@ public class ClassifierNode // TODO: extends org.shaman.graph.Node implements .G
         return(cmatrix);
     }
     
-    public synchronized void setSelectedInstances(Instances instances)
+    public void setSelectedInstances(Instances instances)
     {
         this.selectedInstances = instances;
     }
     
-    public synchronized Instances getSelectedInstances()
+    public Instances getSelectedInstances()
     {
         return this.selectedInstances;
     }
@@ -33,11 +33,15 @@ public class CoreDataSet
     }
     
     public void readWekaDataSet(String dataSetName) throws Exception
+    {
+        readWekaDataSet("/Users/johan/SoftDev/Papers/Spatial Ensemble Learning/datasets/", dataSetName);
+    }
+    
+    public void readWekaDataSet(String dataDir, String dataSetName) throws Exception
     {
         DataSource source;
         Attribute attribute;
         Instances dataSet;
-        String dataDir = "/Users/johan/SoftDev/Papers/Spatial Ensemble Learning/datasets/";
 
         // Read the dataSet
         source = new DataSource(dataDir+"/"+dataSetName);
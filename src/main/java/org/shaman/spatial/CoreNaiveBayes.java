@@ -130,7 +130,7 @@ public class CoreNaiveBayes
         return(cl);
     }
     
-    private void experiment()
+    long experiment()
     {
         // Create data-structures for training.
         double sumerror;
@@ -158,6 +158,8 @@ public class CoreNaiveBayes
         System.out.println("Average classification error in "+i+" runs: "+sumerror);
         trun = (tend-tbeg)/i;
         System.out.println("Total time: "+(tend-tbeg)+". Average time per run: "+trun);
+
+        return(trun);
     }
     
     private void randomizeInstances()
@@ -205,7 +207,7 @@ public class CoreNaiveBayes
     }
 
 
-    private void convertDataSet() throws Exception
+    void convertDataSet() throws Exception
     {
         Instances dataSet;
         int i,j;
@@ -273,7 +275,7 @@ public class CoreNaiveBayes
     }
 
 
-    private void setDataSet(CoreDataSet data)
+    void setDataSet(CoreDataSet data)
     {
         this.dataSet = data;
     }
@@ -1,12 +1,21 @@
 package org.shaman.spatial;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import com.aparapi.Kernel;
 import com.aparapi.Range;
+import com.aparapi.device.Device;
+import com.aparapi.device.OpenCLDevice;
+import com.aparapi.internal.kernel.KernelManager;
 
 import cern.jet.random.Uniform;
 
@@ -15,9 +24,17 @@ import weka.core.Instances;
 
 public class CoreNaiveBayesGPU
 {
-    // Enable OpenCL?
-    public static final boolean GPU = true;
-    //public static final boolean GPU = false;
+    // Where to train and test
+    public static final int BACKEND_AUTO   = 0;   // OpenCL when there is a device. Otherwise the CPU backend.
+    public static final int BACKEND_OPENCL = 1;   // Aparapi Kernels on the best OpenCL device
+    public static final int BACKEND_JTP    = 2;   // Aparapi Kernels in Aparapi's Java Thread Pool
+    public static final int BACKEND_CPU    = 3;   // Multi-threaded Java on ranges of instances
+    public static final int BACKEND_JAVA   = 4;   // Single-threaded Java
+    private static final String []BACKEND_NAMES = new String[]{"Auto", "OpenCL", "Aparapi JTP", "CPU", "Java"};
+
+    private int backend = BACKEND_AUTO;
+    private int activeBackend;                    // The backend in use. Never BACKEND_AUTO.
+    private int numberOfThreads;                  // Threads of the CPU backend. <= 0 for the number of processors.
 
     private CoreDataSet dataSet;
 
@@ -41,6 +58,8 @@ public class CoreNaiveBayesGPU
     // The OpenCL Kernels
     private NaiveBayesTrainKernel trainKernel;
     private NaiveBayesTestKernel  testKernel;
+    // or their CPU version
+    private NaiveBayesCPU         cpu;
 
     public static class NaiveBayesTestKernel extends Kernel
     {
@@ -139,6 +158,264 @@ public class CoreNaiveBayesGPU
         }
     }
 
+    /**
+     * Multi-threaded CPU version of the Kernels working on the same arrays.
+     * The instances are split in ranges that run on a pool of threads.
+     * Training counts every range in its own arrays that are summed afterwards, so without atomic updates.
+     * Testing uses a copy of p(aij|vk) with the goal classes innermost. The loop over the goal classes
+     * then reads consecutive floats and is vectorized by the JIT compiler.
+     */
+    public static class NaiveBayesCPU
+    {
+        private static final int MIN_RANGE = 1024;   // Don't split in ranges with less instances
+
+        final private int   []trainData;
+        final private int   []testData;
+        final private float []paijvk;
+        final private float []pvk;
+        final private int   []caijvk;
+        final private int   []cvk;
+        final private int   []testClass;
+        final private int     numAttributes;
+        final private int     numGoal;
+        final private int   []numDistinct;
+        final private int   []sumDistinct;
+        final private int     sumDistinctAll;
+        final private int     classIdx;
+        final private int     threads;
+        final private float []paijvkT;   // p(aij|vk) indexed with [i][j][k]
+        private ForkJoinPool  pool;
+
+        interface RangeTask
+        {
+            void run(int range, int beg, int end);
+        }
+
+        public NaiveBayesCPU(int []trainData, int []testData, float []paijvk, float []pvk, int []caijvk, int []cvk, int []testClass,
+                             int numAttributes, int numGoal, int []numDistinct, int []sumDistinct, int sumDistinctAll, int classIdx, int threads)
+        {
+            this.trainData = trainData;
+            this.testData  = testData;
+            this.paijvk    = paijvk;
+            this.pvk       = pvk;
+            this.caijvk    = caijvk;
+            this.cvk       = cvk;
+            this.testClass = testClass;
+            this.numAttributes  = numAttributes;
+            this.numGoal        = numGoal;
+            this.numDistinct    = numDistinct;
+            this.sumDistinct    = sumDistinct;
+            this.sumDistinctAll = sumDistinctAll;
+            this.classIdx       = classIdx;
+            this.threads        = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+            this.paijvkT        = new float[sumDistinctAll*numGoal];
+            if (this.threads > 1) this.pool = new ForkJoinPool(this.threads);
+        }
+
+        // Count co-occurences of all Attribute values and goal classes. Adds to the (cleared) counters.
+        public void train(int numInstances)
+        {
+            final int [][]rangeCaijvk;
+            final int [][]rangeCvk;
+            int           ranges;
+
+            ranges      = numberOfRanges(numInstances);
+            rangeCaijvk = new int[ranges][];
+            rangeCvk    = new int[ranges][];
+            runRanges(ranges, numInstances, new RangeTask()
+            {
+                public void run(int range, int beg, int end)
+                {
+                    int []caijvk, cvk;
+                    int   i, j, pos, goalIdx, goalOff, stride;
+
+                    // The first range counts in the model, the others in their own arrays.
+                    if (range == 0) { caijvk = NaiveBayesCPU.this.caijvk;        cvk = NaiveBayesCPU.this.cvk; }
+                    else            { caijvk = new int[NaiveBayesCPU.this.caijvk.length]; cvk = new int[numGoal]; }
+                    stride = numAttributes*sumDistinctAll;
+                    for (i=beg; i<end; i++)
+                    {
+                        pos     = i*numAttributes;
+                        goalIdx = trainData[pos+classIdx];
+                        goalOff = goalIdx*stride;
+                        cvk[goalIdx]++;
+                        for (j=0; j<numAttributes; j++) caijvk[goalOff + j*sumDistinct[j] + trainData[pos+j]]++;
+                    }
+                    rangeCaijvk[range] = caijvk;
+                    rangeCvk[range]    = cvk;
+                }
+            });
+
+            // Sum the counters of the ranges.
+            if (ranges > 1)
+            {
+                final int numRanges = ranges;
+
+                runRanges(numberOfRanges(this.caijvk.length), this.caijvk.length, new RangeTask()
+                {
+                    public void run(int range, int beg, int end)
+                    {
+                        int []caijvk = NaiveBayesCPU.this.caijvk;
+                        for (int r=1; r<numRanges; r++)
+                        {
+                            int []count = rangeCaijvk[r];
+                            for (int i=beg; i<end; i++) caijvk[i] += count[i];
+                        }
+                    }
+                });
+                for (int r=1; r<ranges; r++)
+                    for (int i=0; i<numGoal; i++) this.cvk[i] += rangeCvk[r][i];
+            }
+        }
+
+        // Classify the test instances.
+        public void test(int numInstances)
+        {
+            int i, j, k, pidx, tidx;
+
+            // Copy p(aij|vk) with the goal classes innermost.
+            for (i=0; i<this.numGoal; i++)
+            {
+                for (j=0; j<this.numAttributes; j++)
+                {
+                    pidx = i*(this.numAttributes*this.sumDistinctAll) + j*(this.sumDistinct[j]);
+                    tidx = this.sumDistinct[j]*this.numGoal + i;
+                    for (k=0; k<this.numDistinct[j]; k++) this.paijvkT[tidx + k*this.numGoal] = this.paijvk[pidx+k];
+                }
+            }
+
+            runRanges(numberOfRanges(numInstances), numInstances, new RangeTask()
+            {
+                public void run(int range, int beg, int end)
+                {
+                    float []pcl;
+                    float []paijvkT;
+                    float   max;
+                    int     i, j, k, cl, idx, tidx, numGoal;
+
+                    numGoal = NaiveBayesCPU.this.numGoal;
+                    paijvkT = NaiveBayesCPU.this.paijvkT;
+                    pcl     = new float[numGoal];
+                    for (i=beg; i<end; i++)
+                    {
+                        // Multiply the probabilities of all goal classes at once. Same order of multiplication as the Kernel.
+                        idx = i*numAttributes;
+                        for (k=0; k<numGoal; k++) pcl[k] = 1.0f;
+                        for (j=0; j<numAttributes; j++)
+                        {
+                            tidx = (sumDistinct[j] + testData[idx+j])*numGoal;
+                            for (k=0; k<numGoal; k++) pcl[k] *= paijvkT[tidx+k];
+                        }
+
+                        // Output is class with highest probability.
+                        max = -1;
+                        cl  = -1;
+                        for (k=0; k<numGoal; k++)
+                        {
+                            pcl[k] *= pvk[k];
+                            if (pcl[k] > max) { cl = k; max = pcl[k]; }
+                        }
+                        testClass[i] = cl;
+                    }
+                }
+            });
+        }
+
+        private int numberOfRanges(int n)
+        {
+            return Math.max(1, Math.min(this.threads, n / MIN_RANGE));
+        }
+
+        private void runRanges(int ranges, int n, final RangeTask task)
+        {
+            List<Callable<Object>> tasks;
+
+            // Run on the calling thread when there is only 1 range.
+            if ((ranges <= 1) || (this.pool == null))
+            {
+                task.run(0, 0, n);
+                return;
+            }
+
+            tasks = new ArrayList<Callable<Object>>(ranges);
+            for (int r=0; r<ranges; r++)
+            {
+                final int range = r;
+                final int beg   = (int)(((long)n*r)/ranges);
+                final int end   = (int)(((long)n*(r+1))/ranges);
+                tasks.add(new Callable<Object>()
+                {
+                    public Object call() throws Exception
+                    {
+                        task.run(range, beg, end);
+                        return null;
+                    }
+                });
+            }
+            try
+            {
+                for (Future<Object> done: this.pool.invokeAll(tasks)) done.get();
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+            catch(ExecutionException ex)
+            {
+                if (ex.getCause() instanceof RuntimeException) throw (RuntimeException)ex.getCause();
+                else                                           throw new IllegalStateException(ex.getCause());
+            }
+        }
+
+        public void dispose()
+        {
+            if (this.pool != null) this.pool.shutdown();
+            this.pool = null;
+        }
+    }
+
+    // **********************************************************\
+    // *                 Backend Selection                      *
+    // **********************************************************/
+    /**
+     * Set where to train and test. The default BACKEND_AUTO uses the OpenCL Kernels when there is an
+     * OpenCL device and the multi-threaded CPU backend when there is none.
+     * @param backend One of the BACKEND_ constants
+     */
+    public void setBackend(int backend)
+    {
+        if ((backend < BACKEND_AUTO) || (backend > BACKEND_JAVA))
+            throw new IllegalArgumentException("Unknown backend "+backend);
+        this.backend = backend;
+    }
+
+    public int getBackend() { return this.backend; }
+
+    /**
+     * The backend chosen by the last initExperiment(). Never BACKEND_AUTO.
+     * @return One of the BACKEND_ constants
+     */
+    public int getActiveBackend() { return this.activeBackend; }
+
+    public void setNumberOfThreads(int numberOfThreads) { this.numberOfThreads = numberOfThreads; }
+
+    /**
+     * Check if Aparapi found an OpenCL device. Without one its Kernels run in Java.
+     * @return <code>true</code> if the best device is an OpenCL device.
+     */
+    public static boolean hasOpenCLDevice()
+    {
+        Device device;
+
+        try
+        {
+            device = KernelManager.instance().bestDevice();
+            return(device instanceof OpenCLDevice);
+        }
+        catch(Throwable ex) { return(false); } // E.g. no native Aparapi or OpenCL library
+    }
+
     public void initExperiment()
     {
         float []paijvk;
@@ -163,6 +440,33 @@ public class CoreNaiveBayesGPU
         // The test Instances classification output
         this.testClass  = new int[this.numTestInstances];
         this.testKernel = new NaiveBayesTestKernel(this.testData, this.paijvk, this.pvk, this.testClass, this.numAttributes, this.numGoal, this.sumDistinct, this.sumDistinctAll);
+
+        // Choose the backend. Without OpenCL, the Kernels would run in Aparapi's Java Thread Pool.
+        if (this.backend == BACKEND_AUTO) this.activeBackend = hasOpenCLDevice() ? BACKEND_OPENCL : BACKEND_CPU;
+        else                              this.activeBackend = this.backend;
+        if (this.activeBackend == BACKEND_JTP)
+        {
+            this.trainKernel.setExecutionModeWithoutFallback(Kernel.EXECUTION_MODE.JTP);
+            this.testKernel.setExecutionModeWithoutFallback(Kernel.EXECUTION_MODE.JTP);
+        }
+        if (this.cpu != null) this.cpu.dispose();
+        this.cpu = null;
+        if (this.activeBackend == BACKEND_CPU)
+            this.cpu = new NaiveBayesCPU(this.trainData, this.testData, this.paijvk, this.pvk, this.caijvk, this.cvk, this.testClass,
+                                         this.numAttributes, this.numGoal, this.numDistinct, this.sumDistinct, this.sumDistinctAll, this.classIdx, this.numberOfThreads);
+    }
+
+    /**
+     * Release the Kernels and the threads of the CPU backend.
+     */
+    public void dispose()
+    {
+        if (this.trainKernel != null) this.trainKernel.dispose();
+        if (this.testKernel != null)  this.testKernel.dispose();
+        if (this.cpu != null)         this.cpu.dispose();
+        this.trainKernel = null;
+        this.testKernel  = null;
+        this.cpu         = null;
     }
 
     private void train()
@@ -189,7 +493,7 @@ public class CoreNaiveBayesGPU
         int []caijvk;
         int []cvk;
 
-        if (!GPU)
+        if (this.activeBackend == BACKEND_JAVA)
         {
             int goalIdx, countIdx;
 
@@ -208,6 +512,14 @@ public class CoreNaiveBayesGPU
                 }
             }
         }
+        else if (this.activeBackend == BACKEND_CPU)
+        {
+            // Count on ranges of instances in parallel
+            this.cpu.train(this.numTrainInstances);
+
+            caijvk = this.caijvk;
+            cvk = this.cvk;
+        }
         else
         {
             // Core Naive Bayes Training
@@ -264,11 +576,16 @@ public class CoreNaiveBayesGPU
 
         testClass = this.testClass;
 
-        if (GPU)
+        if ((this.activeBackend == BACKEND_OPENCL) || (this.activeBackend == BACKEND_JTP))
         {
             // Test instances using the Kernel implementing the Naive Bayes classification
             this.testKernel.execute(Range.create(this.numTestInstances));
         }
+        else if (this.activeBackend == BACKEND_CPU)
+        {
+            // Test ranges of instances in parallel
+            this.cpu.test(this.numTestInstances);
+        }
         else
         {
             // Classify test instances in plain Java.
@@ -343,7 +660,7 @@ public class CoreNaiveBayesGPU
     }
 
 
-    private void convertDataSet() throws Exception
+    void convertDataSet() throws Exception
     {
         Instances dataSet;
         int i,j;
@@ -425,12 +742,31 @@ public class CoreNaiveBayesGPU
     }
 
 
-    private void setDataSet(CoreDataSet data)
+    void setDataSet(CoreDataSet data)
     {
         this.dataSet = data;
     }
 
-    private void experiment()
+    /**
+     * Train on the train set and classify the test set once.
+     * @return The classification error on the test set.
+     */
+    double trainAndTest()
+    {
+        train();
+
+        return(testConfusionCore());
+    }
+
+    int []getCounts()      { return this.caijvk; }
+    int []getGoalCounts()  { return this.cvk; }
+    int []getTestClasses() { return this.testClass; }
+
+    /**
+     * Train and test 100 times. Swap random instances between train and test set after each run.
+     * @return The average time per run in milliseconds.
+     */
+    long experiment()
     {
         // Create data-structures for training.
         initExperiment();
@@ -460,6 +796,48 @@ public class CoreNaiveBayesGPU
         System.out.println("Average classification error in "+i+" runs: "+sumerror);
         trun = (tend-tbeg)/i;
         System.out.println("Total time: "+(tend-tbeg)+". Average time per run: "+trun);
+
+        return(trun);
+    }
+
+    // **********************************************************\
+    // *     Compare the backends and the CoreNaiveBayes        *
+    // **********************************************************/
+    public static void benchmark(CoreDataSet data) throws Exception
+    {
+        List<Integer>      backends;
+        List<String>       names;
+        List<Long>         times;
+        CoreNaiveBayesGPU  nb;
+        CoreNaiveBayes     nbcore;
+
+        backends = new ArrayList<Integer>();
+        if (hasOpenCLDevice()) backends.add(BACKEND_OPENCL);
+        backends.add(BACKEND_JTP);
+        backends.add(BACKEND_CPU);
+        backends.add(BACKEND_JAVA);
+
+        names = new ArrayList<String>();
+        times = new ArrayList<Long>();
+        for (Integer backend: backends)
+        {
+            nb = new CoreNaiveBayesGPU();
+            nb.setDataSet(data);
+            nb.setBackend(backend);
+            nb.convertDataSet();
+            names.add(BACKEND_NAMES[backend]);
+            times.add(nb.experiment());
+            nb.dispose();
+        }
+        nbcore = new CoreNaiveBayes();
+        nbcore.setDataSet(data);
+        nbcore.convertDataSet();
+        nbcore.train();
+        names.add("CoreNaiveBayes");
+        times.add(nbcore.experiment());
+
+        System.out.println("Average time per train/test run:");
+        for (int i=0; i<names.size(); i++) System.out.println("\t"+names.get(i)+"\t"+times.get(i)+" ms");
     }
 
     private void randomizeInstances()
@@ -499,6 +877,14 @@ public class CoreNaiveBayesGPU
             CoreNaiveBayesGPU nb = new CoreNaiveBayesGPU();
             nb.setDataSet(data);
 
+            // Compare the backends on the given dataset: benchmark <data directory> <dataset>
+            if ((args.length == 3) && args[0].equals("benchmark"))
+            {
+                data.readWekaDataSet(args[1], args[2]);
+                benchmark(data);
+                return;
+            }
+
             // CH(ess) dataset: http://www.hakank.org/weka/
             //data.readWekaDataSet("ch.arff");
 
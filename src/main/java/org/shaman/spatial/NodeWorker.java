@@ -1,12 +1,14 @@
 package org.shaman.spatial;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import weka.core.Instance;
 import weka.core.Instances;
@@ -24,8 +26,9 @@ public class NodeWorker implements Callable<NodeWorker>
      */
 
     public static final int WORK_TRAIN  = 1;    // Train the instances
-    public static final int WORK_SELECT = 2;    // Test instances on neighbors. Select instances for next epoch.
+    public static final int WORK_SELECT = 2;    // Select instances for next epoch from the weighted instances of this Node and its neighbors.
     public static final int WORK_ASYNC  = 3;    // Train / Test on neighbors / Select instances / Replace instances
+    public static final int WORK_TEST   = 4;    // Test instances on neighbors. Publish their weights.
 
     private int            work;
     private ClassifierNode node;
@@ -33,14 +36,16 @@ public class NodeWorker implements Callable<NodeWorker>
     private SpatialEnsembleLearningThreaded selt;
     // ------
     private Random         random;
-    private long           duration;
+    private AtomicLong     duration;
+    private int            epochs;           // Number of asynchronous epochs executed
 
-    public NodeWorker(ClassifierNode node, List<ClassifierNode> neighbors, SpatialEnsembleLearningThreaded selt)
+    public NodeWorker(ClassifierNode node, List<ClassifierNode> neighbors, SpatialEnsembleLearningThreaded selt, long seed)
     {
-        this.node = node;
+        this.node      = node;
         this.neighbors = neighbors;
-        this.random = new Random(System.currentTimeMillis() % this.hashCode());
-        this.selt = selt;
+        this.random    = new Random(seed);
+        this.selt      = selt;
+        this.duration  = new AtomicLong();
     }
 
     public void setWork(int work)
@@ -50,42 +55,34 @@ public class NodeWorker implements Callable<NodeWorker>
 
     public NodeWorker call() throws Exception
     {
-        long tbeg, tend, spent;
+        long tbeg;
 
         tbeg = System.currentTimeMillis();
-
         try
         {
-            // Execute either the Classification training or Instance selection step
+            // Execute either the Classification training, the testing or Instance selection step
             if      (this.work == WORK_TRAIN)  train();
+            else if (this.work == WORK_TEST)   testInstancesOnNeighbors();
             else if (this.work == WORK_SELECT) selectSpatialProportional();
                 // Or do it all
             else if (this.work == WORK_ASYNC)
             {
-                // Train the data-set on a other Classifier. Switch classifiers around when done.
+                // Train the data-set on a new Classifier. Neighbors use the previous one until it's done.
                 this.node.trainSafe();
-                // Select instances
+                // Weight and select instances
+                testInstancesOnNeighbors();
                 selectSpatialProportional();
                 // Switch instances to dataset
                 this.node.setData(node.getSelectedInstances());
-                // Re-schedule execution
-                this.selt.recycleNodeWorker(this);
+                this.epochs++;
             }
         }
-        catch(Exception ex)
+        finally
         {
-            // Debug... Multi-threading issues are tricky.
-            ex.printStackTrace();
-
-            // ? Re-throw to make sure the Threadpool kills off the failed thread.
-            //throw(ex);
+            // Remember the time spent
+            this.duration.addAndGet(System.currentTimeMillis()-tbeg);
         }
 
-        // Remember the time spent
-        tend = System.currentTimeMillis();
-        spent = tend-tbeg;
-        this.duration += spent;
-
         return this;
     }
 
@@ -94,14 +91,17 @@ public class NodeWorker implements Callable<NodeWorker>
         this.node.train();
     }
 
+    /**
+     * Get the time spent executing work since the previous call.
+     * @return The time spent in milliseconds.
+     */
     public long getTimeSpent()
     {
-        Long spent = this.duration;
-        this.duration = 0l;
-
-        return(spent);
+        return(this.duration.getAndSet(0));
     }
 
+    public int getEpochs() { return this.epochs; }
+
     public ClassifierNode getNode() { return this.node; }
 
     // ***************************************************************\
@@ -109,38 +109,36 @@ public class NodeWorker implements Callable<NodeWorker>
     // ***************************************************************/
     private void selectSpatialProportional() throws Exception
     {
-        TreeSet<Instance>    weightOrderInstances;
+        List<WeightedInstance>    weightOrderInstances;
         TreeMap<Double, Instance> sampleInstance;
         List<Instance>    zeroWeightInstances;
         double            weightSum;
         List<Instance>    replaceSelect;
+        ClassifierNode.NodeData nodeData;
 
-        // Test the instances of this Node on the neighboring classifiers. Weight them accordingly.
-        testInstancesOnNeighbors();
-
-        // Collect all Instances from this Node and its neighboring nodes, ordered from high to low weight.
-        weightOrderInstances = new TreeSet<Instance>(new InstanceWeightComparator());
-        for(Instance instance: node.getData())
-            weightOrderInstances.add(instance);
+        // Collect all Instances from the current version of this Node and its neighboring nodes, ordered from high to low weight.
+        nodeData = this.node.getNodeData();
+        weightOrderInstances = new ArrayList<WeightedInstance>();
+        addWeightedInstances(nodeData, weightOrderInstances);
         for(ClassifierNode neighbor: neighbors)
-            for(Instance instance: neighbor.getData())
-                weightOrderInstances.add(instance);
+            addWeightedInstances(neighbor.getNodeData(), weightOrderInstances);
+        Collections.sort(weightOrderInstances, new InstanceWeightComparator());
 
         // Put instances in a TreeMap with as key the cumulative weight starting with highest weight instances
         sampleInstance      = new TreeMap<Double, Instance>();
         zeroWeightInstances = new LinkedList<Instance>();
         weightSum = 0;
-        for(Instance instance: weightOrderInstances)
+        for(WeightedInstance winstance: weightOrderInstances)
         {
-            if (instance.weight() > 0)
+            if (winstance.weight > 0)
             {
-                weightSum += instance.weight();
-                sampleInstance.put(weightSum, instance);
+                weightSum += winstance.weight;
+                sampleInstance.put(weightSum, winstance.instance);
             }
             else
             {
                 // Keep the (worst) Instances with weight 0 in a separate list... So they don't overwrite the sampleInstance of the last instances with weight > 0.
-                zeroWeightInstances.add(instance);
+                zeroWeightInstances.add(winstance.instance);
             }
         }
 
@@ -149,10 +147,10 @@ public class NodeWorker implements Callable<NodeWorker>
 
         // Replace the given fraction of instances
         replaceSelect = new LinkedList<Instance>();
-        for(Instance instance: node.getData())
+        for(Instance instance: nodeData.getData())
         {
             // Replace with instance chosen with weight-proportionate selection.
-            if (this.random.nextDouble() < SpatialEnsembleLearningThreaded.REPLACE_FRACTION)
+            if (this.random.nextDouble() < this.selt.getReplaceFraction())
                 selectedInstance = selectWeightedInstance(sampleInstance, zeroWeightInstances);
             else selectedInstance = instance;
 
@@ -162,7 +160,7 @@ public class NodeWorker implements Callable<NodeWorker>
 
             replaceSelect.add(selectedInstance);
         }
-        selectedInstances = new Instances(node.getData(), replaceSelect.size());
+        selectedInstances = new Instances(nodeData.getData(), replaceSelect.size());
         selectedInstances.addAll(replaceSelect);
         selectedInstances.randomize(this.random);
 
@@ -170,6 +168,13 @@ public class NodeWorker implements Callable<NodeWorker>
         node.setSelectedInstances(selectedInstances);
     }
 
+    private void addWeightedInstances(ClassifierNode.NodeData nodeData, List<WeightedInstance> instances)
+    {
+        Instances data = nodeData.getData();
+        for (int i=0; i<data.numInstances(); i++)
+            instances.add(new WeightedInstance(data.instance(i), nodeData.getWeight(i)));
+    }
+
     private Instance selectWeightedInstance(TreeMap<Double, Instance> instances, List<Instance> zeroWeightInstances)
     {
         double   ran;
@@ -197,6 +202,7 @@ public class NodeWorker implements Callable<NodeWorker>
         int                  i;
         double []weight;
         double   conf, minconf;
+        double   weightRatio;
 
         nodeset   = node.getData();
         weight    = new double[nodeset.size()];
@@ -221,6 +227,7 @@ public class NodeWorker implements Callable<NodeWorker>
         double wdiff, wmax, wmin;
 
         // Normalize weight with the highest weight as the most difficult instance
+        weightRatio = this.selt.getWeightRatio();
         wmax = Double.NEGATIVE_INFINITY;
         wmin = Double.POSITIVE_INFINITY;
         for (i=0; i<weight.length; i++) if (weight[i] > wmax) wmax = weight[i];
@@ -233,8 +240,8 @@ public class NodeWorker implements Callable<NodeWorker>
                 // Normalize between 0 and 1
                 weight[i] = 1.0 - ((weight[i] - wmin) / wdiff);
 
-                // Or... Normalize between 1 and WEIGHT_RATIO
-                if (SpatialEnsembleLearningThreaded.WEIGHT_RATIO > 1.0) weight[i] = 1.0 + weight[i]*(SpatialEnsembleLearningThreaded.WEIGHT_RATIO-1.0);
+                // Or... Normalize between 1 and the weight ratio
+                if (weightRatio > 1.0) weight[i] = 1.0 + weight[i]*(weightRatio-1.0);
             }
         }
         else
@@ -242,26 +249,31 @@ public class NodeWorker implements Callable<NodeWorker>
             for (i=0; i<weight.length; i++) weight[i] = 1.0;
         }
 
-        // Update the Instances of this Node with their new weights
-        i = 0;
-        for(Instance ins: nodeset)
+        // Publish the new weights of this Node's Instances. The instances themselves are not changed, neighbors might be reading them.
+        // TODO: Add momentum as suggested by Uday
+        this.node.setWeights(weight);
+    }
+
+    static class WeightedInstance
+    {
+        final Instance instance;
+        final double   weight;
+
+        WeightedInstance(Instance instance, double weight)
         {
-            // TODO: Add momentum as suggested by Uday
-            ins.setWeight(weight[i++]);
+            this.instance = instance;
+            this.weight   = weight;
         }
     }
 
-    class InstanceWeightComparator implements Comparator
+    class InstanceWeightComparator implements Comparator<WeightedInstance>
     {
-        // Ordere from highest to lowest Instance weight. Break ties with the hashCode of the Instances.
-        public int compare(Object arg0, Object arg1)
+        // Order from highest to lowest Instance weight. Ties keep the order of the Nodes (stable sort).
+        public int compare(WeightedInstance a, WeightedInstance b)
         {
-            Instance a = (Instance)arg0;
-            Instance b = (Instance)arg1;
-
-            if      (b.weight() > a.weight()) return(1);
-            else if (b.weight() < a.weight()) return(-1);
-            else return new Integer(b.hashCode()).compareTo(new Integer(a.hashCode()));
+            if      (b.weight > a.weight) return(1);
+            else if (b.weight < a.weight) return(-1);
+            else return(0);
         }
     }
 }
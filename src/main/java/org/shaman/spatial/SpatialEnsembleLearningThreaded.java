@@ -9,24 +9,39 @@ import weka.core.Instances;
 import weka.core.converters.ConverterUtils.DataSource;
 
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-threaded Parallel Spatial Boosting (PSBML).
+ * The Nodes of the grid are trained by NodeWorkers on a work-stealing pool. Either
+ * synchronously with barriers between training, testing and selection or asynchronously
+ * where every Node moves through its epochs independently of its neighbors.
+ */
 public class SpatialEnsembleLearningThreaded
 {
-    public static int DATASET_SIZE = 2000;
-    public static int GRID_WIDTH   = 3;
-    public static int GRID_HEIGHT  = 3;
-
-    public static int EPOCHS = 50;
-    public static double REPLACE_FRACTION = 0.3;
-    public static double WEIGHT_RATIO = 0.0;
-
-    public static final int NUMBER_OF_THREADS = 4;
-    public int numberOfThreads = NUMBER_OF_THREADS;
-    public int gridWidth = GRID_WIDTH;
-    public int gridHeight = GRID_HEIGHT;
-    public double pr=REPLACE_FRACTION;
+    public static final int    DEFAULT_GRID_WIDTH       = 3;
+    public static final int    DEFAULT_GRID_HEIGHT      = 3;
+    public static final int    DEFAULT_EPOCHS           = 50;
+    public static final double DEFAULT_REPLACE_FRACTION = 0.3;
+    public static final double DEFAULT_WEIGHT_RATIO     = 0.0;
+    public static final int    DEFAULT_THREADS          = 4;
+    public static final long   DEFAULT_SEED             = 1;
+
+    public static final String DATA_DIR = "./data/";
+
+    // Configuration
+    private int                 numberOfThreads = DEFAULT_THREADS;
+    private int                 gridWidth       = DEFAULT_GRID_WIDTH;
+    private int                 gridHeight      = DEFAULT_GRID_HEIGHT;
+    private int [][]            neighborhood    = WraparoundGrid.NEIGHBORS_C9;
+    private int                 epochs          = DEFAULT_EPOCHS;
+    private double              replaceFraction = DEFAULT_REPLACE_FRACTION;
+    private double              weightRatio     = DEFAULT_WEIGHT_RATIO;
+    private long                seed            = DEFAULT_SEED;
 
     private int epoch;
 
@@ -43,138 +58,148 @@ public class SpatialEnsembleLearningThreaded
     private int                 sizeAtMinError;
 
     // Multi-threading support
-    private ExecutorService   executorService;
+    private ForkJoinPool      pool;
     private List<NodeWorker>  workers;
+    private long              []nodeTimeSpent;   // Time spent by the worker of each Node
     private long              epochStart;
+    private AtomicInteger     asyncEpochs;       // Number of Node epochs executed asynchronously
+    private volatile boolean  stopped;           // Stop asynchronous execution after a failure
 
     private boolean useWeightedAUCForSelection=true;
     private Classifier bestSoFarClassifier;
-    
-    //public static final String DATA_DIR = "./data/";
-    public static final String DATA_DIR = "/Users/johan/SoftDev/Papers/Spatial Ensemble Learning/datasets/";
+
+    public SpatialEnsembleLearningThreaded() throws Exception
+    {
+        NaiveBayes classifier = new NaiveBayes();
+        List<String> options = new ArrayList<String>();
+        options.add("-D");   // Discretize numeric attributes
+        //options.add("-K"); // Kernel estimater instead of normal distribution for numeric attributes
+        classifier.setOptions(options.toArray(new String[0]));
+
+        // Other classifiers used in the experiments: J48, REPTree, IBk (k=1), SMO with PolyKernel
+        this.classifier = classifier;
+    }
 
     // *********************************************************\
-    // *              Weka dataset experiments                 *
+    // *                     Configuration                     *
     // *********************************************************/
-    private void initWekaDataSet() throws Exception
+    public void setNumberOfThreads(int numberOfThreads) { this.numberOfThreads = numberOfThreads; }
+    public int  getNumberOfThreads()                    { return this.numberOfThreads; }
+
+    public void setGridSize(int gridWidth, int gridHeight)
     {
-        DataSource source;
-
-
-        // 'Digit' handwritten digits dataset: http://alex.seewald.at/digits/
-        /*source = new DataSource(DATA_DIR+"sinewave3Train.arff");
-        this.dataset = source.getDataSet();
-        this.dataset.setClass(dataset.attribute("class"));
-        source = new DataSource(DATA_DIR+"sinewave3Test.arff");
-        this.testset = source.getDataSet();
-        this.testset.setClass(dataset.attribute("class"));
-
-
-
-        //  Spambase dataset: http://www.hakank.org/weka/
-        /*source = new DataSource(DATA_DIR+"/spambase_real.arff");
-        this.dataset = source.getDataSet();
-        this.dataset.setClass(dataset.attribute("class"));
-        source = new DataSource(DATA_DIR+"spambase_real.arff");
-        this.testset = source.getDataSet();
-        this.testset.setClass(dataset.attribute("class"));
-        */
-
-
-/*
-        // CH dataset: http://www.hakank.org/weka/
-        source = new DataSource(DATA_DIR+"ch.arff");
-        this.dataset = source.getDataSet();
-        this.dataset.setClass(dataset.attribute("class"));
-        source = new DataSource(DATA_DIR+"ch.arff");
-        this.testset = source.getDataSet();
-        this.testset.setClass(dataset.attribute("class"));
-*/
-
-
-        // Adult income prediction dataset
-       /* source = new DataSource(DATA_DIR+"adult.train.arff");
-        this.dataset = source.getDataSet();
-        this.dataset.setClass(dataset.attribute("class"));
-        source = new DataSource(DATA_DIR+"adult.test.arff");
-        this.testset = source.getDataSet();
-        this.testset.setClass(dataset.attribute("class"));*/
-
-
-
-        // Cover type dataset
-        source = new DataSource(DATA_DIR+"covtype.train.arff");
-        this.dataset = source.getDataSet();
-        this.dataset.setClass(dataset.attribute("class"));
-        source = new DataSource(DATA_DIR+"covtype.test.arff");
-        this.testset = source.getDataSet();
-        this.testset.setClass(dataset.attribute("class"));
-
-
-        // W8A dataset
-        /*source = new DataSource(DATA_DIR+"w8a.train.arff");
-        this.dataset = source.getDataSet();
-        this.dataset.setClass(dataset.attribute("class"));
-        source = new DataSource(DATA_DIR+"w8a.test.arff");
-        this.testset = source.getDataSet();
-        this.testset.setClass(dataset.attribute("class"));
-
-
-        // Codon RNA Splice dataset
-        /*source = new DataSource(DATA_DIR+"cod-rna-train.arff");
-        this.dataset = source.getDataSet();
-        this.dataset.setClass(dataset.attribute("class"));
-        source = new DataSource(DATA_DIR+"cod-rna-test.arff");
-        this.testset = source.getDataSet();
-        this.testset.setClass(dataset.attribute("class"));   */
-
-        /*source = new DataSource(DATA_DIR+"Magic.Train.arff");
-        this.dataset = source.getDataSet();
-        this.dataset.setClass(dataset.attribute("class"));
-        source = new DataSource(DATA_DIR+"Magic.Test.arff");
-        this.testset = source.getDataSet();
-        this.testset.setClass(dataset.attribute("class"));  */
+        this.gridWidth  = gridWidth;
+        this.gridHeight = gridHeight;
+    }
+    public int getGridWidth()  { return this.gridWidth; }
+    public int getGridHeight() { return this.gridHeight; }
+
+    /**
+     * Set the neighborhood of the Nodes in the grid.
+     * @param neighborhood Relative positions of the neighbors. E.g. WraparoundGrid.NEIGHBORS_C9
+     */
+    public void     setNeighborhood(int [][]neighborhood) { this.neighborhood = neighborhood; }
+    public int [][] getNeighborhood()                     { return this.neighborhood; }
+
+    public void setEpochs(int epochs) { this.epochs = epochs; }
+    public int  getEpochs()           { return this.epochs; }
+
+    public void   setReplaceFraction(double replaceFraction) { this.replaceFraction = replaceFraction; }
+    public double getReplaceFraction()                       { return this.replaceFraction; }
+
+    public void   setWeightRatio(double weightRatio) { this.weightRatio = weightRatio; }
+    public double getWeightRatio()                   { return this.weightRatio; }
+
+    public void setSeed(long seed) { this.seed = seed; }
+    public long getSeed()          { return this.seed; }
 
+    public void setClassifier(AbstractClassifier classifier) { this.classifier = classifier; }
+
+    public void setUseWeightedAUCForSelection(boolean useWeightedAUCForSelection) { this.useWeightedAUCForSelection = useWeightedAUCForSelection; }
+
+    // *********************************************************\
+    // *              Weka dataset experiments                 *
+    // *********************************************************/
+    /**
+     * Set the data to learn from. 10% of the train set is kept apart to validate
+     * the classifiers of the epochs.
+     * @param train The train set
+     * @param test The test set to evaluate the final classifier
+     */
+    public void setDataSets(Instances train, Instances test)
+    {
         Random r = new Random(1);
-        Instances instances = source.getDataSet();
-        instances.setClass(instances.attribute("class"));
+        Instances instances = new Instances(train);
         int splits = instances.numInstances() * (10 - 1) / 10;
-		instances.randomize(r);
-		// Select out a fold
-		instances.stratify(10);
-		this.dataset = new Instances(instances, 0, splits);
-		this.validationset = new Instances(instances, splits, instances.numInstances()-splits);
-		System.err.println("Building model on training split (" + splits+ " instances)...");
+        instances.randomize(r);
+        // Select out a fold
+        instances.stratify(10);
+        this.dataset = new Instances(instances, 0, splits);
+        this.validationset = new Instances(instances, splits, instances.numInstances()-splits);
+        this.testset = test;
+        System.err.println("Building model on training split (" + splits+ " instances)...");
+    }
 
+    public void loadDataSets(String trainPath, String testPath) throws Exception
+    {
+        Instances train, test;
+
+        // E.g. the Cover type dataset, Adult income, W8A, Codon RNA Splice, Magic...
+        train = new DataSource(trainPath).getDataSet();
+        train.setClass(train.attribute("class"));
+        test  = new DataSource(testPath).getDataSet();
+        test.setClass(test.attribute("class"));
+        setDataSets(train, test);
     }
 
     public Classifier getBestClassifier(){
     	return this.bestSoFarClassifier;
     }
 
-    private void initWekaClassifier() throws Exception
+    public double getMinClassError() { return this.minClassError; }
+
+    WraparoundGrid getGrid() { return this.grid; }
+
+    /**
+     * Get the number of asynchronous epochs every Node lived through.
+     * @return The epochs per Node. In the order of the grid's Nodes.
+     */
+    public int []getNodeEpochs()
     {
-        NaiveBayes classifier = new NaiveBayes();
-        List<String> options = new ArrayList<String>();
-        options.add("-D");   // Discretize numeric attributes
-        //options.add("-K"); // Kernel estimater instead of normal distribution for numeric attributes
-        classifier.setOptions(options.toArray(new String[0]));
+        int []nodeEpochs;
 
-        //if want to set Decision Tree
-//        J48 decisionTree = new J48();
-//		this.classifier= decisionTree;
-//    	REPTree classifier = new REPTree();
+        nodeEpochs = new int[this.workers.size()];
+        for(int i=0; i<nodeEpochs.length; i++) nodeEpochs[i] = this.workers.get(i).getEpochs();
 
+        return nodeEpochs;
+    }
 
-        // k-nearest neighbor
-//    	IBk classifier = new IBk();
-//    	classifier.setKNN(1);
+    /**
+     * Get the time spent by the worker of every Node since the last initialization.
+     * @return Milliseconds spent per Node. In the order of the grid's Nodes.
+     */
+    public long []getNodeTimeSpent()
+    {
+        collectTimeSpent();
+        return this.nodeTimeSpent.clone();
+    }
 
-        // SVM
-//    	SMO classifier = new SMO();
-//    	classifier.setKernel(new PolyKernel());
+    private long collectTimeSpent()
+    {
+        long spent, total;
 
-        this.classifier = classifier;
+        total = 0;
+        synchronized(this.nodeTimeSpent)
+        {
+            for(int i=0; i<this.workers.size(); i++)
+            {
+                spent = this.workers.get(i).getTimeSpent();
+                this.nodeTimeSpent[i] += spent;
+                total += spent;
+            }
+        }
+
+        return(total);
     }
 
     // *********************************************************\
@@ -191,17 +216,16 @@ public class SpatialEnsembleLearningThreaded
         spent    = epochEnd - this.epochStart;
 
         // Calculate total time spent inside the worker threads
-        spentByWorkers = 0;
-        for(NodeWorker worker: this.workers) spentByWorkers += worker.getTimeSpent();
+        spentByWorkers = collectTimeSpent();
 
         // Scalability: when close to 1, the workers could execute near parallel
-        spentFraction = ((double)spentByWorkers) / (spent*NUMBER_OF_THREADS);
+        spentFraction = ((double)spentByWorkers) / (spent*this.numberOfThreads);
 //        spentFraction = (double)spentByWorkers / spent;
         System.out.println(this.epoch+"\t"+spent + "\t"+spentByWorkers+"\t"+spentFraction);
 
         // Move on to next epoch?
         this.epoch++;
-        boolean done = this.epoch >= EPOCHS;
+        boolean done = this.epoch >= this.epochs;
 
         this.epochStart = System.currentTimeMillis();
 
@@ -287,7 +311,7 @@ public class SpatialEnsembleLearningThreaded
         this.epoch++;
         //if (this.firstClassError*2 < errtotaltest) this.epoch = EPOCHS;
 
-        boolean done = this.epoch == EPOCHS;
+        boolean done = this.epoch == this.epochs;
 
         return(!done);
     }
@@ -366,77 +390,117 @@ public class SpatialEnsembleLearningThreaded
         System.out.println(this.minClassError+"\t"+this.sizeAtMinError);
     }
 
+    /**
+     * Let every Node train, test and select on its own pace until it has lived through the given number of epochs.
+     * Neighbors read the latest published dataset, weights and classifier of a Node without waiting for it.
+     */
     public void learnAsynchronous() throws Exception
     {
+        List<CompletableFuture<NodeWorker>> done;
+        CompletableFuture<NodeWorker>       nodeDone;
+
         // First make sure the nodes are trained for the first time
-        for(NodeWorker worker: this.workers)
-            worker.setWork(NodeWorker.WORK_TRAIN);
-        this.executorService.invokeAll(this.workers);
+        runWorkers(NodeWorker.WORK_TRAIN);
         testPerformance();
 
-        // Start the Nodes so they execute asynchronously from eachother and re-submit themselves by calling recycleNodeWorker()
+        // Start the Nodes so they execute asynchronously from eachother. Each Node re-schedules itself until done.
+        this.stopped     = false;
+        this.asyncEpochs = new AtomicInteger();
+        done = new ArrayList<CompletableFuture<NodeWorker>>();
         for(NodeWorker worker: this.workers)
         {
             worker.setWork(NodeWorker.WORK_ASYNC);
-            this.executorService.submit(worker);
+            nodeDone = new CompletableFuture<NodeWorker>();
+            done.add(nodeDone);
+            scheduleAsynchronous(worker, nodeDone);
         }
 
-        // Sleep until each node has lived through 'epoch' executions.
-        while(this.epoch < (EPOCHS*GRID_WIDTH*GRID_HEIGHT)) Thread.sleep(10);
+        // Wait until all Nodes are done
+        try
+        {
+            CompletableFuture.allOf(done.toArray(new CompletableFuture[done.size()])).get();
+        }
+        catch(ExecutionException ex) { throw rethrow(ex); }
 
         // Log best results.
         System.out.println(this.minClassError+"\t"+this.sizeAtMinError);
     }
 
-    // Called by NodeWorker.WORK_ASYNC right before it finishes
-    public void recycleNodeWorker(NodeWorker nodeWorker) throws Exception
+    private void scheduleAsynchronous(final NodeWorker worker, final CompletableFuture<NodeWorker> done)
     {
-        this.epoch++;
-
-        // Log statistics once in a while
-        if (this.epoch % (GRID_WIDTH*GRID_HEIGHT) == 0)
+        this.pool.execute(new Runnable()
         {
-            //testTiming();
-            testPerformance();
-        }
+            public void run()
+            {
+                try
+                {
+                    worker.call();
 
-        // Re-submit node for execution in the Threadpool
-        this.executorService.submit(nodeWorker);
+                    // Log statistics once in a while
+                    if (asyncEpochs.incrementAndGet() % workers.size() == 0) testPerformance();
+
+                    // Re-schedule this Node. Or signal it has lived through all its epochs.
+                    if (!stopped && (worker.getEpochs() < epochs)) scheduleAsynchronous(worker, done);
+                    else                                            done.complete(worker);
+                }
+                catch(Throwable ex)
+                {
+                    stopped = true;
+                    done.completeExceptionally(ex);
+                }
+            }
+        });
     }
 
     public void trainMT() throws Exception
     {
         // First train each node on its dataset
-        for(NodeWorker worker: this.workers)
-            worker.setWork(NodeWorker.WORK_TRAIN);
-        this.executorService.invokeAll(this.workers);
+        runWorkers(NodeWorker.WORK_TRAIN);
 
         // Then test instances on neighboring nodes and select the ones for the next epoch
-        for(NodeWorker worker: this.workers)
-            worker.setWork(NodeWorker.WORK_SELECT);
-        this.executorService.invokeAll(this.workers);
+        runWorkers(NodeWorker.WORK_TEST);
+        runWorkers(NodeWorker.WORK_SELECT);
 
         // Switch over this epoch's instances for the selected ones
         for(ClassifierNode node: this.grid.getNodes())
             node.setData(node.getSelectedInstances());
     }
 
+    private void runWorkers(int work) throws Exception
+    {
+        // Execute the work on all Nodes and wait until all are done.
+        for(NodeWorker worker: this.workers)
+            worker.setWork(work);
+        try
+        {
+            for(Future<NodeWorker> workerDone: this.pool.invokeAll(this.workers)) workerDone.get();
+        }
+        catch(ExecutionException ex) { throw rethrow(ex); }
+    }
+
+    private static Exception rethrow(ExecutionException ex)
+    {
+        if      (ex.getCause() instanceof Exception) return((Exception)ex.getCause());
+        else if (ex.getCause() instanceof Error)     throw (Error)ex.getCause();
+        else                                         return(ex);
+    }
+
     public void initialize() throws Exception
     {
-        this.random = new Random(System.currentTimeMillis());
+        this.random = new Random(this.seed);
         this.epoch  = 1;
 
         System.out.println("Train dataset size "+this.dataset.size());
         System.out.println("Test  dataset size " + this.validationset.size());
 
         // Create the toroidal grid of classifiers
-        this.grid = new WraparoundGrid(GRID_WIDTH, GRID_HEIGHT, this.classifier);
+        this.grid = new WraparoundGrid(this.gridWidth, this.gridHeight, this.classifier, this.neighborhood);
 
         int      i, numnodes;
         Instances nodedata;
 
         // Distribute the dataset over the grid nodes
-        numnodes = GRID_WIDTH * GRID_HEIGHT;
+        numnodes = this.gridWidth * this.gridHeight;
         this.dataset.randomize(this.random);
         this.dataset.stratify(numnodes);
 
@@ -458,13 +522,24 @@ public class SpatialEnsembleLearningThreaded
 
         List<NodeWorker> workers;
 
-        // Create multi-threading logic. One worker for each Node.
-        this.executorService = Executors.newFixedThreadPool(numberOfThreads);
-        workers = new LinkedList<NodeWorker>();
+        // Create multi-threading logic. A work-stealing pool and one worker for each Node.
+        shutdown();
+        this.pool = new ForkJoinPool(this.numberOfThreads);
+        workers = new ArrayList<NodeWorker>();
         for(ClassifierNode node: this.grid.getNodes())
-            workers.add(new NodeWorker(node, this.grid.getNeighbors(node), this));
-        this.workers = workers;
-        this.epochStart = System.currentTimeMillis();
+            workers.add(new NodeWorker(node, this.grid.getNeighbors(node), this, this.random.nextLong()));
+        this.workers       = workers;
+        this.nodeTimeSpent = new long[workers.size()];
+        this.epochStart    = System.currentTimeMillis();
+    }
+
+    /**
+     * Stop the threads of the pool.
+     */
+    public void shutdown()
+    {
+        if (this.pool != null) this.pool.shutdown();
+        this.pool = null;
     }
 
     // *********************************************************\
@@ -474,23 +549,15 @@ public class SpatialEnsembleLearningThreaded
     {
         try
         {
-        	String threads = args[0];
-
-
             SpatialEnsembleLearningThreaded sal = new SpatialEnsembleLearningThreaded();
-            sal.numberOfThreads = new Integer(threads).intValue();
-
-            CircleDataGenerator.INTERIOR_RADIUS = 0.4;
-
-            SpatialEnsembleLearningThreaded.DATASET_SIZE     = 2000;
-            SpatialEnsembleLearningThreaded.GRID_WIDTH       = 3;
-            SpatialEnsembleLearningThreaded.GRID_HEIGHT      = 3;
-            SpatialEnsembleLearningThreaded.REPLACE_FRACTION = 0.2;
-            WraparoundGrid.NEIGHBORS = WraparoundGrid.NEIGHBORS_C9;
+            sal.setNumberOfThreads(new Integer(args[0]).intValue());
+            sal.setGridSize(3, 3);
+            sal.setReplaceFraction(0.2);
+            sal.setNeighborhood(WraparoundGrid.NEIGHBORS_C9);
 
             // Weka dataset with real classifier
-            sal.initWekaDataSet();
-            sal.initWekaClassifier();
+            if (args.length >= 3) sal.loadDataSets(args[1], args[2]);
+            else                  sal.loadDataSets(DATA_DIR+"covtype.train.arff", DATA_DIR+"covtype.test.arff");
             sal.initialize();
 
             // Train and collect statistics
@@ -507,7 +574,7 @@ public class SpatialEnsembleLearningThreaded
             // Asynchronous training and statistics
             //sal.learnAsynchronous();
 
-            System.exit(0);
+            sal.shutdown();
         }
         catch(Exception ex) { ex.printStackTrace(); }
     }
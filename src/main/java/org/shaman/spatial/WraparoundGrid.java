@@ -62,15 +62,22 @@ public class WraparoundGrid
     public static int [][]NEIGHBORS = NEIGHBORS_C9; // Default: square 3x3 neighborhood
 
     private int    w, h;
+    private int [][]neighborhood;   // Relative positions of the neighbors in this grid
 
     private ClassifierNode[][] nodes;
     // ----------
     private Map<ClassifierNode, int []> nodePos;
 
     public WraparoundGrid(int w, int h, AbstractClassifier classifier) throws Exception
+    {
+        this(w, h, classifier, NEIGHBORS);
+    }
+
+    public WraparoundGrid(int w, int h, AbstractClassifier classifier, int [][]neighborhood) throws Exception
     {
         this.w     = w;
         this.h     = h;
+        this.neighborhood = neighborhood;
         this.nodes = new ClassifierNode[w][h];
         this.nodePos = new HashMap<ClassifierNode, int[]>();
         for(int i=0; i<this.nodes.length; i++)
@@ -97,7 +104,7 @@ public class WraparoundGrid
         List<ClassifierNode> nei = new LinkedList<ClassifierNode>();
 
         pos = this.nodePos.get(node);
-        for(int []neipos: NEIGHBORS)
+        for(int []neipos: this.neighborhood)
             nei.add(getNodeAt(pos[0]+neipos[0], pos[1]+neipos[1]));
 
         return(nei);
@@ -104,6 +104,7 @@ public class CGA
         double  []ff;
         double    alpha;
         double    sum, Aij;
+        double  []Aj;
         double  []norm_b;
         boolean []stopM;
         boolean   general_stop;
@@ -182,12 +183,13 @@ public class CGA
             
             for(j=0; j<num; j++)
             {
-                /* solely under triangle */
+                /* solely under triangle. fetch the cached row of A once. */
+                Aj = A.getRow(j);
                 for(i=0; i<=j; i++)
                     for(m=0; m<outnum;m++)
                         if(!stopM[m])
                         {
-                            Aij = A.get(i,j);
+                            Aij = Aj[i];
                             p_Ap[num*m+j] = p_Ap[num*m+j] + Aij*p_pk[m*num+i];
                             if (i!=j) p_Ap[num*m+i] = p_Ap[num*m+i] + Aij*p_pk[m*num+j];
                         }
@@ -32,6 +32,7 @@ public class Kernel
    /** Polynomial Kernel. Parameter 0 = c, 1 = d.  K(x,z) = (<x.z> + c)^d */
    public static final int KERNEL_POLYNOMIAL = 3;
 
+   private int    type;
    private KernelFunction func;
    private double []par;
 
@@ -49,6 +50,52 @@ public class Kernel
      return(func.apply(x, z));
    }
 
+   /**
+    * Precompute the terms of the Kernel Function that depend on a single vector.
+    * For the Gaussian Kernel, these are made from the squared norms of the vectors.
+    * @param x The vectors
+    * @return The terms to pass to <code>apply(x, pre, i, j)</code>. null if there are none.
+    */
+   public double []precompute(DoubleMatrix1D []x)
+   {
+     double []pre;
+     int      i;
+
+     pre = null;
+     if (type == KERNEL_GAUSSIAN)
+     {
+       // exp(-|x|^2 / sigma)
+       pre = new double[x.length];
+       for (i=0; i<x.length; i++) pre[i] = Math.exp(-Algebra.DEFAULT.norm2(x[i])/par[0]);
+     }
+
+     return(pre);
+   }
+
+   /**
+    * Give the Kernel Function applied on 2 vectors of a set.
+    * Gives the same value as <code>apply(x[i], x[j])</code>.
+    * @param x The vectors
+    * @param pre The precomputed terms of the vectors
+    * @param i Index of vector 1
+    * @param j Index of vector 2
+    * @return The Kernel function's output.
+    */
+   public double apply(DoubleMatrix1D []x, double []pre, int i, int j)
+   {
+     if (type == KERNEL_GAUSSIAN)
+     {
+       // K(x,z) = exp(-|x|^2 / sigma) * exp(-|z|^2 / sigma) * exp(2<x.z> / sigma)
+       return(pre[i]*pre[j]*Math.exp(2*x[i].zDotProduct(x[j])/par[0]));
+     }
+     else return(func.apply(x[i], x[j]));
+   }
+
+   public int getType()
+   {
+     return(type);
+   }
+
    // **********************************************************\
    // *                    Kernel Construction                 *
    // **********************************************************/
@@ -59,7 +106,8 @@ public class Kernel
     */
    public Kernel(int _type, double []_par)
    {
-     par = _par;
+     par  = _par;
+     type = _type;
      if      (_type == KERNEL_LINEAR)     func = new KernelLinear();
      else if (_type == KERNEL_GAUSSIAN)   func = new KernelGaussian();
      else if (_type == KERNEL_POLYNOMIAL) func = new KernelPoly();
@@ -11,8 +11,9 @@
 \*********************************************************/
 package org.shaman.svm;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.shaman.exceptions.LearnerException;
 import org.shaman.learning.Presenter;
@@ -23,8 +24,14 @@ import cern.colt.matrix.DoubleMatrix1D;
 
 /**
  * <h2>Kernel Matrix Cache</h2>
- * Stores entries of the Kernel Matrix that have
+ * Stores rows of the Kernel Matrix that have
  * been evaluated to avoid duplicate calculations.
+ * The rows are kept within a memory budget. When it's full,
+ * the least recently used row makes place for the new one.
+ * Since the Kernel Matrix is symmetric, K(i,j) is found in
+ * row i as well as in row j.
+ * When a ForkJoinPool is given, long rows are calculated
+ * in parallel column ranges.
  */
 
 // **********************************************************\
@@ -32,47 +39,288 @@ import cern.colt.matrix.DoubleMatrix1D;
 // **********************************************************/
 public class KernelCache
 {
+    /** Default memory budget of the cache in bytes. */
+    public static final long DEFAULT_CACHE_SIZE = 64*1024*1024;
+    /** Number of columns calculated by a single task when calculating a row in parallel. */
+    public static final int  PARALLEL_COLUMNS   = 2048;
+
     private Kernel    kernel;
     private Presenter x;
-    private Map       cacheMap;   
-    
+    private long      cacheSize;      // Memory budget in bytes
+    private ForkJoinPool pool;        // Calculates rows in parallel column ranges. null = calculate in the calling thread.
+
+    // --- Run-time Data ---
+    private DoubleMatrix1D []instances;   // The instances of the Presenter
+    private double         []pre;         // Precomputed per-instance Kernel terms. e.g. the squared norms for the Gaussian Kernel
+    private double       [][]rows;        // [i] = Cached row i of the Kernel Matrix or null
+    private int            []prev;        // Least recently used list of cached rows. Previous (more recent) row.
+    private int            []next;        // Next (less recent) row.
+    private int              head;        // Most recently used row
+    private int              tail;        // Least recently used row
+    private int              numRows;     // Number of cached rows
+    private int              maxRows;     // Maximum number of cached rows
+    private long             hits;        // Number of requests found in the cache
+    private long             misses;      // Number of requests that needed a row to be calculated
+
+    // **********************************************************\
+    // *                   Kernel Matrix Access                 *
+    // **********************************************************/
     public void set(int i, int j, double m)
     {
-        String key;
-        Double value;
-        
-        key   = i+"@"+j;
-        value = new Double(m);
-        this.cacheMap.put(key, value);
+        // Overwrite the value wherever it's cached.
+        if (this.rows == null) return;
+        if (this.rows[i] != null) this.rows[i][j] = m;
+        if (this.rows[j] != null) this.rows[j][i] = m;
     }
-    
+
     public double get(int i, int j) throws LearnerException
     {
-        Double value;
         double hit;
-        
-        // Check if the value is there
-        value = (Double)this.cacheMap.get(i+"@"+j);
-        if (value != null) hit = value.doubleValue();
+
+        if (this.rows == null) init();
+
+        // Check if the value is there. In row i or in row j.
+        if      (this.rows[i] != null) { hit = this.rows[i][j]; touch(i); this.hits++; }
+        else if (this.rows[j] != null) { hit = this.rows[j][i]; touch(j); this.hits++; }
+        else
+        {
+            // If not there, calculate the row and insert it in the cache
+            hit = calculateRow(i)[j];
+            this.misses++;
+        }
+
+        return(hit);
+    }
+
+    /**
+     * Give a row of the Kernel Matrix.
+     * The returned array is owned by the cache. It stays valid at least until another row is requested.
+     * @param i The row index
+     * @return [j] = K(i,j)
+     * @throws LearnerException If the instances cannot be read.
+     */
+    public double []getRow(int i) throws LearnerException
+    {
+        double []row;
+
+        if (this.rows == null) init();
+
+        row = this.rows[i];
+        if (row != null) { touch(i); this.hits++; }
         else
         {
-            // If not there, calculate it
-            DoubleMatrix1D a = x.getInstance(i);
-            DoubleMatrix1D b = x.getInstance(j);
-            hit   = this.kernel.apply(a,b);
-            
-            // And insert in cache
-            value = new Double(hit);
-            this.cacheMap.put(i+"@"+j, value);
+            row = calculateRow(i);
+            this.misses++;
+        }
+
+        return(row);
+    }
+
+    private double []calculateRow(int i)
+    {
+        double []row;
+        int      j;
+
+        // Make place for the row. Re-use the array of the least recently used row when the cache is full.
+        if (this.numRows == this.maxRows)
+        {
+            j            = this.tail;
+            row          = this.rows[j];
+            this.rows[j] = null;
+            unlink(j);
+            this.numRows--;
+        }
+        else row = new double[this.instances.length];
+
+        // Copy the values that are known in other rows. Calculate the rest.
+        if ((this.pool == null) || (row.length <= PARALLEL_COLUMNS)) fillRow(i, row, 0, row.length);
+        else
+        {
+            RowTask task;
+
+            // Run inline when already inside the pool, e.g. when called by a task training a binary SVM.
+            task = new RowTask(i, row, 0, row.length);
+            if (ForkJoinTask.getPool() == this.pool) task.invoke();
+            else                                     this.pool.invoke(task);
+        }
+
+        // Insert as most recently used row.
+        this.rows[i] = row;
+        link(i);
+        this.numRows++;
+
+        return(row);
+    }
+
+    private void fillRow(int i, double []row, int begin, int end)
+    {
+        int j;
+
+        for (j=begin; j<end; j++)
+        {
+            if (this.rows[j] != null) row[j] = this.rows[j][i];
+            else                      row[j] = this.kernel.apply(this.instances, this.pre, i, j);
+        }
+    }
+
+    /**
+     * Give the diagonal of the Kernel Matrix. Does not use or change the cached rows.
+     * @return [i] = K(i,i)
+     * @throws LearnerException If the instances cannot be read.
+     */
+    public double []getDiagonal() throws LearnerException
+    {
+        double []diag;
+        int      i;
+
+        if (this.rows == null) init();
+
+        diag = new double[this.instances.length];
+        for (i=0; i<diag.length; i++) diag[i] = this.kernel.apply(this.instances, this.pre, i, i);
+
+        return(diag);
+    }
+
+    // Splits a row in halves until the column ranges are small enough.
+    private class RowTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private int      i;
+        private double []row;
+        private int      begin, end;
+
+        protected void compute()
+        {
+            int mid;
+
+            if (this.end - this.begin <= PARALLEL_COLUMNS) fillRow(this.i, this.row, this.begin, this.end);
+            else
+            {
+                mid = (this.begin + this.end) >>> 1;
+                invokeAll(new RowTask(this.i, this.row, this.begin, mid), new RowTask(this.i, this.row, mid, this.end));
+            }
         }
-        
-        return(hit); 
+
+        RowTask(int i, double []row, int begin, int end)
+        {
+            this.i     = i;
+            this.row   = row;
+            this.begin = begin;
+            this.end   = end;
+        }
+    }
+
+    // **********************************************************\
+    // *              Least Recently Used Row List              *
+    // **********************************************************/
+    private void touch(int i)
+    {
+        if (this.head != i) { unlink(i); link(i); }
+    }
+
+    private void link(int i)
+    {
+        // Insert at the front of the list
+        this.prev[i] = -1;
+        this.next[i] = this.head;
+        if (this.head != -1) this.prev[this.head] = i;
+        else                 this.tail            = i;
+        this.head = i;
     }
-    
+
+    private void unlink(int i)
+    {
+        if (this.prev[i] != -1) this.next[this.prev[i]] = this.next[i];
+        else                    this.head               = this.next[i];
+        if (this.next[i] != -1) this.prev[this.next[i]] = this.prev[i];
+        else                    this.tail               = this.prev[i];
+    }
+
+    // **********************************************************\
+    // *                  Cache Configuration                   *
+    // **********************************************************/
+    /**
+     * Set the memory budget of the cache. At least 2 rows are always cached.
+     * @param cacheSize The maximum number of bytes used for the cached rows.
+     */
+    public void setCacheSize(long cacheSize)
+    {
+        this.cacheSize = cacheSize;
+        this.rows      = null;
+    }
+
+    /**
+     * Set the pool used to calculate long rows in parallel. The cache does not shut it down.
+     * @param pool The pool. null to calculate the rows in the calling thread.
+     */
+    public void setPool(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    public long getCacheSize()       { return(this.cacheSize); }
+    public int  getMaximumRows()     { return(this.maxRows); }
+    public int  getNumberOfRows()    { return(this.numRows); }
+    public long getMemoryUsed()      { return((this.rows == null) ? 0 : 8L*this.numRows*this.rows.length); }
+    public long getHits()            { return(this.hits); }
+    public long getMisses()          { return(this.misses); }
+
+    public void resetStatistics()
+    {
+        this.hits   = 0;
+        this.misses = 0;
+    }
+
+    private void init() throws LearnerException
+    {
+        int    i, n;
+        long   rowSize;
+
+        // Get the instances and precompute the Kernel terms that only depend on a single instance.
+        if (this.instances == null)
+        {
+            n              = this.x.getNumberOfInstances();
+            this.instances = new DoubleMatrix1D[n];
+            for (i=0; i<n; i++) this.instances[i] = this.x.getInstance(i);
+        }
+        n              = this.instances.length;
+        this.pre       = this.kernel.precompute(this.instances);
+
+        // Number of rows fitting in the memory budget.
+        rowSize      = 8L*Math.max(n, 1);
+        this.maxRows = (int)Math.max(2, Math.min(n, this.cacheSize / rowSize));
+
+        this.rows    = new double[n][];
+        this.prev    = new int[n];
+        this.next    = new int[n];
+        this.head    = -1;
+        this.tail    = -1;
+        this.numRows = 0;
+    }
+
     public KernelCache(Kernel kernel, Presenter x)
     {
-        this.x        = x;
-        this.kernel   = kernel;
-        this.cacheMap = new HashMap();
+        this(kernel, x, DEFAULT_CACHE_SIZE);
+    }
+
+    public KernelCache(Kernel kernel, Presenter x, long cacheSize)
+    {
+        this.x         = x;
+        this.kernel    = kernel;
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Make a cache of the Kernel Matrix of the given instances.
+     * @param kernel The Kernel
+     * @param instances The instances. Row and column indices refer to this array.
+     * @param cacheSize The memory budget in bytes
+     */
+    public KernelCache(Kernel kernel, DoubleMatrix1D []instances, long cacheSize)
+    {
+        this.instances = instances;
+        this.kernel    = kernel;
+        this.cacheSize = cacheSize;
     }
 }
@@ -0,0 +1,335 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.svm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.shaman.exceptions.LearnerException;
+
+import cern.colt.matrix.DoubleMatrix1D;
+
+
+/**
+ * <h2>Kernel Matrix Operator</h2>
+ * Products of the Kernel Matrix of a set of instances with vectors,
+ * without storing the matrix. The Kernel values are calculated on the fly
+ * in blocks of rows and columns. The rows are divided in a fixed number of
+ * parts that are done in parallel when a ForkJoinPool is given.
+ * The parts do not depend on the number of threads, so neither do the results.
+ * <br>
+ * Also gives the products with the columns of the Kernel Matrix of a
+ * subset of landmark instances, as used by the Nystrom approximation.
+ */
+
+// **********************************************************\
+// *                 Kernel Matrix Operator                 *
+// **********************************************************/
+class KernelOperator
+{
+    /** Number of rows and columns of a block of Kernel values. */
+    public static final int BLOCK_SIZE = 256;
+    /** Maximum number of row ranges done in parallel. */
+    public static final int MAX_PARTS  = 64;
+
+    private Kernel           kernel;
+    private DoubleMatrix1D []x;          // The instances
+    private double         []pre;        // Their precomputed Kernel terms
+    private ForkJoinPool     pool;       // Runs the row ranges. null = in the calling thread.
+    private int            []partBegin;  // [p] = First row of part p. [numParts] = number of rows.
+
+    // **********************************************************\
+    // *                  Full Kernel Products                  *
+    // **********************************************************/
+    /**
+     * Multiply the shifted Kernel Matrix with some vectors.
+     * @param in [v] = Vector v
+     * @param out [v] = (K + shift*I) * in[v]
+     * @param shift The value added to the diagonal
+     * @throws LearnerException If a parallel part fails.
+     */
+    public void multiply(final double [][]in, final double [][]out, final double shift) throws LearnerException
+    {
+        final int n = this.x.length;
+
+        runParts(new PartTask()
+        {
+            public void run(int part, int begin, int end)
+            {
+                int    i, j, v, ib, jb, iend, jend;
+                double kij;
+
+                for (v=0; v<in.length; v++) for (i=begin; i<end; i++) out[v][i] = shift*in[v][i];
+
+                // Blocks of rows and columns keep the instances involved in the cache.
+                for (ib=begin; ib<end; ib+=BLOCK_SIZE)
+                {
+                    iend = Math.min(ib+BLOCK_SIZE, end);
+                    for (jb=0; jb<n; jb+=BLOCK_SIZE)
+                    {
+                        jend = Math.min(jb+BLOCK_SIZE, n);
+                        for (i=ib; i<iend; i++)
+                        {
+                            for (j=jb; j<jend; j++)
+                            {
+                                kij = kernel.apply(x, pre, i, j);
+                                for (v=0; v<in.length; v++) out[v][i] += kij*in[v][j];
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Give the diagonal of the Kernel Matrix.
+     * @return [i] = K(i,i)
+     */
+    public double []getDiagonal()
+    {
+        int      i;
+        double []diag;
+
+        diag = new double[this.x.length];
+        for (i=0; i<diag.length; i++) diag[i] = this.kernel.apply(this.x, this.pre, i, i);
+
+        return(diag);
+    }
+
+    // **********************************************************\
+    // *                 Landmark Kernel Products               *
+    // **********************************************************/
+    // C = The columns of the Kernel Matrix of the landmarks. C(i,a) = K(i, landmark a)
+    /**
+     * Give the Kernel Matrix of the landmarks.
+     * @param landmarks The indices of the landmark instances
+     * @return [a][b] = K(landmark a, landmark b)
+     */
+    public double [][]landmarkMatrix(int []landmarks)
+    {
+        int        a, b, m;
+        double [][]w;
+
+        m = landmarks.length;
+        w = new double[m][m];
+        for (a=0; a<m; a++)
+        {
+            for (b=a; b<m; b++)
+            {
+                w[a][b] = this.kernel.apply(this.x, this.pre, landmarks[a], landmarks[b]);
+                w[b][a] = w[a][b];
+            }
+        }
+
+        return(w);
+    }
+
+    /**
+     * Give C'C.
+     * @param landmarks The indices of the landmark instances
+     * @return [a][b] = sum_i K(i, landmark a) * K(i, landmark b)
+     * @throws LearnerException If a parallel part fails.
+     */
+    public double [][]crossProduct(final int []landmarks) throws LearnerException
+    {
+        final int            m    = landmarks.length;
+        final double [][][]  part = new double[getNumberOfParts()][][];
+        double           [][]ctc;
+        int                  a, b, p;
+
+        // Every part sums its own rows. Add the parts in a fixed order afterwards.
+        runParts(new PartTask()
+        {
+            public void run(int p, int begin, int end)
+            {
+                int        i, a, b;
+                double   []c;
+                double [][]sum;
+
+                c   = new double[m];
+                sum = new double[m][m];
+                for (i=begin; i<end; i++)
+                {
+                    landmarkRow(i, landmarks, c);
+                    for (a=0; a<m; a++) for (b=a; b<m; b++) sum[a][b] += c[a]*c[b];
+                }
+                part[p] = sum;
+            }
+        });
+
+        ctc = new double[m][m];
+        for (p=0; p<part.length; p++) for (a=0; a<m; a++) for (b=a; b<m; b++) ctc[a][b] += part[p][a][b];
+        for (a=0; a<m; a++) for (b=0; b<a; b++) ctc[a][b] = ctc[b][a];
+
+        return(ctc);
+    }
+
+    /**
+     * Multiply C' with some vectors.
+     * @param landmarks The indices of the landmark instances
+     * @param in [v] = Vector v of length n
+     * @return [v] = C' * in[v]
+     * @throws LearnerException If a parallel part fails.
+     */
+    public double [][]multiplyTransposed(final int []landmarks, final double [][]in) throws LearnerException
+    {
+        final int            m    = landmarks.length;
+        final double [][][]  part = new double[getNumberOfParts()][][];
+        double           [][]out;
+        int                  a, p, v;
+
+        runParts(new PartTask()
+        {
+            public void run(int p, int begin, int end)
+            {
+                int        i, a, v;
+                double   []c;
+                double [][]sum;
+
+                c   = new double[m];
+                sum = new double[in.length][m];
+                for (i=begin; i<end; i++)
+                {
+                    landmarkRow(i, landmarks, c);
+                    for (v=0; v<in.length; v++) for (a=0; a<m; a++) sum[v][a] += c[a]*in[v][i];
+                }
+                part[p] = sum;
+            }
+        });
+
+        out = new double[in.length][m];
+        for (p=0; p<part.length; p++) for (v=0; v<in.length; v++) for (a=0; a<m; a++) out[v][a] += part[p][v][a];
+
+        return(out);
+    }
+
+    /**
+     * Multiply C with some vectors.
+     * @param landmarks The indices of the landmark instances
+     * @param in [v] = Vector v with a value for each landmark
+     * @param out [v] = C * in[v]
+     * @throws LearnerException If a parallel part fails.
+     */
+    public void multiplyLandmarks(final int []landmarks, final double [][]in, final double [][]out) throws LearnerException
+    {
+        final int m = landmarks.length;
+
+        runParts(new PartTask()
+        {
+            public void run(int p, int begin, int end)
+            {
+                int      i, a, v;
+                double []c;
+                double   s;
+
+                c = new double[m];
+                for (i=begin; i<end; i++)
+                {
+                    landmarkRow(i, landmarks, c);
+                    for (v=0; v<in.length; v++)
+                    {
+                        s = 0;
+                        for (a=0; a<m; a++) s += c[a]*in[v][a];
+                        out[v][i] = s;
+                    }
+                }
+            }
+        });
+    }
+
+    private void landmarkRow(int i, int []landmarks, double []c)
+    {
+        int a;
+
+        for (a=0; a<landmarks.length; a++) c[a] = this.kernel.apply(this.x, this.pre, i, landmarks[a]);
+    }
+
+    // **********************************************************\
+    // *                   Parallel Row Ranges                  *
+    // **********************************************************/
+    private interface PartTask
+    {
+        public void run(int part, int begin, int end);
+    }
+
+    private int getNumberOfParts()
+    {
+        return(this.partBegin.length-1);
+    }
+
+    private void runParts(final PartTask task) throws LearnerException
+    {
+        int p;
+
+        if (this.pool == null)
+        {
+            for (p=0; p<getNumberOfParts(); p++) task.run(p, this.partBegin[p], this.partBegin[p+1]);
+        }
+        else
+        {
+            List<Callable<Object>> tasks;
+
+            tasks = new ArrayList<Callable<Object>>();
+            for (p=0; p<getNumberOfParts(); p++)
+            {
+                final int part  = p;
+                final int begin = this.partBegin[p];
+                final int end   = this.partBegin[p+1];
+                tasks.add(new Callable<Object>()
+                {
+                    public Object call() throws Exception
+                    {
+                        task.run(part, begin, end);
+                        return(null);
+                    }
+                });
+            }
+            try
+            {
+                for(Future<Object> done: this.pool.invokeAll(tasks)) done.get();
+            }
+            catch(InterruptedException ex) { throw new LearnerException(ex); }
+            catch(ExecutionException ex)   { throw new LearnerException("Kernel Matrix product failed.", ex.getCause()); }
+        }
+    }
+
+    public int size()
+    {
+        return(this.x.length);
+    }
+
+    /**
+     * Make an operator for the Kernel Matrix of the given instances.
+     * @param kernel The Kernel
+     * @param x The instances
+     * @param pool Runs the row ranges in parallel. null to use the calling thread.
+     */
+    public KernelOperator(Kernel kernel, DoubleMatrix1D []x, ForkJoinPool pool)
+    {
+        int p, numParts;
+
+        this.kernel = kernel;
+        this.x      = x;
+        this.pre    = kernel.precompute(x);
+        this.pool   = pool;
+
+        // Divide the rows in equal parts of at least a block.
+        numParts       = Math.max(1, Math.min(MAX_PARTS, (x.length+BLOCK_SIZE-1)/BLOCK_SIZE));
+        this.partBegin = new int[numParts+1];
+        for (p=0; p<=numParts; p++) this.partBegin[p] = (int)(((long)p*x.length)/numParts);
+    }
+}
@@ -11,6 +11,9 @@
 \*********************************************************/
 package org.shaman.svm;
 
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.shaman.datamodel.DataModel;
 import org.shaman.exceptions.ConfigException;
@@ -31,6 +34,17 @@ import cern.colt.matrix.ObjectMatrix1D;
 /**
  * <h2>Least Squares Support Vector Machine</h2>
  * ESAT LS-SVMlab
+ * <br>
+ * Besides the ported conjugate gradient training on the cached Kernel Matrix,
+ * there are 2 solvers for large training sets. Both solve the LS-SVM system
+ * <code>[0 1'; 1 K+I/gamma] [b; alpha] = [0; y]</code> without storing the Kernel Matrix.
+ * <ul>
+ * <li>SOLVER_CG : Preconditioned conjugate gradient. The Kernel Matrix products are calculated
+ *     on the fly in blocks, in parallel. The preconditioner is the Nystrom approximation
+ *     or the diagonal when there are no landmarks.</li>
+ * <li>SOLVER_NYSTROM : Solves the system with the Kernel Matrix replaced by its Nystrom approximation
+ *     on a random subset of landmark instances. Classification only needs the landmarks.</li>
+ * </ul>
  */
 
 // **********************************************************\
@@ -38,6 +52,13 @@ import cern.colt.matrix.ObjectMatrix1D;
 // **********************************************************/
 public class LSSVM extends ClassifierTransformation implements Classifier
 {
+    /** Conjugate Gradient on the cached Kernel Matrix. Ported from LS-SVMlab. */
+    public static final int SOLVER_CGA     = 0;
+    /** Matrix-free Preconditioned Conjugate Gradient. */
+    public static final int SOLVER_CG      = 1;
+    /** Nystrom low-rank approximation of the Kernel Matrix. */
+    public static final int SOLVER_NYSTROM = 2;
+    
     // ----- Ported from LS-SVMlab -----
     // Training Instances goal vector
     private DoubleMatrix1D Y;
@@ -71,10 +92,22 @@ public class LSSVM extends ClassifierTransformation implements Classifier
     
     private Kernel      kernel;
     private KernelCache kernelCache;
+    private long        kernelCacheSize;   // Memory budget of the Kernel Cache in bytes
+    
+    // Large-scale solver parameters
+    private int      solver;            // SOLVER_CGA, SOLVER_CG or SOLVER_NYSTROM
+    private int      numberOfLandmarks; // Number of landmarks of the Nystrom approximation. 0 = no preconditioner for SOLVER_CG.
+    private double   tolerance;         // Stop CG when the residual is below this fraction of the right hand side's norm
+    private int      maxIterations;     // Maximum number of CG iterations
+    private int      numberOfThreads;   // Number of threads for the Kernel Matrix products. 0 = number of processors.
+    private long     randomSeed;        // Seed of the landmark selection
+    private int      iterations;        // Number of CG iterations used by the last training
     
     // --- Model ---
     private DoubleMatrix1D alpha;
     private double         b;
+    private DoubleMatrix1D []expX;      // Large-scale solvers: output = sum_i expW(i) * Kernel(expX[i], x) + b
+    private double         []expW;
     
     // **********************************************************\
     // *                   Classification                       *
@@ -92,24 +125,33 @@ public class LSSVM extends ClassifierTransformation implements Classifier
         double         kerval;
         int            nb, i;
         
-        nb = this._nb;
-        
-        // Kx(i) = Kernel(train instance i, test instance) 
-        kx = DoubleFactory1D.dense.make(nb);
-        for (i=0; i<nb; i++)
+        if (this.solver != SOLVER_CGA)
         {
-            Xrow   = this.trainData.getInstance(i);
-            kerval = kernel.apply(Xrow, Xt); 
-            kx.setQuick(i, kerval);
+            // Kernel expansion on the training instances or the landmarks.
+            Yt = this.b;
+            for (i=0; i<this.expX.length; i++) Yt += this.expW[i]*this.kernel.apply(this.expX[i], Xt);
         }
-        
-        // Y = Kx' * (alpha + [1...1]*b)
-        DoubleMatrix1D apb = DoubleFactory1D.dense.make(nb);
-        for (i=0; i<nb; i++)
+        else
         {
-            apb.setQuick(i, alpha.getQuick(i)*Y.getQuick(i)+b);
+            nb = this._nb;
+            
+            // Kx(i) = Kernel(train instance i, test instance) 
+            kx = DoubleFactory1D.dense.make(nb);
+            for (i=0; i<nb; i++)
+            {
+                Xrow   = this.trainData.getInstance(i);
+                kerval = kernel.apply(Xrow, Xt); 
+                kx.setQuick(i, kerval);
+            }
+            
+            // Y = Kx' * (alpha + [1...1]*b)
+            DoubleMatrix1D apb = DoubleFactory1D.dense.make(nb);
+            for (i=0; i<nb; i++)
+            {
+                apb.setQuick(i, alpha.getQuick(i)*Y.getQuick(i)+b);
+            }
+            Yt = kx.zDotProduct(apb);
         }
-        Yt = kx.zDotProduct(apb);
         
         // Determine output class
         int clout;
@@ -139,6 +181,12 @@ public class LSSVM extends ClassifierTransformation implements Classifier
     {
         double []startv;
         
+        if (this.solver != SOLVER_CGA)
+        {
+            trainLargeScale();
+            return;
+        }
+        
         // Prepare Data in right format
         prepareData();
         
@@ -177,6 +225,196 @@ public class LSSVM extends ClassifierTransformation implements Classifier
         //System.out.println("TRAINED *** alpha *** "+alpha+"\n        *** b     *** "+b);
     }
     
+    // **********************************************************\
+    // *               Large-Scale Training Algorithm           *
+    // **********************************************************/
+    private void trainLargeScale() throws LearnerException
+    {
+        DoubleMatrix1D     []x;
+        double           [][]rhs, sol;
+        double             []eta, nu, alph;
+        int                  i, n, threads;
+        double               lambda, s1, s2;
+        ForkJoinPool         pool;
+        KernelOperator       op;
+        NystromApproximation nys;
+        
+        if (this._gamma <= 0) throw new LearnerException("LS-SVM needs a positive regularization parameter gamma.");
+        
+        // The instances and their target values (-1 for class 0, 1 otherwise).
+        prepareGoals();
+        n = this.Y.size();
+        x = new DoubleMatrix1D[n];
+        for (i=0; i<n; i++) x[i] = this.trainData.getInstance(i);
+        
+        this.kernel = new Kernel(this.kertype, this.kerpar);
+        lambda      = this._inv_gamma;
+        threads     = getThreads();
+        pool        = (threads > 1) ? new ForkJoinPool(threads) : null;
+        try
+        {
+            op  = new KernelOperator(this.kernel, x, pool);
+            nys = null;
+            if ((this.solver == SOLVER_NYSTROM) || (this.numberOfLandmarks > 0))
+                nys = new NystromApproximation(op, selectLandmarks(n), lambda);
+            
+            // Solve H*eta = 1 and H*nu = y with H = K + I/gamma.
+            rhs = new double[2][n];
+            for (i=0; i<n; i++) { rhs[0][i] = 1.0; rhs[1][i] = this.Y.getQuick(i); }
+            sol = new double[2][n];
+            if (this.solver == SOLVER_NYSTROM)
+            {
+                nys.solve(rhs, sol);
+                this.iterations = 0;
+            }
+            else this.iterations = solveCG(op, lambda, nys, rhs, sol);
+            
+            // b = 1'nu / 1'eta, alpha = nu - eta*b
+            eta = sol[0];
+            nu  = sol[1];
+            s1  = 0; s2 = 0;
+            for (i=0; i<n; i++) { s1 += eta[i]; s2 += nu[i]; }
+            this.b = s2/s1;
+            alph   = new double[n];
+            for (i=0; i<n; i++) alph[i] = nu[i] - eta[i]*this.b;
+            this.alpha = DoubleFactory1D.dense.make(alph);
+            
+            // Classify with the Kernel expansion on all instances or on the landmarks only.
+            if (this.solver == SOLVER_NYSTROM)
+            {
+                int []landmarks = nys.getLandmarks();
+                
+                this.expW = nys.getLandmarkWeights(alph);
+                this.expX = new DoubleMatrix1D[landmarks.length];
+                for (i=0; i<landmarks.length; i++) this.expX[i] = x[landmarks[i]];
+            }
+            else
+            {
+                this.expW = alph;
+                this.expX = x;
+            }
+        }
+        finally
+        {
+            if (pool != null) pool.shutdown();
+        }
+    }
+    
+    private int solveCG(KernelOperator op, double lambda, NystromApproximation nys, double [][]rhs, double [][]sol) throws LearnerException
+    {
+        int        i, v, k, nv, n;
+        double [][]r, z, p, ap;
+        double   []rz, norm, diag;
+        double     rznew, pap, a, rr;
+        boolean  []done;
+        boolean    alldone;
+        
+        // Preconditioned CG on the right hand sides in lockstep. They share the Kernel evaluations.
+        nv   = rhs.length;
+        n    = rhs[0].length;
+        r    = new double[nv][];
+        z    = new double[nv][n];
+        p    = new double[nv][n];
+        ap   = new double[nv][n];
+        rz   = new double[nv];
+        norm = new double[nv];
+        done = new boolean[nv];
+        diag = (nys == null) ? op.getDiagonal() : null;
+        for (v=0; v<nv; v++)
+        {
+            r[v] = rhs[v].clone();
+            for (i=0; i<n; i++) norm[v] += rhs[v][i]*rhs[v][i];
+            norm[v] = Math.sqrt(norm[v]);
+        }
+        precondition(nys, diag, lambda, r, z);
+        for (v=0; v<nv; v++)
+        {
+            for (i=0; i<n; i++) { p[v][i] = z[v][i]; rz[v] += r[v][i]*z[v][i]; }
+        }
+        
+        alldone = false;
+        for (k=0; (k<this.maxIterations) && !alldone; k++)
+        {
+            op.multiply(p, ap, lambda);
+            alldone = true;
+            for (v=0; v<nv; v++)
+            {
+                if (done[v]) continue;
+                
+                pap = 0;
+                for (i=0; i<n; i++) pap += p[v][i]*ap[v][i];
+                a  = rz[v]/pap;
+                rr = 0;
+                for (i=0; i<n; i++)
+                {
+                    sol[v][i] += a*p[v][i];
+                    r[v][i]   -= a*ap[v][i];
+                    rr        += r[v][i]*r[v][i];
+                }
+                done[v]  = (Math.sqrt(rr) <= this.tolerance*norm[v]);
+                alldone &= done[v];
+            }
+            if (!alldone)
+            {
+                precondition(nys, diag, lambda, r, z);
+                for (v=0; v<nv; v++)
+                {
+                    if (done[v]) continue;
+                    
+                    rznew = 0;
+                    for (i=0; i<n; i++) rznew += r[v][i]*z[v][i];
+                    for (i=0; i<n; i++) p[v][i] = z[v][i] + (rznew/rz[v])*p[v][i];
+                    rz[v] = rznew;
+                }
+            }
+        }
+        
+        return(k);
+    }
+    
+    private void precondition(NystromApproximation nys, double []diag, double lambda, double [][]r, double [][]z) throws LearnerException
+    {
+        int i, v;
+        
+        // Nystrom approximation of the system when there are landmarks. Otherwise the diagonal.
+        if (nys != null) nys.solve(r, z);
+        else
+        {
+            for (v=0; v<r.length; v++) for (i=0; i<r[v].length; i++) z[v][i] = r[v][i]/(diag[i]+lambda);
+        }
+    }
+    
+    private int []selectLandmarks(int n)
+    {
+        int    []perm, landmarks;
+        int      i, j, m, t;
+        Random   rand;
+        
+        // Uniform sample without replacement. Sorted for memory locality.
+        m    = Math.max(1, Math.min(n, this.numberOfLandmarks));
+        rand = new Random(this.randomSeed);
+        perm = new int[n];
+        for (i=0; i<n; i++) perm[i] = i;
+        for (i=0; i<m; i++)
+        {
+            j       = i + rand.nextInt(n-i);
+            t       = perm[i];
+            perm[i] = perm[j];
+            perm[j] = t;
+        }
+        landmarks = new int[m];
+        System.arraycopy(perm, 0, landmarks, 0, m);
+        Arrays.sort(landmarks);
+        
+        return(landmarks);
+    }
+    
+    private int getThreads()
+    {
+        if (this.numberOfThreads <= 0) return(Runtime.getRuntime().availableProcessors());
+        else                           return(this.numberOfThreads);
+    }
+    
     // **********************************************************\
     // *              Kernel and Training Parameters            *
     // **********************************************************/
@@ -186,33 +424,103 @@ public class LSSVM extends ClassifierTransformation implements Classifier
         this.kerpar  = kerpar;
     }
     
+    /**
+     * Set the memory budget of the Kernel Matrix cache used during training.
+     * @param kernelCacheSize Maximum number of bytes of cached Kernel rows.
+     */
+    public void setKernelCacheSize(long kernelCacheSize)
+    {
+        this.kernelCacheSize = kernelCacheSize;
+    }
+    
+    public KernelCache getKernelCache()
+    {
+        return(this.kernelCache);
+    }
+    
     public void setGamma(double gam)
     {
         this._gamma     = gam;
         this._inv_gamma = 1.0/gam;
     }
     
+    /**
+     * Set the training algorithm.
+     * @param solver SOLVER_CGA (default), SOLVER_CG or SOLVER_NYSTROM
+     */
+    public void setSolver(int solver)
+    {
+        this.solver = solver;
+    }
+    
+    /**
+     * Set the number of landmark instances of the Nystrom approximation.
+     * It is used as the system for SOLVER_NYSTROM and as the preconditioner for SOLVER_CG.
+     * @param numberOfLandmarks The number of landmarks. For SOLVER_CG, 0 uses the diagonal as preconditioner.
+     */
+    public void setNumberOfLandmarks(int numberOfLandmarks)
+    {
+        this.numberOfLandmarks = numberOfLandmarks;
+    }
+    
+    /**
+     * Set the stopping criteria of SOLVER_CG.
+     * @param tolerance Stop when the norm of the residual is below this fraction of the norm of the right hand side.
+     * @param maxIterations The maximum number of iterations.
+     */
+    public void setCGParameters(double tolerance, int maxIterations)
+    {
+        this.tolerance     = tolerance;
+        this.maxIterations = maxIterations;
+    }
+    
+    /**
+     * Set the number of threads for the Kernel Matrix products of the large-scale solvers.
+     * @param numberOfThreads The number of threads. 0 = number of processors.
+     */
+    public void setNumberOfThreads(int numberOfThreads)
+    {
+        this.numberOfThreads = numberOfThreads;
+    }
+    
+    public void setRandomSeed(long randomSeed)
+    {
+        this.randomSeed = randomSeed;
+    }
+    
+    public int getNumberOfIterations()
+    {
+        return(this.iterations);
+    }
+    
     // **********************************************************\
     // *             Construction and Initialization            *
     // **********************************************************/
+    private void prepareGoals() throws LearnerException
+    {
+        // Make the output class vector
+        DoubleMatrix1D gvec;
+        int            gnow;
+        int            i, numins;
+        
+        numins = this.trainData.getNumberOfInstances();
+        gvec   = DoubleFactory1D.dense.make(numins);
+        for (i=0; i<numins; i++)
+        {
+            gnow = this.trainData.getGoalClass(i);
+            if (gnow==0) gvec.setQuick(i, -1);
+            else         gvec.setQuick(i,  1);
+        }
+        this.Y = gvec;
+    }
+    
     private void prepareData() throws LearnerException
     {
         if (this.trainData != null)
         {
-            // Make the output class vector
-            DoubleMatrix1D gvec;
-            int            gnow;
             int            i, numins;
             
-            numins = this.trainData.getNumberOfInstances();
-            gvec   = DoubleFactory1D.dense.make(numins);
-            for (i=0; i<numins; i++)
-            {
-                gnow = this.trainData.getGoalClass(i);
-                if (gnow==0) gvec.setQuick(i, -1);
-                else         gvec.setQuick(i,  1);
-            }
-            this.Y = gvec;
+            prepareGoals();
             
             // Move instances to 2D Matrix and then to C style array
             int        j;
@@ -256,7 +564,7 @@ public class LSSVM extends ClassifierTransformation implements Classifier
         
         // Kernel and Kernel Cache
         this.kernel      = new Kernel(this.kertype, this.kerpar);
-        this.kernelCache = new KernelCache(this.kernel, this.trainData);
+        this.kernelCache = new KernelCache(this.kernel, this.trainData, this.kernelCacheSize);
         
         // Initialize the Classifier structures
         initClassifier();
@@ -328,6 +636,11 @@ public class LSSVM extends ClassifierTransformation implements Classifier
     {
         super();
         name        = "LS-SVM";
+        kernelCacheSize = KernelCache.DEFAULT_CACHE_SIZE;
         description = "Least Squares Support Vector Machine";
+        solver            = SOLVER_CGA;
+        numberOfLandmarks = 100;
+        tolerance         = 1e-6;
+        maxIterations     = 1000;
     }
 }
@@ -0,0 +1,137 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.svm;
+
+import org.shaman.exceptions.LearnerException;
+
+import cern.colt.matrix.DoubleFactory2D;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.linalg.CholeskyDecomposition;
+
+
+/**
+ * <h2>Nystrom Approximation</h2>
+ * Low-rank approximation of the Kernel Matrix using a subset of m landmark instances.
+ * <code>K ~ C W^-1 C'</code> with <code>C(i,a) = K(i, landmark a)</code> and <code>W</code> the
+ * Kernel Matrix of the landmarks.<br>
+ * Systems with the regularized approximation are solved exactly with the Woodbury identity
+ * <code>(C W^-1 C' + lambda*I)^-1 = (I - C (lambda*W + C'C)^-1 C') / lambda</code>.
+ * That needs O(nm) Kernel evaluations and an m x m Cholesky decomposition.
+ */
+
+// **********************************************************\
+// *                 Nystrom Approximation                  *
+// **********************************************************/
+class NystromApproximation
+{
+    /** Relative diagonal term added to the landmark Kernel Matrix for numerical stability. */
+    public static final double JITTER = 1e-8;
+
+    private KernelOperator        op;
+    private int                 []landmarks;
+    private double                lambda;
+    private CholeskyDecomposition cholW;      // W + jitter*I
+    private CholeskyDecomposition cholM;      // lambda*(W + jitter*I) + C'C
+
+    // **********************************************************\
+    // *                         Solving                        *
+    // **********************************************************/
+    /**
+     * Solve the regularized approximate system for some vectors.
+     * @param r [v] = Right hand side v
+     * @param out [v] = (C W^-1 C' + lambda*I)^-1 * r[v]
+     * @throws LearnerException If a Kernel product fails.
+     */
+    public void solve(double [][]r, double [][]out) throws LearnerException
+    {
+        double [][]u;
+        int        i, v;
+
+        u = this.op.multiplyTransposed(this.landmarks, r);
+        u = solve(this.cholM, u);
+        this.op.multiplyLandmarks(this.landmarks, u, out);
+        for (v=0; v<r.length; v++) for (i=0; i<r[v].length; i++) out[v][i] = (r[v][i] - out[v][i]) / this.lambda;
+    }
+
+    /**
+     * Give the landmark weights of a Kernel expansion.
+     * <code>sum_i alpha(i) K~(i, x) = sum_a beta(a) K(landmark a, x)</code>
+     * @param alpha The weights of the instances
+     * @return beta = W^-1 C' alpha
+     * @throws LearnerException If a Kernel product fails.
+     */
+    public double []getLandmarkWeights(double []alpha) throws LearnerException
+    {
+        double [][]u;
+
+        u = this.op.multiplyTransposed(this.landmarks, new double[][]{alpha});
+
+        return(solve(this.cholW, u)[0]);
+    }
+
+    public int []getLandmarks()
+    {
+        return(this.landmarks);
+    }
+
+    private double [][]solve(CholeskyDecomposition chol, double [][]b)
+    {
+        DoubleMatrix2D x;
+
+        // The vectors are the columns of the right hand side.
+        x = chol.solve(DoubleFactory2D.dense.make(b).viewDice().copy());
+
+        return(x.viewDice().toArray());
+    }
+
+    private CholeskyDecomposition decompose(double [][]a) throws LearnerException
+    {
+        CholeskyDecomposition chol;
+
+        chol = new CholeskyDecomposition(DoubleFactory2D.dense.make(a));
+        if (!chol.isSymmetricPositiveDefinite()) throw new LearnerException("Nystrom approximation failed. Landmark Kernel Matrix is not positive definite.");
+
+        return(chol);
+    }
+
+    /**
+     * Make the approximation of the regularized Kernel Matrix.
+     * @param op The Kernel Matrix of all instances
+     * @param landmarks The indices of the landmark instances
+     * @param lambda The regularization term added to the diagonal
+     * @throws LearnerException If the landmark Kernel Matrix can not be decomposed.
+     */
+    public NystromApproximation(KernelOperator op, int []landmarks, double lambda) throws LearnerException
+    {
+        double [][]w, ctc;
+        double     jitter;
+        int        a, b, m;
+
+        this.op        = op;
+        this.landmarks = landmarks;
+        this.lambda    = lambda;
+
+        // W with a small diagonal term relative to its mean diagonal.
+        m      = landmarks.length;
+        w      = op.landmarkMatrix(landmarks);
+        jitter = 0;
+        for (a=0; a<m; a++) jitter += w[a][a];
+        jitter = JITTER*jitter/m;
+        for (a=0; a<m; a++) w[a][a] += jitter;
+        this.cholW = decompose(w);
+
+        // lambda*W + C'C
+        ctc = op.crossProduct(landmarks);
+        for (a=0; a<m; a++) for (b=0; b<m; b++) ctc[a][b] += lambda*w[a][b];
+        this.cholM = decompose(ctc);
+    }
+}
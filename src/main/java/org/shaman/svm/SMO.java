@@ -11,6 +11,12 @@
 \*********************************************************/
 package org.shaman.svm;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.shaman.datamodel.DataModel;
 import org.shaman.exceptions.ConfigException;
@@ -25,14 +31,17 @@ import org.shaman.learning.Presenter;
 import cern.colt.list.IntArrayList;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.ObjectMatrix1D;
-import cern.colt.matrix.doublealgo.Formatter;
-import cern.jet.random.Uniform;
 
 
 /**
  * <h2>Support Vector Machine</h2>
  * SVM with SMO training. Supports Hard and Soft Margins.
- * For 2-class Classification problems.
+ * The working set is chosen with second order information and alpha's
+ * stuck at a bound are shrunk out of the active set. See SMOSolver.
+ * More than 2 classes are handled one-versus-one: a 2-class machine is trained
+ * for each pair of classes and the classes are voted for.
+ * These binary machines are trained in parallel. Long Kernel Matrix rows are
+ * calculated in parallel too.
  *
  * @author Johan Kaers
  * @version 2.0
@@ -51,361 +60,277 @@ public class SMO extends ClassifierTransformation implements Classifier
     public static final int MARGIN_SOFT_2NORM = 2;
     
     private Kernel         kernel;        // The Mercer Kernel that does the implicit mapping into feature space
-    private DoubleMatrix1D []sv;          // The Support Vectors
-    private double         []svclass;     // Classification of the SV's (-1 or 1)
-    private double         []alpha;       // The Lagrange Multipliers
-    private double         threshold;     // The Threshold
+    private DoubleMatrix1D []sv;          // The Support Vectors of all binary machines
+    private int          [][]svIndex;     // [m] = Indices in sv of the support vectors of binary machine m
+    private double       [][]svCoef;      // [m] = Their Lagrange Multipliers times their classification (-1 or 1)
+    private double         []threshold;   // [m] = The Threshold of binary machine m
+    private int            []classPos;    // [m] = The class with output 1 of binary machine m
+    private int            []classNeg;    // [m] = The class with output -1 of binary machine m
+    private int              numClasses;  // Number of goal classes
+    private long           kernelCacheSize; // Memory budget of the Kernel Caches in bytes
+    private int            numberOfThreads; // Number of threads. 0 = number of processors.
     
-    // **********************************************************\
-    // *              Sequential Minimal Optimisation           *
-    // **********************************************************/
-    public void train() throws LearnerException
-    {
-        initSMO();
-        
-        do
-        {
-            this.numChanged = 1;
-            trainSMO();
-            System.out.println("Numchanged = "+this.numChanged+" all "+this.examineAll);
-        }
-        while(this.numChanged > 0);
-    }
+    // Training statistics
+    private int              iterations;  // Total number of SMO iterations
+    private long             cacheHits;   // Total number of Kernel rows found in the caches
+    private long             cacheMisses; // Total number of Kernel rows calculated
+    private long             peakCacheMemory; // Most bytes held by the Kernel Caches at the same time
+    private List<KernelCache> liveCaches; // The Kernel Caches of the machines being trained
     
-    // **********************************************************\
-    // *              Sequential Minimal Optimisation           *
-    // **********************************************************/
     // Parameters
     private double   C;
     private double   tol;
-    private double   eps;
-    private int      margin;
+    private boolean  shrinking;
     
-    // Working Buffers
-    DoubleMatrix1D []point;      // The Training Instances
-    double         []target;     // Their Target values (1 or -1)
-    double         []alph;       // Their alpha's
-    private double         []errorcache; // The error cache
-    private IntArrayList   nonbound;     // Indices of the non-bound alpha's
-    
-    public void initSMO() throws LearnerException
+    // **********************************************************\
+    // *              Sequential Minimal Optimisation           *
+    // **********************************************************/
+    public void train() throws LearnerException
     {
-        int    i;
-        double []goal;
+        DoubleMatrix1D   []point;
+        int              []goal;
+        int                i, a, b, m, numMachines, threads;
+        IntArrayList     []classIndex;
+        MachineTask      []machine;
+        int            [][]member;
+        double             Cbound, eps;
+        long               cacheSize;
+        ForkJoinPool       pool;
         
         // Get all instances and their goal classes from the instance Presenter.
         point = ((CachingPresenter)this.trainData).getInstances();
-        goal  = ((CachingPresenter)this.trainData).getGoals();
-        
-        // Convert the goal to the target vector
-        target = new double[goal.length];
-        for (i=0; i<goal.length; i++)
-        {
-            if (goal[i] == 0.0) target[i] =  1.0;
-            else                target[i] = -1.0;
-        }
-        
-        // Initialize the alpha's and the threshold
-        alph = new double[point.length];
-        for (i=0; i<alph.length; i++) alph[i] = 0.0;
-        threshold = 0;
-        
-        // Initialize the Error Cache
-        errorcache = new double[point.length];
-        for (i=0; i<point.length; i++) errorcache[i] = -target[i];
-        
-        // Initialize the non-bound index list
-        nonbound = new IntArrayList();
-        
-        eps        = 1e-8;
-        numChanged = 0;
-        examineAll = true;
-    }
-    
-    boolean isAtBound(double a)
-    {
-        if ((Math.abs(a) > eps) && (Math.abs(C-a) > eps)) return(false);
-        else                                              return(true);
-    }
-    
-    public void SMOIteration() throws LearnerException
-    {
-        int i;
-        
-        IntArrayList nbbuf = new IntArrayList();
-        nonbound           = new IntArrayList();
-        for (i=0; i<alph.length; i++)
-        {
-            if (!isAtBound(alph[i])) { nonbound.add(i); nbbuf.add(i); }
-        }
-        System.out.println("Looping over Non bound "+nonbound);
-        
-        for (i=0; i<nbbuf.size(); i++)
-        {
-            if (nonbound.contains(nbbuf.getQuick(i))) numChanged += examineExample(nbbuf.getQuick(i));
-        }
-        
-        if (examineAll) examineAll = false;
-        else if (numChanged == 0) examineAll = true;
-        
-        trainSMO();
-    }
-    
-    private int     numChanged;
-    private boolean examineAll;
-    
-    public void trainSMO() throws LearnerException
-    {
-        // Based on Pseudocode for the SMO Algorithm (Christianini 2000, An Introducation to Support Vector Machines, p162)
-        int     i, pos, numsv;
+        goal  = new int[point.length];
+        for (i=0; i<goal.length; i++) goal[i] = this.trainData.getGoalClass(i);
+        
+        // Group the instances per class. Instances without a goal class are not used.
+        try { this.numClasses = this.attgoal.getNumberOfGoalClasses(); }
+        catch(DataModelException ex) { throw new LearnerException(ex); }
+        classIndex      = new IntArrayList[this.numClasses];
+        for (i=0; i<this.numClasses; i++) classIndex[i] = new IntArrayList();
+        for (i=0; i<goal.length; i++) if (goal[i] >= 0) classIndex[goal[i]].add(i);
+        
+        // One binary machine per pair of classes with training instances. Class 'a' gets target 1, class 'b' -1.
+        numMachines = 0;
+        for (a=0; a<this.numClasses; a++)
+            for (b=a+1; b<this.numClasses; b++)
+                if ((classIndex[a].size() > 0) && (classIndex[b].size() > 0)) numMachines++;
+        this.classPos = new int[numMachines];
+        this.classNeg = new int[numMachines];
+        member        = new int[numMachines][];
+        m = 0;
+        for (a=0; a<this.numClasses; a++)
+            for (b=a+1; b<this.numClasses; b++)
+                if ((classIndex[a].size() > 0) && (classIndex[b].size() > 0))
+                {
+                    this.classPos[m] = a;
+                    this.classNeg[m] = b;
+                    member[m]        = getMembers(goal, a, b, classIndex[a].size()+classIndex[b].size());
+                    m++;
+                }
         
-        // Loop until the support vectors found
-        if ((numChanged > 0) || (examineAll))
+        // Train the binary machines. Each machine makes its Kernel Cache and drops it when it is solved.
+        // So only the machines trained at the same time share the memory budget.
+        threads   = getThreads();
+        Cbound    = (this.C > 0)   ? this.C   : Double.POSITIVE_INFINITY;
+        eps       = (this.tol > 0) ? this.tol : 1e-3;
+        cacheSize = this.kernelCacheSize / Math.max(1, Math.min(threads, numMachines));
+        pool      = (threads > 1) ? new ForkJoinPool(threads) : null;
+        machine   = new MachineTask[numMachines];
+        for (m=0; m<numMachines; m++) machine[m] = new MachineTask(point, goal, member[m], this.classPos[m], Cbound, eps, cacheSize, pool);
+        this.liveCaches      = new ArrayList<KernelCache>();
+        this.peakCacheMemory = 0;
+        try
         {
-            numChanged = 0;
-            if (examineAll)
+            if (pool == null)
             {
-                //System.out.println("Examining All ");
-                for (i=0; i<point.length; i++)
-                {
-                    numChanged += examineExample(i);
-                }
-                examineAll = false;
+                for (m=0; m<numMachines; m++) machine[m].solve();
             }
             else
             {
+                List<Callable<Object>> tasks;
                 
+                tasks = new ArrayList<Callable<Object>>();
+                for (m=0; m<numMachines; m++) tasks.add(machine[m]);
+                for(Future<Object> done: pool.invokeAll(tasks)) done.get();
             }
         }
-        else
+        catch(InterruptedException ex) { throw new LearnerException(ex); }
+        catch(ExecutionException ex)   { throw new LearnerException("SMO training failed.", ex.getCause()); }
+        finally
         {
-            // Make the support vectors
-            numsv = 0;
-            for (i=0; i<alph.length; i++) if (!isAtBound(alph[i])) numsv++;
-            sv      = new DoubleMatrix1D[numsv];
-            alpha   = new double[numsv];
-            svclass = new double[numsv];
-            pos     = 0;
-            for (i=0; i<alph.length; i++)
-            {
-                if ((alph[i] != 0) && (alph[i] != C))
-                {
-                    sv[pos]      = point[i];
-                    alpha[pos]   = alph[i];
-                    svclass[pos] = target[i];
-                    pos++;
-                }
-            }
-            //System.out.println("Found "+numsv+" support vectors");
-            
-            Formatter fmt = new Formatter();
-            for (i=0; i<sv.length; i++)
-            {
-                //System.out.println("Alpha "+alpha[i]+" SV : "+fmt.toString(sv[i]));
-            }
+            if (pool != null) pool.shutdown();
+        }
+        
+        this.liveCaches = null;
+        makeSupportVectors(point, goal, member, machine);
+        
+        // Remember the training statistics.
+        this.iterations  = 0;
+        this.cacheHits   = 0;
+        this.cacheMisses = 0;
+        for (m=0; m<numMachines; m++)
+        {
+            this.iterations  += machine[m].iterations;
+            this.cacheHits   += machine[m].hits;
+            this.cacheMisses += machine[m].misses;
         }
     }
     
-    private int examineExample(int i2)
+    // Trains one binary machine. Keeps the solution and the statistics. Not the Kernel Cache.
+    private class MachineTask implements Callable<Object>
     {
-        int    k,b;
-        double y2, alph2, E2, r2;
-        double errnow, winE1;
-        int    i1;
+        private DoubleMatrix1D []point;
+        private int            []goal;
+        private int            []member;
+        private int              classPos;
+        private double           Cbound, eps;
+        private long             cacheSize;
+        private ForkJoinPool     pool;
+        
+        private double         []alpha;       // The Lagrange Multipliers of the members
+        private double           threshold;
+        private int              iterations;
+        private long             hits, misses;
+        
+        public Object call() throws Exception
+        {
+            solve();
+            
+            return(null);
+        }
         
-        y2    = target[i2];
-        alph2 = alph[i2];
-        E2    = getError(i2);
-        r2    = E2*y2;
-        if (((r2 < -tol) && (alph2 < C)) || ((r2 > tol) && (alph2 > 0)))
+        void solve() throws LearnerException
         {
-            //System.out.println("Nonbound size "+nonbound.size());
+            DoubleMatrix1D []x;
+            double         []y;
+            KernelCache      cache;
+            SMOSolver        solver;
+            int              i;
             
-            if (nonbound.size() > 1)
+            // The members of the 2 classes. Target 1 for the positive class.
+            x = new DoubleMatrix1D[this.member.length];
+            y = new double[this.member.length];
+            for (i=0; i<x.length; i++)
             {
-                // Second choice heuristic. Find point which maximizes |E1-E2|
-                i1 = -1;
-                if (E2 > 0)
-                {
-                    winE1 = Double.MAX_VALUE;
-                    for (k=0; k<nonbound.size(); k++)
-                    {
-                        errnow = errorcache[nonbound.getQuick(k)];
-                        if (errnow < winE1) { winE1 = errnow; i1 = nonbound.getQuick(k); }
-                    }
-                }
-                else
-                {
-                    winE1 = Double.MIN_VALUE;
-                    for (k=0; k<nonbound.size(); k++)
-                    {
-                        errnow = errorcache[nonbound.getQuick(k)];
-                        if (errnow > winE1) { winE1 = errnow; i1 = nonbound.getQuick(k); }
-                    }
-                }
-                
-                // Try to take a step
-                if ((i1 != -1) && (takeStep(i1,i2) == 1)) return(1);
+                x[i] = this.point[this.member[i]];
+                y[i] = (this.goal[this.member[i]] == this.classPos) ? 1.0 : -1.0;
             }
-            
-            // Second Choice Backup Plan 1.
-            if (nonbound.size() > 0)
+            cache  = new KernelCache(SMO.this.kernel, x, this.cacheSize);
+            cache.setPool(this.pool);
+            solver = new SMOSolver(cache, y, this.Cbound, this.eps, SMO.this.shrinking);
+            cacheCreated(cache);
+            try
             {
-                b = Uniform.staticNextIntFromTo(0, nonbound.size()-1);
-                k = b;
-                do
-                {
-                    i1 = nonbound.getQuick(k);
-                    if (takeStep(i1,i2) == 1) return(1);
-                    k++; if (k == nonbound.size()) k = 0;
-                } while (k != b);
+                solver.solve();
+                
+                this.alpha      = solver.getAlpha();
+                this.threshold  = solver.getThreshold();
+                this.iterations = solver.getIterations();
+                this.hits       = cache.getHits();
+                this.misses     = cache.getMisses();
             }
-            
-            // Second Choice Backup Plan 2.
-            b  = Uniform.staticNextIntFromTo(0, point.length-1);
-            i1 = b;
-            do
+            finally
             {
-                if (takeStep(i1, i2) == 1) return(1);
-                i1++; if (i1 == point.length) i1 = 0;
-            } while (i1 != b);
-            
-            // Give up.
-            ;
+                cacheReleased(cache);
+            }
         }
         
-        return(0);
+        MachineTask(DoubleMatrix1D []point, int []goal, int []member, int classPos, double Cbound, double eps, long cacheSize, ForkJoinPool pool)
+        {
+            this.point     = point;
+            this.goal      = goal;
+            this.member    = member;
+            this.classPos  = classPos;
+            this.Cbound    = Cbound;
+            this.eps       = eps;
+            this.cacheSize = cacheSize;
+            this.pool      = pool;
+        }
     }
     
-    private int takeStep(int i1, int i2)
+    private synchronized void cacheCreated(KernelCache cache)
     {
-        int    i, k, ie, ind;
-        double alph1, y1, E1;
-        double alph2, y2, E2;
-        double a1, a2;
-        double s, L, H, Lobj, Hobj, k11, k12, k22, eta;
-        double b1, b2;
-        double thold;
-        double k1e, k2e;
-        
-        if (i1 == i2) return(0);
-        
-        // Solve for the 2 selected lagrange multipliers.
-        alph1 = alph[i1]; y1 = target[i1]; E1 = getError(i1);
-        alph2 = alph[i2]; y2 = target[i2]; E2 = getError(i2);
-        s     = y1*y2;
-        if (s == -1)
-        {
-            L = max(0.0,   alph2-alph1);
-            H = min(C  , C+alph2-alph1);
-        }
-        else
-        {
-            L = max(0.0, alph1+alph2-C);
-            H = min(C  , alph1+alph2);
-        }
-        if (L == H) return(0);
-        
-        k11 = kernel.apply(point[i1], point[i1]);
-        k12 = kernel.apply(point[i1], point[i2]);
-        k22 = kernel.apply(point[i2], point[i2]);
-        eta = 2*k12-k11-k22;
-        if (eta < 0)
-        {
-            a2 = alph2 - y2*(E1-E2)/eta;
-            if      (a2 < L) a2 = L;
-            else if (a2 > H) a2 = H;
-        }
-        else
-        {
-            double gamma, v1, v2;
-            gamma = alph1 + s*L;
-            v1    = E1 + target[i1] - y1*alph1*k11 - y2*L*k12;
-            v2    = E2 + target[i2] - y1*alph1*k12 - y2*L*k22;
-            Lobj  = gamma - s*L + L - 0.5*k11*(gamma-s*L)*(gamma-s*L) - 0.5*k22*L*L - s*k12*(gamma-s*L)*L - y1*(gamma-s*L)*v1 - y2*L*v2;
-            gamma = alph1 + s*H;
-            v1    = E1 + target[i1] - y1*alph1*k11 - y2*H*k12;
-            v2    = E2 + target[i2] - y1*alph1*k12 - y2*H*k22;
-            Hobj  = gamma - s*H + H - 0.5*k11*(gamma-s*H)*(gamma-s*H) - 0.5*k22*H*H - s*k12*(gamma-s*H)*H - y1*(gamma-s*H)*v1 - y2*H*v2;
-            if      (Lobj > Hobj+tol) a2 = L;
-            else if (Lobj < Hobj-tol) a2 = H;
-            else                      a2 = alph2;   // No progress possible
-        }
-        
-        if      (Math.abs(a2)   < eps) a2 = 0;   // Numerical Stability enhancement found at
-        else if (Math.abs(C-a2) < eps) a2 = C;   // http://www.research.microsoft.com/~jplatt/smo.html
-        if (Math.abs(a2-alph2) < tol*(a2+alph2+tol)) return(0);
-        a1 = alph1+s*(alph2-a2);
-        
-        // Update the threshold.
-        thold = threshold;
-        b1 = E1 + y1*(a1 - alph1)*k11 + y2*(a2-alph2)*k12 + thold;
-        b2 = E2 + y1*(a1 - alph1)*k12 + y2*(a2-alph2)*k22 + thold;
-        threshold = (b1 + b2)/2.0;
-        
-        // Update the nonbound list.
-        if (isAtBound(a1) && nonbound.contains(i1)) nonbound.remove(nonbound.indexOf(i1));
-        if (isAtBound(a2) && nonbound.contains(i2)) nonbound.remove(nonbound.indexOf(i2));
-        
-        // Update the error cache
-        errorcache[i1] = 0;
-        errorcache[i2] = 0;
-        for (k=0; k<nonbound.size(); k++)
-        {
-            ie = nonbound.getQuick(k);
-            if ((ie != i1) && (ie != i2))
-            {
-                k1e = kernel.apply(point[i1], point[ie]);
-                k2e = kernel.apply(point[i2], point[ie]);
-                errorcache[ie] = errorcache[ie] + y1*(a1 - alph1)*k1e + y2*(a2 - alph2)*k2e + thold - threshold;
-            }
-        }
+        this.liveCaches.add(cache);
+    }
+    
+    private synchronized void cacheReleased(KernelCache cache)
+    {
+        long mem;
         
-        // Store new lagrange multipliers.
-        alph[i1] = a1;
-        alph[i2] = a2;
+        // Memory of the rows of the caches still in use. A cache only grows until it is released.
+        mem = 0;
+        for (KernelCache live: this.liveCaches) mem += live.getMemoryUsed();
+        if (mem > this.peakCacheMemory) this.peakCacheMemory = mem;
+        this.liveCaches.remove(cache);
+    }
+    
+    private int []getMembers(int []goal, int a, int b, int size)
+    {
+        int   i, pos;
+        int []member;
         
-        //System.out.println("a["+i1+"] = "+a1);
-        //System.out.println("a["+i2+"] = "+a2);
+        // The instances of both classes, in the order of the training set.
+        member = new int[size];
+        pos    = 0;
+        for (i=0; i<goal.length; i++) if ((goal[i] == a) || (goal[i] == b)) member[pos++] = i;
         
-        return(1);
+        return(member);
     }
     
-    private double getError(int i)
+    private void makeSupportVectors(DoubleMatrix1D []point, int []goal, int [][]member, MachineTask []machine)
     {
-        double err;
-        
-        // First look in the cache.
-        if (nonbound.contains(i)) err = errorcache[i];
-        else // If not cached...
+        int            i, m, pos, numsv;
+        int          []svpos;
+        double       []alph;
+        IntArrayList   svall;
+        
+        // Collect the instances with a non-zero alpha. Share the ones used by more than one machine.
+        svpos = new int[point.length];
+        for (i=0; i<svpos.length; i++) svpos[i] = -1;
+        svall = new IntArrayList();
+        
+        this.svIndex   = new int[machine.length][];
+        this.svCoef    = new double[machine.length][];
+        this.threshold = new double[machine.length];
+        for (m=0; m<machine.length; m++)
         {
-            // Evaluate the SVM for error.
-            int    k;
-            double fx;
+            alph  = machine[m].alpha;
+            numsv = 0;
+            for (i=0; i<alph.length; i++) if (alph[i] != 0) numsv++;
             
-            fx = 0;
-            for (k=0; k<alph.length; k++)
+            this.svIndex[m]   = new int[numsv];
+            this.svCoef[m]    = new double[numsv];
+            this.threshold[m] = machine[m].threshold;
+            pos               = 0;
+            for (i=0; i<alph.length; i++)
             {
-                //if ((alph[k] > 0) && (alph[k] < C)) fx += target[k]*alph[k]*kernel.apply(point[k], point[i]);
-                if (alph[k] != 0) fx += target[k]*alph[k]*kernel.apply(point[k], point[i]);
+                if (alph[i] != 0)
+                {
+                    if (svpos[member[m][i]] == -1) { svpos[member[m][i]] = svall.size(); svall.add(member[m][i]); }
+                    this.svIndex[m][pos] = svpos[member[m][i]];
+                    this.svCoef[m][pos]  = (goal[member[m][i]] == this.classPos[m]) ? alph[i] : -alph[i];
+                    pos++;
+                }
             }
-            fx -= threshold;
-            err = fx - target[i];
         }
         
-        return(err);
+        this.sv = new DoubleMatrix1D[svall.size()];
+        for (i=0; i<this.sv.length; i++) this.sv[i] = point[svall.getQuick(i)];
     }
     
-    private double max(double a, double b) { if (a >= b) return(a); else return(b); }
-    private double min(double b, double a) { if (a <= b) return(a); else return(b); }
+    private int getThreads()
+    {
+        if (this.numberOfThreads <= 0) return(Runtime.getRuntime().availableProcessors());
+        else                           return(this.numberOfThreads);
+    }
     
     // **********************************************************\
     // *             SMO Parameter specification                *
     // **********************************************************/
     /**
      * Set the parameters of the Sequential Minimal Optimization training.
-     * @param _C
-     * @param _tol
+     * @param _C The upper bound of the Lagrange Multipliers. <= 0 for a Hard Margin.
+     * @param _tol The stopping tolerance on the violation of the KKT conditions. <= 0 for the default of 0.001.
      */
     public void setSMOParameters(double _C, double _tol)
     {
@@ -418,49 +343,75 @@ public class SMO extends ClassifierTransformation implements Classifier
         this.kernel = _kernel;
     }
     
-    // **********************************************************\
-    // *       2-Class Support Vector Classification            *
-    // **********************************************************/
-    public int classify(DoubleMatrix1D instance)
+    /**
+     * Set the memory budget of the Kernel Matrix caches used during training.
+     * The budget is divided among the binary machines that are trained at the same time.
+     * @param _kernelCacheSize Maximum number of bytes of cached Kernel rows.
+     */
+    public void setKernelCacheSize(long _kernelCacheSize)
     {
-        int    i;
-        double fx;
-        
-        fx = 0;
-        for (i=0; i<sv.length; i++) fx += svclass[i]*alpha[i]*kernel.apply(sv[i], instance);
-        fx -= threshold;
-        
-        //System.out.println("out "+fx+" th "+threshold);
-        
-        if (fx >= 0) return(1);
-        else         return(0);
+        this.kernelCacheSize = _kernelCacheSize;
+    }
+    
+    /**
+     * Shrink the alpha's that stay at their bound out of the active set during training.
+     * @param _shrinking true (the default) to shrink.
+     */
+    public void setShrinking(boolean _shrinking)
+    {
+        this.shrinking = _shrinking;
     }
     
+    /**
+     * Set the number of threads training the binary machines and calculating the Kernel rows.
+     * @param _numberOfThreads The number of threads. 0 = number of processors.
+     */
+    public void setNumberOfThreads(int _numberOfThreads)
+    {
+        this.numberOfThreads = _numberOfThreads;
+    }
+    
+    public int  getNumberOfSupportVectors() { return(this.sv.length); }
+    public int  getNumberOfIterations()     { return(this.iterations); }
+    public long getCacheHits()              { return(this.cacheHits); }
+    public long getCacheMisses()            { return(this.cacheMisses); }
+    public long getPeakCacheMemory()        { return(this.peakCacheMemory); }
+    
+    // **********************************************************\
+    // *        One-versus-One Support Vector Classification    *
+    // **********************************************************/
     public int classify(DoubleMatrix1D instance, double []confidence)
     {
-        int    i,k;
-        double fx;
-        
-        fx = 0;
-        for (k=0; k<alph.length; k++)
+        int      i, m, clout;
+        double   fx;
+        double []kx;
+        int    []votes;
+        
+        // Evaluate the Kernel once for each support vector.
+        kx = new double[this.sv.length];
+        for (i=0; i<kx.length; i++) kx[i] = this.kernel.apply(instance, this.sv[i]);
+        
+        // Let each binary machine vote. The lowest class wins a tie.
+        fx    = 0;
+        votes = new int[this.numClasses];
+        for (m=0; m<this.threshold.length; m++)
         {
-            //if ((alph[k] > 0) && (alph[k] < C)) fx += target[k]*alph[k]*kernel.apply(point[k], point[i]);
-            if (alph[k] != 0) fx += target[k]*alph[k]*kernel.apply(instance, point[k]);
+            fx = 0;
+            for (i=0; i<this.svIndex[m].length; i++) fx += this.svCoef[m][i]*kx[this.svIndex[m][i]];
+            fx -= this.threshold[m];
+            
+            if (fx >= 0) votes[this.classPos[m]]++;
+            else         votes[this.classNeg[m]]++;
         }
-        fx -= threshold;
-        
-        /*
-         fx = 0;
-         for (i=0; i<sv.length; i++) fx += svclass[i]*alpha[i]*kernel.apply(instance, sv[i]);
-         fx += threshold;*/
+        clout = 0;
+        for (i=1; i<votes.length; i++) if (votes[i] > votes[clout]) clout = i;
         
-        //System.out.println("out "+fx+" th "+threshold);
-        
-        int clout;
-        
-        if (fx >= 0) clout = 0;
-        else         clout = 1;
-        confidence[clout] = fx;
+        if (confidence != null)
+        {
+            // The SVM output for 2 classes. The fraction of votes otherwise.
+            if (this.numClasses == 2) confidence[clout] = fx;
+            else for (i=0; i<votes.length; i++) confidence[i] = ((double)votes[i])/(this.numClasses-1);
+        }
         
         return(clout);
     }
@@ -519,5 +470,7 @@ public class SMO extends ClassifierTransformation implements Classifier
         super();
         name        = "SMO";
         description = "Sequential Minimal Optimization";
+        kernelCacheSize = KernelCache.DEFAULT_CACHE_SIZE;
+        shrinking       = true;
     }
 }
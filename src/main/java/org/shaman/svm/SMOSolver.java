@@ -0,0 +1,432 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.svm;
+
+import org.shaman.exceptions.LearnerException;
+
+
+/**
+ * <h2>SMO Solver</h2>
+ * Solves the dual problem of a 2-class Support Vector Machine.
+ * <code>min 0.5 a'Qa - e'a, 0 <= a <= C, y'a = 0</code> with <code>Q(i,j) = y(i)y(j)K(i,j)</code>.<br>
+ * The working set is the maximal violating i with the j that gives the largest
+ * decrease of the objective using second order information (Fan, Chen and Lin 2005,
+ * Working Set Selection Using Second Order Information for Training SVM).
+ * Alpha's stuck at a bound are shrunk out of the active set. The gradient of the
+ * shrunk alpha's is reconstructed before the final optimality check.
+ */
+
+// **********************************************************\
+// *                  2-Class SMO Solver                    *
+// **********************************************************/
+class SMOSolver
+{
+    private static final double TAU         = 1e-12;
+    private static final byte   LOWER_BOUND = 0;
+    private static final byte   UPPER_BOUND = 1;
+    private static final byte   FREE        = 2;
+
+    // Problem
+    private KernelCache cache;       // Rows of the Kernel Matrix
+    private double    []y;           // Target values (1 or -1)
+    private double      C;           // Upper bound of the alpha's. Infinite for a hard margin.
+    private double      eps;         // Stopping tolerance on the maximal KKT violation
+    private boolean     shrinking;   // Shrink the active set?
+
+    // Solution
+    private double    []alpha;       // The Lagrange Multipliers
+    private double      rho;         // The Threshold
+    private int         iterations;  // Number of optimization steps taken
+
+    // Working Buffers
+    private int         l;           // Number of instances
+    private double    []G;           // Gradient of the objective
+    private double    []Gbar;        // Gradient contribution of the alpha's at the upper bound. [i] = C * sum_{j at upper bound} Q(i,j)
+    private double    []QD;          // Diagonal of the Kernel Matrix
+    private byte      []status;      // Bound status of the alpha's
+    private int       []active;      // Permutation of the indices. The first activeSize are the active set.
+    private int         activeSize;
+    private boolean     unshrink;    // Is the active set restored once close to the optimum?
+
+    // **********************************************************\
+    // *                       Optimization                     *
+    // **********************************************************/
+    public void solve() throws LearnerException
+    {
+        int    i, counter, maxIterations;
+        int  []ws;
+
+        // Start from all alpha's at 0. The gradient is then -1 everywhere.
+        this.l      = this.y.length;
+        this.alpha  = new double[this.l];
+        this.status = new byte[this.l];
+        this.G      = new double[this.l];
+        this.Gbar   = new double[this.l];
+        this.active = new int[this.l];
+        for (i=0; i<this.l; i++)
+        {
+            this.G[i]      = -1.0;
+            this.status[i] = LOWER_BOUND;
+            this.active[i] = i;
+        }
+        this.QD         = this.cache.getDiagonal();
+        this.activeSize = this.l;
+        this.unshrink   = false;
+
+        // Optimize until no more violating pair is found.
+        maxIterations   = Math.max(10000000, this.l > Integer.MAX_VALUE/100 ? Integer.MAX_VALUE : 100*this.l);
+        counter         = Math.min(this.l, 1000)+1;
+        ws              = new int[2];
+        this.iterations = 0;
+        while (this.iterations < maxIterations)
+        {
+            if (--counter == 0)
+            {
+                counter = Math.min(this.l, 1000);
+                if (this.shrinking) shrink();
+            }
+
+            if (!selectWorkingSet(ws))
+            {
+                // Optimal on the active set. Check again on all instances.
+                reconstructGradient();
+                this.activeSize = this.l;
+                if (!selectWorkingSet(ws)) break;
+                else                       counter = 1;
+            }
+
+            this.iterations++;
+            update(ws[0], ws[1]);
+        }
+        if (this.activeSize < this.l)
+        {
+            reconstructGradient();
+            this.activeSize = this.l;
+        }
+
+        this.rho = calculateRho();
+    }
+
+    private boolean selectWorkingSet(int []ws) throws LearnerException
+    {
+        int      k, t, i, j;
+        double   gmax, gmax2, gradDiff, quad, objDiff, objDiffMin;
+        double []Ki;
+
+        // i = argmax { -y(t)G(t) | t in I_up }
+        gmax = Double.NEGATIVE_INFINITY;
+        i    = -1;
+        for (k=0; k<this.activeSize; k++)
+        {
+            t = this.active[k];
+            if (this.y[t] > 0)
+            {
+                if ((this.status[t] != UPPER_BOUND) && (-this.G[t] >= gmax)) { gmax = -this.G[t]; i = t; }
+            }
+            else
+            {
+                if ((this.status[t] != LOWER_BOUND) && ( this.G[t] >= gmax)) { gmax =  this.G[t]; i = t; }
+            }
+        }
+
+        // j = argmin of the second order objective decrease over { t in I_low | -y(t)G(t) < -y(i)G(i) }
+        Ki         = (i != -1) ? this.cache.getRow(i) : null;
+        gmax2      = Double.NEGATIVE_INFINITY;
+        objDiffMin = Double.POSITIVE_INFINITY;
+        j          = -1;
+        for (k=0; k<this.activeSize; k++)
+        {
+            t = this.active[k];
+            if (this.y[t] > 0)
+            {
+                if (this.status[t] == LOWER_BOUND) continue;
+                gradDiff = gmax + this.G[t];
+                if (this.G[t] >= gmax2) gmax2 = this.G[t];
+            }
+            else
+            {
+                if (this.status[t] == UPPER_BOUND) continue;
+                gradDiff = gmax - this.G[t];
+                if (-this.G[t] >= gmax2) gmax2 = -this.G[t];
+            }
+            if (gradDiff > 0)
+            {
+                quad    = this.QD[i] + this.QD[t] - 2.0*Ki[t];
+                objDiff = -(gradDiff*gradDiff)/(quad > 0 ? quad : TAU);
+                if (objDiff <= objDiffMin) { objDiffMin = objDiff; j = t; }
+            }
+        }
+
+        if ((gmax + gmax2 < this.eps) || (j == -1)) return(false);
+
+        ws[0] = i;
+        ws[1] = j;
+
+        return(true);
+    }
+
+    private void update(int i, int j) throws LearnerException
+    {
+        int      k, t;
+        double []Ki, Kj;
+        double   quad, delta, diff, sum;
+        double   oldi, oldj, dyi, dyj;
+        boolean  upperi, upperj;
+
+        Ki   = this.cache.getRow(i);
+        Kj   = this.cache.getRow(j);
+        quad = this.QD[i] + this.QD[j] - 2.0*Ki[j];
+        if (quad <= 0) quad = TAU;
+        oldi = this.alpha[i];
+        oldj = this.alpha[j];
+
+        // Solve the 2 variable sub-problem and clip to the feasible segment.
+        if (this.y[i] != this.y[j])
+        {
+            delta          = (-this.G[i] - this.G[j])/quad;
+            diff           = this.alpha[i] - this.alpha[j];
+            this.alpha[i] += delta;
+            this.alpha[j] += delta;
+            if (diff > 0) { if (this.alpha[j] < 0) { this.alpha[j] = 0; this.alpha[i] =  diff; } }
+            else          { if (this.alpha[i] < 0) { this.alpha[i] = 0; this.alpha[j] = -diff; } }
+            if (diff > 0) { if (this.alpha[i] > this.C) { this.alpha[i] = this.C; this.alpha[j] = this.C - diff; } }
+            else          { if (this.alpha[j] > this.C) { this.alpha[j] = this.C; this.alpha[i] = this.C + diff; } }
+        }
+        else
+        {
+            delta          = (this.G[i] - this.G[j])/quad;
+            sum            = this.alpha[i] + this.alpha[j];
+            this.alpha[i] -= delta;
+            this.alpha[j] += delta;
+            if (sum > this.C) { if (this.alpha[i] > this.C) { this.alpha[i] = this.C; this.alpha[j] = sum - this.C; } }
+            else              { if (this.alpha[j] < 0)      { this.alpha[j] = 0;      this.alpha[i] = sum; } }
+            if (sum > this.C) { if (this.alpha[j] > this.C) { this.alpha[j] = this.C; this.alpha[i] = sum - this.C; } }
+            else              { if (this.alpha[i] < 0)      { this.alpha[i] = 0;      this.alpha[j] = sum; } }
+        }
+
+        // Update the gradient of the active set.
+        dyi = this.y[i]*(this.alpha[i] - oldi);
+        dyj = this.y[j]*(this.alpha[j] - oldj);
+        for (k=0; k<this.activeSize; k++)
+        {
+            t          = this.active[k];
+            this.G[t] += this.y[t]*(Ki[t]*dyi + Kj[t]*dyj);
+        }
+
+        // Keep the gradient of the upper bound alpha's up-to-date for all instances.
+        upperi = (this.status[i] == UPPER_BOUND);
+        upperj = (this.status[j] == UPPER_BOUND);
+        updateStatus(i);
+        updateStatus(j);
+        if (upperi != (this.status[i] == UPPER_BOUND)) updateGbar(i, Ki, upperi ? -this.C : this.C);
+        if (upperj != (this.status[j] == UPPER_BOUND)) updateGbar(j, Kj, upperj ? -this.C : this.C);
+    }
+
+    private void updateGbar(int i, double []Ki, double c)
+    {
+        int    t;
+        double cy;
+
+        cy = c*this.y[i];
+        for (t=0; t<this.l; t++) this.Gbar[t] += cy*this.y[t]*Ki[t];
+    }
+
+    private void updateStatus(int i)
+    {
+        if      (this.alpha[i] >= this.C) this.status[i] = UPPER_BOUND;
+        else if (this.alpha[i] <= 0)      this.status[i] = LOWER_BOUND;
+        else                              this.status[i] = FREE;
+    }
+
+    private double calculateRho()
+    {
+        int    k, t, numFree;
+        double yG, ub, lb, sumFree;
+
+        // Average over the free alpha's. Middle of the feasible interval if there are none.
+        ub      = Double.POSITIVE_INFINITY;
+        lb      = Double.NEGATIVE_INFINITY;
+        sumFree = 0;
+        numFree = 0;
+        for (k=0; k<this.activeSize; k++)
+        {
+            t  = this.active[k];
+            yG = this.y[t]*this.G[t];
+            if (this.status[t] == UPPER_BOUND)
+            {
+                if (this.y[t] < 0) ub = Math.min(ub, yG);
+                else               lb = Math.max(lb, yG);
+            }
+            else if (this.status[t] == LOWER_BOUND)
+            {
+                if (this.y[t] > 0) ub = Math.min(ub, yG);
+                else               lb = Math.max(lb, yG);
+            }
+            else
+            {
+                numFree++;
+                sumFree += yG;
+            }
+        }
+
+        if      (numFree > 0)           return(sumFree/numFree);
+        else if (Double.isInfinite(ub)) return(Double.isInfinite(lb) ? 0 : lb);
+        else if (Double.isInfinite(lb)) return(ub);
+        else                            return((ub+lb)/2);
+    }
+
+    // **********************************************************\
+    // *                        Shrinking                       *
+    // **********************************************************/
+    private void shrink() throws LearnerException
+    {
+        int    k, t;
+        double gmax1, gmax2;
+
+        // gmax1 = max { -y(t)G(t) | t in I_up }, gmax2 = max { y(t)G(t) | t in I_low }
+        gmax1 = Double.NEGATIVE_INFINITY;
+        gmax2 = Double.NEGATIVE_INFINITY;
+        for (k=0; k<this.activeSize; k++)
+        {
+            t = this.active[k];
+            if (this.y[t] > 0)
+            {
+                if (this.status[t] != UPPER_BOUND) gmax1 = Math.max(gmax1, -this.G[t]);
+                if (this.status[t] != LOWER_BOUND) gmax2 = Math.max(gmax2,  this.G[t]);
+            }
+            else
+            {
+                if (this.status[t] != UPPER_BOUND) gmax2 = Math.max(gmax2, -this.G[t]);
+                if (this.status[t] != LOWER_BOUND) gmax1 = Math.max(gmax1,  this.G[t]);
+            }
+        }
+
+        // Close to the optimum, restore the full active set once to avoid shrinking too early.
+        if (!this.unshrink && (gmax1 + gmax2 <= this.eps*10))
+        {
+            this.unshrink = true;
+            reconstructGradient();
+            this.activeSize = this.l;
+        }
+
+        // Move the alpha's that will stay at their bound to the end of the active set.
+        for (k=0; k<this.activeSize; k++)
+        {
+            if (isShrunk(this.active[k], gmax1, gmax2))
+            {
+                this.activeSize--;
+                while (this.activeSize > k)
+                {
+                    if (!isShrunk(this.active[this.activeSize], gmax1, gmax2))
+                    {
+                        t                             = this.active[k];
+                        this.active[k]                = this.active[this.activeSize];
+                        this.active[this.activeSize]  = t;
+                        break;
+                    }
+                    this.activeSize--;
+                }
+            }
+        }
+    }
+
+    private boolean isShrunk(int t, double gmax1, double gmax2)
+    {
+        if (this.status[t] == UPPER_BOUND)
+        {
+            if (this.y[t] > 0) return(-this.G[t] > gmax1);
+            else               return(-this.G[t] > gmax2);
+        }
+        else if (this.status[t] == LOWER_BOUND)
+        {
+            if (this.y[t] > 0) return(this.G[t] > gmax2);
+            else               return(this.G[t] > gmax1);
+        }
+        else return(false);
+    }
+
+    private void reconstructGradient() throws LearnerException
+    {
+        int      k, m, i, t, numFree;
+        double []Ki;
+        double   ay, s;
+
+        if (this.activeSize == this.l) return;
+
+        // Start from the contribution of the upper bound alpha's. The lower bound ones contribute nothing.
+        for (m=this.activeSize; m<this.l; m++)
+        {
+            t         = this.active[m];
+            this.G[t] = this.Gbar[t] - 1.0;
+        }
+
+        // Add the free alpha's. These are all in the active set. Use the way that needs the least Kernel rows.
+        numFree = 0;
+        for (k=0; k<this.activeSize; k++) if (this.status[this.active[k]] == FREE) numFree++;
+        if (numFree <= this.l - this.activeSize)
+        {
+            for (k=0; k<this.activeSize; k++)
+            {
+                i = this.active[k];
+                if (this.status[i] == FREE)
+                {
+                    Ki = this.cache.getRow(i);
+                    ay = this.alpha[i]*this.y[i];
+                    for (m=this.activeSize; m<this.l; m++)
+                    {
+                        t          = this.active[m];
+                        this.G[t] += ay*this.y[t]*Ki[t];
+                    }
+                }
+            }
+        }
+        else
+        {
+            for (m=this.activeSize; m<this.l; m++)
+            {
+                t  = this.active[m];
+                Ki = this.cache.getRow(t);
+                s  = 0;
+                for (k=0; k<this.activeSize; k++)
+                {
+                    i = this.active[k];
+                    if (this.status[i] == FREE) s += this.alpha[i]*this.y[i]*Ki[i];
+                }
+                this.G[t] += this.y[t]*s;
+            }
+        }
+    }
+
+    // **********************************************************\
+    // *                         Solution                       *
+    // **********************************************************/
+    public double []getAlpha()      { return(this.alpha); }
+    public double   getThreshold()  { return(this.rho); }
+    public int      getIterations() { return(this.iterations); }
+
+    /**
+     * Make a solver for the given binary problem.
+     * @param cache The Kernel Matrix of the instances
+     * @param y The target values. 1 or -1.
+     * @param C The upper bound of the alpha's. Infinite for a hard margin.
+     * @param eps The stopping tolerance on the maximal violation of the KKT conditions.
+     * @param shrinking Shrink the alpha's that stay at their bound out of the active set?
+     */
+    public SMOSolver(KernelCache cache, double []y, double C, double eps, boolean shrinking)
+    {
+        this.cache     = cache;
+        this.y         = y;
+        this.C         = C;
+        this.eps       = eps;
+        this.shrinking = shrinking;
+    }
+}
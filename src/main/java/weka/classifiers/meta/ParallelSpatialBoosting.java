@@ -3,7 +3,7 @@ package weka.classifiers.meta;
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
-import weka.classifiers.RandomizableIteratedSingleClassifierEnhancer;
+import weka.classifiers.RandomizableParallelIteratedSingleClassifierEnhancer;
 import weka.classifiers.Sourcable;
 import weka.core.DenseInstance;
 import weka.core.Instance;
@@ -19,9 +19,10 @@ import weka.core.TechnicalInformation.Field;
 import weka.core.TechnicalInformation.Type;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +30,10 @@ import java.util.Random;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import weka.classifiers.meta.spatial.*;
 
@@ -101,6 +106,13 @@ import weka.classifiers.meta.spatial.*;
  * </pre>
  * 
  * <pre>
+ *  -num-slots &lt;num&gt;
+ *  Number of execution slots.
+ *  (default 1 - i.e. no parallelism)
+ *  (use 0 to auto-detect number of cores)
+ * </pre>
+ * 
+ * <pre>
  *  -D
  *  If set, classifier is run in debug mode and
  *  may output additional info to the console
@@ -133,11 +145,14 @@ import weka.classifiers.meta.spatial.*;
  * @version $Revision: 5928 $
  */
 public class ParallelSpatialBoosting extends
-        RandomizableIteratedSingleClassifierEnhancer implements Sourcable,
+        RandomizableParallelIteratedSingleClassifierEnhancer implements Sourcable,
         TechnicalInformationHandler {
 
     private transient WraparoundGrid grid;
 
+    /** Runs the node tasks of an epoch on the execution slots. null when training on one slot. */
+    private transient ForkJoinPool pool;
+
     private int gridWidth = 3;
 
     private int gridHeight = 3;
@@ -363,13 +378,32 @@ public class ParallelSpatialBoosting extends
         this.minClassError = Double.MAX_VALUE;
         this.sizeAtMinError = 0;
 
-        // iterate
-        train();
-        while (testPerformance())
+        // iterate. Use the execution slots for the node tasks in each epoch.
+        if (getExecutionSlots() > 1) this.pool = new ForkJoinPool(getExecutionSlots());
+        try
+        {
             train();
+            while (testPerformance())
+                train();
+        }
+        finally
+        {
+            if (this.pool != null) this.pool.shutdown();
+            this.pool = null;
+        }
         this.m_Classifier = this.bestSoFarClassifier;
     }
     
+    /**
+     * Returns the training set of the node at the given position in the grid.
+     * 
+     * @param iteration the index of the node
+     * @return the current dataset of the node
+     */
+    protected Instances getTrainingSet(int iteration) throws Exception {
+        return this.grid.getNodes().get(iteration).getData();
+    }
+    
     private Instances removeTrainSetLabels(Instances trainSet)
     {
         Instances instances;
@@ -399,6 +433,8 @@ public class ParallelSpatialBoosting extends
     public boolean testPerformance() throws Exception {
         double[][] conf;
         double[][] confnode;
+        final double[][][] confnodes;
+        final List<ClassifierNode> nodes;
 
         // Find the total number of distinct Instances in the train sets
         TreeSet<Instance> pruneset = new TreeSet<Instance>(
@@ -406,11 +442,21 @@ public class ParallelSpatialBoosting extends
 
         int allsize;
 
+        // Test all Nodes on the test-set concurrently.
+        nodes = this.grid.getNodes();
+        confnodes = new double[nodes.size()][][];
+        runNodes(nodes.size(), new NodeTask() {
+            public void run(int i) throws Exception {
+                confnodes[i] = nodes.get(i).testConfusion(testSet);
+            }
+        });
+
         // Combine the confusion matrices of all Nodes in a single one
         conf = null;
         allsize = 0;
-        for (ClassifierNode node : this.grid.getNodes()) {
-            confnode = node.testConfusion(this.testSet);
+        for (int i = 0; i < nodes.size(); i++) {
+            ClassifierNode node = nodes.get(i);
+            confnode = confnodes[i];
             if (conf == null)
                 conf = confnode;
             else
@@ -520,40 +566,97 @@ public class ParallelSpatialBoosting extends
         return (err);
     }
 
-    public void train() throws Exception {
-        List<ClassifierNode> nodes;
-        List<ClassifierNode> neighbors;
+    public void train() throws Exception
+    {
+        final List<ClassifierNode>   nodes;
+        final List<ClassifierNode> []neighbors;
+        final Instances            []nodeData, trainData;
+        final double             [][]weights;
+        final double           [][][]conf;
+        Map<ClassifierNode, Integer>   nodeIndex;
+        final List<int []>         []tests;
+        int                            i, j, n;
         
-        // Train all the Nodes
-        nodes = this.grid.getNodes();
-        // For all Nodes: move to next epoch.
-        for (ClassifierNode node : nodes)
+        nodes     = new ArrayList<ClassifierNode>(this.grid.getNodes());
+        n         = nodes.size();
+        nodeData  = new Instances[n];
+        trainData = new Instances[n];
+        for (i=0; i<n; i++)
         {
             // Find the data-set to train the node on. Only keep the labeled instances where some were unlabeled during initialization.
-            Instances instances = node.getData();
-            Instances trainInstances = null;
-            if (this.unlabeledFraction > 0.0) trainInstances = removeUnlabeledInstances(instances);
-            else                              trainInstances = instances;
+            nodeData[i] = nodes.get(i).getData();
+            if (this.unlabeledFraction > 0.0) trainData[i] = removeUnlabeledInstances(nodeData[i]);
+            else                              trainData[i] = nodeData[i];
             
             // Set the instance weights to 1.0 in order not to confuse
-            // Classifiers that use these in training.
-            for (Instance instance : trainInstances)
+            // Classifiers that use these in training. Done before training any node because nodes share instances.
+            for (Instance instance : trainData[i])
                 instance.setWeight(1.0);
-            
-            // Train classification on the (labeled) instances
-            node.setData(trainInstances);
-            node.train();
-            node.setData(instances);
         }
-
-        // Test the data-sets of all Nodes on their neighbor nodes
-        for (ClassifierNode node : nodes) {
-            neighbors = this.grid.getNeighbors(node);
-            testInstancesOnNeighbors(node, neighbors);
+        
+        // Train all the Nodes concurrently on the (labeled) instances
+        runNodes(n, new NodeTask() {
+            public void run(int i) throws Exception {
+                ClassifierNode node = nodes.get(i);
+                node.setData(trainData[i]);
+                node.train();
+                node.setData(nodeData[i]);
+            }
+        });
+        
+        // Find the neighbors of all Nodes and which (Node, neighbor) tests every Node's classifier has to do.
+        neighbors = new List[n];
+        tests     = new List[n];
+        nodeIndex = new IdentityHashMap<ClassifierNode, Integer>();
+        for (i=0; i<n; i++)
+        {
+            nodeIndex.put(nodes.get(i), i);
+            tests[i] = new ArrayList<int []>();
+        }
+        conf = new double[n][][];
+        for (i=0; i<n; i++)
+        {
+            neighbors[i] = this.grid.getNeighbors(nodes.get(i));
+            conf[i]      = new double[neighbors[i].size()][];
+            j = 0;
+            for (ClassifierNode neighbor : neighbors[i])
+                tests[nodeIndex.get(neighbor)].add(new int[]{i, j++});
+        }
+        
+        // Test the data-sets of all Nodes on their neighbor nodes.
+        // One task per classifier so a classifier is never used by two threads at the same time.
+        runNodes(n, new NodeTask() {
+            public void run(int c) throws Exception {
+                ClassifierNode classifierNode = nodes.get(c);
+                for (int []test : tests[c])
+                {
+                    double []confnow = new double[nodeData[test[0]].size()];
+                    int      k = 0;
+                    for (Instance instance : nodeData[test[0]])
+                        confnow[k++] = classifierNode.classify(instance);
+                    conf[test[0]][test[1]] = confnow;
+                }
+            }
+        });
+        
+        // Derive the instance weights of all Nodes from the confidences of their neighbors
+        weights = new double[n][];
+        runNodes(n, new NodeTask() {
+            public void run(int i) throws Exception {
+                weights[i] = neighborWeights(conf[i], nodeData[i].size());
+            }
+        });
+        
+        // Update the Instances of the Nodes with their new weights. In node order, shared instances get the weight of the last node.
+        for (i=0; i<n; i++)
+        {
+            j = 0;
+            // TODO: Add momentum as suggested by Uday
+            for (Instance ins : nodeData[i]) ins.setWeight(weights[i][j++]);
         }
 
         // Select instances for next epoch
-        propagateSpatialProportional(nodes);
+        propagateSpatialProportional(nodes, neighbors);
     }
     
     private Instances removeUnlabeledInstances(Instances trainData)
@@ -570,31 +673,24 @@ public class ParallelSpatialBoosting extends
         return instances;
     }
 
-    private void testInstancesOnNeighbors(ClassifierNode node,
-            List<ClassifierNode> neighbors) throws Exception {
-        Instances nodeset;
+    private double[] neighborWeights(double[][] conf, int size) {
         int i;
         double[] weight;
-        double conf, minconf;
-
-        nodeset = node.getData();
-        weight = new double[nodeset.size()];
-        neighbors = this.grid.getNeighbors(node);
+        double minconf;
 
         // For all instance in this node's dataset
-        i = 0;
-        for (Instance instance : nodeset) {
-            // Test on neighbors. Remember most difficult test
+        weight = new double[size];
+        for (i = 0; i < size; i++) {
+            // Remember most difficult test on the neighbors
             minconf = Double.MAX_VALUE;
-            for (ClassifierNode neighbor : neighbors) {
-                conf = neighbor.classify(instance);
-                if (conf < minconf)
-                    minconf = conf;
+            for (double[] confneighbor : conf) {
+                if (confneighbor[i] < minconf)
+                    minconf = confneighbor[i];
             }
             // ********** DISABLE WEIGHTING *******
             // minconf = 1.0;
             // ************************************
-            weight[i++] = minconf;
+            weight[i] = minconf;
         }
 
         double wdiff, wmax, wmin;
@@ -621,94 +717,142 @@ public class ParallelSpatialBoosting extends
                 weight[i] = 1.0;
         }
 
-        // Update the Instances of this Node with their new weights
-        i = 0;
-        for (Instance ins : nodeset) {
-            // TODO: Add momentum as suggested by Uday
-            ins.setWeight(weight[i++]);
-        }
-
+        return weight;
     }
 
     // ***************************************************************\
     // * Replace with proportional selection from neighbor instances *
     // ***************************************************************/
-    private void propagateSpatialProportional(List<ClassifierNode> nodes) {
-        List<ClassifierNode> neighbors;
-        TreeSet<Instance> weightOrderInstances;
+    private void propagateSpatialProportional(final List<ClassifierNode> nodes, final List<ClassifierNode>[] neighbors) throws Exception {
+        final List<Instance>[] replacements;
+        final long[] seeds;
+        Instances instances;
+        int i;
+
+        // Every Node selects with its own random generator. Seeded in node order so the
+        // selection does not depend on the number of execution slots.
+        seeds = new long[nodes.size()];
+        for (i = 0; i < seeds.length; i++)
+            seeds[i] = this.m_Random.nextLong();
+
+        // Collect the Instances sets resulting from the replacement step for
+        // all Nodes. Don't replace yet because every Node is a neighbor for other
+        // Nodes and these still need the instances and weights of this epoch.
+        replacements = new List[nodes.size()];
+        runNodes(nodes.size(), new NodeTask() {
+            public void run(int i) throws Exception {
+                replacements[i] = selectReplacements(nodes.get(i), neighbors[i], new Random(seeds[i]));
+            }
+        });
+
+        // For all Nodes: move to next epoch.
+        for (i = 0; i < nodes.size(); i++) {
+            // Replace the Node's Instances with the ones selected and reshuffle
+            // to avoid ordering effects in the Classifier.
+            instances = nodes.get(i).getData();
+            instances.clear();
+            instances.addAll(replacements[i]);
+            instances.randomize(this.m_Random);
+        }
+    }
+
+    private List<Instance> selectReplacements(ClassifierNode node, List<ClassifierNode> neighbors, Random random) {
+        List<Instance> weightOrderInstances;
+        Map<Instance, Instance> distinct;
         TreeMap<Double, Instance> sampleInstance;
         List<Instance> zeroWeightInstances;
         double weightSum;
-        Map<ClassifierNode, List<Instance>> replacements;
         List<Instance> replaceSelect;
-        Instances instances;
 
-        // Collect the Instances sets resulting from the replacement step for
-        // all Nodes
-        replacements = new HashMap<ClassifierNode, List<Instance>>();
-        for (ClassifierNode node : nodes) {
-            // Collect all Instances from this Node and its neighboring nodes,
-            // ordered from high to low weight.
-            weightOrderInstances = new TreeSet<Instance>(
-                    new InstanceWeightComparator());
-            for (Instance instance : node.getData())
+        // Collect all distinct Instances from this Node and its neighboring nodes,
+        // ordered from high to low weight. Equal weights keep the order of the nodes.
+        weightOrderInstances = new ArrayList<Instance>();
+        distinct = new IdentityHashMap<Instance, Instance>();
+        for (Instance instance : node.getData())
+            if (distinct.put(instance, instance) == null)
                 weightOrderInstances.add(instance);
-            neighbors = this.grid.getNeighbors(node);
-            for (ClassifierNode neighbor : neighbors)
-                for (Instance instance : neighbor.getData())
+        for (ClassifierNode neighbor : neighbors)
+            for (Instance instance : neighbor.getData())
+                if (distinct.put(instance, instance) == null)
                     weightOrderInstances.add(instance);
-
-            // Put instances in a TreeMap with as key the cumulative weight
-            // starting with highest weight instances
-            sampleInstance = new TreeMap<Double, Instance>();
-            zeroWeightInstances = new LinkedList<Instance>();
-            weightSum = 0;
-            for (Instance instance : weightOrderInstances) {
-                if (instance.weight() > 0) {
-                    weightSum += instance.weight();
-                    sampleInstance.put(weightSum, instance);
-                } else {
-                    // Keep the (worst) Instances with weight 0 in a separate
-                    // list... So they don't overwrite the sampleInstance of the
-                    // last instances with weight > 0.
-                    zeroWeightInstances.add(instance);
-                }
+        Collections.sort(weightOrderInstances, new InstanceWeightComparator());
+
+        // Put instances in a TreeMap with as key the cumulative weight
+        // starting with highest weight instances
+        sampleInstance = new TreeMap<Double, Instance>();
+        zeroWeightInstances = new LinkedList<Instance>();
+        weightSum = 0;
+        for (Instance instance : weightOrderInstances) {
+            if (instance.weight() > 0) {
+                weightSum += instance.weight();
+                sampleInstance.put(weightSum, instance);
+            } else {
+                // Keep the (worst) Instances with weight 0 in a separate
+                // list... So they don't overwrite the sampleInstance of the
+                // last instances with weight > 0.
+                zeroWeightInstances.add(instance);
             }
+        }
 
-            // Weight proportionate selection
-            replaceSelect = new LinkedList<Instance>();
-            for (Instance instance : node.getData()) {
-                // Don't replace all:
-                // The weight of an instances is not a constant since it depends
-                // on the data / classifier in its neighbor nodes.
-                // Therefore, an instances needs to be evaluated multiple times
-                // so its average weight is effectively used for propagation
-                // Using a 'momentum' term in the weighting should be smooth out
-                // this effect.
-                if (m_Random.nextDouble() < replacementRatio) {
-                    replaceSelect.add(selectWeightedInstance(sampleInstance,
-                            zeroWeightInstances));
-                } else
-                    replaceSelect.add(instance);
-            }
+        // Weight proportionate selection
+        replaceSelect = new LinkedList<Instance>();
+        for (Instance instance : node.getData()) {
+            // Don't replace all:
+            // The weight of an instances is not a constant since it depends
+            // on the data / classifier in its neighbor nodes.
+            // Therefore, an instances needs to be evaluated multiple times
+            // so its average weight is effectively used for propagation
+            // Using a 'momentum' term in the weighting should be smooth out
+            // this effect.
+            if (random.nextDouble() < replacementRatio) {
+                replaceSelect.add(selectWeightedInstance(sampleInstance,
+                        zeroWeightInstances, random));
+            } else
+                replaceSelect.add(instance);
+        }
+
+        return replaceSelect;
+    }
+
+    // ***************************************************************\
+    // *   Epoch engine: run a task for every Node on the slots      *
+    // ***************************************************************/
+    private interface NodeTask {
+        void run(int i) throws Exception;
+    }
+
+    private int getExecutionSlots() {
+        if (this.m_numExecutionSlots > 0) return this.m_numExecutionSlots;
+        else                              return Runtime.getRuntime().availableProcessors();
+    }
+
+    private void runNodes(int count, final NodeTask task) throws Exception {
+        List<Callable<Object>> tasks;
 
-            // Remember replacements for this Node. Don't replace yet because
-            // this Node is a neighbor for other Nodes and these still need the
-            // weight of the this epoch.
-            replacements.put(node, replaceSelect);
+        // Run on the calling thread without a pool.
+        if (this.pool == null || count <= 1) {
+            for (int i = 0; i < count; i++)
+                task.run(i);
+            return;
         }
 
-        // For all Nodes: move to next epoch.
-        for (ClassifierNode node : nodes) {
-            // Set the instance weights to 1.0 in order not to confuse
-            // Classifiers that use these in training.
-            replaceSelect = replacements.get(node);
-            // Replace the Node's Instances with the ones selected and reshuffle
-            // to avoid ordering effects in the Classifier.
-            instances = node.getData();
-            instances.clear();
-            instances.addAll(replaceSelect);
-            instances.randomize(this.m_Random);
+        // Run all tasks on the pool and wait for all of them. This is the barrier between the phases of an epoch.
+        tasks = new ArrayList<Callable<Object>>(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    task.run(index);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Object> done : this.pool.invokeAll(tasks))
+                done.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) throw (Exception) ex.getCause();
+            else                                    throw new Exception(ex.getCause());
         }
     }
 
@@ -738,31 +882,27 @@ public class ParallelSpatialBoosting extends
         }
     }
 
-    class InstanceWeightComparator implements Comparator {
-        // Ordere from highest to lowest Instance weight. Break ties with the
-        // hashCode of the Instances.
-        public int compare(Object arg0, Object arg1) {
-            Instance a = (Instance) arg0;
-            Instance b = (Instance) arg1;
-
+    class InstanceWeightComparator implements Comparator<Instance> {
+        // Order from highest to lowest Instance weight. Ties are left to the
+        // (stable) sort so the order does not depend on the hashCode of the Instances.
+        public int compare(Instance a, Instance b) {
             if (b.weight() > a.weight())
                 return (1);
             else if (b.weight() < a.weight())
                 return (-1);
             else
-                return new Integer(b.hashCode()).compareTo(new Integer(a
-                        .hashCode()));
+                return (0);
         }
     }
 
     private Instance selectWeightedInstance(
             TreeMap<Double, Instance> instances,
-            List<Instance> zeroWeightInstances) {
+            List<Instance> zeroWeightInstances, Random random) {
         double ran;
         Double wkey;
 
         // Pick a random number in [0, sum of instance weights]
-        ran = this.m_Random.nextDouble() * instances.lastKey();
+        ran = random.nextDouble() * instances.lastKey();
 
         // Find the Instance for which the sum of weight of all previous
         // instances is closest
@@ -774,7 +914,7 @@ public class ParallelSpatialBoosting extends
             if (zeroWeightInstances.size() == 0)
                 return instances.get(instances.lastKey());
             else
-                return zeroWeightInstances.get(this.m_Random
+                return zeroWeightInstances.get(random
                         .nextInt(zeroWeightInstances.size()));
         }
         // Return instance selected by weight-proportionate selection.
@@ -11,9 +11,19 @@
 \*********************************************************/
 package org.shaman.bayes;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.shaman.bayes.NaiveBayes;
+import org.shaman.dataflow.VectorBatch;
 import org.shaman.exceptions.ShamanException;
 import org.shaman.learning.Classifier;
+import org.shaman.learning.InstanceSetColumnar;
 import org.shaman.learning.InstanceSetMemory;
 import org.shaman.learning.MemorySupplier;
 import org.shaman.learning.TestSets;
@@ -21,6 +31,7 @@ import org.shaman.learning.Validation;
 import org.shaman.learning.ValidationClassifier;
 
 import junit.framework.TestCase;
+import cern.colt.matrix.DoubleMatrix1D;
 
 
 /**
@@ -91,6 +102,251 @@ public class NaiveBayesTest extends TestCase
         assertEquals(0.03, valclas.getClassificationError(), 0.1);
     }
 
+    public void testBatchClassification() throws ShamanException
+    {
+        MemorySupplier    ms = new MemorySupplier();
+        NaiveBayes        nb = new NaiveBayes();
+        InstanceSetMemory im = new InstanceSetMemory();
+        VectorBatch       in, out;
+        DoubleMatrix1D    vout;
+        int               i,j;
+        nb.registerSupplier(0, ms, 0);
+        ms.registerConsumer(0, nb, 0);
+        ms.registerConsumer(0, im, 0);
+        
+        TestSets.loadCancer(ms, false, true);
+        nb.setClassifierOutput(Classifier.OUT_CLASS_AND_CONFIDENCE);
+        nb.init();
+        im.create(ms);
+        nb.trainTransformation(im);
+        
+        // Classify the data-set as one block. Same outcome as vector per vector.
+        in = VectorBatch.fromVectors(Arrays.asList(ms.getDoubleInstances()));
+        out = nb.transformBatch(in);
+        assertEquals(in.getRows(), out.getRows());
+        for (i=0; i<in.getRows(); i++)
+        {
+            vout = (DoubleMatrix1D)nb.transform(in.getRow(i))[0];
+            assertEquals(vout.size(), out.getColumns());
+            for (j=0; j<vout.size(); j++) assertEquals(vout.getQuick(j), out.get(i, j), 1e-12);
+        }
+    }
+
+    public void testBlockClassification() throws ShamanException
+    {
+        MemorySupplier    ms = new MemorySupplier();
+        NaiveBayes        nb = new NaiveBayes();
+        InstanceSetMemory im = new InstanceSetMemory();
+        DoubleMatrix1D  []ins;
+        int             []cl;
+        double        [][]conf;
+        double          []confnow;
+        int               i,j;
+        nb.registerSupplier(0, ms, 0);
+        ms.registerConsumer(0, nb, 0);
+        ms.registerConsumer(0, im, 0);
+        
+        TestSets.loadCancer(ms, false, true);
+        nb.setClassifierOutput(Classifier.OUT_CLASS_AND_CONFIDENCE);
+        nb.init();
+        im.create(ms);
+        nb.trainTransformation(im);
+        
+        // Classify a range of the instances as blocks. Same classes and confidences as one by one.
+        ins  = im.getInstances();
+        cl   = new int[ins.length];
+        conf = new double[ins.length][2];
+        nb.classify(ins, 5, ins.length, cl, conf);
+        confnow = new double[2];
+        for (i=5; i<ins.length; i++)
+        {
+            assertEquals(nb.classify(ins[i], confnow), cl[i]);
+            for (j=0; j<confnow.length; j++) assertEquals(confnow[j], conf[i][j], 1e-12);
+        }
+    }
+    
+    public void testConcurrentClassification() throws Exception
+    {
+        MemorySupplier    ms = new MemorySupplier();
+        final NaiveBayes  nb = new NaiveBayes();
+        InstanceSetMemory im = new InstanceSetMemory();
+        final DoubleMatrix1D []ins;
+        final int         []cl;
+        final double    [][]conf;
+        List<Callable<Object>> tasks;
+        ExecutorService   pool;
+        int               i, t;
+        nb.registerSupplier(0, ms, 0);
+        ms.registerConsumer(0, nb, 0);
+        ms.registerConsumer(0, im, 0);
+        
+        TestSets.loadCancer(ms, false, true);
+        nb.setClassifierOutput(Classifier.OUT_CLASS_AND_CONFIDENCE);
+        nb.init();
+        im.create(ms);
+        nb.trainTransformation(im);
+        
+        // Classify one after the other.
+        ins  = im.getInstances();
+        cl   = new int[ins.length];
+        conf = new double[ins.length][2];
+        for (i=0; i<ins.length; i++) cl[i] = nb.classify(ins[i], conf[i]);
+        
+        // Several threads classifying with the same model at once give the same outcome.
+        tasks = new LinkedList<Callable<Object>>();
+        for (t=0; t<4; t++)
+        {
+            final boolean block = (t%2 == 0);
+            tasks.add(new Callable<Object>()
+            {
+                public Object call() throws Exception
+                {
+                    int      n, k;
+                    int    []clnow;
+                    double [][]confnow;
+                    
+                    clnow   = new int[ins.length];
+                    confnow = new double[ins.length][2];
+                    for (n=0; n<50; n++)
+                    {
+                        if (block) nb.classify(ins, 0, ins.length, clnow, confnow);
+                        else for (k=0; k<ins.length; k++) clnow[k] = nb.classify(ins[k], confnow[k]);
+                        for (k=0; k<ins.length; k++)
+                        {
+                            assertEquals(cl[k], clnow[k]);
+                            assertEquals(conf[k][0], confnow[k][0], 0);
+                            assertEquals(conf[k][1], confnow[k][1], 0);
+                        }
+                    }
+                    return(null);
+                }
+            });
+        }
+        pool = Executors.newFixedThreadPool(4);
+        try
+        {
+            for(Future<Object> done: pool.invokeAll(tasks)) done.get();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+    
+    public void testIncremental() throws ShamanException
+    {
+        MemorySupplier    ms = new MemorySupplier();
+        NaiveBayes        nb = new NaiveBayes();
+        NaiveBayes        nbinc = new NaiveBayes();
+        InstanceSetMemory im = new InstanceSetMemory();
+        InstanceSetMemory []part;
+        DoubleMatrix1D  []rows;
+        DoubleMatrix1D    vout, vinc;
+        int               i,j,half,numins;
+        nb.registerSupplier(0, ms, 0);
+        ms.registerConsumer(0, nb, 0);
+        nbinc.registerSupplier(0, ms, 0);
+        ms.registerConsumer(0, nbinc, 0);
+        ms.registerConsumer(0, im, 0);
+        
+        TestSets.loadCancer(ms, false, true);
+        nb.setClassifierOutput(Classifier.OUT_CLASS_AND_CONFIDENCE);
+        nbinc.setClassifierOutput(Classifier.OUT_CLASS_AND_CONFIDENCE);
+        nb.init();
+        nbinc.init();
+        im.create(ms);
+        nb.trainTransformation(im);
+        
+        // Split the data-set in 2 parts that arrive one after the other.
+        numins = im.getNumberOfInstances();
+        half   = numins/2;
+        part   = new InstanceSetMemory[2];
+        for (i=0; i<2; i++)
+        {
+            part[i] = new InstanceSetMemory();
+            part[i].create(ms);
+            part[i].setInstances(Arrays.copyOfRange(im.getInstances(), i*half, (i==0)?half:numins));
+            part[i].setGoals(Arrays.copyOfRange(im.getGoals(), i*half, (i==0)?half:numins));
+            part[i].setWeights(Arrays.copyOfRange(im.getWeights(), i*half, (i==0)?half:numins));
+            nbinc.trainIncremental(part[i]);
+        }
+        
+        // Same model as training on all instances at once.
+        rows = ms.getDoubleInstances();
+        for (i=0; i<rows.length; i++)
+        {
+            vout = (DoubleMatrix1D)nb.transform(rows[i])[0];
+            vinc = (DoubleMatrix1D)nbinc.transform(rows[i])[0];
+            for (j=0; j<vout.size(); j++) assertEquals(vout.getQuick(j), vinc.getQuick(j), 1e-12);
+        }
+    }
+
+    public void testUnknownGoal() throws ShamanException
+    {
+        MemorySupplier      ms = new MemorySupplier();
+        NaiveBayes          nb = new NaiveBayes();
+        NaiveBayes          nbrow = new NaiveBayes();
+        NaiveBayes          nbcol = new NaiveBayes();
+        InstanceSetMemory   im = new InstanceSetMemory();
+        InstanceSetMemory   imun = new InstanceSetMemory();
+        InstanceSetColumnar icun = new InstanceSetColumnar();
+        DoubleMatrix1D    []rows;
+        DoubleMatrix1D      vout, vrow, vcol;
+        double            []goal;
+        int                 i,j,numins;
+        nb.registerSupplier(0, ms, 0);
+        ms.registerConsumer(0, nb, 0);
+        nbrow.registerSupplier(0, ms, 0);
+        ms.registerConsumer(0, nbrow, 0);
+        nbcol.registerSupplier(0, ms, 0);
+        ms.registerConsumer(0, nbcol, 0);
+        ms.registerConsumer(0, im, 0);
+        ms.registerConsumer(0, imun, 0);
+        
+        TestSets.loadCancer(ms, false, true);
+        nb.setClassifierOutput(Classifier.OUT_CLASS_AND_CONFIDENCE);
+        nbrow.setClassifierOutput(Classifier.OUT_CLASS_AND_CONFIDENCE);
+        nbcol.setClassifierOutput(Classifier.OUT_CLASS_AND_CONFIDENCE);
+        nb.init();
+        nbrow.init();
+        nbcol.init();
+        im.create(ms);
+        nb.trainTransformation(im);
+        
+        // The same instances twice. The second time without a known goal class.
+        numins = im.getNumberOfInstances();
+        imun.create(ms);
+        rows = new DoubleMatrix1D[2*numins];
+        goal = new double[2*numins];
+        for (i=0; i<numins; i++)
+        {
+            rows[i] = rows[numins+i] = im.getInstances()[i];
+            goal[i] = im.getGoals()[i];
+            goal[numins+i] = -12345;
+        }
+        imun.setInstances(rows);
+        imun.setGoals(goal);
+        imun.setWeights(Arrays.copyOf(im.getWeights(), 2*numins));
+        Arrays.fill(imun.getWeights(), numins, 2*numins, 1.0);
+        icun.create(imun);
+        
+        // These are not counted, by rows or by columns.
+        nbrow.trainTransformation(imun);
+        nbcol.trainTransformation(icun);
+        rows = ms.getDoubleInstances();
+        for (i=0; i<rows.length; i++)
+        {
+            vout = (DoubleMatrix1D)nb.transform(rows[i])[0];
+            vrow = (DoubleMatrix1D)nbrow.transform(rows[i])[0];
+            vcol = (DoubleMatrix1D)nbcol.transform(rows[i])[0];
+            for (j=0; j<vout.size(); j++)
+            {
+                assertEquals(vout.getQuick(j), vrow.getQuick(j), 1e-12);
+                assertEquals(vout.getQuick(j), vcol.getQuick(j), 1e-12);
+            }
+        }
+    }
+
     // **********************************************************\
     // *                JUnit Setup and Teardown                *
     // **********************************************************/
@@ -11,7 +11,10 @@
 \*********************************************************/
 package org.shaman.cbr;
 
+import java.util.Random;
+
 import org.shaman.cbr.CBR;
+import org.shaman.datamodel.DataModelPropertyVectorType;
 import org.shaman.exceptions.ShamanException;
 import org.shaman.learning.Classifier;
 import org.shaman.learning.InstanceSetMemory;
@@ -21,6 +24,7 @@ import org.shaman.learning.Validation;
 import org.shaman.learning.ValidationClassifier;
 
 import junit.framework.TestCase;
+import cern.colt.matrix.DoubleMatrix1D;
 
 
 /**
@@ -28,6 +32,9 @@ import junit.framework.TestCase;
  */
 public class CBRTest extends TestCase
 {
+   // Number of instances in the index benchmark
+   private static final int BENCHMARK_INSTANCES = 100000;
+   
    // **********************************************************\
    // *               Case Based Reasoning Test                *
    // **********************************************************/
@@ -75,6 +82,168 @@ public class CBRTest extends TestCase
        assertEquals(0.03, valclas.getClassificationError(), 0.1);
    }
    
+   // **********************************************************\
+   // *       Nearest Neighbor Indices find the Same Cases      *
+   // **********************************************************/
+   public void testIndexExact() throws ShamanException
+   {
+       indexCore(true,  new int[]{CBR.INDEX_KDTREE, CBR.INDEX_VPTREE});
+       indexCore(false, new int[]{CBR.INDEX_VPTREE});
+   }
+   
+   private void indexCore(boolean prim, int []types) throws ShamanException
+   {
+       InstanceSetMemory im;
+       CBR               linear, tree;
+       NeighborHeap      nlin, ntree;
+       Object            query;
+       int               i, j, t;
+       
+       im     = loadCancer(prim);
+       linear = trainCBR(im, CBR.INDEX_LINEAR);
+       for (t=0; t<types.length; t++)
+       {
+           // The cancer data has many instances at the same distance. The ties must be broken the same way.
+           tree = trainCBR(im, types[t]);
+           for (i=0; i<im.getNumberOfInstances(); i++)
+           {
+               if (prim) query = im.getInstance(i);
+               else      query = im.getObjectInstance(i);
+               nlin  = linear.nearest(query, 7);
+               ntree = tree.nearest(query, 7);
+               assertEquals(nlin.size(), ntree.size());
+               for (j=0; j<nlin.size(); j++)
+               {
+                   assertEquals(nlin.getIndex(j), ntree.getIndex(j));
+                   assertEquals(nlin.getDistance(j), ntree.getDistance(j), 0);
+               }
+           }
+           if (prim) assertTrue(tree.getNeighborIndex().getDistanceCount() < linear.getNeighborIndex().getDistanceCount());
+       }
+   }
+   
+   public void testNeighborHeap()
+   {
+       NeighborHeap heap;
+       int          i;
+       
+       // The 3 nearest of 10 instances offered in a scrambled order.
+       heap = new NeighborHeap(3, null);
+       for (i=0; i<10; i++) heap.offer((i*7)%10, (i*7)%10);
+       assertEquals(3, heap.sort());
+       for (i=0; i<3; i++) assertEquals(i, heap.getIndex(i));
+       
+       // Sorting again keeps the order. Offering more neighbors afterwards still works.
+       assertEquals(3, heap.sort());
+       assertEquals(0, heap.getIndex(0));
+       assertEquals(2.0, heap.getBound(), 0);
+       assertTrue(heap.offer(10, 0.5));
+       assertFalse(heap.offer(11, 5));
+       assertEquals(3, heap.sort());
+       assertEquals(0,  heap.getIndex(0));
+       assertEquals(10, heap.getIndex(1));
+       assertEquals(1,  heap.getIndex(2));
+   }
+   
+   public void testBatchClassify() throws ShamanException
+   {
+       InstanceSetMemory im;
+       CBR               cbr;
+       int             []batch;
+       double        [][]conf;
+       double          []confOne;
+       int               i, j;
+       
+       im  = loadCancer(true);
+       cbr = trainCBR(im, CBR.INDEX_AUTO);
+       assertTrue(cbr.getNeighborIndex() instanceof KDTree);
+       cbr.setNumberOfThreads(3);
+       conf    = new double[im.getNumberOfInstances()][2];
+       confOne = new double[2];
+       batch   = cbr.classify(im, conf);
+       for (i=0; i<batch.length; i++)
+       {
+           assertEquals(cbr.classify(im.getInstance(i), confOne), batch[i]);
+           for (j=0; j<confOne.length; j++) assertEquals(confOne[j], conf[i][j], 0);
+       }
+   }
+   
+   // **********************************************************\
+   // *            KD-Tree against the Linear Scan             *
+   // **********************************************************/
+   public void testIndexBenchmark() throws ShamanException
+   {
+       InstanceSetMemory im, big;
+       CBR               linear, kd;
+       Random            ran;
+       DoubleMatrix1D    src, ins;
+       int             []clin, ckd;
+       long              tbeg, tlin, tkd;
+       int               i, j;
+       
+       // Jittered copies of the cancer instances.
+       im  = loadCancer(true);
+       ran = new Random(3);
+       try { big = (InstanceSetMemory)im.clone(); } catch(CloneNotSupportedException ex) { throw new RuntimeException(ex); }
+       big.makeInstances(BENCHMARK_INSTANCES);
+       for (i=0; i<BENCHMARK_INSTANCES; i++)
+       {
+           src = im.getInstance(i % im.getNumberOfInstances());
+           ins = src.copy();
+           for (j=0; j<ins.size(); j++) ins.setQuick(j, ins.getQuick(j) + ran.nextGaussian()*0.5);
+           big.setInstance(i, ins);
+           big.setGoal(i, im.getGoal(i % im.getNumberOfInstances()));
+       }
+       
+       tbeg   = System.nanoTime();
+       kd     = trainCBR(big, CBR.INDEX_KDTREE);
+       tkd    = System.nanoTime()-tbeg;
+       linear = trainCBR(big, CBR.INDEX_LINEAR);
+       System.out.println("KD-Tree of "+BENCHMARK_INSTANCES+" instances built in "+(tkd/1000000)+" ms");
+       
+       // Classify the original cancer instances.
+       tbeg = System.nanoTime();
+       clin = linear.classify(im, null);
+       tlin = System.nanoTime()-tbeg;
+       tbeg = System.nanoTime();
+       ckd  = kd.classify(im, null);
+       tkd  = System.nanoTime()-tbeg;
+       for (i=0; i<clin.length; i++) assertEquals(clin[i], ckd[i]);
+       
+       System.out.println("Linear scan : "+(tlin/clin.length/1000)+" us/query");
+       System.out.println("KD-Tree     : "+(tkd/ckd.length/1000)+" us/query, "+(kd.getNeighborIndex().getDistanceCount()/ckd.length)+" distances/query");
+   }
+   
+   private InstanceSetMemory loadCancer(boolean prim) throws ShamanException
+   {
+       MemorySupplier    ms = new MemorySupplier();
+       InstanceSetMemory im = new InstanceSetMemory();
+       
+       TestSets.loadCancer(ms, false, prim);
+       im.create(ms);
+       
+       return(im);
+   }
+   
+   private CBR trainCBR(InstanceSetMemory im, int indexType) throws ShamanException
+   {
+       MemorySupplier ms = new MemorySupplier();
+       CBR           cbr = new CBR();
+       
+       cbr.registerSupplier(0, ms, 0);
+       ms.registerConsumer(0, cbr, 0);
+       TestSets.loadCancer(ms, false, im.getDataModel().getVectorTypeProperty().equals(DataModelPropertyVectorType.doubleVector));
+       cbr.setClassifierOutput(Classifier.OUT_CLASS);
+       cbr.setKNearest(5);
+       cbr.setIndexType(indexType);
+       cbr.init();
+       cbr.setTrainSet(im);
+       cbr.initializeTraining();
+       cbr.train();
+       
+       return(cbr);
+   }
+   
 	// **********************************************************\
     // *                JUnit Setup and Teardown                *
     // **********************************************************/
@@ -0,0 +1,170 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.cbr;
+
+import java.io.File;
+
+import org.shaman.exceptions.LearnerException;
+import org.shaman.exceptions.ShamanException;
+import org.shaman.learning.InstanceSetMemory;
+import org.shaman.learning.MemorySupplier;
+import org.shaman.learning.TestSets;
+
+import junit.framework.TestCase;
+import cern.colt.matrix.doublealgo.Statistic;
+
+
+/**
+ * <h2>Distance Matrix Test Case</h2>
+ */
+public class DistanceMatrixTest extends TestCase
+{
+    private InstanceSetMemory im;
+    private File              tmpFile;
+
+    // **********************************************************\
+    // *          Packed Matrix equals the Distances            *
+    // **********************************************************/
+    public void testPacked() throws ShamanException
+    {
+        DistanceMatrix serial, parallel;
+        double         d;
+        int            i, j, n;
+
+        serial   = makeMatrix(DistanceMatrix.TYPE_RAW, 1);
+        parallel = makeMatrix(DistanceMatrix.TYPE_RAW, 3);
+        n        = this.im.getNumberOfInstances();
+        assertEquals(8L*n*(n+1)/2, serial.getNumberOfBytes());
+        for (i=0; i<n; i++)
+        {
+            for (j=0; j<n; j++)
+            {
+                d = serial.distance(this.im.getInstance(i), this.im.getInstance(j));
+                assertEquals(d, serial.distance(i, j),   0);
+                assertEquals(d, parallel.distance(j, i), 0);
+            }
+        }
+    }
+
+    public void testQuantized() throws ShamanException
+    {
+        DistanceMatrix raw, flt, shr, hist;
+        double         d, dmax;
+        int            i, j, n, bin;
+
+        raw  = makeMatrix(DistanceMatrix.TYPE_RAW,       2);
+        flt  = makeMatrix(DistanceMatrix.TYPE_FLOAT,     2);
+        shr  = makeMatrix(DistanceMatrix.TYPE_SHORT,     2);
+        hist = makeMatrix(DistanceMatrix.TYPE_HISTOGRAM, 2);
+        n    = this.im.getNumberOfInstances();
+        assertEquals(raw.getNumberOfBytes()/2, flt.getNumberOfBytes());
+        assertEquals(raw.getNumberOfBytes()/4, shr.getNumberOfBytes());
+        assertEquals(raw.getNumberOfBytes()/8, hist.getNumberOfBytes());
+
+        dmax = 0;
+        for (i=0; i<n; i++) for (j=0; j<=i; j++) dmax = Math.max(dmax, raw.distance(i, j));
+        for (i=0; i<n; i++)
+        {
+            for (j=0; j<n; j+=3)
+            {
+                d = raw.distance(i, j);
+                assertEquals(d, flt.distance(i, j), 1e-6*d);
+                assertEquals(d, shr.distance(i, j), dmax/65534);
+
+                // Within the bin of the histogram. Except for the maximum distance, which overflows.
+                bin = hist.distanceAsBin(i, j);
+                assertEquals(bin, hist.distanceAsBin(j, i));
+                if (bin >= 0) assertEquals(d, hist.distance(i, j), dmax/126);
+            }
+        }
+    }
+
+    // **********************************************************\
+    // *              Memory-Mapped Distance Matrix             *
+    // **********************************************************/
+    public void testMapped() throws ShamanException
+    {
+        DistanceMatrix heap, mapped, loaded;
+        InstanceSetMemory half;
+        int            i, j, n;
+
+        heap   = makeMatrix(DistanceMatrix.TYPE_SHORT, 1);
+        mapped = new DistanceMatrix();
+        mapped.setNumberOfThreads(2);
+        mapped.create(DistanceMatrix.TYPE_SHORT, Statistic.EUCLID, false, false, this.im, this.tmpFile);
+        assertEquals(this.tmpFile, mapped.getFile());
+
+        // Load the file again. No distances are calculated.
+        loaded = new DistanceMatrix();
+        loaded.load(this.tmpFile, Statistic.EUCLID, false, false, this.im);
+        assertEquals(DistanceMatrix.TYPE_SHORT, loaded.getType());
+        n = this.im.getNumberOfInstances();
+        for (i=0; i<n; i++)
+        {
+            for (j=0; j<n; j++)
+            {
+                assertEquals(heap.distance(i, j), mapped.distance(i, j), 0);
+                assertEquals(heap.distance(i, j), loaded.distance(i, j), 0);
+            }
+        }
+
+        // A file made for other instances is refused.
+        try
+        {
+            half = (InstanceSetMemory)this.im.clone();
+            half.reorder(new int[]{0, 1, 2});
+            new DistanceMatrix().load(this.tmpFile, Statistic.EUCLID, false, false, half);
+            fail("Distance matrix file of another instance set was loaded.");
+        }
+        catch(LearnerException ex) { }
+        catch(CloneNotSupportedException ex) { throw new RuntimeException(ex); }
+    }
+
+    private DistanceMatrix makeMatrix(int type, int threads) throws ShamanException
+    {
+        DistanceMatrix dm;
+
+        dm = new DistanceMatrix();
+        dm.setNumberOfThreads(threads);
+        dm.create(type, Statistic.EUCLID, false, false, this.im);
+
+        return(dm);
+    }
+
+    // **********************************************************\
+    // *                JUnit Setup and Teardown                *
+    // **********************************************************/
+    public DistanceMatrixTest(String name)
+    {
+        super(name);
+    }
+
+    protected void setUp() throws Exception
+    {
+        MemorySupplier ms;
+
+        super.setUp();
+
+        // Wisconsin Breast Cancer data-set as primitive data.
+        ms      = new MemorySupplier();
+        this.im = new InstanceSetMemory();
+        TestSets.loadCancer(ms, false, true);
+        this.im.create(ms);
+        this.tmpFile = File.createTempFile("distancetest", ".dm");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        this.tmpFile.delete();
+        super.tearDown();
+    }
+}
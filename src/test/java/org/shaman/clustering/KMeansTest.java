@@ -11,6 +11,8 @@
 \*********************************************************/
 package org.shaman.clustering;
 
+import java.util.Random;
+
 import org.shaman.clustering.KMeans;
 import org.shaman.learning.InstanceSetMemory;
 import org.shaman.learning.MemorySupplier;
@@ -19,6 +21,7 @@ import org.shaman.learning.Validation;
 import org.shaman.learning.ValidationClusterer;
 
 import junit.framework.TestCase;
+import cern.colt.matrix.DoubleMatrix1D;
 
 
 /**
@@ -26,6 +29,8 @@ import junit.framework.TestCase;
  */
 public class KMeansTest extends TestCase
 {
+    private static final int BENCHMARK_INSTANCES = 60000;
+    
     // **********************************************************\
     // *                    Test Clustering                     *
     // **********************************************************/
@@ -61,6 +66,156 @@ public class KMeansTest extends TestCase
         System.err.println(clmem[0]+" "+clmem[1]+" "+clmem[2]);
     }
     
+    // **********************************************************\
+    // *          Bounds give the same Clusters as Lloyd        *
+    // **********************************************************/
+    public void testAssignment() throws Exception
+    {
+        InstanceSetMemory big;
+        KMeans            lloyd, hamerly, elkan;
+        long              tbeg, tlloyd, thamerly, telkan;
+        
+        big    = makeJittered(BENCHMARK_INSTANCES);
+        tbeg   = System.nanoTime();
+        lloyd  = trainKMeans(big, KMeans.ASSIGN_LLOYD, 1);
+        tlloyd = System.nanoTime()-tbeg;
+        tbeg     = System.nanoTime();
+        hamerly  = trainKMeans(big, KMeans.ASSIGN_HAMERLY, 1);
+        thamerly = System.nanoTime()-tbeg;
+        tbeg   = System.nanoTime();
+        elkan  = trainKMeans(big, KMeans.ASSIGN_ELKAN, 1);
+        telkan = System.nanoTime()-tbeg;
+        
+        assertSameCentroids(lloyd, hamerly);
+        assertSameCentroids(lloyd, elkan);
+        assertEquals(lloyd.getNumberOfIterations(), hamerly.getNumberOfIterations());
+        assertEquals(lloyd.getNumberOfIterations(), elkan.getNumberOfIterations());
+        assertTrue(hamerly.getDistanceCount() < lloyd.getDistanceCount());
+        assertTrue(elkan.getDistanceCount()   < lloyd.getDistanceCount());
+        
+        System.out.println("K-Means of "+BENCHMARK_INSTANCES+" instances in "+lloyd.getNumberOfIterations()+" iterations");
+        System.out.println("Lloyd   : "+(tlloyd/1000000)+" ms, "+lloyd.getDistanceCount()+" distances");
+        System.out.println("Hamerly : "+(thamerly/1000000)+" ms, "+hamerly.getDistanceCount()+" distances");
+        System.out.println("Elkan   : "+(telkan/1000000)+" ms, "+elkan.getDistanceCount()+" distances");
+    }
+    
+    public void testThreads() throws Exception
+    {
+        InstanceSetMemory big;
+        
+        big = makeJittered(BENCHMARK_INSTANCES/4);
+        assertSameCentroids(trainKMeans(big, KMeans.ASSIGN_HAMERLY, 1), trainKMeans(big, KMeans.ASSIGN_HAMERLY, 3));
+    }
+    
+    // **********************************************************\
+    // *                  Mini-Batch K-Means                    *
+    // **********************************************************/
+    public void testMiniBatch() throws Exception
+    {
+        InstanceSetMemory big;
+        KMeans            full, mini;
+        double            costFull, costMini;
+        
+        big  = makeJittered(BENCHMARK_INSTANCES/4);
+        full = trainKMeans(big, KMeans.ASSIGN_HAMERLY, 1);
+        mini = new KMeans();
+        mini.setMiniBatch(200, 50);
+        train(mini, big);
+        
+        // Close to the cost of the full batch, with a fraction of the distances.
+        costFull = cost(full, big);
+        costMini = cost(mini, big);
+        System.out.println("Mini-batch cost "+costMini+" with "+mini.getDistanceCount()+" distances. Full batch "+costFull+" with "+full.getDistanceCount());
+        assertTrue(costMini < costFull*1.05);
+        assertTrue(mini.getDistanceCount() < full.getDistanceCount());
+    }
+    
+    private KMeans trainKMeans(InstanceSetMemory data, int assignment, int threads) throws Exception
+    {
+        KMeans km;
+        
+        km = new KMeans();
+        km.setAssignment(assignment);
+        km.setNumberOfThreads(threads);
+        train(km, data);
+        
+        return(km);
+    }
+    
+    private void train(KMeans km, InstanceSetMemory data) throws Exception
+    {
+        MemorySupplier ms = new MemorySupplier();
+        
+        ms.registerConsumer(0, km, 0);
+        km.registerSupplier(0, ms, 0);
+        TestSets.loadIris(ms, 2);
+        km.setK(3);
+        km.init();
+        km.setTrainSet(data);
+        km.initializeTraining();
+        km.train();
+    }
+    
+    private InstanceSetMemory makeJittered(int num) throws Exception
+    {
+        MemorySupplier    ms = new MemorySupplier();
+        InstanceSetMemory im = new InstanceSetMemory();
+        InstanceSetMemory big;
+        Random            ran;
+        DoubleMatrix1D    ins;
+        int               i, j;
+        
+        // Jittered copies of the iris instances.
+        TestSets.loadIris(ms, 2);
+        im.create(ms);
+        ran = new Random(5);
+        big = (InstanceSetMemory)im.clone();
+        big.makeInstances(num);
+        for (i=0; i<num; i++)
+        {
+            ins = im.getInstance(i % im.getNumberOfInstances()).copy();
+            for (j=0; j<ins.size(); j++) ins.setQuick(j, ins.getQuick(j) + ran.nextGaussian()*0.3);
+            big.setInstance(i, ins);
+            big.setGoal(i, im.getGoal(i % im.getNumberOfInstances()));
+        }
+        
+        return(big);
+    }
+    
+    private double cost(KMeans km, InstanceSetMemory data) throws Exception
+    {
+        DoubleMatrix1D []cen;
+        DoubleMatrix1D   ins;
+        double           cost, d, dmin;
+        int              i, j, a;
+        
+        // Sum of the squared distances to the nearest centroid.
+        cen  = km.getCentroids();
+        cost = 0;
+        for (i=0; i<data.getNumberOfInstances(); i++)
+        {
+            ins  = data.getInstance(i);
+            dmin = Double.POSITIVE_INFINITY;
+            for (j=0; j<cen.length; j++)
+            {
+                d = 0;
+                for (a=0; a<ins.size(); a++) d += (ins.getQuick(a)-cen[j].getQuick(a))*(ins.getQuick(a)-cen[j].getQuick(a));
+                dmin = Math.min(dmin, d);
+            }
+            cost += dmin;
+        }
+        
+        return(cost);
+    }
+    
+    private void assertSameCentroids(KMeans km1, KMeans km2)
+    {
+        int i, j;
+        
+        for (i=0; i<km1.getCentroids().length; i++)
+            for (j=0; j<km1.getCentroids()[i].size(); j++) assertEquals(km1.getCentroids()[i].getQuick(j), km2.getCentroids()[i].getQuick(j), 0);
+    }
+    
     // **********************************************************\
     // *                JUnit Setup and Teardown                *
     // **********************************************************/
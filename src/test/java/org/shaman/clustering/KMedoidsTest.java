@@ -0,0 +1,123 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2006 Shaman Research                   *
+\*********************************************************/
+package org.shaman.clustering;
+
+import org.shaman.learning.InstanceSetMemory;
+import org.shaman.learning.MemorySupplier;
+import org.shaman.learning.TestSets;
+
+import junit.framework.TestCase;
+
+
+/**
+ * K-Medoids Clustering Test
+ */
+public class KMedoidsTest extends TestCase
+{
+    // **********************************************************\
+    // *             Cost of the Swap Algorithms                *
+    // **********************************************************/
+    public void testCost() throws Exception
+    {
+        KMedoids km;
+        double   costPAM, costFast, costClara, costClarans;
+        long     time;
+        
+        time    = System.currentTimeMillis();
+        km      = trainKMedoids(KMedoids.ALGORITHM_PAM, 1);
+        costPAM = km.getCost();
+        System.err.println("PAM     cost "+costPAM+" in "+(System.currentTimeMillis()-time)+" ms");
+        
+        time     = System.currentTimeMillis();
+        km       = trainKMedoids(KMedoids.ALGORITHM_FASTPAM, 1);
+        costFast = km.getCost();
+        System.err.println("FastPAM cost "+costFast+" in "+(System.currentTimeMillis()-time)+" ms");
+        
+        time      = System.currentTimeMillis();
+        km        = trainKMedoids(KMedoids.ALGORITHM_CLARA, 1);
+        costClara = km.getCost();
+        System.err.println("CLARA   cost "+costClara+" in "+(System.currentTimeMillis()-time)+" ms");
+        
+        time        = System.currentTimeMillis();
+        km          = trainKMedoids(KMedoids.ALGORITHM_CLARANS, 1);
+        costClarans = km.getCost();
+        System.err.println("CLARANS cost "+costClarans+" in "+(System.currentTimeMillis()-time)+" ms");
+        
+        // FastPAM swaps until no swap helps. At least as good as the histogram based PAM.
+        assertTrue(costFast <= costPAM*(1+1e-9));
+        
+        // The sampling algorithms come close.
+        assertTrue(costClara   <= costFast*1.05);
+        assertTrue(costClarans <= costFast*1.05);
+    }
+    
+    // **********************************************************\
+    // *          Same Medoids whatever the Threads             *
+    // **********************************************************/
+    public void testThreads() throws Exception
+    {
+        int []algorithms = new int[]{KMedoids.ALGORITHM_FASTPAM, KMedoids.ALGORITHM_CLARA, KMedoids.ALGORITHM_CLARANS};
+        int []med1, med3;
+        int   i, m;
+        
+        for (i=0; i<algorithms.length; i++)
+        {
+            med1 = trainKMedoids(algorithms[i], 1).getMedoids();
+            med3 = trainKMedoids(algorithms[i], 3).getMedoids();
+            assertEquals(med1.length, med3.length);
+            for (m=0; m<med1.length; m++) assertEquals(med1[m], med3[m]);
+        }
+    }
+    
+    private KMedoids trainKMedoids(int algorithm, int threads) throws Exception
+    {
+        MemorySupplier    ms = new MemorySupplier();
+        InstanceSetMemory im = new InstanceSetMemory();
+        KMedoids          km = new KMedoids();
+        
+        km.registerSupplier(0, ms, 0);
+        ms.registerConsumer(0, km, 0);
+        
+        // Wisconsin Breast Cancer data-set as primitive data.
+        TestSets.loadCancer(ms, false, true);
+        km.setClusterParameters(4);
+        km.setDistanceParameters(KMedoids.DISTANCE_EUCLID, false, false);
+        km.setAlgorithm(algorithm);
+        km.setNumberOfThreads(threads);
+        km.init();
+        im.create(ms);
+        
+        km.setTrainSet(im);
+        km.initializeTraining();
+        km.train();
+        
+        return(km);
+    }
+    
+    // **********************************************************\
+    // *                JUnit Setup and Teardown                *
+    // **********************************************************/
+    public KMedoidsTest(String name)
+    {
+        super(name);
+    }
+    
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+    }
+    
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+    }
+}
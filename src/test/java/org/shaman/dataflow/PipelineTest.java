@@ -0,0 +1,464 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.dataflow;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.shaman.TestUtils;
+import org.shaman.datamodel.DataModel;
+import org.shaman.exceptions.ConfigException;
+import org.shaman.exceptions.DataFlowException;
+import org.shaman.exceptions.ShamanException;
+import org.shaman.exceptions.TransformationException;
+
+import junit.framework.TestCase;
+import cern.colt.matrix.DoubleFactory1D;
+import cern.colt.matrix.DoubleMatrix1D;
+
+
+/**
+ * <h2>Pipelined TransformationNetwork Test Case</h2>
+ */
+public class PipelineTest extends TestCase
+{
+    private static final int SIZE = 8;
+
+    // **********************************************************\
+    // *          CPU-Heavy Transformation for the Tests        *
+    // **********************************************************/
+    public static class Spin extends Transformation
+    {
+        private int work;
+
+        public Object []transform(Object in) throws DataFlowException
+        {
+            DoubleMatrix1D vin, vout;
+            double         x;
+            int            i,j;
+
+            vin  = (DoubleMatrix1D)in;
+            if (vin.getQuick(0) < 0) throw new TransformationException("Negative input in '"+getName()+"'");
+
+            // Burn some CPU without changing the data. Then count the stage in the last element.
+            vout = vin.copy();
+            for (i=0; i<vout.size()-1; i++)
+            {
+                x = vout.getQuick(i);
+                for (j=0; j<this.work; j++) x = Math.asin(Math.sin(x));
+                vout.setQuick(i, x);
+            }
+            vout.setQuick(vout.size()-1, vout.getQuick(vout.size()-1)+1);
+
+            return(new Object[]{vout});
+        }
+
+        public void grow(int work)
+        {
+            this.work = work;
+            super.grow(1, 1);
+        }
+
+        public void init() throws ConfigException
+        {
+            DataModel dmin = setSupplierAsInputDataModel(0);
+            setOutputDataModel(0, dmin);
+        }
+
+        public void cleanUp() throws DataFlowException { }
+        public void checkDataModelFit(int port, DataModel dm) throws ConfigException { }
+        public int getNumberOfInputs()  { return(1); }
+        public int getNumberOfOutputs() { return(1); }
+        public String getInputName(int port)  { return(port == 0 ? "Spin Input"  : null); }
+        public String getOutputName(int port) { return(port == 0 ? "Spin Output" : null); }
+
+        public Spin()
+        {
+            super();
+            this.work   = 1;
+            name        = "Spin";
+            description = "Burns CPU";
+        }
+    }
+
+    // Waits for data on both ports and outputs the first element of each.
+    public static class Pair extends Transformation
+    {
+        public Object []transform(Object []in) throws DataFlowException
+        {
+            DoubleMatrix1D vout;
+
+            vout = DoubleFactory1D.dense.make(2);
+            vout.setQuick(0, ((DoubleMatrix1D)in[0]).getQuick(0));
+            vout.setQuick(1, ((DoubleMatrix1D)in[1]).getQuick(0));
+
+            return(new Object[]{vout});
+        }
+
+        public void init() throws ConfigException
+        {
+            setSupplierAsInputDataModel(0);
+            setSupplierAsInputDataModel(1);
+            setOutputDataModel(0, getInputDataModel(0));
+        }
+
+        public void cleanUp() throws DataFlowException { }
+        public void checkDataModelFit(int port, DataModel dm) throws ConfigException { }
+        public int getNumberOfInputs()  { return(2); }
+        public int getNumberOfOutputs() { return(1); }
+        public String getInputName(int port)  { return(port < 2 ? "Pair Input "+port : null); }
+        public String getOutputName(int port) { return(port == 0 ? "Pair Output" : null); }
+
+        public Pair()
+        {
+            super();
+            name        = "Pair";
+            description = "Pairs the data of 2 ports";
+        }
+    }
+
+    // **********************************************************\
+    // *                  Network Construction                  *
+    // **********************************************************/
+    private TransformationNetwork makeChain(int numstage, int work) throws ShamanException
+    {
+        NetworkNode       []netnod;
+        NetworkConnection []netcon;
+        int                 i;
+
+        netnod = new NetworkNode[numstage];
+        netcon = new NetworkConnection[numstage+1];
+        for (i=0; i<numstage; i++)
+        {
+            netnod[i] = new NetworkNode("Spin"+i, "org.shaman.dataflow.PipelineTest$Spin", new int[]{work}, "Stage "+i, i);
+            netcon[i] = new NetworkConnection(i == 0 ? null : "Spin"+(i-1), 0, "Spin"+i, 0);
+        }
+        netcon[numstage] = new NetworkConnection("Spin"+(numstage-1), 0, null, 0);
+
+        return(makeNetwork(netnod, netcon));
+    }
+
+    private TransformationNetwork makeNetwork(NetworkNode []netnod, NetworkConnection []netcon) throws ShamanException
+    {
+        TransformationNetwork net;
+
+        net = new TransformationNetwork();
+        net.grow(1, 1);
+        net.populate(netnod, netcon);
+
+        return(net);
+    }
+
+    private void connect(VectorSource vsrc, TransformationNetwork net, Block block) throws ShamanException
+    {
+        net.registerSupplier(0, vsrc, 0);
+        vsrc.registerConsumer(0, net, 0);
+        net.registerConsumer(0, block, 0);
+        block.setCollect(true);
+        vsrc.setDataModel(TestUtils.makeNumberDataModel(SIZE, true));
+        vsrc.setFit(VectorSource.FIT_NONE);
+        vsrc.init();
+        net.init();
+        block.init();
+    }
+
+    private DoubleMatrix1D makeVector(int i)
+    {
+        DoubleMatrix1D vec;
+
+        vec = DoubleFactory1D.dense.make(SIZE);
+        vec.assign(i*0.001);
+        vec.setQuick(SIZE-1, 0);
+
+        return(vec);
+    }
+
+    private long run(TransformationNetwork net, VectorSource vsrc, int num) throws ShamanException
+    {
+        long tbeg;
+        int  i;
+
+        tbeg = System.currentTimeMillis();
+        for (i=0; i<num; i++) vsrc.outputVector(makeVector(i));
+        net.flush();
+
+        return(System.currentTimeMillis()-tbeg);
+    }
+
+    // **********************************************************\
+    // *                    Pipelined Chain                     *
+    // **********************************************************/
+    public void testChain() throws ShamanException
+    {
+        TransformationNetwork net;
+        VectorSource          vsrc;
+        Block                 block;
+        List                  out;
+        Iterator              itout;
+        DoubleMatrix1D        vec;
+        int                   i;
+
+        // Four stages with a small queue so the producer has to wait now and then.
+        net   = makeChain(4, 10);
+        vsrc  = new VectorSource();
+        block = new Block();
+        net.setPipelined(true);
+        net.setPipelineQueueSize(4);
+        connect(vsrc, net, block);
+        assertNotNull(net.getPipeline());
+        assertEquals(5, net.getPipeline().getNumberOfStages());
+
+        run(net, vsrc, 500);
+        out = block.getBlockedData();
+        assertEquals(500, out.size());
+
+        // Same order as the input. Passed all 4 stages.
+        itout = out.iterator();
+        for (i=0; i<500; i++)
+        {
+            vec = (DoubleMatrix1D)itout.next();
+            assertEquals(i*0.001, vec.getQuick(0), 1e-9);
+            assertEquals(4, vec.getQuick(SIZE-1), 0);
+        }
+
+        // Stopping makes the network synchronous again.
+        net.cleanUp();
+        assertNull(net.getPipeline());
+        block.clearBlockedData();
+        vsrc.outputVector(makeVector(1));
+        assertEquals(1, block.getBlockedData().size());
+    }
+
+    public void testFusedStages() throws ShamanException
+    {
+        TransformationNetwork net;
+        VectorSource          vsrc;
+        Block                 block;
+
+        net   = makeChain(4, 1);
+        vsrc  = new VectorSource();
+        block = new Block();
+        net.setPipelined(true);
+        net.setPipelineStages(new int[]{0, 0, 1, 1});
+        connect(vsrc, net, block);
+        assertEquals(3, net.getPipeline().getNumberOfStages());
+
+        run(net, vsrc, 100);
+        assertEquals(100, block.getBlockedData().size());
+        assertEquals(4, ((DoubleMatrix1D)block.getBlockedData().get(99)).getQuick(SIZE-1), 0);
+        net.cleanUp();
+    }
+
+    // **********************************************************\
+    // *      Branches of Different Speed into a 2-Port Join    *
+    // **********************************************************/
+    public void testBranches() throws ShamanException
+    {
+        NetworkNode []netnod = new NetworkNode[]
+        {
+            new NetworkNode("Slow",  "org.shaman.dataflow.PipelineTest$Spin", new int[]{200}, "Slow Branch", 0),
+            new NetworkNode("Fast",  "org.shaman.dataflow.PipelineTest$Spin", new int[]{1},   "Fast Branch", 1),
+            new NetworkNode("Pair",  "org.shaman.dataflow.PipelineTest$Pair", "Pair Branches", 2)
+        };
+        NetworkConnection []netcon = new NetworkConnection[]
+        {
+            new NetworkConnection(null,    0, "Slow",  0),
+            new NetworkConnection(null,    0, "Fast",  0),
+            new NetworkConnection("Slow",  0, "Pair",  0),
+            new NetworkConnection("Fast",  0, "Pair",  1),
+            new NetworkConnection("Pair",  0, null,    0)
+        };
+        TransformationNetwork net;
+        VectorSource          vsrc;
+        Block                 block;
+        DoubleMatrix1D        vec;
+        Iterator              itout;
+        int                   i;
+
+        net   = makeNetwork(netnod, netcon);
+        vsrc  = new VectorSource();
+        block = new Block();
+        net.setPipelined(true);
+        connect(vsrc, net, block);
+
+        run(net, vsrc, 200);
+        assertEquals(200, block.getBlockedData().size());
+
+        // The fast branch gets ahead but the paired vectors still belong together.
+        itout = block.getBlockedData().iterator();
+        for (i=0; i<200; i++)
+        {
+            vec = (DoubleMatrix1D)itout.next();
+            assertEquals(i*0.001, vec.getQuick(0), 1e-9);
+            assertEquals(i*0.001, vec.getQuick(1), 1e-9);
+        }
+        net.cleanUp();
+    }
+
+    // **********************************************************\
+    // *          Flush while an Input Port is Occupied         *
+    // **********************************************************/
+    public void testFlushBlockedPort() throws Exception
+    {
+        NetworkNode []netnod = new NetworkNode[]
+        {
+            new NetworkNode("Pair",  "org.shaman.dataflow.PipelineTest$Pair", "Pair Inputs", 0)
+        };
+        NetworkConnection []netcon = new NetworkConnection[]
+        {
+            new NetworkConnection(null,    0, "Pair",  0),
+            new NetworkConnection(null,    1, "Pair",  1),
+            new NetworkConnection("Pair",  0, null,    0)
+        };
+        final TransformationNetwork net;
+        VectorSource                vsrc0, vsrc1;
+        Block                       block;
+        Thread                      flusher;
+        DoubleMatrix1D              vec;
+
+        net = new TransformationNetwork();
+        net.grow(2, 1);
+        net.populate(netnod, netcon);
+        net.setPipelined(true);
+        vsrc0 = new VectorSource();
+        vsrc1 = new VectorSource();
+        block = new Block();
+        net.registerSupplier(0, vsrc0, 0);
+        net.registerSupplier(1, vsrc1, 0);
+        vsrc0.registerConsumer(0, net, 0);
+        vsrc1.registerConsumer(0, net, 1);
+        net.registerConsumer(0, block, 0);
+        block.setCollect(true);
+        vsrc0.setDataModel(TestUtils.makeNumberDataModel(SIZE, true));
+        vsrc1.setDataModel(TestUtils.makeNumberDataModel(SIZE, true));
+        vsrc0.setFit(VectorSource.FIT_NONE);
+        vsrc1.setFit(VectorSource.FIT_NONE);
+        vsrc0.init();
+        vsrc1.init();
+        net.init();
+        block.init();
+
+        // The second vector on port 1 waits until the first one is paired.
+        vsrc1.outputVector(makeVector(1));
+        vsrc1.outputVector(makeVector(2));
+        flusher = new Thread()
+        {
+            public void run()
+            {
+                try { net.flush(); } catch(DataFlowException ex) { }
+            }
+        };
+        flusher.start();
+        flusher.join(500);
+        assertTrue("Flush returned while data was waiting for an input port.", flusher.isAlive());
+
+        // Pairing both lets the flush finish.
+        vsrc0.outputVector(makeVector(1));
+        vsrc0.outputVector(makeVector(2));
+        flusher.join();
+        net.flush();
+        assertEquals(2, block.getBlockedData().size());
+        vec = (DoubleMatrix1D)block.getBlockedData().get(1);
+        assertEquals(0.002, vec.getQuick(0), 1e-9);
+        assertEquals(0.002, vec.getQuick(1), 1e-9);
+        net.cleanUp();
+    }
+
+    // **********************************************************\
+    // *                    Failure Handling                    *
+    // **********************************************************/
+    public void testFailure() throws ShamanException
+    {
+        TransformationNetwork net;
+        VectorSource          vsrc;
+        Block                 block;
+
+        net   = makeChain(2, 1);
+        vsrc  = new VectorSource();
+        block = new Block();
+        net.setPipelined(true);
+        connect(vsrc, net, block);
+
+        vsrc.outputVector(makeVector(1));
+        vsrc.outputVector(makeVector(-1));
+        try
+        {
+            net.flush();
+            fail("Failure in a pipeline stage was not reported.");
+        }
+        catch(DataFlowException ex) {}
+        try
+        {
+            net.cleanUp();
+            fail("Failure in a pipeline stage was not reported at cleanup.");
+        }
+        catch(DataFlowException ex) {}
+        assertNull(net.getPipeline());
+    }
+
+    // **********************************************************\
+    // *         Throughput: Synchronous versus Pipelined       *
+    // **********************************************************/
+    public void testThroughput() throws ShamanException
+    {
+        TransformationNetwork net;
+        VectorSource          vsrc;
+        Block                 block;
+        long                  tsync, tpipe;
+        int                   numstage, num;
+
+        numstage = 4;
+        num      = 2000;
+
+        net   = makeChain(numstage, 100);
+        vsrc  = new VectorSource();
+        block = new Block();
+        connect(vsrc, net, block);
+        run(net, vsrc, num/10);
+        block.clearBlockedData();
+        tsync = run(net, vsrc, num);
+        assertEquals(num, block.getBlockedData().size());
+        net.cleanUp();
+
+        net   = makeChain(numstage, 100);
+        vsrc  = new VectorSource();
+        block = new Block();
+        net.setPipelined(true);
+        connect(vsrc, net, block);
+        run(net, vsrc, num/10);
+        block.clearBlockedData();
+        tpipe = run(net, vsrc, num);
+        assertEquals(num, block.getBlockedData().size());
+        net.cleanUp();
+
+        System.out.println("Network of "+numstage+" stages, "+num+" vectors. Synchronous "+tsync+" ms. Pipelined "+tpipe+" ms. "+
+                           Runtime.getRuntime().availableProcessors()+" processors.");
+    }
+
+    // **********************************************************\
+    // *                JUnit Setup and Teardown                *
+    // **********************************************************/
+    public PipelineTest(String name)
+    {
+        super(name);
+    }
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+    }
+}
@@ -0,0 +1,295 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.learning;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.shaman.dataflow.ArffReader;
+import org.shaman.dataflow.ArffSource;
+import org.shaman.dataflow.Block;
+import org.shaman.dataflow.VectorBatch;
+import org.shaman.datamodel.Attribute;
+import org.shaman.datamodel.DataModelDouble;
+import org.shaman.exceptions.LearnerException;
+import org.shaman.exceptions.ShamanException;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import junit.framework.TestCase;
+import cern.colt.matrix.DoubleFactory1D;
+import cern.colt.matrix.DoubleMatrix1D;
+
+
+/**
+ * <h2>ARFF Loader and Source Test Case</h2>
+ */
+public class ArffLoaderTest extends TestCase
+{
+    private static final String IRIS = "./src/main/resources/data/iris.arff";
+
+    // Rows in the generated benchmark file
+    private static final int BENCHMARK_ROWS = 100000;
+
+    private File tmpFile;
+
+    // **********************************************************\
+    // *                Load Iris like Weka does                *
+    // **********************************************************/
+    public void testIris() throws Exception
+    {
+        InstanceSetMemory im;
+        DataModelDouble   dm;
+        Instances         wins;
+
+        im   = new ArffLoader().loadARFF(new File(IRIS));
+        wins = new DataSource(IRIS).getDataSet();
+        wins.setClassIndex(wins.numAttributes()-1);
+
+        dm = (DataModelDouble)im.getDataModel();
+        assertEquals("iris", dm.getName());
+        assertEquals(5, dm.getAttributeCount());
+        assertEquals(4, dm.getNumberOfActiveAttributes());
+        assertEquals(4, dm.getLearningProperty().getGoalIndex());
+        assertTrue(dm.getAttribute(0).hasProperty(Attribute.PROPERTY_CONTINUOUS));
+        assertTrue(dm.getAttribute(4).hasProperty(Attribute.PROPERTY_CATEGORICAL));
+        assertEquals(3, dm.getAttributeDouble(4).getNumberOfGoalClasses());
+
+        assertSameAsWeka(im, wins);
+    }
+
+    private void assertSameAsWeka(InstanceSetMemory im, Instances wins) throws ShamanException
+    {
+        DoubleMatrix1D ins;
+        Instance       wnow;
+        int            i,j;
+
+        assertEquals(wins.numInstances(), im.getNumberOfInstances());
+        for (i=0; i<wins.numInstances(); i++)
+        {
+            wnow = wins.instance(i);
+            ins  = im.getInstance(i);
+            for (j=0; j<ins.size(); j++) assertEquals(wnow.value(j), ins.getQuick(j), 0);
+            assertEquals(wnow.classValue(), im.getGoal(i), 0);
+            assertEquals((int)wnow.classValue(), im.getGoalClass(i));
+            assertEquals(wnow.weight(), im.getWeight(i), 0);
+        }
+    }
+
+    // **********************************************************\
+    // *     Sparse Rows, Quotes, Missing Values, Weights       *
+    // **********************************************************/
+    public void testSparseAndSpecialValues() throws Exception
+    {
+        ArffReader reader;
+        double   []row;
+
+        write(new String[]
+        {
+            "% Comment",
+            "@relation 'special test'",
+            "@attribute x numeric",
+            "@attribute 'the y' real",
+            "@attribute z {a, 'b c', 'it\\'s'}",
+            "@attribute goal {no,yes}",
+            "",
+            "@data",
+            "1.5, -2e3, a, yes",
+            "% Comment between the rows",
+            "?,0.000001,'b c',no,{0.5}",
+            "{1 7, 2 'it\\'s'}",
+            "{0 3,3 yes},{2}",
+            "1e-300,123456789012345678901,'a',no"
+        });
+
+        reader = new ArffReader(this.tmpFile);
+        reader.open();
+        assertEquals("special test", reader.getRelation());
+        assertEquals("the y", reader.getDataModel().getAttribute(1).getName());
+        assertEquals("it's",  reader.getNominalValues(2)[2]);
+        assertNull(reader.getNominalValues(0));
+        row = new double[4];
+
+        assertTrue(reader.readRow(row));
+        assertRow(new double[]{1.5, -2000, 0, 1}, row);
+        assertEquals(1.0, reader.getWeight(), 0);
+
+        assertTrue(reader.readRow(row));
+        assertTrue(Double.isNaN(row[0]));
+        assertEquals(0.000001, row[1], 0);
+        assertEquals(1, row[2], 0);
+        assertEquals(0, row[3], 0);
+        assertEquals(0.5, reader.getWeight(), 0);
+
+        assertTrue(reader.readRow(row));
+        assertRow(new double[]{0, 7, 2, 0}, row);
+
+        assertTrue(reader.readRow(row));
+        assertRow(new double[]{3, 0, 0, 1}, row);
+        assertEquals(2.0, reader.getWeight(), 0);
+
+        assertTrue(reader.readRow(row));
+        assertRow(new double[]{1e-300, 123456789012345678901.0, 0, 0}, row);
+
+        assertFalse(reader.readRow(row));
+        reader.close();
+    }
+
+    public void testErrors() throws Exception
+    {
+        write(new String[]{"@relation r", "@attribute x numeric", "@attribute c {a,b}", "@data", "1,a", "2,q"});
+        try
+        {
+            new ArffLoader().loadARFF(this.tmpFile);
+            fail("Unknown nominal value not reported.");
+        }
+        catch(LearnerException ex) { assertTrue(ex.getMessage().indexOf("line 6") != -1); }
+
+        write(new String[]{"@relation r", "@attribute s string", "@data"});
+        try
+        {
+            new ArffLoader().loadARFF(this.tmpFile);
+            fail("Unsupported attribute type not reported.");
+        }
+        catch(LearnerException ex) { }
+    }
+
+    private void assertRow(double []exp, double []row)
+    {
+        for (int i=0; i<exp.length; i++) assertEquals(exp[i], row[i], 0);
+    }
+
+    // **********************************************************\
+    // *               Streaming into a Network                 *
+    // **********************************************************/
+    public void testSource() throws ShamanException
+    {
+        ArffSource asrc;
+        Block      block;
+        List       out;
+        int        num;
+
+        asrc  = new ArffSource();
+        block = new Block();
+        asrc.registerConsumer(0, block, 0);
+        block.registerSupplier(0, asrc, 0);
+        block.setCollect(true);
+        asrc.setFile(new File(IRIS));
+        asrc.init();
+        block.init();
+
+        // Vector per vector.
+        num = 0;
+        while (asrc.push()) num++;
+        out = block.getBlockedData();
+        assertEquals(150, num);
+        assertEquals(150, out.size());
+        assertEquals(5.1, ((DoubleMatrix1D)out.get(0)).getQuick(0), 0);
+        assertEquals(2,   ((DoubleMatrix1D)out.get(149)).getQuick(4), 0);
+
+        // Start again. Now in blocks of 64 rows.
+        asrc.init();
+        block.clearBlockedData();
+        num = 0;
+        while (asrc.pushBatch(64)) num++;
+        out = block.getBlockedData();
+        assertEquals(3, num);
+        assertEquals(64, ((VectorBatch)out.get(0)).getRows());
+        assertEquals(22, ((VectorBatch)out.get(2)).getRows());
+        assertEquals(5.1, ((VectorBatch)out.get(0)).get(0, 0), 0);
+        asrc.cleanUp();
+    }
+
+    // **********************************************************\
+    // *                  Benchmark against Weka                *
+    // **********************************************************/
+    public void testBenchmark() throws Exception
+    {
+        Random            rnd;
+        BufferedWriter    bout;
+        InstanceSetMemory im;
+        Instances         wins;
+        DoubleMatrix1D  []ins;
+        double          []goal;
+        long              tbeg, tweka, tshaman;
+        int               i,j;
+
+        // Make a file with 10 numeric attributes and a nominal goal.
+        rnd  = new Random(17);
+        bout = new BufferedWriter(new FileWriter(this.tmpFile));
+        bout.write("@relation bench\n");
+        for (i=0; i<10; i++) bout.write("@attribute a"+i+" numeric\n");
+        bout.write("@attribute class {c0,c1,c2}\n@data\n");
+        for (i=0; i<BENCHMARK_ROWS; i++)
+        {
+            for (j=0; j<10; j++) { bout.write(Float.toString(rnd.nextFloat()*100)); bout.write(','); }
+            bout.write("c"+rnd.nextInt(3)+"\n");
+        }
+        bout.close();
+
+        // Weka then copy into double vectors.
+        tbeg   = System.currentTimeMillis();
+        wins   = new DataSource(this.tmpFile.getPath()).getDataSet();
+        wins.setClassIndex(wins.numAttributes()-1);
+        ins    = new DoubleMatrix1D[wins.numInstances()];
+        goal   = new double[wins.numInstances()];
+        for (i=0; i<ins.length; i++)
+        {
+            ins[i]  = DoubleFactory1D.dense.make(10);
+            for (j=0; j<10; j++) ins[i].setQuick(j, wins.instance(i).value(j));
+            goal[i] = wins.instance(i).classValue();
+        }
+        tweka = System.currentTimeMillis()-tbeg;
+
+        tbeg    = System.currentTimeMillis();
+        im      = new ArffLoader().loadARFF(this.tmpFile);
+        tshaman = System.currentTimeMillis()-tbeg;
+
+        assertSameAsWeka(im, wins);
+        System.out.println("ARFF file of "+(this.tmpFile.length()/1024)+" KB. Weka + copy "+tweka+" ms. ArffLoader "+tshaman+" ms.");
+    }
+
+    // **********************************************************\
+    // *                JUnit Setup and Teardown                *
+    // **********************************************************/
+    private void write(String []lines) throws IOException
+    {
+        BufferedWriter bout;
+
+        bout = new BufferedWriter(new FileWriter(this.tmpFile));
+        for (int i=0; i<lines.length; i++) { bout.write(lines[i]); if (i < lines.length-1) bout.write("\n"); }
+        bout.close();
+    }
+
+    public ArffLoaderTest(String name)
+    {
+        super(name);
+    }
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        this.tmpFile = File.createTempFile("arfftest", ".arff");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        this.tmpFile.delete();
+        super.tearDown();
+    }
+}
@@ -0,0 +1,140 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.learning;
+
+import org.shaman.exceptions.ShamanException;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Test of the sampling of the BatchPresenter
+ */
+public class InstanceBatchTest extends TestCase
+{
+    private InstanceSetMemory im;
+
+    // **********************************************************\
+    // *                      Sub-Sampling                      *
+    // **********************************************************/
+    public void testSubSample() throws ShamanException
+    {
+        InstanceBatch ib;
+        boolean     []seen;
+        int           i, batch, numins;
+
+        numins = this.im.getNumberOfInstances();
+        ib     = new InstanceBatch();
+        ib.create(this.im, BatchPresenter.BATCH_REORDER, BatchPresenter.GOAL_BALANCE_NONE, 0.3);
+        ib.setRandomSeed(1);
+        for (batch=0; batch<20; batch++)
+        {
+            // Every batch has different instances.
+            ib.nextBatch();
+            assertEquals((int)(0.3*numins), ib.getNumberOfInstances());
+            seen = new boolean[numins];
+            for (i=0; i<ib.getNumberOfInstances(); i++)
+            {
+                assertFalse(seen[ib.getIndex(i)]);
+                seen[ib.getIndex(i)] = true;
+            }
+        }
+
+        // All instances in a new order every batch.
+        ib.setSampleFraction(1.0);
+        ib.nextBatch();
+        seen = new boolean[numins];
+        for (i=0; i<numins; i++) seen[ib.getIndex(i)] = true;
+        for (i=0; i<numins; i++) assertTrue(seen[i]);
+    }
+
+    public void testSeed() throws ShamanException
+    {
+        InstanceBatch ib1, ib2;
+        int           i;
+
+        ib1 = new InstanceBatch();
+        ib1.create(this.im, BatchPresenter.BATCH_REORDER, BatchPresenter.GOAL_BALANCE_CLASS, 0.5);
+        ib1.setRandomSeed(42);
+        ib2 = new InstanceBatch();
+        ib2.create(this.im, BatchPresenter.BATCH_REORDER, BatchPresenter.GOAL_BALANCE_CLASS, 0.5);
+        ib2.setRandomSeed(42);
+        ib1.nextBatch(); ib1.nextBatch();
+        ib2.nextBatch(); ib2.nextBatch();
+        for (i=0; i<ib1.getNumberOfInstances(); i++) assertEquals(ib1.getIndex(i), ib2.getIndex(i));
+    }
+
+    // **********************************************************\
+    // *                     Goal Balancing                     *
+    // **********************************************************/
+    public void testBalanceClass() throws ShamanException
+    {
+        InstanceBatch ib;
+        int         []count, drawn;
+        int           i, gc, numins;
+
+        // The cancer data has about twice as many benign as malign cases.
+        numins = this.im.getNumberOfInstances();
+        ib     = new InstanceBatch();
+        ib.create(this.im, BatchPresenter.BATCH_REORDER, BatchPresenter.GOAL_BALANCE_CLASS, 0.5);
+        ib.setRandomSeed(3);
+        ib.nextBatch();
+
+        count = new int[2];
+        for (i=0; i<ib.getNumberOfInstances(); i++) count[ib.getGoalClass(i)]++;
+        assertEquals(ib.getNumberOfInstances(), count[0]+count[1]);
+        assertTrue(Math.abs(count[0]-count[1]) <= 1);
+
+        // The smallest class is drawn again only after all its instances were drawn.
+        gc = (count(0) < count(1)) ? 0 : 1;
+        drawn = new int[numins];
+        for (i=0; i<ib.getNumberOfInstances(); i++) if (ib.getGoalClass(i) == gc) drawn[ib.getIndex(i)]++;
+        for (i=0; i<numins; i++) assertTrue(drawn[i] <= 1);
+    }
+
+    private int count(int gc) throws ShamanException
+    {
+        int i, num;
+
+        num = 0;
+        for (i=0; i<this.im.getNumberOfInstances(); i++) if (this.im.getGoalClass(i) == gc) num++;
+
+        return(num);
+    }
+
+    // **********************************************************\
+    // *               Unit Test Setup/Teardown                 *
+    // **********************************************************/
+    protected void setUp() throws Exception
+    {
+        MemorySupplier ms;
+
+        super.setUp();
+
+        // Wisconsin Breast Cancer data-set
+        ms      = new MemorySupplier();
+        this.im = new InstanceSetMemory();
+        ms.registerConsumer(0, this.im, 0);
+        TestSets.loadCancer(ms, false, true);
+        this.im.create(ms);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+    }
+
+    public InstanceBatchTest(String name)
+    {
+        super(name);
+    }
+}
@@ -0,0 +1,205 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.learning;
+
+import org.shaman.bayes.NaiveBayes;
+import org.shaman.clustering.KMeans;
+import org.shaman.exceptions.ShamanException;
+import org.shaman.rule.DecisionTree;
+import org.shaman.rule.RandomForestClassifier;
+
+import junit.framework.TestCase;
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
+
+
+/**
+ * Test of the Columnar CachingPresenter
+ */
+public class InstanceSetColumnarTest extends TestCase
+{
+    private MemorySupplier    ms;
+    private InstanceSetMemory im;
+
+    // **********************************************************\
+    // *               Views, Layout and Reordering             *
+    // **********************************************************/
+    public void testViews() throws ShamanException
+    {
+        checkViews(new InstanceSetColumnar(InstanceSetColumnar.LAYOUT_COLUMN_MAJOR));
+        checkViews(new InstanceSetColumnar(InstanceSetColumnar.LAYOUT_ROW_MAJOR));
+    }
+
+    private void checkViews(InstanceSetColumnar ic) throws ShamanException
+    {
+        DoubleMatrix1D vm, vc;
+        double       []col;
+        int            i,j;
+
+        ic.create(this.im);
+        assertEquals(this.im.getNumberOfInstances(), ic.getNumberOfInstances());
+        for (i=0; i<ic.getNumberOfInstances(); i++)
+        {
+            vm = this.im.getInstance(i);
+            vc = ic.getInstance(i);
+            assertEquals(vm.size(), vc.size());
+            for (j=0; j<vm.size(); j++)
+            {
+                assertEquals(vm.getQuick(j), vc.getQuick(j), 0);
+                assertEquals(vm.getQuick(j), ic.getValue(i, j), 0);
+            }
+            assertEquals(vm.zDotProduct(vm), vc.zDotProduct(vc), 0);
+            assertEquals(this.im.getGoalClass(i), ic.getGoalClass(i));
+        }
+        col = ic.getColumn(2, null);
+        for (i=0; i<col.length; i++) assertEquals(this.im.getInstance(i).getQuick(2), col[i], 0);
+
+        // Views write in the store.
+        ic.getInstance(3).setQuick(1, -7);
+        assertEquals(-7, ic.getValue(3, 1), 0);
+    }
+
+    public void testReorderAndClone() throws Exception
+    {
+        InstanceSetColumnar ic, icl;
+        DoubleMatrix1D      vec;
+        int                 i;
+
+        ic = new InstanceSetColumnar();
+        ic.create(this.im);
+        icl = (InstanceSetColumnar)ic.clone();
+
+        // Reverse the first 10 instances of the clone.
+        icl.reorder(new int[]{9,8,7,6,5,4,3,2,1,0});
+        assertEquals(10, icl.getNumberOfInstances());
+        assertEquals(this.im.getNumberOfInstances(), ic.getNumberOfInstances());
+        for (i=0; i<10; i++)
+        {
+            assertEquals(ic.getValue(9-i, 0), icl.getValue(i, 0), 0);
+            assertEquals(ic.getGoal(9-i), icl.getGoal(i), 0);
+        }
+
+        // Changing an instance of the clone leaves the original alone.
+        vec = icl.getInstance(0).copy();
+        vec.assign(42);
+        icl.setInstance(0, vec);
+        assertEquals(42, icl.getValue(0, 0), 0);
+        assertTrue(ic.getValue(9, 0) != 42);
+
+        // Compacted store gives the same instances.
+        icl.compact();
+        assertEquals(42, icl.getValue(0, 3), 0);
+        assertEquals(ic.getValue(8, 2), icl.getValue(1, 2), 0);
+    }
+
+    // **********************************************************\
+    // *          Learners give the same Models as before       *
+    // **********************************************************/
+    public void testLearners() throws ShamanException
+    {
+        InstanceSetColumnar    ic;
+        NaiveBayes             nbm, nbc;
+        DecisionTree           dtm, dtc;
+        KMeans                 kmm, kmc;
+
+        ic = new InstanceSetColumnar();
+        ic.create(this.im);
+
+        nbm = new NaiveBayes(); nbc = new NaiveBayes();
+        train(nbm, this.im); train(nbc, ic);
+        assertSameClassification(nbm, nbc);
+
+        dtm = new DecisionTree(); dtc = new DecisionTree();
+        train(dtm, this.im); train(dtc, ic);
+        assertSameClassification(dtm, dtc);
+
+        kmm = new KMeans(); kmc = new KMeans();
+        kmm.setK(2); kmc.setK(2);
+        Uniform.staticSetRandomEngine(new MersenneTwister(11));
+        train(kmm, this.im);
+        Uniform.staticSetRandomEngine(new MersenneTwister(11));
+        train(kmc, ic);
+        assertSameClassification(kmm, kmc);
+    }
+
+    public void testRandomForest() throws ShamanException
+    {
+        InstanceSetColumnar    ic;
+        RandomForestClassifier rfm, rfc;
+
+        // Iris. The Random Forest wants the inactive goal attribute after the active ones.
+        this.ms = new MemorySupplier();
+        this.im = new InstanceSetMemory();
+        TestSets.loadIris(this.ms);
+        this.im.create(this.ms);
+        ic = new InstanceSetColumnar();
+        ic.create(this.im);
+
+        rfm = new RandomForestClassifier(); rfc = new RandomForestClassifier();
+        rfm.setNumberOfTrees(5);   rfc.setNumberOfTrees(5);
+        rfm.setRandomSeed(3);      rfc.setRandomSeed(3);
+        rfm.setTrainFraction(0.7); rfc.setTrainFraction(0.7);
+        rfm.setMinObjects(2);      rfc.setMinObjects(2);
+        rfm.setMaxDepth(10);       rfc.setMaxDepth(10);
+        train(rfm, this.im); train(rfc, ic);
+        assertSameClassification(rfm, rfc);
+        assertEquals(rfm.getOutOfBagError(), rfc.getOutOfBagError(), 0);
+    }
+
+    private void train(ClassifierTransformation ct, Presenter data) throws ShamanException
+    {
+        ct.registerSupplier(0, this.ms, 0);
+        this.ms.registerConsumer(0, ct, 0);
+        ct.setClassifierOutput(Classifier.OUT_CLASS_AND_CONFIDENCE);
+        ct.init();
+        ct.trainTransformation(data);
+    }
+
+    private void assertSameClassification(Classifier cm, Classifier cc) throws ShamanException
+    {
+        double []confm, confc;
+        int      i,j;
+
+        confm = new double[3];
+        confc = new double[3];
+        for (i=0; i<this.im.getNumberOfInstances(); i++)
+        {
+            assertEquals(cm.classify(this.im.getInstance(i), confm), cc.classify(this.im.getInstance(i), confc));
+            for (j=0; j<confm.length; j++) assertEquals(confm[j], confc[j], 0);
+        }
+    }
+
+    // **********************************************************\
+    // *                JUnit Setup and Teardown                *
+    // **********************************************************/
+    public InstanceSetColumnarTest(String name)
+    {
+        super(name);
+    }
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        // Wisconsin Breast Cancer data-set. Categorical primitive attributes.
+        this.ms = new MemorySupplier();
+        this.im = new InstanceSetMemory();
+        TestSets.loadCancer(this.ms, false, true);
+        this.im.create(this.ms);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+    }
+}
@@ -0,0 +1,197 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.learning;
+
+import java.io.File;
+
+import org.shaman.bayes.NaiveBayes;
+import org.shaman.dataflow.ArffSource;
+import org.shaman.datamodel.Attribute;
+import org.shaman.datamodel.DataModel;
+import org.shaman.exceptions.ShamanException;
+
+import junit.framework.TestCase;
+import cern.colt.matrix.DoubleMatrix1D;
+
+
+/**
+ * Test of the Memory-Mapped Instance File
+ */
+public class InstanceSetMappedTest extends TestCase
+{
+    private static final String IRIS = "./src/main/resources/data/iris.arff";
+
+    private MemorySupplier    ms;
+    private InstanceSetMemory im;
+    private File              tmpFile;
+
+    // **********************************************************\
+    // *           Write, Map and Compare the Instances         *
+    // **********************************************************/
+    public void testDouble() throws ShamanException
+    {
+        InstanceSetMapped imap;
+
+        imap = writeAndMap(InstanceFileWriter.PRECISION_DOUBLE);
+        assertSameInstances(imap, 0);
+        assertSameDataModel(this.im.getDataModel(), imap.getDataModel());
+    }
+
+    public void testFloat() throws ShamanException
+    {
+        InstanceSetMapped imap;
+
+        imap = writeAndMap(InstanceFileWriter.PRECISION_FLOAT);
+        assertSameInstances(imap, 1e-6);
+    }
+
+    public void testReorderAndClone() throws Exception
+    {
+        InstanceSetMapped imap, icl;
+        double          []buf;
+        int               i;
+
+        imap = writeAndMap(InstanceFileWriter.PRECISION_DOUBLE);
+        icl  = (InstanceSetMapped)imap.clone();
+        icl.reorder(new int[]{9,8,7,6,5,4,3,2,1,0});
+        assertEquals(10, icl.getNumberOfInstances());
+        assertEquals(this.im.getNumberOfInstances(), imap.getNumberOfInstances());
+
+        buf = new double[icl.getNumberOfAttributes()];
+        for (i=0; i<10; i++)
+        {
+            icl.readInstance(i, buf);
+            assertEquals(this.im.getInstance(9-i).getQuick(0), buf[0], 0);
+            assertEquals(this.im.getGoal(9-i), icl.getGoal(i), 0);
+        }
+
+        // Weights of the clone are its own.
+        icl.setWeight(0, 3);
+        assertEquals(this.im.getWeight(9), imap.getWeight(9), 0);
+    }
+
+    private InstanceSetMapped writeAndMap(int precision) throws ShamanException
+    {
+        InstanceFileWriter writer;
+        int                i;
+
+        writer = new InstanceFileWriter(this.tmpFile, this.im.getDataModel(), precision);
+        for (i=0; i<this.im.getNumberOfInstances(); i++)
+            writer.write(this.im.getInstance(i), this.im.getGoal(i), this.im.getWeight(i));
+        writer.close();
+
+        return(new InstanceSetMapped(this.tmpFile));
+    }
+
+    private void assertSameInstances(InstanceSetMapped imap, double eps) throws ShamanException
+    {
+        DoubleMatrix1D vm, vmap;
+        int            i,j;
+
+        assertEquals(this.im.getNumberOfInstances(), imap.getNumberOfInstances());
+        for (i=0; i<imap.getNumberOfInstances(); i++)
+        {
+            vm   = this.im.getInstance(i);
+            vmap = imap.getInstance(i);
+            assertEquals(vm.size(), vmap.size());
+            for (j=0; j<vm.size(); j++)
+            {
+                assertEquals(vm.getQuick(j), vmap.getQuick(j), eps);
+                assertEquals(vm.getQuick(j), imap.getValue(i, j), eps);
+            }
+            assertEquals(this.im.getGoal(i),      imap.getGoal(i), 0);
+            assertEquals(this.im.getGoalClass(i), imap.getGoalClass(i));
+            assertEquals(this.im.getWeight(i),    imap.getWeight(i), 0);
+        }
+    }
+
+    private void assertSameDataModel(DataModel dm, DataModel dmap)
+    {
+        Attribute att, attmap;
+        int       i;
+
+        assertEquals(dm.getAttributeCount(), dmap.getAttributeCount());
+        assertEquals(dm.getNumberOfActiveAttributes(), dmap.getNumberOfActiveAttributes());
+        assertEquals(dm.getLearningProperty().getGoalIndex(), dmap.getLearningProperty().getGoalIndex());
+        for (i=0; i<dm.getAttributeCount(); i++)
+        {
+            att    = dm.getAttribute(i);
+            attmap = dmap.getAttribute(i);
+            assertEquals(att.getName(),     attmap.getName());
+            assertEquals(att.getIsActive(), attmap.getIsActive());
+            assertEquals(att.getGoalType(), attmap.getGoalType());
+        }
+    }
+
+    // **********************************************************\
+    // *        Convert a Source and Learn from the File        *
+    // **********************************************************/
+    public void testConvertAndLearn() throws ShamanException
+    {
+        ArffSource           asrc;
+        InstanceSetMapped    imap;
+        NaiveBayes           nb;
+        Validation           val;
+        ValidationClassifier valclas;
+
+        asrc = new ArffSource();
+        asrc.setFile(new File(IRIS));
+        asrc.init();
+        assertEquals(150, InstanceFileSink.convert(asrc, this.tmpFile, InstanceFileWriter.PRECISION_FLOAT));
+        asrc.cleanUp();
+
+        imap = new InstanceSetMapped(this.tmpFile);
+        assertEquals(150, imap.getNumberOfInstances());
+        assertEquals(4,   imap.getNumberOfAttributes());
+        assertEquals(5.1, imap.getValue(0, 0), 1e-6);
+        assertEquals(2,   imap.getGoalClass(149));
+
+        // 10-fold cross-validation of Naive Bayes on the mapped cancer instances.
+        imap = writeAndMap(InstanceFileWriter.PRECISION_FLOAT);
+        nb   = new NaiveBayes();
+        nb.registerSupplier(0, this.ms, 0);
+        this.ms.registerConsumer(0, nb, 0);
+        nb.setClassifierOutput(Classifier.OUT_CLASS);
+        nb.init();
+        val = new Validation(imap, nb);
+        val.create(Validation.SPLIT_CROSS_VALIDATION, new double[]{10.0});
+        val.test();
+        valclas = val.getValidationClassifier();
+        assertEquals(0.05, valclas.getClassificationError(), 0.05);
+    }
+
+    // **********************************************************\
+    // *                JUnit Setup and Teardown                *
+    // **********************************************************/
+    public InstanceSetMappedTest(String name)
+    {
+        super(name);
+    }
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        // Wisconsin Breast Cancer data-set. Categorical primitive attributes.
+        this.ms = new MemorySupplier();
+        this.im = new InstanceSetMemory();
+        TestSets.loadCancer(this.ms, false, true);
+        this.im.create(this.ms);
+        this.tmpFile = File.createTempFile("instancetest", ".ins");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        this.tmpFile.delete();
+        super.tearDown();
+    }
+}
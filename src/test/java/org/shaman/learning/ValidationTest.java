@@ -0,0 +1,265 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.learning;
+
+import org.shaman.bayes.NaiveBayes;
+import org.shaman.exceptions.LearnerException;
+import org.shaman.exceptions.ShamanException;
+
+import junit.framework.TestCase;
+import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
+
+
+/**
+ * <h2>Validation Test Case</h2>
+ */
+public class ValidationTest extends TestCase
+{
+    private MemorySupplier    ms;
+    private InstanceSetMemory im;
+
+    // **********************************************************\
+    // *                  Parallel Cross-Validation             *
+    // **********************************************************/
+    public void testParallelFolds() throws ShamanException
+    {
+        Validation           val;
+        ValidationClassifier seq, par;
+        int                  i, j;
+        double           [][]cseq, cpar;
+
+        // Sequential 10-fold cross-validation.
+        val = new Validation(this.im, makeNaiveBayes());
+        val.create(Validation.SPLIT_CROSS_VALIDATION, new double[]{10.0});
+        val.test();
+        seq = val.getValidationClassifier();
+
+        // The same folds trained in parallel with a Learner per fold.
+        val.setLearnerFactory(new NaiveBayesFactory());
+        val.setNumberOfThreads(4);
+        val.test();
+        par = val.getValidationClassifier();
+
+        assertEquals(10, val.getNumberOfFoldsDone());
+        assertEquals(seq.getClassificationError(), par.getClassificationError(), 0.0);
+        cseq = seq.getConfusionMatrix();
+        cpar = par.getConfusionMatrix();
+        for (i=0; i<cseq.length; i++)
+            for (j=0; j<cseq[i].length; j++) assertEquals(cseq[i][j], cpar[i][j], 0.0);
+        for (i=0; i<this.im.getNumberOfInstances(); i++)
+            assertEquals(seq.getInstanceErrorOfClassification(i), par.getInstanceErrorOfClassification(i));
+    }
+
+    public void testParallelComparison() throws ShamanException
+    {
+        LearnerComparison comp;
+        double            err1, err2;
+
+        // Fold assignment does not depend on the number of threads.
+        Uniform.staticSetRandomEngine(new MersenneTwister(42));
+        comp = new LearnerComparison();
+        comp.init(this.im, makeNaiveBayes(), makeNaiveBayes(), 5, 4);
+        comp.testClassifiers();
+        err1 = comp.giveLearner1Error();
+        err2 = comp.giveLearner2Error();
+
+        Uniform.staticSetRandomEngine(new MersenneTwister(42));
+        comp = new LearnerComparison();
+        comp.init(this.im, makeNaiveBayes(), makeNaiveBayes(), 5, 4);
+        comp.setLearnerFactories(new NaiveBayesFactory(), new NaiveBayesFactory());
+        comp.setNumberOfThreads(4);
+        comp.testClassifiers();
+        assertEquals(err1, comp.giveLearner1Error(), 0.0);
+        assertEquals(err2, comp.giveLearner2Error(), 0.0);
+        assertEquals(5, comp.getValidation(1, 1).getNumberOfFoldsDone());
+    }
+
+    public void testFoldFailure() throws ShamanException
+    {
+        Validation val;
+
+        // An exception in a fold ends the validation.
+        val = new Validation(this.im, makeNaiveBayes());
+        val.create(Validation.SPLIT_CROSS_VALIDATION, new double[]{5.0});
+        val.setNumberOfThreads(2);
+        val.setLearnerFactory(new LearnerFactory()
+        {
+            public Learner create() throws LearnerException
+            {
+                throw new LearnerException("No learner");
+            }
+        });
+        try
+        {
+            val.test();
+            fail("Fold failure not reported");
+        }
+        catch(LearnerException ex) { assertEquals("No learner", ex.getMessage()); }
+    }
+
+    // **********************************************************\
+    // *              Streaming Classification Statistics       *
+    // **********************************************************/
+    public void testStatistics() throws ShamanException
+    {
+        ClassificationStatistics all, part1, part2, binned;
+        double                 []score;
+        boolean                []pos;
+        double                   auc, pairs;
+        int                      i, j;
+        java.util.Random         rnd;
+
+        // Scores with ties. The positives score a bit higher.
+        rnd   = new java.util.Random(7);
+        score = new double[2000];
+        pos   = new boolean[score.length];
+        for (i=0; i<score.length; i++)
+        {
+            pos[i]   = rnd.nextBoolean();
+            score[i] = Math.min(0.999, Math.round(100*(rnd.nextDouble()*0.7 + (pos[i] ? 0.3 : 0.0)))/100.0);
+        }
+
+        // Exact AUC by comparing all pairs.
+        auc = 0; pairs = 0;
+        for (i=0; i<score.length; i++)
+        {
+            for (j=0; j<score.length; j++)
+            {
+                if (pos[i] && !pos[j])
+                {
+                    if      (score[i] >  score[j]) auc += 1;
+                    else if (score[i] == score[j]) auc += 0.5;
+                    pairs++;
+                }
+            }
+        }
+        auc /= pairs;
+
+        // Half of the scores in each statistic, then merged.
+        all    = new ClassificationStatistics(2);
+        part1  = new ClassificationStatistics(2);
+        part2  = new ClassificationStatistics(2);
+        binned = new ClassificationStatistics(2, 1000);
+        for (i=0; i<score.length; i++)
+        {
+            all.add(pos[i] ? 1 : 0, score[i] > 0.5 ? 1 : 0, new double[]{1-score[i], score[i]});
+            if (i%2 == 0) part1.add(pos[i] ? 1 : 0, score[i] > 0.5 ? 1 : 0, new double[]{1-score[i], score[i]});
+            else          part2.add(pos[i] ? 1 : 0, score[i] > 0.5 ? 1 : 0, new double[]{1-score[i], score[i]});
+            binned.addScore(score[i], pos[i]);
+        }
+        part1.merge(part2);
+
+        assertEquals(auc, all.getAUC(), 1e-12);
+        assertEquals(auc, part1.getAUC(), 1e-12);
+        assertEquals(auc, binned.getAUC(), 1e-12);
+        assertEquals(all.getClassificationError(), part1.getClassificationError(), 0.0);
+        assertEquals(all.getBrierScore(), part1.getBrierScore(), 1e-12);
+        assertEquals(all.getLogLoss(), part1.getLogLoss(), 1e-12);
+        assertEquals(score.length, (int)all.getNumberOfTested());
+
+        // The ROC curve rises to 1. The gain at the top is positive.
+        double []roc = all.getROCCurve(50);
+        for (i=1; i<roc.length; i++) assertTrue(roc[i] >= roc[i-1]);
+        assertTrue(all.getGainChart(10, 0.05, 1.0)[0] > 0);
+        assertEquals(0.0, all.getGainChart(10, 1.0, 2.0)[0], 1e-12);
+    }
+
+    public void testNaNScore() throws ShamanException
+    {
+        ClassificationStatistics exact, binned;
+
+        // A NaN confidence ranks as a score of 0. Exact and binned.
+        exact  = new ClassificationStatistics(2);
+        binned = new ClassificationStatistics(2, 100);
+        exact.add(1, 1, new double[]{0.2, 0.8});
+        exact.add(0, 1, new double[]{Double.NaN, Double.NaN});
+        exact.add(0, 0, new double[]{0.9, 0.1});
+        exact.addScore(0, true);
+        binned.addScore(0.8, true);
+        binned.addScore(Double.NaN, false);
+        binned.addScore(0.1, false);
+        binned.addScore(0, true);
+        assertEquals(3, exact.getNumberOfTested());
+        assertEquals(0.625, exact.getAUC(), 1e-12);
+        assertEquals(0.625, binned.getAUC(), 1e-12);
+        assertEquals(11, exact.getROCCurve(11).length);
+        assertEquals(11, exact.getGainChart(11, 0, 1).length);
+    }
+
+    public void testValidationStatistics() throws ShamanException
+    {
+        Validation           val;
+        ValidationClassifier valclas;
+        double               err;
+        int                  i;
+
+        val = new Validation(this.im, makeNaiveBayes());
+        val.create(Validation.SPLIT_CROSS_VALIDATION, new double[]{5.0});
+        val.test();
+        valclas = val.getValidationClassifier();
+
+        // The folds together make up the whole test.
+        err = 0;
+        for (i=1; i<=5; i++) err += valclas.getStatistics(i).getNumberOfTested() - valclas.getStatistics(i).getNumberOfCorrect();
+        assertEquals(valclas.getClassificationError(), err/valclas.getStatistics().getNumberOfTested(), 1e-12);
+        assertTrue(valclas.getAUC() > 0.9);
+        assertEquals(100, valclas.getROCCurve(100).length);
+        assertEquals(ClassificationStatistics.CALIBRATION_BINS, valclas.getStatistics().getCalibration().length);
+    }
+
+    private class NaiveBayesFactory implements LearnerFactory
+    {
+        public Learner create() throws LearnerException
+        {
+            try { return(makeNaiveBayes()); }
+            catch(ShamanException ex) { throw new LearnerException(ex); }
+        }
+    }
+
+    private NaiveBayes makeNaiveBayes() throws ShamanException
+    {
+        NaiveBayes nb;
+
+        nb = new NaiveBayes();
+        nb.registerSupplier(0, this.ms, 0);
+        nb.setClassifierOutput(Classifier.OUT_CLASS_AND_CONFIDENCE);
+        nb.init();
+
+        return(nb);
+    }
+
+    // **********************************************************\
+    // *               Unit Test Setup/Teardown                 *
+    // **********************************************************/
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        // Wisconsin Breast Cancer data-set
+        this.ms = new MemorySupplier();
+        this.im = new InstanceSetMemory();
+        this.ms.registerConsumer(0, this.im, 0);
+        TestSets.loadCancer(this.ms, false, true);
+        this.im.create(this.ms);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+    }
+
+    public ValidationTest(String name)
+    {
+        super(name);
+    }
+}
@@ -26,6 +26,8 @@ import org.shaman.neural.KMER;
 import org.shaman.neural.Lattice;
 
 import junit.framework.TestCase;
+import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
 
 
 /**
@@ -129,6 +131,45 @@ public class KMERTest extends TestCase
         assertTrue(err < 0.01);
     }
     
+    public void testThreads() throws Exception
+    {
+        MemorySupplier    ms = new MemorySupplier();
+        InstanceSetMemory im = new InstanceSetMemory();
+        KMER              kmer1, kmer3;
+        double            err1, err3;
+        int               i;
+        
+        ms.registerConsumer(0, im, 0);
+        TestSets.loadImage(ms, "./src/main/resources/data/data4s.gif");
+        im.create(ms);
+        
+        // The same network trained on the same batches by 1 and 3 threads.
+        kmer1 = trainThreads(ms, im, 1);
+        kmer3 = trainThreads(ms, im, 3);
+        for (i=0; i<im.getNumberOfInstances(); i+=10)
+        {
+            err1 = kmer1.estimateError(im.getInstance(i));
+            err3 = kmer3.estimateError(im.getInstance(i));
+            assertEquals(err1, err3, 1e-9);
+        }
+    }
+    
+    private KMER trainThreads(MemorySupplier ms, InstanceSetMemory im, int threads) throws Exception
+    {
+        KMER kmer = new KMER();
+        
+        Uniform.staticSetRandomEngine(new MersenneTwister(11));
+        kmer.registerSupplier(0, ms, 0);
+        kmer.setBatchParameters(BatchPresenter.BATCH_REORDER, BatchPresenter.GOAL_BALANCE_NONE, 0.1);
+        kmer.setLatticeParameters(12, 12, 0, Lattice.NEIGHBORHOOD_GAUSSIAN, false);
+        kmer.setKMERParameters(0.001, 1.0, 50);
+        kmer.setNumberOfThreads(threads);
+        kmer.init();
+        kmer.trainTransformation(im);
+        
+        return(kmer);
+    }
+    
     // **********************************************************\
     // *                JUnit Setup and Teardown                *
     // **********************************************************/
@@ -31,6 +31,8 @@ import org.shaman.neural.Neuron;
 import org.shaman.preprocessing.Normalization;
 
 import junit.framework.TestCase;
+import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
 
 
 /**
@@ -38,6 +40,20 @@ import junit.framework.TestCase;
  */
 public class MLPTest extends TestCase
 {
+    // Weights of an MLP trained on the sine wave by the per-instance back-propagation. 5 and 3 hidden neurons, 5 epochs.
+    private static final double []ONLINE_WEIGHTS = new double[]
+    {
+        0.9747859840698093, 0.0036659106366284037, -0.0025167814016371524, 0.056566581324932315,
+        0.0068768040851256125, 8.307673178762561E-4, 0.09003520911292334, 0.0028501397406628165,
+        0.03920895422993256, -0.04543109581706696, -9.623149917231324E-4, -0.05557657495840357,
+        -0.035601433915140805, -0.04532476867709902, 0.01748427767494286, 0.20087897784589082,
+        0.044273717543083096, 0.003490752423529663, 0.008842911277838749, -0.03768587349325871,
+        -0.011958260641391787, 0.012289938842515391, -0.02920678042902284, 0.090342261457527,
+        0.0634365906058778, -0.0058801677328824825, 0.05147234221855899, 0.020853409460975112,
+        -0.047581850814196074, 0.03477333160631505, 0.0012690532025426515, -0.003775010345253137,
+        0.21740613003632747, -0.004212879350758607, -0.008692134528107427
+    };
+    
     // **********************************************************\
     // *                   Test MLP Estimation                  *
     // **********************************************************/
@@ -269,6 +285,72 @@ public class MLPTest extends TestCase
         assertTrue(err < 0.5);
     }
     
+    // **********************************************************\
+    // *         Mini-Batch Training with Worker Threads        *
+    // **********************************************************/
+    public void testMiniBatchThreads() throws Exception
+    {
+        double []w1, w3;
+        
+        // The gradients of the shards are summed in a fixed order. The number of threads does not change the network.
+        w1 = trainSine(7, 0, 20, 100, 1);
+        w3 = trainSine(7, 0, 20, 100, 3);
+        assertEquals(w1.length, w3.length);
+        for (int i=0; i<w1.length; i++) assertEquals(w1[i], w3[i], 0);
+    }
+    
+    public void testOnlineTraining() throws Exception
+    {
+        double []w;
+        
+        // Mini-batches of 1 instance adjust the weights after every instance. Exactly the same network as before.
+        w = trainSine(5, 3, 5, 1, 1);
+        assertEquals(ONLINE_WEIGHTS.length, w.length);
+        for (int i=0; i<w.length; i++) assertEquals(ONLINE_WEIGHTS[i], w[i], 0);
+    }
+    
+    private double []trainSine(int layer1Size, int layer2Size, int epochs, int miniBatchSize, int threads) throws Exception
+    {
+        MemorySupplier    ms = new MemorySupplier();
+        InstanceSetMemory im = new InstanceSetMemory();
+        MLP              mlp = new MLP();
+        MLPEstimator     mes = new MLPEstimator();
+        
+        ms.registerConsumer(0, mes, 0);
+        ms.registerConsumer(0, im, 0);
+        mes.registerSupplier(0, ms, 0);
+        TestSets.loadSine(ms, 200, 1.37);
+        
+        // Mini-batches of more than 32 instances are split over shards.
+        Uniform.staticSetRandomEngine(new MersenneTwister(7));
+        mlp.setNeuronType(Neuron.ACTIVATION_SIGMOID_TANH, new double[]{1.0});
+        mlp.setNetworkParameters(layer1Size, layer2Size, MLP.OUTPUT_REGRESSION);
+        mlp.setBatchParameters(InstanceBatch.BATCH_REORDER, InstanceBatch.GOAL_BALANCE_NONE, 1.0);
+        mlp.setBackPropagationParameters(0.08, true, 0.9, epochs);
+        mlp.setMiniBatchSize(miniBatchSize);
+        mlp.setNumberOfThreads(threads);
+        mes.setMLP(mlp);
+        im.create(ms);
+        mes.trainTransformation(im);
+        
+        NeuralNet net;
+        double  []w, wall;
+        int       i, pos;
+        
+        net = mlp.getNeuralNet();
+        pos = 0;
+        for (i=0; i<net.getNumberOfNeurons(); i++) if (net.getNeuron(i).getWeights() != null) pos += net.getNeuron(i).getWeights().length;
+        wall = new double[pos];
+        pos  = 0;
+        for (i=0; i<net.getNumberOfNeurons(); i++)
+        {
+            w = net.getNeuron(i).getWeights();
+            if (w != null) { System.arraycopy(w, 0, wall, pos, w.length); pos += w.length; }
+        }
+        
+        return(wall);
+    }
+    
     // **********************************************************\
     // *                JUnit Setup and Teardown                *
     // **********************************************************/
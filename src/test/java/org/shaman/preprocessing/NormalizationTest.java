@@ -18,6 +18,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
 import org.shaman.TestUtils;
+import org.shaman.dataflow.VectorBatch;
 import org.shaman.dataflow.VectorSource;
 import org.shaman.datamodel.DataModelDouble;
 import org.shaman.exceptions.ShamanException;
@@ -244,6 +245,39 @@ public class NormalizationTest extends TestCase
         assertStandardized(im);
     }
     
+    public void testBatch() throws ShamanException
+    {
+        MemorySupplier     ms = new MemorySupplier();
+        InstanceSetMemory  im = new InstanceSetMemory();
+        Normalization    norm = new Normalization();
+        VectorBatch        in, out;
+        DoubleMatrix1D     vin, vout;
+        int                i,j;
+        
+        ms.registerConsumer(0, norm, 0);
+        ms.registerConsumer(0, im, 0);
+        norm.registerSupplier(0, ms, 0);
+        TestSets.loadWine(ms);
+        
+        norm.setType(Normalization.TYPE_NORMALIZE);
+        norm.init();
+        im.create(ms);
+        norm.trainTransformation(im);
+        
+        // Normalize the whole data-set in one block. Should be the same as vector per vector.
+        in = new VectorBatch(ms.getDoubleInstances()[0].size(), 16);
+        for (i=0; i<ms.getDoubleInstances().length; i++) in.addRow(ms.getDoubleInstances()[i]);
+        out = norm.transformBatch(in);
+        assertEquals(in.getRows(),    out.getRows());
+        assertEquals(in.getColumns(), out.getColumns());
+        for (i=0; i<in.getRows(); i++)
+        {
+            vin  = in.getRow(i);
+            vout = (DoubleMatrix1D)norm.transform(vin)[0];
+            for (j=0; j<vout.size(); j++) assertEquals(vout.getQuick(j), out.get(i, j), 1e-12);
+        }
+    }
+    
     private void assertStandardized(InstanceSetMemory im) throws ShamanException
     {
         // Check if the standardized data-set is really 0 mean, 1 stddev.
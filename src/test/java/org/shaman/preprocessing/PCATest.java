@@ -16,6 +16,7 @@ import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
+import org.shaman.dataflow.VectorBatch;
 import org.shaman.exceptions.ShamanException;
 import org.shaman.learning.InstanceSetMemory;
 import org.shaman.learning.MemorySupplier;
@@ -25,6 +26,7 @@ import org.shaman.learning.ValidationEstimator;
 import org.shaman.preprocessing.PCA;
 
 import junit.framework.TestCase;
+import cern.colt.matrix.DoubleMatrix1D;
 
 
 public class PCATest extends TestCase
@@ -63,6 +65,39 @@ public class PCATest extends TestCase
         assertTrue(err < 12);
     }
     
+    public void testBatch() throws ShamanException
+    {
+        MemorySupplier     ms  = new MemorySupplier();
+        InstanceSetMemory  im  = new InstanceSetMemory();
+        PCA               pca  = new PCA();
+        VectorBatch        in, out;
+        DoubleMatrix1D     vout;
+        int                i,j;
+        
+        ms.registerConsumer(0, pca, 0);
+        ms.registerConsumer(0, im, 0);
+        pca.registerSupplier(0, ms, 0);
+        TestSets.loadWine(ms);
+        
+        pca.setType(PCA.TYPE_LINEAR);
+        pca.setNumberOfPC(5);
+        pca.init();
+        im.create(ms);
+        pca.trainTransformation(im);
+        
+        // Project the data-set in one block and compare with the vector per vector projection.
+        in = new VectorBatch(ms.getDoubleInstances()[0].size(), im.getNumberOfInstances());
+        for (i=0; i<ms.getDoubleInstances().length; i++) in.addRow(ms.getDoubleInstances()[i]);
+        out = pca.transformBatch(in);
+        assertEquals(in.getRows(), out.getRows());
+        for (i=0; i<in.getRows(); i++)
+        {
+            vout = (DoubleMatrix1D)pca.transform(in.getRow(i))[0];
+            assertEquals(vout.size(), out.getColumns());
+            for (j=0; j<vout.size(); j++) assertEquals(vout.getQuick(j), out.get(i, j), 1e-9);
+        }
+    }
+    
     public void testPersistence() throws Exception
     {
         MemorySupplier     ms  = new MemorySupplier();
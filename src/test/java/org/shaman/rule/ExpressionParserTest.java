@@ -12,6 +12,7 @@
 package org.shaman.rule;
 
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
 
 import junit.framework.TestCase;
@@ -19,12 +20,14 @@ import junit.framework.TestCase;
 import org.nfunk.jep.function.PostfixMathCommand;
 import org.nfunk.jep.function.PostfixMathCommandI;
 import org.shaman.TestUtils;
+import org.shaman.datamodel.DataModelDouble;
 import org.shaman.datamodel.DataModelObject;
 import org.shaman.exceptions.ShamanException;
 import org.shaman.exceptions.ConfigException;
 import org.shaman.exceptions.LearnerException;
 import org.shaman.rule.ExpressionParser;
 
+import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.ObjectMatrix1D;
 
 
@@ -150,6 +153,115 @@ public class ExpressionParserTest extends TestCase
         assertEquals(new Double(1.0), obout);
     }
     
+    // **********************************************************\
+    // *       Compiled Expressions equal the Interpreter       *
+    // **********************************************************/
+    public void testCompiled() throws ShamanException
+    {
+        String []exps = new String[]
+        {
+            "attribute0+attribute1*attribute2-attribute3/attribute1",
+            "-attribute0 % attribute1 + 2.5",
+            "attribute0^2 + attribute1^attribute2 + attribute2^0.5",
+            "sqrt(attribute0) + ln(attribute1) + log(attribute2)",
+            "exp(attribute0/10) + abs(attribute1) + sin(attribute2) + cos(attribute3) + tan(attribute0)",
+            "(attribute0 < attribute1) + (attribute0 > attribute1)*2 + (attribute2 <= attribute3)*4 + (attribute2 >= attribute3)*8",
+            "(attribute0 == attribute1) + (attribute2 != attribute3)*2",
+            "(attribute0 > 0 && attribute1 > 0) || !(attribute2 > attribute3)",
+            "ifthenelse(attribute0 > attribute1, attribute2*2, ifthenelse(attribute3, 1, -1))",
+            "ifthenelse(true && !false, attribute0, attribute1)"
+        };
+        DataModelDouble  dmtest;
+        ExpressionParser interp;
+        DoubleMatrix1D   invec;
+        Random           rand;
+        double           []special;
+        int              i, j, k;
+        double           vcomp, vint;
+        
+        dmtest = (DataModelDouble)TestUtils.makeNumberDataModel(4, true);
+        invec  = dmtest.createDefaultVector();
+        parse.setDataModel(dmtest);
+        interp = new ExpressionParser(dmtest);
+        interp.setCompile(false);
+        
+        // Include values where the interpreter needs complex numbers or where equality is subtle.
+        special = new double[]{0.0, -0.0, 1.0, -1.0, 0.5, -2.5, Double.NaN, Double.POSITIVE_INFINITY};
+        rand    = new Random(15);
+        for (i=0; i<exps.length; i++)
+        {
+            parse.parseExp(exps[i]);
+            interp.parseExp(exps[i]);
+            assertTrue(exps[i], parse.isCompiled());
+            assertFalse(interp.isCompiled());
+            for (j=0; j<1000; j++)
+            {
+                for (k=0; k<4; k++)
+                {
+                    if (rand.nextInt(3) == 0) invec.setQuick(k, special[rand.nextInt(special.length)]);
+                    else                      invec.setQuick(k, rand.nextInt(7)-3+(rand.nextBoolean()?0:rand.nextDouble()));
+                }
+                vcomp = parse.getValue(invec);
+                vint  = interp.getValue(invec);
+                assertEquals(exps[i]+" on "+invec, Double.doubleToLongBits(vint), Double.doubleToLongBits(vcomp));
+            }
+        }
+        
+        // Functions outside of the standard math stay interpreted.
+        parse.parseExp("atan(attribute0)");
+        assertFalse(parse.isCompiled());
+        invec.setQuick(0, 1.6);
+        assertEquals(Math.atan(1.6), parse.getValue(invec), 1e-12);
+        
+        // Object vectors are always interpreted.
+        parse = new ExpressionParser(TestUtils.makeNumberDataModel(4, false));
+        parse.parseExp("attribute0+attribute1");
+        assertFalse(parse.isCompiled());
+    }
+    
+    public void testCompiledThroughput() throws ShamanException
+    {
+        DataModelDouble  dmtest;
+        ExpressionParser interp;
+        DoubleMatrix1D   []data;
+        String           exp;
+        int              i, j, reps;
+        long             tbeg, tcomp, tint;
+        double           scomp, sint;
+        
+        dmtest = (DataModelDouble)TestUtils.makeNumberDataModel(4, true);
+        data   = new DoubleMatrix1D[1000];
+        for (i=0; i<data.length; i++)
+        {
+            data[i] = dmtest.createDefaultVector();
+            for (j=0; j<4; j++) data[i].setQuick(j, i*0.01 + j);
+        }
+        
+        exp = "ifthenelse(attribute0 > 2 && attribute1 < 8, attribute2*attribute3 + sqrt(attribute0), attribute1 - attribute3/2)";
+        parse.setDataModel(dmtest);
+        parse.parseExp(exp);
+        interp = new ExpressionParser(dmtest);
+        interp.setCompile(false);
+        interp.parseExp(exp);
+        
+        // Warm up both, then time the same number of evaluations.
+        reps  = 200;
+        scomp = 0;
+        sint  = 0;
+        for (i=0; i<data.length; i++) { scomp += parse.getValue(data[i]); sint += interp.getValue(data[i]); }
+        tbeg  = System.nanoTime();
+        for (j=0; j<reps; j++) for (i=0; i<data.length; i++) scomp += parse.getValue(data[i]);
+        tcomp = System.nanoTime() - tbeg;
+        tbeg  = System.nanoTime();
+        for (j=0; j<reps; j++) for (i=0; i<data.length; i++) sint += interp.getValue(data[i]);
+        tint  = System.nanoTime() - tbeg;
+        
+        System.out.println("Compiled    : "+(long)(reps*data.length/(tcomp/1e9))+" evaluations/sec");
+        System.out.println("Interpreted : "+(long)(reps*data.length/(tint/1e9))+" evaluations/sec");
+        assertEquals(sint, scomp, 0.0);
+        assertTrue(tcomp < tint);
+    }
+    
     // **********************************************************\
     // *                     Test-Case Setup                    *
     // **********************************************************/
@@ -0,0 +1,401 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.rule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.shaman.datamodel.AttributeDouble;
+import org.shaman.datamodel.DataModel;
+import org.shaman.exceptions.ShamanException;
+import org.shaman.learning.InstanceSetMemory;
+import org.shaman.learning.MemorySupplier;
+import org.shaman.learning.TestSets;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Random Forest Test
+ */
+public class RandomForestTest extends TestCase
+{
+    // Instances classified in the benchmark
+    private static final int BENCHMARK_INSTANCES = 20000;
+    // Instances trained on in the training benchmark
+    private static final int TRAIN_BENCHMARK_INSTANCES = 100000;
+
+    private double [][]trainInstances;     // Iris instances with goal class as last value
+    private int      []attributeDescription;
+    private int        goalClasses;
+
+    // **********************************************************\
+    // *       Same Forest whatever the Number of Threads       *
+    // **********************************************************/
+    public void testThreadsDeterministic() throws ShamanException
+    {
+        RandomForest serial, parallel;
+        double     []confSerial, confParallel;
+
+        serial   = trainForest(1);
+        parallel = trainForest(4);
+        assertEquals(serial.getOutOfBagError(), parallel.getOutOfBagError(), 0);
+        assertTrue(serial.getOutOfBagError() < 0.2);
+
+        confSerial   = new double[this.goalClasses];
+        confParallel = new double[this.goalClasses];
+        for (int i=0; i<this.trainInstances.length; i++)
+        {
+            assertEquals(serial.classify(this.trainInstances[i], confSerial), parallel.classify(this.trainInstances[i], confParallel));
+            for (int j=0; j<this.goalClasses; j++) assertEquals(confSerial[j], confParallel[j], 0);
+        }
+    }
+
+    public void testBatchClassify() throws ShamanException
+    {
+        RandomForest forest;
+        double   [][]instances;
+        double   [][]confBatch;
+        double     []conf;
+        int        []classBatch;
+        int          i;
+
+        // More instances than fit in one block.
+        forest    = trainForest(3);
+        instances = new double[1000][];
+        for (i=0; i<instances.length; i++) instances[i] = this.trainInstances[i % this.trainInstances.length];
+        confBatch  = new double[instances.length][this.goalClasses];
+        classBatch = forest.classify(instances, confBatch);
+
+        conf = new double[this.goalClasses];
+        for (i=0; i<instances.length; i++)
+        {
+            assertEquals(forest.classify(instances[i], conf), classBatch[i]);
+            for (int j=0; j<this.goalClasses; j++) assertEquals(conf[j], confBatch[i][j], 0);
+        }
+    }
+
+    private RandomForest trainForest(int threads) throws ShamanException
+    {
+        RandomForest forest;
+
+        forest = new RandomForest();
+        forest.setAttributeDescription(this.attributeDescription);
+        forest.setGoalClasses(this.goalClasses);
+        forest.setTrainInstances(this.trainInstances);
+        forest.setNumberOfTrees(20);
+        forest.setMinObjects(2);
+        forest.setNumberOfVariables(RandomForestTree.NUMBER_OF_VARIABLES_SQRT);
+        forest.setTrainFraction(0.66);
+        forest.setRandomSeed(7);
+        forest.setNumberOfThreads(threads);
+        forest.train();
+
+        return forest;
+    }
+
+    // **********************************************************\
+    // *        Compiled Forest classifies like the Trees       *
+    // **********************************************************/
+    public void testCompiled() throws Exception
+    {
+        checkCompiled();
+        loadData(true);
+        checkCompiled();
+    }
+
+    private void checkCompiled() throws Exception
+    {
+        RandomForest           forest;
+        List<RandomForestTree> trees;
+        RandomForestCompiled   loaded;
+        ByteArrayOutputStream  bout;
+        ByteArrayInputStream   bin;
+        double               []conf, confTrees, confLoaded;
+        int                    i;
+
+        forest = trainForest(1);
+        trees  = getTrees(forest);
+        assertEquals(20, forest.getCompiled().getNumberOfTrees());
+
+        // Save and load the compiled forest as a binary blob. The data after it is left in the stream.
+        bout   = new ByteArrayOutputStream();
+        forest.getCompiled().save(bout);
+        bout.write(42);
+        bin    = new ByteArrayInputStream(bout.toByteArray());
+        loaded = new RandomForestCompiled();
+        loaded.load(bin);
+        assertEquals(42, bin.read());
+        assertEquals(forest.getCompiled().getNumberOfNodes(), loaded.getNumberOfNodes());
+
+        conf       = new double[this.goalClasses];
+        confTrees  = new double[this.goalClasses];
+        confLoaded = new double[this.goalClasses];
+        for (i=0; i<this.trainInstances.length; i++)
+        {
+            assertEquals(classifyTrees(trees, this.trainInstances[i], confTrees), forest.classify(this.trainInstances[i], conf));
+            assertEquals(forest.classify(this.trainInstances[i], conf), loaded.classify(this.trainInstances[i], confLoaded));
+            for (int j=0; j<this.goalClasses; j++)
+            {
+                assertEquals(confTrees[j], conf[j], 0);
+                assertEquals(conf[j], confLoaded[j], 0);
+            }
+        }
+    }
+
+    public void testBenchmark() throws Exception
+    {
+        RandomForest           forest;
+        List<RandomForestTree> trees;
+        double             [][]instances, confBatch;
+        double               []conf;
+        int                  []classBatch;
+        long                   tbeg, ttrees, tcompiled, tbatch;
+        int                    i, rep;
+
+        // A bigger forest on the cancer data.
+        loadData(true);
+        forest = new RandomForest();
+        forest.setAttributeDescription(this.attributeDescription);
+        forest.setGoalClasses(this.goalClasses);
+        forest.setTrainInstances(this.trainInstances);
+        forest.setNumberOfTrees(100);
+        forest.setNumberOfVariables(RandomForestTree.NUMBER_OF_VARIABLES_SQRT);
+        forest.setTrainFraction(0.66);
+        forest.setRandomSeed(5);
+        forest.setNumberOfThreads(1);
+        forest.train();
+        trees = getTrees(forest);
+
+        instances = new double[BENCHMARK_INSTANCES][];
+        for (i=0; i<instances.length; i++) instances[i] = this.trainInstances[i % this.trainInstances.length];
+        conf       = new double[this.goalClasses];
+        confBatch  = new double[instances.length][this.goalClasses];
+
+        // Warm up, then time the runtime trees, the compiled forest per instance and the compiled forest per batch.
+        ttrees = tcompiled = tbatch = 0;
+        for (rep=0; rep<2; rep++)
+        {
+            tbeg = System.nanoTime();
+            for (i=0; i<instances.length; i++) classifyTrees(trees, instances[i], conf);
+            ttrees = System.nanoTime()-tbeg;
+
+            tbeg = System.nanoTime();
+            for (i=0; i<instances.length; i++) forest.classify(instances[i], conf);
+            tcompiled = System.nanoTime()-tbeg;
+
+            tbeg = System.nanoTime();
+            classBatch = forest.classify(instances, confBatch);
+            tbatch = System.nanoTime()-tbeg;
+            assertEquals(instances.length, classBatch.length);
+        }
+
+        System.out.println("Random Forest of 100 trees, "+instances.length+" instances.");
+        System.out.println("Runtime trees     : "+(ttrees/instances.length)+" ns/instance");
+        System.out.println("Compiled          : "+(tcompiled/instances.length)+" ns/instance");
+        System.out.println("Compiled batch    : "+(tbatch/instances.length)+" ns/instance, "+(long)(instances.length/(tbatch/1e9))+" instances/s");
+    }
+
+    // **********************************************************\
+    // *          Presorted Training grows the Same Trees       *
+    // **********************************************************/
+    public void testTrainReference() throws Exception
+    {
+        RandomForest forest;
+
+        // Node counts and out-of-bag errors of the List based implementation the presorted one replaced.
+        forest = trainSmallForest();
+        assertEquals(57, forest.getCompiled().getNumberOfNodes());
+        assertEquals(0.06040268456375839, forest.getOutOfBagError(), 0);
+        loadData(true);
+        forest = trainSmallForest();
+        assertEquals(885, forest.getCompiled().getNumberOfNodes());
+        assertEquals(0.07306590257879657, forest.getOutOfBagError(), 0);
+    }
+
+    private RandomForest trainSmallForest() throws ShamanException
+    {
+        RandomForest forest;
+
+        forest = new RandomForest();
+        forest.setAttributeDescription(this.attributeDescription);
+        forest.setGoalClasses(this.goalClasses);
+        forest.setTrainInstances(this.trainInstances);
+        forest.setNumberOfTrees(5);
+        forest.setMinObjects(2);
+        forest.setNumberOfVariables(RandomForestTree.NUMBER_OF_VARIABLES_ALL);
+        forest.setTrainFraction(0.66);
+        forest.setRandomSeed(1);
+        forest.setNumberOfThreads(1);
+        forest.train();
+
+        return forest;
+    }
+
+    public void testTrainBenchmark() throws ShamanException
+    {
+        RandomForest forest;
+        Random       random;
+        double   [][]instances;
+        int        []description;
+        long         tbeg;
+        int          i, j;
+
+        // Many continuous attributes with many distinct values and a few categorical ones.
+        random      = new Random(1);
+        instances   = new double[TRAIN_BENCHMARK_INSTANCES][13];
+        description = new int[]{0,0,0,0,0,0,0,0,0,0,4,4,-1};
+        for (i=0; i<instances.length; i++)
+        {
+            for (j=0; j<12; j++) instances[i][j] = j >= 10 ? random.nextInt(4) : random.nextGaussian();
+            instances[i][12] = (instances[i][0]+instances[i][1]*instances[i][2] > 0 ? 1 : 0) + (instances[i][10] > 1 ? 1 : 0);
+        }
+
+        forest = new RandomForest();
+        forest.setAttributeDescription(description);
+        forest.setGoalClasses(3);
+        forest.setTrainInstances(instances);
+        forest.setNumberOfTrees(5);
+        forest.setMinObjects(2);
+        forest.setNumberOfVariables(RandomForestTree.NUMBER_OF_VARIABLES_SQRT);
+        forest.setTrainFraction(0.66);
+        forest.setRandomSeed(3);
+        forest.setNumberOfThreads(1);
+        tbeg = System.currentTimeMillis();
+        forest.train();
+        System.out.println("Trained Random Forest of 5 trees on "+instances.length+" instances in "+(System.currentTimeMillis()-tbeg)+" ms");
+        assertTrue(forest.getOutOfBagError() < 0.2);
+    }
+
+    private List<RandomForestTree> getTrees(RandomForest forest) throws Exception
+    {
+        ByteArrayOutputStream  bout;
+        ObjectOutputStream     oout;
+        ObjectInputStream      oin;
+        List<RandomForestTree> trees;
+        RandomForestTree       tree;
+        int                    numTrees;
+
+        // Read back the runtime trees the forest is made of.
+        bout = new ByteArrayOutputStream();
+        oout = new ObjectOutputStream(bout);
+        forest.saveState(oout);
+        oout.close();
+        oin = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()));
+        oin.readObject();
+        oin.readInt();
+        numTrees = oin.readInt();
+        oin.readDouble(); oin.readInt(); oin.readInt(); oin.readInt(); oin.readInt();
+        trees = new ArrayList<RandomForestTree>();
+        for (int i=0; i<numTrees; i++)
+        {
+            tree = new RandomForestTree();
+            tree.loadState(oin);
+            trees.add(tree);
+        }
+
+        return trees;
+    }
+
+    private int classifyTrees(List<RandomForestTree> trees, double []instance, double []confidence)
+    {
+        double []sumConfidence, treeConfidence;
+        double   maxConfidence;
+        int      modeClass;
+
+        // Average the class distributions of the runtime trees.
+        sumConfidence  = new double[this.goalClasses];
+        treeConfidence = new double[this.goalClasses];
+        for (RandomForestTree tree: trees)
+        {
+            tree.classify(instance, treeConfidence);
+            for (int i=0; i<treeConfidence.length; i++) sumConfidence[i] += treeConfidence[i];
+        }
+        modeClass     = -1;
+        maxConfidence = Double.NEGATIVE_INFINITY;
+        for (int i=0; i<sumConfidence.length; i++)
+        {
+            confidence[i] = sumConfidence[i] / trees.size();
+            if (confidence[i] >= maxConfidence) { maxConfidence = confidence[i]; modeClass = i; }
+        }
+
+        return modeClass;
+    }
+
+    // **********************************************************\
+    // *                JUnit Setup and Teardown                *
+    // **********************************************************/
+    public RandomForestTest(String name)
+    {
+        super(name);
+    }
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        // Iris data-set. Continuous attributes.
+        loadData(false);
+    }
+
+    private void loadData(boolean categorical) throws ShamanException
+    {
+        MemorySupplier    ms;
+        InstanceSetMemory im;
+        DataModel         dm;
+        AttributeDouble   attgoal;
+        int             []actind;
+        double          []ins;
+        double            value;
+        int               i, j, numatt;
+
+        // Iris or the Wisconsin Breast Cancer data-set with categorical attributes. Goal class as last value.
+        ms = new MemorySupplier();
+        im = new InstanceSetMemory();
+        if (categorical) TestSets.loadCancer(ms, false, true);
+        else             TestSets.loadIris(ms);
+        im.create(ms);
+        dm      = im.getDataModel();
+        attgoal = (AttributeDouble)dm.getAttribute(dm.getLearningProperty().getGoalIndex());
+        actind  = dm.getActiveIndices();
+        numatt  = actind.length;
+
+        this.goalClasses          = attgoal.getNumberOfGoalClasses();
+        this.attributeDescription = new int[numatt+1];
+        for (i=0; i<numatt; i++)
+            this.attributeDescription[i] = categorical ? ((AttributeDouble)dm.getAttribute(actind[i])).getNumberOfCategories() : 0;
+        this.attributeDescription[numatt] = -1;
+        this.trainInstances       = new double[im.getNumberOfInstances()][];
+        for (i=0; i<this.trainInstances.length; i++)
+        {
+            ins = new double[numatt+1];
+            for (j=0; j<numatt; j++)
+            {
+                // Categories 1..10 become 0..9. Missing stays -1.
+                value  = im.getInstance(i).getQuick(j);
+                ins[j] = (categorical && value != -1) ? value-1 : value;
+            }
+            ins[numatt] = attgoal.getGoalClass(im.getGoal(i));
+            this.trainInstances[i] = ins;
+        }
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+    }
+}
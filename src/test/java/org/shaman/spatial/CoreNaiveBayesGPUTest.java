@@ -0,0 +1,133 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.spatial;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+/**
+ * <h2>Naive Bayes Backends Test Case</h2>
+ */
+public class CoreNaiveBayesGPUTest extends TestCase
+{
+    private File        dataFile;
+    private CoreDataSet data;
+
+    // **********************************************************\
+    // *             CPU Backend versus Java Backend            *
+    // **********************************************************/
+    public void testCPUBackend() throws Exception
+    {
+        // One range and several ranges of instances counted in parallel.
+        compareBackends(1);
+        compareBackends(4);
+    }
+
+    private void compareBackends(int threads) throws Exception
+    {
+        CoreNaiveBayesGPU nbjava, nbcpu;
+        double            errjava, errcpu;
+
+        nbjava  = makeNaiveBayes(CoreNaiveBayesGPU.BACKEND_JAVA, threads);
+        nbcpu   = makeNaiveBayes(CoreNaiveBayesGPU.BACKEND_CPU, threads);
+        errjava = nbjava.trainAndTest();
+        errcpu  = nbcpu.trainAndTest();
+
+        // Same counts, same classes.
+        assertTrue(Arrays.equals(nbjava.getGoalCounts(),  nbcpu.getGoalCounts()));
+        assertTrue(Arrays.equals(nbjava.getCounts(),      nbcpu.getCounts()));
+        assertTrue(Arrays.equals(nbjava.getTestClasses(), nbcpu.getTestClasses()));
+        assertEquals(errjava, errcpu, 0);
+
+        // Trained again with cleared counters.
+        nbcpu.trainAndTest();
+        assertTrue(Arrays.equals(nbjava.getCounts(), nbcpu.getCounts()));
+
+        nbjava.dispose();
+        nbcpu.dispose();
+    }
+
+    private CoreNaiveBayesGPU makeNaiveBayes(int backend, int threads) throws Exception
+    {
+        CoreNaiveBayesGPU nb;
+
+        nb = new CoreNaiveBayesGPU();
+        nb.setDataSet(this.data);
+        nb.setBackend(backend);
+        nb.setNumberOfThreads(threads);
+        nb.convertDataSet();
+        nb.initExperiment();
+        assertEquals(backend, nb.getActiveBackend());
+
+        return(nb);
+    }
+
+    // **********************************************************\
+    // *               Unit Test Setup/Teardown                 *
+    // **********************************************************/
+    private void writeDataSet(File file, int numInstances) throws IOException
+    {
+        PrintWriter out;
+        Random      random;
+        int         i, j, cl;
+
+        // Nominal attributes that depend on the class. Enough instances to count in several ranges.
+        random = new Random(7);
+        out    = new PrintWriter(new FileWriter(file));
+        try
+        {
+            out.println("@RELATION synthetic");
+            for (j=0; j<5; j++) out.println("@ATTRIBUTE a"+j+" {v0,v1,v2,v3}");
+            out.println("@ATTRIBUTE class {c0,c1,c2}");
+            out.println("@DATA");
+            for (i=0; i<numInstances; i++)
+            {
+                cl = random.nextInt(3);
+                for (j=0; j<5; j++) out.print("v"+((random.nextInt(3) < 2) ? (cl+j)%4 : random.nextInt(4))+",");
+                out.println("c"+cl);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        this.dataFile = File.createTempFile("naivebayes", ".arff");
+        writeDataSet(this.dataFile, 6000);
+        this.data = new CoreDataSet();
+        this.data.readWekaDataSet(this.dataFile.getParent(), this.dataFile.getName());
+    }
+
+    protected void tearDown() throws Exception
+    {
+        this.dataFile.delete();
+
+        super.tearDown();
+    }
+
+    public CoreNaiveBayesGPUTest(String name)
+    {
+        super(name);
+    }
+}
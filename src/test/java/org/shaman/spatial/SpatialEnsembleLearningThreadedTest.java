@@ -0,0 +1,149 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.spatial;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+
+
+/**
+ * <h2>Multi-threaded PSBML Test Case</h2>
+ */
+public class SpatialEnsembleLearningThreadedTest extends TestCase
+{
+    private Instances iris;
+    private Instances data;
+
+    // **********************************************************\
+    // *         Synchronous Epochs on 1 and more Threads       *
+    // **********************************************************/
+    public void testThreads() throws Exception
+    {
+        SpatialEnsembleLearningThreaded sel1, sel4;
+        List<ClassifierNode>            nodes1, nodes4;
+        Instances                       data1, data4;
+        Classifier                      best1, best4;
+        int                             i, j;
+
+        sel1 = makeLearner(1, 5);
+        sel4 = makeLearner(4, 5);
+        sel1.learn();
+        sel4.learn();
+
+        // The Nodes selected the same instances in every epoch.
+        nodes1 = sel1.getGrid().getNodes();
+        nodes4 = sel4.getGrid().getNodes();
+        assertEquals(nodes1.size(), nodes4.size());
+        for (i=0; i<nodes1.size(); i++)
+        {
+            data1 = nodes1.get(i).getData();
+            data4 = nodes4.get(i).getData();
+            assertEquals(data1.numInstances(), data4.numInstances());
+            for (j=0; j<data1.numInstances(); j++)
+            {
+                assertTrue(Arrays.equals(data1.instance(j).toDoubleArray(), data4.instance(j).toDoubleArray()));
+                assertEquals(data1.instance(j).weight(), data4.instance(j).weight(), 0);
+            }
+        }
+
+        // And the best classifier is the same.
+        assertEquals(sel1.getMinClassError(), sel4.getMinClassError(), 0);
+        best1 = sel1.getBestClassifier();
+        best4 = sel4.getBestClassifier();
+        for (Instance instance: this.iris)
+            assertTrue(Arrays.equals(best1.distributionForInstance(instance), best4.distributionForInstance(instance)));
+
+        sel1.shutdown();
+        sel4.shutdown();
+    }
+
+    // **********************************************************\
+    // *                 Asynchronous Epochs                    *
+    // **********************************************************/
+    public void testAsynchronous() throws Exception
+    {
+        SpatialEnsembleLearningThreaded sel;
+        int                           []nodeEpochs;
+        long                          []timeSpent;
+        long                            total;
+        int                             i;
+
+        sel = makeLearner(4, 4);
+        sel.learnAsynchronous();
+
+        // Every Node lived through all its epochs. The time spent in the Nodes is known.
+        nodeEpochs = sel.getNodeEpochs();
+        timeSpent  = sel.getNodeTimeSpent();
+        assertEquals(9, nodeEpochs.length);
+        assertEquals(9, timeSpent.length);
+        total = 0;
+        for (i=0; i<nodeEpochs.length; i++)
+        {
+            assertEquals(4, nodeEpochs[i]);
+            assertTrue(timeSpent[i] >= 0);
+            total += timeSpent[i];
+        }
+        assertTrue(total > 0);
+        assertNotNull(sel.getBestClassifier());
+
+        sel.shutdown();
+    }
+
+    private SpatialEnsembleLearningThreaded makeLearner(int threads, int epochs) throws Exception
+    {
+        SpatialEnsembleLearningThreaded sel;
+
+        // A 3x3 grid with the default seed.
+        sel = new SpatialEnsembleLearningThreaded();
+        sel.setNumberOfThreads(threads);
+        sel.setGridSize(3, 3);
+        sel.setEpochs(epochs);
+        sel.setReplaceFraction(0.2);
+        sel.setDataSets(this.data, this.iris);
+        sel.initialize();
+
+        return(sel);
+    }
+
+    // **********************************************************\
+    // *               Unit Test Setup/Teardown                 *
+    // **********************************************************/
+    protected void setUp() throws Exception
+    {
+        int i;
+
+        super.setUp();
+
+        // Iris, 20 times. Enough instances per Node to spend measurable time.
+        this.iris = new DataSource("./src/main/resources/data/iris.arff").getDataSet();
+        this.iris.setClass(this.iris.attribute("class"));
+        this.data = new Instances(this.iris);
+        for (i=1; i<20; i++)
+            for (Instance instance: this.iris) this.data.add((Instance)instance.copy());
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+    }
+
+    public SpatialEnsembleLearningThreadedTest(String name)
+    {
+        super(name);
+    }
+}
@@ -0,0 +1,117 @@
+/*********************************************************\
+ *                                                       *
+ *                     S H A M A N                       *
+ *                   R E S E A R C H                     *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *                                                       *
+ *  by Johan Kaers  (johankaers@gmail.com)               *
+ *  Copyright (c) 2002-5 Shaman Research                 *
+\*********************************************************/
+package org.shaman.svm;
+
+import org.shaman.exceptions.ShamanException;
+import org.shaman.learning.InstanceSetMemory;
+import org.shaman.learning.MemorySupplier;
+import org.shaman.learning.TestSets;
+
+import junit.framework.TestCase;
+
+
+/**
+ * <h2>Test Kernel Cache</h2>
+ * Unit Tests for the Kernel Matrix Cache
+ */
+
+// **********************************************************\
+// *          Unit Tests for the Kernel Matrix Cache        *
+// **********************************************************/
+public class TestKernelCache extends TestCase
+{
+    private InstanceSetMemory im;
+
+    // **********************************************************\
+    // *         Cached Values equal the Kernel Function        *
+    // **********************************************************/
+    public void testKernels() throws ShamanException
+    {
+        checkKernel(new Kernel(Kernel.KERNEL_GAUSSIAN,   new double[]{1.2}));
+        checkKernel(new Kernel(Kernel.KERNEL_LINEAR,     null));
+        checkKernel(new Kernel(Kernel.KERNEL_POLYNOMIAL, new double[]{1.0, 2.0}));
+    }
+
+    private void checkKernel(Kernel kernel) throws ShamanException
+    {
+        KernelCache cache;
+        int         i, j, n;
+
+        // Only room for 10 rows. Forces eviction.
+        n     = this.im.getNumberOfInstances();
+        cache = new KernelCache(kernel, this.im, 10*8*n);
+        for (i=0; i<n; i++)
+            for (j=0; j<n; j+=7)
+                assertEquals(kernel.apply(this.im.getInstance(i), this.im.getInstance(j)), cache.get(i, j), 0);
+        assertEquals(10, cache.getMaximumRows());
+        assertEquals(10, cache.getNumberOfRows());
+    }
+
+    // **********************************************************\
+    // *          Least Recently Used Rows and Symmetry         *
+    // **********************************************************/
+    public void testEviction() throws ShamanException
+    {
+        Kernel      kernel;
+        KernelCache cache;
+        double    []row0;
+        int         n;
+
+        kernel = new Kernel(Kernel.KERNEL_GAUSSIAN, new double[]{1.2});
+        n      = this.im.getNumberOfInstances();
+        cache  = new KernelCache(kernel, this.im, 3*8*n);
+
+        // Row 0, 1, 2 calculated. K(5,1) is found in row 1.
+        row0 = cache.getRow(0);
+        cache.getRow(1);
+        cache.getRow(2);
+        assertEquals(3, cache.getMisses());
+        assertEquals(row0[4], cache.get(4, 0), 0);
+        assertEquals(kernel.apply(this.im.getInstance(5), this.im.getInstance(1)), cache.get(5, 1), 0);
+        assertEquals(2, cache.getHits());
+
+        // Row 2 is now least recently used. Row 3 takes its place.
+        cache.getRow(3);
+        cache.resetStatistics();
+        cache.get(0, 9);
+        cache.get(1, 9);
+        cache.get(3, 9);
+        assertEquals(3, cache.getHits());
+        cache.get(2, 9);
+        assertEquals(1, cache.getMisses());
+    }
+
+    // **********************************************************\
+    // *               Unit Test Setup/Teardown                 *
+    // **********************************************************/
+    protected void setUp() throws Exception
+    {
+        MemorySupplier ms;
+
+        super.setUp();
+
+        ms      = new MemorySupplier();
+        this.im = new InstanceSetMemory();
+        TestSets.loadIris(ms, true);
+        this.im.create(ms);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+    }
+
+    public TestKernelCache(String name)
+    {
+        super(name);
+    }
+}
@@ -87,6 +87,121 @@ public class TestLSSVM extends TestCase
         System.out.println("Confusion Matrix"+conf);
     }
     
+    public void testLargeScale() throws ShamanException
+    {
+        InstanceSetMemory im;
+        LSSVM             svm;
+        int               i, n, itJacobi, itNystrom;
+        double          []outJacobi, outNystrom, outApprox;
+        
+        im  = new InstanceSetMemory();
+        svm = makeIrisSVM(im);
+        n   = im.getNumberOfInstances();
+        
+        // Matrix-free CG with the diagonal as preconditioner.
+        svm.setSolver(LSSVM.SOLVER_CG);
+        svm.setNumberOfLandmarks(0);
+        svm.setCGParameters(1e-10, 1000);
+        train(svm, im);
+        itJacobi  = svm.getNumberOfIterations();
+        outJacobi = getOutputs(svm, im);
+        
+        // The Nystrom preconditioner should give the same solution in less iterations.
+        svm.setNumberOfLandmarks(30);
+        train(svm, im);
+        itNystrom  = svm.getNumberOfIterations();
+        outNystrom = getOutputs(svm, im);
+        System.out.println("CG iterations. Diagonal : "+itJacobi+" Nystrom : "+itNystrom);
+        assertTrue(itNystrom < itJacobi);
+        for (i=0; i<n; i++) assertEquals(outJacobi[i], outNystrom[i], 1e-6);
+        assertTrue(getError(svm, im) < 0.05);
+        
+        // The Nystrom approximation on its own. Exact when all instances are landmarks.
+        svm.setSolver(LSSVM.SOLVER_NYSTROM);
+        svm.setNumberOfLandmarks(50);
+        train(svm, im);
+        assertTrue(getError(svm, im) < 0.05);
+        svm.setNumberOfLandmarks(n);
+        train(svm, im);
+        outApprox = getOutputs(svm, im);
+        for (i=0; i<n; i++) assertEquals(outJacobi[i], outApprox[i], 1e-5);
+    }
+    
+    public void testLargeScaleThreads() throws ShamanException
+    {
+        InstanceSetMemory im;
+        LSSVM             svm;
+        int               i, it;
+        double          []out1, out4;
+        
+        // The Kernel products are divided the same way for any number of threads.
+        im  = new InstanceSetMemory();
+        svm = makeIrisSVM(im);
+        svm.setSolver(LSSVM.SOLVER_CG);
+        svm.setNumberOfLandmarks(20);
+        svm.setNumberOfThreads(1);
+        train(svm, im);
+        it   = svm.getNumberOfIterations();
+        out1 = getOutputs(svm, im);
+        
+        svm.setNumberOfThreads(4);
+        train(svm, im);
+        out4 = getOutputs(svm, im);
+        assertEquals(it, svm.getNumberOfIterations());
+        for (i=0; i<out1.length; i++) assertEquals(out1[i], out4[i], 0.0);
+    }
+    
+    private LSSVM makeIrisSVM(InstanceSetMemory im) throws ShamanException
+    {
+        MemorySupplier ms  = new MemorySupplier();
+        LSSVM          svm = new LSSVM();
+        
+        ms.registerConsumer(0, svm, 0);
+        ms.registerConsumer(0, im, 0);
+        svm.registerSupplier(0, ms, 0);
+        TestSets.loadIris(ms, 0);
+        svm.setKernel(Kernel.KERNEL_GAUSSIAN, new double[]{1.2});
+        svm.setGamma(10);
+        svm.init();
+        im.create(ms);
+        
+        return(svm);
+    }
+    
+    private void train(LSSVM svm, InstanceSetMemory im) throws ShamanException
+    {
+        svm.setTrainSet(im);
+        svm.initializeTraining();
+        svm.train();
+    }
+    
+    private double []getOutputs(LSSVM svm, InstanceSetMemory im) throws ShamanException
+    {
+        int      i, clout;
+        double []out, conf;
+        
+        // Signed output of the SVM. Class 0 when negative.
+        out = new double[im.getNumberOfInstances()];
+        for (i=0; i<out.length; i++)
+        {
+            conf   = new double[2];
+            clout  = svm.classify(im.getInstance(i), conf);
+            out[i] = conf[clout];
+        }
+        
+        return(out);
+    }
+    
+    private double getError(LSSVM svm, InstanceSetMemory im) throws ShamanException
+    {
+        int i, err;
+        
+        err = 0;
+        for (i=0; i<im.getNumberOfInstances(); i++) if (svm.classify(im.getInstance(i)) != im.getGoalClass(i)) err++;
+        
+        return(((double)err)/im.getNumberOfInstances());
+    }
+    
     public void doNot_testCore() throws ShamanException
     {
         int   i;
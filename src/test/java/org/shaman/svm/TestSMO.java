@@ -79,6 +79,122 @@ public class TestSMO extends TestCase
         System.out.println("Confusion Matrix"+conf);
     }
     
+    public void testMultiClass() throws ShamanException
+    {
+        InstanceSetMemory    im;
+        SMO                  svm;
+        Validation           val;
+        ValidationClassifier valclas;
+        
+        // 3 Iris classes. One-versus-one.
+        im  = new InstanceSetMemory();
+        svm = makeIrisSVM(im, 2);
+        svm.setSMOParameters(10.0, 0.001);
+        val = new Validation(im, svm);
+        val.create(Validation.SPLIT_CROSS_VALIDATION, new double[]{3.0});
+        val.test();
+        valclas = val.getValidationClassifier();
+        System.out.println("3-Class Error : "+valclas.getClassificationError());
+        assertEquals(3, valclas.getConfusionMatrix().length);
+        assertTrue(valclas.getClassificationError() < 0.1);
+    }
+    
+    public void testThreads() throws ShamanException
+    {
+        InstanceSetMemory im;
+        SMO               svm;
+        int               i, iterations, numsv;
+        int             []clout;
+        
+        // The binary machines and their Kernel rows do not depend on the number of threads.
+        im  = new InstanceSetMemory();
+        svm = makeIrisSVM(im, 2);
+        svm.setSMOParameters(10.0, 0.001);
+        svm.setNumberOfThreads(1);
+        train(svm, im);
+        iterations = svm.getNumberOfIterations();
+        numsv      = svm.getNumberOfSupportVectors();
+        clout      = new int[im.getNumberOfInstances()];
+        for (i=0; i<clout.length; i++) clout[i] = svm.classify(im.getInstance(i));
+        
+        svm.setNumberOfThreads(4);
+        train(svm, im);
+        assertEquals(iterations, svm.getNumberOfIterations());
+        assertEquals(numsv,      svm.getNumberOfSupportVectors());
+        for (i=0; i<clout.length; i++) assertEquals(clout[i], svm.classify(im.getInstance(i)));
+    }
+    
+    public void testShrinking() throws ShamanException
+    {
+        InstanceSetMemory im;
+        SMO               svm;
+        int               i, errShrink, errFull;
+        
+        // Shrinking should not change the solution beyond the stopping tolerance.
+        im  = new InstanceSetMemory();
+        svm = makeIrisSVM(im, 2);
+        svm.setSMOParameters(1.0, 0.001);
+        train(svm, im);
+        errShrink = 0;
+        for (i=0; i<im.getNumberOfInstances(); i++) if (svm.classify(im.getInstance(i)) != im.getGoalClass(i)) errShrink++;
+        
+        svm.setShrinking(false);
+        train(svm, im);
+        errFull = 0;
+        for (i=0; i<im.getNumberOfInstances(); i++) if (svm.classify(im.getInstance(i)) != im.getGoalClass(i)) errFull++;
+        
+        assertTrue(Math.abs(errShrink - errFull) <= 1);
+        assertTrue(errFull < 10);
+        assertTrue(svm.getCacheHits() > 0);
+    }
+    
+    public void testCacheBudget() throws ShamanException
+    {
+        InstanceSetMemory im;
+        SMO               svm;
+        long              budget;
+        int               threads;
+        
+        // 3 Iris classes give 3 machines of 100 instances. Rows of 800 bytes.
+        // Only the caches of the machines trained at the same time can hold rows.
+        im     = new InstanceSetMemory();
+        svm    = makeIrisSVM(im, 2);
+        budget = 10*800;
+        svm.setSMOParameters(10.0, 0.001);
+        svm.setKernelCacheSize(budget);
+        for (threads=1; threads<=3; threads++)
+        {
+            svm.setNumberOfThreads(threads);
+            train(svm, im);
+            assertTrue(svm.getPeakCacheMemory() > 0);
+            assertTrue(svm.getPeakCacheMemory() <= budget);
+            assertTrue(svm.getCacheMisses() > 0);
+        }
+    }
+    
+    private SMO makeIrisSVM(InstanceSetMemory im, int goalType) throws ShamanException
+    {
+        MemorySupplier ms  = new MemorySupplier();
+        SMO            svm = new SMO();
+        
+        ms.registerConsumer(0, svm, 0);
+        ms.registerConsumer(0, im, 0);
+        svm.registerSupplier(0, ms, 0);
+        TestSets.loadIris(ms, goalType);
+        svm.setKernel(new Kernel(Kernel.KERNEL_GAUSSIAN, new double[]{1.2}));
+        svm.init();
+        im.create(ms);
+        
+        return(svm);
+    }
+    
+    private void train(SMO svm, InstanceSetMemory im) throws ShamanException
+    {
+        svm.setTrainSet(im);
+        svm.initializeTraining();
+        svm.train();
+    }
+    
     // **********************************************************\
     // *               Unit Test Setup/Teardown                 *
     // **********************************************************/
@@ -0,0 +1,63 @@
+package weka.classifiers.meta;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Parallel Spatial Boosting gives the same model on any number of execution slots.
+ *
+ * @author Johan Kaers
+ */
+public class ParallelSpatialBoostingTest extends TestCase
+{
+    private Instances dataset;
+
+    public void testExecutionSlots() throws Exception
+    {
+        ParallelSpatialBoosting psb1, psb3;
+        double []dist1, dist3;
+
+        psb1 = build(1);
+        psb3 = build(3);
+        for (Instance instance: this.dataset)
+        {
+            dist1 = psb1.distributionForInstance(instance);
+            dist3 = psb3.distributionForInstance(instance);
+            assertTrue(Arrays.equals(dist1, dist3));
+        }
+    }
+
+    private ParallelSpatialBoosting build(int slots) throws Exception
+    {
+        ParallelSpatialBoosting psb;
+
+        // A 3x3 grid on Iris. Trained on a copy, the data-set gets shuffled.
+        psb = new ParallelSpatialBoosting();
+        psb.setOptions(new String[]{"-B", "3", "-H", "3", "-S", "1", "-num-slots", ""+slots, "-W", "weka.classifiers.bayes.NaiveBayes"});
+        psb.buildClassifier(new Instances(this.dataset));
+
+        return(psb);
+    }
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        this.dataset = new DataSource("./src/main/resources/data/iris.arff").getDataSet();
+        this.dataset.setClassIndex(this.dataset.numAttributes()-1);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+    }
+
+    public ParallelSpatialBoostingTest(String name)
+    {
+        super(name);
+    }
+}